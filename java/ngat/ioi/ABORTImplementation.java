@@ -60,11 +60,21 @@ public class ABORTImplementation extends INTERRUPTImplementation implements JMSC
 	/**
 	 * This method implements the ABORT command. 
 	 * <ul>
-	 * <li>It tells the currently executing thread to abort itself.
+	 * <li>It tells the currently executing thread to abort itself. This cancels the thread's cancellation
+	 *     token, so any IDL Socket Server command it is waiting on returns immediately.
+	 * <li>If "ioi.abort.data_processing.discard" is true, any ramps acquired by the aborted command that are
+	 *     still waiting in the data processing list are discarded.
+	 * <li>The acquisition state tracked by AcquireRampCommand is used to decide whether an exposure is 
+	 *     in progress. Only if it is unknown is a Ping command sent to find out.
+	 * <li>If an exposure is in progress a StopAcquisition command is sent.
+	 * <li>The DpRt is told to abort.
 	 * </ul>
 	 * An object of class ABORT_DONE is returned.
 	 * @see IOIStatus#getCurrentThread
 	 * @see IOITCPServerConnectionThread#setAbortProcessCommand
+	 * @see IOITCPServerConnectionThread#getProcessCommandStartTime
+	 * @see DataProcessingThread#discardItems
+	 * @see ngat.ioi.command.AcquireRampCommand#getAcquisitionState
 	 */
 	public COMMAND_DONE processCommand(COMMAND command)
 	{
@@ -74,6 +84,8 @@ public class ABORTImplementation extends INTERRUPTImplementation implements JMSC
 		IOIStatus status = null;
 		PingCommand pingCommand = null;
 		StopAcquisitionCommand stopAcquisitionCommand = null;
+		int acquisitionState,discardCount;
+		boolean exposureInProgress;
 
 		ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":processCommand:Started.");
 	// tell the thread itself to abort at a suitable point
@@ -81,29 +93,51 @@ public class ABORTImplementation extends INTERRUPTImplementation implements JMSC
 		status = ioi.getStatus();
 		thread = (IOITCPServerConnectionThread)status.getCurrentThread();
 		if(thread != null)
+		{
 			thread.setAbortProcessCommand();
+			// optionally throw away the ramps the aborted command has queued for data processing
+			if(status.getConfig().getAbortDataProcessingDiscard())
+			{
+				discardCount = ioi.getDataProcessingThread().
+					discardItems(thread.getProcessCommandStartTime());
+				ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
+					":processCommand:Discarded "+discardCount+" queued data processing items.");
+			}
+		}
 		// are we currently exposing? If so stop the acquisition
-		// Use Ping to see if an exposure is in progress
+		// We only need to Ping the IDL socket server if we don't know the answer already
+		acquisitionState = AcquireRampCommand.getAcquisitionState();
 		ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
-			   ":processCommand:Use ping to get exposure status.");
-		pingCommand = new PingCommand();
-		try
+			":processCommand:Acquisition state:"+
+			AcquireRampCommand.acquisitionStateToString(acquisitionState));
+		if(acquisitionState == AcquireRampCommand.ACQUISITION_STATE_UNKNOWN)
 		{
-			pingCommand.sendCommand();
-		}
-		catch(Exception e)
-		{
-			ioi.error(this.getClass().getName()+":processCommand:Sending ping command failed:",e);
-			abortDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+2401);
-			abortDone.setErrorString("processCommand:Sending ping command failed:"+e);
-			abortDone.setSuccessful(false);
-			return abortDone;
+			ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
+				":processCommand:Use ping to get exposure status.");
+			pingCommand = new PingCommand();
+			try
+			{
+				pingCommand.sendCommand();
+			}
+			catch(Exception e)
+			{
+				ioi.error(this.getClass().getName()+":processCommand:Sending ping command failed:",e);
+				abortDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+2401);
+				abortDone.setErrorString("processCommand:Sending ping command failed:"+e);
+				abortDone.setSuccessful(false);
+				return abortDone;
+			}
+			exposureInProgress = (pingCommand.getReplyErrorCode() == -1);
 		}
-		if(pingCommand.getReplyErrorCode() == -1) // an exposure is in progress
+		else
+			exposureInProgress = (acquisitionState == AcquireRampCommand.ACQUISITION_STATE_IN_PROGRESS);
+		if(exposureInProgress)
 		{
 			ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
 				":processCommand:Exposure is in progress:Send StopAcquisition command.");
 			stopAcquisitionCommand = new StopAcquisitionCommand();
+			// the IDL Socket Server configuration is uncertain after an acquisition is stopped
+			ioi.getDetectorStateMirror().invalidate();
 			try
 			{
 				stopAcquisitionCommand.sendCommand();
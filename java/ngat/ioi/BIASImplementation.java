@@ -78,9 +78,11 @@ public class BIASImplementation extends EXPOSEImplementation implements JMSComma
 		FitsFilename fitsFilename = null;
 		List<File> fitsFileList = null;
 		DataProcessingThread dataProcessingThread = null;
+		DetectorStateMirror detectorStateMirror = null;
+		IOIConfig config = null;
 		String filename = null;
 		long acquireRampCommandCallTime;
-		int index,bFS,nReset,nRead,nGroup,nDrop,groupExecutionTime;
+		int index,bFS,nReset,nRead = 0,nGroup = 1,nDrop,groupExecutionTime;
 		boolean fitsFilenameRename;
 
 		ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
@@ -92,8 +94,10 @@ public class BIASImplementation extends EXPOSEImplementation implements JMSComma
 		status.setExposureNumber(0);
 		// retrieve the data processing thread
 		dataProcessingThread = ioi.getDataProcessingThread();
+		// retrieve the IDL Socket Server state mirror
+		detectorStateMirror = ioi.getDetectorStateMirror();
 		// if we are renaming the FITS images, increment the MULTRUN number
-		fitsFilenameRename = status.getPropertyBoolean("ioi.file.fits.rename");
+		fitsFilenameRename = status.getConfig().getFitsRename();
 		if(fitsFilenameRename)
 		{
 			fitsFilename = ioi.getFitsFilename();
@@ -119,27 +123,34 @@ public class BIASImplementation extends EXPOSEImplementation implements JMSComma
 			{
 				ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
 					":processCommand:Configuring Fowler sampling mode.");
-				nReset = status.getPropertyInteger("ioi.config.FOWLER.nreset");
-				nRead = status.getPropertyInteger("ioi.config.FOWLER.nread");
+				config = status.getConfig();
+				nReset = config.getFowlerNReset();
+				nRead = config.getFowlerNRead();
 				setFSParamCommand = new SetFSParamCommand();
 				// 1 group, 0.0 exposure length, 1 ramp
 				setFSParamCommand.setCommand(nReset,nRead,1,0.0,1);
-				setFSParamCommand.sendCommand();
-				if(setFSParamCommand.getReplyErrorCode() != 0)
+				if(detectorStateMirror.isFSParamCurrent(nReset,nRead,1,0.0,1) == false)
 				{
-					ioi.error(this.getClass().getName()+":processCommand:SetFSParam failed:"+
-						  setFSParamCommand.getReplyErrorCode()+":"+
-						  setFSParamCommand.getReplyErrorString());
-					biasDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+701);
-					biasDone.setErrorString("processCommand:SetFSParam failed:"+
-								setFSParamCommand.getReplyErrorCode()+":"+
-								setFSParamCommand.getReplyErrorString());
-					biasDone.setSuccessful(false);
-					return biasDone;
+					setFSParamCommand.sendCommand();
+					if(setFSParamCommand.getReplyErrorCode() != 0)
+					{
+						detectorStateMirror.invalidate();
+						ioi.error(this.getClass().getName()+":processCommand:SetFSParam failed:"+
+							  setFSParamCommand.getReplyErrorCode()+":"+
+							  setFSParamCommand.getReplyErrorString());
+						biasDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+701);
+						biasDone.setErrorString("processCommand:SetFSParam failed:"+
+									setFSParamCommand.getReplyErrorCode()+":"+
+									setFSParamCommand.getReplyErrorString());
+						biasDone.setSuccessful(false);
+						return biasDone;
+					}
+					detectorStateMirror.recordFSParam(nReset,nRead,1,0.0,1);
 				}
 			}
 			catch(Exception e)
 			{
+				detectorStateMirror.invalidate();
 				ioi.error(this.getClass().getName()+
 					  ":processCommand:SetFSParam failed:"+command,e);
 				biasDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+702);
@@ -154,32 +165,39 @@ public class BIASImplementation extends EXPOSEImplementation implements JMSComma
 			{
 				ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
 					":processCommand:Configuring read-up-the-ramp mode.");
-				nReset = status.getPropertyInteger("ioi.config.UP_THE_RAMP.nreset");
-				nRead = status.getPropertyInteger("ioi.config.UP_THE_RAMP.nread");
-				nDrop = status.getPropertyInteger("ioi.config.UP_THE_RAMP.ndrop");
-				groupExecutionTime = status.getPropertyInteger("ioi.config.UP_THE_RAMP.group_execution_time");
+				config = status.getConfig();
+				nReset = config.getUpTheRampNReset();
+				nRead = config.getUpTheRampNRead();
+				nDrop = config.getUpTheRampNDrop();
+				groupExecutionTime = config.getUpTheRampGroupExecutionTime();
 				setRampParamCommand = new SetRampParamCommand();
 				nGroup = 1;
 				// 1 group, 1 ramp
 				setRampParamCommand.setCommand(nReset,nRead,1,nDrop,1);
 				// or 1 read, 1 group, 0 drops, 1 ramp
 				//setRampParamCommand.setCommand(nReset,1,1,0,1);				
-				setRampParamCommand.sendCommand();
-				if(setRampParamCommand.getReplyErrorCode() != 0)
+				if(detectorStateMirror.isRampParamCurrent(nReset,nRead,1,nDrop,1) == false)
 				{
-					ioi.error(this.getClass().getName()+":processCommand:SetRampParam failed:"+
-						  setRampParamCommand.getReplyErrorCode()+":"+
-						  setRampParamCommand.getReplyErrorString());
-					biasDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+703);
-					biasDone.setErrorString("processCommand:SetRampParam failed:"+
-								setRampParamCommand.getReplyErrorCode()+":"+
-								setRampParamCommand.getReplyErrorString());
-					biasDone.setSuccessful(false);
-					return biasDone;
+					setRampParamCommand.sendCommand();
+					if(setRampParamCommand.getReplyErrorCode() != 0)
+					{
+						detectorStateMirror.invalidate();
+						ioi.error(this.getClass().getName()+":processCommand:SetRampParam failed:"+
+							  setRampParamCommand.getReplyErrorCode()+":"+
+							  setRampParamCommand.getReplyErrorString());
+						biasDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+703);
+						biasDone.setErrorString("processCommand:SetRampParam failed:"+
+									setRampParamCommand.getReplyErrorCode()+":"+
+									setRampParamCommand.getReplyErrorString());
+						biasDone.setSuccessful(false);
+						return biasDone;
+					}
+					detectorStateMirror.recordRampParam(nReset,nRead,1,nDrop,1);
 				}
 			}
 			catch(Exception e)
 			{
+				detectorStateMirror.invalidate();
 				ioi.error(this.getClass().getName()+
 					  ":processCommand:SetRampParam failed:"+command,e);
 				biasDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+704);
@@ -188,6 +206,20 @@ public class BIASImplementation extends EXPOSEImplementation implements JMSComma
 				return biasDone;
 			}
 		}
+		// read out the detector window selected by the last CONFIG, if any
+		try
+		{
+			ioi.applyDetectorWindow(status.getDetectorWindow());
+		}
+		catch(Exception e)
+		{
+			ioi.error(this.getClass().getName()+
+				  ":processCommand:Setting window failed:"+command,e);
+			biasDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+708);
+			biasDone.setErrorString("processCommand:Setting window failed:"+e);
+			biasDone.setSuccessful(false);
+			return biasDone;
+		}
 		// do bias
 		// get fits headers
 		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
@@ -197,7 +229,11 @@ public class BIASImplementation extends EXPOSEImplementation implements JMSComma
 		{
 			return biasDone;
 		}
-		if(getFitsHeadersFromISS(biasCommand,biasDone) == false)
+		// a BIAS is a single exposure, so keywords cached for the previous MULTRUN are stale
+		ioi.getFitsHeaderSourceCache().startMultrun();
+		// spans recorded from now on belong to the exposure's timeline
+		TraceContext.setCurrentExposure(0);
+		if(getFitsHeadersFromISSAndBSS(biasCommand,biasDone) == false)
 		{
 			return biasDone;
 		}
@@ -205,11 +241,8 @@ public class BIASImplementation extends EXPOSEImplementation implements JMSComma
 		{
 			return biasDone;
 		}
-		if(getFitsHeadersFromBSS(biasCommand,biasDone) == false)
-		{
-			return biasDone;
-		}
-		if(testAbort(biasCommand,biasDone) == true)
+		// don't acquire another ramp until the data processing backlog is within it's limits
+		if(waitForDataProcessingBacklog(biasCommand,biasDone) == false)
 		{
 			return biasDone;
 		}
@@ -225,6 +258,7 @@ public class BIASImplementation extends EXPOSEImplementation implements JMSComma
 			acquireRampCommand.sendCommand();
 			if(acquireRampCommand.getReplyErrorCode() != 0)
 			{
+				detectorStateMirror.invalidate();
 				ioi.error(this.getClass().getName()+":processCommand:AcquireRamp failed:"+
 					  acquireRampCommand.getReplyErrorCode()+":"+
 					  acquireRampCommand.getReplyErrorString());
@@ -238,6 +272,10 @@ public class BIASImplementation extends EXPOSEImplementation implements JMSComma
 		}
 		catch(Exception e)
 		{
+			detectorStateMirror.invalidate();
+			// AcquireRampCommand is cancelled when we are aborted, report the abort rather than a failure
+			if(testAbort(biasCommand,biasDone) == true)
+				return biasDone;
 			ioi.error(this.getClass().getName()+
 				  ":processCommand:AcquireRampCommand failed:"+command+":",e);
 			biasDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+706);
@@ -248,11 +286,12 @@ public class BIASImplementation extends EXPOSEImplementation implements JMSComma
 		// find the data just acquired
 		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			":processCommand:Adding exposure to the data processing list.");
+		setTraceFitsHeaders();
 		try
 		{
 			if(fitsFilenameRename)
 				fitsFilename.nextRunNumber();
-			dataProcessingThread.addDataForProcessing(bFS,acquireRampCommandCallTime,
+			dataProcessingThread.addDataForProcessing(bFS,nRead,nGroup,0,acquireRampCommandCallTime,
 								  ioiFitsHeader,fitsFilename);
 		}
 		catch(Exception e)
@@ -78,14 +78,21 @@ public class CONFIGImplementation extends SETUPImplementation implements JMSComm
 	 * This method implements the CONFIG command. 
 	 * <ul>
 	 * <li>It checks the message contains a suitable IRCamConfig object to configure the controller.
+	 * <li>It retrieves the detector window (if any) using getDetectorWindow.
+	 * <li>It sets the sampling mode, and calls applyDetectorWindow to put the array into window or full frame
+	 *     readout.
 	 * <li>If filter wheels are enabled, we call setFocusOffset to send a focus offset to the ISS.
 	 * <li>It increments the unique configuration ID.
+	 * <li>The configuration name and detector window are saved in the status object.
 	 * </ul>
 	 * An object of class CONFIG_DONE is returned. If an error occurs a suitable error message is returned.
 	 * @see ngat.phase2.IRCamConfig
 	 * @see IOI#getStatus
 	 * @see IOIStatus#setCurrentMode
 	 * @see FITSImplementation#setFocusOffset
+	 * @see #getDetectorWindow
+	 * @see IOI#applyDetectorWindow
+	 * @see IOIStatus#setDetectorWindow
 	 * @see ngat.message.ISS_INST.GET_STATUS_DONE#MODE_IDLE
 	 * @see ngat.message.ISS_INST.GET_STATUS_DONE#MODE_CONFIGURING
 	 */
@@ -97,7 +104,7 @@ public class CONFIGImplementation extends SETUPImplementation implements JMSComm
 		CONFIG_DONE configDone = null;
 		IOIStatus status = null;
 		SetFSModeCommand setFSModeCommand = null;
-		String fsModeString = null;
+		int window[] = null;
 		int fsMode;
 		int filterWheelPosition;
 		boolean filterWheelEnable;
@@ -146,44 +153,49 @@ public class CONFIGImplementation extends SETUPImplementation implements JMSComm
 			configDone.setSuccessful(false);
 			return configDone;
 		}
-		// Get config data
+	// get the detector window, if any
 		try
 		{
-			fsModeString = status.getProperty("ioi.config.fs_mode");
-			fsMode = SetFSModeCommand.parseMode(fsModeString);
+			window = getDetectorWindow(detector);
 		}
 		catch(Exception e)
 		{
-			ioi.error(this.getClass().getName()+":processCommand:"+
-				  command+":Getting configuration data from property file failed:",e);
-			configDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+802);
-			configDone.setErrorString("Getting configuration data from property file failed:"+
-						  e.toString());
+			ioi.error(this.getClass().getName()+":processCommand:"+command+":Illegal window:",e);
+			configDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+808);
+			configDone.setErrorString("Illegal window:"+e.toString());
 			configDone.setSuccessful(false);
 			return configDone;
 		}
+		// Get config data
+		fsMode = status.getConfig().getFSMode();
 		status.setCurrentMode(GET_STATUS_DONE.MODE_CONFIGURING);
 		try
 		{
 			// configure array readout mode (fowler sample mode/read up the ramp mode)
 			setFSModeCommand = new SetFSModeCommand();
 			setFSModeCommand.setCommand(fsMode);
-			setFSModeCommand.sendCommand();
-			if(setFSModeCommand.getReplyErrorCode() != 0)
+			if(ioi.getDetectorStateMirror().isFSModeCurrent(fsMode) == false)
 			{
-				ioi.error(this.getClass().getName()+":processCommand:"+command+":SetFSMode failed:"+
-					  setFSModeCommand.getReplyErrorCode()+":"+
-					  setFSModeCommand.getReplyErrorString());
-				status.setCurrentMode(GET_STATUS_DONE.MODE_IDLE);
-				configDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+804);
-				configDone.setErrorString("SetFSMode failed:"+setFSModeCommand.getReplyErrorCode()+":"+
-					  setFSModeCommand.getReplyErrorString());
-				configDone.setSuccessful(false);
-				return configDone;
+				setFSModeCommand.sendCommand();
+				if(setFSModeCommand.getReplyErrorCode() != 0)
+				{
+					ioi.getDetectorStateMirror().invalidate();
+					ioi.error(this.getClass().getName()+":processCommand:"+command+":SetFSMode failed:"+
+						  setFSModeCommand.getReplyErrorCode()+":"+
+						  setFSModeCommand.getReplyErrorString());
+					status.setCurrentMode(GET_STATUS_DONE.MODE_IDLE);
+					configDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+804);
+					configDone.setErrorString("SetFSMode failed:"+setFSModeCommand.getReplyErrorCode()+":"+
+						  setFSModeCommand.getReplyErrorString());
+					configDone.setSuccessful(false);
+					return configDone;
+				}
+				ioi.getDetectorStateMirror().recordFSMode(fsMode,true);
 			}
 		}
 		catch(Exception e)
 		{
+			ioi.getDetectorStateMirror().invalidate();
 			ioi.error(this.getClass().getName()+":processCommand:"+command+":SetFSMode failed:",e);
 			status.setCurrentMode(GET_STATUS_DONE.MODE_IDLE);
 			configDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+803);
@@ -191,6 +203,20 @@ public class CONFIGImplementation extends SETUPImplementation implements JMSComm
 			configDone.setSuccessful(false);
 			return configDone;
 		}
+	// put the array into window or full frame readout
+		try
+		{
+			ioi.applyDetectorWindow(window);
+		}
+		catch(Exception e)
+		{
+			ioi.error(this.getClass().getName()+":processCommand:"+command+":Setting window failed:",e);
+			status.setCurrentMode(GET_STATUS_DONE.MODE_IDLE);
+			configDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+809);
+			configDone.setErrorString("Setting window failed:"+e.toString());
+			configDone.setSuccessful(false);
+			return configDone;
+		}
 	// send focus offset 
 		try
 		{
@@ -225,6 +251,8 @@ public class CONFIGImplementation extends SETUPImplementation implements JMSComm
 	// Store name of configuration used in status object.
 	// This is queried when saving FITS headers to get the CONFNAME value.
 		status.setConfigName(config.getId());
+	// Store the window, so subsequent exposures are read out (and their FITS headers written) with it.
+		status.setDetectorWindow(window);
 		status.setCurrentMode(GET_STATUS_DONE.MODE_IDLE);
 	// setup return object.
 		configDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_NO_ERROR);
@@ -233,4 +261,53 @@ public class CONFIGImplementation extends SETUPImplementation implements JMSComm
 	// return done object.
 		return configDone;
 	}
+
+	/**
+	 * Get the detector window to read out from the detector's window flags.
+	 * <ul>
+	 * <li>If no windows are active, null is returned (full frame readout).
+	 * <li>Only the first window can be used, an exception is thrown if any other window is active.
+	 * <li>The first window's coordinates (one based, inclusive, as used by the phase2 Window) are checked
+	 *     to lie within the array, and converted to zero based detector pixels as used by SetWinParams.
+	 * </ul>
+	 * @param detector The detector configuration.
+	 * @return An array of 4 integers (xStart, xStop, yStart, yStop), or null for a full frame readout.
+	 * @exception IllegalArgumentException Thrown if more than one window is active, or the window is
+	 *            not within the array.
+	 * @see RampTimingModel#DETECTOR_SIZE
+	 */
+	protected int[] getDetectorWindow(Detector detector) throws IllegalArgumentException
+	{
+		Window window = null;
+		int windowFlags,xs,ys,xe,ye;
+
+		windowFlags = detector.getWindowFlags();
+		if(windowFlags == 0)
+		{
+			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				":getDetectorWindow:No windows active:Full frame readout.");
+			return null;
+		}
+		if(windowFlags != 1)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+
+					      ":getDetectorWindow:Only the first window is supported:window flags = "+
+							   windowFlags);
+		}
+		window = detector.getWindow(0);
+		xs = window.getXs();
+		ys = window.getYs();
+		xe = window.getXe();
+		ye = window.getYe();
+		if((xs < 1)||(xe > RampTimingModel.DETECTOR_SIZE)||(xe < xs)||
+		   (ys < 1)||(ye > RampTimingModel.DETECTOR_SIZE)||(ye < ys))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+
+							   ":getDetectorWindow:Window out of range:("+xs+","+ys+
+							   ") to ("+xe+","+ye+").");
+		}
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			":getDetectorWindow:Window ("+xs+","+ys+") to ("+xe+","+ye+").");
+		return new int[] {xs-1,xe-1,ys-1,ye-1};
+	}
 }
@@ -0,0 +1,147 @@
+// CalibrationKey.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+
+/**
+ * This class holds the ramp parameters that select a set of calibration products from the
+ * CalibrationLibrary: the sampling mode (bFS), the number of reads, the number of groups, and the
+ * exposure length. Instances are immutable, and suitable for use as a hash key.
+ * @see CalibrationLibrary
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class CalibrationKey
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * Whether the ramp was acquired in Fowler Sampling mode (1) or Read Up The Ramp mode (0).
+	 */
+	protected int bFS;
+	/**
+	 * The number of reads (per Fowler sample set, or per group).
+	 */
+	protected int nRead;
+	/**
+	 * The number of groups (1 in Fowler Sampling mode).
+	 */
+	protected int nGroup;
+	/**
+	 * The exposure length, in milliseconds.
+	 */
+	protected int exposureLength;
+
+	/**
+	 * Constructor.
+	 * @param bFS Whether the ramp was acquired in Fowler Sampling mode (1) or Read Up The Ramp mode (0).
+	 * @param nRead The number of reads.
+	 * @param nGroup The number of groups.
+	 * @param exposureLength The exposure length, in milliseconds.
+	 * @see #bFS
+	 * @see #nRead
+	 * @see #nGroup
+	 * @see #exposureLength
+	 */
+	public CalibrationKey(int bFS,int nRead,int nGroup,int exposureLength)
+	{
+		super();
+		this.bFS = bFS;
+		this.nRead = nRead;
+		this.nGroup = nGroup;
+		this.exposureLength = exposureLength;
+	}
+
+	/**
+	 * Get the sampling mode.
+	 * @return 1 for Fowler Sampling mode, 0 for Read Up The Ramp mode.
+	 * @see #bFS
+	 */
+	public int getBFS()
+	{
+		return bFS;
+	}
+
+	/**
+	 * Get the number of reads.
+	 * @return The number of reads.
+	 * @see #nRead
+	 */
+	public int getNRead()
+	{
+		return nRead;
+	}
+
+	/**
+	 * Get the number of groups.
+	 * @return The number of groups.
+	 * @see #nGroup
+	 */
+	public int getNGroup()
+	{
+		return nGroup;
+	}
+
+	/**
+	 * Get the exposure length.
+	 * @return The exposure length, in milliseconds.
+	 * @see #exposureLength
+	 */
+	public int getExposureLength()
+	{
+		return exposureLength;
+	}
+
+	/**
+	 * Get the string used in calibration product filenames to identify products specific to this key,
+	 * of the form &lt;FOWLER|UP_THE_RAMP&gt;_&lt;nRead&gt;_&lt;nGroup&gt;_&lt;exposureLength&gt;.
+	 * @return The filename suffix.
+	 */
+	public String getFilenameSuffix()
+	{
+		String modeString = null;
+
+		if(bFS == 1)
+			modeString = "FOWLER";
+		else
+			modeString = "UP_THE_RAMP";
+		return new String(modeString+"_"+nRead+"_"+nGroup+"_"+exposureLength);
+	}
+
+	/**
+	 * Determine whether another object is a CalibrationKey with the same ramp parameters.
+	 * @param o The object to compare.
+	 * @return true if o is an equal CalibrationKey.
+	 */
+	public boolean equals(Object o)
+	{
+		CalibrationKey key = null;
+
+		if((o instanceof CalibrationKey) == false)
+			return false;
+		key = (CalibrationKey)o;
+		return (key.bFS == bFS)&&(key.nRead == nRead)&&(key.nGroup == nGroup)&&
+			(key.exposureLength == exposureLength);
+	}
+
+	/**
+	 * Return a hash code consistent with equals.
+	 * @return The hash code.
+	 */
+	public int hashCode()
+	{
+		return (((((bFS*31)+nRead)*31)+nGroup)*31)+exposureLength;
+	}
+
+	/**
+	 * Return a string describing the key.
+	 */
+	public String toString()
+	{
+		return new String(this.getClass().getName()+":bFS:"+bFS+":nRead:"+nRead+":nGroup:"+nGroup+
+				  ":exposure length:"+exposureLength);
+	}
+}
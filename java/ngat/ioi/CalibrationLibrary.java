@@ -0,0 +1,567 @@
+// CalibrationLibrary.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * This class manages the calibration products (bad pixel masks, nonlinearity coefficients and darks)
+ * used by the data pipeline. Products are FITS images in a calibration directory, memory-mapped read-only
+ * (see CalibrationProduct). For each product type, a product specific to the ramp parameters
+ * (a CalibrationKey) is used if it exists, named &lt;type&gt;_&lt;key filename suffix&gt;.fits, e.g.
+ * dark_FOWLER_2_1_10000.fits. Otherwise the bad pixel mask and nonlinearity products fall back to a
+ * generic &lt;type&gt;.fits. Darks must always match the ramp parameters.
+ * <p>
+ * The products resolved for each key are held in a CalibrationSet, in a least recently used cache
+ * bounded by the total number of bytes mapped. Each time a set is retrieved from the cache it is checked
+ * against the calibration directory: if any of it's products has been modified or removed, or a product
+ * that would now be resolved differently has been added, the set is discarded and re-resolved. New
+ * calibrations can therefore be copied into the calibration directory whilst the IO:I is running.
+ * Products should be replaced by writing a new file and renaming it over the old one, so a file that is
+ * currently mapped is never modified in place.
+ * </p>
+ * @see CalibrationKey
+ * @see CalibrationProduct
+ * @see DataProcessingThread#calibrateFitsFiles
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class CalibrationLibrary
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The filename root of bad pixel mask products.
+	 */
+	public final static String BAD_PIXEL_MASK_NAME = "bad_pixel_mask";
+	/**
+	 * The filename root of nonlinearity coefficient products.
+	 */
+	public final static String NONLINEARITY_NAME = "nonlinearity";
+	/**
+	 * The filename root of dark products.
+	 */
+	public final static String DARK_NAME = "dark";
+	/**
+	 * The filename extension of calibration products.
+	 */
+	public final static String FILE_EXTENSION = ".fits";
+	/**
+	 * The directory containing the calibration products.
+	 */
+	protected File directory = null;
+	/**
+	 * Whether to use bad pixel mask products.
+	 */
+	protected boolean badPixelMaskEnable = true;
+	/**
+	 * Whether to use nonlinearity products.
+	 */
+	protected boolean nonlinearityEnable = true;
+	/**
+	 * Whether to use dark products.
+	 */
+	protected boolean darkEnable = false;
+	/**
+	 * The cache of calibration sets, in access order (least recently used first).
+	 */
+	protected LinkedHashMap<CalibrationKey,CalibrationSet> cache = null;
+	/**
+	 * The maximum number of bytes the cached sets may map. The most recently used set is always kept,
+	 * even if it is larger than this.
+	 */
+	protected long maxCacheByteCount = 512L*1024L*1024L;
+	/**
+	 * The number of bytes currently mapped by the cached sets.
+	 */
+	protected long cacheByteCount = 0;
+	/**
+	 * The number of times a valid set was found in the cache.
+	 */
+	protected int hitCount = 0;
+	/**
+	 * The number of times a set had to be resolved from the calibration directory.
+	 */
+	protected int missCount = 0;
+	/**
+	 * The number of times a cached set was discarded because the calibration directory had changed.
+	 */
+	protected int reloadCount = 0;
+
+	/**
+	 * Default constructor.
+	 * @see #cache
+	 */
+	public CalibrationLibrary()
+	{
+		super();
+		cache = new LinkedHashMap<CalibrationKey,CalibrationSet>(16,0.75f,true);
+	}
+
+	/**
+	 * Set the calibration directory. If it has changed, the cache is cleared.
+	 * @param d The directory.
+	 * @see #directory
+	 * @see #clear
+	 */
+	public synchronized void setDirectory(File d)
+	{
+		if(d.equals(directory) == false)
+		{
+			directory = d;
+			clear();
+		}
+	}
+
+	/**
+	 * Get the calibration directory.
+	 * @return The directory.
+	 * @see #directory
+	 */
+	public synchronized File getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * Set which types of calibration product are used. If these have changed, the cache is cleared.
+	 * @param badPixelMask Whether to use bad pixel masks.
+	 * @param nonlinearity Whether to use nonlinearity coefficients.
+	 * @param dark Whether to use darks.
+	 * @see #badPixelMaskEnable
+	 * @see #nonlinearityEnable
+	 * @see #darkEnable
+	 * @see #clear
+	 */
+	public synchronized void setProductEnable(boolean badPixelMask,boolean nonlinearity,boolean dark)
+	{
+		if((badPixelMask != badPixelMaskEnable)||(nonlinearity != nonlinearityEnable)||(dark != darkEnable))
+		{
+			badPixelMaskEnable = badPixelMask;
+			nonlinearityEnable = nonlinearity;
+			darkEnable = dark;
+			clear();
+		}
+	}
+
+	/**
+	 * Set the maximum number of bytes the cached sets may map.
+	 * @param l The number of bytes.
+	 * @see #maxCacheByteCount
+	 * @see #trimCache
+	 */
+	public synchronized void setMaxCacheByteCount(long l)
+	{
+		maxCacheByteCount = l;
+		trimCache();
+	}
+
+	/**
+	 * Remove all sets from the cache. The mappings are released when the products are garbage collected.
+	 * @see #cache
+	 * @see #cacheByteCount
+	 */
+	public synchronized void clear()
+	{
+		cache.clear();
+		cacheByteCount = 0;
+	}
+
+	/**
+	 * Get the calibration set for the specified ramp parameters.
+	 * <ul>
+	 * <li>If the cache contains a set for the key, and it is not stale, it is returned.
+	 * <li>If the cached set is stale, it is removed from the cache.
+	 * <li>A new set is resolved from the calibration directory, added to the cache, and
+	 *     the cache is trimmed back to maxCacheByteCount.
+	 * </ul>
+	 * @param key The ramp parameters.
+	 * @return The calibration set. This may contain no products, if none match the key.
+	 * @exception Exception Thrown if the directory is not set, or a product cannot be mapped.
+	 * @see #cache
+	 * @see CalibrationSet#isStale
+	 * @see #trimCache
+	 */
+	public synchronized CalibrationSet getCalibrationSet(CalibrationKey key) throws Exception
+	{
+		CalibrationSet set = null;
+
+		if(directory == null)
+		{
+			throw new Exception(this.getClass().getName()+":getCalibrationSet:Directory not set.");
+		}
+		set = cache.get(key);
+		if(set != null)
+		{
+			if(set.isStale() == false)
+			{
+				hitCount++;
+				return set;
+			}
+			cache.remove(key);
+			cacheByteCount -= set.getByteCount();
+			reloadCount++;
+		}
+		missCount++;
+		set = new CalibrationSet(key);
+		cache.put(key,set);
+		cacheByteCount += set.getByteCount();
+		trimCache();
+		return set;
+	}
+
+	/**
+	 * Remove the least recently used sets from the cache until the number of bytes mapped is no more
+	 * than maxCacheByteCount, or only one set remains.
+	 * @see #cache
+	 * @see #cacheByteCount
+	 * @see #maxCacheByteCount
+	 */
+	protected void trimCache()
+	{
+		Iterator<CalibrationSet> iterator = null;
+
+		iterator = cache.values().iterator();
+		while((cacheByteCount > maxCacheByteCount)&&(cache.size() > 1))
+		{
+			cacheByteCount -= iterator.next().getByteCount();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Find the product file of the specified type to use for the specified key.
+	 * @param name The product type filename root, e.g. BAD_PIXEL_MASK_NAME.
+	 * @param key The ramp parameters.
+	 * @param allowGeneric Whether to fall back to the generic product if there is no key specific one.
+	 * @return The file, or null if there is no suitable product.
+	 * @see #directory
+	 */
+	protected File findProductFile(String name,CalibrationKey key,boolean allowGeneric)
+	{
+		File file = null;
+
+		file = new File(directory,name+"_"+key.getFilenameSuffix()+FILE_EXTENSION);
+		if(file.exists())
+			return file;
+		if(allowGeneric)
+		{
+			file = new File(directory,name+FILE_EXTENSION);
+			if(file.exists())
+				return file;
+		}
+		return null;
+	}
+
+	/**
+	 * Get the number of sets in the cache.
+	 * @return The number of sets.
+	 * @see #cache
+	 */
+	public synchronized int getCacheSize()
+	{
+		return cache.size();
+	}
+
+	/**
+	 * Get the number of bytes mapped by the cached sets.
+	 * @return The number of bytes.
+	 * @see #cacheByteCount
+	 */
+	public synchronized long getCacheByteCount()
+	{
+		return cacheByteCount;
+	}
+
+	/**
+	 * Get the number of cache hits.
+	 * @return The number of hits.
+	 * @see #hitCount
+	 */
+	public synchronized int getHitCount()
+	{
+		return hitCount;
+	}
+
+	/**
+	 * Get the number of cache misses (including reloads).
+	 * @return The number of misses.
+	 * @see #missCount
+	 */
+	public synchronized int getMissCount()
+	{
+		return missCount;
+	}
+
+	/**
+	 * Get the number of times a cached set was reloaded because it's products had changed.
+	 * @return The number of reloads.
+	 * @see #reloadCount
+	 */
+	public synchronized int getReloadCount()
+	{
+		return reloadCount;
+	}
+
+	/**
+	 * The set of calibration products to apply to ramps acquired with one set of ramp parameters.
+	 */
+	public class CalibrationSet
+	{
+		/**
+		 * The ramp parameters this set was resolved for.
+		 */
+		protected CalibrationKey key = null;
+		/**
+		 * The bad pixel mask, or null. Non-zero pixels are bad.
+		 */
+		protected CalibrationProduct badPixelMask = null;
+		/**
+		 * The nonlinearity coefficients, or null. Plane k holds coefficient c(k) of
+		 * corrected = c(0)*s + c(1)*s^2 + c(2)*s^3 ..., where s is the signal relative to the first read.
+		 */
+		protected CalibrationProduct nonlinearity = null;
+		/**
+		 * The dark, or null. Plane n holds the dark signal (relative to the first read) of read n.
+		 */
+		protected CalibrationProduct dark = null;
+
+		/**
+		 * Constructor. Resolves and maps the enabled products for the key.
+		 * @param key The ramp parameters.
+		 * @exception Exception Thrown if a product cannot be mapped.
+		 * @see #mapProduct
+		 */
+		public CalibrationSet(CalibrationKey key) throws Exception
+		{
+			super();
+			this.key = key;
+			if(badPixelMaskEnable)
+				badPixelMask = mapProduct(findProductFile(BAD_PIXEL_MASK_NAME,key,true));
+			if(nonlinearityEnable)
+				nonlinearity = mapProduct(findProductFile(NONLINEARITY_NAME,key,true));
+			if(darkEnable)
+				dark = mapProduct(findProductFile(DARK_NAME,key,false));
+		}
+
+		/**
+		 * Map the specified product file.
+		 * @param file The file, or null.
+		 * @return The mapped product, or null if file was null.
+		 * @exception Exception Thrown if the product cannot be mapped.
+		 */
+		protected CalibrationProduct mapProduct(File file) throws Exception
+		{
+			CalibrationProduct product = null;
+
+			if(file == null)
+				return null;
+			product = new CalibrationProduct();
+			product.load(file);
+			return product;
+		}
+
+		/**
+		 * Determine whether this set no longer reflects the calibration directory.
+		 * @return true if one of the products has been modified or removed, or if resolving
+		 *         any enabled product type now gives a different file.
+		 * @see #isStale(CalibrationProduct,String,boolean,boolean)
+		 */
+		public boolean isStale()
+		{
+			return isStale(badPixelMask,BAD_PIXEL_MASK_NAME,true,badPixelMaskEnable)||
+				isStale(nonlinearity,NONLINEARITY_NAME,true,nonlinearityEnable)||
+				isStale(dark,DARK_NAME,false,darkEnable);
+		}
+
+		/**
+		 * Determine whether one product of this set no longer reflects the calibration directory.
+		 * @param product The product currently in the set, or null.
+		 * @param name The product type filename root.
+		 * @param allowGeneric Whether the product type falls back to a generic product.
+		 * @param enable Whether the product type is enabled.
+		 * @return true if the product is stale.
+		 * @see #findProductFile
+		 */
+		protected boolean isStale(CalibrationProduct product,String name,boolean allowGeneric,boolean enable)
+		{
+			File file = null;
+
+			if(enable == false)
+				return false;
+			file = findProductFile(name,key,allowGeneric);
+			if(product == null)
+				return (file != null);
+			return (product.getFile().equals(file) == false)||product.isModified();
+		}
+
+		/**
+		 * Get the number of bytes mapped by this set.
+		 * @return The number of bytes.
+		 */
+		public long getByteCount()
+		{
+			long byteCount = 0;
+
+			if(badPixelMask != null)
+				byteCount += badPixelMask.getMappedByteCount();
+			if(nonlinearity != null)
+				byteCount += nonlinearity.getMappedByteCount();
+			if(dark != null)
+				byteCount += dark.getMappedByteCount();
+			return byteCount;
+		}
+
+		/**
+		 * Get whether this set contains any products.
+		 * @return true if there is at least one product.
+		 */
+		public boolean isEmpty()
+		{
+			return (badPixelMask == null)&&(nonlinearity == null)&&(dark == null);
+		}
+
+		/**
+		 * Get the bad pixel mask.
+		 * @return The product, or null.
+		 * @see #badPixelMask
+		 */
+		public CalibrationProduct getBadPixelMask()
+		{
+			return badPixelMask;
+		}
+
+		/**
+		 * Get the nonlinearity coefficients.
+		 * @return The product, or null.
+		 * @see #nonlinearity
+		 */
+		public CalibrationProduct getNonlinearity()
+		{
+			return nonlinearity;
+		}
+
+		/**
+		 * Get the dark.
+		 * @return The product, or null.
+		 * @see #dark
+		 */
+		public CalibrationProduct getDark()
+		{
+			return dark;
+		}
+
+		/**
+		 * Calibrate a read in place.
+		 * <ul>
+		 * <li>Pixels that are non-zero in the bad pixel mask are set to the BLANK value for the image's
+		 *     BITPIX, and a BLANK keyword is added to the header.
+		 * <li>For the remaining pixels, the signal s is the read's physical value less the first read's.
+		 * <li>If there is a nonlinearity product, s is replaced by the nonlinearity polynomial of s.
+		 * <li>If there is a dark, the dark plane for the read index is subtracted from s.
+		 * <li>The pixel is set to the first read value plus s (rounded to the nearest stored integer).
+		 * </ul>
+		 * The first read itself should be calibrated last (with firstRead null), as the other
+		 * reads are calibrated relative to it's uncalibrated values.
+		 * @param read The read to calibrate.
+		 * @param firstRead The first read of the ramp, or null if read is the first read.
+		 * @param readIndex The index of the read in the ramp, used to select the dark plane.
+		 * @exception Exception Thrown if a product's dimensions do not match the read.
+		 * @see #checkDimensions
+		 */
+		public void apply(FitsImageData read,FitsImageData firstRead,int readIndex) throws Exception
+		{
+			int data[] = null;
+			int firstData[] = null;
+			double value,base,signal,corrected,scale,zero,firstScale,firstZero;
+			int pixelCount,blank,coefficientCount;
+
+			checkDimensions(badPixelMask,read,1);
+			checkDimensions(nonlinearity,read,1);
+			checkDimensions(dark,read,readIndex+1);
+			data = read.getData();
+			scale = read.getBScale();
+			zero = read.getBZero();
+			firstScale = 1.0;
+			firstZero = 0.0;
+			if(firstRead != null)
+			{
+				firstData = firstRead.getData();
+				firstScale = firstRead.getBScale();
+				firstZero = firstRead.getBZero();
+			}
+			if(read.getBitpix() == 16)
+				blank = Short.MIN_VALUE;
+			else if(read.getBitpix() == 32)
+				blank = Integer.MIN_VALUE;
+			else
+				blank = 0;
+			if(badPixelMask != null)
+				read.setHeaderCard("BLANK",new Integer(blank),"Bad pixel value");
+			coefficientCount = 0;
+			if(nonlinearity != null)
+				coefficientCount = nonlinearity.getNAxis3();
+			pixelCount = read.getNAxis1()*read.getNAxis2();
+			for(int i = 0; i < pixelCount; i++)
+			{
+				if((badPixelMask != null)&&(badPixelMask.getValue(0,i) != 0.0))
+				{
+					data[i] = blank;
+					continue;
+				}
+				if((nonlinearity == null)&&(dark == null))
+					continue;
+				value = (data[i]*scale)+zero;
+				if(firstData != null)
+					base = (firstData[i]*firstScale)+firstZero;
+				else
+					base = value;
+				signal = value-base;
+				if(nonlinearity != null)
+				{
+					corrected = nonlinearity.getValue(coefficientCount-1,i);
+					for(int k = coefficientCount-2; k >= 0; k--)
+						corrected = (corrected*signal)+nonlinearity.getValue(k,i);
+					signal = corrected*signal;
+				}
+				if(dark != null)
+					signal -= dark.getValue(readIndex,i);
+				data[i] = (int)Math.floor((((base+signal)-zero)/scale)+0.5);
+			}
+		}
+
+		/**
+		 * Check a product's dimensions match a read.
+		 * @param product The product, or null (in which case nothing is checked).
+		 * @param read The read.
+		 * @param minPlaneCount The minimum number of planes the product must have.
+		 * @exception Exception Thrown if the dimensions do not match.
+		 */
+		protected void checkDimensions(CalibrationProduct product,FitsImageData read,int minPlaneCount)
+			throws Exception
+		{
+			if(product == null)
+				return;
+			if((product.getNAxis1() != read.getNAxis1())||(product.getNAxis2() != read.getNAxis2())||
+			   (product.getNAxis3() < minPlaneCount))
+			{
+				throw new Exception(this.getClass().getName()+":checkDimensions:"+product+
+						    " does not match "+read.getFile()+":"+read.getNAxis1()+"x"+
+						    read.getNAxis2()+" with at least "+minPlaneCount+" planes.");
+			}
+		}
+
+		/**
+		 * Return a string describing the set.
+		 */
+		public String toString()
+		{
+			return new String(this.getClass().getName()+":"+key+":bad pixel mask:"+badPixelMask+
+					  ":nonlinearity:"+nonlinearity+":dark:"+dark);
+		}
+	}
+}
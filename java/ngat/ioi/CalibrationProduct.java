@@ -0,0 +1,196 @@
+// CalibrationProduct.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * This class represents a calibration product (bad pixel mask, nonlinearity coefficients or dark) held
+ * in a FITS image in the calibration directory. Unlike it's superclass, the data unit is not read into
+ * memory: it is memory-mapped read-only, and pixel values are read from the mapping on demand. This
+ * means the product costs no heap, and pages are only read from disk (and shared with any other process
+ * mapping the same file) when they are used.
+ * Two dimensional images and three dimensional cubes (one plane per coefficient or read) are supported,
+ * with any standard BITPIX. BZERO and BSCALE are applied by getValue.
+ * The file's modification time when it was mapped is retained, so the CalibrationLibrary can detect
+ * when a product has been replaced.
+ * @see CalibrationLibrary
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class CalibrationProduct extends FitsImageData
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The value of the NAXIS3 keyword (the number of planes), or 1 for a two dimensional image.
+	 */
+	protected int naxis3 = 1;
+	/**
+	 * The read-only mapping of the data unit.
+	 */
+	protected MappedByteBuffer mappedBuffer = null;
+	/**
+	 * The number of bytes mapped.
+	 */
+	protected long mappedByteCount = 0;
+	/**
+	 * The modification time of the file when it was mapped.
+	 */
+	protected long lastModified = 0;
+
+	/**
+	 * Default constructor.
+	 */
+	public CalibrationProduct()
+	{
+		super();
+	}
+
+	/**
+	 * Read the header of the specified file, and memory-map it's data unit read-only.
+	 * The file is closed once mapped, the mapping remains valid until this instance is garbage collected.
+	 * @param f The file to map.
+	 * @exception Exception Thrown if the file cannot be read, or is not a supported FITS image.
+	 * @see #readHeaderCards
+	 * @see #mappedBuffer
+	 * @see #lastModified
+	 */
+	public void load(File f) throws Exception
+	{
+		RandomAccessFile randomAccessFile = null;
+		long dataOffset;
+		int naxis;
+
+		lastModified = f.lastModified();
+		randomAccessFile = new RandomAccessFile(f,"r");
+		try
+		{
+			dataOffset = readHeaderCards(f,randomAccessFile);
+			bitpix = getHeaderInteger("BITPIX",0);
+			naxis = getHeaderInteger("NAXIS",0);
+			naxis1 = getHeaderInteger("NAXIS1",0);
+			naxis2 = getHeaderInteger("NAXIS2",0);
+			naxis3 = getHeaderInteger("NAXIS3",1);
+			bzero = getHeaderDouble("BZERO",0.0);
+			bscale = getHeaderDouble("BSCALE",1.0);
+			if((naxis != 2)&&(naxis != 3))
+			{
+				throw new Exception(this.getClass().getName()+":load:"+f+
+						    ":Unsupported NAXIS:"+naxis);
+			}
+			if((bitpix != 8)&&(bitpix != 16)&&(bitpix != 32)&&(bitpix != -32)&&(bitpix != -64))
+			{
+				throw new Exception(this.getClass().getName()+":load:"+f+
+						    ":Unsupported BITPIX:"+bitpix);
+			}
+			if((naxis1 < 1)||(naxis2 < 1)||(naxis3 < 1))
+			{
+				throw new Exception(this.getClass().getName()+":load:"+f+
+						    ":Illegal image dimensions:"+naxis1+"x"+naxis2+"x"+naxis3);
+			}
+			mappedByteCount = ((long)naxis1)*naxis2*naxis3*getBytePix();
+			if((dataOffset+mappedByteCount) > randomAccessFile.length())
+			{
+				throw new Exception(this.getClass().getName()+":load:"+f+
+						    ":File too short for data unit:"+randomAccessFile.length()+
+						    " < "+(dataOffset+mappedByteCount));
+			}
+			// FITS data is always big endian, which is the MappedByteBuffer default
+			mappedBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY,dataOffset,
+									 mappedByteCount);
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Calibration products are read-only.
+	 * @param f Not used.
+	 * @exception Exception Always thrown.
+	 */
+	public void save(File f) throws Exception
+	{
+		throw new Exception(this.getClass().getName()+":save:"+file+":Calibration products are read-only.");
+	}
+
+	/**
+	 * Get the number of planes in the product.
+	 * @return NAXIS3, or 1 for a two dimensional image.
+	 * @see #naxis3
+	 */
+	public int getNAxis3()
+	{
+		return naxis3;
+	}
+
+	/**
+	 * Get the number of bytes mapped.
+	 * @return The number of bytes.
+	 * @see #mappedByteCount
+	 */
+	public long getMappedByteCount()
+	{
+		return mappedByteCount;
+	}
+
+	/**
+	 * Determine whether the file has been modified or removed since it was mapped.
+	 * @return true if the file no longer exists, or it's modification time has changed.
+	 * @see #lastModified
+	 */
+	public boolean isModified()
+	{
+		return (file.exists() == false)||(file.lastModified() != lastModified);
+	}
+
+	/**
+	 * Get the physical value of a pixel. This uses absolute gets on the mapping, so may be called from
+	 * several threads at once.
+	 * @param plane The plane (0 based) to read from.
+	 * @param index The pixel index within the plane (x+(y*naxis1)).
+	 * @return The pixel value, with BZERO and BSCALE applied.
+	 * @see #mappedBuffer
+	 */
+	public double getValue(int plane,int index)
+	{
+		int pixelIndex = (plane*naxis1*naxis2)+index;
+		double value;
+
+		switch(bitpix)
+		{
+			case 8:
+				value = ((int)mappedBuffer.get(pixelIndex))&0xff;
+				break;
+			case 16:
+				value = mappedBuffer.getShort(pixelIndex*2);
+				break;
+			case 32:
+				value = mappedBuffer.getInt(pixelIndex*4);
+				break;
+			case -32:
+				value = mappedBuffer.getFloat(pixelIndex*4);
+				break;
+			default: // -64
+				value = mappedBuffer.getDouble(pixelIndex*8);
+				break;
+		}
+		return (value*bscale)+bzero;
+	}
+
+	/**
+	 * Return a string describing the product.
+	 */
+	public String toString()
+	{
+		return new String(this.getClass().getName()+":"+file+":"+naxis1+"x"+naxis2+"x"+naxis3+
+				  ":BITPIX:"+bitpix);
+	}
+}
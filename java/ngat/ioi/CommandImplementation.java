@@ -78,6 +78,19 @@ public class CommandImplementation implements JMSCommandImplementation
 		return acknowledge;
 	}
 
+	/**
+	 * Return how far controller startup must have got before this command can be run.
+	 * The generic implementation needs nothing from the controller, so can be run at any time.
+	 * Sub-classes that use the detector or temperature controller should over-ride this.
+	 * @return The startup requirement, here ControllerStartup.REQUIRE_NONE.
+	 * @see ControllerStartup#REQUIRE_NONE
+	 * @see ControllerStartup#isReady
+	 */
+	public int getStartupRequirement()
+	{
+		return ControllerStartup.REQUIRE_NONE;
+	}
+
 	/**
 	 * This routine performs the generic command implementation.
 	 * @param command The command to be implemented.
@@ -0,0 +1,98 @@
+// ConfigurationDifference.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.util.*;
+
+/**
+ * This class holds the list of property keys that differ between two loaded IO:I configurations.
+ * It is used by a differential REDATUM level reboot, to decide which parts of the controller need
+ * re-configuring after the property files have been reloaded. A key is counted as different if it
+ * has been added, removed, or it's (trimmed) value has changed.
+ * @see REBOOTImplementation
+ * @see IOI#redatumController
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class ConfigurationDifference
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The sorted list of property keys that differ between the two configurations.
+	 */
+	protected List<String> changedKeyList = null;
+
+	/**
+	 * Constructor. Compares the two sets of properties, and fills in changedKeyList.
+	 * @param oldProperties The properties before the reload.
+	 * @param newProperties The properties after the reload.
+	 * @see #changedKeyList
+	 */
+	public ConfigurationDifference(Properties oldProperties,Properties newProperties)
+	{
+		Set<String> keySet = new TreeSet<String>();
+		String oldValue = null;
+		String newValue = null;
+
+		keySet.addAll(oldProperties.stringPropertyNames());
+		keySet.addAll(newProperties.stringPropertyNames());
+		changedKeyList = new Vector<String>();
+		for(String key : keySet)
+		{
+			oldValue = oldProperties.getProperty(key);
+			newValue = newProperties.getProperty(key);
+			if((oldValue == null)||(newValue == null)||(oldValue.trim().equals(newValue.trim()) == false))
+				changedKeyList.add(key);
+		}
+	}
+
+	/**
+	 * Return whether any property key starting with the specified prefix has changed.
+	 * @param keyPrefix The key prefix, e.g. "ioi.idl.set_gain.". A complete key can also be used.
+	 * @return true if at least one changed key starts with keyPrefix.
+	 * @see #changedKeyList
+	 */
+	public boolean hasChanged(String keyPrefix)
+	{
+		for(int i = 0; i < changedKeyList.size(); i++)
+		{
+			if(changedKeyList.get(i).startsWith(keyPrefix))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Return whether no property has changed.
+	 * @return true if the configurations are identical.
+	 * @see #changedKeyList
+	 */
+	public boolean isEmpty()
+	{
+		return (changedKeyList.size() == 0);
+	}
+
+	/**
+	 * Get the list of changed keys.
+	 * @return An unmodifiable, sorted list of the changed property keys.
+	 * @see #changedKeyList
+	 */
+	public List<String> getChangedKeyList()
+	{
+		return Collections.unmodifiableList(changedKeyList);
+	}
+
+	/**
+	 * Return a string representation of the difference, listing the changed keys.
+	 * @return A string.
+	 * @see #changedKeyList
+	 */
+	public String toString()
+	{
+		return new String(this.getClass().getName()+":"+changedKeyList.size()+" changed:"+changedKeyList);
+	}
+}
@@ -0,0 +1,595 @@
+// ControllerStartup.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import ngat.util.logging.*;
+
+/**
+ * This class starts up the controller, as a small graph of dependant phases:
+ * <pre>
+ * IDL.Connect -&gt; Sidecar.Initialize -&gt; Detector.Configure --+
+ *                                                           +--&gt; Protection.Start
+ * TemperatureController.Configure --------------------------+
+ * </pre>
+ * The IDL socket server branch and the temperature controller branch do not depend on each other,
+ * and are run concurrently. The sidecar temperature protection thread needs both, and is started once
+ * they have completed. Each phase has it's own timeout ("ioi.startup.timeout.&lt;phase&gt;"), so a
+ * hung phase is reported as TIMED_OUT rather than stalling startup for ever.
+ * The state of each phase, and the overall startup state, are kept in this object so they can be
+ * reported by GET_STATUS, and used by IOITCPServerConnectionThread to decide whether a command
+ * can be run yet: commands that only need the file system can run at any time, commands that
+ * need the temperature controller can run once it is configured, and commands that use the detector
+ * must wait for startup to complete.
+ * @see IOI#startupController
+ * @see CommandImplementation#getStartupRequirement
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class ControllerStartup implements Runnable
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * Phase index: opening the telnet connection to the IDL socket server.
+	 */
+	public final static int PHASE_IDL_CONNECT = 0;
+	/**
+	 * Phase index: initialising the Sidecar ASIC.
+	 */
+	public final static int PHASE_SIDECAR_INITIALIZE = 1;
+	/**
+	 * Phase index: sending SetDetector and SetGain.
+	 */
+	public final static int PHASE_DETECTOR_CONFIGURE = 2;
+	/**
+	 * Phase index: opening and configuring the temperature controller.
+	 */
+	public final static int PHASE_TEMPERATURE_CONTROLLER_CONFIGURE = 3;
+	/**
+	 * Phase index: starting the sidecar temperature protection thread.
+	 */
+	public final static int PHASE_PROTECTION_START = 4;
+	/**
+	 * The number of phases.
+	 */
+	public final static int PHASE_COUNT = 5;
+	/**
+	 * The name of each phase, used in logging and GET_STATUS keywords.
+	 */
+	public final static String PHASE_NAME_LIST[] = {"IDL.Connect","Sidecar.Initialize","Detector.Configure",
+							"TemperatureController.Configure","Protection.Start"};
+	/**
+	 * The property key suffix of each phase timeout ("ioi.startup.timeout.&lt;suffix&gt;").
+	 */
+	public final static String PHASE_PROPERTY_LIST[] = {"idl_connect","sidecar_initialize","detector_configure",
+							    "temperature_controller_configure","protection_start"};
+	/**
+	 * State: the phase (or startup) has not been started.
+	 */
+	public final static int STATE_NOT_STARTED = 0;
+	/**
+	 * State: the phase (or startup) is in progress.
+	 */
+	public final static int STATE_IN_PROGRESS = 1;
+	/**
+	 * State: the phase (or startup) completed successfully.
+	 */
+	public final static int STATE_DONE = 2;
+	/**
+	 * State: the phase (or startup) failed.
+	 */
+	public final static int STATE_FAILED = 3;
+	/**
+	 * State: the phase did not complete within it's timeout.
+	 */
+	public final static int STATE_TIMED_OUT = 4;
+	/**
+	 * State: the phase was not run, because a phase it depends on did not complete.
+	 */
+	public final static int STATE_SKIPPED = 5;
+	/**
+	 * Names of the states, indexed by state.
+	 */
+	public final static String STATE_NAME_LIST[] = {"NOT_STARTED","IN_PROGRESS","DONE","FAILED","TIMED_OUT",
+							"SKIPPED"};
+	/**
+	 * Startup requirement: the command only needs the file system, and can be run at any time.
+	 */
+	public final static int REQUIRE_NONE = 0;
+	/**
+	 * Startup requirement: the command needs the temperature controller to be configured.
+	 */
+	public final static int REQUIRE_TEMPERATURE_CONTROLLER = 1;
+	/**
+	 * Startup requirement: the command uses the detector, and needs startup to have completed
+	 * (including the sidecar temperature protection thread).
+	 */
+	public final static int REQUIRE_DETECTOR = 2;
+	/**
+	 * The default timeout of a phase, in milliseconds, used if the timeout property is missing.
+	 */
+	public final static long DEFAULT_PHASE_TIMEOUT = 120000;
+	/**
+	 * The IOI object.
+	 */
+	protected IOI ioi = null;
+	/**
+	 * The overall startup state.
+	 * @see #STATE_NOT_STARTED
+	 * @see #STATE_IN_PROGRESS
+	 * @see #STATE_DONE
+	 * @see #STATE_FAILED
+	 */
+	protected int state = STATE_NOT_STARTED;
+	/**
+	 * The state of each phase.
+	 */
+	protected int phaseState[] = new int[PHASE_COUNT];
+	/**
+	 * The timeout of each phase, in milliseconds.
+	 */
+	protected long phaseTimeout[] = new long[PHASE_COUNT];
+	/**
+	 * The time each phase took (or has taken so far), in milliseconds.
+	 */
+	protected long phaseDuration[] = new long[PHASE_COUNT];
+	/**
+	 * The timestamp each phase was started at.
+	 */
+	protected long phaseStartTime[] = new long[PHASE_COUNT];
+	/**
+	 * When the last startup began.
+	 */
+	protected long startTime = 0;
+	/**
+	 * How long the last (completed) startup took, in milliseconds.
+	 */
+	protected long duration = 0;
+	/**
+	 * The first exception thrown by a phase in the last startup, or null.
+	 */
+	protected Exception failure = null;
+
+	/**
+	 * Default constructor.
+	 */
+	public ControllerStartup()
+	{
+		super();
+	}
+
+	/**
+	 * Set the IOI object.
+	 * @param o The IOI object.
+	 * @see #ioi
+	 */
+	public void setIOI(IOI o)
+	{
+		ioi = o;
+	}
+
+	/**
+	 * Run method, used when starting up in the background. Calls execute, and logs any failure
+	 * (the failure is also available from getFailure and GET_STATUS).
+	 * @see #execute
+	 */
+	public void run()
+	{
+		try
+		{
+			execute();
+		}
+		catch(Exception e)
+		{
+			ioi.error(this.getClass().getName()+":run:Controller startup failed:",e);
+		}
+	}
+
+	/**
+	 * Start up the controller.
+	 * <ul>
+	 * <li>If a startup is already in progress, an exception is thrown.
+	 * <li>The phase timeouts are retrieved from the "ioi.startup.timeout.&lt;phase&gt;" properties, and all the
+	 *     phase states are reset.
+	 * <li>The IDL branch (IDL.Connect, Sidecar.Initialize, Detector.Configure) and
+	 *     the temperature controller branch (TemperatureController.Configure) are submitted to the
+	 *     shared blocking I/O thread pool.
+	 * <li>We wait for both branches to finish. If either failed, the protection thread phase is skipped,
+	 *     the startup state is set to FAILED and the first failure is thrown.
+	 * <li>Otherwise the Protection.Start phase is run, the IDL link supervisor is started,
+	 *     and the startup state set to DONE.
+	 * </ul>
+	 * @exception Exception Thrown if a startup is already running, or a phase fails or times out.
+	 * @see #getPhaseTimeouts
+	 * @see #runIDLBranch
+	 * @see #runPhase
+	 * @see IOI#configureTemperatureController
+	 * @see IOI#startSidecarTemperatureProteectionThread
+	 * @see IOI#startIDLLinkSupervisor
+	 * @see IOIExecutors#getBlockingExecutor
+	 */
+	public void execute() throws Exception
+	{
+		final ExecutorService executorService;
+		Future<Object> idlFuture = null;
+		Future<Object> temperatureFuture = null;
+
+		synchronized(this)
+		{
+			if(state == STATE_IN_PROGRESS)
+			{
+				throw new Exception(this.getClass().getName()+
+						    ":execute:Controller startup is already in progress.");
+			}
+			state = STATE_IN_PROGRESS;
+			for(int i = 0; i < PHASE_COUNT; i++)
+			{
+				phaseState[i] = STATE_NOT_STARTED;
+				phaseDuration[i] = 0;
+			}
+			failure = null;
+			startTime = System.currentTimeMillis();
+			duration = 0;
+		}
+		ioi.log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+":execute:Starting controller.");
+		// the blocking pool is unbounded, so the branches can wait for their phases without deadlocking
+		executorService = ioi.getExecutors().getBlockingExecutor();
+		try
+		{
+			getPhaseTimeouts();
+			idlFuture = executorService.submit(new Callable<Object>()
+			{
+				public Object call() throws Exception
+				{
+					runIDLBranch(executorService);
+					return null;
+				}
+			});
+			temperatureFuture = executorService.submit(new Callable<Object>()
+			{
+				public Object call() throws Exception
+				{
+					runPhase(executorService,PHASE_TEMPERATURE_CONTROLLER_CONFIGURE,new Callable<Object>()
+					{
+						public Object call() throws Exception
+						{
+							ioi.configureTemperatureController();
+							return null;
+						}
+					});
+					return null;
+				}
+			});
+			// each phase has a timeout, so the branches always finish
+			waitForBranch(idlFuture);
+			waitForBranch(temperatureFuture);
+			if(getFailure() != null)
+			{
+				skipPhase(PHASE_PROTECTION_START);
+				throw getFailure();
+			}
+			// the protection thread needs the sidecar initialised, and the temperature controller setup.
+			runPhase(executorService,PHASE_PROTECTION_START,new Callable<Object>()
+			{
+				public Object call() throws Exception
+				{
+					ioi.startSidecarTemperatureProteectionThread();
+					return null;
+				}
+			});
+			// only supervise a link that has been successfully opened and configured
+			ioi.startIDLLinkSupervisor();
+			synchronized(this)
+			{
+				state = STATE_DONE;
+				duration = System.currentTimeMillis()-startTime;
+			}
+			ioi.log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
+				":execute:Controller startup completed in "+duration+" ms.");
+		}
+		catch(Exception e)
+		{
+			synchronized(this)
+			{
+				state = STATE_FAILED;
+				duration = System.currentTimeMillis()-startTime;
+				if(failure == null)
+					failure = e;
+			}
+			ioi.error(this.getClass().getName()+":execute:Controller startup failed after "+duration+" ms:"+
+				  this);
+			throw e;
+		}
+	}
+
+	/**
+	 * Run the IDL socket server branch: IDL.Connect, then Sidecar.Initialize, then Detector.Configure.
+	 * If a phase fails, the later phases are marked as skipped.
+	 * @param executorService The thread pool to run each phase on.
+	 * @exception Exception Thrown if a phase fails or times out.
+	 * @see #runPhase
+	 * @see IOI#openIDLConnection
+	 * @see IOI#initializeSidecar
+	 * @see IOI#configureDetector
+	 */
+	protected void runIDLBranch(ExecutorService executorService) throws Exception
+	{
+		try
+		{
+			runPhase(executorService,PHASE_IDL_CONNECT,new Callable<Object>()
+			{
+				public Object call() throws Exception
+				{
+					ioi.openIDLConnection();
+					return null;
+				}
+			});
+			runPhase(executorService,PHASE_SIDECAR_INITIALIZE,new Callable<Object>()
+			{
+				public Object call() throws Exception
+				{
+					ioi.initializeSidecar();
+					return null;
+				}
+			});
+			runPhase(executorService,PHASE_DETECTOR_CONFIGURE,new Callable<Object>()
+			{
+				public Object call() throws Exception
+				{
+					ioi.configureDetector();
+					return null;
+				}
+			});
+		}
+		catch(Exception e)
+		{
+			skipPhase(PHASE_SIDECAR_INITIALIZE);
+			skipPhase(PHASE_DETECTOR_CONFIGURE);
+			throw e;
+		}
+	}
+
+	/**
+	 * Run one phase on the thread pool, and wait at most the phase timeout for it to complete.
+	 * <ul>
+	 * <li>The phase state is set to IN_PROGRESS, and the task submitted.
+	 * <li>We wait for the task, for up to the phase timeout.
+	 * <li>If the task times out, it is cancelled (interrupted), and the phase state set to TIMED_OUT.
+	 *     Note a task blocked in socket I/O may not respond to the interrupt, but startup no longer waits for it.
+	 * <li>If the task threw an exception, the phase state is set to FAILED and the exception re-thrown.
+	 * <li>Otherwise the phase state is set to DONE.
+	 * </ul>
+	 * In all cases the phase duration is recorded, and a failure is saved (if it is the first).
+	 * @param executorService The thread pool to run the task on.
+	 * @param phase The phase index.
+	 * @param task The task to run.
+	 * @exception Exception Thrown if the task fails, or times out.
+	 * @see #phaseState
+	 * @see #phaseTimeout
+	 * @see #phaseDuration
+	 * @see #failure
+	 */
+	protected void runPhase(ExecutorService executorService,int phase,Callable<Object> task) throws Exception
+	{
+		Future<Object> future = null;
+		Exception exception = null;
+		int endState;
+
+		synchronized(this)
+		{
+			phaseState[phase] = STATE_IN_PROGRESS;
+			phaseStartTime[phase] = System.currentTimeMillis();
+		}
+		ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":runPhase:Starting "+PHASE_NAME_LIST[phase]+
+			" with timeout "+phaseTimeout[phase]+" ms.");
+		future = executorService.submit(task);
+		try
+		{
+			future.get(phaseTimeout[phase],TimeUnit.MILLISECONDS);
+			endState = STATE_DONE;
+		}
+		catch(TimeoutException e)
+		{
+			future.cancel(true);
+			endState = STATE_TIMED_OUT;
+			exception = new Exception(this.getClass().getName()+":runPhase:"+PHASE_NAME_LIST[phase]+
+						  " timed out after "+phaseTimeout[phase]+" ms.");
+		}
+		catch(ExecutionException e)
+		{
+			endState = STATE_FAILED;
+			if(e.getCause() instanceof Exception)
+				exception = (Exception)(e.getCause());
+			else
+				exception = e;
+		}
+		synchronized(this)
+		{
+			phaseState[phase] = endState;
+			phaseDuration[phase] = System.currentTimeMillis()-phaseStartTime[phase];
+			if((exception != null)&&(failure == null))
+				failure = exception;
+		}
+		ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":runPhase:"+PHASE_NAME_LIST[phase]+
+			" finished with state "+STATE_NAME_LIST[endState]+" in "+phaseDuration[phase]+" ms.");
+		if(exception != null)
+			throw exception;
+	}
+
+	/**
+	 * Wait for a branch to finish. Any exception is not re-thrown here, as it has already been recorded
+	 * by runPhase.
+	 * @param future The future of the branch.
+	 * @exception InterruptedException Thrown if the wait is interrupted.
+	 * @see #runPhase
+	 */
+	protected void waitForBranch(Future<Object> future) throws InterruptedException
+	{
+		try
+		{
+			future.get();
+		}
+		catch(ExecutionException e)
+		{
+			synchronized(this)
+			{
+				if(failure == null)
+				{
+					if(e.getCause() instanceof Exception)
+						failure = (Exception)(e.getCause());
+					else
+						failure = e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Mark a phase as skipped, if it has not been started.
+	 * @param phase The phase index.
+	 * @see #phaseState
+	 */
+	protected synchronized void skipPhase(int phase)
+	{
+		if(phaseState[phase] == STATE_NOT_STARTED)
+			phaseState[phase] = STATE_SKIPPED;
+	}
+
+	/**
+	 * Retrieve the phase timeouts from the "ioi.startup.timeout.&lt;phase&gt;" properties. A missing property
+	 * uses DEFAULT_PHASE_TIMEOUT.
+	 * @exception NumberFormatException Thrown if a timeout property is not a valid long.
+	 * @see #phaseTimeout
+	 * @see #PHASE_PROPERTY_LIST
+	 * @see #DEFAULT_PHASE_TIMEOUT
+	 */
+	protected void getPhaseTimeouts() throws NumberFormatException
+	{
+		IOIStatus status = null;
+		String key = null;
+
+		status = ioi.getStatus();
+		for(int i = 0; i < PHASE_COUNT; i++)
+		{
+			key = "ioi.startup.timeout."+PHASE_PROPERTY_LIST[i];
+			if(status.getProperty(key) != null)
+				phaseTimeout[i] = status.getPropertyLong(key);
+			else
+				phaseTimeout[i] = DEFAULT_PHASE_TIMEOUT;
+		}
+	}
+
+	/**
+	 * Return whether startup has progressed far enough to run a command with the specified requirement.
+	 * @param requirement The requirement, one of REQUIRE_NONE, REQUIRE_TEMPERATURE_CONTROLLER, REQUIRE_DETECTOR.
+	 * @return true if the command can be run.
+	 * @see #REQUIRE_NONE
+	 * @see #REQUIRE_TEMPERATURE_CONTROLLER
+	 * @see #REQUIRE_DETECTOR
+	 */
+	public synchronized boolean isReady(int requirement)
+	{
+		switch(requirement)
+		{
+			case REQUIRE_NONE:
+				return true;
+			case REQUIRE_TEMPERATURE_CONTROLLER:
+				return (phaseState[PHASE_TEMPERATURE_CONTROLLER_CONFIGURE] == STATE_DONE);
+			default:
+				return (state == STATE_DONE);
+		}
+	}
+
+	/**
+	 * Get the overall startup state.
+	 * @return The state.
+	 * @see #state
+	 */
+	public synchronized int getState()
+	{
+		return state;
+	}
+
+	/**
+	 * Get the state of a phase.
+	 * @param phase The phase index.
+	 * @return The state.
+	 * @see #phaseState
+	 */
+	public synchronized int getPhaseState(int phase)
+	{
+		return phaseState[phase];
+	}
+
+	/**
+	 * Get how long a phase took, or has taken so far if it is in progress.
+	 * @param phase The phase index.
+	 * @return The duration in milliseconds.
+	 * @see #phaseDuration
+	 */
+	public synchronized long getPhaseDuration(int phase)
+	{
+		if(phaseState[phase] == STATE_IN_PROGRESS)
+			return System.currentTimeMillis()-phaseStartTime[phase];
+		return phaseDuration[phase];
+	}
+
+	/**
+	 * Get how long the last startup took, or has taken so far if it is in progress.
+	 * @return The duration in milliseconds.
+	 * @see #duration
+	 */
+	public synchronized long getDuration()
+	{
+		if(state == STATE_IN_PROGRESS)
+			return System.currentTimeMillis()-startTime;
+		return duration;
+	}
+
+	/**
+	 * Get the first failure of the last startup.
+	 * @return The exception, or null if no phase has failed.
+	 * @see #failure
+	 */
+	public synchronized Exception getFailure()
+	{
+		return failure;
+	}
+
+	/**
+	 * Return a string representation of a state.
+	 * @param s The state.
+	 * @return The state name, or "UNKNOWN" if the state is illegal.
+	 * @see #STATE_NAME_LIST
+	 */
+	public static String stateToString(int s)
+	{
+		if((s < 0)||(s >= STATE_NAME_LIST.length))
+			return "UNKNOWN";
+		return STATE_NAME_LIST[s];
+	}
+
+	/**
+	 * Return a string representation of the startup, listing the state of each phase.
+	 * @return A string.
+	 */
+	public synchronized String toString()
+	{
+		StringBuffer sb = new StringBuffer();
+
+		sb.append(this.getClass().getName()+":"+stateToString(state));
+		for(int i = 0; i < PHASE_COUNT; i++)
+		{
+			sb.append(":"+PHASE_NAME_LIST[i]+"="+stateToString(phaseState[i])+"("+phaseDuration[i]+" ms)");
+		}
+		if(failure != null)
+			sb.append(":failure="+failure);
+		return sb.toString();
+	}
+}
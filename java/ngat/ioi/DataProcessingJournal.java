@@ -0,0 +1,514 @@
+// DataProcessingJournal.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import ngat.util.logging.*;
+
+/**
+ * This class is an append-only journal of the items added to, and removed from, the data processing list,
+ * so a backlog of acquired ramps survives IO:I being restarted (or failing) before they are processed.
+ * Each record in the journal file is written as:
+ * <pre>
+ * int length (of the rest of the record, excluding the checksum)
+ * byte type (RECORD_TYPE_ENQUEUED, RECORD_TYPE_STARTED or RECORD_TYPE_COMPLETED)
+ * long id
+ * byte payload[] (ENQUEUED only, the serialized item)
+ * long CRC32 checksum (of type, id and payload)
+ * </pre>
+ * Records are written into a buffer, and the journal is flushed and fsync'ed to disc by the run method,
+ * every syncPeriod milliseconds on the shared scheduled thread pool, so a burst of records costs one fsync
+ * (a crash loses at most the last syncPeriod milliseconds of records).
+ * The exception is the STARTED record, written (and fsync'ed) just before an item's processing starts:
+ * the processing stages modify the FITS images in place and are not idempotent, so an item that was
+ * interrupted part way through must not be processed again.
+ * When the journal is opened, it is replayed: the items enqueued but not completed are returned (in the order
+ * they were enqueued), and the journal is re-written to contain only those. The returned items that had
+ * been started are flagged (wasInterrupted), so they can be reported rather than retried. A record torn by a crash
+ * (short, or with a bad checksum) ends the replay. Whenever no enqueued items remain outstanding
+ * the journal file is truncated, so it does not grow without bound.
+ * The journal knows nothing about the contents of the payload, which is created and parsed by the
+ * DataProcessingThread.
+ * @see DataProcessingThread#addDataForProcessing
+ * @see DataProcessingThread#recoverJournal
+ * @see IOIExecutors#getScheduledExecutor
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class DataProcessingJournal implements Runnable
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * Record type. An item was added to the data processing list, the record payload contains the item.
+	 */
+	public final static byte RECORD_TYPE_ENQUEUED  = 1;
+	/**
+	 * Record type. An item was processed (successfully or not), or discarded, and need not be recovered.
+	 */
+	public final static byte RECORD_TYPE_COMPLETED = 2;
+	/**
+	 * Record type. The processing of an item started, and the FITS images may have been modified.
+	 */
+	public final static byte RECORD_TYPE_STARTED   = 3;
+	/**
+	 * The IOI object.
+	 */
+	protected IOI ioi = null;
+	/**
+	 * The journal file.
+	 */
+	protected File file = null;
+	/**
+	 * The stream the journal file is open on, used to fsync the file.
+	 */
+	protected FileOutputStream fileOutputStream = null;
+	/**
+	 * The buffered stream records are written to.
+	 */
+	protected DataOutputStream outputStream = null;
+	/**
+	 * The id given to the next item enqueued.
+	 */
+	protected long nextId = 0;
+	/**
+	 * The ids of the items enqueued, but not yet completed.
+	 */
+	protected Set<Long> outstandingIdSet = null;
+	/**
+	 * The ids of the items recovered when the journal was opened, whose processing had been started
+	 * (and not completed) when IO:I stopped.
+	 */
+	protected Set<Long> interruptedIdSet = null;
+	/**
+	 * Whether records have been written since the journal was last fsync'ed.
+	 */
+	protected boolean dirty = false;
+	/**
+	 * The number of records written since the journal was opened.
+	 */
+	protected long recordCount = 0;
+	/**
+	 * The number of times the journal has been fsync'ed since it was opened.
+	 */
+	protected long syncCount = 0;
+	/**
+	 * The number of items recovered from the journal when it was opened.
+	 */
+	protected int recoveredCount = 0;
+	/**
+	 * The scheduled run of the run method, which fsyncs the journal.
+	 * @see #run
+	 */
+	protected ScheduledFuture<?> scheduledFuture = null;
+
+	/**
+	 * Constructor.
+	 */
+	public DataProcessingJournal()
+	{
+		super();
+		outstandingIdSet = new TreeSet<Long>();
+		interruptedIdSet = new TreeSet<Long>();
+	}
+
+	/**
+	 * Routine to set this objects pointer to the IOI object.
+	 * @param o The IOI object.
+	 */
+	public void setIOI(IOI o)
+	{
+		this.ioi = o;
+	}
+
+	/**
+	 * Open the journal. Any existing journal file is replayed, and re-written to contain only the items that
+	 * were enqueued but not completed (and the STARTED records of those that were interrupted). 
+	 * The journal is then opened for appending, and the run method scheduled
+	 * on the shared scheduled thread pool to fsync it every syncPeriod milliseconds.
+	 * @param f The journal file. It is created if it does not exist.
+	 * @param syncPeriod How often to fsync the journal, in milliseconds.
+	 * @return A map of the payloads of the items to recover, keyed (and so ordered) by id. This includes
+	 *         the interrupted items, use wasInterrupted to find them.
+	 * @exception IOException Thrown if the journal cannot be re-written or opened.
+	 * @see #replay
+	 * @see #wasInterrupted
+	 * @see #writeRecord
+	 * @see #openFile
+	 * @see #run
+	 * @see IOIExecutors#getScheduledExecutor
+	 */
+	public synchronized SortedMap<Long,byte[]> open(File f,long syncPeriod) throws IOException
+	{
+		SortedMap<Long,byte[]> recoverMap = null;
+		File compactFile = null;
+		FileOutputStream compactFileOutputStream = null;
+		DataOutputStream compactOutputStream = null;
+		Iterator<Long> idIterator = null;
+		Long id = null;
+
+		file = f;
+		recoverMap = replay(file);
+		recoveredCount = recoverMap.size();
+		ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":open:Recovered "+recoveredCount+
+			" items from "+file+", of which "+interruptedIdSet.size()+" were interrupted.");
+		// re-write the journal with only the outstanding items, then atomically replace the old one
+		compactFile = new File(file.getPath()+".tmp");
+		compactFileOutputStream = new FileOutputStream(compactFile,false);
+		try
+		{
+			compactOutputStream = new DataOutputStream(new BufferedOutputStream(compactFileOutputStream));
+			idIterator = recoverMap.keySet().iterator();
+			while(idIterator.hasNext())
+			{
+				id = idIterator.next();
+				writeRecord(compactOutputStream,RECORD_TYPE_ENQUEUED,id.longValue(),recoverMap.get(id));
+				if(interruptedIdSet.contains(id))
+					writeRecord(compactOutputStream,RECORD_TYPE_STARTED,id.longValue(),new byte[0]);
+			}
+			compactOutputStream.flush();
+			compactFileOutputStream.getFD().sync();
+		}
+		finally
+		{
+			compactFileOutputStream.close();
+		}
+		if(compactFile.renameTo(file) == false)
+		{
+			throw new IOException(this.getClass().getName()+":open:Renaming "+compactFile+" to "+
+					      file+" failed.");
+		}
+		outstandingIdSet.clear();
+		outstandingIdSet.addAll(recoverMap.keySet());
+		if(recoverMap.size() > 0)
+			nextId = recoverMap.lastKey().longValue()+1;
+		openFile(true);
+		scheduledFuture = ioi.getExecutors().getScheduledExecutor().scheduleWithFixedDelay(this,syncPeriod,
+									syncPeriod,TimeUnit.MILLISECONDS);
+		return recoverMap;
+	}
+
+	/**
+	 * Replay a journal file, returning the items enqueued but not completed. The ids of those that were also
+	 * started are put in interruptedIdSet. Replaying stops at the end of the
+	 * file, or at the first record that is short or has a bad checksum (a record torn by a crash).
+	 * @param f The journal file.
+	 * @return A map of the payloads of the outstanding items, keyed by id. This is empty if the file
+	 *         does not exist.
+	 * @exception IOException Thrown if the file cannot be read.
+	 * @see #readRecordPayload
+	 * @see #interruptedIdSet
+	 */
+	protected SortedMap<Long,byte[]> replay(File f) throws IOException
+	{
+		SortedMap<Long,byte[]> recoverMap = null;
+		DataInputStream inputStream = null;
+		CRC32 crc = null;
+		byte record[] = null;
+		int length;
+		long id;
+		byte type;
+
+		recoverMap = new TreeMap<Long,byte[]>();
+		interruptedIdSet.clear();
+		if(f.exists() == false)
+			return recoverMap;
+		inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try
+		{
+			while(true)
+			{
+				// a short or corrupt record can only be the last one written before a crash
+				try
+				{
+					length = inputStream.readInt();
+					if((length < 9)||(length > f.length()))
+						break;
+					record = new byte[length];
+					inputStream.readFully(record);
+					crc = new CRC32();
+					crc.update(record);
+					if(inputStream.readLong() != crc.getValue())
+						break;
+				}
+				catch(EOFException e)
+				{
+					break;
+				}
+				type = record[0];
+				id = new DataInputStream(new ByteArrayInputStream(record,1,8)).readLong();
+				if(type == RECORD_TYPE_ENQUEUED)
+					recoverMap.put(new Long(id),readRecordPayload(record));
+				else if(type == RECORD_TYPE_STARTED)
+					interruptedIdSet.add(new Long(id));
+				else if(type == RECORD_TYPE_COMPLETED)
+				{
+					recoverMap.remove(new Long(id));
+					interruptedIdSet.remove(new Long(id));
+				}
+			}
+		}
+		finally
+		{
+			inputStream.close();
+		}
+		return recoverMap;
+	}
+
+	/**
+	 * Extract the payload from a record read from the journal.
+	 * @param record The record, starting with the type byte.
+	 * @return The payload.
+	 */
+	protected byte[] readRecordPayload(byte record[])
+	{
+		byte payload[] = null;
+
+		payload = new byte[record.length-9];
+		System.arraycopy(record,9,payload,0,payload.length);
+		return payload;
+	}
+
+	/**
+	 * Append an ENQUEUED record for a new item to the journal. The record is not durable until the next
+	 * fsync, done by the run method.
+	 * @param payload The serialized item.
+	 * @return The id given to the item, to be passed to appendCompleted when it has been processed.
+	 * @exception IOException Thrown if the record cannot be written, or the journal is not open.
+	 * @see #appendCompleted
+	 * @see #writeRecord
+	 * @see #outstandingIdSet
+	 */
+	public synchronized long appendEnqueued(byte payload[]) throws IOException
+	{
+		long id;
+
+		if(outputStream == null)
+			throw new IOException(this.getClass().getName()+":appendEnqueued:Journal not open.");
+		id = nextId++;
+		writeRecord(outputStream,RECORD_TYPE_ENQUEUED,id,payload);
+		outstandingIdSet.add(new Long(id));
+		recordCount++;
+		dirty = true;
+		return id;
+	}
+
+	/**
+	 * Append a STARTED record for an item to the journal, and fsync it, so the record is durable before
+	 * processing modifies any of the item's FITS images.
+	 * @param id The id returned by appendEnqueued for the item.
+	 * @exception IOException Thrown if the record cannot be written or fsync'ed, or the journal is not open.
+	 * @see #appendEnqueued
+	 * @see #writeRecord
+	 * @see #sync
+	 */
+	public synchronized void appendStarted(long id) throws IOException
+	{
+		if(outputStream == null)
+			throw new IOException(this.getClass().getName()+":appendStarted:Journal not open.");
+		writeRecord(outputStream,RECORD_TYPE_STARTED,id,new byte[0]);
+		recordCount++;
+		sync();
+	}
+
+	/**
+	 * Append a COMPLETED record for an item to the journal. If no items are then outstanding, the
+	 * journal file is truncated instead.
+	 * @param id The id returned by appendEnqueued for the item.
+	 * @exception IOException Thrown if the record cannot be written, or the journal is not open.
+	 * @see #appendEnqueued
+	 * @see #writeRecord
+	 * @see #openFile
+	 */
+	public synchronized void appendCompleted(long id) throws IOException
+	{
+		if(outputStream == null)
+			throw new IOException(this.getClass().getName()+":appendCompleted:Journal not open.");
+		outstandingIdSet.remove(new Long(id));
+		if(outstandingIdSet.size() == 0)
+		{
+			// nothing to recover, so start again with an empty journal
+			outputStream.close();
+			openFile(false);
+			sync();
+			return;
+		}
+		writeRecord(outputStream,RECORD_TYPE_COMPLETED,id,new byte[0]);
+		recordCount++;
+		dirty = true;
+	}
+
+	/**
+	 * Flush the journal and fsync it to disc, if records have been written since the last fsync.
+	 * @exception IOException Thrown if the flush or fsync fails.
+	 * @see #dirty
+	 * @see #syncCount
+	 */
+	public synchronized void sync() throws IOException
+	{
+		if(outputStream == null)
+			return;
+		outputStream.flush();
+		fileOutputStream.getFD().sync();
+		syncCount++;
+		dirty = false;
+	}
+
+	/**
+	 * Run method, called every syncPeriod milliseconds on the scheduled thread pool. If records have been
+	 * written since the last fsync, the journal is fsync'ed. Any exception is caught and logged, as an exception
+	 * thrown out of a scheduled task cancels all it's subsequent runs.
+	 * @see #sync
+	 */
+	public void run()
+	{
+		try
+		{
+			synchronized(this)
+			{
+				if(dirty)
+					sync();
+			}
+		}
+		catch(Exception e)
+		{
+			ioi.error(this.getClass().getName()+":run:Syncing journal "+file+" failed:",e);
+		}
+	}
+
+	/**
+	 * Stop the scheduled fsync, and fsync and close the journal.
+	 * @see #sync
+	 * @see #scheduledFuture
+	 */
+	public synchronized void close()
+	{
+		if(scheduledFuture != null)
+			scheduledFuture.cancel(false);
+		try
+		{
+			sync();
+			if(outputStream != null)
+				outputStream.close();
+		}
+		catch(IOException e)
+		{
+			ioi.error(this.getClass().getName()+":close:Closing journal "+file+" failed:",e);
+		}
+		outputStream = null;
+	}
+
+	/**
+	 * Return whether an item recovered when the journal was opened had been started, i.e. IO:I stopped
+	 * part way through processing it.
+	 * @param id The id of the recovered item.
+	 * @return true if the item was interrupted.
+	 * @see #interruptedIdSet
+	 */
+	public synchronized boolean wasInterrupted(long id)
+	{
+		return interruptedIdSet.contains(new Long(id));
+	}
+
+	/**
+	 * Get the number of items recovered when the journal was opened, that had been interrupted.
+	 * @return The number of items.
+	 * @see #interruptedIdSet
+	 */
+	public synchronized int getInterruptedCount()
+	{
+		return interruptedIdSet.size();
+	}
+
+	/**
+	 * Get the number of items enqueued, but not yet completed.
+	 * @return The number of items.
+	 * @see #outstandingIdSet
+	 */
+	public synchronized int getOutstandingCount()
+	{
+		return outstandingIdSet.size();
+	}
+
+	/**
+	 * Get the number of records written since the journal was opened.
+	 * @return The number of records.
+	 * @see #recordCount
+	 */
+	public synchronized long getRecordCount()
+	{
+		return recordCount;
+	}
+
+	/**
+	 * Get the number of times the journal has been fsync'ed since it was opened.
+	 * @return The number of fsyncs.
+	 * @see #syncCount
+	 */
+	public synchronized long getSyncCount()
+	{
+		return syncCount;
+	}
+
+	/**
+	 * Get the number of items recovered from the journal when it was opened.
+	 * @return The number of items.
+	 * @see #recoveredCount
+	 */
+	public synchronized int getRecoveredCount()
+	{
+		return recoveredCount;
+	}
+
+	/**
+	 * Open the journal file for writing.
+	 * @param append Whether to append to the file, or truncate it.
+	 * @exception IOException Thrown if the file cannot be opened.
+	 * @see #fileOutputStream
+	 * @see #outputStream
+	 */
+	protected void openFile(boolean append) throws IOException
+	{
+		fileOutputStream = new FileOutputStream(file,append);
+		outputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+	}
+
+	/**
+	 * Write a record to a journal stream.
+	 * @param stream The stream to write to.
+	 * @param type The record type.
+	 * @param id The item id.
+	 * @param payload The record payload (empty for STARTED and COMPLETED records).
+	 * @exception IOException Thrown if the write fails.
+	 * @see #RECORD_TYPE_ENQUEUED
+	 * @see #RECORD_TYPE_STARTED
+	 * @see #RECORD_TYPE_COMPLETED
+	 */
+	protected void writeRecord(DataOutputStream stream,byte type,long id,byte payload[]) throws IOException
+	{
+		ByteArrayOutputStream recordStream = null;
+		DataOutputStream recordDataStream = null;
+		CRC32 crc = null;
+		byte record[] = null;
+
+		recordStream = new ByteArrayOutputStream(9+payload.length);
+		recordDataStream = new DataOutputStream(recordStream);
+		recordDataStream.writeByte(type);
+		recordDataStream.writeLong(id);
+		recordDataStream.write(payload);
+		recordDataStream.flush();
+		record = recordStream.toByteArray();
+		crc = new CRC32();
+		crc.update(record);
+		stream.writeInt(record.length);
+		stream.write(record);
+		stream.writeLong(crc.getValue());
+	}
+}
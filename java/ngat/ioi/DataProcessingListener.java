@@ -0,0 +1,22 @@
+// DataProcessingListener.java
+// $HeadURL$
+package ngat.ioi;
+
+/**
+ * This interface is implemented by classes that want to be told as soon as the DataProcessingThread
+ * has finished processing each ramp.
+ * @see DataProcessingThread#addDataProcessingListener
+ * @see DataProcessingResult
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public interface DataProcessingListener
+{
+	/**
+	 * This routine is called by the DataProcessingThread, on the data processing thread, after a ramp has
+	 * been successfully processed. Implementations should return promptly, as the next ramp is not processed
+	 * until all listeners have been called.
+	 * @param result A description of the processed ramp.
+	 */
+	void dataProcessed(DataProcessingResult result);
+}
@@ -0,0 +1,210 @@
+// DataProcessingResult.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Instances of this class describe one ramp the DataProcessingThread has finished processing. They are
+ * passed to each DataProcessingListener, so the MULTRUN can tell the client about each frame as soon
+ * as it is available, rather than waiting for the whole MULTRUN to finish processing.
+ * @see DataProcessingListener
+ * @see DataProcessingThread#processData
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class DataProcessingResult
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The timestamp of the ACQUIRERAMP command that generated the ramp.
+	 */
+	protected long acquireRampCommandCallTime = -1;
+	/**
+	 * The list of filenames of the processed FITS images, in read order. These are the final
+	 * filenames (renamed and/or compressed, if enabled).
+	 */
+	protected List<String> filenameList = null;
+	/**
+	 * The statistics computed for the ramp, or null if they were not computed.
+	 */
+	protected FrameStatistics frameStatistics = null;
+	/**
+	 * How long it took to process the ramp, in milliseconds.
+	 */
+	protected long processingTime = 0;
+	/**
+	 * Whether the ramp was processed successfully. If false, the filename list is empty.
+	 */
+	protected boolean successful = true;
+	/**
+	 * A description of why processing the ramp failed, or null if it succeeded.
+	 */
+	protected String errorString = null;
+
+	/**
+	 * Default constructor.
+	 * @see #filenameList
+	 */
+	public DataProcessingResult()
+	{
+		super();
+		filenameList = new Vector<String>();
+	}
+
+	/**
+	 * Set the timestamp of the ACQUIRERAMP command that generated the ramp.
+	 * @param t A Java timestamp (long number of milliseconds since the epoch).
+	 * @see #acquireRampCommandCallTime
+	 */
+	public void setAcquireRampCommandCallTime(long t)
+	{
+		acquireRampCommandCallTime = t;
+	}
+
+	/**
+	 * Get the timestamp of the ACQUIRERAMP command that generated the ramp.
+	 * @return A Java timestamp (long number of milliseconds since the epoch).
+	 * @see #acquireRampCommandCallTime
+	 */
+	public long getAcquireRampCommandCallTime()
+	{
+		return acquireRampCommandCallTime;
+	}
+
+	/**
+	 * Set the list of filenames from a list of FITS image files.
+	 * @param fileList A List of File instances, one per processed FITS image, in read order.
+	 * @see #filenameList
+	 */
+	public void setFileList(List<File> fileList)
+	{
+		filenameList.clear();
+		for(int i = 0; i < fileList.size(); i++)
+			filenameList.add(fileList.get(i).toString());
+	}
+
+	/**
+	 * Get the list of filenames of the processed FITS images.
+	 * @return A List of filenames, in read order.
+	 * @see #filenameList
+	 */
+	public List<String> getFilenameList()
+	{
+		return filenameList;
+	}
+
+	/**
+	 * Get the filename of the final read of the ramp (the last filename in the list).
+	 * @return The filename, or null if the ramp contained no FITS images.
+	 * @see #filenameList
+	 */
+	public String getFinalFilename()
+	{
+		if(filenameList.size() == 0)
+			return null;
+		return filenameList.get(filenameList.size()-1);
+	}
+
+	/**
+	 * Set the statistics computed for the ramp.
+	 * @param fs The statistics, or null if they were not computed.
+	 * @see #frameStatistics
+	 */
+	public void setFrameStatistics(FrameStatistics fs)
+	{
+		frameStatistics = fs;
+	}
+
+	/**
+	 * Get the statistics computed for the ramp.
+	 * @return The statistics, or null if they were not computed.
+	 * @see #frameStatistics
+	 */
+	public FrameStatistics getFrameStatistics()
+	{
+		return frameStatistics;
+	}
+
+	/**
+	 * Set how long it took to process the ramp.
+	 * @param t The processing time, in milliseconds.
+	 * @see #processingTime
+	 */
+	public void setProcessingTime(long t)
+	{
+		processingTime = t;
+	}
+
+	/**
+	 * Get how long it took to process the ramp.
+	 * @return The processing time, in milliseconds.
+	 * @see #processingTime
+	 */
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+
+	/**
+	 * Set whether the ramp was processed successfully.
+	 * @param b true if the ramp was processed successfully, false if processing it failed.
+	 * @see #successful
+	 */
+	public void setSuccessful(boolean b)
+	{
+		successful = b;
+	}
+
+	/**
+	 * Get whether the ramp was processed successfully.
+	 * @return true if the ramp was processed successfully, false if processing it failed.
+	 * @see #successful
+	 */
+	public boolean getSuccessful()
+	{
+		return successful;
+	}
+
+	/**
+	 * Set a description of why processing the ramp failed.
+	 * @param s The description.
+	 * @see #errorString
+	 */
+	public void setErrorString(String s)
+	{
+		errorString = s;
+	}
+
+	/**
+	 * Get a description of why processing the ramp failed.
+	 * @return The description, or null if the ramp was processed successfully.
+	 * @see #errorString
+	 */
+	public String getErrorString()
+	{
+		return errorString;
+	}
+
+	/**
+	 * Return a string describing the result.
+	 * @see #acquireRampCommandCallTime
+	 * @see #filenameList
+	 * @see #frameStatistics
+	 * @see #processingTime
+	 * @see #successful
+	 * @see #errorString
+	 */
+	public String toString()
+	{
+		return new String(this.getClass().getName()+":Acquire Ramp Call Time:"+acquireRampCommandCallTime+
+				  ":successful:"+successful+":error:"+errorString+
+				  ":filename count:"+filenameList.size()+":final filename:"+getFinalFilename()+
+				  ":statistics:"+frameStatistics+":processing time:"+processingTime+" ms");
+	}
+}
@@ -4,10 +4,14 @@ package ngat.ioi;
 
 import java.lang.*;
 import java.io.*;
+import java.nio.channels.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import ngat.fits.*;
+import ngat.ioi.command.EventRecorder;
+import ngat.ioi.command.TraceContext;
 import ngat.util.*;
 import ngat.util.logging.*;
 
@@ -44,6 +48,15 @@ public class DataProcessingThread extends Thread
 	 * What the running thread is doing.
 	 */
 	public final static int THREAD_STATE_STOPPED    = 4;
+	/**
+	 * The priority class used for items whose priority class (OBSTYPE) is not known.
+	 */
+	public final static String PRIORITY_CLASS_DEFAULT = "default";
+	/**
+	 * The suffix appended to the ramp directory name to make the filename of it's snapshot.
+	 * @see #writeSnapshot
+	 */
+	public final static String SNAPSHOT_FILENAME_SUFFIX = ".snapshot";
 	/**
 	 * A reference to the IOI class instance.
 	 */
@@ -53,7 +66,16 @@ public class DataProcessingThread extends Thread
 	 */
 	protected IOIStatus status = null;
 	/**
-	 * A list of AcquireRamp calls, the data from which needs to be processed.
+	 * Whether this instance saves snapshots (and retained ramps) at all. ReprocessRamps turns this off,
+	 * so reprocessing a ramp does not overwrite it's original snapshot, or the retained ramp being reprocessed.
+	 * @see #setSnapshotEnable
+	 * @see #writeSnapshot
+	 */
+	protected boolean snapshotEnable = true;
+	/**
+	 * A list of AcquireRamp calls, the data from which needs to be processed. The list is in the order 
+	 * the items were added, items are removed in priority order by selectNextItem.
+	 * @see #selectNextItem
 	 */
 	protected List<DataProcessingItem> dataProcessingList = null;
 	/**
@@ -82,15 +104,166 @@ public class DataProcessingThread extends Thread
 	 * @see #processData
 	 */
 	protected int currentRunNumber = -1;
+	/**
+	 * The instance of FitsTileCompressor used to Rice compress FITS images, if enabled.
+	 * @see #compressFitsFiles
+	 */
+	protected FitsTileCompressor fitsTileCompressor = null;
+	/**
+	 * A FitsImageData instance used by the stages that load and process each FITS image of the ramp in turn
+	 * (reference pixel correction, calibration, checksumming and compression). Re-used between images
+	 * to avoid re-allocating the pixel buffers for each read.
+	 * @see #correctReferencePixels
+	 * @see #compressFitsFiles
+	 */
+	protected FitsImageData scratchImageData = null;
+	/**
+	 * The instance of FitsChecksum used to compute the DATASUM and CHECKSUM of each FITS image, if enabled.
+	 * @see #checksumFitsFiles
+	 * @see #saveFitsImage
+	 */
+	protected FitsChecksum fitsChecksum = null;
+	/**
+	 * The FITS images of the ramp being processed that were last written by saveFitsImage with their
+	 * DATASUM and CHECKSUM already computed, so checksumFitsFiles need not read them again. 
+	 * This is cleared at the start of processing each item.
+	 * @see #saveFitsImage
+	 * @see #checksumFitsFiles
+	 * @see #processData
+	 */
+	protected Set<File> checksummedFileSet = null;
+	/**
+	 * The instance of ReferencePixelCorrector used to reference pixel correct each read, if enabled.
+	 * @see #correctReferencePixels
+	 */
+	protected ReferencePixelCorrector referencePixelCorrector = null;
+	/**
+	 * The library of calibration products (bad pixel masks, nonlinearity coefficients and darks).
+	 * @see #calibrateFitsFiles
+	 */
+	protected CalibrationLibrary calibrationLibrary = null;
+	/**
+	 * A FitsImageData instance used to hold the first read of each ramp whilst the other reads are
+	 * calibrated relative to it.
+	 * @see #calibrateFitsFiles
+	 */
+	protected FitsImageData calibrationFirstReadImageData = null;
+	/**
+	 * The instance of QuickLookGenerator used to create binned preview FITS images and PNGs, if enabled.
+	 * @see #createQuickLookFiles
+	 */
+	protected QuickLookGenerator quickLookGenerator = null;
+	/**
+	 * A FitsImageData instance used to load the final read of each ramp, for the quick-look and
+	 * statistics stages.
+	 * @see #loadRampReads
+	 */
+	protected FitsImageData finalReadImageData = null;
+	/**
+	 * A FitsImageData instance used to load the first read of each ramp, when the quick-look or
+	 * statistics stages work on a CDS image.
+	 * @see #loadRampReads
+	 */
+	protected FitsImageData firstReadImageData = null;
+	/**
+	 * The instance of FrameStatisticsCalculator used to compute data quality statistics for each ramp.
+	 * @see #calculateFrameStatistics
+	 */
+	protected FrameStatisticsCalculator frameStatisticsCalculator = null;
+	/**
+	 * The statistics computed for the last ramp processed, or null if none have been computed.
+	 * @see #calculateFrameStatistics
+	 * @see #getLastFrameStatistics
+	 */
+	protected FrameStatistics lastFrameStatistics = null;
+	/**
+	 * The number of saturated pixels in the raw final read of the item being processed, counted before
+	 * the final read was reference pixel corrected or calibrated in place, or -1 if it has not been
+	 * corrected (in which case calculateFrameStatistics counts them itself).
+	 * @see #countRawSaturatedPixels
+	 * @see #calculateFrameStatistics
+	 */
+	protected int rawSaturatedPixelCount = -1;
+	/**
+	 * The configuration to apply to the pixel processing stages before the next item is processed,
+	 * or null if the stages are up to date.
+	 * @see #configureStages
+	 * @see #applyStageConfiguration
+	 */
+	protected IOIConfig stageConfig = null;
+	/**
+	 * The list of DataProcessingListener instances, told about each ramp as soon as it has been processed.
+	 * @see #addDataProcessingListener
+	 * @see #removeDataProcessingListener
+	 * @see #notifyDataProcessingListeners
+	 */
+	protected List<DataProcessingListener> listenerList = null;
+	/**
+	 * The maximum number of ramps that can be waiting to be processed, before commands wait before acquiring
+	 * another ramp. Zero means no limit. Set from the "ioi.data_processing.backlog.ramps.max" property.
+	 * @see #configureBacklog
+	 * @see #isBacklogFull
+	 */
+	protected int backlogRampCountMax = 0;
+	/**
+	 * The maximum estimated number of bytes of acquired data that can be waiting to be processed, 
+	 * before commands wait before acquiring another ramp. Zero means no limit. 
+	 * Set from the "ioi.data_processing.backlog.bytes.max" property.
+	 * @see #configureBacklog
+	 * @see #isBacklogFull
+	 */
+	protected long backlogByteCountMax = 0;
+	/**
+	 * The mean size of an acquired FITS image, in bytes, measured from the last ramp processed. Used to
+	 * estimate the size of the ramps waiting to be processed. Initialised to the size of a full
+	 * frame 16 bit image.
+	 * @see #getBacklogByteCount
+	 * @see RampTimingModel#DETECTOR_SIZE
+	 */
+	protected long bytesPerImage = ((long)RampTimingModel.DETECTOR_SIZE)*((long)RampTimingModel.DETECTOR_SIZE)*2L;
+	/**
+	 * The number of times a command has had to wait for the backlog to fall within it's limits.
+	 * @see #addBacklogWait
+	 */
+	protected int backlogWaitCount = 0;
+	/**
+	 * The total time commands have spent waiting for the backlog to fall within it's limits, in milliseconds.
+	 * @see #addBacklogWait
+	 */
+	protected long backlogWaitTime = 0;
+	/**
+	 * How long (in milliseconds) an item has to wait in the data processing list to gain one priority level. 
+	 * This stops low priority items waiting forever behind a stream of higher priority ones. Zero 
+	 * means items do not age. Set from the "ioi.data_processing.priority.aging_time" property.
+	 * @see #configureScheduling
+	 * @see #selectNextItem
+	 */
+	protected long priorityAgingTime = 0;
+	/**
+	 * Statistics of how long items wait in the data processing list before being processed, keyed by 
+	 * priority class.
+	 * @see #selectNextItem
+	 * @see QueueWaitStatistics
+	 */
+	protected Map<String,QueueWaitStatistics> queueWaitStatisticsMap = null;
+	/**
+	 * The journal of items added to and removed from the data processing list, so they can be recovered
+	 * after IO:I restarts. This is null if the journal is not enabled, or could not be opened.
+	 * @see #recoverJournal
+	 */
+	protected DataProcessingJournal journal = null;
 
 	/**
 	 * Default constructor.
 	 * @see #threadState
+	 * @see #listenerList
 	 */
 	public DataProcessingThread()
 	{
 		super("DataProcessingThread");
 		threadState = THREAD_STATE_UNKNOWN;
+		listenerList = new Vector<DataProcessingListener>();
+		queueWaitStatisticsMap = new TreeMap<String,QueueWaitStatistics>();
 	}
 	
 	/**
@@ -102,25 +275,588 @@ public class DataProcessingThread extends Thread
 		this.ioi = o;
 	}
 
+	/**
+	 * Set whether this instance saves snapshots (and retained ramps), if the configuration enables them.
+	 * @param b true to save snapshots when configured to, false to never save them.
+	 * @see #snapshotEnable
+	 */
+	public void setSnapshotEnable(boolean b)
+	{
+		snapshotEnable = b;
+	}
+
 	/**
 	 * Initialise the DataProcessingThread's internal data. Should be called after the ioi
 	 * pointer is set, before the thread is started.
+	 * The FitsTileCompressor is created to run on the shared compute thread pool (IOIExecutors), 
+	 * split into the number of tasks specified by the
+	 * "ioi.file.fits.compress.thread_count" property (0 means one per compute thread).
+	 * The QuickLookGenerator, FrameStatisticsCalculator, ReferencePixelCorrector and FitsChecksum are similarly
+	 * created using their "thread_count" properties. The settings of these stages are configured using
+	 * configureStages and applyStageConfiguration. The CalibrationLibrary is created, and configured
+	 * from the "ioi.calibration.*" properties using configureCalibration. The backlog limits and priority aging
+	 * are configured using configureBacklog and configureScheduling. The data processing journal is not opened here, the robotic software
+	 * calls recoverJournal before starting the thread (the reprocessing tool does not use the journal).
 	 * @exception Exception Throen if the ioi pointer has not been set.
 	 * @see #ioi
 	 * @see #status
 	 * @see #dataProcessingList
+	 * @see #fitsTileCompressor
+	 * @see #scratchImageData
+	 * @see #quickLookGenerator
+	 * @see #finalReadImageData
+	 * @see #firstReadImageData
+	 * @see #frameStatisticsCalculator
+	 * @see #referencePixelCorrector
+	 * @see #fitsChecksum
+	 * @see #checksummedFileSet
+	 * @see #calibrationLibrary
+	 * @see #getComputeTaskCount
+	 * @see #configureStages
+	 * @see #applyStageConfiguration
+	 * @see #configureBacklog
+	 * @see #configureScheduling
+	 * @see #configureCalibration
+	 * @see IOIExecutors#getComputeExecutor
 	 */
 	public void init() throws Exception
 	{
+		ExecutorService computeExecutor = null;
+
 		if(ioi == null)
 			throw new Exception(this.getClass().getName()+":init:ioi was not set.");
 		status = ioi.getStatus();
 		dataProcessingList = new Vector<DataProcessingItem>();
+		computeExecutor = ioi.getExecutors().getComputeExecutor();
+		fitsTileCompressor = new FitsTileCompressor(computeExecutor,
+						getComputeTaskCount("ioi.file.fits.compress.thread_count"));
+		scratchImageData = new FitsImageData();
+		quickLookGenerator = new QuickLookGenerator(computeExecutor,
+						getComputeTaskCount("ioi.file.fits.preview.thread_count"));
+		finalReadImageData = new FitsImageData();
+		firstReadImageData = new FitsImageData();
+		frameStatisticsCalculator = new FrameStatisticsCalculator(computeExecutor,
+						getComputeTaskCount("ioi.file.fits.statistics.thread_count"));
+		referencePixelCorrector = new ReferencePixelCorrector(computeExecutor,
+						getComputeTaskCount("ioi.file.fits.reference.thread_count"));
+		fitsChecksum = new FitsChecksum(computeExecutor,
+						getComputeTaskCount("ioi.file.fits.checksum.thread_count"));
+		checksummedFileSet = new HashSet<File>();
+		calibrationLibrary = new CalibrationLibrary();
+		calibrationFirstReadImageData = new FitsImageData();
+		configureStages();
+		applyStageConfiguration();
+		configureBacklog();
+		configureScheduling();
+		configureCalibration();
+	}
+
+	/**
+	 * If the "ioi.data_processing.journal.enable" property is true, open the data processing journal
+	 * ("ioi.data_processing.journal.file"), fsync'ed every "ioi.data_processing.journal.sync_period" 
+	 * milliseconds, and add the items it recovers (those queued but not processed when IO:I last stopped) to the
+	 * data processing list. Recovered items keep their original queued time, so they age ahead of new work. 
+	 * Items that were interrupted part way through processing are not re-processed, as the processing stages
+	 * modify the FITS images in place and are not idempotent (the images would be flipped or calibrated twice,
+	 * and some may already have been renamed). Instead an error is logged, so the ramp can be reprocessed
+	 * by hand (using ReprocessRamps on a copy of the ramp or snapshot), and the item is marked completed.
+	 * The journal is not vital: if it cannot be opened the error is logged and IO:I carries on without it.
+	 * This should be called after init, before the thread is started.
+	 * @see #journal
+	 * @see #dataProcessingList
+	 * @see #parseJournalPayload
+	 * @see DataProcessingJournal#open
+	 * @see DataProcessingJournal#wasInterrupted
+	 * @see IOIConfig#getDataProcessingJournalEnable
+	 */
+	public void recoverJournal()
+	{
+		SortedMap<Long,byte[]> recoverMap = null;
+		Iterator<Long> idIterator = null;
+		DataProcessingItem item = null;
+		Long id = null;
+
+		if(status.getConfig().getDataProcessingJournalEnable() == false)
+		{
+			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				":recoverJournal:Data processing journal disabled.");
+			return;
+		}
+		try
+		{
+			journal = new DataProcessingJournal();
+			journal.setIOI(ioi);
+			recoverMap = journal.open(status.getConfig().getDataProcessingJournalFile(),
+						  status.getConfig().getDataProcessingJournalSyncPeriod());
+		}
+		catch(Exception e)
+		{
+			ioi.error(this.getClass().getName()+":recoverJournal:Opening data processing journal failed:",e);
+			journal = null;
+			return;
+		}
+		idIterator = recoverMap.keySet().iterator();
+		while(idIterator.hasNext())
+		{
+			id = idIterator.next();
+			try
+			{
+				item = parseJournalPayload(recoverMap.get(id));
+				item.setJournalId(id.longValue());
+				if(journal.wasInterrupted(id.longValue()))
+				{
+					ioi.error(this.getClass().getName()+
+						  ":recoverJournal:Not retrying item interrupted during processing:"+item+
+						  ":It's FITS images may be partly processed, and must be reprocessed by hand.");
+					completeJournalItem(id.longValue());
+					continue;
+				}
+				ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
+					":recoverJournal:Recovered item:"+item);
+				synchronized(dataProcessingList)
+				{
+					dataProcessingList.add(item);
+				}
+			}
+			catch(Exception e)
+			{
+				ioi.error(this.getClass().getName()+":recoverJournal:Recovering item "+id+" failed:",e);
+				completeJournalItem(id.longValue());
+			}
+		}
+	}
+
+	/**
+	 * Serialize a data processing item into a journal record payload. The ramp parameters, times, 
+	 * ramp directory and priority class are written, followed by the FITS header cards and the FitsFilename 
+	 * (using Java serialization).
+	 * @param item The item.
+	 * @return The payload.
+	 * @exception IOException Thrown if the item cannot be serialized.
+	 * @see #parseJournalPayload
+	 */
+	protected byte[] createJournalPayload(DataProcessingItem item) throws IOException
+	{
+		ByteArrayOutputStream byteStream = null;
+		ObjectOutputStream objectStream = null;
+		List<FitsHeaderCardImage> cardImageList = null;
+		FitsHeader fitsHeader = null;
+
+		cardImageList = new Vector<FitsHeaderCardImage>();
+		fitsHeader = item.getFitsHeader();
+		for(int i = 0; i < fitsHeader.getKeywordValueCount(); i++)
+			cardImageList.add(fitsHeader.get(i));
+		byteStream = new ByteArrayOutputStream();
+		objectStream = new ObjectOutputStream(byteStream);
+		objectStream.writeInt(item.getBFS());
+		objectStream.writeInt(item.nRead);
+		objectStream.writeInt(item.nGroup);
+		objectStream.writeInt(item.exposureLength);
+		objectStream.writeLong(item.getAcquireRampCommandCallTime());
+		objectStream.writeLong(item.getQueuedTime());
+		objectStream.writeObject(item.getRampDirectory());
+		objectStream.writeObject(item.getPriorityClass());
+		objectStream.writeObject(cardImageList);
+		objectStream.writeObject(item.getFitsFilename());
+		objectStream.close();
+		return byteStream.toByteArray();
+	}
+
+	/**
+	 * Re-create a data processing item from a journal record payload written by createJournalPayload. 
+	 * The item's priority is looked up from it's priority class, as the properties may have changed.
+	 * @param payload The payload.
+	 * @return A new item, with no trace context.
+	 * @exception Exception Thrown if the payload cannot be parsed, or the item parameters are not valid.
+	 * @see #createJournalPayload
+	 * @see #getPriority
+	 */
+	protected DataProcessingItem parseJournalPayload(byte payload[]) throws Exception
+	{
+		ObjectInputStream objectStream = null;
+		DataProcessingItem item = null;
+		FitsHeader fitsHeader = null;
+		String priorityClass = null;
+		int bFS,nRead,nGroup,exposureLength;
+
+		objectStream = new ObjectInputStream(new ByteArrayInputStream(payload));
+		item = new DataProcessingItem();
+		bFS = objectStream.readInt();
+		nRead = objectStream.readInt();
+		nGroup = objectStream.readInt();
+		exposureLength = objectStream.readInt();
+		item.setBFS(bFS);
+		item.setRampParameters(nRead,nGroup,exposureLength);
+		item.setAcquireRampCommandCallTime(objectStream.readLong());
+		item.setQueuedTime(objectStream.readLong());
+		item.setRampDirectory((String)(objectStream.readObject()));
+		priorityClass = (String)(objectStream.readObject());
+		fitsHeader = new FitsHeader();
+		fitsHeader.addKeywordValueList((List)(objectStream.readObject()),0);
+		item.setFitsHeader(fitsHeader);
+		item.setFitsFilename((FitsFilename)(objectStream.readObject()));
+		item.setPriority(priorityClass,getPriority(priorityClass));
+		objectStream.close();
+		return item;
+	}
+
+	/**
+	 * Append an item being added to the data processing list to the journal, if it is open. 
+	 * A failure is logged, the item is then processed but would not be recovered.
+	 * @param item The item.
+	 * @see #journal
+	 * @see #createJournalPayload
+	 * @see DataProcessingJournal#appendEnqueued
+	 */
+	protected void journalItem(DataProcessingItem item)
+	{
+		if(journal == null)
+			return;
+		try
+		{
+			item.setJournalId(journal.appendEnqueued(createJournalPayload(item)));
+		}
+		catch(Exception e)
+		{
+			ioi.error(this.getClass().getName()+":journalItem:Journalling item "+item+" failed:",e);
+		}
+	}
+
+	/**
+	 * Mark an item as started in the journal, if it is open, and the item was journalled. This must be done
+	 * before processing modifies the item's FITS images, so an interrupted item is not processed again.
+	 * A failure is logged, the item may then be processed again after IO:I restarts.
+	 * @param journalId The journal id of the item, or -1 if it was not journalled.
+	 * @see #journal
+	 * @see DataProcessingJournal#appendStarted
+	 */
+	protected void startJournalItem(long journalId)
+	{
+		if((journal == null)||(journalId < 0))
+			return;
+		try
+		{
+			journal.appendStarted(journalId);
+		}
+		catch(Exception e)
+		{
+			ioi.error(this.getClass().getName()+":startJournalItem:Starting journal item "+journalId+
+				  " failed:",e);
+		}
+	}
+
+	/**
+	 * Mark an item as finished with (processed or discarded) in the journal, if it is open, and the item 
+	 * was journalled. A failure is logged, the item may then be processed again after IO:I restarts.
+	 * @param journalId The journal id of the item, or -1 if it was not journalled.
+	 * @see #journal
+	 * @see DataProcessingJournal#appendCompleted
+	 */
+	protected void completeJournalItem(long journalId)
+	{
+		if((journal == null)||(journalId < 0))
+			return;
+		try
+		{
+			journal.appendCompleted(journalId);
+		}
+		catch(Exception e)
+		{
+			ioi.error(this.getClass().getName()+":completeJournalItem:Completing journal item "+journalId+
+				  " failed:",e);
+		}
+	}
+
+	/**
+	 * Get the data processing journal.
+	 * @return The journal, or null if it is not enabled, or could not be opened.
+	 * @see #journal
+	 */
+	public DataProcessingJournal getJournal()
+	{
+		return journal;
+	}
+
+	/**
+	 * If the "ioi.data_processing.snapshot.enable" property is true, save a snapshot of the item (in the same
+	 * format as the journal), with it's ramp directory filled in, to a file in the 
+	 * "ioi.data_processing.snapshot.directory" directory, named after the ramp directory. ReprocessRamps
+	 * uses these snapshots to re-run the data processing over ramps later. 
+	 * The later stages process the ramp directory in place, and it is deleted at the end, so if
+	 * "ioi.data_processing.snapshot.retain_ramp" is also true the raw ramp directory is first copied
+	 * to a directory of the same name next to the snapshot, which is where ReprocessRamps looks for it.
+	 * A failure is logged, the ramp is still processed. Nothing is saved if snapshotEnable is false.
+	 * @param item The item being processed.
+	 * @param directory The ramp directory.
+	 * @see #SNAPSHOT_FILENAME_SUFFIX
+	 * @see #snapshotEnable
+	 * @see #createJournalPayload
+	 * @see #copyDirectory
+	 * @see IOIConfig#getDataProcessingSnapshotEnable
+	 * @see IOIConfig#getDataProcessingSnapshotDirectory
+	 * @see IOIConfig#getDataProcessingSnapshotRetainRamp
+	 * @see ReprocessRamps
+	 */
+	protected void writeSnapshot(DataProcessingItem item,String directory)
+	{
+		FileOutputStream outputStream = null;
+		File snapshotDirectory = null;
+		File snapshotFile = null;
+		File retainedRampDirectory = null;
+		long startTime,byteCount;
+
+		if((snapshotEnable == false)||(status.getConfig().getDataProcessingSnapshotEnable() == false))
+			return;
+		try
+		{
+			item.setRampDirectory(directory);
+			snapshotDirectory = status.getConfig().getDataProcessingSnapshotDirectory();
+			if(snapshotDirectory.isDirectory() == false)
+				snapshotDirectory.mkdirs();
+			snapshotFile = new File(snapshotDirectory,new File(directory).getName()+SNAPSHOT_FILENAME_SUFFIX);
+			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				":writeSnapshot:Writing snapshot of item to "+snapshotFile+".");
+			outputStream = new FileOutputStream(snapshotFile);
+			try
+			{
+				outputStream.write(createJournalPayload(item));
+			}
+			finally
+			{
+				outputStream.close();
+			}
+			if(status.getConfig().getDataProcessingSnapshotRetainRamp())
+			{
+				startTime = System.currentTimeMillis();
+				retainedRampDirectory = new File(snapshotDirectory,new File(directory).getName());
+				// a recovered item may have been partly retained before IO:I stopped
+				if(retainedRampDirectory.exists())
+					deleteIDLDirectory(retainedRampDirectory.toString());
+				byteCount = copyDirectory(new File(directory),retainedRampDirectory);
+				ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+					":writeSnapshot:Retained "+byteCount+" bytes of raw ramp in "+
+					retainedRampDirectory+" in "+(System.currentTimeMillis()-startTime)+" ms.");
+			}
+		}
+		catch(Exception e)
+		{
+			ioi.error(this.getClass().getName()+":writeSnapshot:Writing snapshot "+snapshotFile+
+				  " failed:",e);
+		}
+	}
+
+	/**
+	 * Copy a directory, and it's subdirectories, to a new directory.
+	 * @param fromDirectory The directory to copy.
+	 * @param toDirectory The directory to copy to, which is created.
+	 * @return The number of bytes copied.
+	 * @exception IOException Thrown if the copy fails.
+	 * @see #writeSnapshot
+	 * @see ReprocessRamps#reprocess
+	 */
+	public long copyDirectory(File fromDirectory,File toDirectory) throws IOException
+	{
+		FileChannel fromChannel = null;
+		FileChannel toChannel = null;
+		File fileList[];
+		long byteCount = 0,position,length;
+
+		if(toDirectory.mkdirs() == false)
+		{
+			throw new IOException(this.getClass().getName()+":copyDirectory:Failed to create "+
+					      toDirectory+".");
+		}
+		fileList = fromDirectory.listFiles();
+		if(fileList == null)
+		{
+			throw new IOException(this.getClass().getName()+":copyDirectory:Directory list was null:"+
+					      fromDirectory);
+		}
+		for(int i = 0; i < fileList.length; i++)
+		{
+			if(fileList[i].isDirectory())
+			{
+				byteCount += copyDirectory(fileList[i],new File(toDirectory,fileList[i].getName()));
+				continue;
+			}
+			fromChannel = new FileInputStream(fileList[i]).getChannel();
+			try
+			{
+				toChannel = new FileOutputStream(new File(toDirectory,fileList[i].getName())).getChannel();
+				try
+				{
+					length = fromChannel.size();
+					position = 0;
+					while(position < length)
+						position += fromChannel.transferTo(position,length-position,toChannel);
+				}
+				finally
+				{
+					toChannel.close();
+				}
+			}
+			finally
+			{
+				fromChannel.close();
+			}
+			byteCount += length;
+		}
+		return byteCount;
+	}
+
+	/**
+	 * Configure the settings of the pixel processing stages from the "ioi.file.fits.reference.*",
+	 * "ioi.file.fits.preview.bin", "ioi.file.fits.statistics.*" and "ioi.file.fits.compress.tile_rows" properties.
+	 * This is called from init, and when the properties are reloaded. The stages may be part way through
+	 * processing a ramp, so the configuration is only recorded here, and applied by applyStageConfiguration
+	 * before the next item is processed. All the reads of a ramp are therefore processed with the same settings.
+	 * @see #stageConfig
+	 * @see #applyStageConfiguration
+	 */
+	public synchronized void configureStages()
+	{
+		stageConfig = status.getConfig();
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			":configureStages:Stage configuration will be applied before the next item is processed.");
+	}
+
+	/**
+	 * Apply the configuration recorded by configureStages (if any) to the reference pixel corrector, quick-look
+	 * generator, frame statistics calculator and tile compressor. This is called by the data processing thread
+	 * at the start of each item, so the stages are never re-configured part way through a ramp.
+	 * @see #stageConfig
+	 * @see #configureStages
+	 * @see #referencePixelCorrector
+	 * @see #quickLookGenerator
+	 * @see #frameStatisticsCalculator
+	 * @see #fitsTileCompressor
+	 */
+	protected void applyStageConfiguration()
+	{
+		IOIConfig config = null;
+
+		synchronized(this)
+		{
+			config = stageConfig;
+			stageConfig = null;
+		}
+		if(config == null)
+			return;
+		referencePixelCorrector.setChannelCount(config.getFitsReferenceChannelCount());
+		referencePixelCorrector.setBorder(config.getFitsReferenceBorder());
+		referencePixelCorrector.setOddEven(config.getFitsReferenceOddEven());
+		referencePixelCorrector.setRowCorrection(config.getFitsReferenceRowCorrection(),
+							 config.getFitsReferenceRowWindow());
+		referencePixelCorrector.setPedestal(config.getFitsReferencePedestal());
+		quickLookGenerator.setBin(config.getFitsPreviewBin());
+		frameStatisticsCalculator.setBorder(config.getFitsStatisticsBorder());
+		frameStatisticsCalculator.setSaturationLevel(config.getFitsStatisticsSaturationLevel());
+		frameStatisticsCalculator.setClipping(config.getFitsStatisticsClipIterationCount(),
+						      config.getFitsStatisticsClipSigma());
+		frameStatisticsCalculator.setSourceDetection(config.getFitsStatisticsSourceRadius(),
+							     config.getFitsStatisticsDetectionSigma());
+		frameStatisticsCalculator.setPixelScale(config.getFitsStatisticsPixelScale());
+		fitsTileCompressor.setTileRowCount(config.getFitsCompressTileRowCount());
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			":applyStageConfiguration:Applied stage configuration:reference border "+
+			config.getFitsReferenceBorder()+", preview bin "+config.getFitsPreviewBin()+
+			", saturation level "+config.getFitsStatisticsSaturationLevel()+", tile rows "+
+			config.getFitsCompressTileRowCount()+".");
+	}
+
+	/**
+	 * Configure the priority aging time from the "ioi.data_processing.priority.aging_time" property. 
+	 * This is called from init, and when the properties are reloaded. The priority of each priority class
+	 * is retrieved when an item is added, using getPriority.
+	 * @see #priorityAgingTime
+	 * @see #getPriority
+	 * @see IOIConfig#getDataProcessingPriorityAgingTime
+	 */
+	public synchronized void configureScheduling()
+	{
+		priorityAgingTime = status.getConfig().getDataProcessingPriorityAgingTime();
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			":configureScheduling:Priority aging time "+priorityAgingTime+" ms.");
+	}
+
+	/**
+	 * Configure the calibration library's directory, cache size and enabled product types from the
+	 * "ioi.calibration" properties. This is called from init, and when the properties are reloaded. 
+	 * The library clears it's cache if the directory or product types have changed.
+	 * @see #calibrationLibrary
+	 * @see CalibrationLibrary#setDirectory
+	 * @see CalibrationLibrary#setMaxCacheByteCount
+	 * @see CalibrationLibrary#setProductEnable
+	 */
+	public void configureCalibration()
+	{
+		IOIConfig config = null;
+
+		config = status.getConfig();
+		calibrationLibrary.setDirectory(config.getCalibrationDirectory());
+		calibrationLibrary.setMaxCacheByteCount(config.getCalibrationCacheByteCount());
+		calibrationLibrary.setProductEnable(config.getCalibrationBadPixelMaskEnable(),
+						    config.getCalibrationNonlinearityEnable(),
+						    config.getCalibrationDarkEnable());
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			":configureCalibration:Calibration directory "+config.getCalibrationDirectory()+
+			", maximum cache "+config.getCalibrationCacheByteCount()+" bytes.");
+	}
+
+	/**
+	 * Get the priority of a priority class, from the "ioi.data_processing.priority.&lt;class&gt;" property,
+	 * or the "ioi.data_processing.priority.default" property if the class has no property. 
+	 * Higher numbers are processed first. The priorities are parsed once, when the configuration is loaded.
+	 * @param priorityClass The priority class, normally the OBSTYPE of the data (EXPOSURE, STANDARD, BIAS...).
+	 * @return The priority.
+	 * @see IOIConfig#getDataProcessingPriority
+	 */
+	public int getPriority(String priorityClass)
+	{
+		return status.getConfig().getDataProcessingPriority(priorityClass);
+	}
+
+	/**
+	 * Configure the backlog limits from the "ioi.data_processing.backlog.ramps.max" and
+	 * "ioi.data_processing.backlog.bytes.max" config. This is called from init, and when the
+	 * properties are reloaded.
+	 * @see #backlogRampCountMax
+	 * @see #backlogByteCountMax
+	 * @see IOIConfig#getDataProcessingBacklogRampCountMax
+	 * @see IOIConfig#getDataProcessingBacklogByteCountMax
+	 */
+	public synchronized void configureBacklog()
+	{
+		backlogRampCountMax = status.getConfig().getDataProcessingBacklogRampCountMax();
+		backlogByteCountMax = status.getConfig().getDataProcessingBacklogByteCountMax();
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			":configureBacklog:Maximum backlog "+backlogRampCountMax+" ramps, "+
+			backlogByteCountMax+" bytes.");
+	}
+
+	/**
+	 * Get the number of tasks to split a pixel processing operation into.
+	 * @param propertyName The property holding the task count, e.g. "ioi.file.fits.compress.thread_count".
+	 * @return The property value, or the number of compute threads if the property value is less than 1.
+	 * @exception NumberFormatException Thrown if the property is not a valid integer.
+	 * @see IOIExecutors#getComputeThreadCount
+	 */
+	protected int getComputeTaskCount(String propertyName) throws NumberFormatException
+	{
+		int taskCount;
+
+		taskCount = status.getPropertyInteger(propertyName);
+		if(taskCount < 1)
+			taskCount = ioi.getExecutors().getComputeThreadCount();
+		return taskCount;
 	}
 
 	/**
 	 * Add a new data processing item to the list of items to be processed.
 	 * @param bFS Whether the data was acquired read up the ramp (==0) or in Fowler Sampling Mode (==1).
+	 * @param nRead The number of reads the ramp was configured with.
+	 * @param nGroup The number of groups the ramp was configured with.
+	 * @param exposureLength The requested exposure length, in milliseconds.
 	 * @param acquireRampCommandCallTime The timestamp of when AcquireRamp was called.
 	 * @param f The FITS headers items associated with this data 
 	 *        (to be added to the FITS headers of the acquired data).
@@ -130,19 +866,77 @@ public class DataProcessingThread extends Thread
 	 * @see #dataProcessingList
 	 * @see DataProcessingItem
 	 * @see DataProcessingItem#setBFS
+	 * @see DataProcessingItem#setRampParameters
 	 * @see DataProcessingItem#setAcquireRampCommandCallTime
 	 * @see DataProcessingItem#setFitsHeader
 	 * @see DataProcessingItem#setFitsFilename
 	 */
-	public void addDataForProcessing(int bFS,long acquireRampCommandCallTime,FitsHeader f,
-					 FitsFilename fitsFilename) 
+	public void addDataForProcessing(int bFS,int nRead,int nGroup,int exposureLength,
+					 long acquireRampCommandCallTime,FitsHeader f,FitsFilename fitsFilename) 
 		throws Exception
 	{
+		addDataForProcessing(bFS,nRead,nGroup,exposureLength,acquireRampCommandCallTime,f,fitsFilename,null);
+	}
+
+	/**
+	 * Add a new data processing item to the list of items to be processed, where the directory containing
+	 * the ramp is already known (for instance, a guided exposure's stitched science ramp).
+	 * @param bFS Whether the data was acquired read up the ramp (==0) or in Fowler Sampling Mode (==1).
+	 * @param nRead The number of reads the ramp was configured with.
+	 * @param nGroup The number of groups the ramp was configured with.
+	 * @param exposureLength The requested exposure length, in milliseconds.
+	 * @param acquireRampCommandCallTime The timestamp of when AcquireRamp was called.
+	 * @param f The FITS headers items associated with this data 
+	 *        (to be added to the FITS headers of the acquired data).
+	 *        This item will be copied as the original may change whilst data processing on this item is underway.
+	 * @param fitsFilename The FitsFilename instance to use when renaming the FITS images.
+	 * @param rampDirectory The directory containing the ramp, or null to search for it using findRampData.
+	 * @exception Exception Thrown if setBFS is given an out of range parameter.
+	 * @see #dataProcessingList
+	 * @see DataProcessingItem
+	 * @see DataProcessingItem#setRampDirectory
+	 */
+	public void addDataForProcessing(int bFS,int nRead,int nGroup,int exposureLength,
+					 long acquireRampCommandCallTime,FitsHeader f,FitsFilename fitsFilename,
+					 String rampDirectory) throws Exception
+	{
+		addDataForProcessing(bFS,nRead,nGroup,exposureLength,acquireRampCommandCallTime,f,fitsFilename,
+				     rampDirectory,null);
+	}
+
+	/**
+	 * Add a new data processing item to the list of items to be processed, with an explicit priority class.
+	 * @param bFS Whether the data was acquired read up the ramp (==0) or in Fowler Sampling Mode (==1).
+	 * @param nRead The number of reads the ramp was configured with.
+	 * @param nGroup The number of groups the ramp was configured with.
+	 * @param exposureLength The requested exposure length, in milliseconds.
+	 * @param acquireRampCommandCallTime The timestamp of when AcquireRamp was called.
+	 * @param f The FITS headers items associated with this data 
+	 *        (to be added to the FITS headers of the acquired data).
+	 *        This item will be copied as the original may change whilst data processing on this item is underway.
+	 * @param fitsFilename The FitsFilename instance to use when renaming the FITS images.
+	 * @param rampDirectory The directory containing the ramp, or null to search for it using findRampData.
+	 * @param priorityClass The priority class of the item, or null to use the OBSTYPE in the FITS headers.
+	 * @exception Exception Thrown if setBFS is given an out of range parameter, or the priority
+	 *            property is not a valid integer.
+	 * @see #dataProcessingList
+	 * @see #getPriority
+	 * @see #journalItem
+	 * @see DataProcessingItem
+	 * @see DataProcessingItem#setPriority
+	 */
+	public void addDataForProcessing(int bFS,int nRead,int nGroup,int exposureLength,
+					 long acquireRampCommandCallTime,FitsHeader f,FitsFilename fitsFilename,
+					 String rampDirectory,String priorityClass) throws Exception
+	{
+		FitsHeaderCardImage cardImage = null;
 		DataProcessingItem item = null;
 
 		item = new DataProcessingItem();
 		item.setBFS(bFS);
+		item.setRampParameters(nRead,nGroup,exposureLength);
 		item.setAcquireRampCommandCallTime(acquireRampCommandCallTime);
+		item.setRampDirectory(rampDirectory);
 		item.setFitsHeader(f);
 		// Create a copy of the supplied fitsFilename instance,
 		// the original may be modified by the MULTRUN, or by a new MULTRUN starting whilst we are still
@@ -152,6 +946,18 @@ public class DataProcessingThread extends Thread
 			item.setFitsFilename(new FitsFilename(fitsFilename));
 		else
 			item.setFitsFilename(null);
+		// the priority class defaults to the type of observation
+		if(priorityClass == null)
+		{
+			cardImage = f.get("OBSTYPE");
+			if((cardImage != null)&&(cardImage.getValue() != null))
+				priorityClass = cardImage.getValue().toString();
+		}
+		item.setPriority(priorityClass,getPriority(priorityClass));
+		// the item is processed on the data processing thread, so it carries the caller's trace context with it
+		item.setTraceContext(TraceContext.getCurrentContext());
+		// journal the item before it can be processed, so the completion cannot be written first
+		journalItem(item);
 		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+":addDataForProcessing:"+
 			"About to enter synchronised block to add item:"+item);
 		synchronized(dataProcessingList)
@@ -165,6 +971,68 @@ public class DataProcessingThread extends Thread
 		}
 	}
 
+	/**
+	 * Remove the items waiting in the data processing list that were acquired at or after the specified time.
+	 * This is used when a command is aborted, to stop the ramps it has already acquired from being processed.
+	 * The item currently being processed (if any) is not affected. The removed items are marked as completed
+	 * in the journal, so they are not recovered.
+	 * @param startTime The time, in milliseconds since the epoch, items whose acquireRampCommandCallTime is
+	 *        at or after this time are removed.
+	 * @return The number of items removed.
+	 * @see #dataProcessingList
+	 * @see #completeJournalItem
+	 * @see DataProcessingItem#getAcquireRampCommandCallTime
+	 */
+	public int discardItems(long startTime)
+	{
+		List<DataProcessingItem> discardList = new Vector<DataProcessingItem>();
+		DataProcessingItem item = null;
+
+		synchronized(dataProcessingList)
+		{
+			for(int i = dataProcessingList.size()-1; i >= 0; i--)
+			{
+				item = dataProcessingList.get(i);
+				if(item.getAcquireRampCommandCallTime() >= startTime)
+				{
+					ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+						":discardItems:Discarding item:"+item);
+					dataProcessingList.remove(i);
+					discardList.add(item);
+				}
+			}
+		}
+		for(int i = 0; i < discardList.size(); i++)
+			completeJournalItem(discardList.get(i).getJournalId());
+		return discardList.size();
+	}
+
+	/**
+	 * Add a listener, to be told about each ramp as soon as it has been processed.
+	 * @param l The listener to add.
+	 * @see #listenerList
+	 */
+	public void addDataProcessingListener(DataProcessingListener l)
+	{
+		synchronized(listenerList)
+		{
+			listenerList.add(l);
+		}
+	}
+
+	/**
+	 * Remove a listener previously added with addDataProcessingListener.
+	 * @param l The listener to remove.
+	 * @see #listenerList
+	 */
+	public void removeDataProcessingListener(DataProcessingListener l)
+	{
+		synchronized(listenerList)
+		{
+			listenerList.remove(l);
+		}
+	}
+
 	/**
 	 * This attempts to quite the data processing thread by setting quit to true.
 	 * @see #quit
@@ -190,6 +1058,241 @@ public class DataProcessingThread extends Thread
 		return listSize;
 	}
 
+	/**
+	 * Get an estimate of the number of bytes of acquired data waiting to be processed. Each ramp's
+	 * size is estimated from it's number of images and the size of the images in the last ramp processed.
+	 * @return The estimated number of bytes.
+	 * @see #dataProcessingList
+	 * @see #getBytesPerImage
+	 * @see DataProcessingItem#getEstimatedImageCount
+	 */
+	public long getBacklogByteCount()
+	{
+		long imageCount = 0;
+		long byteCount;
+
+		byteCount = getBytesPerImage();
+		synchronized(dataProcessingList)
+		{
+			for(int i = 0; i < dataProcessingList.size(); i++)
+				imageCount += dataProcessingList.get(i).getEstimatedImageCount();
+		}
+		return imageCount*byteCount;
+	}
+
+	/**
+	 * Get whether the backlog of ramps waiting to be processed has reached either of it's limits. 
+	 * Commands should not acquire another ramp until this returns false.
+	 * @return true if the number of ramps waiting is at least backlogRampCountMax, or the estimated number of
+	 *         bytes waiting is at least backlogByteCountMax (and the respective limit is not zero).
+	 * @see #backlogRampCountMax
+	 * @see #backlogByteCountMax
+	 * @see #getListSize
+	 * @see #getBacklogByteCount
+	 */
+	public boolean isBacklogFull()
+	{
+		int rampCountMax;
+		long byteCountMax;
+
+		synchronized(this)
+		{
+			rampCountMax = backlogRampCountMax;
+			byteCountMax = backlogByteCountMax;
+		}
+		if((rampCountMax > 0)&&(getListSize() >= rampCountMax))
+			return true;
+		if((byteCountMax > 0)&&(getBacklogByteCount() >= byteCountMax))
+			return true;
+		return false;
+	}
+
+	/**
+	 * Get the maximum number of ramps that can be waiting to be processed.
+	 * @return The number of ramps, zero means no limit.
+	 * @see #backlogRampCountMax
+	 */
+	public synchronized int getBacklogRampCountMax()
+	{
+		return backlogRampCountMax;
+	}
+
+	/**
+	 * Get the maximum estimated number of bytes of acquired data that can be waiting to be processed.
+	 * @return The number of bytes, zero means no limit.
+	 * @see #backlogByteCountMax
+	 */
+	public synchronized long getBacklogByteCountMax()
+	{
+		return backlogByteCountMax;
+	}
+
+	/**
+	 * Record a command having waited for the backlog to fall within it's limits.
+	 * @param t How long the command waited, in milliseconds.
+	 * @see #backlogWaitCount
+	 * @see #backlogWaitTime
+	 */
+	public synchronized void addBacklogWait(long t)
+	{
+		backlogWaitCount++;
+		backlogWaitTime += t;
+	}
+
+	/**
+	 * Get the number of times a command has had to wait for the backlog to fall within it's limits.
+	 * @return The number of waits.
+	 * @see #backlogWaitCount
+	 */
+	public synchronized int getBacklogWaitCount()
+	{
+		return backlogWaitCount;
+	}
+
+	/**
+	 * Get the total time commands have spent waiting for the backlog to fall within it's limits.
+	 * @return The time, in milliseconds.
+	 * @see #backlogWaitTime
+	 */
+	public synchronized long getBacklogWaitTime()
+	{
+		return backlogWaitTime;
+	}
+
+	/**
+	 * Get the mean size of an acquired FITS image, measured from the last ramp processed.
+	 * @return The size, in bytes.
+	 * @see #bytesPerImage
+	 */
+	public synchronized long getBytesPerImage()
+	{
+		return bytesPerImage;
+	}
+
+	/**
+	 * Measure the mean size of the acquired FITS images in a ramp, and save it in bytesPerImage, to improve
+	 * the estimate of the size of the ramps waiting to be processed.
+	 * @param fitsImageList A List, containing File object instances, where each item represents a FITS image
+	 *        from the ramp.
+	 * @see #bytesPerImage
+	 */
+	protected void measureBytesPerImage(List<File> fitsImageList)
+	{
+		long byteCount = 0;
+
+		if(fitsImageList.size() == 0)
+			return;
+		for(int i = 0; i < fitsImageList.size(); i++)
+			byteCount += fitsImageList.get(i).length();
+		synchronized(this)
+		{
+			bytesPerImage = byteCount/fitsImageList.size();
+		}
+	}
+
+	/**
+	 * Select the next item to process, and remove it from the dataProcessingList. 
+	 * <ul>
+	 * <li>Only the oldest item in each ordering group (MULTRUN) is eligible, so the ramps of a MULTRUN are 
+	 *     always processed (and renamed) in run number order.
+	 * <li>Each eligible item's effective priority is it's priority plus one for every priorityAgingTime 
+	 *     milliseconds it has been waiting, so low priority items are not starved.
+	 * <li>The eligible item with the highest effective priority is selected, the oldest if there is a tie.
+	 * </ul>
+	 * The backlog is small (it is limited by the backlog limits), so the list is scanned rather than held 
+	 * in a heap, as the effective priorities change as the items age. The time the selected item waited
+	 * is added to the queue wait statistics for it's priority class.
+	 * This method must be called with the dataProcessingList lock held.
+	 * @return The selected item, or null if the list is empty.
+	 * @see #dataProcessingList
+	 * @see #priorityAgingTime
+	 * @see #queueWaitStatisticsMap
+	 * @see DataProcessingItem#getOrderingGroup
+	 * @see DataProcessingItem#getPriority
+	 * @see DataProcessingItem#getQueuedTime
+	 */
+	protected DataProcessingItem selectNextItem()
+	{
+		DataProcessingItem item = null;
+		DataProcessingItem selectedItem = null;
+		Set<Integer> orderingGroupSet = new HashSet<Integer>();
+		QueueWaitStatistics queueWaitStatistics = null;
+		long now,agingTime,effectivePriority,selectedEffectivePriority = 0,waitTime;
+
+		synchronized(this)
+		{
+			agingTime = priorityAgingTime;
+		}
+		now = System.currentTimeMillis();
+		// the list is in the order the items were added
+		for(int i = 0; i < dataProcessingList.size(); i++)
+		{
+			item = dataProcessingList.get(i);
+			// an earlier item from the same MULTRUN must be processed first
+			if(orderingGroupSet.add(new Integer(item.getOrderingGroup())) == false)
+				continue;
+			effectivePriority = item.getPriority();
+			if(agingTime > 0)
+				effectivePriority += (now-item.getQueuedTime())/agingTime;
+			if((selectedItem == null)||(effectivePriority > selectedEffectivePriority))
+			{
+				selectedItem = item;
+				selectedEffectivePriority = effectivePriority;
+			}
+		}
+		if(selectedItem == null)
+			return null;
+		dataProcessingList.remove(selectedItem);
+		waitTime = now-selectedItem.getQueuedTime();
+		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+			":selectNextItem:Selected "+selectedItem.getPriorityClass()+" item with priority "+
+			selectedItem.getPriority()+" (effective "+selectedEffectivePriority+") after waiting "+
+			waitTime+" ms.");
+		synchronized(queueWaitStatisticsMap)
+		{
+			queueWaitStatistics = queueWaitStatisticsMap.get(selectedItem.getPriorityClass());
+			if(queueWaitStatistics == null)
+			{
+				queueWaitStatistics = new QueueWaitStatistics();
+				queueWaitStatisticsMap.put(selectedItem.getPriorityClass(),queueWaitStatistics);
+			}
+			queueWaitStatistics.add(waitTime);
+		}
+		return selectedItem;
+	}
+
+	/**
+	 * Get the list of priority classes there are queue wait statistics for.
+	 * @return A new list of priority class names.
+	 * @see #queueWaitStatisticsMap
+	 */
+	public List<String> getQueueWaitPriorityClassList()
+	{
+		synchronized(queueWaitStatisticsMap)
+		{
+			return new Vector<String>(queueWaitStatisticsMap.keySet());
+		}
+	}
+
+	/**
+	 * Get the queue wait statistics for a priority class.
+	 * @param priorityClass The priority class.
+	 * @return A copy of the statistics, or null if no items of that class have been processed.
+	 * @see #queueWaitStatisticsMap
+	 */
+	public QueueWaitStatistics getQueueWaitStatistics(String priorityClass)
+	{
+		QueueWaitStatistics queueWaitStatistics = null;
+
+		synchronized(queueWaitStatisticsMap)
+		{
+			queueWaitStatistics = queueWaitStatisticsMap.get(priorityClass);
+			if(queueWaitStatistics == null)
+				return null;
+			return new QueueWaitStatistics(queueWaitStatistics);
+		}
+	}
+
 	/**
 	 * Get the current thread state.
 	 * @return The current thread state.
@@ -266,6 +1369,42 @@ public class DataProcessingThread extends Thread
 		return currentRunNumber;
 	}
 
+	/**
+	 * Return the compression ratio achieved on the last FITS image compressed.
+	 * @return The compression ratio (uncompressed size / compressed size), or 0.0 if nothing has been
+	 *         compressed yet.
+	 * @see #fitsTileCompressor
+	 * @see FitsTileCompressor#getLastCompressionRatio
+	 */
+	public double getLastCompressionRatio()
+	{
+		return fitsTileCompressor.getLastCompressionRatio();
+	}
+
+	/**
+	 * Return the throughput achieved on the last FITS image compressed.
+	 * @return The throughput in uncompressed megabytes per second, or 0.0 if nothing has been
+	 *         compressed yet.
+	 * @see #fitsTileCompressor
+	 * @see FitsTileCompressor#getLastThroughput
+	 */
+	public double getLastCompressionThroughput()
+	{
+		return fitsTileCompressor.getLastThroughput();
+	}
+
+	/**
+	 * Return the data quality statistics computed for the last ramp processed.
+	 * @return The statistics, or null if no statistics have been computed. The returned instance is not 
+	 *         modified by subsequent processing.
+	 * @see #lastFrameStatistics
+	 * @see #calculateFrameStatistics
+	 */
+	public synchronized FrameStatistics getLastFrameStatistics()
+	{
+		return lastFrameStatistics;
+	}
+
 	/**
 	 * Main thread run method.
 	 * <ul>
@@ -278,8 +1417,10 @@ public class DataProcessingThread extends Thread
 	 *     <li>While the size of the dataProcessingList is greater than zero, we:
 	 *         <ul>
 	 *         <li>We set the thread state to PROCESSING.
-	 *         <li>Reacquire the lock on the dataProcessingList and remove the first item from it.
-	 *         <li>We call <b>processData</b> on this item. Any exceptions are caught and logged.
+	 *         <li>Reacquire the lock on the dataProcessingList and remove the next item to process from it,
+	 *             using <b>selectNextItem</b>.
+	 *         <li>We call <b>processData</b> on this item. Any exceptions are caught and logged, and
+	 *             the listeners are told the ramp failed, with an unsuccessful DataProcessingResult.
 	 *         </ul>
 	 *     </ul>
 	 * <li>Any exceptions in the execution of this thread are caught and logged.
@@ -290,6 +1431,8 @@ public class DataProcessingThread extends Thread
 	 * @see #done
 	 * @see #dataProcessingList
 	 * @see #processData
+	 * @see #selectNextItem
+	 * @see #notifyDataProcessingListeners
 	 * @see #quit
 	 * @see #threadState
 	 * @see #THREAD_STATE_STARTED
@@ -300,6 +1443,7 @@ public class DataProcessingThread extends Thread
 	public void run()
 	{
 		DataProcessingItem item = null;
+		DataProcessingResult result = null;
 		int listSize;
 
 		threadState = THREAD_STATE_STARTED;
@@ -348,24 +1492,39 @@ public class DataProcessingThread extends Thread
 						":run:About to enter synchronised block remove first item.");
 					synchronized(dataProcessingList)
 					{
-						item = dataProcessingList.get(0);
-						dataProcessingList.remove(0);
+						item = selectNextItem();
 						listSize = dataProcessingList.size();
 						ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
-							":run:In synchronised block:removed first item:"+
+							":run:In synchronised block:removed item:"+
 							"list size now = "+listSize);
 					}
+					// the list may have been emptied by discardItems
+					if(item == null)
+						break;
 					// Process the item. Catch exceptions and log.
 					try
 					{
 						ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 							":run:Processing item:"+item);
+						startJournalItem(item.getJournalId());
 						processData(item);
 					}
 					catch(Exception e)
 					{
 						ioi.error(this.getClass().getName()+":run:Processing item: "+item+
 							  " threw Exception:",e);
+						// tell any listeners (the MULTRUN) the ramp failed, so the client is
+						// not left waiting for it
+						result = new DataProcessingResult();
+						result.setAcquireRampCommandCallTime(item.getAcquireRampCommandCallTime());
+						result.setSuccessful(false);
+						result.setErrorString(e.toString());
+						notifyDataProcessingListeners(result);
+					}
+					// a failed item is not retried, it would probably fail again
+					finally
+					{
+						completeJournalItem(item.getJournalId());
 					}
 				}// dataProcessingList.size() > 0
 			}// end while (done == false)
@@ -375,6 +1534,8 @@ public class DataProcessingThread extends Thread
 		{
 			ioi.error(this.getClass().getName()+":run:Threw Exception:",e);
 		}
+		if(journal != null)
+			journal.close();
 		threadState = THREAD_STATE_STOPPED;
 	}
 
@@ -383,27 +1544,63 @@ public class DataProcessingThread extends Thread
 	 * <ul>
 	 * <li>We update the thread status: currentAcquireRampCommandCallTime, currentMultrunNumber and
 	 *     currentRunNumber are updated based on the contents of the DataProcessingItem.
+	 * <li>If the item has a trace context, the time it waited in the queue is recorded as the "DP:QUEUE" span.
+	 * <li>We call <b>applyStageConfiguration</b> to apply any stage configuration reloaded since the last item.
 	 * <li>We call <b>findRampData</b> to find where the IDL Socket Server has created a new directory with the 
-	 *     acquired data.
-	 * <li>We call <b>findFITSFilesInDirectory</b> to locate all the generated FITS files from the ramp.
+	 *     acquired data, unless the item already specifies the ramp directory (a guided exposure).
+	 * <li>We call <b>writeSnapshot</b> which, depending on config options, saves the item (and a copy of the
+	 *     raw ramp) so the ramp can be reprocessed later by ReprocessRamps.
+	 * <li>We call <b>findFITSFilesInDirectory</b> to locate all the generated FITS files from the ramp,
+	 *     <b>selectReads</b> to select which of them are kept, 
+	 *     and <b>measureBytesPerImage</b> to update the backlog size estimate.
 	 * <li>We call <b>addFitsHeadersToFitsImages</b> to add the previously retrieved ISS/BSS/IO:I headers
 	 *     to the IDL Socket Server generated FITS images.
+	 * <li>We call <b>correctReferencePixels</b> which, depending on a config option,
+	 *     reference pixel corrects each read, before any of the later stages use the pixel data.
+	 * <li>We call <b>calibrateFitsFiles</b> which, depending on config options, applies the bad pixel mask,
+	 *     nonlinearity and dark calibration products matching the ramp parameters to each read.
 	 * <li>We call <b>flipFitsFiles</b> which, depending on a config option, 
 	 *     flips the image data inside the FITS images to the correct orientation.
 	 * <li>We call <b>renameFitsFiles</b> which, depending on a config option, 
 	 *     renames the IDL Socket Server generated FITS images to LT standard filenames.
+	 * <li>We call <b>checksumFitsFiles</b> which, depending on a config option, writes the FITS DATASUM
+	 *     and CHECKSUM keywords into each FITS image, now the data and headers will not change again
+	 *     (images re-written by the earlier stages already have them, computed as they were saved).
+	 * <li>We call <b>createQuickLookFiles</b> which, depending on a config option,
+	 *     creates a binned preview FITS image and PNG next to the (renamed) FITS images.
+	 * <li>We call <b>calculateFrameStatistics</b> which, depending on a config option,
+	 *     computes data quality statistics for the ramp, to be returned in the MULTRUN_DONE.
+	 * <li>We call <b>compressFitsFiles</b> which, depending on a config option for the exposure's OBSTYPE,
+	 *     Rice tile compresses the FITS images.
 	 * <li>We call <b>deleteIDLDirectory</b> which deletes the IDL directory and any remaining data within it.
+	 * <li>If the item has a trace context, the processing time is recorded as the "DP:PROCESS" span.
+	 * <li>The time taken by each stage (finding the ramp data and listing it's FITS images counting as one)
+	 *     is recorded as a DP event, if event recording is on.
+	 * <li>We call <b>notifyDataProcessingListeners</b> with a DataProcessingResult containing the final 
+	 *     filenames and any computed statistics, so the MULTRUN can send them to the client straight away.
 	 * <li>We reset the thread status: currentAcquireRampCommandCallTime, currentMultrunNumber and
 	 *     currentRunNumber are reset to -1.
 	 * </ul>
 	 * @param item The data to be processed.
 	 * @exception Throwen if an error occurs.
+	 * @see #applyStageConfiguration
 	 * @see #findRampData
+	 * @see #writeSnapshot
 	 * @see #findFITSFilesInDirectory
+	 * @see #selectReads
+	 * @see #measureBytesPerImage
 	 * @see #addFitsHeadersToFitsImages
+	 * @see #correctReferencePixels
+	 * @see #calibrateFitsFiles
 	 * @see #flipFitsFiles
 	 * @see #renameFitsFiles
+	 * @see #checksumFitsFiles
+	 * @see #createQuickLookFiles
+	 * @see #calculateFrameStatistics
+	 * @see #compressFitsFiles
 	 * @see #deleteIDLDirectory
+	 * @see #notifyDataProcessingListeners
+	 * @see #recordStageEvent
 	 * @see #currentAcquireRampCommandCallTime
 	 * @see #currentMultrunNumber
 	 * @see #currentRunNumber
@@ -411,15 +1608,38 @@ public class DataProcessingThread extends Thread
 	protected void processData(DataProcessingItem item) throws Exception
 	{
 		FitsHeader fitsHeader;
+		List<File> rampFileList = null;
 		List<File> fitsFileList = null;
+		DataProcessingResult result = null;
+		FrameStatistics frameStatistics = null;
+		TraceContext traceContext = null;
 		String directory = null;
+		String eventDetail = null;
+		int readIndexList[] = null;
 		int bFS;
-		long acquireRampCommandCallTime;
+		long acquireRampCommandCallTime,startTime,traceStartTime = 0,stageStartTime;
 		FitsFilename fitsFilename = null;
 
 		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			":processData:Starting processing item:"+item);
+		startTime = System.currentTimeMillis();
+		// trace how long the item waited in the queue
+		traceContext = item.getTraceContext();
+		if(traceContext != null)
+		{
+			traceStartTime = traceContext.startSpan();
+			traceContext.addSpan("DP:QUEUE",item.getQueuedNanoTime(),traceStartTime);
+		}
 		acquireRampCommandCallTime = item.getAcquireRampCommandCallTime();
+		applyStageConfiguration();
+		checksummedFileSet.clear();
+		rawSaturatedPixelCount = -1;
+		// reads loaded for a previous item are not re-used, even if this item has the same filenames
+		finalReadImageData.invalidate();
+		firstReadImageData.invalidate();
+		// each stage's event is identified by the ramp's acquire ramp command call time
+		eventDetail = Long.toString(acquireRampCommandCallTime);
+		stageStartTime = System.nanoTime();
 		bFS = item.getBFS();
 		fitsHeader = item.getFitsHeader();
 		fitsFilename = item.getFitsFilename();
@@ -433,27 +1653,78 @@ public class DataProcessingThread extends Thread
 		// findRampData
 		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			":processData:Finding ramp data for exposure.");
-		directory = findRampData(bFS,acquireRampCommandCallTime);
+		if(item.getRampDirectory() != null)
+			directory = item.getRampDirectory();
+		else
+			directory = findRampData(bFS,acquireRampCommandCallTime);
+		writeSnapshot(item,directory);
 		// findFITSFilesInDirectory
 		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			":processData:Listing FITS images in Ramp Data directory "+directory+".");
-		fitsFileList = findFITSFilesInDirectory(bFS,directory);
+		rampFileList = findFITSFilesInDirectory(directory);
+		readIndexList = selectReads(bFS,rampFileList);
+		fitsFileList = ReadSubsetPolicy.select(rampFileList,readIndexList);
+		measureBytesPerImage(fitsFileList);
+		stageStartTime = recordStageEvent("findRampData",eventDetail,stageStartTime);
 		// addFitsHeadersToFitsImages
 		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			":processData:Adding FITS headers to "+fitsFileList.size()+" FITS images.");
 		addFitsHeadersToFitsImages(fitsHeader,fitsFileList);
+		stageStartTime = recordStageEvent("addFitsHeadersToFitsImages",eventDetail,stageStartTime);
+		// correctReferencePixels
+		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+			":processData:Reference pixel correct FITS images (if enabled).");
+		correctReferencePixels(fitsFileList);
+		stageStartTime = recordStageEvent("correctReferencePixels",eventDetail,stageStartTime);
+		// calibrateFitsFiles
+		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+			":processData:Calibrate FITS images (if enabled).");
+		calibrateFitsFiles(item,rampFileList,readIndexList);
+		stageStartTime = recordStageEvent("calibrateFitsFiles",eventDetail,stageStartTime);
 		// flipFitsFiles
 		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			":processData:Flip image data in FITS images (if enabled).");
 		flipFitsFiles(fitsFileList);
+		stageStartTime = recordStageEvent("flipFitsFiles",eventDetail,stageStartTime);
 		// renameFitsFiles
 		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			":processData:Rename generated FITS images to LT spec (if enabled).");
 		renameFitsFiles(fitsFileList,fitsFilename);
+		stageStartTime = recordStageEvent("renameFitsFiles",eventDetail,stageStartTime);
+		// checksumFitsFiles
+		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+			":processData:Write FITS DATASUM and CHECKSUM keywords (if enabled).");
+		checksumFitsFiles(fitsFileList);
+		stageStartTime = recordStageEvent("checksumFitsFiles",eventDetail,stageStartTime);
+		// createQuickLookFiles
+		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+			":processData:Create quick-look preview images (if enabled).");
+		createQuickLookFiles(fitsFileList);
+		stageStartTime = recordStageEvent("createQuickLookFiles",eventDetail,stageStartTime);
+		// calculateFrameStatistics
+		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+			":processData:Calculate frame statistics (if enabled).");
+		frameStatistics = calculateFrameStatistics(acquireRampCommandCallTime,fitsFileList);
+		stageStartTime = recordStageEvent("calculateFrameStatistics",eventDetail,stageStartTime);
+		// compressFitsFiles
+		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+			":processData:Compress FITS images (if enabled).");
+		compressFitsFiles(fitsHeader,fitsFileList);
+		stageStartTime = recordStageEvent("compressFitsFiles",eventDetail,stageStartTime);
 		// deleteDirectory
 		// We now want to delete the original IDL generated directory, to improve the 
 		// speed of findRampData
 		deleteIDLDirectory(directory);
+		stageStartTime = recordStageEvent("deleteIDLDirectory",eventDetail,stageStartTime);
+		// tell any listeners (the MULTRUN) the ramp is ready
+		result = new DataProcessingResult();
+		result.setAcquireRampCommandCallTime(acquireRampCommandCallTime);
+		result.setFileList(fitsFileList);
+		result.setFrameStatistics(frameStatistics);
+		result.setProcessingTime(System.currentTimeMillis()-startTime);
+		if(traceContext != null)
+			traceContext.endSpan("DP:PROCESS",traceStartTime);
+		notifyDataProcessingListeners(result);
 		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			":processData:Finished processing item:"+item);
 		// update thread status
@@ -462,6 +1733,58 @@ public class DataProcessingThread extends Thread
 		currentRunNumber = -1;
 	}
 
+	/**
+	 * Record a data processing stage that started at the specified time, and finishes now, as a DP event.
+	 * @param stage The name of the stage (the method that implements it).
+	 * @param detail The event detail, identifying the ramp being processed.
+	 * @param stageStartTime The start of the stage, as returned by System.nanoTime.
+	 * @return The end of the stage (the start of the next stage), as returned by System.nanoTime.
+	 * @see #processData
+	 * @see ngat.ioi.command.EventRecorder#record
+	 */
+	protected long recordStageEvent(String stage,String detail,long stageStartTime)
+	{
+		long endTime;
+
+		endTime = System.nanoTime();
+		EventRecorder.getInstance().record(EventRecorder.EVENT_TYPE_DATA_PROCESSING,stage,detail,
+						   stageStartTime,endTime);
+		return endTime;
+	}
+
+	/**
+	 * Call dataProcessed on each listener in the listenerList with the specified result. 
+	 * Exceptions thrown by a listener are caught and logged, so one listener cannot stop the others being 
+	 * called or the data processing thread continuing.
+	 * @param result The result of processing a ramp.
+	 * @see #listenerList
+	 * @see DataProcessingListener#dataProcessed
+	 */
+	protected void notifyDataProcessingListeners(DataProcessingResult result)
+	{
+		DataProcessingListener listenerArray[] = null;
+
+		// copy the list, so listeners can remove themselves without deadlocking
+		synchronized(listenerList)
+		{
+			listenerArray = listenerList.toArray(new DataProcessingListener[listenerList.size()]);
+		}
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			":notifyDataProcessingListeners:Notifying "+listenerArray.length+" listeners of "+result+".");
+		for(int i = 0; i < listenerArray.length; i++)
+		{
+			try
+			{
+				listenerArray[i].dataProcessed(result);
+			}
+			catch(Exception e)
+			{
+				ioi.error(this.getClass().getName()+":notifyDataProcessingListeners:Listener "+
+					  listenerArray[i]+" failed:",e);
+			}
+		}
+	}
+
 	/**
 	 * Method to find the directory containing the ramp data which was initiatated at the time specified
 	 * by acquireRampCommandCallTime.
@@ -488,7 +1811,9 @@ public class DataProcessingThread extends Thread
 	 * @exception Exception Thrown if the GetConfigCommand command fails, or returns an error.
 	 * @see #ioi
 	 * @see #status
-	 * @see IOIStatus#getProperty
+	 * @see IOIConfig#getDataDirectoryRoot
+	 * @see IOIConfig#getDataDirectoryUpTheRamp
+	 * @see IOIConfig#getDataDirectoryFowler
 	 */
 	protected String findRampData(int bFS, long acquireRampCommandCallTime) throws Exception
 	{
@@ -508,14 +1833,14 @@ public class DataProcessingThread extends Thread
 		// the directory can appear to have been created before acquireRampCommandCallTime by < 1 second
 		acquireRampCommandCallTime -= (acquireRampCommandCallTime%1000);
 		// get root directory
-		rootDirectoryString = status.getProperty("ioi.data.directory.root");
+		rootDirectoryString = status.getConfig().getDataDirectoryRoot();
 		ioi.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+":findRampData:root directory:"+
 			rootDirectoryString+".");
 		// get the current configuration of the array
 		if(bFS == 0)
-			fsModeDirectoryString = status.getProperty("ioi.data.directory.up_the_ramp");
+			fsModeDirectoryString = status.getConfig().getDataDirectoryUpTheRamp();
 		else if(bFS == 1)
-			fsModeDirectoryString = status.getProperty("ioi.data.directory.fowler");
+			fsModeDirectoryString = status.getConfig().getDataDirectoryFowler();
 		else
 		{
 			throw new Exception(this.getClass().getName()+":findRampData:Illegal bFS value:"+bFS);
@@ -603,33 +1928,25 @@ public class DataProcessingThread extends Thread
 	 * Given a directory, find all the FITS images in it.
 	 * We no longer look at subdirectories. The Teledyne software puts a Result/CDSResult.fits in it's 
 	 * date-stamped directory when running in FOWLER mode, however we don't want to annotate and rename that file.
-	 * This method now checks "ioi.file.fits.rename.read_up_ramp_as_cds". If true, the first two fits images
-	 * and the last two fits images in the read up the ramp directory are kept, and the rest are removed from the
-	 * returned list of images. This allows us to use read up the ramp to create a set of 4 fits files that can be
-	 * reduced as CDS images.
-	 * @param bFS Whether we are in Fowler Sampling mode (bFS == 1) or Read up the Ramp mode (bFS == 0).
+	 * The images are sorted into acquisition order using the read indices in their filenames (ReadOrdering),
+	 * as File.listFiles returns them in no particular order, so the position of an image in the returned list
+	 * is it's read number within the ramp.
 	 * @param directoryString A string containing the root directory to start the search at.
 	 * @return A List, containing File object instances, where each item represents a FITS image
-	 *        within the directory.
+	 *        within the directory, in acquisition order.
 	 * @exception IllegalArgumentException Thrown if directoryString is not a string 
 	 *            representing a valid directory.
 	 * @exception Exception Thrown if listing a directory returns null.
+	 * @see ReadOrdering#sort
+	 * @see #selectReads
 	 */
-	public List<File> findFITSFilesInDirectory(int bFS,String directoryString) throws Exception, IllegalArgumentException
+	public List<File> findFITSFilesInDirectory(String directoryString) throws Exception, IllegalArgumentException
 	{
 		File directoryFile = null;
 		List<File> directoryList = new Vector<File>();
 		File fileList[];
 		List<File> fitsFileList = new Vector<File>();
-		boolean readUpRampAsCDS;
 
-		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+":findFITSFilesInDirectory:Loading config.");
-		if(bFS == 0)
-		{
-			readUpRampAsCDS =  status.getPropertyBoolean("ioi.file.fits.rename.read_up_ramp_as_cds");
-		}
-		else
-			readUpRampAsCDS = false;
 		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
 			   ":findFITSFilesInDirectory:Starting from directory:"+directoryString+".");
 		directoryFile = new File(directoryString);
@@ -685,80 +2002,316 @@ public class DataProcessingThread extends Thread
 				//}
 			}// end for over files in that directory
 		}// end while directories in the list
-		if(readUpRampAsCDS)
+		// sort the reads into acquisition order
+		ReadOrdering.sort(fitsFileList);
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			":findFITSFilesInDirectory:directory:"+directoryString+" contained "+fitsFileList.size()+
+			" FITS images.");
+		return fitsFileList;
+	}
+
+	/**
+	 * Select which reads of a ramp are kept, using the read subset policy for the sampling mode
+	 * ("ioi.file.fits.read.subset.up_the_ramp" or "ioi.file.fits.read.subset.fowler"). The rest are 
+	 * not annotated, renamed or archived (and are deleted with the IDL directory). For instance "fowler:2" 
+	 * (or "ioi.file.fits.rename.read_up_ramp_as_cds") keeps the first two and last two images of a read up 
+	 * the ramp, a set of 4 fits files that can be reduced as CDS images.
+	 * @param bFS Whether we are in Fowler Sampling mode (bFS == 1) or Read up the Ramp mode (bFS == 0).
+	 * @param rampFileList The FITS images of the ramp, in acquisition order.
+	 * @return An array of the read numbers (positions in rampFileList) of the reads to keep, in 
+	 *         ascending order.
+	 * @see ReadSubsetPolicy#getSelectedIndexList
+	 * @see IOIConfig#getFitsReadSubsetUpTheRamp
+	 * @see IOIConfig#getFitsReadSubsetFowler
+	 */
+	protected int[] selectReads(int bFS,List<File> rampFileList)
+	{
+		ReadSubsetPolicy readSubsetPolicy = null;
+		int readIndexList[] = null;
+
+		if(bFS == 0)
+			readSubsetPolicy = status.getConfig().getFitsReadSubsetUpTheRamp();
+		else
+			readSubsetPolicy = status.getConfig().getFitsReadSubsetFowler();
+		readIndexList = readSubsetPolicy.getSelectedIndexList(rampFileList.size());
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			":selectReads:Read subset policy "+readSubsetPolicy+" kept "+
+			readIndexList.length+" of "+rampFileList.size()+" FITS images.");
+		for(int i = 0; i < readIndexList.length; i++)
 		{
-			int originalFitsFileListLength;
+			ioi.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
+				":selectReads:Keeping read "+readIndexList[i]+":"+rampFileList.get(readIndexList[i]));
+		}
+		return readIndexList;
+	}
 
+	/**
+	 * Method to add the FITS headers contained in ioiFitsHeader to the specified List of FITS images.
+	 * @param fitsHeader The saved list of FITS headers to add to the list of FITS files.
+	 * @param fitsImageList A List, containing File object instances, where each item represents a FITS image
+	 *        within the directory or it's subdirectories.
+	 * @exception FitsHeaderException Thrown if the writeFitsHeader method fails.
+	 * @see #ioi
+	 */
+	public void addFitsHeadersToFitsImages(FitsHeader fitsHeader, List fitsImageList) throws FitsHeaderException
+	{
+		File fitsFile = null;
+		boolean fitsFilenameAnnotate;
+
+		fitsFilenameAnnotate = status.getConfig().getFitsAnnotate();
+		if(fitsFilenameAnnotate)
+		{
 			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
-				":findFITSFilesInDirectory:Doing Read up the Ramp as CDS: "+
-				"Keep first two and last two FITS images and remove intermediate files.");
-			originalFitsFileListLength = fitsFileList.size();
-			for(int i = 0; i < 2; i++)
-			{
-				ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
-					":findFITSFilesInDirectory:Doing Read up the Ramp as CDS: Keeping:"+
-					fitsFileList.get(i));
-			}
-			// remove index 2 originalFitsFileListLength-4 times
-			// index 0 and 1 contains fist 2 images
-			// remember list is shuffled up as index 2 is removed, and list.size() reduces.
-			// therefore use originalFitsFileListLength-2.
-			for(int i = 2; i < (originalFitsFileListLength-2); i++)
+				":addFitsHeadersToFitsImages:Adding "+fitsHeader.getKeywordValueCount()+
+				" headers to "+fitsImageList.size()+" FITS images.");
+			for(int fitsImageIndex=0;fitsImageIndex < fitsImageList.size(); fitsImageIndex++)
 			{
-				ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
-					":findFITSFilesInDirectory:Doing Read up the Ramp as CDS: Removing:"+
-					fitsFileList.get(2));
-				fitsFileList.remove(2);
+				fitsFile = (File)(fitsImageList.get(fitsImageIndex));
+				ioi.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
+					":addFitsHeadersToFitsImages:Adding headers to "+fitsFile.toString());
+				fitsHeader.writeFitsHeader(fitsFile.toString());
 			}
-			// So now indexes 2 and 3 in the list should be the last 2 frames.
-			for(int i = 2; i < fitsFileList.size();i++)
+			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				":addFitsHeadersToFitsImages:Finished.");
+		}
+		else
+		{
+			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				":addFitsHeadersToFitsImages:ioi.file.fits.annotate is failse:"+
+				"Not annotating FITS headers.");
+
+		}
+	}
+
+	/**
+	 * Reference pixel correct each FITS image in the list, if "ioi.file.fits.reference.enable" is true.
+	 * Each image is loaded, corrected in place using the referencePixelCorrector, has the correction
+	 * parameters added to it's FITS headers, and is saved back to the same file.
+	 * This is done before the images are flipped, so the readout channels are in their native orientation.
+	 * Windowed images (those smaller than the full array) do not contain the reference pixel border, 
+	 * and are not corrected. The saturated pixels in the final read are counted before it is corrected.
+	 * @param fitsImageList A List, containing File object instances, where each item represents a FITS image
+	 *        within the directory or it's subdirectories.
+	 * @exception Exception Thrown if loading, correcting or saving an image fails.
+	 * @see #referencePixelCorrector
+	 * @see #scratchImageData
+	 * @see ReferencePixelCorrector#correct
+	 * @see #isFullFrame
+	 * @see #countRawSaturatedPixels
+	 */
+	public void correctReferencePixels(List<File> fitsImageList) throws Exception
+	{
+		File fitsFile = null;
+
+		if(status.getConfig().getFitsReferenceEnable() == false)
+		{
+			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				":correctReferencePixels:ioi.file.fits.reference.enable is false:"+
+				"Not correcting FITS images.");
+			return;
+		}
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			":correctReferencePixels:Correcting "+fitsImageList.size()+" FITS images.");
+		for(int fitsImageIndex=0;fitsImageIndex < fitsImageList.size(); fitsImageIndex++)
+		{
+			fitsFile = fitsImageList.get(fitsImageIndex);
+			scratchImageData.load(fitsFile);
+			if(isFullFrame(scratchImageData) == false)
 			{
 				ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
-					":findFITSFilesInDirectory:Doing Read up the Ramp as CDS: Keeping:"+
-					fitsFileList.get(i));
+					":correctReferencePixels:"+fitsFile+" is windowed ("+
+					scratchImageData.getNAxis1()+"x"+scratchImageData.getNAxis2()+
+					"):Not correcting FITS images.");
+				return;
 			}
+			if(fitsImageIndex == (fitsImageList.size()-1))
+				countRawSaturatedPixels(scratchImageData);
+			referencePixelCorrector.correct(scratchImageData);
+			scratchImageData.setHeaderCard("REFCOR",new Boolean(true),
+						       "Reference pixel corrected");
+			scratchImageData.setHeaderCard("REFCHAN",
+						       new Integer(referencePixelCorrector.getLastChannelCount()),
+						       "Reference correction readout channels");
+			scratchImageData.setHeaderCard("REFBORD",new Integer(referencePixelCorrector.getBorder()),
+						       "[pixels] Reference pixel border width");
+			scratchImageData.setHeaderCard("REFODEV",new Boolean(referencePixelCorrector.getOddEven()),
+						       "Odd/even columns corrected separately");
+			scratchImageData.setHeaderCard("REFROWC",
+						       new Boolean(referencePixelCorrector.getRowCorrection()),
+						       "Row correction from reference columns");
+			scratchImageData.setHeaderCard("REFRWIN",new Integer(referencePixelCorrector.getRowWindow()),
+						       "[rows] Row correction half window");
+			scratchImageData.setHeaderCard("REFPED",new Double(referencePixelCorrector.getPedestal()),
+						       "[counts] Pedestal added after correction");
+			saveFitsImage(scratchImageData,fitsFile);
+			ioi.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
+				":correctReferencePixels:Corrected "+fitsFile+" in "+
+				referencePixelCorrector.getLastCorrectionTime()+" ms.");
 		}
 		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
-			":findFITSFilesInDirectory:directory:"+directoryString+" contained "+fitsFileList.size()+
-			" FITS images.");
-		return fitsFileList;
+			":correctReferencePixels:Finished.");
 	}
 
 	/**
-	 * Method to add the FITS headers contained in ioiFitsHeader to the specified List of FITS images.
-	 * @param fitsHeader The saved list of FITS headers to add to the list of FITS files.
-	 * @param fitsImageList A List, containing File object instances, where each item represents a FITS image
-	 *        within the directory or it's subdirectories.
-	 * @exception FitsHeaderException Thrown if the writeFitsHeader method fails.
-	 * @see #ioi
+	 * Apply the calibration products matching the ramp parameters to each FITS image in the list,
+	 * if "ioi.calibration.enable" is true. The calibrationLibrary has already been configured by
+	 * configureCalibration, at startup and on each REDATUM reboot.
+	 * <ul>
+	 * <li>We retrieve the calibration set for the item's calibration key. If it is empty, we return.
+	 * <li>The first read of the ramp is loaded into calibrationFirstReadImageData. If the read subset policy
+	 *     has not kept it, it was not reference pixel corrected by correctReferencePixels, so it is corrected
+	 *     here (in memory only) to match the kept reads.
+	 * <li>Each subsequent kept read is loaded, calibrated relative to the first read using it's read number
+	 *     within the whole ramp (so the right dark plane is used), annotated and saved.
+	 * <li>If the first read was kept, it is calibrated, annotated and saved.
+	 * </ul>
+	 * The calibration products are full frame, so windowed images are not calibrated.
+	 * If correctReferencePixels has not already done so, the saturated pixels in the final kept read
+	 * are counted before it is calibrated.
+	 * @param item The data processing item, used to get the ramp parameters.
+	 * @param rampFileList A List, containing File object instances, where each item represents a FITS image
+	 *        of the ramp, in acquisition order (including reads not kept by the read subset policy).
+	 * @param readIndexList The read numbers (positions in rampFileList) of the kept reads, in ascending order.
+	 * @exception Exception Thrown if retrieving the calibration set, or loading, calibrating or 
+	 *            saving an image fails.
+	 * @see #calibrationLibrary
+	 * @see #configureCalibration
+	 * @see #calibrationFirstReadImageData
+	 * @see #scratchImageData
+	 * @see #addCalibrationHeaders
+	 * @see #isFullFrame
+	 * @see #selectReads
+	 * @see #referencePixelCorrector
+	 * @see #countRawSaturatedPixels
+	 * @see DataProcessingItem#getCalibrationKey
+	 * @see CalibrationLibrary#getCalibrationSet
+	 * @see CalibrationLibrary.CalibrationSet#apply
 	 */
-	public void addFitsHeadersToFitsImages(FitsHeader fitsHeader, List fitsImageList) throws FitsHeaderException
+	public void calibrateFitsFiles(DataProcessingItem item,List<File> rampFileList,int readIndexList[])
+		throws Exception
 	{
+		CalibrationLibrary.CalibrationSet calibrationSet = null;
+		CalibrationKey calibrationKey = null;
 		File fitsFile = null;
-		boolean fitsFilenameAnnotate;
+		long startTime;
 
-		fitsFilenameAnnotate = status.getPropertyBoolean("ioi.file.fits.annotate");
-		if(fitsFilenameAnnotate)
+		if(status.getConfig().getCalibrationEnable() == false)
 		{
 			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
-				":addFitsHeadersToFitsImages:Adding "+fitsHeader.getKeywordValueCount()+
-				" headers to "+fitsImageList.size()+" FITS images.");
-			for(int fitsImageIndex=0;fitsImageIndex < fitsImageList.size(); fitsImageIndex++)
-			{
-				fitsFile = (File)(fitsImageList.get(fitsImageIndex));
-				ioi.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
-					":addFitsHeadersToFitsImages:Adding headers to "+fitsFile.toString());
-				fitsHeader.writeFitsHeader(fitsFile.toString());
-			}
+				":calibrateFitsFiles:ioi.calibration.enable is false:Not calibrating FITS images.");
+			return;
+		}
+		if(readIndexList.length == 0)
+			return;
+		startTime = System.currentTimeMillis();
+		calibrationKey = item.getCalibrationKey();
+		calibrationSet = calibrationLibrary.getCalibrationSet(calibrationKey);
+		if(calibrationSet.isEmpty())
+		{
 			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
-				":addFitsHeadersToFitsImages:Finished.");
+				":calibrateFitsFiles:No calibration products for "+calibrationKey+
+				":Not calibrating FITS images.");
+			return;
 		}
-		else
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			":calibrateFitsFiles:Calibrating "+readIndexList.length+" FITS images using "+calibrationSet+".");
+		calibrationFirstReadImageData.load(rampFileList.get(0));
+		if(isFullFrame(calibrationFirstReadImageData) == false)
 		{
 			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
-				":addFitsHeadersToFitsImages:ioi.file.fits.annotate is failse:"+
-				"Not annotating FITS headers.");
+				":calibrateFitsFiles:"+rampFileList.get(0)+" is windowed ("+
+				calibrationFirstReadImageData.getNAxis1()+"x"+calibrationFirstReadImageData.getNAxis2()+
+				"):Not calibrating FITS images.");
+			return;
+		}
+		// the first read is only reference pixel corrected by correctReferencePixels if it was kept
+		if((readIndexList[0] != 0)&&status.getConfig().getFitsReferenceEnable())
+			referencePixelCorrector.correct(calibrationFirstReadImageData);
+		for(int i = 0; i < readIndexList.length; i++)
+		{
+			if(readIndexList[i] == 0)
+				continue;
+			fitsFile = rampFileList.get(readIndexList[i]);
+			scratchImageData.load(fitsFile);
+			if((i == (readIndexList.length-1))&&(rawSaturatedPixelCount < 0))
+				countRawSaturatedPixels(scratchImageData);
+			calibrationSet.apply(scratchImageData,calibrationFirstReadImageData,readIndexList[i]);
+			addCalibrationHeaders(scratchImageData,calibrationSet);
+			saveFitsImage(scratchImageData,fitsFile);
+		}
+		if(readIndexList[0] == 0)
+		{
+			if((readIndexList.length == 1)&&(rawSaturatedPixelCount < 0))
+				countRawSaturatedPixels(calibrationFirstReadImageData);
+			calibrationSet.apply(calibrationFirstReadImageData,null,0);
+			addCalibrationHeaders(calibrationFirstReadImageData,calibrationSet);
+			saveFitsImage(calibrationFirstReadImageData,rampFileList.get(0));
+		}
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			":calibrateFitsFiles:Finished in "+(System.currentTimeMillis()-startTime)+
+			" ms:cache size:"+calibrationLibrary.getCacheSize()+
+			":cache bytes:"+calibrationLibrary.getCacheByteCount()+
+			":hits:"+calibrationLibrary.getHitCount()+":misses:"+calibrationLibrary.getMissCount()+
+			":reloads:"+calibrationLibrary.getReloadCount()+".");
+	}
+
+	/**
+	 * Return whether a loaded image covers the whole array, rather than a detector window.
+	 * @param image The loaded image.
+	 * @return true if the image is RampTimingModel.DETECTOR_SIZE pixels square.
+	 * @see RampTimingModel#DETECTOR_SIZE
+	 */
+	protected boolean isFullFrame(FitsImageData image)
+	{
+		return (image.getNAxis1() == RampTimingModel.DETECTOR_SIZE)&&
+			(image.getNAxis2() == RampTimingModel.DETECTOR_SIZE);
+	}
+
+	/**
+	 * Save a FITS image loaded and modified by one of the processing stages. If "ioi.file.fits.checksum.enable"
+	 * is true, the DATASUM and CHECKSUM keywords are computed from the data as it is written, and the file 
+	 * is added to checksummedFileSet, so checksumFitsFiles does not have to read it again (a later stage that
+	 * re-writes the image computes them again).
+	 * @param image The image to save.
+	 * @param fitsFile The file to save it to.
+	 * @exception Exception Thrown if summing the data, or writing the file, fails.
+	 * @see #fitsChecksum
+	 * @see #checksummedFileSet
+	 * @see FitsImageData#save(java.io.File,ngat.ioi.FitsChecksum)
+	 */
+	protected void saveFitsImage(FitsImageData image,File fitsFile) throws Exception
+	{
+		if(status.getConfig().getFitsChecksumEnable())
+		{
+			image.save(fitsFile,fitsChecksum);
+			checksummedFileSet.add(fitsFile);
+		}
+		else
+			image.save(fitsFile);
+	}
 
+	/**
+	 * Add FITS headers recording which calibration products were applied to an image
+	 * (CALBPM, CALNLIN and CALDARK, containing the product filename).
+	 * @param image The image to annotate.
+	 * @param calibrationSet The calibration set that was applied.
+	 */
+	protected void addCalibrationHeaders(FitsImageData image,CalibrationLibrary.CalibrationSet calibrationSet)
+	{
+		if(calibrationSet.getBadPixelMask() != null)
+		{
+			image.setHeaderCard("CALBPM",calibrationSet.getBadPixelMask().getFile().getName(),
+					    "Bad pixel mask applied");
+		}
+		if(calibrationSet.getNonlinearity() != null)
+		{
+			image.setHeaderCard("CALNLIN",calibrationSet.getNonlinearity().getFile().getName(),
+					    "Nonlinearity correction applied");
+		}
+		if(calibrationSet.getDark() != null)
+		{
+			image.setHeaderCard("CALDARK",calibrationSet.getDark().getFile().getName(),
+					    "Dark subtracted");
 		}
 	}
 
@@ -766,31 +2319,38 @@ public class DataProcessingThread extends Thread
 	 * Method to flip FITS image data within a list of FITS images.
 	 * The images are flipped if the property "ioi.file.fits.flip" is true. The properties
 	 * "ioi.file.fits.flip.x" and "ioi.file.fits.flip.y" determine the direction of flipping.
+	 * A flipped image is removed from checksummedFileSet, as any checksums computed when it was last saved
+	 * no longer match it, so checksumFitsFiles computes them again.
 	 * @param fitsImageList A List, containing File object instances, where each item represents a FITS image
 	 *        within the directory or it's subdirectories.
 	 * @exception FitsFlipException Thrown if the image flipping method fails.
 	 * @see #ioi
+	 * @see #checksummedFileSet
+	 * @see #checksumFitsFiles
 	 */
-	public void flipFitsFiles(List fitsImageList) throws FitsFlipException
+	public void flipFitsFiles(List<File> fitsImageList) throws FitsFlipException
 	{
 		FitsFlip fitsFlip = null;
 		File fitsFile = null;
+		IOIConfig config = null;
 		boolean fitsFileFlip,flipX,flipY;
 
-		fitsFileFlip = status.getPropertyBoolean("ioi.file.fits.flip");
+		config = status.getConfig();
+		fitsFileFlip = config.getFitsFlip();
 		if(fitsFileFlip)
 		{
 			fitsFlip = ioi.getFitsFlip();
-			flipX = status.getPropertyBoolean("ioi.file.fits.flip.x");
-			flipY = status.getPropertyBoolean("ioi.file.fits.flip.y");
+			flipX = config.getFitsFlipX();
+			flipY = config.getFitsFlipY();
 			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
 				":flipFitsFiles:Flipping "+fitsImageList.size()+" FITS images.");
 			for(int fitsImageIndex=0;fitsImageIndex < fitsImageList.size(); fitsImageIndex++)
 			{
-				fitsFile = (File)(fitsImageList.get(fitsImageIndex));
+				fitsFile = fitsImageList.get(fitsImageIndex);
 				ioi.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
 					":flipFitsFiles:Flipping "+fitsFile.toString()+" in x:"+flipX+" in y:"+flipY);
 				fitsFlip.flip(fitsFile.toString(),flipX,flipY);
+				checksummedFileSet.remove(fitsFile);
 			}
 			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
 				":flipFitsFiles:Finished.");
@@ -830,7 +2390,7 @@ public class DataProcessingThread extends Thread
 
 		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
 			":renameFitsFiles:Renaming "+fitsImageList.size()+" FITS images into standard LT files.");
-		fitsFilenameRename = status.getPropertyBoolean("ioi.file.fits.rename");
+		fitsFilenameRename = status.getConfig().getFitsRename();
 		if(fitsFilenameRename)
 		{
 			for(int fitsImageIndex=0;fitsImageIndex < fitsImageList.size(); fitsImageIndex++)
@@ -851,6 +2411,8 @@ public class DataProcessingThread extends Thread
 					newFitsFile.toString()+".");
 				// update fitsImageList with renamed file.
 				fitsImageList.set(fitsImageIndex,newFitsFile);
+				if(checksummedFileSet.remove(fitsFile))
+					checksummedFileSet.add(newFitsFile);
 			}
 		}
 		else
@@ -861,6 +2423,305 @@ public class DataProcessingThread extends Thread
 		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+":renameFitsFiles:Finished.");
 	}
 
+	/**
+	 * Write the FITS DATASUM and CHECKSUM keywords into each FITS image in the list, 
+	 * if "ioi.file.fits.checksum.enable" is true. This is done after the images have been annotated,
+	 * flipped and renamed, as any later change to the headers or data would invalidate the checksums.
+	 * Images whose checksums were computed as they were last written (by saveFitsImage, in the reference 
+	 * pixel correction or calibration stage, and not flipped since) are skipped, so normally no image is read again.
+	 * The rest are loaded once, the data unit summed from the bytes just read (split over the compute
+	 * thread pool), and only the header blocks are re-written. If the final read is loaded, it is loaded into 
+	 * finalReadImageData, so the quick-look and statistics stages do not have to read it again.
+	 * @param fitsImageList A List, containing File object instances, where each item represents a FITS image
+	 *        from the ramp (already renamed, if renaming is enabled).
+	 * @exception Exception Thrown if loading an image, or writing the checksums, fails.
+	 * @see #fitsChecksum
+	 * @see #checksummedFileSet
+	 * @see #scratchImageData
+	 * @see #finalReadImageData
+	 * @see FitsImageData#writeChecksum
+	 */
+	public void checksumFitsFiles(List<File> fitsImageList) throws Exception
+	{
+		FitsImageData image = null;
+		File fitsFile = null;
+		long startTime;
+		int skipCount = 0;
+		boolean headerOnly;
+
+		if(status.getConfig().getFitsChecksumEnable() == false)
+		{
+			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				":checksumFitsFiles:ioi.file.fits.checksum.enable is false:Not writing checksums.");
+			return;
+		}
+		startTime = System.currentTimeMillis();
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			":checksumFitsFiles:Writing checksums into "+fitsImageList.size()+" FITS images.");
+		for(int fitsImageIndex=0;fitsImageIndex < fitsImageList.size(); fitsImageIndex++)
+		{
+			fitsFile = fitsImageList.get(fitsImageIndex);
+			if(checksummedFileSet.contains(fitsFile))
+			{
+				skipCount++;
+				continue;
+			}
+			if(fitsImageIndex == (fitsImageList.size()-1))
+				image = finalReadImageData;
+			else
+				image = scratchImageData;
+			image.load(fitsFile);
+			headerOnly = image.writeChecksum(fitsChecksum);
+			ioi.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
+				":checksumFitsFiles:Wrote checksums into "+fitsFile+":DATASUM:"+
+				image.getHeaderValue("DATASUM")+":CHECKSUM:"+image.getHeaderValue("CHECKSUM")+
+				":header only:"+headerOnly+":data sum time:"+fitsChecksum.getLastSumTime()+" ms.");
+		}
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			":checksumFitsFiles:Finished in "+(System.currentTimeMillis()-startTime)+" ms:"+skipCount+
+			" FITS images were checksummed when they were last written.");
+	}
+
+	/**
+	 * Create quick-look preview products for the ramp, if "ioi.file.fits.preview.enable" is true.
+	 * <ul>
+	 * <li>The final read of the ramp (the last image in the list) is loaded.
+	 * <li>If "ioi.file.fits.preview.source" is "CDS", and there is more than one image in the list,
+	 *     the first read is also loaded, and the preview is the final read minus the first read.
+	 * <li>The quickLookGenerator bins the image(s) in a single pass, and computes zscale display limits.
+	 * <li>A binned FITS image is written next to the final read, with "_preview.fits" replacing ".fits".
+	 * <li>If "ioi.file.fits.preview.png" is true, an 8 bit PNG is written with "_preview.png" 
+	 *     replacing ".fits".
+	 * </ul>
+	 * @param fitsImageList A List, containing File object instances, where each item represents a FITS image
+	 *        from the ramp (already renamed, if renaming is enabled).
+	 * @exception Exception Thrown if loading the images, or creating the previews, fails.
+	 * @see #quickLookGenerator
+	 * @see #loadRampReads
+	 * @see #finalReadImageData
+	 * @see #firstReadImageData
+	 * @see QuickLookGenerator#bin
+	 * @see QuickLookGenerator#writePreviewFits
+	 * @see QuickLookGenerator#writePreviewPNG
+	 */
+	public void createQuickLookFiles(List<File> fitsImageList) throws Exception
+	{
+		File finalFile = null;
+		String baseFilename = null;
+		long startTime;
+		boolean cds;
+
+		if(status.getConfig().getFitsPreviewEnable() == false)
+		{
+			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				":createQuickLookFiles:ioi.file.fits.preview.enable is false:Not creating previews.");
+			return;
+		}
+		if(fitsImageList.size() == 0)
+		{
+			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				":createQuickLookFiles:No FITS images:Not creating previews.");
+			return;
+		}
+		startTime = System.currentTimeMillis();
+		cds = status.getConfig().getFitsPreviewSourceCDS()&&(fitsImageList.size() > 1);
+		finalFile = fitsImageList.get(fitsImageList.size()-1);
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			":createQuickLookFiles:Creating preview from "+finalFile+" (CDS:"+cds+").");
+		loadRampReads(fitsImageList,cds);
+		if(cds)
+			quickLookGenerator.bin(finalReadImageData,firstReadImageData);
+		else
+			quickLookGenerator.bin(finalReadImageData,null);
+		baseFilename = finalFile.toString();
+		if(baseFilename.endsWith(".fits"))
+			baseFilename = baseFilename.substring(0,baseFilename.length()-5);
+		quickLookGenerator.writePreviewFits(finalReadImageData,cds,new File(baseFilename+"_preview.fits"));
+		if(status.getConfig().getFitsPreviewPNG())
+			quickLookGenerator.writePreviewPNG(new File(baseFilename+"_preview.png"));
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			":createQuickLookFiles:Created preview "+baseFilename+"_preview with limits "+
+			quickLookGenerator.getZMin()+" to "+quickLookGenerator.getZMax()+" in "+
+			(System.currentTimeMillis()-startTime)+" ms.");
+	}
+
+	/**
+	 * Compute data quality statistics for the ramp, if "ioi.file.fits.statistics.enable" is true.
+	 * If "ioi.file.fits.statistics.source" is "CDS", and there is more than one image in the list, the
+	 * statistics are computed on the final read minus the first read, otherwise on the final read.
+	 * Saturation is always judged on the raw final read, as the saturation level is in raw counts: if the final
+	 * read was corrected in place, the count made before it was corrected (rawSaturatedPixelCount) replaces the
+	 * one calculate made on the corrected read. The results are stored in lastFrameStatistics,
+	 * and returned so they can be passed to the data processing listeners.
+	 * @param acquireRampCommandCallTime The timestamp of the ACQUIRERAMP that generated the ramp.
+	 * @param fitsImageList A List, containing File object instances, where each item represents a FITS image
+	 *        from the ramp (already renamed, if renaming is enabled).
+	 * @return The computed statistics, or null if they were not computed.
+	 * @exception Exception Thrown if loading the images, or calculating the statistics, fails.
+	 * @see #frameStatisticsCalculator
+	 * @see #lastFrameStatistics
+	 * @see #rawSaturatedPixelCount
+	 * @see #loadRampReads
+	 * @see FrameStatisticsCalculator#calculate
+	 */
+	public FrameStatistics calculateFrameStatistics(long acquireRampCommandCallTime,List<File> fitsImageList) 
+		throws Exception
+	{
+		FrameStatistics frameStatistics = null;
+		File finalFile = null;
+		long startTime;
+		boolean cds;
+
+		if(status.getConfig().getFitsStatisticsEnable() == false)
+		{
+			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				":calculateFrameStatistics:ioi.file.fits.statistics.enable is false:"+
+				"Not calculating statistics.");
+			return null;
+		}
+		if(fitsImageList.size() == 0)
+		{
+			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				":calculateFrameStatistics:No FITS images:Not calculating statistics.");
+			return null;
+		}
+		startTime = System.currentTimeMillis();
+		cds = status.getConfig().getFitsStatisticsSourceCDS()&&(fitsImageList.size() > 1);
+		finalFile = fitsImageList.get(fitsImageList.size()-1);
+		loadRampReads(fitsImageList,cds);
+		frameStatistics = new FrameStatistics();
+		frameStatistics.setAcquireRampCommandCallTime(acquireRampCommandCallTime);
+		frameStatistics.setFilename(finalFile.toString());
+		if(cds)
+			frameStatisticsCalculator.calculate(finalReadImageData,firstReadImageData,frameStatistics);
+		else
+			frameStatisticsCalculator.calculate(finalReadImageData,null,frameStatistics);
+		if(rawSaturatedPixelCount > -1)
+			frameStatistics.setSaturatedPixelCount(rawSaturatedPixelCount);
+		synchronized(this)
+		{
+			lastFrameStatistics = frameStatistics;
+		}
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			":calculateFrameStatistics:Calculated "+frameStatistics+" in "+
+			(System.currentTimeMillis()-startTime)+" ms.");
+		return frameStatistics;
+	}
+
+	/**
+	 * Count the saturated pixels in the final read, before it is corrected in place by the reference pixel
+	 * correction or calibration stage, and store the count in rawSaturatedPixelCount.
+	 * Nothing is counted if "ioi.file.fits.statistics.enable" is false.
+	 * @param finalRead The raw final read of the ramp.
+	 * @exception Exception Thrown if counting the saturated pixels fails.
+	 * @see #rawSaturatedPixelCount
+	 * @see #frameStatisticsCalculator
+	 * @see FrameStatisticsCalculator#countSaturatedPixels
+	 */
+	protected void countRawSaturatedPixels(FitsImageData finalRead) throws Exception
+	{
+		if(status.getConfig().getFitsStatisticsEnable() == false)
+			return;
+		rawSaturatedPixelCount = frameStatisticsCalculator.countSaturatedPixels(finalRead);
+		ioi.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
+			":countRawSaturatedPixels:"+finalRead.getFile()+" has "+rawSaturatedPixelCount+
+			" saturated pixels before correction.");
+	}
+
+	/**
+	 * Load the final read (and optionally first read) of the ramp into finalReadImageData 
+	 * (and firstReadImageData). Images that are already loaded (by a previous stage of the same item) are
+	 * not re-read. processData invalidates both images at the start of each item, so a rerun of a ramp
+	 * (e.g. by ReprocessRamps) with the same filenames re-reads the pixels.
+	 * @param fitsImageList A List, containing File object instances, where each item represents a FITS image
+	 *        from the ramp. The final read is the last image in the list, the first read the first image.
+	 * @param loadFirstRead Whether to load the first read as well as the final read.
+	 * @exception Exception Thrown if loading an image fails.
+	 * @see #finalReadImageData
+	 * @see #firstReadImageData
+	 */
+	protected void loadRampReads(List<File> fitsImageList,boolean loadFirstRead) throws Exception
+	{
+		File finalFile = null;
+		File firstFile = null;
+
+		finalFile = fitsImageList.get(fitsImageList.size()-1);
+		if(finalFile.equals(finalReadImageData.getFile()) == false)
+			finalReadImageData.load(finalFile);
+		if(loadFirstRead)
+		{
+			firstFile = fitsImageList.get(0);
+			if(firstFile.equals(firstReadImageData.getFile()) == false)
+				firstReadImageData.load(firstFile);
+		}
+	}
+
+	/**
+	 * Rice tile compress the FITS images in the list, using the fpack tiled image compression convention.
+	 * Compression is enabled per exposure type, by looking up the OBSTYPE in the FITS headers and
+	 * checking the "ioi.file.fits.compress.&lt;OBSTYPE&gt;" property. If this property does not exist,
+	 * the images are not compressed. The compressed image is written alongside the original, with
+	 * a ".fz" extension appended. If "ioi.file.fits.checksum.enable" is true, the compressed image is 
+	 * checksummed, and records the original image's checksums in ZHECKSUM and ZDATASUM. 
+	 * If "ioi.file.fits.compress.delete_original" is true, the uncompressed image is then deleted. The compression ratio and throughput are logged for each image.
+	 * @param fitsHeader The FITS headers associated with this exposure, used to determine the OBSTYPE.
+	 * @param fitsImageList A List, containing File object instances, where each item represents a FITS image.
+	 *        If the original images are deleted, the contents of this list are changed to the compressed
+	 *        FITS filenames.
+	 * @exception Exception Thrown if loading, compressing or deleting an image fails.
+	 * @see #fitsTileCompressor
+	 * @see #scratchImageData
+	 * @see FitsTileCompressor#compress
+	 * @see IOIConfig#getFitsCompressEnable
+	 */
+	public void compressFitsFiles(FitsHeader fitsHeader,List<File> fitsImageList) throws Exception
+	{
+		FitsHeaderCardImage cardImage = null;
+		File fitsFile = null;
+		File compressedFitsFile = null;
+		String obsType = null;
+		boolean deleteOriginal;
+
+		cardImage = fitsHeader.get("OBSTYPE");
+		if((cardImage != null)&&(cardImage.getValue() != null))
+			obsType = cardImage.getValue().toString();
+		if(status.getConfig().getFitsCompressEnable(obsType) == false)
+		{
+			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				":compressFitsFiles:Compression not enabled for OBSTYPE "+obsType+
+				":Not compressing FITS images.");
+			return;
+		}
+		deleteOriginal = status.getConfig().getFitsCompressDeleteOriginal();
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			":compressFitsFiles:Compressing "+fitsImageList.size()+" FITS images of OBSTYPE "+obsType+".");
+		for(int fitsImageIndex=0;fitsImageIndex < fitsImageList.size(); fitsImageIndex++)
+		{
+			fitsFile = fitsImageList.get(fitsImageIndex);
+			compressedFitsFile = new File(fitsFile.toString()+".fz");
+			scratchImageData.load(fitsFile);
+			if(status.getConfig().getFitsChecksumEnable())
+				fitsTileCompressor.compress(scratchImageData,compressedFitsFile,fitsChecksum);
+			else
+				fitsTileCompressor.compress(scratchImageData,compressedFitsFile);
+			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				":compressFitsFiles:Compressed "+fitsFile+" to "+compressedFitsFile+
+				":ratio:"+fitsTileCompressor.getLastCompressionRatio()+
+				":throughput:"+fitsTileCompressor.getLastThroughput()+" Mb/s"+
+				":time:"+fitsTileCompressor.getLastCompressionTime()+" ms.");
+			if(deleteOriginal)
+			{
+				if(fitsFile.delete() == false)
+				{
+					throw new Exception(this.getClass().getName()+
+							    ":compressFitsFiles:Deleting "+fitsFile+" failed.");
+				}
+				fitsImageList.set(fitsImageIndex,compressedFitsFile);
+			}
+		}
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+":compressFitsFiles:Finished.");
+	}
+
 	/**
 	 * Delete the original IDL directory, all remaining FITS images within it, and sub-directories.
 	 * @param directoryString A string containing the root directory to delete.
@@ -950,6 +2811,7 @@ public class DataProcessingThread extends Thread
 	 * <li>bFS An integer (but sort of a boolean). bFS ==1 means the data was acquired using Fowler sampling mode, 
 	 *     bFS == 0 means the data was acquired using read up the ramp mode.
 	 * <li>fitsFilename The FitsFilename instance to use when renaming the FITS filename.
+	 * <li>nRead, nGroup and exposureLength The ramp parameters, used to select the calibration products.
 	 * </ul>
 	 */
 	public class DataProcessingItem
@@ -972,13 +2834,58 @@ public class DataProcessingThread extends Thread
 		 * The FitsFilename instance to use when renaming the FITS filename.
 		 */
 		protected FitsFilename fitsFilename;
+		/**
+		 * The number of reads the ramp was configured with.
+		 */
+		protected int nRead = 0;
+		/**
+		 * The number of groups the ramp was configured with (1 in Fowler Sampling mode).
+		 */
+		protected int nGroup = 0;
+		/**
+		 * The requested exposure length of the ramp, in milliseconds.
+		 */
+		protected int exposureLength = 0;
+		/**
+		 * The directory containing the ramp, if it is already known, otherwise null.
+		 */
+		protected String rampDirectory = null;
+		/**
+		 * The priority class of the item (normally the OBSTYPE), used to select it's priority and 
+		 * to key the queue wait statistics.
+		 */
+		protected String priorityClass = PRIORITY_CLASS_DEFAULT;
+		/**
+		 * The priority of the item, higher priority items are processed first.
+		 */
+		protected int priority = 0;
+		/**
+		 * The time the item was created (queued), in milliseconds since the epoch.
+		 */
+		protected long queuedTime = 0;
+		/**
+		 * The value of System.nanoTime when the item was created (queued), used to trace the queue wait.
+		 */
+		protected long queuedNanoTime = 0;
+		/**
+		 * The trace context of the exposure that acquired the ramp, or null if it is not being traced.
+		 */
+		protected TraceContext traceContext = null;
+		/**
+		 * The id of the item in the data processing journal, or -1 if it has not been journalled.
+		 */
+		protected long journalId = -1;
 
 		/**
-		 * Defaulot constructor.
+		 * Defaulot constructor. The queued time is set to the current time.
+		 * @see #queuedTime
+		 * @see #queuedNanoTime
 		 */
 		public DataProcessingItem()
 		{
 			super();
+			queuedTime = System.currentTimeMillis();
+			queuedNanoTime = System.nanoTime();
 		}
 
 		/**
@@ -1082,18 +2989,209 @@ public class DataProcessingThread extends Thread
 			return fitsFilename;
 		}
 
+		/**
+		 * Set the ramp parameters.
+		 * @param nRead The number of reads.
+		 * @param nGroup The number of groups.
+		 * @param exposureLength The requested exposure length, in milliseconds.
+		 * @see #nRead
+		 * @see #nGroup
+		 * @see #exposureLength
+		 */
+		public void setRampParameters(int nRead,int nGroup,int exposureLength)
+		{
+			this.nRead = nRead;
+			this.nGroup = nGroup;
+			this.exposureLength = exposureLength;
+		}
+
+		/**
+		 * Set the priority class and priority of the item.
+		 * @param c The priority class, if null PRIORITY_CLASS_DEFAULT is used.
+		 * @param p The priority.
+		 * @see #priorityClass
+		 * @see #priority
+		 * @see #PRIORITY_CLASS_DEFAULT
+		 */
+		public void setPriority(String c,int p)
+		{
+			if(c != null)
+				priorityClass = c;
+			else
+				priorityClass = PRIORITY_CLASS_DEFAULT;
+			priority = p;
+		}
+
+		/**
+		 * Get the priority class of the item.
+		 * @return The priority class.
+		 * @see #priorityClass
+		 */
+		public String getPriorityClass()
+		{
+			return priorityClass;
+		}
+
+		/**
+		 * Get the priority of the item.
+		 * @return The priority.
+		 * @see #priority
+		 */
+		public int getPriority()
+		{
+			return priority;
+		}
+
+		/**
+		 * Set the time the item was queued. This is used when an item is recovered from the journal.
+		 * @param t A Java timestamp (long number of milliseconds since the epoch).
+		 * @see #queuedTime
+		 */
+		public void setQueuedTime(long t)
+		{
+			queuedTime = t;
+		}
+
+		/**
+		 * Get the time the item was queued.
+		 * @return A Java timestamp (long number of milliseconds since the epoch).
+		 * @see #queuedTime
+		 */
+		public long getQueuedTime()
+		{
+			return queuedTime;
+		}
+
+		/**
+		 * Get the value of System.nanoTime when the item was queued.
+		 * @return The nanoTime.
+		 * @see #queuedNanoTime
+		 */
+		public long getQueuedNanoTime()
+		{
+			return queuedNanoTime;
+		}
+
+		/**
+		 * Set the id of the item in the data processing journal.
+		 * @param id The journal id.
+		 * @see #journalId
+		 */
+		public void setJournalId(long id)
+		{
+			journalId = id;
+		}
+
+		/**
+		 * Get the id of the item in the data processing journal.
+		 * @return The journal id, or -1 if the item has not been journalled.
+		 * @see #journalId
+		 */
+		public long getJournalId()
+		{
+			return journalId;
+		}
+
+		/**
+		 * Set the trace context of the exposure that acquired the ramp.
+		 * @param c The trace context, or null if the exposure is not being traced.
+		 * @see #traceContext
+		 */
+		public void setTraceContext(TraceContext c)
+		{
+			traceContext = c;
+		}
+
+		/**
+		 * Get the trace context of the exposure that acquired the ramp.
+		 * @return The trace context, or null if the exposure is not being traced.
+		 * @see #traceContext
+		 */
+		public TraceContext getTraceContext()
+		{
+			return traceContext;
+		}
+
+		/**
+		 * Get the ordering group of the item. Items in the same group are processed in the order they were
+		 * added. The group is the MULTRUN number, or -1 if the FITS images are not being renamed (all
+		 * such items are processed in the order they were added).
+		 * @return The ordering group.
+		 * @see #fitsFilename
+		 */
+		public int getOrderingGroup()
+		{
+			if(fitsFilename == null)
+				return -1;
+			return fitsFilename.getMultRunNumber();
+		}
+
+		/**
+		 * Get an estimate of the number of FITS images the IDL Socket Server generated for the ramp:
+		 * nRead * nGroup for read up the ramp, and 2 * nRead (the reset and signal reads) for 
+		 * Fowler sampling.
+		 * @return The estimated number of images.
+		 * @see #bFS
+		 * @see #nRead
+		 * @see #nGroup
+		 */
+		public int getEstimatedImageCount()
+		{
+			if(bFS == 1)
+				return 2*nRead;
+			return nRead*Math.max(nGroup,1);
+		}
+
+		/**
+		 * Set the directory containing the ramp.
+		 * @param s The directory, or null if it has to be found using findRampData.
+		 * @see #rampDirectory
+		 */
+		public void setRampDirectory(String s)
+		{
+			rampDirectory = s;
+		}
+
+		/**
+		 * Get the directory containing the ramp.
+		 * @return The directory, or null if it has to be found using findRampData.
+		 * @see #rampDirectory
+		 */
+		public String getRampDirectory()
+		{
+			return rampDirectory;
+		}
+
+		/**
+		 * Get a calibration key built from the ramp parameters.
+		 * @return A new CalibrationKey.
+		 * @see #bFS
+		 * @see #nRead
+		 * @see #nGroup
+		 * @see #exposureLength
+		 */
+		public CalibrationKey getCalibrationKey()
+		{
+			return new CalibrationKey(bFS,nRead,nGroup,exposureLength);
+		}
+
 		/**
 		 * Return a string describing the data processing item.
 		 * @see #acquireRampCommandCallTime
 		 * @see #bFS
 		 * @see #fitsHeader
 		 * @see #fitsFilename
+		 * @see #nRead
+		 * @see #nGroup
+		 * @see #exposureLength
 		 */
 		public String toString()
 		{
 			return new String(this.getClass().getName()+":Acquire Ramp Call Time:"+
-					  acquireRampCommandCallTime+":bFS:"+bFS+
-					  ":FitsHeader:"+fitsHeader+":fits filename:"+fitsFilename);
+					  acquireRampCommandCallTime+":bFS:"+bFS+":nRead:"+nRead+":nGroup:"+nGroup+
+					  ":exposure length:"+exposureLength+
+					  ":priority class:"+priorityClass+":priority:"+priority+
+					  ":ramp directory:"+rampDirectory+":FitsHeader:"+fitsHeader+":fits filename:"+fitsFilename);
 		}
 	}
 
@@ -0,0 +1,410 @@
+// DetectorStateMirror.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.util.*;
+
+/**
+ * This class mirrors the configuration of the IDL Socket Server, as last acknowledged by it.
+ * For each IDL configuration command (SetFSMode, SetFSParam, SetRampParam, SetWindowMode, SetWinParams,
+ * SetIdleModeOption, SetGain and SetDetector) the parameters of the last successful send are retained.
+ * Before sending one of these commands, callers ask the mirror whether the target state is already current,
+ * and if it is the send (and it's round trip to the IDL Socket Server) is skipped.
+ * The mirror relies on the IO:I being the only client changing the IDL Socket Server configuration.
+ * Every parameter starts unknown, and the whole mirror is invalidated (all parameters made unknown)
+ * when a command to the IDL Socket Server fails, when the Sidecar is initialised, and when the connection
+ * to the IDL Socket Server is (re)opened, as the server state is then uncertain.
+ * The mirror can be disabled, in which case nothing is ever current and nothing is skipped.
+ * @see IOI#getDetectorStateMirror
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class DetectorStateMirror
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * Value returned by getFSMode when the sampling mode is not known.
+	 */
+	public final static int FS_MODE_UNKNOWN = -1;
+	/**
+	 * Whether the mirror is in use.
+	 */
+	protected boolean enable = true;
+	/**
+	 * The last acknowledged SetFSMode mode, or FS_MODE_UNKNOWN.
+	 */
+	protected int fsMode = FS_MODE_UNKNOWN;
+	/**
+	 * The last acknowledged SetFSParam parameters (nReset, nRead, nGroup, exposure length, nRamps),
+	 * or null if unknown.
+	 */
+	protected double fsParam[] = null;
+	/**
+	 * The last acknowledged SetRampParam parameters (nReset, nRead, nGroup, nDrop, nRamps), or null if unknown.
+	 */
+	protected int rampParam[] = null;
+	/**
+	 * The last acknowledged SetWindowMode mode, in a one element array, or null if unknown.
+	 */
+	protected int windowMode[] = null;
+	/**
+	 * The last acknowledged SetWinParams parameters (xStart, xStop, yStart, yStop), or null if unknown.
+	 */
+	protected int winParams[] = null;
+	/**
+	 * The last acknowledged SetIdleModeOption mode, in a one element array, or null if unknown.
+	 */
+	protected int idleMode[] = null;
+	/**
+	 * The last acknowledged SetGain gain, in a one element array, or null if unknown.
+	 */
+	protected int gain[] = null;
+	/**
+	 * The last acknowledged SetDetector parameters (mux type, number of outputs), or null if unknown.
+	 */
+	protected int detector[] = null;
+	/**
+	 * The number of configuration commands recorded as sent.
+	 */
+	protected int sentCount = 0;
+	/**
+	 * The number of IDL Socket Server round trips skipped because the target state was already current.
+	 */
+	protected int savedCount = 0;
+	/**
+	 * The number of times the mirror has been invalidated.
+	 */
+	protected int invalidationCount = 0;
+
+	/**
+	 * Default constructor.
+	 */
+	public DetectorStateMirror()
+	{
+		super();
+	}
+
+	/**
+	 * Set whether the mirror is in use. Changing this invalidates the mirror.
+	 * @param b true to skip redundant sends, false to always send.
+	 * @see #enable
+	 * @see #invalidate
+	 */
+	public synchronized void setEnable(boolean b)
+	{
+		enable = b;
+		invalidate();
+	}
+
+	/**
+	 * Make every parameter unknown. This should be called whenever the IDL Socket Server state is uncertain:
+	 * when a command to it fails, when the Sidecar is initialised, or when the connection is (re)opened.
+	 * @see #invalidationCount
+	 */
+	public synchronized void invalidate()
+	{
+		fsMode = FS_MODE_UNKNOWN;
+		fsParam = null;
+		rampParam = null;
+		windowMode = null;
+		winParams = null;
+		idleMode = null;
+		gain = null;
+		detector = null;
+		invalidationCount++;
+	}
+
+	/**
+	 * Get the sampling mode the IDL Socket Server was last configured with.
+	 * If it is known, the caller does not need to query it with GetConfig, and that round trip is counted
+	 * as saved.
+	 * @return The mode (SetFSModeCommand.MODE_UP_THE_RAMP or SetFSModeCommand.MODE_FOWLER), or
+	 *         FS_MODE_UNKNOWN if it is not known or the mirror is disabled.
+	 * @see #fsMode
+	 * @see #savedCount
+	 */
+	public synchronized int getFSMode()
+	{
+		if(enable && (fsMode != FS_MODE_UNKNOWN))
+		{
+			savedCount++;
+			return fsMode;
+		}
+		return FS_MODE_UNKNOWN;
+	}
+
+	/**
+	 * Determine whether a SetFSMode with the specified mode can be skipped.
+	 * @param mode The mode to set.
+	 * @return true if the IDL Socket Server is already in this mode (the skip is counted as saved).
+	 * @see #fsMode
+	 */
+	public synchronized boolean isFSModeCurrent(int mode)
+	{
+		return countSaved(enable && (fsMode != FS_MODE_UNKNOWN) && (fsMode == mode));
+	}
+
+	/**
+	 * Record the sampling mode, after a successful SetFSMode, or after it has been read with GetConfig.
+	 * @param mode The mode.
+	 * @param sent Whether a SetFSMode was sent (true), or the mode was just read back (false).
+	 * @see #fsMode
+	 */
+	public synchronized void recordFSMode(int mode,boolean sent)
+	{
+		fsMode = mode;
+		if(sent)
+			sentCount++;
+	}
+
+	/**
+	 * Determine whether a SetFSParam with the specified parameters can be skipped.
+	 * @param nReset The number of resets.
+	 * @param nRead The number of reads.
+	 * @param nGroup The number of groups.
+	 * @param exposureLength The exposure length, in seconds.
+	 * @param nRamps The number of ramps.
+	 * @return true if the parameters are already current (the skip is counted as saved).
+	 * @see #fsParam
+	 */
+	public synchronized boolean isFSParamCurrent(int nReset,int nRead,int nGroup,double exposureLength,
+						     int nRamps)
+	{
+		return countSaved(enable && (fsParam != null) && (fsParam[0] == nReset) && (fsParam[1] == nRead) &&
+				  (fsParam[2] == nGroup) && (fsParam[3] == exposureLength) && (fsParam[4] == nRamps));
+	}
+
+	/**
+	 * Record the parameters of a successful SetFSParam.
+	 * @param nReset The number of resets.
+	 * @param nRead The number of reads.
+	 * @param nGroup The number of groups.
+	 * @param exposureLength The exposure length, in seconds.
+	 * @param nRamps The number of ramps.
+	 * @see #fsParam
+	 */
+	public synchronized void recordFSParam(int nReset,int nRead,int nGroup,double exposureLength,int nRamps)
+	{
+		fsParam = new double[] {nReset,nRead,nGroup,exposureLength,nRamps};
+		sentCount++;
+	}
+
+	/**
+	 * Determine whether a SetRampParam with the specified parameters can be skipped.
+	 * @param nReset The number of resets.
+	 * @param nRead The number of reads per group.
+	 * @param nGroup The number of groups.
+	 * @param nDrop The number of drops per group.
+	 * @param nRamps The number of ramps.
+	 * @return true if the parameters are already current (the skip is counted as saved).
+	 * @see #rampParam
+	 */
+	public synchronized boolean isRampParamCurrent(int nReset,int nRead,int nGroup,int nDrop,int nRamps)
+	{
+		return countSaved(matches(rampParam,new int[] {nReset,nRead,nGroup,nDrop,nRamps}));
+	}
+
+	/**
+	 * Record the parameters of a successful SetRampParam.
+	 * @param nReset The number of resets.
+	 * @param nRead The number of reads per group.
+	 * @param nGroup The number of groups.
+	 * @param nDrop The number of drops per group.
+	 * @param nRamps The number of ramps.
+	 * @see #rampParam
+	 */
+	public synchronized void recordRampParam(int nReset,int nRead,int nGroup,int nDrop,int nRamps)
+	{
+		rampParam = new int[] {nReset,nRead,nGroup,nDrop,nRamps};
+		sentCount++;
+	}
+
+	/**
+	 * Determine whether a SetWindowMode with the specified mode can be skipped.
+	 * @param mode The window mode.
+	 * @return true if the mode is already current (the skip is counted as saved).
+	 * @see #windowMode
+	 */
+	public synchronized boolean isWindowModeCurrent(int mode)
+	{
+		return countSaved(matches(windowMode,new int[] {mode}));
+	}
+
+	/**
+	 * Record the mode of a successful SetWindowMode.
+	 * @param mode The window mode.
+	 * @see #windowMode
+	 */
+	public synchronized void recordWindowMode(int mode)
+	{
+		windowMode = new int[] {mode};
+		sentCount++;
+	}
+
+	/**
+	 * Determine whether a SetWinParams with the specified window can be skipped.
+	 * @param xStart The window start X position.
+	 * @param xStop The window end X position.
+	 * @param yStart The window start Y position.
+	 * @param yStop The window end Y position.
+	 * @return true if the window is already current (the skip is counted as saved).
+	 * @see #winParams
+	 */
+	public synchronized boolean isWinParamsCurrent(int xStart,int xStop,int yStart,int yStop)
+	{
+		return countSaved(matches(winParams,new int[] {xStart,xStop,yStart,yStop}));
+	}
+
+	/**
+	 * Record the window of a successful SetWinParams.
+	 * @param xStart The window start X position.
+	 * @param xStop The window end X position.
+	 * @param yStart The window start Y position.
+	 * @param yStop The window end Y position.
+	 * @see #winParams
+	 */
+	public synchronized void recordWinParams(int xStart,int xStop,int yStart,int yStop)
+	{
+		winParams = new int[] {xStart,xStop,yStart,yStop};
+		sentCount++;
+	}
+
+	/**
+	 * Determine whether a SetIdleModeOption with the specified mode can be skipped.
+	 * @param mode The idle mode.
+	 * @return true if the mode is already current (the skip is counted as saved).
+	 * @see #idleMode
+	 */
+	public synchronized boolean isIdleModeCurrent(int mode)
+	{
+		return countSaved(matches(idleMode,new int[] {mode}));
+	}
+
+	/**
+	 * Record the mode of a successful SetIdleModeOption.
+	 * @param mode The idle mode.
+	 * @see #idleMode
+	 */
+	public synchronized void recordIdleMode(int mode)
+	{
+		idleMode = new int[] {mode};
+		sentCount++;
+	}
+
+	/**
+	 * Determine whether a SetGain with the specified gain can be skipped.
+	 * @param g The gain.
+	 * @return true if the gain is already current (the skip is counted as saved).
+	 * @see #gain
+	 */
+	public synchronized boolean isGainCurrent(int g)
+	{
+		return countSaved(matches(gain,new int[] {g}));
+	}
+
+	/**
+	 * Record the gain of a successful SetGain.
+	 * @param g The gain.
+	 * @see #gain
+	 */
+	public synchronized void recordGain(int g)
+	{
+		gain = new int[] {g};
+		sentCount++;
+	}
+
+	/**
+	 * Determine whether a SetDetector with the specified parameters can be skipped.
+	 * @param muxType The multiplexer type.
+	 * @param nOutputs The number of outputs.
+	 * @return true if the detector configuration is already current (the skip is counted as saved).
+	 * @see #detector
+	 */
+	public synchronized boolean isDetectorCurrent(int muxType,int nOutputs)
+	{
+		return countSaved(matches(detector,new int[] {muxType,nOutputs}));
+	}
+
+	/**
+	 * Record the parameters of a successful SetDetector.
+	 * @param muxType The multiplexer type.
+	 * @param nOutputs The number of outputs.
+	 * @see #detector
+	 */
+	public synchronized void recordDetector(int muxType,int nOutputs)
+	{
+		detector = new int[] {muxType,nOutputs};
+		sentCount++;
+	}
+
+	/**
+	 * Get the number of configuration commands recorded as sent.
+	 * @return The number of commands.
+	 * @see #sentCount
+	 */
+	public synchronized int getSentCount()
+	{
+		return sentCount;
+	}
+
+	/**
+	 * Get the number of IDL Socket Server round trips saved.
+	 * @return The number of skipped commands.
+	 * @see #savedCount
+	 */
+	public synchronized int getSavedCount()
+	{
+		return savedCount;
+	}
+
+	/**
+	 * Get the number of times the mirror has been invalidated.
+	 * @return The number of invalidations.
+	 * @see #invalidationCount
+	 */
+	public synchronized int getInvalidationCount()
+	{
+		return invalidationCount;
+	}
+
+	/**
+	 * Determine whether a mirrored parameter set is known and equal to the target, and the mirror is enabled.
+	 * @param current The mirrored parameters, or null if unknown.
+	 * @param target The parameters about to be sent.
+	 * @return true if the target state is already current.
+	 * @see #enable
+	 */
+	protected boolean matches(int current[],int target[])
+	{
+		return enable && (current != null) && Arrays.equals(current,target);
+	}
+
+	/**
+	 * Count a saved round trip, if the target state was current.
+	 * @param current Whether the target state was current.
+	 * @return current.
+	 * @see #savedCount
+	 */
+	protected boolean countSaved(boolean current)
+	{
+		if(current)
+			savedCount++;
+		return current;
+	}
+
+	/**
+	 * Return a string describing the mirror.
+	 */
+	public synchronized String toString()
+	{
+		return new String(this.getClass().getName()+":enable:"+enable+":fsMode:"+fsMode+
+				  ":rampParam:"+Arrays.toString(rampParam)+":fsParam:"+Arrays.toString(fsParam)+
+				  ":windowMode:"+Arrays.toString(windowMode)+":winParams:"+Arrays.toString(winParams)+
+				  ":idleMode:"+Arrays.toString(idleMode)+":gain:"+Arrays.toString(gain)+
+				  ":detector:"+Arrays.toString(detector)+":sent:"+sentCount+":saved:"+savedCount);
+	}
+}
@@ -42,6 +42,16 @@ public class EXPOSEImplementation extends FITSImplementation implements JMSComma
 		return acknowledge;
 	}
 
+	/**
+	 * EXPOSE commands drive the detector, so cannot be run until controller startup has completed.
+	 * @return ControllerStartup.REQUIRE_DETECTOR.
+	 * @see ControllerStartup#REQUIRE_DETECTOR
+	 */
+	public int getStartupRequirement()
+	{
+		return ControllerStartup.REQUIRE_DETECTOR;
+	}
+
 	/**
 	 * This method is a generic implementation for the EXPOSE command, that does nothing.
 	 */
@@ -135,7 +145,11 @@ public class EXPOSEImplementation extends FITSImplementation implements JMSComma
 		ack.setTimeToComplete(timeToComplete+serverConnectionThread.getDefaultAcknowledgeTime());
 		try
 		{
-			serverConnectionThread.sendAcknowledge(ack);
+			// MULTRUN_DP_ACKs are sent from the data processing thread, don't interleave them with this ACK
+			synchronized(serverConnectionThread)
+			{
+				serverConnectionThread.sendAcknowledge(ack);
+			}
 		}
 		catch(IOException e)
 		{
@@ -147,5 +161,59 @@ public class EXPOSEImplementation extends FITSImplementation implements JMSComma
 		}
 		return true;
 	}
-}
 
+	/**
+	 * Wait until the backlog of ramps waiting to be processed by the data processing thread is within it's
+	 * limits, so acquiring another ramp will not fill the disk (or leave the data processing too far behind).
+	 * Whilst waiting, an ACK is sent every second to keep the client connection open, and the abort flag
+	 * is tested. The time spent waiting is added to the data processing thread's backlog wait statistics.
+	 * @param command The command we are implementing.
+	 * @param done The COMMAND_DONE command object that will be returned to the client. We set
+	 *       a sensible error message in this object if this method fails.
+	 * @return We return true if the backlog is within it's limits, and false if sending an ACK failed, or
+	 *         the command was aborted.
+	 * @see #sendACK
+	 * @see CommandImplementation#testAbort
+	 * @see DataProcessingThread#isBacklogFull
+	 * @see DataProcessingThread#addBacklogWait
+	 */
+	protected boolean waitForDataProcessingBacklog(COMMAND command,COMMAND_DONE done)
+	{
+		DataProcessingThread dataProcessingThread = null;
+		long startTime;
+
+		dataProcessingThread = ioi.getDataProcessingThread();
+		if(dataProcessingThread.isBacklogFull() == false)
+			return true;
+		startTime = System.currentTimeMillis();
+		ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
+			":waitForDataProcessingBacklog:Data processing backlog full ("+
+			dataProcessingThread.getListSize()+" ramps, "+dataProcessingThread.getBacklogByteCount()+
+			" bytes):Waiting.");
+		try
+		{
+			while(dataProcessingThread.isBacklogFull())
+			{
+				if(sendACK(command,done,1000) == false)
+					return false;
+				if(testAbort(command,done) == true)
+					return false;
+				try
+				{
+					Thread.sleep(1000);
+				}
+				catch(InterruptedException e)
+				{
+				}
+			}
+		}
+		finally
+		{
+			dataProcessingThread.addBacklogWait(System.currentTimeMillis()-startTime);
+		}
+		ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
+			":waitForDataProcessingBacklog:Waited "+(System.currentTimeMillis()-startTime)+
+			" ms for the data processing backlog.");
+		return true;
+	}
+}
@@ -6,6 +6,7 @@ import java.lang.*;
 import java.io.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import ngat.fits.*;
 import ngat.ioi.command.*;
@@ -30,12 +31,6 @@ public class FITSImplementation extends HardwareImplementation implements JMSCom
 	 * Revision Control System id string, showing the version of the Class.
 	 */
 	public final static String RCSID = new String("$Id$");
-	/**
-	 * Internal constant used when the order number offset defined in the property
-	 * 'ioi.get_fits.order_number_offset' is not found or is not a valid number.
-	 * @see #getFitsHeadersFromISS
-	 */
-	private final static int DEFAULT_ORDER_NUMBER_OFFSET = 255;
 	/**
 	 * A reference to the IOIStatus class instance that holds status information for IO:I.
 	 */
@@ -107,7 +102,7 @@ public class FITSImplementation extends HardwareImplementation implements JMSCom
 	 * 	error occurs the relevant fields are filled in with the error.
 	 * @return The routine returns a boolean to indicate whether the operation was completed
 	 *  	successfully.
-	 * @see IOIStatus#getPropertyInteger
+	 * @see IOIConfig#getMirrorFoldPosition
 	 * @see IOI#sendISSCommand
 	 */
 	public boolean moveFold(COMMAND command,COMMAND_DONE done)
@@ -117,19 +112,7 @@ public class FITSImplementation extends HardwareImplementation implements JMSCom
 		int mirrorFoldPosition = 0;
 
 		moveFold = new MOVE_FOLD(command.getId());
-		try
-		{
-			mirrorFoldPosition = status.getPropertyInteger("ioi.mirror_fold_position");
-		}
-		catch(NumberFormatException e)
-		{
-			mirrorFoldPosition = 0;
-			ioi.error(this.getClass().getName()+":moveFold:"+command.getClass().getName(),e);
-			done.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+300);
-			done.setErrorString("moveFold:"+e);
-			done.setSuccessful(false);
-			return false;
-		}
+		mirrorFoldPosition = status.getConfig().getMirrorFoldPosition();
 		moveFold.setMirror_position(mirrorFoldPosition);
 		instToISSDone = ioi.sendISSCommand(moveFold,serverConnectionThread);
 		if(instToISSDone.getSuccessful() == false)
@@ -187,7 +170,10 @@ public class FITSImplementation extends HardwareImplementation implements JMSCom
 	 * FILTER1, FILTERI1, FILTER2, FILTERI2, CONFIGID, CONFNAME, 
 	 * PRESCAN, POSTSCAN, GAIN, READNOIS, EPERDN, CCDXIMSI, CCDYIMSI, CCDSCALE, CCDRDOUT,
 	 * CCDSTEMP, CCDATEMP, CCDWMODE, CALBEFOR, CALAFTER, INSTDFOC, FILTDFOC, MYDFOCUS.
-	 * Windowing keywords CCDWXOFF, CCDWYOFF, CCDWXSIZ, CCDWYSIZ are not implemented at the moment.
+	 * The windowing keywords CCDWMODE, CCDXIMSI, CCDYIMSI, CCDWXOFF, CCDWYOFF, CCDWXSIZ, CCDWYSIZ are
+	 * set from the detector window selected by the last CONFIG (in zero based detector pixels, before
+	 * any flipping), or left at their full frame defaults if no window is in use. They are only set if they
+	 * are in the FITS defaults file.
 	 * Note the DATE, DATE-OBS, UTSTART and MJD keywords are given the value of the current
 	 * system time, this value is updated to the exposure start time when the image has been exposed. </p>
 	 * @param command The command being implemented that made this call to the ISS. This is used
@@ -204,11 +190,13 @@ public class FITSImplementation extends HardwareImplementation implements JMSCom
 	 * @see #status
 	 * @see #ioiFitsHeader
 	 * @see #ioiFitsHeaderDefaults
-	 * @see IOIStatus#getPropertyBoolean
-	 * @see IOIStatus#getPropertyDouble
+	 * @see IOIConfig#getFocusOffset
+	 * @see IOIConfig#getTempControlEnable
 	 * @see IOIStatus#getBSSFocusOffset
+	 * @see IOIStatus#getDetectorWindow
 	 * @see ngat.fits.FitsHeaderDefaults#getCardImageList
 	 * @see ngat.supircam.temperaturecontroller.TemperatureController#temperatureGet
+	 * @see ngat.ioi.command.EventRecorder#record
 	 */
 	public boolean setFitsHeaders(COMMAND command,COMMAND_DONE done,String obsTypeString,
 				      int exposureTime,int exposureCount)
@@ -220,8 +208,10 @@ public class FITSImplementation extends HardwareImplementation implements JMSCom
 		String filterWheelIdString = null;
 		Vector defaultFitsHeaderList = null;
 		int iValue,filterWheelPosition,xBin,yBin,windowFlags,preScan, postScan;
+		int window[] = null;
 		double doubleValue = 0.0;
 		double instDFoc,filtDFoc,myDFoc,bssFoc;
+		long startNanoTime;
 		boolean filterWheelEnable,tempControlEnable;
 		char tempInput;
 
@@ -231,7 +221,7 @@ public class FITSImplementation extends HardwareImplementation implements JMSCom
 		try
 		{
 			// instrument defocus
-			instDFoc = status.getPropertyDouble("ioi.focus.offset");
+			instDFoc = status.getConfig().getFocusOffset();
 			// currently set the filter dfocus to zero.
 			filtDFoc = 0.0;
 			// defocus settings
@@ -323,25 +313,31 @@ public class FITSImplementation extends HardwareImplementation implements JMSCom
 			cardImage = ioiFitsHeader.get("CONFNAME");
 			cardImage.setValue(status.getConfigName());
 		// CCDSTEMP
-			doubleValue = status.getPropertyDouble("ioi.temp_control.config.target_temperature.0");
+			doubleValue = status.getConfig().getTempControlTargetTemperature();
 			ioi.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
 				":setFitsHeaders:CCDSTEMP = "+doubleValue+".");
 			cardImage = ioiFitsHeader.get("CCDSTEMP");
 			cardImage.setValue(new Integer((int)doubleValue));
 			// check whether temperature control is enabled
-			tempControlEnable = status.getPropertyBoolean("ioi.temp_control.config.enable");
+			tempControlEnable = status.getConfig().getTempControlEnable();
 			if(tempControlEnable)
 			{
-				tempInput = status.getPropertyChar("ioi.temp_control.temperature_input."+0);
+				tempInput = status.getConfig().getTempControlDetectorInput();
+				startNanoTime = System.nanoTime();
 				actualTemperature = tempControl.temperatureGet(tempInput);
+				EventRecorder.getInstance().record(EventRecorder.EVENT_TYPE_TEMPERATURE,"temperatureGet",
+								   tempInput+":"+actualTemperature,startNanoTime);
 		// CCDATEMP
 				ioi.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
 					":setFitsHeaders:CCDATEMP = "+actualTemperature+".");
 				cardImage = ioiFitsHeader.get("CCDATEMP");
 				cardImage.setValue(new Integer((int)(actualTemperature)));
 				// sidecar temperature
-				tempInput = status.getPropertyChar("ioi.temp_control.temperature_input."+1);
+				tempInput = status.getConfig().getTempControlSidecarInput();
+				startNanoTime = System.nanoTime();
 				actualTemperature = tempControl.temperatureGet(tempInput);
+				EventRecorder.getInstance().record(EventRecorder.EVENT_TYPE_TEMPERATURE,"temperatureGet",
+								   tempInput+":"+actualTemperature,startNanoTime);
 		// SIDETEMP
 				ioi.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
 					":setFitsHeaders:SIDETEMP = "+actualTemperature+".");
@@ -349,10 +345,41 @@ public class FITSImplementation extends HardwareImplementation implements JMSCom
 				cardImage.setValue(new Integer((int)(actualTemperature)));
 			}
 		// windowing keywords
+			window = status.getDetectorWindow();
+			if(window != null)
+			{
+				ioi.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
+					":setFitsHeaders:Window = ("+window[0]+","+window[2]+") to ("+
+					window[1]+","+window[3]+").");
 		// CCDWMODE
-			//windowFlags = ccd.getSetupWindowFlags();
-			//cardImage = ioiFitsHeader.get("CCDWMODE");
-			//cardImage.setValue(new Boolean((boolean)(windowFlags>0)));
+				cardImage = ioiFitsHeader.get("CCDWMODE");
+				if(cardImage != null)
+					cardImage.setValue(new Boolean(true));
+		// CCDXIMSI
+				cardImage = ioiFitsHeader.get("CCDXIMSI");
+				if(cardImage != null)
+					cardImage.setValue(new Integer(window[1]-window[0]+1));
+		// CCDYIMSI
+				cardImage = ioiFitsHeader.get("CCDYIMSI");
+				if(cardImage != null)
+					cardImage.setValue(new Integer(window[3]-window[2]+1));
+		// CCDWXOFF
+				cardImage = ioiFitsHeader.get("CCDWXOFF");
+				if(cardImage != null)
+					cardImage.setValue(new Integer(window[0]));
+		// CCDWYOFF
+				cardImage = ioiFitsHeader.get("CCDWYOFF");
+				if(cardImage != null)
+					cardImage.setValue(new Integer(window[2]));
+		// CCDWXSIZ
+				cardImage = ioiFitsHeader.get("CCDWXSIZ");
+				if(cardImage != null)
+					cardImage.setValue(new Integer(window[1]-window[0]+1));
+		// CCDWYSIZ
+				cardImage = ioiFitsHeader.get("CCDWYSIZ");
+				if(cardImage != null)
+					cardImage.setValue(new Integer(window[3]-window[2]+1));
+			}
 		// CALBEFOR
 			//ioi.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+":setFitsHeaders:CALBEFOR.");
 			//cardImage = ioiFitsHeader.get("CALBEFOR");
@@ -400,7 +427,8 @@ public class FITSImplementation extends HardwareImplementation implements JMSCom
 
 	/**
 	 * This routine tries to get a set of FITS headers for an exposure, by issuing a GET_FITS command
-	 * to the ISS. 
+	 * to the ISS. If the FITS header source cache holds all the ISS keywords, the command is not sent and the
+	 * cached keywords are used, otherwise the returned keywords are merged with the cache.
 	 * If an error occurs the done objects field's can be set to record the error.
 	 * @param command The command being implemented that made this call to the ISS. This is used
 	 * 	for error logging.
@@ -409,49 +437,57 @@ public class FITSImplementation extends HardwareImplementation implements JMSCom
 	 * @return The routine returns a boolean to indicate whether the operation was completed
 	 *  	successfully.
 	 * @see #ioiFitsHeader
-	 * @see #DEFAULT_ORDER_NUMBER_OFFSET
 	 * @see IOI#sendISSCommand
 	 * @see IOI#getStatus
-	 * @see IOIStatus#getPropertyInteger
+	 * @see IOIConfig#getISSOrderNumberOffset
+	 * @see IOI#getFitsHeaderSourceCache
+	 * @see FitsHeaderSourceCache#isFetchNeeded
+	 * @see FitsHeaderSourceCache#update
+	 * @see FitsHeaderSourceCache#getCachedKeywordValueList
 	 */
 	public boolean getFitsHeadersFromISS(COMMAND command,COMMAND_DONE done)
 	{
+		FitsHeaderSourceCache fitsHeaderSourceCache = null;
 		INST_TO_ISS_DONE instToISSDone = null;
 		ngat.message.ISS_INST.GET_FITS getFits = null;
 		ngat.message.ISS_INST.GET_FITS_DONE getFitsDone = null;
 		FitsHeaderCardImage cardImage = null;
 		Object value = null;
 		Vector list = null;
+		long fetchStartTime;
 		int orderNumberOffset;
 
 		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			":getFitsHeadersFromISS:Started.");
-		getFits = new ngat.message.ISS_INST.GET_FITS(command.getId());
-		instToISSDone = ioi.sendISSCommand(getFits,serverConnectionThread);
-		if(instToISSDone.getSuccessful() == false)
+		fitsHeaderSourceCache = ioi.getFitsHeaderSourceCache();
+		if(fitsHeaderSourceCache.isFetchNeeded(FitsHeaderSourceCache.SOURCE_ISS))
 		{
-			ioi.error(this.getClass().getName()+":getFitsHeadersFromISS:"+
-				     command.getClass().getName()+":"+instToISSDone.getErrorString());
-			done.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+302);
-			done.setErrorString(instToISSDone.getErrorString());
-			done.setSuccessful(false);
-			return false;
-		}
-	// Get the returned FITS header information into the FitsHeader object.
-		getFitsDone = (ngat.message.ISS_INST.GET_FITS_DONE)instToISSDone;
-	// extract specific FITS headers 
-		list = getFitsDone.getFitsHeader();
-		// get an ordernumber offset
-		try
-		{
-			orderNumberOffset = status.getPropertyInteger("ioi.get_fits.iss.order_number_offset");
+			getFits = new ngat.message.ISS_INST.GET_FITS(command.getId());
+			fetchStartTime = System.currentTimeMillis();
+			instToISSDone = ioi.sendISSCommand(getFits,serverConnectionThread);
+			if(instToISSDone.getSuccessful() == false)
+			{
+				ioi.error(this.getClass().getName()+":getFitsHeadersFromISS:"+
+					  command.getClass().getName()+":"+instToISSDone.getErrorString());
+				done.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+302);
+				done.setErrorString(instToISSDone.getErrorString());
+				done.setSuccessful(false);
+				return false;
+			}
+		// Get the returned FITS header information into the FitsHeader object.
+			getFitsDone = (ngat.message.ISS_INST.GET_FITS_DONE)instToISSDone;
+		// extract specific FITS headers, and merge them with the cached ones
+			list = fitsHeaderSourceCache.update(FitsHeaderSourceCache.SOURCE_ISS,getFitsDone.getFitsHeader(),
+							    System.currentTimeMillis()-fetchStartTime);
 		}
-		catch(NumberFormatException e)
+		else
 		{
-			orderNumberOffset = DEFAULT_ORDER_NUMBER_OFFSET;
-			ioi.error(this.getClass().getName()+
-				  ":getFitsHeadersFromISS:Getting order number offset failed.",e);
+			ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+				":getFitsHeadersFromISS:All ISS keywords cached, GET_FITS not sent.");
+			list = fitsHeaderSourceCache.getCachedKeywordValueList(FitsHeaderSourceCache.SOURCE_ISS);
 		}
+		// get an ordernumber offset
+		orderNumberOffset = status.getConfig().getISSOrderNumberOffset();
 		// Add the list, which is a Vector containing FitsHeaderCardImage objects, 
 		// to ioiFitsHeader
 		ioiFitsHeader.addKeywordValueList(list,orderNumberOffset);
@@ -462,7 +498,8 @@ public class FITSImplementation extends HardwareImplementation implements JMSCom
 
 	/**
 	 * This routine tries to get a set of FITS headers for an exposure, by issuing a GET_FITS command
-	 * to the BSS. 
+	 * to the BSS. If the FITS header source cache holds all the BSS keywords, the command is not sent and the
+	 * cached keywords are used, otherwise the returned keywords are merged with the cache.
 	 * If an error occurs the done objects field's can be set to record the error.
 	 * @param command The command being implemented that made this call to the BSS. This is used
 	 * 	for error logging.
@@ -471,13 +508,17 @@ public class FITSImplementation extends HardwareImplementation implements JMSCom
 	 * @return The routine returns a boolean to indicate whether the operation was completed
 	 *  	successfully.
 	 * @see #ioiFitsHeader
-	 * @see #DEFAULT_ORDER_NUMBER_OFFSET
 	 * @see IOI#sendBSSCommand
 	 * @see IOI#getStatus
-	 * @see IOIStatus#getPropertyInteger
+	 * @see IOIConfig#getBSSOrderNumberOffset
+	 * @see IOI#getFitsHeaderSourceCache
+	 * @see FitsHeaderSourceCache#isFetchNeeded
+	 * @see FitsHeaderSourceCache#update
+	 * @see FitsHeaderSourceCache#getCachedKeywordValueList
 	 */
 	public boolean getFitsHeadersFromBSS(COMMAND command,COMMAND_DONE done)
 	{
+		FitsHeaderSourceCache fitsHeaderSourceCache = null;
 		INST_TO_BSS_DONE instToBSSDone = null;
 		ngat.message.INST_BSS.GET_FITS getFits = null;
 		ngat.message.INST_BSS.GET_FITS_DONE getFitsDone = null;
@@ -485,50 +526,54 @@ public class FITSImplementation extends HardwareImplementation implements JMSCom
 		Object value = null;
 		Vector list = null;
 		String instrumentName = null;
+		long fetchStartTime;
 		int orderNumberOffset;
 
 		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			":getFitsHeadersFromBSS:Started.");
-		instrumentName = status.getProperty("ioi.bss.instrument_name");
-		getFits = new ngat.message.INST_BSS.GET_FITS(command.getId());
-		getFits.setInstrumentName(instrumentName);
-		instToBSSDone = ioi.sendBSSCommand(getFits,serverConnectionThread);
-		if(instToBSSDone.getSuccessful() == false)
+		fitsHeaderSourceCache = ioi.getFitsHeaderSourceCache();
+		if(fitsHeaderSourceCache.isFetchNeeded(FitsHeaderSourceCache.SOURCE_BSS))
 		{
-			ioi.error(this.getClass().getName()+":getFitsHeadersFromBSS:"+
-				  command.getClass().getName()+":"+instToBSSDone.getErrorString());
-			done.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+303);
-			done.setErrorString(instToBSSDone.getErrorString());
-			done.setSuccessful(false);
-			return false;
+			instrumentName = status.getProperty("ioi.bss.instrument_name");
+			getFits = new ngat.message.INST_BSS.GET_FITS(command.getId());
+			getFits.setInstrumentName(instrumentName);
+			fetchStartTime = System.currentTimeMillis();
+			instToBSSDone = ioi.sendBSSCommand(getFits,serverConnectionThread);
+			if(instToBSSDone.getSuccessful() == false)
+			{
+				ioi.error(this.getClass().getName()+":getFitsHeadersFromBSS:"+
+					  command.getClass().getName()+":"+instToBSSDone.getErrorString());
+				done.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+303);
+				done.setErrorString(instToBSSDone.getErrorString());
+				done.setSuccessful(false);
+				return false;
+			}
+			if((instToBSSDone instanceof ngat.message.INST_BSS.GET_FITS_DONE) == false)
+			{
+				ioi.error(this.getClass().getName()+":getFitsHeadersFromBSS:"+
+					  command.getClass().getName()+":DONE was not instance of GET_FITS_DONE:"+
+					  instToBSSDone.getClass().getName());
+				done.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+305);
+				done.setErrorString("getFitsHeadersFromBSS:"+command.getClass().getName()+
+						    ":DONE was not instance of GET_FITS_DONE:"+
+						    instToBSSDone.getClass().getName());
+				done.setSuccessful(false);
+				return false;
+			}
+		// Get the returned FITS header information into the FitsHeader object.
+			getFitsDone = (ngat.message.INST_BSS.GET_FITS_DONE)instToBSSDone;
+		// extract specific FITS headers, and merge them with the cached ones
+			list = fitsHeaderSourceCache.update(FitsHeaderSourceCache.SOURCE_BSS,getFitsDone.getFitsHeader(),
+							    System.currentTimeMillis()-fetchStartTime);
 		}
-		if((instToBSSDone instanceof ngat.message.INST_BSS.GET_FITS_DONE) == false)
+		else
 		{
-			ioi.error(this.getClass().getName()+":getFitsHeadersFromBSS:"+
-				  command.getClass().getName()+":DONE was not instance of GET_FITS_DONE:"+
-				  instToBSSDone.getClass().getName());
-			done.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+305);
-			done.setErrorString("getFitsHeadersFromBSS:"+command.getClass().getName()+
-					    ":DONE was not instance of GET_FITS_DONE:"+
-					    instToBSSDone.getClass().getName());
-			done.setSuccessful(false);
-			return false;
+			ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+				":getFitsHeadersFromBSS:All BSS keywords cached, GET_FITS not sent.");
+			list = fitsHeaderSourceCache.getCachedKeywordValueList(FitsHeaderSourceCache.SOURCE_BSS);
 		}
-	// Get the returned FITS header information into the FitsHeader object.
-		getFitsDone = (ngat.message.INST_BSS.GET_FITS_DONE)instToBSSDone;
-	// extract specific FITS headers and add them to the C layers list
-		list = getFitsDone.getFitsHeader();
 		// get the order number offset
-		try
-		{
-			orderNumberOffset = status.getPropertyInteger("ioi.get_fits.bss.order_number_offset");
-		}
-		catch(NumberFormatException e)
-		{
-			orderNumberOffset = DEFAULT_ORDER_NUMBER_OFFSET;
-			ioi.error(this.getClass().getName()+
-				  ":getFitsHeadersFromBSS:Getting order number offset failed.",e);
-		}
+		orderNumberOffset = status.getConfig().getBSSOrderNumberOffset();
 		// do something with list, which is a Vector containing FitsHeaderCardImage objects.
 		ioiFitsHeader.addKeywordValueList(list,orderNumberOffset);
 		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
@@ -536,6 +581,127 @@ public class FITSImplementation extends HardwareImplementation implements JMSCom
 		return true;
 	}
 
+	/**
+	 * This routine gets the FITS headers for an exposure from both the ISS and the BSS. The two GET_FITS
+	 * commands are independant, so getFitsHeadersFromISS is run on the shared blocking I/O thread pool
+	 * whilst getFitsHeadersFromBSS is called in this thread, and we wait for both to finish.
+	 * @param command The command being implemented that made this call. This is used for error logging.
+	 * @param done A COMMAND_DONE subclass specific to the command being implemented. If an
+	 * 	error occurs the relevant fields are filled in with the error.
+	 * @return The routine returns true if both sets of FITS headers were retrieved, false otherwise.
+	 * @see #getFitsHeadersFromISS
+	 * @see #getFitsHeadersFromBSS
+	 * @see IOIExecutors#getBlockingExecutor
+	 * @see ngat.ioi.command.TraceContext#getCurrentContext
+	 */
+	public boolean getFitsHeadersFromISSAndBSS(final COMMAND command,final COMMAND_DONE done)
+	{
+		Future<Boolean> issFuture = null;
+		final TraceContext traceContext = TraceContext.getCurrentContext();
+		boolean issRetval,bssRetval;
+
+		issFuture = ioi.getExecutors().getBlockingExecutor().submit(new Callable<Boolean>()
+			{
+				public Boolean call()
+				{
+					// the ISS GET_FITS is part of the calling thread's trace
+					TraceContext.setCurrentContext(traceContext);
+					try
+					{
+						return new Boolean(getFitsHeadersFromISS(command,done));
+					}
+					finally
+					{
+						TraceContext.setCurrentContext(null);
+					}
+				}
+			});
+		bssRetval = getFitsHeadersFromBSS(command,done);
+		try
+		{
+			issRetval = issFuture.get().booleanValue();
+		}
+		catch(Exception e)
+		{
+			ioi.error(this.getClass().getName()+":getFitsHeadersFromISSAndBSS:"+
+				  command.getClass().getName()+":Waiting for ISS GET_FITS failed:",e);
+			done.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+302);
+			done.setErrorString("getFitsHeadersFromISSAndBSS:Waiting for ISS GET_FITS failed:"+e);
+			done.setSuccessful(false);
+			issRetval = false;
+		}
+		return issRetval && bssRetval;
+	}
+
+	/**
+	 * Set the trace keywords in the FITS headers, from the timeline recorded so far for the exposure the
+	 * current thread is tracing. The keywords are only set if they are in the FITS header defaults, and
+	 * nothing is done if the current thread is not being traced:
+	 * <ul>
+	 * <li>TRACEID The trace id and exposure index, which identify the exposure's timeline in GET_STATUS.
+	 * <li>TOFFSTRT/TOFFEND The start and end of the telescope offset ("OFFSET" span).
+	 * <li>TRMPSTRT/TRMPEND The start of the first, and end of the last, AcquireRamp IDL Socket Server command.
+	 * </ul>
+	 * This should be called after the ramp has been acquired, but before the headers are passed to the
+	 * data processing thread.
+	 * @see #ioiFitsHeader
+	 * @see #setTraceTimeFitsHeader
+	 * @see ngat.ioi.command.TraceContext#getCurrentContext
+	 * @see ngat.ioi.command.TraceContext#getFirstSpan
+	 * @see ngat.ioi.command.TraceContext#getLastSpan
+	 */
+	public void setTraceFitsHeaders()
+	{
+		TraceContext traceContext = null;
+		FitsHeaderCardImage cardImage = null;
+		TraceSpan span = null;
+
+		traceContext = TraceContext.getCurrentContext();
+		if(traceContext == null)
+			return;
+		ioi.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
+			":setTraceFitsHeaders:TRACEID = "+traceContext+".");
+	// TRACEID
+		cardImage = ioiFitsHeader.get("TRACEID");
+		if(cardImage != null)
+			cardImage.setValue(traceContext.toString());
+	// TOFFSTRT/TOFFEND
+		span = traceContext.getLastSpan("OFFSET");
+		if(span != null)
+		{
+			setTraceTimeFitsHeader("TOFFSTRT",span.getStartTime());
+			setTraceTimeFitsHeader("TOFFEND",span.getEndTime());
+		}
+	// TRMPSTRT
+		span = traceContext.getFirstSpan("IDL:"+AcquireRampCommand.class.getSimpleName());
+		if(span != null)
+			setTraceTimeFitsHeader("TRMPSTRT",span.getStartTime());
+	// TRMPEND
+		span = traceContext.getLastSpan("IDL:"+AcquireRampCommand.class.getSimpleName());
+		if(span != null)
+			setTraceTimeFitsHeader("TRMPEND",span.getEndTime());
+	}
+
+	/**
+	 * Set a trace time keyword, if it is in the FITS header defaults, to the specified time,
+	 * formatted as an ISO 8601 UTC date with milliseconds.
+	 * @param keyword The keyword to set.
+	 * @param time The time, in milliseconds since the epoch.
+	 * @see #setTraceFitsHeaders
+	 */
+	protected void setTraceTimeFitsHeader(String keyword,long time)
+	{
+		FitsHeaderCardImage cardImage = null;
+		SimpleDateFormat dateFormat = null;
+
+		cardImage = ioiFitsHeader.get(keyword);
+		if(cardImage == null)
+			return;
+		dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		cardImage.setValue(dateFormat.format(new Date(time)));
+	}
+
 	/**
 	 * Routine to set the telescope focus offset. The offset sent is based on:
 	 * <ul>
@@ -575,7 +741,7 @@ public class FITSImplementation extends HardwareImplementation implements JMSCom
 		instrumentName = status.getProperty("ioi.bss.instrument_name");
 		focusOffset = 0.0f;
 	// retrieve master telescope focus offset
-		focusOffset += status.getPropertyFloat("ioi.focus.offset");
+		focusOffset += (float)(status.getConfig().getFocusOffset());
 		ioi.log(Logging.VERBOSITY_VERY_TERSE,"setFocusOffset:telescope offset:"+focusOffset+".");
 	// get Beam Steering System Offset
 		bssUse = status.getPropertyBoolean("ioi.net.bss.use");
@@ -0,0 +1,284 @@
+// FitsChecksum.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class computes the standard FITS DATASUM and CHECKSUM keyword values (FITS Checksum Keyword
+ * Convention, Seaman et al.). Both are based on the 32 bit ones' complement sum of the HDU, treated as a
+ * sequence of big endian 32 bit unsigned integers:
+ * <ul>
+ * <li>DATASUM is the sum of the data unit, written as an unsigned decimal string.
+ * <li>CHECKSUM is the complement of the sum of the header and data units, ASCII encoded into 16 characters,
+ *     such that the sum of the whole HDU (with the CHECKSUM card in place) is negative zero.
+ * </ul>
+ * The data unit is summed in blocks split over a thread pool, using tasks that are allocated once and
+ * re-used. The partial sums are combined with end around carry at the end, which gives the same result
+ * as a serial sum as ones' complement addition is commutative and associative. The header is small,
+ * and is summed serially.
+ * @see FitsImageData#writeChecksum
+ * @see DataProcessingThread#checksumFitsFiles
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class FitsChecksum
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The CHECKSUM value written into the header before the header is summed. The ASCII encoding
+	 * is offset from '0', so the encoded value can replace it without changing the sum of the rest
+	 * of the header.
+	 */
+	public final static String CHECKSUM_INITIAL_VALUE = "0000000000000000";
+	/**
+	 * The ASCII characters the encoding avoids (the punctuation between the digits and upper case letters,
+	 * and between the upper and lower case letters), so the CHECKSUM value is alphanumeric.
+	 */
+	protected final static int ENCODE_EXCLUDE[] = {0x3a,0x3b,0x3c,0x3d,0x3e,0x3f,0x40,
+						      0x5b,0x5c,0x5d,0x5e,0x5f,0x60};
+	/**
+	 * The thread pool used to sum blocks of the data unit in parallel.
+	 */
+	protected ExecutorService executorService = null;
+	/**
+	 * The list of re-usable tasks, one per thread.
+	 */
+	protected List<SumTask> taskList = null;
+	/**
+	 * The bytes of the data unit being summed.
+	 */
+	protected byte buffer[] = null;
+	/**
+	 * The time taken by the last call to sumData, in milliseconds.
+	 */
+	protected long lastSumTime = 0;
+
+	/**
+	 * Constructor. Uses the thread pool shared with the rest of the software;
+	 * one re-usable task is created per thread.
+	 * @param executorService The shared thread pool.
+	 * @param threadCount The number of threads to use, normally the number of threads in the shared pool.
+	 *        If this is less than 1, 1 is used.
+	 * @see #executorService
+	 * @see #taskList
+	 * @see IOIExecutors#getComputeExecutor
+	 */
+	public FitsChecksum(ExecutorService executorService,int threadCount)
+	{
+		super();
+		if(threadCount < 1)
+			threadCount = 1;
+		this.executorService = executorService;
+		taskList = new Vector<SumTask>();
+		for(int i = 0; i < threadCount; i++)
+			taskList.add(new SumTask());
+	}
+
+	/**
+	 * Compute the 32 bit ones' complement sum of the first length bytes of the specified buffer,
+	 * splitting the buffer into one block per task. Each block starts on a 4 byte boundary. If length is
+	 * not a multiple of 4, the last word is padded with zeros, as the FITS padding would be.
+	 * This must not be called from a thread in the thread pool, as it waits for the tasks to finish.
+	 * @param b The buffer to sum (normally the bytes of a FITS data unit).
+	 * @param length The number of bytes to sum.
+	 * @return The sum, as an unsigned 32 bit value held in a long.
+	 * @exception Exception Thrown if a task fails.
+	 * @see #taskList
+	 * @see #add
+	 */
+	public long sumData(byte b[],int length) throws Exception
+	{
+		List<Future<Long>> futureList = null;
+		long startTime,sum;
+		int wordCount,wordsPerTask,start;
+
+		startTime = System.currentTimeMillis();
+		buffer = b;
+		try
+		{
+			wordCount = (length+3)/4;
+			wordsPerTask = (wordCount+taskList.size()-1)/taskList.size();
+			for(int i = 0; i < taskList.size(); i++)
+			{
+				start = Math.min(i*wordsPerTask,wordCount)*4;
+				taskList.get(i).setup(start,Math.min(start+(wordsPerTask*4),length));
+			}
+			futureList = executorService.invokeAll(taskList);
+			sum = 0;
+			for(int i = 0; i < futureList.size(); i++)
+			{
+				try
+				{
+					sum = add(sum,futureList.get(i).get().longValue());
+				}
+				catch(ExecutionException e)
+				{
+					throw new Exception(this.getClass().getName()+":sumData:Checksum task failed:",
+							    e.getCause());
+				}
+			}
+		}
+		finally
+		{
+			buffer = null;
+		}
+		lastSumTime = System.currentTimeMillis()-startTime;
+		return sum;
+	}
+
+	/**
+	 * Get the time taken by the last call to sumData.
+	 * @return The time, in milliseconds.
+	 * @see #lastSumTime
+	 */
+	public long getLastSumTime()
+	{
+		return lastSumTime;
+	}
+
+	/**
+	 * Compute the 32 bit ones' complement sum of part of a buffer, serially.
+	 * @param b The buffer to sum.
+	 * @param start The index of the first byte to sum. This should be a multiple of 4 bytes from the start
+	 *        of the HDU.
+	 * @param end One more than the index of the last byte to sum. If (end-start) is not a multiple of 4,
+	 *        the last word is padded with zeros.
+	 * @return The sum, as an unsigned 32 bit value held in a long.
+	 */
+	public static long sum(byte b[],int start,int end)
+	{
+		long sum = 0;
+		int index,wordEnd;
+
+		wordEnd = start+(((end-start)/4)*4);
+		// a long can hold the sum of 2^32 words without overflowing, so only fold the carries in at the end
+		for(index = start; index < wordEnd; index += 4)
+		{
+			sum += ((((long)b[index])&0xff)<<24)|((((long)b[index+1])&0xff)<<16)|
+				((((long)b[index+2])&0xff)<<8)|(((long)b[index+3])&0xff);
+		}
+		// partial last word
+		for(int shift = 24; index < end; index++,shift -= 8)
+			sum += (((long)b[index])&0xff)<<shift;
+		return fold(sum);
+	}
+
+	/**
+	 * Add two 32 bit ones' complement sums, with end around carry.
+	 * @param a The first sum, as an unsigned 32 bit value held in a long.
+	 * @param b The second sum, as an unsigned 32 bit value held in a long.
+	 * @return The combined sum, as an unsigned 32 bit value held in a long.
+	 */
+	public static long add(long a,long b)
+	{
+		return fold(a+b);
+	}
+
+	/**
+	 * Fold the carries above bit 31 of an accumulator back into the bottom of it (end around carry).
+	 * @param sum The accumulator.
+	 * @return The accumulator reduced to an unsigned 32 bit value.
+	 */
+	protected static long fold(long sum)
+	{
+		while((sum>>>32) != 0)
+			sum = (sum&0xffffffffL)+(sum>>>32);
+		return sum;
+	}
+
+	/**
+	 * ASCII encode the complement of the specified sum into a 16 character CHECKSUM value.
+	 * Each byte of the value is split into 4 characters offset from '0', with the remainder added to
+	 * the first; characters that would fall on punctuation are moved apart in pairs (one up, one down) so
+	 * their sum is unchanged. The 16 characters are then rotated right by one, to align the encoding with
+	 * the 32 bit words of the header card (the value starts in column 12, which is not on a word boundary).
+	 * @param sum The sum of the header and data units, computed with CHECKSUM set to CHECKSUM_INITIAL_VALUE.
+	 * @return The 16 character CHECKSUM value.
+	 * @see #CHECKSUM_INITIAL_VALUE
+	 * @see #ENCODE_EXCLUDE
+	 */
+	public static String encode(long sum)
+	{
+		char ascii[] = new char[16];
+		char encoded[] = new char[16];
+		int ch[] = new int[4];
+		int value,byteValue,quotient,remainder;
+		boolean check;
+
+		value = (int)(~sum);
+		for(int i = 0; i < 4; i++)
+		{
+			byteValue = (value>>>((3-i)*8))&0xff;
+			quotient = (byteValue/4)+'0';
+			remainder = byteValue%4;
+			for(int j = 0; j < 4; j++)
+				ch[j] = quotient;
+			ch[0] += remainder;
+			do
+			{
+				check = false;
+				for(int k = 0; k < ENCODE_EXCLUDE.length; k++)
+				{
+					for(int j = 0; j < 4; j += 2)
+					{
+						if((ch[j] == ENCODE_EXCLUDE[k])||(ch[j+1] == ENCODE_EXCLUDE[k]))
+						{
+							ch[j]++;
+							ch[j+1]--;
+							check = true;
+						}
+					}
+				}
+			}
+			while(check);
+			for(int j = 0; j < 4; j++)
+				ascii[(4*j)+i] = (char)ch[j];
+		}
+		for(int i = 0; i < 16; i++)
+			encoded[i] = ascii[(i+15)%16];
+		return new String(encoded);
+	}
+
+	/**
+	 * Re-usable task that sums a block of the data unit.
+	 */
+	protected class SumTask implements Callable<Long>
+	{
+		/**
+		 * The index of the first byte to sum.
+		 */
+		protected int start;
+		/**
+		 * One more than the index of the last byte to sum.
+		 */
+		protected int end;
+
+		/**
+		 * Set up the task for the next buffer.
+		 * @param start The index of the first byte to sum.
+		 * @param end One more than the index of the last byte to sum.
+		 */
+		public void setup(int start,int end)
+		{
+			this.start = start;
+			this.end = end;
+		}
+
+		/**
+		 * Sum the block.
+		 * @return The ones' complement sum of the block.
+		 * @see #buffer
+		 * @see FitsChecksum#sum
+		 */
+		public Long call()
+		{
+			return new Long(FitsChecksum.sum(buffer,start,end));
+		}
+	}
+}
@@ -0,0 +1,509 @@
+// FitsHeaderSourceCache.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.util.*;
+
+import ngat.fits.*;
+import ngat.util.logging.*;
+
+/**
+ * This class caches the FITS header keywords returned by the ISS and BSS GET_FITS commands.
+ * Each keyword returned by a source is classified, from the "ioi.get_fits.cache.&lt;source&gt;.keyword.&lt;KEYWORD&gt;"
+ * properties (or the source's "ioi.get_fits.cache.&lt;source&gt;.default" class for unlisted keywords), as:
+ * <ul>
+ * <li><b>STATIC</b> Unchanged for the night (site coordinates, telescope name). Cached for
+ *     "ioi.get_fits.cache.static.lifetime" milliseconds.
+ * <li><b>MULTRUN</b> Unchanged for a MULTRUN (proposal/user/group IDs, target, BSS mechanism positions).
+ *     Cached until startMultrun is next called.
+ * <li><b>EXPOSURE</b> Changes every exposure (pointing, airmass, weather). Never cached.
+ * </ul>
+ * GET_FITS cannot request a subset of keywords, so a source is still fetched every exposure if any of it's
+ * keywords are EXPOSURE class. The cached STATIC and MULTRUN values then replace the fetched ones, so they
+ * are constant across a MULTRUN. A source whose keywords are all cacheable is only fetched when it's cache is
+ * stale, otherwise the cached keywords are returned without a round trip.
+ * The fetch latency, the number of fetches skipped, and the cache hit rate are kept for each source.
+ * @see FITSImplementation#getFitsHeadersFromISS
+ * @see FITSImplementation#getFitsHeadersFromBSS
+ * @see OffsetTelescopeAndGetFitsHeadersThread
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class FitsHeaderSourceCache
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * Source number for the ISS (telescope) GET_FITS.
+	 */
+	public final static int SOURCE_ISS = 0;
+	/**
+	 * Source number for the BSS (beam steering system) GET_FITS.
+	 */
+	public final static int SOURCE_BSS = 1;
+	/**
+	 * The number of sources.
+	 */
+	public final static int SOURCE_COUNT = 2;
+	/**
+	 * The source names, indexed by source number, used in the property names and GET_STATUS keywords.
+	 */
+	public final static String SOURCE_NAME_LIST[] = {"ISS","BSS"};
+	/**
+	 * Keyword class. The value is constant for the night.
+	 */
+	public final static int KEYWORD_CLASS_STATIC   = 0;
+	/**
+	 * Keyword class. The value is constant for a MULTRUN.
+	 */
+	public final static int KEYWORD_CLASS_MULTRUN  = 1;
+	/**
+	 * Keyword class. The value changes every exposure.
+	 */
+	public final static int KEYWORD_CLASS_EXPOSURE = 2;
+	/**
+	 * The keyword class names, indexed by keyword class, as used in the properties.
+	 */
+	public final static String KEYWORD_CLASS_NAME_LIST[] = {"STATIC","MULTRUN","EXPOSURE"};
+	/**
+	 * The IOI object.
+	 */
+	protected IOI ioi = null;
+	/**
+	 * Whether caching is enabled. If not, every source is fetched every exposure and the fetched
+	 * keywords are used unchanged.
+	 */
+	protected boolean enable = false;
+	/**
+	 * How long STATIC keywords are cached for, in milliseconds.
+	 */
+	protected long staticLifetime = 0;
+	/**
+	 * The class of keywords with no explicit classification, for each source.
+	 */
+	protected int defaultClass[] = new int[SOURCE_COUNT];
+	/**
+	 * For each source, a map from keyword to keyword class, for the explicitly classified keywords.
+	 */
+	protected Hashtable<String,Integer> keywordClassTable[] = null;
+	/**
+	 * For each source, whether any of it's keywords are EXPOSURE class (so it must be fetched every exposure).
+	 */
+	protected boolean hasExposureKeywords[] = new boolean[SOURCE_COUNT];
+	/**
+	 * For each source, the cached STATIC and MULTRUN card images, keyed by keyword.
+	 */
+	protected Hashtable<String,FitsHeaderCardImage> cardTable[] = null;
+	/**
+	 * For each source, the cached keywords in the order the source returned them.
+	 */
+	protected Vector<String> keywordOrderList[] = null;
+	/**
+	 * For each source, when the STATIC keywords were last fetched, in milliseconds since the epoch,
+	 * or 0 if they are not cached.
+	 */
+	protected long staticFetchTime[] = new long[SOURCE_COUNT];
+	/**
+	 * For each source, the multrunNumber the cached MULTRUN keywords were fetched in, or -1 if they are not cached.
+	 * @see #multrunNumber
+	 */
+	protected int multrunFetchNumber[] = new int[SOURCE_COUNT];
+	/**
+	 * A count of MULTRUNs started, incremented by startMultrun. MULTRUN keywords cached in a previous
+	 * MULTRUN are stale.
+	 */
+	protected int multrunNumber = 0;
+	/**
+	 * For each source, the number of GET_FITS commands sent.
+	 */
+	protected int fetchCount[] = new int[SOURCE_COUNT];
+	/**
+	 * For each source, the number of GET_FITS commands not sent as the whole source was cached.
+	 */
+	protected int skipCount[] = new int[SOURCE_COUNT];
+	/**
+	 * For each source, the number of cacheable keywords served from the cache.
+	 */
+	protected int hitCount[] = new int[SOURCE_COUNT];
+	/**
+	 * For each source, the number of cacheable keywords that had to be taken from a GET_FITS reply.
+	 */
+	protected int missCount[] = new int[SOURCE_COUNT];
+	/**
+	 * For each source, the latency of the last GET_FITS command, in milliseconds.
+	 */
+	protected long lastLatency[] = new long[SOURCE_COUNT];
+	/**
+	 * For each source, the total latency of all GET_FITS commands, in milliseconds.
+	 */
+	protected long totalLatency[] = new long[SOURCE_COUNT];
+
+	/**
+	 * Default constructor. The per-source tables are created.
+	 * @see #keywordClassTable
+	 * @see #cardTable
+	 * @see #keywordOrderList
+	 */
+	@SuppressWarnings("unchecked")
+	public FitsHeaderSourceCache()
+	{
+		super();
+		keywordClassTable = new Hashtable[SOURCE_COUNT];
+		cardTable = new Hashtable[SOURCE_COUNT];
+		keywordOrderList = new Vector[SOURCE_COUNT];
+		for(int i = 0; i < SOURCE_COUNT; i++)
+		{
+			keywordClassTable[i] = new Hashtable<String,Integer>();
+			cardTable[i] = new Hashtable<String,FitsHeaderCardImage>();
+			keywordOrderList[i] = new Vector<String>();
+			multrunFetchNumber[i] = -1;
+		}
+	}
+
+	/**
+	 * Set the IOI object reference.
+	 * @param o The IOI object reference.
+	 * @see #ioi
+	 */
+	public void setIOI(IOI o)
+	{
+		ioi = o;
+	}
+
+	/**
+	 * Configure the cache from the IO:I config snapshot. Any cached keywords are discarded, as their
+	 * classification may have changed. The following config is used:
+	 * <ul>
+	 * <li>"ioi.get_fits.cache.enable"
+	 * <li>"ioi.get_fits.cache.static.lifetime"
+	 * <li>"ioi.get_fits.cache.&lt;source&gt;.default", for "iss" and "bss".
+	 * <li>Every "ioi.get_fits.cache.&lt;source&gt;.keyword.&lt;KEYWORD&gt;" property.
+	 * </ul>
+	 * @see #enable
+	 * @see #staticLifetime
+	 * @see #defaultClass
+	 * @see #keywordClassTable
+	 * @see #hasExposureKeywords
+	 * @see #invalidate
+	 * @see IOIConfig#getFitsCacheDefaultClass
+	 * @see IOIConfig#getFitsCacheKeywordClassMap
+	 */
+	public synchronized void configure()
+	{
+		IOIConfig config = null;
+
+		config = ioi.getStatus().getConfig();
+		enable = config.getFitsCacheEnable();
+		staticLifetime = config.getFitsCacheStaticLifetime();
+		for(int source = 0; source < SOURCE_COUNT; source++)
+		{
+			defaultClass[source] = config.getFitsCacheDefaultClass(source);
+			keywordClassTable[source].clear();
+			keywordClassTable[source].putAll(config.getFitsCacheKeywordClassMap(source));
+			hasExposureKeywords[source] = (defaultClass[source] == KEYWORD_CLASS_EXPOSURE)||
+				keywordClassTable[source].containsValue(new Integer(KEYWORD_CLASS_EXPOSURE));
+			ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+":configure:"+
+				SOURCE_NAME_LIST[source]+":default class "+KEYWORD_CLASS_NAME_LIST[defaultClass[source]]+
+				":"+keywordClassTable[source].size()+" keywords classified:has EXPOSURE keywords:"+
+				hasExposureKeywords[source]+".");
+		}
+		invalidate();
+	}
+
+	/**
+	 * Discard all the cached keywords, so every source is fetched next time.
+	 * @see #cardTable
+	 * @see #keywordOrderList
+	 * @see #staticFetchTime
+	 * @see #multrunFetchNumber
+	 */
+	public synchronized void invalidate()
+	{
+		for(int source = 0; source < SOURCE_COUNT; source++)
+		{
+			cardTable[source].clear();
+			keywordOrderList[source].clear();
+			staticFetchTime[source] = 0;
+			multrunFetchNumber[source] = -1;
+		}
+	}
+
+	/**
+	 * Called at the start of each MULTRUN (or other multi-exposure command), so the MULTRUN keywords
+	 * cached in the previous one are no longer used.
+	 * @see #multrunNumber
+	 */
+	public synchronized void startMultrun()
+	{
+		multrunNumber++;
+	}
+
+	/**
+	 * Return whether the specified source needs a GET_FITS sending for this exposure. This is the case
+	 * if caching is disabled, the source has EXPOSURE class keywords, or it's STATIC or MULTRUN
+	 * keywords are stale.
+	 * @param source The source, one of SOURCE_ISS or SOURCE_BSS.
+	 * @return true if a GET_FITS should be sent, false if getCachedKeywordValueList can be used instead.
+	 * @see #enable
+	 * @see #hasExposureKeywords
+	 * @see #isStaticCurrent
+	 * @see #isMultrunCurrent
+	 */
+	public synchronized boolean isFetchNeeded(int source)
+	{
+		if(enable == false)
+			return true;
+		if(hasExposureKeywords[source])
+			return true;
+		return (isStaticCurrent(source) == false)||(isMultrunCurrent(source) == false);
+	}
+
+	/**
+	 * Merge the keywords returned by a GET_FITS command with the cache. For each keyword in the list:
+	 * <ul>
+	 * <li>EXPOSURE class keywords are used as fetched.
+	 * <li>STATIC and MULTRUN class keywords are served from the cache if it is current, otherwise the fetched
+	 *     card image is used and cached.
+	 * </ul>
+	 * The fetch count and latency statistics are updated. If caching is disabled the list is returned unchanged.
+	 * @param source The source, one of SOURCE_ISS or SOURCE_BSS.
+	 * @param list The Vector of FitsHeaderCardImage objects returned by the GET_FITS command.
+	 * @param latency How long the GET_FITS command took, in milliseconds.
+	 * @return A Vector of FitsHeaderCardImage objects, in the same order as the fetched list.
+	 * @see #getKeywordClass
+	 * @see #cardTable
+	 * @see #keywordOrderList
+	 */
+	public synchronized Vector update(int source,Vector list,long latency)
+	{
+		Vector<Object> mergedList = null;
+		FitsHeaderCardImage cardImage = null;
+		String keyword = null;
+		boolean staticCurrent,multrunCurrent,current;
+		int keywordClass;
+
+		fetchCount[source]++;
+		lastLatency[source] = latency;
+		totalLatency[source] += latency;
+		if(enable == false)
+			return list;
+		staticCurrent = isStaticCurrent(source);
+		multrunCurrent = isMultrunCurrent(source);
+		// discard any stale card images, they are replaced from the fetched list
+		if((staticCurrent == false)||(multrunCurrent == false))
+			removeStaleCards(source,staticCurrent,multrunCurrent);
+		mergedList = new Vector<Object>();
+		for(int i = 0; i < list.size(); i++)
+		{
+			cardImage = (FitsHeaderCardImage)(list.get(i));
+			keyword = cardImage.getKeyword();
+			keywordClass = getKeywordClass(source,keyword);
+			if(keywordClass == KEYWORD_CLASS_EXPOSURE)
+			{
+				mergedList.add(cardImage);
+				continue;
+			}
+			if(keywordClass == KEYWORD_CLASS_STATIC)
+				current = staticCurrent;
+			else
+				current = multrunCurrent;
+			if(current && cardTable[source].containsKey(keyword))
+			{
+				hitCount[source]++;
+				mergedList.add(cardTable[source].get(keyword));
+			}
+			else
+			{
+				missCount[source]++;
+				if(cardTable[source].containsKey(keyword) == false)
+					keywordOrderList[source].add(keyword);
+				cardTable[source].put(keyword,cardImage);
+				mergedList.add(cardImage);
+			}
+		}
+		if(staticCurrent == false)
+			staticFetchTime[source] = System.currentTimeMillis();
+		if(multrunCurrent == false)
+			multrunFetchNumber[source] = multrunNumber;
+		return mergedList;
+	}
+
+	/**
+	 * Get the cached keywords for a source, for use instead of sending a GET_FITS command.
+	 * Should only be called when isFetchNeeded has returned false. The skip and hit counts are updated.
+	 * @param source The source, one of SOURCE_ISS or SOURCE_BSS.
+	 * @return A Vector of FitsHeaderCardImage objects, in the order the source last returned them.
+	 * @see #isFetchNeeded
+	 * @see #keywordOrderList
+	 * @see #cardTable
+	 */
+	public synchronized Vector getCachedKeywordValueList(int source)
+	{
+		Vector<Object> list = null;
+
+		skipCount[source]++;
+		list = new Vector<Object>();
+		for(int i = 0; i < keywordOrderList[source].size(); i++)
+		{
+			list.add(cardTable[source].get(keywordOrderList[source].get(i)));
+			hitCount[source]++;
+		}
+		return list;
+	}
+
+	/**
+	 * Get the class of a keyword.
+	 * @param source The source, one of SOURCE_ISS or SOURCE_BSS.
+	 * @param keyword The FITS keyword.
+	 * @return The keyword's class, or the source's default class if it is not explicitly classified.
+	 * @see #keywordClassTable
+	 * @see #defaultClass
+	 */
+	public synchronized int getKeywordClass(int source,String keyword)
+	{
+		Integer keywordClass = null;
+
+		keywordClass = keywordClassTable[source].get(keyword);
+		if(keywordClass == null)
+			return defaultClass[source];
+		return keywordClass.intValue();
+	}
+
+	/**
+	 * Get the number of GET_FITS commands sent to a source.
+	 * @param source The source, one of SOURCE_ISS or SOURCE_BSS.
+	 * @return The fetch count.
+	 * @see #fetchCount
+	 */
+	public synchronized int getFetchCount(int source)
+	{
+		return fetchCount[source];
+	}
+
+	/**
+	 * Get the number of GET_FITS commands not sent to a source, as all it's keywords were cached.
+	 * @param source The source, one of SOURCE_ISS or SOURCE_BSS.
+	 * @return The skip count.
+	 * @see #skipCount
+	 */
+	public synchronized int getSkipCount(int source)
+	{
+		return skipCount[source];
+	}
+
+	/**
+	 * Get the number of cacheable keywords served from the cache.
+	 * @param source The source, one of SOURCE_ISS or SOURCE_BSS.
+	 * @return The hit count.
+	 * @see #hitCount
+	 */
+	public synchronized int getHitCount(int source)
+	{
+		return hitCount[source];
+	}
+
+	/**
+	 * Get the number of cacheable keywords that had to be taken from a GET_FITS reply.
+	 * @param source The source, one of SOURCE_ISS or SOURCE_BSS.
+	 * @return The miss count.
+	 * @see #missCount
+	 */
+	public synchronized int getMissCount(int source)
+	{
+		return missCount[source];
+	}
+
+	/**
+	 * Get the fraction of cacheable keyword lookups served from the cache.
+	 * @param source The source, one of SOURCE_ISS or SOURCE_BSS.
+	 * @return The hit rate, between 0 and 1, or 0 if there have been no lookups.
+	 * @see #hitCount
+	 * @see #missCount
+	 */
+	public synchronized double getHitRate(int source)
+	{
+		if((hitCount[source]+missCount[source]) == 0)
+			return 0.0;
+		return ((double)hitCount[source])/((double)(hitCount[source]+missCount[source]));
+	}
+
+	/**
+	 * Get the latency of the last GET_FITS command sent to a source.
+	 * @param source The source, one of SOURCE_ISS or SOURCE_BSS.
+	 * @return The latency in milliseconds.
+	 * @see #lastLatency
+	 */
+	public synchronized long getLastLatency(int source)
+	{
+		return lastLatency[source];
+	}
+
+	/**
+	 * Get the mean latency of the GET_FITS commands sent to a source.
+	 * @param source The source, one of SOURCE_ISS or SOURCE_BSS.
+	 * @return The mean latency in milliseconds, or 0 if no commands have been sent.
+	 * @see #totalLatency
+	 * @see #fetchCount
+	 */
+	public synchronized double getMeanLatency(int source)
+	{
+		if(fetchCount[source] == 0)
+			return 0.0;
+		return ((double)totalLatency[source])/((double)fetchCount[source]);
+	}
+
+	/**
+	 * Return whether the cached STATIC keywords for a source are current.
+	 * @param source The source, one of SOURCE_ISS or SOURCE_BSS.
+	 * @return true if they were fetched less than staticLifetime milliseconds ago.
+	 * @see #staticFetchTime
+	 * @see #staticLifetime
+	 */
+	protected boolean isStaticCurrent(int source)
+	{
+		if(staticFetchTime[source] == 0)
+			return false;
+		return (System.currentTimeMillis()-staticFetchTime[source]) < staticLifetime;
+	}
+
+	/**
+	 * Return whether the cached MULTRUN keywords for a source are current.
+	 * @param source The source, one of SOURCE_ISS or SOURCE_BSS.
+	 * @return true if they were fetched during the current MULTRUN.
+	 * @see #multrunFetchNumber
+	 * @see #multrunNumber
+	 */
+	protected boolean isMultrunCurrent(int source)
+	{
+		return multrunFetchNumber[source] == multrunNumber;
+	}
+
+	/**
+	 * Remove the stale card images of a source from the cache.
+	 * @param source The source, one of SOURCE_ISS or SOURCE_BSS.
+	 * @param staticCurrent Whether the STATIC card images are current.
+	 * @param multrunCurrent Whether the MULTRUN card images are current.
+	 * @see #cardTable
+	 * @see #keywordOrderList
+	 */
+	protected void removeStaleCards(int source,boolean staticCurrent,boolean multrunCurrent)
+	{
+		String keyword = null;
+		int keywordClass;
+
+		for(int i = keywordOrderList[source].size()-1; i >= 0; i--)
+		{
+			keyword = keywordOrderList[source].get(i);
+			keywordClass = getKeywordClass(source,keyword);
+			if(((keywordClass == KEYWORD_CLASS_STATIC)&&(staticCurrent == false))||
+			   ((keywordClass == KEYWORD_CLASS_MULTRUN)&&(multrunCurrent == false)))
+			{
+				cardTable[source].remove(keyword);
+				keywordOrderList[source].remove(i);
+			}
+		}
+	}
+}
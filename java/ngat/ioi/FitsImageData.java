@@ -0,0 +1,690 @@
+// FitsImageData.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * This class holds the header cards and image data of a simple (primary HDU only, two dimensional,
+ * integer valued) FITS image, as written by the IDL Socket Server. It is used by the data processing
+ * pipeline stages that need access to the pixel data, rather than just the FITS headers (which are
+ * handled by ngat.fits.FitsHeader).
+ * The pixel data is held as the raw stored integer values (i.e. BZERO and BSCALE are <b>not</b> applied),
+ * so a BITPIX 16 image written with BZERO 32768 has values in the range -32768..32767.
+ * @see DataProcessingThread
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class FitsImageData
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The length of a FITS logical record, in bytes.
+	 */
+	public final static int FITS_BLOCK_LENGTH = 2880;
+	/**
+	 * The length of a FITS header card image, in characters.
+	 */
+	public final static int FITS_CARD_LENGTH = 80;
+	/**
+	 * The file the image was loaded from.
+	 */
+	protected File file = null;
+	/**
+	 * A list of the header card images (Strings of length FITS_CARD_LENGTH) read from the file,
+	 * excluding the END card.
+	 */
+	protected List<String> cardList = null;
+	/**
+	 * The value of the BITPIX keyword.
+	 */
+	protected int bitpix = 0;
+	/**
+	 * The value of the NAXIS1 keyword (the number of columns).
+	 */
+	protected int naxis1 = 0;
+	/**
+	 * The value of the NAXIS2 keyword (the number of rows).
+	 */
+	protected int naxis2 = 0;
+	/**
+	 * The value of the BZERO keyword, or 0.0 if not present.
+	 */
+	protected double bzero = 0.0;
+	/**
+	 * The value of the BSCALE keyword, or 1.0 if not present.
+	 */
+	protected double bscale = 1.0;
+	/**
+	 * The raw stored pixel values, in FITS order (naxis1 varies fastest).
+	 */
+	protected int data[] = null;
+	/**
+	 * A buffer used to read the raw bytes of the data unit. Kept between loads so that
+	 * reloading a frame of the same size does not allocate.
+	 */
+	protected byte byteBuffer[] = null;
+	/**
+	 * The length of the header (in bytes, a whole number of FITS blocks) of the file the image was
+	 * loaded from, or last saved to. This is also the byte offset of the data unit in the file.
+	 */
+	protected long headerLength = 0;
+
+	/**
+	 * Default constructor.
+	 * @see #cardList
+	 */
+	public FitsImageData()
+	{
+		super();
+		cardList = new Vector<String>();
+	}
+
+	/**
+	 * Load the FITS image header and data from the specified file.
+	 * The data array and byte buffer are re-used if they are already the right size.
+	 * @param f The file to load.
+	 * @exception Exception Thrown if the file cannot be read, or is not a supported FITS image.
+	 * @see #loadHeader
+	 * @see #data
+	 * @see #byteBuffer
+	 * @see #headerLength
+	 */
+	public void load(File f) throws Exception
+	{
+		RandomAccessFile randomAccessFile = null;
+		ByteBuffer buffer = null;
+		int pixelCount,bytePix;
+		long dataOffset;
+
+		randomAccessFile = new RandomAccessFile(f,"r");
+		try
+		{
+			dataOffset = loadHeader(f,randomAccessFile);
+			headerLength = dataOffset;
+			pixelCount = naxis1*naxis2;
+			bytePix = getBytePix();
+			if((byteBuffer == null)||(byteBuffer.length != (pixelCount*bytePix)))
+				byteBuffer = new byte[pixelCount*bytePix];
+			if((data == null)||(data.length != pixelCount))
+				data = new int[pixelCount];
+			randomAccessFile.seek(dataOffset);
+			randomAccessFile.readFully(byteBuffer);
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+		// FITS data is always big endian, which is the ByteBuffer default
+		buffer = ByteBuffer.wrap(byteBuffer);
+		if(bitpix == 16)
+		{
+			for(int i = 0; i < pixelCount; i++)
+				data[i] = buffer.getShort();
+		}
+		else if(bitpix == 32)
+		{
+			for(int i = 0; i < pixelCount; i++)
+				data[i] = buffer.getInt();
+		}
+		else // bitpix == 8
+		{
+			for(int i = 0; i < pixelCount; i++)
+				data[i] = ((int)buffer.get())&0xff;
+		}
+	}
+
+	/**
+	 * Read the header cards of the specified file (using readHeaderCards), and extract and check
+	 * the image structure keywords.
+	 * @param f The file being read.
+	 * @param randomAccessFile An open file, positioned at the start of the FITS header.
+	 * @return The byte offset in the file of the start of the data unit.
+	 * @exception Exception Thrown if the file is not a supported FITS image.
+	 * @see #readHeaderCards
+	 * @see #bitpix
+	 * @see #naxis1
+	 * @see #naxis2
+	 * @see #bzero
+	 * @see #bscale
+	 */
+	protected long loadHeader(File f,RandomAccessFile randomAccessFile) throws Exception
+	{
+		long dataOffset;
+		int naxis;
+
+		dataOffset = readHeaderCards(f,randomAccessFile);
+		bitpix = getHeaderInteger("BITPIX",0);
+		naxis = getHeaderInteger("NAXIS",0);
+		naxis1 = getHeaderInteger("NAXIS1",0);
+		naxis2 = getHeaderInteger("NAXIS2",0);
+		bzero = getHeaderDouble("BZERO",0.0);
+		bscale = getHeaderDouble("BSCALE",1.0);
+		if(naxis != 2)
+		{
+			throw new Exception(this.getClass().getName()+":loadHeader:"+f+
+					    ":Unsupported NAXIS:"+naxis);
+		}
+		if((bitpix != 8)&&(bitpix != 16)&&(bitpix != 32))
+		{
+			throw new Exception(this.getClass().getName()+":loadHeader:"+f+
+					    ":Unsupported BITPIX:"+bitpix);
+		}
+		if((naxis1 < 1)||(naxis2 < 1))
+		{
+			throw new Exception(this.getClass().getName()+":loadHeader:"+f+
+					    ":Illegal image dimensions:"+naxis1+"x"+naxis2);
+		}
+		return dataOffset;
+	}
+
+	/**
+	 * Read the header cards of the specified file into cardList, up to (but not including) the END card.
+	 * @param f The file being read.
+	 * @param randomAccessFile An open file, positioned at the start of the FITS header.
+	 * @return The byte offset in the file of the start of the data unit.
+	 * @exception Exception Thrown if the header cannot be read, or there is no SIMPLE keyword.
+	 * @see #file
+	 * @see #cardList
+	 */
+	protected long readHeaderCards(File f,RandomAccessFile randomAccessFile) throws Exception
+	{
+		byte block[] = new byte[FITS_BLOCK_LENGTH];
+		String card = null;
+		String keyword = null;
+		long blockCount = 0;
+		boolean endFound = false;
+
+		file = f;
+		cardList.clear();
+		while(endFound == false)
+		{
+			randomAccessFile.readFully(block);
+			blockCount++;
+			for(int i = 0; (i < FITS_BLOCK_LENGTH) && (endFound == false); i += FITS_CARD_LENGTH)
+			{
+				card = new String(block,i,FITS_CARD_LENGTH,"US-ASCII");
+				keyword = card.substring(0,8).trim();
+				if(keyword.equals("END"))
+					endFound = true;
+				else
+					cardList.add(card);
+			}
+		}
+		if(getHeaderValue("SIMPLE") == null)
+		{
+			throw new Exception(this.getClass().getName()+":readHeaderCards:"+f+
+					    ":Not a FITS image:No SIMPLE keyword.");
+		}
+		return blockCount*FITS_BLOCK_LENGTH;
+	}
+
+	/**
+	 * Save the header cards and data to the specified file, using the BITPIX the image was loaded with.
+	 * Data values are clipped to the range of the BITPIX.
+	 * @param f The file to write.
+	 * @exception Exception Thrown if writing the file fails.
+	 * @see #save(java.io.File,ngat.ioi.FitsChecksum)
+	 */
+	public void save(File f) throws Exception
+	{
+		save(f,null);
+	}
+
+	/**
+	 * Save the header cards and data to the specified file, using the BITPIX the image was loaded with.
+	 * Data values are clipped to the range of the BITPIX. If a checksum is specified, the FITS DATASUM and
+	 * CHECKSUM keywords are computed from the encoded data unit and added to the header before it is written,
+	 * so the file is checksummed without being read again.
+	 * @param f The file to write.
+	 * @param checksum The FitsChecksum instance used to sum the data unit, or null to not write checksums.
+	 * @exception Exception Thrown if summing the data, or writing the file, fails.
+	 * @see #cardList
+	 * @see #data
+	 * @see #byteBuffer
+	 * @see #headerLength
+	 * @see #setChecksumCards
+	 */
+	public void save(File f,FitsChecksum checksum) throws Exception
+	{
+		FileOutputStream outputStream = null;
+		ByteBuffer buffer = null;
+		byte header[] = null;
+		int pixelCount,value;
+
+		pixelCount = naxis1*naxis2;
+		buffer = ByteBuffer.wrap(byteBuffer);
+		for(int i = 0; i < pixelCount; i++)
+		{
+			value = data[i];
+			if(bitpix == 16)
+			{
+				if(value > Short.MAX_VALUE)
+					value = Short.MAX_VALUE;
+				else if(value < Short.MIN_VALUE)
+					value = Short.MIN_VALUE;
+				buffer.putShort((short)value);
+			}
+			else if(bitpix == 32)
+				buffer.putInt(value);
+			else
+				buffer.put((byte)(Math.min(Math.max(value,0),255)));
+		}
+		if(checksum != null)
+			setChecksumCards(cardList,checksum.sumData(byteBuffer,byteBuffer.length));
+		header = getHeaderBytes(cardList);
+		outputStream = new FileOutputStream(f);
+		try
+		{
+			outputStream.write(header);
+			outputStream.write(byteBuffer);
+			outputStream.write(new byte[getPaddingLength(byteBuffer.length)]);
+		}
+		finally
+		{
+			outputStream.close();
+		}
+		file = f;
+		headerLength = header.length;
+	}
+
+	/**
+	 * Add the FITS DATASUM and CHECKSUM keywords to the header, and write them to the file the image was
+	 * loaded from (or last saved to).
+	 * <ul>
+	 * <li>The data unit is summed from byteBuffer, which holds the bytes of the data unit as last read or
+	 *     written, so the pixel data must not have been changed since the image was loaded or saved.
+	 *     The padding at the end of the data unit is zero, and so does not change the sum.
+	 * <li>DATASUM is set, and CHECKSUM set to it's initial value, and the header is summed.
+	 * <li>CHECKSUM is set to the encoded complement of the header and data sums.
+	 * <li>If the header still fits in the same number of FITS blocks, only the header is re-written,
+	 *     in place. Otherwise the whole file is re-written using save.
+	 * </ul>
+	 * @param checksum The FitsChecksum instance used to sum the data unit.
+	 * @return true if only the header was re-written, false if the whole file had to be re-written.
+	 * @exception Exception Thrown if no image has been loaded, summing the data fails, 
+	 *            or writing the file fails.
+	 * @see #byteBuffer
+	 * @see #headerLength
+	 * @see #save
+	 * @see #updateChecksum
+	 * @see #setChecksumCards
+	 * @see FitsChecksum#sumData
+	 */
+	public boolean writeChecksum(FitsChecksum checksum) throws Exception
+	{
+		RandomAccessFile randomAccessFile = null;
+		byte header[] = null;
+
+		if((file == null)||(byteBuffer == null))
+		{
+			throw new Exception(this.getClass().getName()+
+					    ":writeChecksum:No image has been loaded.");
+		}
+		header = setChecksumCards(cardList,checksum.sumData(byteBuffer,byteBuffer.length));
+		if(header.length != headerLength)
+		{
+			save(file);
+			return false;
+		}
+		randomAccessFile = new RandomAccessFile(file,"rw");
+		try
+		{
+			randomAccessFile.write(getHeaderBytes(cardList));
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Set the FITS DATASUM and CHECKSUM keywords in the header, from the data unit as last read or written,
+	 * without writing the file. This is used to get the checksums of the image as it is on disc,
+	 * for instance to record them in a compressed copy.
+	 * @param checksum The FitsChecksum instance used to sum the data unit.
+	 * @exception Exception Thrown if no image has been loaded, or summing the data fails.
+	 * @see #byteBuffer
+	 * @see #setChecksumCards
+	 * @see FitsTileCompressor#compress
+	 */
+	public void updateChecksum(FitsChecksum checksum) throws Exception
+	{
+		if(byteBuffer == null)
+		{
+			throw new Exception(this.getClass().getName()+
+					    ":updateChecksum:No image has been loaded.");
+		}
+		setChecksumCards(cardList,checksum.sumData(byteBuffer,byteBuffer.length));
+	}
+
+	/**
+	 * Set the FITS DATASUM and CHECKSUM keywords in a list of header cards, given the sum of the data unit.
+	 * DATASUM is set, and CHECKSUM set to it's initial value, and the header is summed.
+	 * CHECKSUM is then set to the encoded complement of the header and data sums. Encoding the CHECKSUM
+	 * value does not change the number of header blocks.
+	 * @param list The list of header cards (excluding END), which is modified.
+	 * @param dataSum The ones' complement sum of the data unit (0 if there is no data unit).
+	 * @return The header bytes, with CHECKSUM set to it's initial value (the same length as the final header).
+	 * @exception UnsupportedEncodingException Thrown if the header cannot be encoded.
+	 * @see #setHeaderCard(java.util.List,java.lang.String,java.lang.Object,java.lang.String)
+	 * @see FitsChecksum#sum
+	 * @see FitsChecksum#encode
+	 */
+	public static byte[] setChecksumCards(List<String> list,long dataSum) throws UnsupportedEncodingException
+	{
+		byte header[] = null;
+		long headerSum;
+
+		setHeaderCard(list,"DATASUM",Long.toString(dataSum),"data unit checksum");
+		setHeaderCard(list,"CHECKSUM",FitsChecksum.CHECKSUM_INITIAL_VALUE,"HDU checksum");
+		header = getHeaderBytes(list);
+		headerSum = FitsChecksum.sum(header,0,header.length);
+		setHeaderCard(list,"CHECKSUM",FitsChecksum.encode(FitsChecksum.add(headerSum,dataSum)),"HDU checksum");
+		return header;
+	}
+
+	/**
+	 * Forget which file the image was loaded from, so a cache keyed on getFile will load the file again
+	 * (the file may have been re-written since). The data arrays are kept, to be re-used by the next load.
+	 * @see #file
+	 */
+	public void invalidate()
+	{
+		file = null;
+	}
+
+	/**
+	 * Get the file the image was loaded from.
+	 * @return The file.
+	 * @see #file
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Get the list of header card images (excluding END).
+	 * @return The list of cards.
+	 * @see #cardList
+	 */
+	public List<String> getCardList()
+	{
+		return cardList;
+	}
+
+	/**
+	 * Get the BITPIX of the image.
+	 * @return The BITPIX.
+	 * @see #bitpix
+	 */
+	public int getBitpix()
+	{
+		return bitpix;
+	}
+
+	/**
+	 * Get the number of bytes each stored pixel takes.
+	 * @return The number of bytes per pixel (1,2 or 4).
+	 * @see #bitpix
+	 */
+	public int getBytePix()
+	{
+		return Math.abs(bitpix)/8;
+	}
+
+	/**
+	 * Get the number of columns in the image.
+	 * @return NAXIS1.
+	 * @see #naxis1
+	 */
+	public int getNAxis1()
+	{
+		return naxis1;
+	}
+
+	/**
+	 * Get the number of rows in the image.
+	 * @return NAXIS2.
+	 * @see #naxis2
+	 */
+	public int getNAxis2()
+	{
+		return naxis2;
+	}
+
+	/**
+	 * Get the BZERO of the image.
+	 * @return BZERO, or 0.0 if it was not in the header.
+	 * @see #bzero
+	 */
+	public double getBZero()
+	{
+		return bzero;
+	}
+
+	/**
+	 * Get the BSCALE of the image.
+	 * @return BSCALE, or 1.0 if it was not in the header.
+	 * @see #bscale
+	 */
+	public double getBScale()
+	{
+		return bscale;
+	}
+
+	/**
+	 * Get the raw stored pixel data. The physical value of pixel i is (data[i]*bscale)+bzero.
+	 * @return The pixel data array. This is the internal array, not a copy.
+	 * @see #data
+	 */
+	public int[] getData()
+	{
+		return data;
+	}
+
+	/**
+	 * Get the value string of the specified keyword. For string values the enclosing quotes are removed.
+	 * @param keyword The keyword to look for.
+	 * @return The trimmed value string, or null if the keyword is not in the header.
+	 * @see #cardList
+	 */
+	public String getHeaderValue(String keyword)
+	{
+		String card = null;
+		String valueString = null;
+		int index;
+
+		for(int i = 0; i < cardList.size(); i++)
+		{
+			card = cardList.get(i);
+			if(card.substring(0,8).trim().equals(keyword) && (card.charAt(8) == '='))
+			{
+				valueString = card.substring(10);
+				if(valueString.trim().startsWith("'"))
+				{
+					valueString = valueString.trim();
+					index = valueString.indexOf('\'',1);
+					if(index < 0)
+						index = valueString.length();
+					return valueString.substring(1,index).trim();
+				}
+				index = valueString.indexOf('/');
+				if(index > -1)
+					valueString = valueString.substring(0,index);
+				return valueString.trim();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the value of the specified keyword as an integer.
+	 * @param keyword The keyword to look for.
+	 * @param defaultValue The value to return if the keyword is not present.
+	 * @return The value.
+	 * @exception NumberFormatException Thrown if the value is not a valid integer.
+	 * @see #getHeaderValue
+	 */
+	public int getHeaderInteger(String keyword,int defaultValue) throws NumberFormatException
+	{
+		String valueString = getHeaderValue(keyword);
+
+		if(valueString == null)
+			return defaultValue;
+		return Integer.parseInt(valueString);
+	}
+
+	/**
+	 * Get the value of the specified keyword as a double.
+	 * @param keyword The keyword to look for.
+	 * @param defaultValue The value to return if the keyword is not present.
+	 * @return The value.
+	 * @exception NumberFormatException Thrown if the value is not a valid double.
+	 * @see #getHeaderValue
+	 */
+	public double getHeaderDouble(String keyword,double defaultValue) throws NumberFormatException
+	{
+		String valueString = getHeaderValue(keyword);
+
+		if(valueString == null)
+			return defaultValue;
+		return Double.parseDouble(valueString.replace('D','E'));
+	}
+
+	/**
+	 * Set a header card. If a card with the keyword already exists it is replaced,
+	 * otherwise the card is added to the end of the header.
+	 * @param keyword The keyword.
+	 * @param value The value, one of String, Boolean, Integer, Long, Float or Double.
+	 * @param comment The comment, or null.
+	 * @see #cardList
+	 * @see #setHeaderCard(java.util.List,java.lang.String,java.lang.Object,java.lang.String)
+	 */
+	public void setHeaderCard(String keyword,Object value,String comment)
+	{
+		setHeaderCard(cardList,keyword,value,comment);
+	}
+
+	/**
+	 * Set a header card in a list of header cards. If a card with the keyword already exists it is replaced,
+	 * otherwise the card is added to the end of the list.
+	 * @param list The list of header cards (excluding END).
+	 * @param keyword The keyword.
+	 * @param value The value, one of String, Boolean, Integer, Long, Float or Double.
+	 * @param comment The comment, or null.
+	 * @see #formatCard
+	 */
+	public static void setHeaderCard(List<String> list,String keyword,Object value,String comment)
+	{
+		String card = formatCard(keyword,value,comment);
+
+		for(int i = 0; i < list.size(); i++)
+		{
+			if(list.get(i).substring(0,8).trim().equals(keyword))
+			{
+				list.set(i,card);
+				return;
+			}
+		}
+		list.add(card);
+	}
+
+	/**
+	 * Remove all header cards with the specified keyword.
+	 * @param keyword The keyword to remove.
+	 * @see #cardList
+	 */
+	public void removeHeaderCard(String keyword)
+	{
+		for(int i = cardList.size()-1; i >= 0; i--)
+		{
+			if(cardList.get(i).substring(0,8).trim().equals(keyword))
+				cardList.remove(i);
+		}
+	}
+
+	/**
+	 * Format a FITS card image. Strings are quoted and left justified from column 11, other values
+	 * are right justified to column 30.
+	 * @param keyword The keyword (up to 8 characters).
+	 * @param value The value, one of String, Boolean, Integer, Long, Float or Double.
+	 * @param comment The comment, or null.
+	 * @return A String of length FITS_CARD_LENGTH.
+	 */
+	public static String formatCard(String keyword,Object value,String comment)
+	{
+		StringBuffer card = new StringBuffer();
+		String valueString = null;
+
+		card.append(keyword);
+		while(card.length() < 8)
+			card.append(' ');
+		card.append("= ");
+		if(value instanceof String)
+		{
+			valueString = "'"+((String)value).replaceAll("'","''");
+			while(valueString.length() < 9)
+				valueString += " ";
+			card.append(valueString+"'");
+		}
+		else
+		{
+			if(value instanceof Boolean)
+				valueString = ((Boolean)value).booleanValue() ? "T" : "F";
+			else
+				valueString = value.toString();
+			for(int i = valueString.length(); i < 20; i++)
+				card.append(' ');
+			card.append(valueString);
+		}
+		if(comment != null)
+			card.append(" / "+comment);
+		while(card.length() < FITS_CARD_LENGTH)
+			card.append(' ');
+		card.setLength(FITS_CARD_LENGTH);
+		return card.toString();
+	}
+
+	/**
+	 * Convert a list of header cards into a FITS header, with an END card and padded to a whole number
+	 * of FITS blocks.
+	 * @param list A list of card images, each FITS_CARD_LENGTH long.
+	 * @return A byte array containing the header.
+	 * @exception UnsupportedEncodingException Thrown if US-ASCII is not supported.
+	 */
+	public static byte[] getHeaderBytes(List<String> list) throws UnsupportedEncodingException
+	{
+		StringBuffer header = new StringBuffer();
+
+		for(int i = 0; i < list.size(); i++)
+			header.append(list.get(i));
+		header.append("END");
+		while((header.length() % FITS_BLOCK_LENGTH) != 0)
+			header.append(' ');
+		return header.toString().getBytes("US-ASCII");
+	}
+
+	/**
+	 * Return the number of bytes of padding needed to make a data unit of the specified length
+	 * a whole number of FITS blocks.
+	 * @param length The length of the data unit in bytes.
+	 * @return The number of padding bytes needed.
+	 */
+	public static int getPaddingLength(long length)
+	{
+		int remainder = (int)(length % FITS_BLOCK_LENGTH);
+
+		if(remainder == 0)
+			return 0;
+		return FITS_BLOCK_LENGTH-remainder;
+	}
+}
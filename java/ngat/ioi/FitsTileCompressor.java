@@ -0,0 +1,601 @@
+// FitsTileCompressor.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class writes a FitsImageData out as a Rice compressed, tiled FITS image, following the
+ * FITS tiled image compression convention used by fpack/funpack (ZIMAGE, ZCMPTYPE = 'RICE_1').
+ * The image is split into tiles of one or more whole rows, and the tiles are compressed in parallel
+ * using the thread pool shared with the rest of the software.
+ * The compression is lossless, the raw stored integer values are compressed and the original BZERO/BSCALE
+ * are carried across into the compressed header. If a FitsChecksum is supplied, the compressed file has
+ * CHECKSUM and DATASUM keywords in both HDUs, and the checksums of the original image are kept in the
+ * ZHECKSUM and ZDATASUM keywords (as fpack does), so the archived file can be verified even when the
+ * original is deleted.
+ * @see FitsImageData
+ * @see DataProcessingThread#compressFitsFiles
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class FitsTileCompressor
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The Rice compression algorithm name, as used in the ZCMPTYPE and COMPRESS keywords.
+	 */
+	public final static String COMPRESSION_TYPE = new String("RICE_1");
+	/**
+	 * The number of pixels in each Rice coding block. This is the fpack default.
+	 */
+	public final static int RICE_BLOCK_SIZE = 32;
+	/**
+	 * The thread pool used to compress tiles in parallel.
+	 */
+	protected ExecutorService executorService = null;
+	/**
+	 * The number of threads in the thread pool.
+	 */
+	protected int threadCount = 1;
+	/**
+	 * The number of image rows in each compressed tile.
+	 */
+	protected int tileRowCount = 1;
+	/**
+	 * The number of bytes of uncompressed pixel data in the last image compressed.
+	 */
+	protected long lastUncompressedByteCount = 0;
+	/**
+	 * The number of bytes of compressed tile data in the last image compressed.
+	 */
+	protected long lastCompressedByteCount = 0;
+	/**
+	 * How long the last image compression took, in milliseconds.
+	 */
+	protected long lastCompressionTime = 0;
+
+	/**
+	 * Constructor. Uses the thread pool shared with the rest of the software;
+	 * the work is split into threadCount tasks.
+	 * @param executorService The shared thread pool.
+	 * @param threadCount The number of threads to compress tiles, normally the number of threads in the shared pool.
+	 *        If this is less than 1, 1 is used.
+	 * @see #threadCount
+	 * @see #executorService
+	 * @see IOIExecutors#getComputeExecutor
+	 */
+	public FitsTileCompressor(ExecutorService executorService,int threadCount)
+	{
+		super();
+		if(threadCount < 1)
+			threadCount = 1;
+		this.threadCount = threadCount;
+		this.executorService = executorService;
+	}
+
+	/**
+	 * Set the number of image rows in each tile.
+	 * @param n The number of rows, which must be at least 1.
+	 * @exception IllegalArgumentException Thrown if n is less than 1.
+	 * @see #tileRowCount
+	 */
+	public void setTileRowCount(int n) throws IllegalArgumentException
+	{
+		if(n < 1)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+
+							   ":setTileRowCount:Illegal tile row count:"+n);
+		}
+		tileRowCount = n;
+	}
+
+	/**
+	 * Compress the specified image into a tiled compressed FITS file, without checksums.
+	 * @param image The image to compress.
+	 * @param outputFile The file to write the compressed image to.
+	 * @exception Exception Thrown if the image has an unsupported BITPIX, if compression of a tile fails,
+	 *            or writing the file fails.
+	 * @see #compress(ngat.ioi.FitsImageData,java.io.File,ngat.ioi.FitsChecksum)
+	 */
+	public void compress(FitsImageData image,File outputFile) throws Exception
+	{
+		compress(image,outputFile,null);
+	}
+
+	/**
+	 * Compress the specified image into a tiled compressed FITS file.
+	 * <ul>
+	 * <li>The tiles are split into one task per thread and submitted to the thread pool.
+	 * <li>Each task Rice compresses it's tiles into a byte array per tile.
+	 * <li>We write an empty primary HDU, followed by a BINTABLE extension containing the tiled image
+	 *     compression keywords, the original image headers (less the structural keywords),
+	 *     COMPRESS, the tile descriptor table and the heap of compressed tiles.
+	 * <li>If checksum is not null, the image's DATASUM and CHECKSUM are updated from it's data unit as loaded,
+	 *     and written as ZDATASUM and ZHECKSUM, and each HDU of the compressed file is checksummed.
+	 * </ul>
+	 * @param image The image to compress. This should not have been modified since it was loaded.
+	 * @param outputFile The file to write the compressed image to.
+	 * @param checksum The FitsChecksum instance used to sum the data units, or null to not write checksums.
+	 * @exception Exception Thrown if the image has an unsupported BITPIX, if compression of a tile fails,
+	 *            or summing the data or writing the file fails.
+	 * @see #compressTiles
+	 * @see #writeCompressedFile
+	 * @see #lastUncompressedByteCount
+	 * @see #lastCompressedByteCount
+	 * @see #lastCompressionTime
+	 * @see FitsImageData#updateChecksum
+	 */
+	public void compress(FitsImageData image,File outputFile,FitsChecksum checksum) throws Exception
+	{
+		byte tileList[][];
+		long startTime;
+
+		if((image.getBitpix() != 16)&&(image.getBitpix() != 32))
+		{
+			throw new Exception(this.getClass().getName()+":compress:"+image.getFile()+
+					    ":Unsupported BITPIX for Rice compression:"+image.getBitpix());
+		}
+		startTime = System.currentTimeMillis();
+		if(checksum != null)
+			image.updateChecksum(checksum);
+		tileList = compressTiles(image);
+		lastCompressedByteCount = writeCompressedFile(image,tileList,outputFile,checksum);
+		lastUncompressedByteCount = ((long)image.getNAxis1())*((long)image.getNAxis2())*
+			((long)image.getBytePix());
+		lastCompressionTime = System.currentTimeMillis()-startTime;
+	}
+
+	/**
+	 * Compress the image data into a list of tiles, in parallel using the thread pool.
+	 * @param image The image to compress.
+	 * @return An array of byte arrays, one per tile, containing the Rice compressed tile data.
+	 * @exception Exception Thrown if a tile compression task fails.
+	 * @see #executorService
+	 * @see #tileRowCount
+	 * @see TileCompressionTask
+	 */
+	protected byte[][] compressTiles(FitsImageData image) throws Exception
+	{
+		List<Future<Object>> futureList = new Vector<Future<Object>>();
+		byte tileList[][];
+		int tileCount,tilesPerTask,startTile;
+
+		tileCount = (image.getNAxis2()+tileRowCount-1)/tileRowCount;
+		tileList = new byte[tileCount][];
+		tilesPerTask = (tileCount+threadCount-1)/threadCount;
+		for(startTile = 0; startTile < tileCount; startTile += tilesPerTask)
+		{
+			futureList.add(executorService.submit(new TileCompressionTask(image,tileList,startTile,
+						      Math.min(startTile+tilesPerTask,tileCount))));
+		}
+		for(int i = 0; i < futureList.size(); i++)
+		{
+			try
+			{
+				futureList.get(i).get();
+			}
+			catch(ExecutionException e)
+			{
+				throw new Exception(this.getClass().getName()+":compressTiles:"+image.getFile()+
+						    ":Tile compression failed:",e.getCause());
+			}
+		}
+		return tileList;
+	}
+
+	/**
+	 * Write the compressed tiles to disk as a FITS tiled image compression BINTABLE.
+	 * The tile descriptor table and heap (the data unit of the BINTABLE) are assembled into one buffer,
+	 * so it can be checksummed before it is written.
+	 * @param image The original image, used for the header cards and dimensions.
+	 * @param tileList The compressed tile data.
+	 * @param outputFile The file to write.
+	 * @param checksum The FitsChecksum instance used to sum the data unit, or null to not write checksums.
+	 *        If not null, the image's CHECKSUM and DATASUM must be up to date.
+	 * @return The number of bytes of compressed tile data (the heap size).
+	 * @exception Exception Thrown if summing the data, or writing the file, fails.
+	 * @see FitsImageData#getHeaderBytes
+	 * @see FitsImageData#formatCard
+	 * @see FitsImageData#setChecksumCards
+	 */
+	protected long writeCompressedFile(FitsImageData image,byte tileList[][],File outputFile,
+					   FitsChecksum checksum) throws Exception
+	{
+		List<String> primaryCardList = new Vector<String>();
+		List<String> cardList = new Vector<String>();
+		List<String> imageCardList = null;
+		BufferedOutputStream outputStream = null;
+		ByteBuffer dataBuffer = null;
+		String keyword = null;
+		long heapLength;
+		int maxTileLength,descriptorLength;
+
+		heapLength = 0;
+		maxTileLength = 0;
+		for(int i = 0; i < tileList.length; i++)
+		{
+			heapLength += tileList[i].length;
+			maxTileLength = Math.max(maxTileLength,tileList[i].length);
+		}
+		// empty primary HDU
+		primaryCardList.add(FitsImageData.formatCard("SIMPLE",new Boolean(true),"file conforms to FITS"));
+		primaryCardList.add(FitsImageData.formatCard("BITPIX",new Integer(8),null));
+		primaryCardList.add(FitsImageData.formatCard("NAXIS",new Integer(0),null));
+		primaryCardList.add(FitsImageData.formatCard("EXTEND",new Boolean(true),null));
+		// compressed image extension
+		cardList.add(FitsImageData.formatCard("XTENSION","BINTABLE","binary table extension"));
+		cardList.add(FitsImageData.formatCard("BITPIX",new Integer(8),null));
+		cardList.add(FitsImageData.formatCard("NAXIS",new Integer(2),null));
+		cardList.add(FitsImageData.formatCard("NAXIS1",new Integer(8),"width of table in bytes"));
+		cardList.add(FitsImageData.formatCard("NAXIS2",new Integer(tileList.length),"number of tiles"));
+		cardList.add(FitsImageData.formatCard("PCOUNT",new Long(heapLength),"size of heap"));
+		cardList.add(FitsImageData.formatCard("GCOUNT",new Integer(1),null));
+		cardList.add(FitsImageData.formatCard("TFIELDS",new Integer(1),null));
+		cardList.add(FitsImageData.formatCard("TTYPE1","COMPRESSED_DATA",null));
+		cardList.add(FitsImageData.formatCard("TFORM1","1PB("+maxTileLength+")",null));
+		cardList.add(FitsImageData.formatCard("ZIMAGE",new Boolean(true),"extension contains compressed image"));
+		cardList.add(FitsImageData.formatCard("ZSIMPLE",new Boolean(true),null));
+		cardList.add(FitsImageData.formatCard("ZBITPIX",new Integer(image.getBitpix()),null));
+		cardList.add(FitsImageData.formatCard("ZNAXIS",new Integer(2),null));
+		cardList.add(FitsImageData.formatCard("ZNAXIS1",new Integer(image.getNAxis1()),null));
+		cardList.add(FitsImageData.formatCard("ZNAXIS2",new Integer(image.getNAxis2()),null));
+		cardList.add(FitsImageData.formatCard("ZTILE1",new Integer(image.getNAxis1()),null));
+		cardList.add(FitsImageData.formatCard("ZTILE2",new Integer(tileRowCount),null));
+		cardList.add(FitsImageData.formatCard("ZCMPTYPE",COMPRESSION_TYPE,"compression algorithm"));
+		cardList.add(FitsImageData.formatCard("ZNAME1","BLOCKSIZE",null));
+		cardList.add(FitsImageData.formatCard("ZVAL1",new Integer(RICE_BLOCK_SIZE),null));
+		cardList.add(FitsImageData.formatCard("ZNAME2","BYTEPIX",null));
+		cardList.add(FitsImageData.formatCard("ZVAL2",new Integer(image.getBytePix()),null));
+		// copy the original image headers, less the structural keywords
+		imageCardList = image.getCardList();
+		for(int i = 0; i < imageCardList.size(); i++)
+		{
+			keyword = imageCardList.get(i).substring(0,8).trim();
+			if(keyword.equals("SIMPLE")||keyword.equals("BITPIX")||keyword.startsWith("NAXIS")||
+			   keyword.equals("EXTEND")||keyword.equals("COMPRESS")||keyword.equals("CHECKSUM")||
+			   keyword.equals("DATASUM"))
+				continue;
+			cardList.add(imageCardList.get(i));
+		}
+		cardList.add(FitsImageData.formatCard("COMPRESS",COMPRESSION_TYPE,"Tile compression algorithm"));
+		// tile descriptors, (length,heap offset) pairs, followed by the heap
+		descriptorLength = tileList.length*8;
+		dataBuffer = ByteBuffer.allocate(descriptorLength+((int)heapLength));
+		heapLength = 0;
+		for(int i = 0; i < tileList.length; i++)
+		{
+			dataBuffer.putInt(tileList[i].length);
+			dataBuffer.putInt((int)heapLength);
+			heapLength += tileList[i].length;
+		}
+		for(int i = 0; i < tileList.length; i++)
+			dataBuffer.put(tileList[i]);
+		if(checksum != null)
+		{
+			// the original image's checksums, which funpack can verify the uncompressed image against
+			cardList.add(FitsImageData.formatCard("ZHECKSUM",image.getHeaderValue("CHECKSUM"),
+							      "HDU checksum of the original image"));
+			cardList.add(FitsImageData.formatCard("ZDATASUM",image.getHeaderValue("DATASUM"),
+							      "data unit checksum of the original image"));
+			FitsImageData.setChecksumCards(primaryCardList,0);
+			FitsImageData.setChecksumCards(cardList,checksum.sumData(dataBuffer.array(),
+										dataBuffer.capacity()));
+		}
+		outputStream = new BufferedOutputStream(new FileOutputStream(outputFile),1024*1024);
+		try
+		{
+			outputStream.write(FitsImageData.getHeaderBytes(primaryCardList));
+			outputStream.write(FitsImageData.getHeaderBytes(cardList));
+			outputStream.write(dataBuffer.array());
+			outputStream.write(new byte[FitsImageData.getPaddingLength(dataBuffer.capacity())]);
+		}
+		finally
+		{
+			outputStream.close();
+		}
+		return heapLength;
+	}
+
+	/**
+	 * Get the number of uncompressed pixel data bytes in the last image compressed.
+	 * @return The number of bytes.
+	 * @see #lastUncompressedByteCount
+	 */
+	public long getLastUncompressedByteCount()
+	{
+		return lastUncompressedByteCount;
+	}
+
+	/**
+	 * Get the number of compressed tile data bytes in the last image compressed.
+	 * @return The number of bytes.
+	 * @see #lastCompressedByteCount
+	 */
+	public long getLastCompressedByteCount()
+	{
+		return lastCompressedByteCount;
+	}
+
+	/**
+	 * Get the compression ratio (uncompressed size / compressed size) of the last image compressed.
+	 * @return The compression ratio, or 0.0 if no image has been compressed yet.
+	 * @see #lastUncompressedByteCount
+	 * @see #lastCompressedByteCount
+	 */
+	public double getLastCompressionRatio()
+	{
+		if(lastCompressedByteCount == 0)
+			return 0.0;
+		return ((double)lastUncompressedByteCount)/((double)lastCompressedByteCount);
+	}
+
+	/**
+	 * Get the time taken to compress and write the last image.
+	 * @return The time in milliseconds.
+	 * @see #lastCompressionTime
+	 */
+	public long getLastCompressionTime()
+	{
+		return lastCompressionTime;
+	}
+
+	/**
+	 * Get the throughput of the last image compression, in uncompressed megabytes per second.
+	 * @return The throughput, or 0.0 if no image has been compressed yet.
+	 * @see #lastUncompressedByteCount
+	 * @see #lastCompressionTime
+	 */
+	public double getLastThroughput()
+	{
+		if(lastCompressionTime == 0)
+			return 0.0;
+		return (((double)lastUncompressedByteCount)/(1024.0*1024.0))/(((double)lastCompressionTime)/1000.0);
+	}
+
+	/**
+	 * Rice compress a run of pixels, following the algorithm used by CFITSIO (fits_rcomp/fits_rcomp_short).
+	 * The first pixel is written verbatim, subsequent pixels are coded as differences from the previous
+	 * pixel, in blocks of RICE_BLOCK_SIZE, each block with it's own split position.
+	 * @param data The pixel data array.
+	 * @param offset The index of the first pixel to compress.
+	 * @param count The number of pixels to compress.
+	 * @param bytePix The number of bytes per pixel, 2 or 4.
+	 * @param output The buffer to write the compressed data into. This must be at least
+	 *        getMaxCompressedLength(count,bytePix) long.
+	 * @param diff A scratch buffer of at least RICE_BLOCK_SIZE elements.
+	 * @return The number of bytes of compressed data written into output.
+	 * @see #RICE_BLOCK_SIZE
+	 * @see #getMaxCompressedLength
+	 * @see BitOutput
+	 */
+	public static int riceCompress(int data[],int offset,int count,int bytePix,byte output[],long diff[])
+	{
+		BitOutput bitOutput = new BitOutput(output);
+		double pixelSum,dpsum;
+		long psum,v,fsMask;
+		int fsBits,fsMax,bBits,thisBlock,lastPixel,nextPixel,pixelDiff,fs,top;
+
+		if(bytePix == 2)
+		{
+			fsBits = 4;
+			fsMax = 14;
+			bBits = 16;
+		}
+		else
+		{
+			fsBits = 5;
+			fsMax = 25;
+			bBits = 32;
+		}
+		lastPixel = data[offset];
+		bitOutput.write(lastPixel,bBits);
+		for(int i = 0; i < count; i += RICE_BLOCK_SIZE)
+		{
+			thisBlock = Math.min(RICE_BLOCK_SIZE,count-i);
+			pixelSum = 0.0;
+			for(int j = 0; j < thisBlock; j++)
+			{
+				nextPixel = data[offset+i+j];
+				pixelDiff = nextPixel-lastPixel;
+				// 16 bit differences wrap, as they do when decompressed
+				if(bytePix == 2)
+					pixelDiff = (short)pixelDiff;
+				// map signed differences onto unsigned values: 0,-1,1,-2,2...
+				diff[j] = ((long)((pixelDiff < 0) ? ~(pixelDiff<<1) : (pixelDiff<<1)))&0xffffffffL;
+				pixelSum += diff[j];
+				lastPixel = nextPixel;
+			}
+			dpsum = (pixelSum-(thisBlock/2)-1)/thisBlock;
+			if(dpsum < 0.0)
+				dpsum = 0.0;
+			psum = ((long)dpsum)>>1;
+			for(fs = 0; psum > 0; fs++)
+				psum >>= 1;
+			if(fs >= fsMax)
+			{
+				// high entropy block, write the differences verbatim
+				bitOutput.write(fsMax+1,fsBits);
+				for(int j = 0; j < thisBlock; j++)
+					bitOutput.write(diff[j],bBits);
+			}
+			else if((fs == 0)&&(pixelSum == 0.0))
+			{
+				// low entropy block, all differences are zero
+				bitOutput.write(0,fsBits);
+			}
+			else
+			{
+				bitOutput.write(fs+1,fsBits);
+				fsMask = (1L<<fs)-1;
+				for(int j = 0; j < thisBlock; j++)
+				{
+					v = diff[j];
+					top = (int)(v>>fs);
+					// top zeros followed by a one
+					while(top > 32)
+					{
+						bitOutput.write(0,32);
+						top -= 32;
+					}
+					bitOutput.write(1,top+1);
+					if(fs > 0)
+						bitOutput.write(v&fsMask,fs);
+				}
+			}
+		}
+		return bitOutput.flush();
+	}
+
+	/**
+	 * Return the worst case length of a Rice compressed run of pixels. As the split position is chosen
+	 * from the block mean, the unary coded part of a block averages less than three bits per pixel,
+	 * so a few bits per pixel more than the verbatim size is always enough.
+	 * @param count The number of pixels.
+	 * @param bytePix The number of bytes per pixel.
+	 * @return The maximum number of bytes riceCompress can write for this number of pixels.
+	 * @see #riceCompress
+	 */
+	public static int getMaxCompressedLength(int count,int bytePix)
+	{
+		int blockCount = (count+RICE_BLOCK_SIZE-1)/RICE_BLOCK_SIZE;
+
+		return (((bytePix*8)+(blockCount*5)+(count*((bytePix*8)+4)))/8)+8;
+	}
+
+	/**
+	 * Task that compresses a contiguous range of tiles. Each task has it's own output and difference
+	 * buffers, so tasks do not share any mutable state apart from distinct elements of the tile list.
+	 */
+	protected class TileCompressionTask implements Callable<Object>
+	{
+		/**
+		 * The image to compress.
+		 */
+		protected FitsImageData image = null;
+		/**
+		 * The list of compressed tiles to fill in.
+		 */
+		protected byte tileList[][] = null;
+		/**
+		 * The first tile to compress.
+		 */
+		protected int startTile;
+		/**
+		 * One more than the last tile to compress.
+		 */
+		protected int endTile;
+
+		/**
+		 * Constructor.
+		 * @param image The image to compress.
+		 * @param tileList The list of compressed tiles to fill in.
+		 * @param startTile The first tile to compress.
+		 * @param endTile One more than the last tile to compress.
+		 */
+		public TileCompressionTask(FitsImageData image,byte tileList[][],int startTile,int endTile)
+		{
+			super();
+			this.image = image;
+			this.tileList = tileList;
+			this.startTile = startTile;
+			this.endTile = endTile;
+		}
+
+		/**
+		 * Compress the tiles.
+		 * @return null.
+		 * @see FitsTileCompressor#riceCompress
+		 */
+		public Object call()
+		{
+			byte output[];
+			long diff[] = new long[RICE_BLOCK_SIZE];
+			int nAxis1,nAxis2,bytePix,firstRow,rowCount,length;
+
+			nAxis1 = image.getNAxis1();
+			nAxis2 = image.getNAxis2();
+			bytePix = image.getBytePix();
+			output = new byte[getMaxCompressedLength(nAxis1*tileRowCount,bytePix)];
+			for(int tile = startTile; tile < endTile; tile++)
+			{
+				firstRow = tile*tileRowCount;
+				rowCount = Math.min(tileRowCount,nAxis2-firstRow);
+				length = riceCompress(image.getData(),firstRow*nAxis1,rowCount*nAxis1,bytePix,output,diff);
+				tileList[tile] = new byte[length];
+				System.arraycopy(output,0,tileList[tile],0,length);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Simple big-endian bit packer used by riceCompress.
+	 */
+	protected static class BitOutput
+	{
+		/**
+		 * The output buffer.
+		 */
+		protected byte buffer[] = null;
+		/**
+		 * The next byte to write in the buffer.
+		 */
+		protected int position = 0;
+		/**
+		 * Bits waiting to be written.
+		 */
+		protected long accumulator = 0;
+		/**
+		 * The number of bits in the accumulator.
+		 */
+		protected int bitCount = 0;
+
+		/**
+		 * Constructor.
+		 * @param b The output buffer.
+		 */
+		public BitOutput(byte b[])
+		{
+			super();
+			buffer = b;
+		}
+
+		/**
+		 * Write the bottom n bits of value.
+		 * @param value The value to write.
+		 * @param n The number of bits to write, up to 33.
+		 */
+		public void write(long value,int n)
+		{
+			accumulator = (accumulator<<n)|(value&((1L<<n)-1));
+			bitCount += n;
+			while(bitCount >= 8)
+			{
+				bitCount -= 8;
+				buffer[position++] = (byte)(accumulator>>>bitCount);
+			}
+			accumulator &= (1L<<bitCount)-1;
+		}
+
+		/**
+		 * Write out any remaining bits, padded with zeros to a whole byte.
+		 * @return The total number of bytes written.
+		 */
+		public int flush()
+		{
+			if(bitCount > 0)
+				buffer[position++] = (byte)(accumulator<<(8-bitCount));
+			bitCount = 0;
+			accumulator = 0;
+			return position;
+		}
+	}
+}
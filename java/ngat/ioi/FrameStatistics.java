@@ -0,0 +1,260 @@
+// FrameStatistics.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+
+/**
+ * Instances of this class hold the data quality statistics computed by the data pipeline for one
+ * processed ramp. The values are returned to the client in MULTRUN_DONE, in place of a DpRt reduction.
+ * @see FrameStatisticsCalculator
+ * @see DataProcessingThread#calculateFrameStatistics
+ * @see MULTRUNImplementation#processCommand
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class FrameStatistics
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The timestamp of the ACQUIRERAMP command that generated the frame.
+	 */
+	protected long acquireRampCommandCallTime = -1;
+	/**
+	 * The filename of the frame the statistics were computed on.
+	 */
+	protected String filename = null;
+	/**
+	 * The sigma-clipped mean sky level, in counts per pixel.
+	 */
+	protected double sky = 0.0;
+	/**
+	 * The sigma-clipped standard deviation of the sky, in counts.
+	 */
+	protected double skySigma = 0.0;
+	/**
+	 * The peak counts above sky of the brightest source, or 0.0 if no source was detected.
+	 */
+	protected double peakCounts = 0.0;
+	/**
+	 * The number of pixels at or above the saturation level.
+	 */
+	protected int saturatedPixelCount = 0;
+	/**
+	 * The FWHM of the brightest source, in pixels, or 0.0 if no source was detected.
+	 */
+	protected double fwhm = 0.0;
+	/**
+	 * The FWHM of the brightest source, in arcseconds, or 0.0 if no source was detected.
+	 */
+	protected double seeing = 0.0;
+	/**
+	 * The X centroid of the brightest source, in FITS (1 based) pixels, or 0.0 if no source was detected.
+	 */
+	protected double xCentroid = 0.0;
+	/**
+	 * The Y centroid of the brightest source, in FITS (1 based) pixels, or 0.0 if no source was detected.
+	 */
+	protected double yCentroid = 0.0;
+
+	/**
+	 * Default constructor.
+	 */
+	public FrameStatistics()
+	{
+		super();
+	}
+
+	/**
+	 * Set the timestamp of the ACQUIRERAMP command that generated the frame.
+	 * @param t A Java timestamp (long number of milliseconds since the epoch).
+	 * @see #acquireRampCommandCallTime
+	 */
+	public void setAcquireRampCommandCallTime(long t)
+	{
+		acquireRampCommandCallTime = t;
+	}
+
+	/**
+	 * Get the timestamp of the ACQUIRERAMP command that generated the frame.
+	 * @return A Java timestamp (long number of milliseconds since the epoch).
+	 * @see #acquireRampCommandCallTime
+	 */
+	public long getAcquireRampCommandCallTime()
+	{
+		return acquireRampCommandCallTime;
+	}
+
+	/**
+	 * Set the filename of the frame.
+	 * @param s The filename.
+	 * @see #filename
+	 */
+	public void setFilename(String s)
+	{
+		filename = s;
+	}
+
+	/**
+	 * Get the filename of the frame.
+	 * @return The filename.
+	 * @see #filename
+	 */
+	public String getFilename()
+	{
+		return filename;
+	}
+
+	/**
+	 * Set the sky level and standard deviation.
+	 * @param s The sigma-clipped mean sky level.
+	 * @param sigma The sigma-clipped standard deviation.
+	 * @see #sky
+	 * @see #skySigma
+	 */
+	public void setSky(double s,double sigma)
+	{
+		sky = s;
+		skySigma = sigma;
+	}
+
+	/**
+	 * Get the sigma-clipped mean sky level.
+	 * @return The sky level, in counts per pixel.
+	 * @see #sky
+	 */
+	public double getSky()
+	{
+		return sky;
+	}
+
+	/**
+	 * Get the sigma-clipped standard deviation of the sky.
+	 * @return The standard deviation, in counts.
+	 * @see #skySigma
+	 */
+	public double getSkySigma()
+	{
+		return skySigma;
+	}
+
+	/**
+	 * Set the peak counts above sky of the brightest source.
+	 * @param d The peak counts.
+	 * @see #peakCounts
+	 */
+	public void setPeakCounts(double d)
+	{
+		peakCounts = d;
+	}
+
+	/**
+	 * Get the peak counts above sky of the brightest source.
+	 * @return The peak counts.
+	 * @see #peakCounts
+	 */
+	public double getPeakCounts()
+	{
+		return peakCounts;
+	}
+
+	/**
+	 * Set the number of saturated pixels.
+	 * @param n The number of pixels.
+	 * @see #saturatedPixelCount
+	 */
+	public void setSaturatedPixelCount(int n)
+	{
+		saturatedPixelCount = n;
+	}
+
+	/**
+	 * Get the number of saturated pixels.
+	 * @return The number of pixels.
+	 * @see #saturatedPixelCount
+	 */
+	public int getSaturatedPixelCount()
+	{
+		return saturatedPixelCount;
+	}
+
+	/**
+	 * Set the FWHM of the brightest source.
+	 * @param pixels The FWHM in pixels.
+	 * @param arcsecs The FWHM in arcseconds.
+	 * @see #fwhm
+	 * @see #seeing
+	 */
+	public void setFWHM(double pixels,double arcsecs)
+	{
+		fwhm = pixels;
+		seeing = arcsecs;
+	}
+
+	/**
+	 * Get the FWHM of the brightest source, in pixels.
+	 * @return The FWHM.
+	 * @see #fwhm
+	 */
+	public double getFWHM()
+	{
+		return fwhm;
+	}
+
+	/**
+	 * Get the FWHM of the brightest source, in arcseconds.
+	 * @return The seeing.
+	 * @see #seeing
+	 */
+	public double getSeeing()
+	{
+		return seeing;
+	}
+
+	/**
+	 * Set the centroid of the brightest source.
+	 * @param x The X centroid in FITS (1 based) pixels.
+	 * @param y The Y centroid in FITS (1 based) pixels.
+	 * @see #xCentroid
+	 * @see #yCentroid
+	 */
+	public void setCentroid(double x,double y)
+	{
+		xCentroid = x;
+		yCentroid = y;
+	}
+
+	/**
+	 * Get the X centroid of the brightest source.
+	 * @return The X centroid in FITS (1 based) pixels.
+	 * @see #xCentroid
+	 */
+	public double getXCentroid()
+	{
+		return xCentroid;
+	}
+
+	/**
+	 * Get the Y centroid of the brightest source.
+	 * @return The Y centroid in FITS (1 based) pixels.
+	 * @see #yCentroid
+	 */
+	public double getYCentroid()
+	{
+		return yCentroid;
+	}
+
+	/**
+	 * Return a string describing the statistics.
+	 */
+	public String toString()
+	{
+		return new String(this.getClass().getName()+":filename:"+filename+":sky:"+sky+":sky sigma:"+skySigma+
+				  ":peak counts:"+peakCounts+":saturated pixels:"+saturatedPixelCount+
+				  ":fwhm:"+fwhm+" pixels:seeing:"+seeing+" arcsecs:centroid:("+
+				  xCentroid+","+yCentroid+")");
+	}
+}
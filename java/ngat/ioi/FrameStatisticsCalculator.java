@@ -0,0 +1,582 @@
+// FrameStatisticsCalculator.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class computes simple data quality statistics on a frame: a sigma-clipped sky level, the number
+ * of saturated pixels, and the peak counts, centroid and FWHM of the brightest source.
+ * The full frame passes (the initial pass and the sky clipping passes) are split into blocks of rows which
+ * are processed in parallel. The per-block tasks are allocated once and re-used, and the kernels work
+ * directly on the raw pixel arrays with primitive accumulators, so no objects are allocated per pixel
+ * or per frame.
+ * The reference pixel border of the detector is excluded from the statistics.
+ * @see FrameStatistics
+ * @see FitsImageData
+ * @see DataProcessingThread#calculateFrameStatistics
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class FrameStatisticsCalculator
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * Conversion from the standard deviation of a gaussian to it's FWHM.
+	 */
+	public final static double SIGMA_TO_FWHM = 2.0*Math.sqrt(2.0*Math.log(2.0));
+	/**
+	 * Task mode: accumulate unclipped statistics, saturated pixels, and find the brightest 3x3 box.
+	 */
+	protected final static int TASK_MODE_INITIAL = 0;
+	/**
+	 * Task mode: accumulate statistics of pixels within the current clip limits.
+	 */
+	protected final static int TASK_MODE_CLIP    = 1;
+	/**
+	 * Task mode: only count saturated pixels.
+	 */
+	protected final static int TASK_MODE_SATURATION = 2;
+	/**
+	 * The thread pool used to process blocks of rows in parallel.
+	 */
+	protected ExecutorService executorService = null;
+	/**
+	 * The list of re-usable tasks, one per thread.
+	 */
+	protected List<StatisticsTask> taskList = null;
+	/**
+	 * The width of the reference pixel border excluded from the statistics.
+	 */
+	protected int border = 4;
+	/**
+	 * The physical value at or above which a pixel in the final read is considered saturated.
+	 * This is in raw counts, so should be compared with the final read before any correction
+	 * (see countSaturatedPixels).
+	 * @see #countSaturatedPixels
+	 */
+	protected double saturationLevel = 65535.0;
+	/**
+	 * The number of sky sigma clipping iterations.
+	 */
+	protected int clipIterationCount = 3;
+	/**
+	 * The sky clipping threshold, in standard deviations.
+	 */
+	protected double clipSigma = 3.0;
+	/**
+	 * The radius of the box around the brightest source used to compute the centroid and FWHM.
+	 */
+	protected int sourceRadius = 10;
+	/**
+	 * The detection threshold, in sky standard deviations above the sky, that the brightest 3x3 box mean
+	 * must exceed for a source to be considered detected.
+	 */
+	protected double detectionSigma = 5.0;
+	/**
+	 * The pixel scale in arcseconds per pixel, used to convert the FWHM to seeing.
+	 */
+	protected double pixelScale = 1.0;
+	/**
+	 * The final read data of the frame being processed.
+	 */
+	protected int finalData[] = null;
+	/**
+	 * The first read data of the frame being processed, or null if this is not a CDS frame.
+	 */
+	protected int firstData[] = null;
+	/**
+	 * The final read BSCALE.
+	 */
+	protected double finalScale = 1.0;
+	/**
+	 * The final read BZERO.
+	 */
+	protected double finalZero = 0.0;
+	/**
+	 * The first read BSCALE.
+	 */
+	protected double firstScale = 1.0;
+	/**
+	 * The first read BZERO.
+	 */
+	protected double firstZero = 0.0;
+	/**
+	 * The number of columns in the frame being processed.
+	 */
+	protected int nAxis1 = 0;
+	/**
+	 * The number of rows in the frame being processed.
+	 */
+	protected int nAxis2 = 0;
+	/**
+	 * The lower clip limit for the current TASK_MODE_CLIP pass.
+	 */
+	protected double clipLow = 0.0;
+	/**
+	 * The upper clip limit for the current TASK_MODE_CLIP pass.
+	 */
+	protected double clipHigh = 0.0;
+
+	/**
+	 * Constructor. Uses the thread pool shared with the rest of the software;
+	 * one re-usable task is created per thread.
+	 * @param executorService The shared thread pool.
+	 * @param threadCount The number of threads to use, normally the number of threads in the shared pool.
+	 *        If this is less than 1, 1 is used.
+	 * @see #executorService
+	 * @see #taskList
+	 * @see IOIExecutors#getComputeExecutor
+	 */
+	public FrameStatisticsCalculator(ExecutorService executorService,int threadCount)
+	{
+		super();
+		if(threadCount < 1)
+			threadCount = 1;
+		this.executorService = executorService;
+		taskList = new Vector<StatisticsTask>();
+		for(int i = 0; i < threadCount; i++)
+			taskList.add(new StatisticsTask());
+	}
+
+	/**
+	 * Set the width of the reference pixel border excluded from the statistics.
+	 * @param b The border width in pixels.
+	 * @see #border
+	 */
+	public void setBorder(int b)
+	{
+		border = b;
+	}
+
+	/**
+	 * Set the saturation level.
+	 * @param d The physical value, in raw counts, at or above which a final read pixel is saturated.
+	 * @see #saturationLevel
+	 */
+	public void setSaturationLevel(double d)
+	{
+		saturationLevel = d;
+	}
+
+	/**
+	 * Set the sky clipping parameters.
+	 * @param iterationCount The number of clipping iterations.
+	 * @param sigma The clipping threshold, in standard deviations.
+	 * @see #clipIterationCount
+	 * @see #clipSigma
+	 */
+	public void setClipping(int iterationCount,double sigma)
+	{
+		clipIterationCount = iterationCount;
+		clipSigma = sigma;
+	}
+
+	/**
+	 * Set the source detection parameters.
+	 * @param radius The radius of the box used for the centroid and FWHM, in pixels.
+	 * @param sigma The detection threshold, in sky standard deviations.
+	 * @see #sourceRadius
+	 * @see #detectionSigma
+	 */
+	public void setSourceDetection(int radius,double sigma)
+	{
+		sourceRadius = radius;
+		detectionSigma = sigma;
+	}
+
+	/**
+	 * Set the pixel scale.
+	 * @param d The pixel scale, in arcseconds per pixel.
+	 * @see #pixelScale
+	 */
+	public void setPixelScale(double d)
+	{
+		pixelScale = d;
+	}
+
+	/**
+	 * Compute the statistics for a frame.
+	 * <ul>
+	 * <li>An initial parallel pass computes the unclipped mean and standard deviation, the number of
+	 *     saturated pixels, and the location of the brightest 3x3 box.
+	 * <li>clipIterationCount parallel passes compute the sigma-clipped sky mean and standard deviation.
+	 * <li>If the brightest box mean exceeds the sky by detectionSigma sky standard deviations,
+	 *     the centroid, peak counts and FWHM are computed from a box of radius sourceRadius around it.
+	 * </ul>
+	 * @param finalRead The final read of the ramp.
+	 * @param firstRead The first read of the ramp, if the statistics are to be computed on a CDS image,
+	 *        otherwise null.
+	 * @param statistics The instance to fill in with the results.
+	 * @exception Exception Thrown if the frame is too small, the reads have different dimensions,
+	 *            or a task fails.
+	 * @see #runTasks
+	 * @see #measureSource
+	 */
+	public void calculate(FitsImageData finalRead,FitsImageData firstRead,FrameStatistics statistics)
+		throws Exception
+	{
+		StatisticsTask task = null;
+		double sum,sumSquared,mean,sigma,boxMax;
+		long count;
+		int saturatedCount,boxMaxX,boxMaxY;
+
+		nAxis1 = finalRead.getNAxis1();
+		nAxis2 = finalRead.getNAxis2();
+		if((nAxis1 <= ((2*border)+2))||(nAxis2 <= ((2*border)+2)))
+		{
+			throw new Exception(this.getClass().getName()+":calculate:"+finalRead.getFile()+
+					    ":Frame too small:"+nAxis1+"x"+nAxis2);
+		}
+		if((firstRead != null)&&((firstRead.getNAxis1() != nAxis1)||(firstRead.getNAxis2() != nAxis2)))
+		{
+			throw new Exception(this.getClass().getName()+":calculate:CDS read dimensions differ:"+
+					    finalRead.getFile()+" and "+firstRead.getFile()+".");
+		}
+		finalData = finalRead.getData();
+		finalScale = finalRead.getBScale();
+		finalZero = finalRead.getBZero();
+		if(firstRead != null)
+		{
+			firstData = firstRead.getData();
+			firstScale = firstRead.getBScale();
+			firstZero = firstRead.getBZero();
+		}
+		else
+			firstData = null;
+		// initial pass
+		runTasks(TASK_MODE_INITIAL);
+		sum = 0.0;
+		sumSquared = 0.0;
+		count = 0;
+		saturatedCount = 0;
+		boxMax = -Double.MAX_VALUE;
+		boxMaxX = -1;
+		boxMaxY = -1;
+		for(int i = 0; i < taskList.size(); i++)
+		{
+			task = taskList.get(i);
+			sum += task.sum;
+			sumSquared += task.sumSquared;
+			count += task.count;
+			saturatedCount += task.saturatedCount;
+			if(task.boxMax > boxMax)
+			{
+				boxMax = task.boxMax;
+				boxMaxX = task.boxMaxX;
+				boxMaxY = task.boxMaxY;
+			}
+		}
+		mean = sum/count;
+		sigma = Math.sqrt(Math.max(0.0,(sumSquared/count)-(mean*mean)));
+		// clipping passes
+		for(int iteration = 0; iteration < clipIterationCount; iteration++)
+		{
+			clipLow = mean-(clipSigma*sigma);
+			clipHigh = mean+(clipSigma*sigma);
+			runTasks(TASK_MODE_CLIP);
+			sum = 0.0;
+			sumSquared = 0.0;
+			count = 0;
+			for(int i = 0; i < taskList.size(); i++)
+			{
+				task = taskList.get(i);
+				sum += task.sum;
+				sumSquared += task.sumSquared;
+				count += task.count;
+			}
+			if(count == 0)
+				break;
+			mean = sum/count;
+			sigma = Math.sqrt(Math.max(0.0,(sumSquared/count)-(mean*mean)));
+		}
+		statistics.setSky(mean,sigma);
+		statistics.setSaturatedPixelCount(saturatedCount);
+		statistics.setPeakCounts(0.0);
+		statistics.setFWHM(0.0,0.0);
+		statistics.setCentroid(0.0,0.0);
+		if((boxMaxX > -1)&&(((boxMax/9.0)-mean) > (detectionSigma*sigma)))
+			measureSource(boxMaxX,boxMaxY,mean,sigma,statistics);
+		finalData = null;
+		firstData = null;
+	}
+
+	/**
+	 * Count the number of pixels (less the border) in a read at or above the saturation level.
+	 * The saturation level is in raw counts, so this should be called on the final read before it is
+	 * reference pixel corrected or calibrated in place. calculate counts saturation on the read it is given,
+	 * which is only right if that read has not been corrected.
+	 * @param finalRead The (raw) final read of the ramp.
+	 * @return The number of saturated pixels.
+	 * @exception Exception Thrown if the frame is too small, or a task fails.
+	 * @see #saturationLevel
+	 * @see #runTasks
+	 * @see #TASK_MODE_SATURATION
+	 */
+	public int countSaturatedPixels(FitsImageData finalRead) throws Exception
+	{
+		int saturatedCount;
+
+		nAxis1 = finalRead.getNAxis1();
+		nAxis2 = finalRead.getNAxis2();
+		if((nAxis1 <= ((2*border)+2))||(nAxis2 <= ((2*border)+2)))
+		{
+			throw new Exception(this.getClass().getName()+":countSaturatedPixels:"+finalRead.getFile()+
+					    ":Frame too small:"+nAxis1+"x"+nAxis2);
+		}
+		finalData = finalRead.getData();
+		finalScale = finalRead.getBScale();
+		finalZero = finalRead.getBZero();
+		firstData = null;
+		runTasks(TASK_MODE_SATURATION);
+		saturatedCount = 0;
+		for(int i = 0; i < taskList.size(); i++)
+			saturatedCount += taskList.get(i).saturatedCount;
+		finalData = null;
+		return saturatedCount;
+	}
+
+	/**
+	 * Compute the centroid, peak counts and FWHM of a source, using the pixels more than 3 sky standard
+	 * deviations above the sky within a box of radius sourceRadius around the specified position.
+	 * The centroid is the intensity weighted first moment, the FWHM is derived from the intensity weighted
+	 * second moments assuming a circular gaussian profile.
+	 * @param xCentre The X pixel (0 based) of the centre of the box.
+	 * @param yCentre The Y pixel (0 based) of the centre of the box.
+	 * @param sky The sky level.
+	 * @param sigma The sky standard deviation.
+	 * @param statistics The instance to fill in with the results.
+	 * @see #sourceRadius
+	 * @see #pixelScale
+	 * @see #SIGMA_TO_FWHM
+	 */
+	protected void measureSource(int xCentre,int yCentre,double sky,double sigma,FrameStatistics statistics)
+	{
+		double weight,sumWeight,sumX,sumY,sumXX,sumYY,peak,value,xc,yc,sigma2,fwhm;
+		int xStart,xEnd,yStart,yEnd;
+
+		xStart = Math.max(border,xCentre-sourceRadius);
+		xEnd = Math.min(nAxis1-border-1,xCentre+sourceRadius);
+		yStart = Math.max(border,yCentre-sourceRadius);
+		yEnd = Math.min(nAxis2-border-1,yCentre+sourceRadius);
+		sumWeight = 0.0;
+		sumX = 0.0;
+		sumY = 0.0;
+		peak = 0.0;
+		for(int y = yStart; y <= yEnd; y++)
+		{
+			for(int x = xStart; x <= xEnd; x++)
+			{
+				weight = getValue((y*nAxis1)+x)-sky;
+				if(weight > peak)
+					peak = weight;
+				if(weight > (3.0*sigma))
+				{
+					sumWeight += weight;
+					sumX += weight*x;
+					sumY += weight*y;
+				}
+			}
+		}
+		if(sumWeight <= 0.0)
+			return;
+		xc = sumX/sumWeight;
+		yc = sumY/sumWeight;
+		sumXX = 0.0;
+		sumYY = 0.0;
+		for(int y = yStart; y <= yEnd; y++)
+		{
+			for(int x = xStart; x <= xEnd; x++)
+			{
+				weight = getValue((y*nAxis1)+x)-sky;
+				if(weight > (3.0*sigma))
+				{
+					sumXX += weight*(x-xc)*(x-xc);
+					sumYY += weight*(y-yc)*(y-yc);
+				}
+			}
+		}
+		sigma2 = ((sumXX+sumYY)/sumWeight)/2.0;
+		fwhm = SIGMA_TO_FWHM*Math.sqrt(sigma2);
+		statistics.setPeakCounts(peak);
+		statistics.setFWHM(fwhm,fwhm*pixelScale);
+		statistics.setCentroid(xc+1.0,yc+1.0);
+	}
+
+	/**
+	 * Get the physical value of a pixel, subtracting the first read if this is a CDS frame.
+	 * @param index The index of the pixel in the data arrays.
+	 * @return The physical value.
+	 */
+	protected final double getValue(int index)
+	{
+		double value = (finalData[index]*finalScale)+finalZero;
+
+		if(firstData != null)
+			value -= (firstData[index]*firstScale)+firstZero;
+		return value;
+	}
+
+	/**
+	 * Run the tasks over the frame (less the border) in the specified mode, and wait for them to finish.
+	 * @param mode The mode to run the tasks in.
+	 * @exception Exception Thrown if a task fails.
+	 * @see #taskList
+	 * @see #TASK_MODE_INITIAL
+	 * @see #TASK_MODE_CLIP
+	 * @see #TASK_MODE_SATURATION
+	 */
+	protected void runTasks(int mode) throws Exception
+	{
+		List<Future<Object>> futureList = null;
+		int rowCount,rowsPerTask,startRow;
+
+		rowCount = nAxis2-(2*border);
+		rowsPerTask = (rowCount+taskList.size()-1)/taskList.size();
+		for(int i = 0; i < taskList.size(); i++)
+		{
+			startRow = border+(i*rowsPerTask);
+			taskList.get(i).setup(mode,startRow,Math.min(startRow+rowsPerTask,nAxis2-border));
+		}
+		futureList = executorService.invokeAll(taskList);
+		for(int i = 0; i < futureList.size(); i++)
+		{
+			try
+			{
+				futureList.get(i).get();
+			}
+			catch(ExecutionException e)
+			{
+				throw new Exception(this.getClass().getName()+":runTasks:Statistics task failed:",
+						    e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Re-usable task that processes a block of rows of the frame. The results are left in the task's
+	 * fields, and combined by calculate.
+	 */
+	protected class StatisticsTask implements Callable<Object>
+	{
+		/**
+		 * The mode to run in.
+		 */
+		protected int mode;
+		/**
+		 * The first row to process.
+		 */
+		protected int startRow;
+		/**
+		 * One more than the last row to process.
+		 */
+		protected int endRow;
+		/**
+		 * The sum of the pixel values.
+		 */
+		protected double sum;
+		/**
+		 * The sum of the squared pixel values.
+		 */
+		protected double sumSquared;
+		/**
+		 * The number of pixels summed.
+		 */
+		protected long count;
+		/**
+		 * The number of saturated pixels (TASK_MODE_INITIAL and TASK_MODE_SATURATION only).
+		 */
+		protected int saturatedCount;
+		/**
+		 * The largest 3x3 box sum found (TASK_MODE_INITIAL only).
+		 */
+		protected double boxMax;
+		/**
+		 * The X pixel of the centre of the largest 3x3 box sum.
+		 */
+		protected int boxMaxX;
+		/**
+		 * The Y pixel of the centre of the largest 3x3 box sum.
+		 */
+		protected int boxMaxY;
+
+		/**
+		 * Set up the task for the next pass.
+		 * @param mode The mode to run in.
+		 * @param startRow The first row to process.
+		 * @param endRow One more than the last row to process.
+		 */
+		public void setup(int mode,int startRow,int endRow)
+		{
+			this.mode = mode;
+			this.startRow = startRow;
+			this.endRow = endRow;
+		}
+
+		/**
+		 * Process the block of rows.
+		 * @return null.
+		 */
+		public Object call()
+		{
+			double value,boxSum;
+			int index;
+
+			sum = 0.0;
+			sumSquared = 0.0;
+			count = 0;
+			saturatedCount = 0;
+			boxMax = -Double.MAX_VALUE;
+			boxMaxX = -1;
+			boxMaxY = -1;
+			for(int y = startRow; y < endRow; y++)
+			{
+				index = (y*nAxis1)+border;
+				for(int x = border; x < (nAxis1-border); x++,index++)
+				{
+					if(mode == TASK_MODE_SATURATION)
+					{
+						if(((finalData[index]*finalScale)+finalZero) >= saturationLevel)
+							saturatedCount++;
+						continue;
+					}
+					value = getValue(index);
+					if(mode == TASK_MODE_CLIP)
+					{
+						if((value < clipLow)||(value > clipHigh))
+							continue;
+					}
+					else
+					{
+						if(((finalData[index]*finalScale)+finalZero) >= saturationLevel)
+							saturatedCount++;
+						// 3x3 box sums, where the whole box is inside the border
+						if((y > border)&&(y < (nAxis2-border-1))&&(x > border)&&
+						   (x < (nAxis1-border-1)))
+						{
+							boxSum = getValue(index-nAxis1-1)+getValue(index-nAxis1)+
+								getValue(index-nAxis1+1)+getValue(index-1)+value+
+								getValue(index+1)+getValue(index+nAxis1-1)+
+								getValue(index+nAxis1)+getValue(index+nAxis1+1);
+							if(boxSum > boxMax)
+							{
+								boxMax = boxSum;
+								boxMaxX = x;
+								boxMaxY = y;
+							}
+						}
+					}
+					sum += value;
+					sumSquared += value*value;
+					count++;
+				}
+			}
+			return null;
+		}
+	}
+}
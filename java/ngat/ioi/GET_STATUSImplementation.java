@@ -136,6 +136,26 @@ public class GET_STATUSImplementation extends INTERRUPTImplementation implements
 	 * @see DataProcessingThread#getCurrentAcquireRampCommandCallTime
 	 * @see DataProcessingThread#getCurrentMultrunNumber
 	 * @see DataProcessingThread#getCurrentRunNumber
+	 * @see DataProcessingThread#getLastCompressionRatio
+	 * @see DataProcessingThread#getLastCompressionThroughput
+	 * @see DataProcessingThread#getBacklogByteCount
+	 * @see DataProcessingThread#isBacklogFull
+	 * @see DataProcessingThread#getBacklogWaitTime
+	 * @see DataProcessingThread#getQueueWaitStatistics
+	 * @see DataProcessingThread#getJournal
+	 * @see ngat.ioi.command.AcquireRampCommand#getAcquisitionState
+	 * @see IOIStatus#getAbortCount
+	 * @see IOIStatus#getLastAbortLatency
+	 * @see IOIStatus#getMaxAbortLatency
+	 * @see IOIStatus#getMeanAbortLatency
+	 * @see ngat.ioi.command.CommandReplyBroker#isLinkUp
+	 * @see IDLLinkSupervisor#getReconnectCount
+	 * @see RampTimingModel#getUpdateCount
+	 * @see FitsHeaderSourceCache#getHitRate
+	 * @see IOIExecutors#getActiveCount
+	 * @see IOIExecutors#getThreadCount
+	 * @see ngat.ioi.command.EventRecorder#isRecording
+	 * @see ngat.ioi.command.EventRecorder#getDroppedEventCount
 	 */
 	public COMMAND_DONE processCommand(COMMAND command)
 	{
@@ -143,6 +163,15 @@ public class GET_STATUSImplementation extends INTERRUPTImplementation implements
 		GET_STATUS_DONE getStatusDone = new GET_STATUS_DONE(command.getId());
 		ISS_TO_INST currentCommand = null;
 		DataProcessingThread dataProcessingThread = null;
+		DataProcessingJournal journal = null;
+		List<String> priorityClassList = null;
+		ControllerStartup controllerStartup = null;
+		CommandReplyBroker replyBroker = null;
+		IDLLinkSupervisor idlLinkSupervisor = null;
+		RampTimingModel rampTimingModel = null;
+		FitsHeaderSourceCache fitsHeaderSourceCache = null;
+		IOIExecutors executors = null;
+		EventRecorder eventRecorder = null;
 		int sidecarTemperatureProtectionThreadState;
 
 		try
@@ -187,8 +216,64 @@ public class GET_STATUSImplementation extends INTERRUPTImplementation implements
 		hashTable.put("Exposure Start Time",new Long(status.getExposureStartTime()));
 		hashTable.put("Exposure Count",new Integer(status.getExposureCount()));
 		hashTable.put("Exposure Number",new Integer(status.getExposureNumber()));
+		hashTable.put("Acquisition.State",
+			      AcquireRampCommand.acquisitionStateToString(AcquireRampCommand.getAcquisitionState()));
+		// abort latency statistics
+		hashTable.put("Abort.Count",new Integer(status.getAbortCount()));
+		hashTable.put("Abort.Latency.Last",new Long(status.getLastAbortLatency()));
+		hashTable.put("Abort.Latency.Max",new Long(status.getMaxAbortLatency()));
+		hashTable.put("Abort.Latency.Mean",new Double(status.getMeanAbortLatency()));
+		// IDL link status
+		replyBroker = CommandReplyBroker.getInstance();
+		hashTable.put("IDL.Link.Up",new Boolean(replyBroker.isLinkUp()));
+		hashTable.put("IDL.Link.Loss.Count",new Integer(replyBroker.getLinkLossCount()));
+		hashTable.put("IDL.Link.Retained.Count",new Integer(replyBroker.getRetainedCommandCount()));
+		idlLinkSupervisor = ioi.getIDLLinkSupervisor();
+		if(idlLinkSupervisor != null)
+		{
+			hashTable.put("IDL.Link.Supervisor.State",
+				      IDLLinkSupervisor.stateToString(idlLinkSupervisor.getThreadState()));
+			hashTable.put("IDL.Link.Reconnect.Count",new Integer(idlLinkSupervisor.getReconnectCount()));
+			hashTable.put("IDL.Link.Last.Outage",new Long(idlLinkSupervisor.getLastOutageLength()));
+		}
+		else
+			hashTable.put("IDL.Link.Supervisor.State","NOT_STARTED");
+		// ramp timing model
+		rampTimingModel = ioi.getRampTimingModel();
+		for(int i = 0; i < RampTimingModel.SAMPLING_MODE_COUNT; i++)
+		{
+			String modeString = RampTimingModel.samplingModeToString(i);
+
+			hashTable.put("Ramp.Timing."+modeString+".Update.Count",
+				      new Integer(rampTimingModel.getUpdateCount(i)));
+			hashTable.put("Ramp.Timing."+modeString+".Last.Residual",
+				      new Long(rampTimingModel.getLastResidual(i)));
+			hashTable.put("Ramp.Timing."+modeString+".Frame.Time",
+				      new Double(rampTimingModel.getCoefficient(i,RampTimingModel.COEFFICIENT_FRAME)));
+		}
+		// controller startup (readiness) status
+		controllerStartup = ioi.getControllerStartup();
+		hashTable.put("Controller.Startup.State",
+			      ControllerStartup.stateToString(controllerStartup.getState()));
+		hashTable.put("Controller.Startup.Duration",new Long(controllerStartup.getDuration()));
+		for(int i = 0; i < ControllerStartup.PHASE_COUNT; i++)
+		{
+			hashTable.put("Controller.Startup."+ControllerStartup.PHASE_NAME_LIST[i]+".State",
+				      ControllerStartup.stateToString(controllerStartup.getPhaseState(i)));
+			hashTable.put("Controller.Startup."+ControllerStartup.PHASE_NAME_LIST[i]+".Duration",
+				      new Long(controllerStartup.getPhaseDuration(i)));
+		}
+		if(controllerStartup.getFailure() != null)
+			hashTable.put("Controller.Startup.Failure",controllerStartup.getFailure().toString());
 		// sidecar temperature protection status
-		sidecarTemperatureProtectionThreadState = ioi.getSidecarTemperatureProtectionThread().getThreadState();
+		// The thread does not exist until controller startup has got as far as starting it
+		if(ioi.getSidecarTemperatureProtectionThread() != null)
+		{
+			sidecarTemperatureProtectionThreadState = ioi.getSidecarTemperatureProtectionThread().
+				getThreadState();
+		}
+		else
+			sidecarTemperatureProtectionThreadState = SidecarTemperatureProtectionThread.THREAD_STATE_INIT;
 		hashTable.put("Sidecar Temperature Protection State",
 			      new Integer(sidecarTemperatureProtectionThreadState));
 		hashTable.put("Sidecar Temperature Protection State String",
@@ -214,6 +299,92 @@ public class GET_STATUSImplementation extends INTERRUPTImplementation implements
 			      new Integer(dataProcessingThread.getCurrentMultrunNumber()));
 		hashTable.put("DataProcessingThread.CurrentRunNumber",
 			      new Integer(dataProcessingThread.getCurrentRunNumber()));
+		hashTable.put("DataProcessingThread.Compression.Ratio",
+			      new Double(dataProcessingThread.getLastCompressionRatio()));
+		hashTable.put("DataProcessingThread.Compression.Throughput",
+			      new Double(dataProcessingThread.getLastCompressionThroughput()));
+		// data processing backlog
+		hashTable.put("DataProcessingThread.Backlog.Ramps",new Integer(dataProcessingThread.getListSize()));
+		hashTable.put("DataProcessingThread.Backlog.Bytes",new Long(dataProcessingThread.getBacklogByteCount()));
+		hashTable.put("DataProcessingThread.Backlog.Ramps.Max",
+			      new Integer(dataProcessingThread.getBacklogRampCountMax()));
+		hashTable.put("DataProcessingThread.Backlog.Bytes.Max",
+			      new Long(dataProcessingThread.getBacklogByteCountMax()));
+		hashTable.put("DataProcessingThread.Backlog.Full",new Boolean(dataProcessingThread.isBacklogFull()));
+		hashTable.put("DataProcessingThread.Backlog.Wait.Count",
+			      new Integer(dataProcessingThread.getBacklogWaitCount()));
+		hashTable.put("DataProcessingThread.Backlog.Wait.Time",
+			      new Long(dataProcessingThread.getBacklogWaitTime()));
+		// data processing queue wait time, per priority class
+		priorityClassList = dataProcessingThread.getQueueWaitPriorityClassList();
+		for(int i = 0; i < priorityClassList.size(); i++)
+		{
+			String priorityClass = priorityClassList.get(i);
+			QueueWaitStatistics queueWaitStatistics = dataProcessingThread.
+				getQueueWaitStatistics(priorityClass);
+
+			if(queueWaitStatistics == null)
+				continue;
+			hashTable.put("DataProcessingThread.Queue.Wait."+priorityClass+".Count",
+				      new Integer(queueWaitStatistics.getCount()));
+			hashTable.put("DataProcessingThread.Queue.Wait."+priorityClass+".Mean",
+				      new Double(queueWaitStatistics.getMeanTime()));
+			hashTable.put("DataProcessingThread.Queue.Wait."+priorityClass+".Max",
+				      new Long(queueWaitStatistics.getMaxTime()));
+			hashTable.put("DataProcessingThread.Queue.Wait."+priorityClass+".Last",
+				      new Long(queueWaitStatistics.getLastTime()));
+		}
+		// data processing journal
+		journal = dataProcessingThread.getJournal();
+		hashTable.put("DataProcessingThread.Journal",new Boolean(journal != null));
+		if(journal != null)
+		{
+			hashTable.put("DataProcessingThread.Journal.Outstanding",new Integer(journal.getOutstandingCount()));
+			hashTable.put("DataProcessingThread.Journal.Recovered",new Integer(journal.getRecoveredCount()));
+			hashTable.put("DataProcessingThread.Journal.Interrupted",new Integer(journal.getInterruptedCount()));
+			hashTable.put("DataProcessingThread.Journal.Record.Count",new Long(journal.getRecordCount()));
+			hashTable.put("DataProcessingThread.Journal.Sync.Count",new Long(journal.getSyncCount()));
+		}
+		// GET_FITS keyword cache
+		fitsHeaderSourceCache = ioi.getFitsHeaderSourceCache();
+		for(int i = 0; i < FitsHeaderSourceCache.SOURCE_COUNT; i++)
+		{
+			String sourceString = "FITS.Header.Cache."+FitsHeaderSourceCache.SOURCE_NAME_LIST[i];
+
+			hashTable.put(sourceString+".Fetch.Count",new Integer(fitsHeaderSourceCache.getFetchCount(i)));
+			hashTable.put(sourceString+".Skip.Count",new Integer(fitsHeaderSourceCache.getSkipCount(i)));
+			hashTable.put(sourceString+".Hit.Count",new Integer(fitsHeaderSourceCache.getHitCount(i)));
+			hashTable.put(sourceString+".Miss.Count",new Integer(fitsHeaderSourceCache.getMissCount(i)));
+			hashTable.put(sourceString+".Hit.Rate",new Double(fitsHeaderSourceCache.getHitRate(i)));
+			hashTable.put(sourceString+".Latency.Last",new Long(fitsHeaderSourceCache.getLastLatency(i)));
+			hashTable.put(sourceString+".Latency.Mean",new Double(fitsHeaderSourceCache.getMeanLatency(i)));
+		}
+		// shared thread pools
+		executors = ioi.getExecutors();
+		for(int i = 0; i < IOIExecutors.POOL_COUNT; i++)
+		{
+			String poolString = "Executor."+IOIExecutors.POOL_NAME_LIST[i];
+
+			hashTable.put(poolString+".Active",new Integer(executors.getActiveCount(i)));
+			hashTable.put(poolString+".Pool.Size",new Integer(executors.getPoolSize(i)));
+			hashTable.put(poolString+".Largest.Pool.Size",new Integer(executors.getLargestPoolSize(i)));
+			hashTable.put(poolString+".Queue.Size",new Integer(executors.getQueueSize(i)));
+			hashTable.put(poolString+".Completed.Count",new Long(executors.getCompletedTaskCount(i)));
+		}
+		hashTable.put("Thread.Count",new Integer(IOIExecutors.getThreadCount()));
+		hashTable.put("Thread.Peak.Count",new Integer(IOIExecutors.getPeakThreadCount()));
+		// IDL Socket Server state mirror
+		hashTable.put("DetectorStateMirror.Sent.Count",new Integer(ioi.getDetectorStateMirror().getSentCount()));
+		hashTable.put("DetectorStateMirror.Saved.Count",new Integer(ioi.getDetectorStateMirror().getSavedCount()));
+		hashTable.put("DetectorStateMirror.Invalidation.Count",
+			      new Integer(ioi.getDetectorStateMirror().getInvalidationCount()));
+		// continuous event recording
+		eventRecorder = EventRecorder.getInstance();
+		hashTable.put("Event.Recording",new Boolean(eventRecorder.isRecording()));
+		hashTable.put("Event.Recording.Count",new Long(eventRecorder.getEventCount()));
+		hashTable.put("Event.Recording.Dropped.Count",new Long(eventRecorder.getDroppedEventCount()));
+		if(eventRecorder.getCurrentFile() != null)
+			hashTable.put("Event.Recording.File",eventRecorder.getCurrentFile().toString());
 	// intermediate level information - basic plus controller calls.
 		if(getStatusCommand.getLevel() >= GET_STATUS.LEVEL_INTERMEDIATE)
 		{
@@ -223,6 +394,7 @@ public class GET_STATUSImplementation extends INTERRUPTImplementation implements
 		if(getStatusCommand.getLevel() >= GET_STATUS.LEVEL_FULL)
 		{
 			getFullStatus();
+			getTraceStatus();
 		}
 	// set hashtable and return values.
 		getStatusDone.setDisplayInfo(hashTable);
@@ -256,6 +428,11 @@ public class GET_STATUSImplementation extends INTERRUPTImplementation implements
 	 * <li>If the command returns an error it is written to the error log.
 	 * <li>The returned keywords and values are retrieved from the command, and added to the hashTable.
 	 * </ul>
+	 * The Ping command is only sent once controller startup has finished with the IDL socket server, 
+	 * and the temperature controller is only queried once it has been configured, otherwise "Ping" is
+	 * set to "Controller not ready" and the temperature controller data is reported as unknown.
+	 * The Ping command is not sent whilst the link to the IDL socket server is down, "Ping" is set to
+	 * "IDL link down" instead.
 	 * The following data is put into the hashTable:
 	 * <ul>
 	 * <li><b>Temperature.&lt;n&gt;</b></b> The current dewar temperature, 
@@ -281,11 +458,14 @@ public class GET_STATUSImplementation extends INTERRUPTImplementation implements
 	 * @see #KEYWORD_TEMPERATURE_CONTROLLER_COMMS_STATUS
 	 * @see #temperatureControllerCommsStatus
 	 * @see ngat.supircam.temperaturecontroller.TemperatureController#temperatureGet
+	 * @see ngat.ioi.command.EventRecorder#record
 	 * @see ngat.supircam.temperaturecontroller.TemperatureController#heaterStatusGet
 	 * @see ngat.supircam.temperaturecontroller.TemperatureController#heaterStatusToString
 	 * @see ngat.supircam.temperaturecontroller.TemperatureController#rampGet
 	 * @see ngat.supircam.temperaturecontroller.TemperatureController#rampStatusGet
 	 * @see ngat.ioi.command.GetConfigCommand
+	 * @see ControllerStartup#isReady
+	 * @see ngat.ioi.command.CommandReplyBroker#isLinkUp
 	 */
 	private void getIntermediateStatus()
 	{
@@ -298,31 +478,41 @@ public class GET_STATUSImplementation extends INTERRUPTImplementation implements
 		double ccdTemperature[] = {0.0,0.0};
 		int heaterStatus,loop,tempControlLoopCount;
 		double heaterOutput,rate;
+		long startNanoTime;
 		char tempInput;
 		boolean tempControlEnable,isOn;
 
 		// call GET_CONFIG IDL server command to get array configuration
-		try
-		{
-			pingCommand = new PingCommand();
-			pingCommand.sendCommand();
-		}
-		catch(Exception e)
-		{
-			ioi.error(this.getClass().getName()+":getIntermediateStatus:"+
-			      "Ping command failed:",e);
-		}
-		switch(pingCommand.getReplyErrorCode())
+		// Don't talk to the IDL socket server until controller startup has finished with it,
+		// or whilst the link to it is down (the Ping would be retained until the link is re-established)
+		if(ioi.getControllerStartup().isReady(ControllerStartup.REQUIRE_DETECTOR) == false)
+			hashTable.put("Ping","Controller not ready");
+		else if(CommandReplyBroker.getInstance().isLinkUp() == false)
+			hashTable.put("Ping","IDL link down");
+		else
 		{
-			case 0:
-				hashTable.put("Ping","Idle");
-				break;
-			case -1:
-				hashTable.put("Ping","Exposure in progress");
-				break;
-			default:
-				hashTable.put("Ping","Unknown value:"+pingCommand.getReplyErrorCode());
-				break;
+			try
+			{
+				pingCommand = new PingCommand();
+				pingCommand.sendCommand();
+			}
+			catch(Exception e)
+			{
+				ioi.error(this.getClass().getName()+":getIntermediateStatus:"+
+				      "Ping command failed:",e);
+			}
+			switch(pingCommand.getReplyErrorCode())
+			{
+				case 0:
+					hashTable.put("Ping","Idle");
+					break;
+				case -1:
+					hashTable.put("Ping","Exposure in progress");
+					break;
+				default:
+					hashTable.put("Ping","Unknown value:"+pingCommand.getReplyErrorCode());
+					break;
+			}
 		}
 		// copy GetConfig cache into hashtable
 		cachedGetConfigCommand = status.getCachedGetConfigCommand();
@@ -351,8 +541,9 @@ public class GET_STATUSImplementation extends INTERRUPTImplementation implements
 				  e);
 			tempControlEnable = false;
 		}
-		// if enabled, get data from temperature controller
-		if(tempControlEnable)
+		// if enabled (and configured by controller startup), get data from temperature controller
+		if(tempControlEnable&&
+		   ioi.getControllerStartup().isReady(ControllerStartup.REQUIRE_TEMPERATURE_CONTROLLER))
 		{
 			// CCD temperature
 			temperatureControllerCommsStatus = GET_STATUS_DONE.VALUE_STATUS_OK;
@@ -361,7 +552,11 @@ public class GET_STATUSImplementation extends INTERRUPTImplementation implements
 				for(int i = 0; i < 2; i++)
 				{
 					tempInput = status.getPropertyChar("ioi.temp_control.temperature_input."+i);
+					startNanoTime = System.nanoTime();
 					ccdTemperature[i] = tempControl.temperatureGet(tempInput);
+					EventRecorder.getInstance().record(EventRecorder.EVENT_TYPE_TEMPERATURE,
+									   "temperatureGet",tempInput+":"+
+									   ccdTemperature[i],startNanoTime);
 					hashTable.put("Temperature."+i,new Double(ccdTemperature[i]));
 				}
 				// Only the Lakeshore has a control loop, the Arduino monitors temperature only.
@@ -468,13 +663,15 @@ public class GET_STATUSImplementation extends INTERRUPTImplementation implements
 	 */
 	protected void setDetectorTemperatureInstrumentStatus(double currentTemperature[]) throws NumberFormatException
 	{
+		IOIConfig config = null;
 		double warmWarnTemperature,warmFailTemperature,coldWarnTemperature,coldFailTemperature;
 
 		// get config for warn and fail temperatures
-		warmWarnTemperature = status.getPropertyDouble("ioi.get_status.detector.temperature.warm.warn");
-		warmFailTemperature = status.getPropertyDouble("ioi.get_status.detector.temperature.warm.fail");
-		coldWarnTemperature = status.getPropertyDouble("ioi.get_status.detector.temperature.cold.warn");
-		coldFailTemperature = status.getPropertyDouble("ioi.get_status.detector.temperature.cold.fail");
+		config = status.getConfig();
+		warmWarnTemperature = config.getDetectorTemperatureWarmWarn();
+		warmFailTemperature = config.getDetectorTemperatureWarmFail();
+		coldWarnTemperature = config.getDetectorTemperatureColdWarn();
+		coldFailTemperature = config.getDetectorTemperatureColdFail();
 		// initialise status to OK, if we have detector temperatures to test
 		// and the sidecar temperature detection thread has not already set the status to OK/FAIL.
 		if((currentTemperature.length > 0)&&(detectorTemperatureInstrumentStatus.equals(GET_STATUS_DONE.VALUE_STATUS_UNKNOWN)))
@@ -603,4 +800,69 @@ public class GET_STATUSImplementation extends INTERRUPTImplementation implements
 		hashTable.put("user.dir",new String(System.getProperty("user.dir")));
 	}
 
+	/**
+	 * Method to get the timelines of the most recent exposures, when level FULL has been selected.
+	 * The number of exposures returned is set by the 'ioi.trace.get_status.exposure_count' property.
+	 * The following data is put into the hashTable:
+	 * <ul>
+	 * <li><b>Trace.Record.Count, Trace.Capacity</b> The number of spans recorded since startup, and the
+	 *     number the trace recorder's ring buffer holds.
+	 * <li><b>Trace.Exposure.&lt;i&gt;.Id</b> The trace id and exposure index of the i'th most recent exposure.
+	 * <li><b>Trace.Exposure.&lt;i&gt;.Start.Time</b> The start of the exposure's first span,
+	 *     in milliseconds since the epoch.
+	 * <li><b>Trace.Exposure.&lt;i&gt;.Span.Count</b> The number of spans in the exposure's timeline.
+	 * <li><b>Trace.Exposure.&lt;i&gt;.Span.&lt;j&gt;.Name/Thread</b> The name of each span,
+	 *     and the thread that recorded it.
+	 * <li><b>Trace.Exposure.&lt;i&gt;.Span.&lt;j&gt;.Start/Duration</b> The start of each span relative to the
+	 *     start of the first span, and it's length, in nanoseconds.
+	 * </ul>
+	 * @see #hashTable
+	 * @see IOI#getTraceRecorder
+	 * @see ngat.ioi.command.TraceRecorder#getRecentExposureList
+	 * @see ngat.ioi.command.TraceContext#getTimeline
+	 */
+	private void getTraceStatus()
+	{
+		TraceRecorder traceRecorder = null;
+		List<TraceContext> exposureList = null;
+		List<TraceSpan> spanList = null;
+		TraceSpan span = null;
+		String exposureString = null;
+		String spanString = null;
+		long firstStartNanoTime;
+		int exposureCount;
+
+		traceRecorder = ioi.getTraceRecorder();
+		if(traceRecorder == null)
+			return;
+		exposureCount = status.getConfig().getTraceGetStatusExposureCount();
+		hashTable.put("Trace.Record.Count",new Long(traceRecorder.getRecordCount()));
+		hashTable.put("Trace.Capacity",new Integer(traceRecorder.getCapacity()));
+		exposureList = traceRecorder.getRecentExposureList(exposureCount);
+		for(int i = 0; i < exposureList.size(); i++)
+		{
+			exposureString = "Trace.Exposure."+i;
+			spanList = exposureList.get(i).getTimeline();
+			hashTable.put(exposureString+".Id",exposureList.get(i).toString());
+			hashTable.put(exposureString+".Span.Count",new Integer(spanList.size()));
+			if(spanList.size() == 0)
+				continue;
+			// spans are recorded as they finish, so find the one that started first
+			firstStartNanoTime = spanList.get(0).getStartNanoTime();
+			for(int j = 1; j < spanList.size(); j++)
+				firstStartNanoTime = Math.min(firstStartNanoTime,spanList.get(j).getStartNanoTime());
+			hashTable.put(exposureString+".Start.Time",
+				      new Long(traceRecorder.toTime(firstStartNanoTime)));
+			for(int j = 0; j < spanList.size(); j++)
+			{
+				span = spanList.get(j);
+				spanString = exposureString+".Span."+j;
+				hashTable.put(spanString+".Name",span.getName());
+				hashTable.put(spanString+".Thread",span.getThreadName());
+				hashTable.put(spanString+".Start",new Long(span.getStartNanoTime()-firstStartNanoTime));
+				hashTable.put(spanString+".Duration",new Long(span.getDuration()));
+			}
+		}
+	}
+
 }
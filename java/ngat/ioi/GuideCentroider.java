@@ -0,0 +1,343 @@
+// GuideCentroider.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.io.*;
+
+/**
+ * This class measures the position of the guide star in a guide window sub-ramp.
+ * The first and last reads of the sub-ramp are loaded into FitsImageData instances that are kept
+ * between guide ramps, so once the first guide ramp has been measured (and the window size is fixed)
+ * loading a new guide ramp does not allocate pixel storage, and the centroid kernel itself allocates
+ * nothing at all. This keeps the per-read cost (and garbage collector pauses) low enough to measure
+ * each guide ramp as soon as it lands.
+ * The kernel works on the CDS (last read minus first read) image, or the last read alone if the guide
+ * sub-ramp only has one read. The background level and noise are estimated from the pixels in the
+ * outermost border of the window, and the centroid is the intensity weighted first moment of the pixels
+ * more than thresholdSigma above the background.
+ * @see GuidedRampAcquisition
+ * @see FitsImageData
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class GuideCentroider
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The first read of the guide sub-ramp. Re-used between guide ramps.
+	 */
+	protected FitsImageData firstReadImageData = null;
+	/**
+	 * The last read of the guide sub-ramp. Re-used between guide ramps.
+	 */
+	protected FitsImageData lastReadImageData = null;
+	/**
+	 * The width of the border (in pixels) around the edge of the window, used to estimate the background.
+	 */
+	protected int border = 2;
+	/**
+	 * How many standard deviations above the background a pixel must be, to be included in the centroid.
+	 */
+	protected double thresholdSigma = 5.0;
+	/**
+	 * The minimum total flux (in ADU, above the background) a measurement must have to be considered valid.
+	 */
+	protected double minimumFlux = 1000.0;
+	/**
+	 * The X centroid of the last measurement, in window pixels (0 based).
+	 */
+	protected double xCentroid = 0.0;
+	/**
+	 * The Y centroid of the last measurement, in window pixels (0 based).
+	 */
+	protected double yCentroid = 0.0;
+	/**
+	 * The total flux above the background of the last measurement, in ADU.
+	 */
+	protected double flux = 0.0;
+	/**
+	 * The background level estimated in the last measurement, in ADU.
+	 */
+	protected double background = 0.0;
+	/**
+	 * The background noise estimated in the last measurement, in ADU.
+	 */
+	protected double backgroundSigma = 0.0;
+	/**
+	 * The number of pixels included in the last centroid.
+	 */
+	protected int pixelCount = 0;
+	/**
+	 * The time taken by the last call to centroid, in milliseconds.
+	 */
+	protected long lastCentroidTime = 0;
+
+	/**
+	 * Default constructor.
+	 * @see #firstReadImageData
+	 * @see #lastReadImageData
+	 */
+	public GuideCentroider()
+	{
+		super();
+		firstReadImageData = new FitsImageData();
+		lastReadImageData = new FitsImageData();
+	}
+
+	/**
+	 * Set the width of the border used to estimate the background.
+	 * @param b The border width in pixels.
+	 * @exception IllegalArgumentException Thrown if b is less than 1.
+	 * @see #border
+	 */
+	public void setBorder(int b) throws IllegalArgumentException
+	{
+		if(b < 1)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+
+							   ":setBorder:Border must be at least 1:"+b);
+		}
+		border = b;
+	}
+
+	/**
+	 * Set the detection threshold.
+	 * @param d The number of background standard deviations above the background a pixel must be.
+	 * @see #thresholdSigma
+	 */
+	public void setThresholdSigma(double d)
+	{
+		thresholdSigma = d;
+	}
+
+	/**
+	 * Set the minimum flux of a valid measurement.
+	 * @param d The minimum flux, in ADU.
+	 * @see #minimumFlux
+	 */
+	public void setMinimumFlux(double d)
+	{
+		minimumFlux = d;
+	}
+
+	/**
+	 * Measure the guide star position in the specified guide sub-ramp reads.
+	 * <ul>
+	 * <li>The last read is loaded into lastReadImageData. If there is more than one read, the first read
+	 *     is loaded into firstReadImageData, and the two must have the same dimensions.
+	 * <li>We call centroidKernel to measure the guide star.
+	 * </ul>
+	 * @param firstReadFile The first read of the guide sub-ramp, or null if the sub-ramp only had one read.
+	 * @param lastReadFile The last read of the guide sub-ramp.
+	 * @return true if a guide star brighter than minimumFlux was found, false otherwise.
+	 * @exception Exception Thrown if a read cannot be loaded, or the reads are different sizes.
+	 * @see #firstReadImageData
+	 * @see #lastReadImageData
+	 * @see #centroidKernel
+	 * @see #lastCentroidTime
+	 */
+	public boolean centroid(File firstReadFile,File lastReadFile) throws Exception
+	{
+		long startTime;
+		boolean cds,retval;
+
+		startTime = System.currentTimeMillis();
+		lastReadImageData.load(lastReadFile);
+		cds = (firstReadFile != null);
+		if(cds)
+		{
+			firstReadImageData.load(firstReadFile);
+			if((firstReadImageData.getNAxis1() != lastReadImageData.getNAxis1())||
+			   (firstReadImageData.getNAxis2() != lastReadImageData.getNAxis2()))
+			{
+				throw new Exception(this.getClass().getName()+":centroid:Guide read dimensions differ:"+
+						    firstReadFile+" is "+firstReadImageData.getNAxis1()+"x"+
+						    firstReadImageData.getNAxis2()+" and "+lastReadFile+" is "+
+						    lastReadImageData.getNAxis1()+"x"+lastReadImageData.getNAxis2()+".");
+			}
+		}
+		retval = centroidKernel(cds);
+		lastCentroidTime = System.currentTimeMillis()-startTime;
+		return retval;
+	}
+
+	/**
+	 * The centroid kernel. This works directly on the loaded raw data arrays, and allocates no objects.
+	 * <ul>
+	 * <li>The mean and standard deviation of the pixels within border pixels of the window edge
+	 *     are computed, and used as the background and background noise.
+	 * <li>Every pixel more than thresholdSigma background standard deviations above the background
+	 *     is added to the intensity weighted first moment (above the background).
+	 * <li>The centroid, flux and pixel count are saved.
+	 * </ul>
+	 * @param cds If true, the first read is subtracted from the last read, otherwise the last read is used
+	 *        on it's own.
+	 * @return true if the flux is at least minimumFlux, false otherwise.
+	 * @see #getPixelValue
+	 * @see #background
+	 * @see #backgroundSigma
+	 * @see #xCentroid
+	 * @see #yCentroid
+	 * @see #flux
+	 * @see #pixelCount
+	 */
+	protected boolean centroidKernel(boolean cds)
+	{
+		double value,sum,sumSquared,threshold,weight,sumX,sumY;
+		int naxis1,naxis2,borderCount,index;
+
+		naxis1 = lastReadImageData.getNAxis1();
+		naxis2 = lastReadImageData.getNAxis2();
+		xCentroid = 0.0;
+		yCentroid = 0.0;
+		flux = 0.0;
+		pixelCount = 0;
+		// background from the window border
+		sum = 0.0;
+		sumSquared = 0.0;
+		borderCount = 0;
+		for(int y = 0; y < naxis2; y++)
+		{
+			for(int x = 0; x < naxis1; x++)
+			{
+				if((x < border)||(x >= (naxis1-border))||(y < border)||(y >= (naxis2-border)))
+				{
+					value = getPixelValue(cds,x+(y*naxis1));
+					sum += value;
+					sumSquared += value*value;
+					borderCount++;
+				}
+			}
+		}
+		if(borderCount < 2)
+		{
+			background = 0.0;
+			backgroundSigma = 0.0;
+			return false;
+		}
+		background = sum/borderCount;
+		backgroundSigma = Math.sqrt(Math.max(0.0,(sumSquared/borderCount)-(background*background)));
+		threshold = background+(thresholdSigma*backgroundSigma);
+		// first moment of the pixels above the threshold
+		sumX = 0.0;
+		sumY = 0.0;
+		for(int y = border; y < (naxis2-border); y++)
+		{
+			for(int x = border; x < (naxis1-border); x++)
+			{
+				index = x+(y*naxis1);
+				value = getPixelValue(cds,index);
+				if(value > threshold)
+				{
+					weight = value-background;
+					sumX += weight*x;
+					sumY += weight*y;
+					flux += weight;
+					pixelCount++;
+				}
+			}
+		}
+		if(flux <= 0.0)
+			return false;
+		xCentroid = sumX/flux;
+		yCentroid = sumY/flux;
+		return (flux >= minimumFlux);
+	}
+
+	/**
+	 * Get the physical value of a pixel in the guide image.
+	 * @param cds If true, return the last read value minus the first read value,
+	 *        otherwise return the last read value.
+	 * @param index The pixel index (x+(y*naxis1)).
+	 * @return The pixel value, in ADU.
+	 * @see #firstReadImageData
+	 * @see #lastReadImageData
+	 */
+	protected double getPixelValue(boolean cds,int index)
+	{
+		double value;
+
+		value = (lastReadImageData.getData()[index]*lastReadImageData.getBScale())+
+			lastReadImageData.getBZero();
+		if(cds)
+		{
+			value -= (firstReadImageData.getData()[index]*firstReadImageData.getBScale())+
+				firstReadImageData.getBZero();
+		}
+		return value;
+	}
+
+	/**
+	 * Get the X centroid of the last measurement.
+	 * @return The X position in window pixels (0 based).
+	 * @see #xCentroid
+	 */
+	public double getXCentroid()
+	{
+		return xCentroid;
+	}
+
+	/**
+	 * Get the Y centroid of the last measurement.
+	 * @return The Y position in window pixels (0 based).
+	 * @see #yCentroid
+	 */
+	public double getYCentroid()
+	{
+		return yCentroid;
+	}
+
+	/**
+	 * Get the flux of the last measurement.
+	 * @return The total flux above the background, in ADU.
+	 * @see #flux
+	 */
+	public double getFlux()
+	{
+		return flux;
+	}
+
+	/**
+	 * Get the background level of the last measurement.
+	 * @return The background, in ADU.
+	 * @see #background
+	 */
+	public double getBackground()
+	{
+		return background;
+	}
+
+	/**
+	 * Get the background noise of the last measurement.
+	 * @return The background standard deviation, in ADU.
+	 * @see #backgroundSigma
+	 */
+	public double getBackgroundSigma()
+	{
+		return backgroundSigma;
+	}
+
+	/**
+	 * Get the number of pixels included in the last centroid.
+	 * @return The number of pixels.
+	 * @see #pixelCount
+	 */
+	public int getPixelCount()
+	{
+		return pixelCount;
+	}
+
+	/**
+	 * Get how long the last centroid took, including loading the reads.
+	 * @return The time in milliseconds.
+	 * @see #lastCentroidTime
+	 */
+	public long getLastCentroidTime()
+	{
+		return lastCentroidTime;
+	}
+}
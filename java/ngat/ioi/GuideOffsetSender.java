@@ -0,0 +1,304 @@
+// GuideOffsetSender.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+
+import ngat.message.ISS_INST.*;
+import ngat.util.logging.*;
+
+/**
+ * This thread streams guide corrections to the ISS as OFFSET_RA_DEC commands, whilst the guided
+ * ramp acquisition carries on reading out the detector.
+ * Corrections are handed over through a single slot: posting a new correction replaces any correction
+ * that has not yet been sent, so the ISS is always sent the newest position and a slow ISS cannot
+ * cause a queue of out of date offsets to build up. Only one OFFSET_RA_DEC is outstanding at a time,
+ * and a correction that has waited longer than maxLatency before it could be sent is dropped
+ * (a newer one will follow from the next guide ramp).
+ * @see GuidedRampAcquisition
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class GuideOffsetSender extends Thread
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The IOI object, used for logging and sending commands to the ISS.
+	 */
+	protected IOI ioi = null;
+	/**
+	 * The thread the MULTRUN is running on, used when sending ISS commands so an abort stops us waiting.
+	 */
+	protected IOITCPServerConnectionThread serverConnectionThread = null;
+	/**
+	 * The maximum time, in milliseconds, between a correction being measured and it being sent.
+	 */
+	protected long maxLatency = 5000;
+	/**
+	 * Whether the slot contains a correction that has not been sent yet.
+	 */
+	protected boolean pending = false;
+	/**
+	 * The RA offset of the pending correction, in arcseconds.
+	 */
+	protected float pendingRaOffset = 0.0f;
+	/**
+	 * The Dec offset of the pending correction, in arcseconds.
+	 */
+	protected float pendingDecOffset = 0.0f;
+	/**
+	 * The timestamp the pending correction was measured at.
+	 */
+	protected long pendingMeasurementTime = 0;
+	/**
+	 * Set to true to stop the thread.
+	 */
+	protected boolean quit = false;
+	/**
+	 * The number of corrections sent to the ISS.
+	 */
+	protected int sentCount = 0;
+	/**
+	 * The number of corrections replaced by a newer correction before they were sent.
+	 */
+	protected int supersededCount = 0;
+	/**
+	 * The number of corrections dropped because they were older than maxLatency when they could be sent.
+	 */
+	protected int droppedCount = 0;
+	/**
+	 * The number of OFFSET_RA_DEC commands that returned an error.
+	 */
+	protected int failedCount = 0;
+	/**
+	 * The time between the last sent correction being measured and the ISS completing it, in milliseconds.
+	 */
+	protected long lastLatency = 0;
+	/**
+	 * The largest latency of any sent correction, in milliseconds.
+	 */
+	protected long maximumLatency = 0;
+
+	/**
+	 * Constructor. The thread is made a daemon, so it cannot stop the IO:I exiting.
+	 * @param ioi The IOI object.
+	 * @param serverConnectionThread The thread the MULTRUN is running on.
+	 * @see #ioi
+	 * @see #serverConnectionThread
+	 */
+	public GuideOffsetSender(IOI ioi,IOITCPServerConnectionThread serverConnectionThread)
+	{
+		super("GuideOffsetSender");
+		this.ioi = ioi;
+		this.serverConnectionThread = serverConnectionThread;
+		setDaemon(true);
+	}
+
+	/**
+	 * Set the maximum latency.
+	 * @param l The maximum time in milliseconds between a correction being measured and it being sent.
+	 * @see #maxLatency
+	 */
+	public void setMaxLatency(long l)
+	{
+		maxLatency = l;
+	}
+
+	/**
+	 * Post a new correction. Any correction not yet sent is replaced.
+	 * @param raOffset The absolute RA offset to send, in arcseconds.
+	 * @param decOffset The absolute Dec offset to send, in arcseconds.
+	 * @param measurementTime The timestamp of the guide ramp the correction was measured from.
+	 * @see #pending
+	 * @see #supersededCount
+	 */
+	public synchronized void postOffset(float raOffset,float decOffset,long measurementTime)
+	{
+		if(pending)
+			supersededCount++;
+		pendingRaOffset = raOffset;
+		pendingDecOffset = decOffset;
+		pendingMeasurementTime = measurementTime;
+		pending = true;
+		notifyAll();
+	}
+
+	/**
+	 * Stop the thread. A correction being sent is allowed to complete, any pending correction is discarded.
+	 * @see #quit
+	 */
+	public synchronized void quit()
+	{
+		quit = true;
+		notifyAll();
+	}
+
+	/**
+	 * Run method.
+	 * <ul>
+	 * <li>We wait for a correction to be posted (or quit to be set).
+	 * <li>The correction is taken out of the slot.
+	 * <li>If it is older than maxLatency, it is dropped.
+	 * <li>Otherwise we call sendOffset to send it to the ISS, and wait for it to complete.
+	 * </ul>
+	 * @see #postOffset
+	 * @see #sendOffset
+	 */
+	public void run()
+	{
+		float raOffset,decOffset;
+		long measurementTime,age;
+
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+":run:Started.");
+		while(true)
+		{
+			synchronized(this)
+			{
+				while((pending == false)&&(quit == false))
+				{
+					try
+					{
+						wait();
+					}
+					catch(InterruptedException e)
+					{
+					}
+				}
+				if(quit)
+					break;
+				raOffset = pendingRaOffset;
+				decOffset = pendingDecOffset;
+				measurementTime = pendingMeasurementTime;
+				pending = false;
+			}
+			age = System.currentTimeMillis()-measurementTime;
+			if(age > maxLatency)
+			{
+				synchronized(this)
+				{
+					droppedCount++;
+				}
+				ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+					":run:Dropping correction ("+raOffset+","+decOffset+") as it is "+age+
+					" ms old (maximum latency "+maxLatency+" ms).");
+				continue;
+			}
+			sendOffset(raOffset,decOffset,measurementTime);
+		}
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+":run:Finished:sent "+sentCount+
+			":superseded "+supersededCount+":dropped "+droppedCount+":failed "+failedCount+
+			":maximum latency "+maximumLatency+" ms.");
+	}
+
+	/**
+	 * Send an OFFSET_RA_DEC to the ISS, and wait for it to complete.
+	 * @param raOffset The absolute RA offset to send, in arcseconds.
+	 * @param decOffset The absolute Dec offset to send, in arcseconds.
+	 * @param measurementTime The timestamp of the guide ramp the correction was measured from.
+	 * @see #sentCount
+	 * @see #failedCount
+	 * @see #lastLatency
+	 * @see #maximumLatency
+	 * @see IOI#sendISSCommand(INST_TO_ISS,IOITCPServerConnectionThread,boolean,boolean)
+	 */
+	protected void sendOffset(float raOffset,float decOffset,long measurementTime)
+	{
+		OFFSET_RA_DEC offsetRaDecCommand = null;
+		INST_TO_ISS_DONE instToISSDone = null;
+		long latency;
+
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			":sendOffset:Sending guide offset ("+raOffset+","+decOffset+").");
+		offsetRaDecCommand = new OFFSET_RA_DEC("OFFSET_RA_DEC("+raOffset+","+decOffset+")");
+		offsetRaDecCommand.setRaOffset(raOffset);
+		offsetRaDecCommand.setDecOffset(decOffset);
+		instToISSDone = ioi.sendISSCommand(offsetRaDecCommand,serverConnectionThread,true,true);
+		latency = System.currentTimeMillis()-measurementTime;
+		synchronized(this)
+		{
+			if(instToISSDone.getSuccessful())
+			{
+				sentCount++;
+				lastLatency = latency;
+				if(latency > maximumLatency)
+					maximumLatency = latency;
+			}
+			else
+				failedCount++;
+		}
+		if(instToISSDone.getSuccessful() == false)
+		{
+			ioi.error(this.getClass().getName()+":sendOffset:Guide offset ("+raOffset+","+decOffset+
+				  ") failed:"+instToISSDone.getErrorString());
+		}
+		else
+		{
+			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				":sendOffset:Guide offset ("+raOffset+","+decOffset+") completed with latency "+
+				latency+" ms.");
+		}
+	}
+
+	/**
+	 * Get the number of corrections sent.
+	 * @return The number of successful OFFSET_RA_DEC commands.
+	 * @see #sentCount
+	 */
+	public synchronized int getSentCount()
+	{
+		return sentCount;
+	}
+
+	/**
+	 * Get the number of corrections superseded before they were sent.
+	 * @return The number of corrections.
+	 * @see #supersededCount
+	 */
+	public synchronized int getSupersededCount()
+	{
+		return supersededCount;
+	}
+
+	/**
+	 * Get the number of corrections dropped for exceeding the maximum latency.
+	 * @return The number of corrections.
+	 * @see #droppedCount
+	 */
+	public synchronized int getDroppedCount()
+	{
+		return droppedCount;
+	}
+
+	/**
+	 * Get the number of OFFSET_RA_DEC commands that failed.
+	 * @return The number of commands.
+	 * @see #failedCount
+	 */
+	public synchronized int getFailedCount()
+	{
+		return failedCount;
+	}
+
+	/**
+	 * Get the latency of the last sent correction.
+	 * @return The time in milliseconds between the correction being measured and the ISS completing it.
+	 * @see #lastLatency
+	 */
+	public synchronized long getLastLatency()
+	{
+		return lastLatency;
+	}
+
+	/**
+	 * Get the largest latency of any sent correction.
+	 * @return The time in milliseconds.
+	 * @see #maximumLatency
+	 */
+	public synchronized long getMaximumLatency()
+	{
+		return maximumLatency;
+	}
+}
@@ -0,0 +1,759 @@
+// GuidedRampAcquisition.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.io.*;
+import java.util.*;
+
+import ngat.ioi.command.*;
+import ngat.util.logging.*;
+
+/**
+ * This class acquires a read up the ramp exposure whilst guiding on a star in a detector window.
+ * It is the production version of the ngat.ioi.test.AcquireRampAndGuide prototype.
+ * The exposure is split into science sub-ramps (full frame) interleaved with guide sub-ramps (windowed),
+ * with only the first science sub-ramp resetting the array, so the science reads form one continuous ramp.
+ * <ul>
+ * <li>Each guide sub-ramp is centroided (using GuideCentroider) as soon as AcquireRamp returns, and
+ *     the resulting correction handed to a GuideOffsetSender thread, which streams it to the ISS whilst
+ *     the next science sub-ramp is read out. The guide sub-ramp directory is then deleted.
+ * <li>At the end of the exposure the science sub-ramp reads are stitched back into the first science
+ *     sub-ramp directory, in acquisition order, so the data pipeline sees one ramp product.
+ * </ul>
+ * The first valid guide star position is used as the reference position: subsequent positions are
+ * converted to an RA/Dec error using the configured pixel scale, rotation and flips, and a fraction
+ * (the gain) of the error is accumulated into the correction. The OFFSET_RA_DEC sent is absolute, the
+ * MULTRUN dither offset for this exposure plus the accumulated correction.
+ * @see GuideCentroider
+ * @see GuideOffsetSender
+ * @see MULTRUNImplementation
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class GuidedRampAcquisition
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The IOI object.
+	 */
+	protected IOI ioi = null;
+	/**
+	 * The IOI status object, used to retrieve configuration.
+	 */
+	protected IOIStatus status = null;
+	/**
+	 * The thread the MULTRUN is running on, used to test for aborts and to send ISS commands.
+	 */
+	protected IOITCPServerConnectionThread serverConnectionThread = null;
+	/**
+	 * The data processing thread, used to find the directories the IDL Socket Server creates,
+	 * and to delete them.
+	 */
+	protected DataProcessingThread dataProcessingThread = null;
+	/**
+	 * The IDL Socket Server state mirror, used to skip configuration commands that would not change anything.
+	 */
+	protected DetectorStateMirror detectorStateMirror = null;
+	/**
+	 * The instance used to centroid guide sub-ramps.
+	 */
+	protected GuideCentroider guideCentroider = null;
+	/**
+	 * The thread used to send corrections to the ISS.
+	 */
+	protected GuideOffsetSender guideOffsetSender = null;
+	/**
+	 * The number of resets done before the first science sub-ramp.
+	 */
+	protected int nReset = 1;
+	/**
+	 * The number of reads per group in each science sub-ramp.
+	 */
+	protected int nScienceRead = 1;
+	/**
+	 * The number of groups in each science sub-ramp.
+	 */
+	protected int nScienceGroup = 1;
+	/**
+	 * The number of drops between groups in each science sub-ramp.
+	 */
+	protected int nScienceDrop = 0;
+	/**
+	 * The number of reads per group in each guide sub-ramp.
+	 */
+	protected int nGuideRead = 1;
+	/**
+	 * The number of groups in each guide sub-ramp.
+	 */
+	protected int nGuideGroup = 2;
+	/**
+	 * The number of drops between groups in each guide sub-ramp.
+	 */
+	protected int nGuideDrop = 0;
+	/**
+	 * The guide window start X position (detector pixels, inclusive).
+	 */
+	protected int windowXStart = 0;
+	/**
+	 * The guide window end X position (detector pixels, inclusive).
+	 */
+	protected int windowXStop = 63;
+	/**
+	 * The guide window start Y position (detector pixels, inclusive).
+	 */
+	protected int windowYStart = 0;
+	/**
+	 * The guide window end Y position (detector pixels, inclusive).
+	 */
+	protected int windowYStop = 63;
+	/**
+	 * The plate scale, in arcseconds per pixel.
+	 */
+	protected double pixelScale = 0.18;
+	/**
+	 * The angle between the detector X axis and RA, in degrees.
+	 */
+	protected double rotation = 0.0;
+	/**
+	 * Whether the RA axis is flipped with respect to the rotated detector X axis.
+	 */
+	protected boolean flipRa = false;
+	/**
+	 * Whether the Dec axis is flipped with respect to the rotated detector Y axis.
+	 */
+	protected boolean flipDec = false;
+	/**
+	 * The fraction of each measured error applied to the correction.
+	 */
+	protected double gain = 0.7;
+	/**
+	 * The smallest change to the correction, in arcseconds, that is worth sending to the ISS.
+	 */
+	protected double minimumOffset = 0.05;
+	/**
+	 * The largest error, in arcseconds, a measurement can have before it is assumed to be spurious.
+	 */
+	protected double maximumError = 5.0;
+	/**
+	 * The MULTRUN dither RA offset of this exposure, in arcseconds.
+	 */
+	protected float baseRaOffset = 0.0f;
+	/**
+	 * The MULTRUN dither Dec offset of this exposure, in arcseconds.
+	 */
+	protected float baseDecOffset = 0.0f;
+	/**
+	 * The thread applying the dither offset of this exposure. Corrections are not posted until it
+	 * has finished, so they cannot overtake it.
+	 */
+	protected Thread ditherThread = null;
+	/**
+	 * Whether a reference guide star position has been measured.
+	 */
+	protected boolean haveReference = false;
+	/**
+	 * The reference guide star X position, in window pixels.
+	 */
+	protected double referenceX = 0.0;
+	/**
+	 * The reference guide star Y position, in window pixels.
+	 */
+	protected double referenceY = 0.0;
+	/**
+	 * The accumulated RA correction, in arcseconds.
+	 */
+	protected double raCorrection = 0.0;
+	/**
+	 * The accumulated Dec correction, in arcseconds.
+	 */
+	protected double decCorrection = 0.0;
+	/**
+	 * The RA correction last posted to the guideOffsetSender, in arcseconds.
+	 */
+	protected double postedRaCorrection = 0.0;
+	/**
+	 * The Dec correction last posted to the guideOffsetSender, in arcseconds.
+	 */
+	protected double postedDecCorrection = 0.0;
+	/**
+	 * The number of guide sub-ramps acquired in the last exposure.
+	 */
+	protected int guideRampCount = 0;
+	/**
+	 * The number of guide sub-ramps in the last exposure that yielded a valid guide star position.
+	 */
+	protected int validCentroidCount = 0;
+	/**
+	 * The list of science sub-ramp directories in the current exposure, in acquisition order.
+	 */
+	protected List<String> scienceDirectoryList = null;
+	/**
+	 * The time AcquireRamp was called for the first science sub-ramp.
+	 */
+	protected long firstAcquireRampCommandCallTime = 0;
+
+	/**
+	 * Constructor.
+	 * @param ioi The IOI object.
+	 * @param serverConnectionThread The thread the MULTRUN is running on.
+	 * @see #ioi
+	 * @see #status
+	 * @see #serverConnectionThread
+	 * @see #dataProcessingThread
+	 * @see #detectorStateMirror
+	 * @see #guideCentroider
+	 * @see #scienceDirectoryList
+	 */
+	public GuidedRampAcquisition(IOI ioi,IOITCPServerConnectionThread serverConnectionThread)
+	{
+		super();
+		this.ioi = ioi;
+		this.serverConnectionThread = serverConnectionThread;
+		status = ioi.getStatus();
+		dataProcessingThread = ioi.getDataProcessingThread();
+		detectorStateMirror = ioi.getDetectorStateMirror();
+		guideCentroider = new GuideCentroider();
+		scienceDirectoryList = new Vector<String>();
+	}
+
+	/**
+	 * Retrieve the guiding configuration, and the dither offset for this exposure.
+	 * <ul>
+	 * <li>The science and guide sub-ramp parameters are retrieved from the "ioi.guide.science.*" and
+	 *     "ioi.guide.window.*" properties.
+	 * <li>The transform from window pixels to RA/Dec, and the control loop parameters, are retrieved.
+	 * <li>The centroid parameters are retrieved and passed to the guideCentroider.
+	 * <li>If "ioi.multrun.offset.enable" is true, the base offset is set to the dither offset for this
+	 *     offset index, in the same way as OffsetTelescopeAndGetFitsHeadersThread.
+	 * </ul>
+	 * @param offsetIndex The index of the exposure within the MULTRUN.
+	 * @exception Exception Thrown if a property is missing or illegal.
+	 * @see #baseRaOffset
+	 * @see #baseDecOffset
+	 * @see OffsetTelescopeAndGetFitsHeadersThread#offsetTelescope
+	 */
+	public void configure(int offsetIndex) throws Exception
+	{
+		IOIConfig config = null;
+		int raDecOffsetCount,raDecOffsetIndex;
+
+		nReset = status.getPropertyInteger("ioi.guide.science.nreset");
+		nScienceRead = status.getPropertyInteger("ioi.guide.science.nread");
+		nScienceGroup = status.getPropertyInteger("ioi.guide.science.ngroup");
+		nScienceDrop = status.getPropertyInteger("ioi.guide.science.ndrop");
+		nGuideRead = status.getPropertyInteger("ioi.guide.window.nread");
+		nGuideGroup = status.getPropertyInteger("ioi.guide.window.ngroup");
+		nGuideDrop = status.getPropertyInteger("ioi.guide.window.ndrop");
+		windowXStart = status.getPropertyInteger("ioi.guide.window.x_start");
+		windowXStop = status.getPropertyInteger("ioi.guide.window.x_stop");
+		windowYStart = status.getPropertyInteger("ioi.guide.window.y_start");
+		windowYStop = status.getPropertyInteger("ioi.guide.window.y_stop");
+		pixelScale = status.getPropertyDouble("ioi.guide.pixel_scale");
+		rotation = status.getPropertyDouble("ioi.guide.rotation");
+		flipRa = status.getPropertyBoolean("ioi.guide.flip.ra");
+		flipDec = status.getPropertyBoolean("ioi.guide.flip.dec");
+		gain = status.getPropertyDouble("ioi.guide.gain");
+		minimumOffset = status.getPropertyDouble("ioi.guide.offset.minimum");
+		maximumError = status.getPropertyDouble("ioi.guide.offset.maximum_error");
+		guideCentroider.setBorder(status.getPropertyInteger("ioi.guide.centroid.border"));
+		guideCentroider.setThresholdSigma(status.getPropertyDouble("ioi.guide.centroid.threshold_sigma"));
+		guideCentroider.setMinimumFlux(status.getPropertyDouble("ioi.guide.centroid.minimum_flux"));
+		if((nScienceRead < 1)||(nScienceGroup < 1)||(nGuideRead < 1)||(nGuideGroup < 1))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+
+							   ":configure:Illegal sub-ramp parameters:science nRead "+
+							   nScienceRead+" nGroup "+nScienceGroup+":guide nRead "+
+							   nGuideRead+" nGroup "+nGuideGroup);
+		}
+		if((windowXStop <= windowXStart)||(windowYStop <= windowYStart))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+
+							   ":configure:Illegal guide window:("+windowXStart+","+
+							   windowYStart+") to ("+windowXStop+","+windowYStop+").");
+		}
+		if((gain <= 0.0)||(gain > 1.0))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+
+							   ":configure:Gain out of range (0..1]:"+gain);
+		}
+		config = status.getConfig();
+		if(config.getMultrunOffsetEnable())
+		{
+			raDecOffsetCount = config.getMultrunOffsetCount();
+			raDecOffsetIndex = offsetIndex % raDecOffsetCount;
+			baseRaOffset = config.getMultrunRaOffset(raDecOffsetIndex);
+			baseDecOffset = config.getMultrunDecOffset(raDecOffsetIndex);
+		}
+		else
+		{
+			baseRaOffset = 0.0f;
+			baseDecOffset = 0.0f;
+		}
+	}
+
+	/**
+	 * Set the thread applying the dither offset for this exposure.
+	 * @param t The thread, or null if there is none.
+	 * @see #ditherThread
+	 */
+	public void setDitherThread(Thread t)
+	{
+		ditherThread = t;
+	}
+
+	/**
+	 * Get the number of reads per group in each science sub-ramp.
+	 * @return The number of reads.
+	 * @see #nScienceRead
+	 */
+	public int getNScienceRead()
+	{
+		return nScienceRead;
+	}
+
+	/**
+	 * Get the total number of science groups acquired in the last exposure.
+	 * @return The number of groups, summed over all the science sub-ramps.
+	 * @see #nScienceGroup
+	 * @see #scienceDirectoryList
+	 */
+	public int getScienceGroupCount()
+	{
+		return nScienceGroup*scienceDirectoryList.size();
+	}
+
+	/**
+	 * Acquire a guided exposure.
+	 * <ul>
+	 * <li>We set the guide window, and turn off idle mode clocking.
+	 * <li>We start a GuideOffsetSender, with it's maximum latency set from "ioi.guide.offset.max_latency".
+	 * <li>We acquire the first science sub-ramp (which resets the array).
+	 * <li>Until the exposure length has elapsed, we acquire a guide sub-ramp and call processGuideRamp
+	 *     on it, then acquire a science sub-ramp without resetting the array.
+	 * <li>We call stitchScienceRamps to merge the science sub-ramps.
+	 * <li>Finally, the array is put back into full frame mode, idle mode resets are re-enabled, and
+	 *     the guideOffsetSender is stopped.
+	 * </ul>
+	 * @param exposureLength The exposure length, in milliseconds.
+	 * @return The directory containing the stitched science ramp.
+	 * @exception Exception Thrown if an IDL command fails, the data cannot be found, or the MULTRUN
+	 *            is aborted.
+	 * @see #sendWindowMode
+	 * @see #sendRampParam
+	 * @see #acquireRamp
+	 * @see #processGuideRamp
+	 * @see #stitchScienceRamps
+	 * @see #firstAcquireRampCommandCallTime
+	 */
+	public String expose(int exposureLength) throws Exception
+	{
+		SetWinParamsCommand setWinParamsCommand = null;
+		String directory = null;
+		long exposureEndTime,acquireRampCommandCallTime;
+
+		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+			":expose:Started guided exposure of length "+exposureLength+" ms.");
+		haveReference = false;
+		raCorrection = 0.0;
+		decCorrection = 0.0;
+		postedRaCorrection = 0.0;
+		postedDecCorrection = 0.0;
+		guideRampCount = 0;
+		validCentroidCount = 0;
+		scienceDirectoryList.clear();
+		guideOffsetSender = new GuideOffsetSender(ioi,serverConnectionThread);
+		guideOffsetSender.setMaxLatency(status.getPropertyLong("ioi.guide.offset.max_latency"));
+		guideOffsetSender.start();
+		try
+		{
+			if(detectorStateMirror.isWinParamsCurrent(windowXStart,windowXStop,windowYStart,windowYStop) == false)
+			{
+				setWinParamsCommand = new SetWinParamsCommand();
+				setWinParamsCommand.setCommand(windowXStart,windowXStop,windowYStart,windowYStop);
+				sendConfigurationCommand(setWinParamsCommand);
+				detectorStateMirror.recordWinParams(windowXStart,windowXStop,windowYStart,windowYStop);
+			}
+			sendIdleModeOption(SetIdleModeOptionCommand.MODE_NOTHING);
+			sendWindowMode(SetWindowModeCommand.MODE_FULL_FRAME);
+			sendRampParam(nReset,nScienceRead,nScienceGroup,nScienceDrop);
+			firstAcquireRampCommandCallTime = System.currentTimeMillis();
+			exposureEndTime = firstAcquireRampCommandCallTime+exposureLength;
+			acquireRamp();
+			directory = dataProcessingThread.findRampData(0,firstAcquireRampCommandCallTime);
+			scienceDirectoryList.add(directory);
+			while(System.currentTimeMillis() < exposureEndTime)
+			{
+				if(serverConnectionThread.getAbortProcessCommand())
+				{
+					throw new Exception(this.getClass().getName()+
+							    ":expose:Guided exposure aborted after "+
+							    scienceDirectoryList.size()+" science sub-ramps.");
+				}
+				// guide sub-ramp
+				sendWindowMode(SetWindowModeCommand.MODE_WINDOW);
+				sendRampParam(0,nGuideRead,nGuideGroup,nGuideDrop);
+				acquireRampCommandCallTime = System.currentTimeMillis();
+				acquireRamp();
+				directory = dataProcessingThread.findRampData(0,acquireRampCommandCallTime);
+				processGuideRamp(directory);
+				// science sub-ramp, without resetting the array
+				sendWindowMode(SetWindowModeCommand.MODE_FULL_FRAME);
+				sendRampParam(0,nScienceRead,nScienceGroup,nScienceDrop);
+				acquireRampCommandCallTime = System.currentTimeMillis();
+				acquireRamp();
+				directory = dataProcessingThread.findRampData(0,acquireRampCommandCallTime);
+				scienceDirectoryList.add(directory);
+			}
+			directory = stitchScienceRamps();
+		}
+		finally
+		{
+			guideOffsetSender.quit();
+			try
+			{
+				sendWindowMode(SetWindowModeCommand.MODE_FULL_FRAME);
+				sendIdleModeOption(SetIdleModeOptionCommand.MODE_RESET);
+			}
+			catch(Exception e)
+			{
+				ioi.error(this.getClass().getName()+":expose:Failed to restore detector modes:",e);
+			}
+		}
+		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+			":expose:Finished guided exposure:"+scienceDirectoryList.size()+" science sub-ramps:"+
+			guideRampCount+" guide sub-ramps ("+validCentroidCount+" valid):correction ("+
+			raCorrection+","+decCorrection+") arcsec:offsets sent "+guideOffsetSender.getSentCount()+
+			":superseded "+guideOffsetSender.getSupersededCount()+":dropped "+
+			guideOffsetSender.getDroppedCount()+":maximum latency "+
+			guideOffsetSender.getMaximumLatency()+" ms.");
+		return directory;
+	}
+
+	/**
+	 * Centroid a guide sub-ramp, post any resulting correction, and delete the sub-ramp.
+	 * <ul>
+	 * <li>The FITS reads in the directory are listed in filename (acquisition) order. The first and last
+	 *     reads are passed to the guideCentroider (just the last if there is only one read).
+	 * <li>If the measurement is valid and there is no reference position yet, it becomes the reference.
+	 * <li>Otherwise the pixel error is transformed to RA/Dec, and if it is smaller than maximumError
+	 *     gain times the error is taken off the correction.
+	 * <li>If the correction has moved by at least minimumOffset since it was last posted, the base offset
+	 *     plus the correction is posted to the guideOffsetSender (after waiting for the ditherThread).
+	 * <li>The guide sub-ramp directory is deleted.
+	 * </ul>
+	 * A guide sub-ramp that cannot be measured is logged and ignored, it does not stop the exposure.
+	 * @param directory The directory containing the guide sub-ramp.
+	 * @see #listFITSFiles
+	 * @see #guideCentroider
+	 * @see #guideOffsetSender
+	 * @see #ditherThread
+	 * @see DataProcessingThread#deleteIDLDirectory
+	 */
+	protected void processGuideRamp(String directory)
+	{
+		File fileList[];
+		long measurementTime;
+		double dx,dy,angle,raError,decError;
+
+		guideRampCount++;
+		measurementTime = System.currentTimeMillis();
+		try
+		{
+			fileList = listFITSFiles(directory);
+			if(fileList.length < 1)
+			{
+				throw new Exception(this.getClass().getName()+":processGuideRamp:No guide reads in:"+
+						    directory);
+			}
+			if(guideCentroider.centroid((fileList.length > 1) ? fileList[0] : null,
+						    fileList[fileList.length-1]))
+			{
+				validCentroidCount++;
+				if(haveReference == false)
+				{
+					referenceX = guideCentroider.getXCentroid();
+					referenceY = guideCentroider.getYCentroid();
+					haveReference = true;
+					ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+						":processGuideRamp:Reference position ("+referenceX+","+referenceY+
+						") flux "+guideCentroider.getFlux()+".");
+				}
+				else
+				{
+					dx = guideCentroider.getXCentroid()-referenceX;
+					dy = guideCentroider.getYCentroid()-referenceY;
+					angle = Math.toRadians(rotation);
+					raError = pixelScale*((dx*Math.cos(angle))-(dy*Math.sin(angle)));
+					decError = pixelScale*((dx*Math.sin(angle))+(dy*Math.cos(angle)));
+					if(flipRa)
+						raError = -raError;
+					if(flipDec)
+						decError = -decError;
+					ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+						":processGuideRamp:Position ("+guideCentroider.getXCentroid()+","+
+						guideCentroider.getYCentroid()+") error ("+raError+","+decError+
+						") arcsec, took "+guideCentroider.getLastCentroidTime()+" ms.");
+					if(Math.sqrt((raError*raError)+(decError*decError)) > maximumError)
+					{
+						ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+							":processGuideRamp:Ignoring error ("+raError+","+decError+
+							") larger than "+maximumError+" arcsec.");
+					}
+					else
+					{
+						raCorrection -= gain*raError;
+						decCorrection -= gain*decError;
+						if((Math.abs(raCorrection-postedRaCorrection) >= minimumOffset)||
+						   (Math.abs(decCorrection-postedDecCorrection) >= minimumOffset))
+						{
+							if(ditherThread != null)
+								ditherThread.join();
+							guideOffsetSender.postOffset((float)(baseRaOffset+raCorrection),
+										     (float)(baseDecOffset+decCorrection),
+										     measurementTime);
+							postedRaCorrection = raCorrection;
+							postedDecCorrection = decCorrection;
+						}
+					}
+				}
+			}
+			else
+			{
+				ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+					":processGuideRamp:No guide star found in "+directory+":flux "+
+					guideCentroider.getFlux()+".");
+			}
+		}
+		catch(Exception e)
+		{
+			ioi.error(this.getClass().getName()+":processGuideRamp:Failed to centroid "+directory+":",e);
+		}
+		try
+		{
+			dataProcessingThread.deleteIDLDirectory(directory);
+		}
+		catch(Exception e)
+		{
+			ioi.error(this.getClass().getName()+":processGuideRamp:Failed to delete "+directory+":",e);
+		}
+	}
+
+	/**
+	 * Merge the science sub-ramps into one ramp.
+	 * The reads of every science sub-ramp are moved into the first science sub-ramp directory,
+	 * renamed with a sub-ramp prefix ("S&lt;sub-ramp index&gt;_") so their filenames sort in acquisition
+	 * order. The other (now empty of reads) sub-ramp directories are then deleted.
+	 * @return The first science sub-ramp directory, now containing all the science reads.
+	 * @exception Exception Thrown if a read cannot be moved.
+	 * @see #scienceDirectoryList
+	 * @see #listFITSFiles
+	 */
+	protected String stitchScienceRamps() throws Exception
+	{
+		File targetDirectory = null;
+		File fileList[];
+		File newFile = null;
+		int readCount = 0;
+
+		targetDirectory = new File((String)(scienceDirectoryList.get(0)));
+		for(int i = 0; i < scienceDirectoryList.size(); i++)
+		{
+			fileList = listFITSFiles((String)(scienceDirectoryList.get(i)));
+			for(int j = 0; j < fileList.length; j++)
+			{
+				newFile = new File(targetDirectory,String.format("S%03d_%s",i,fileList[j].getName()));
+				if(fileList[j].renameTo(newFile) == false)
+				{
+					throw new Exception(this.getClass().getName()+":stitchScienceRamps:Failed to move "+
+							    fileList[j]+" to "+newFile+".");
+				}
+				readCount++;
+			}
+			if(i > 0)
+				dataProcessingThread.deleteIDLDirectory((String)(scienceDirectoryList.get(i)));
+		}
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+":stitchScienceRamps:Stitched "+
+			readCount+" reads from "+scienceDirectoryList.size()+" science sub-ramps into "+
+			targetDirectory+".");
+		return targetDirectory.toString();
+	}
+
+	/**
+	 * List the FITS images at the top level of a directory, sorted into acquisition order.
+	 * @param directory The directory to list.
+	 * @return An array of FITS images.
+	 * @exception Exception Thrown if the directory cannot be listed.
+	 * @see ReadOrdering
+	 */
+	protected File[] listFITSFiles(String directory) throws Exception
+	{
+		File fileList[];
+
+		fileList = new File(directory).listFiles(new FileFilter()
+			{
+				public boolean accept(File f)
+				{
+					return f.isFile() && f.getName().endsWith(".fits");
+				}
+			});
+		if(fileList == null)
+		{
+			throw new Exception(this.getClass().getName()+":listFITSFiles:Directory list was null:"+
+					    directory);
+		}
+		Arrays.sort(fileList,new ReadOrdering());
+		return fileList;
+	}
+
+	/**
+	 * Send a SetIdleModeOption command to the IDL Socket Server, unless the detector state mirror
+	 * shows the idle mode is already current.
+	 * @param mode The idle mode.
+	 * @exception Exception Thrown if the command fails.
+	 * @see #sendConfigurationCommand
+	 * @see ngat.ioi.command.SetIdleModeOptionCommand
+	 */
+	protected void sendIdleModeOption(int mode) throws Exception
+	{
+		SetIdleModeOptionCommand setIdleModeOptionCommand = null;
+
+		if(detectorStateMirror.isIdleModeCurrent(mode))
+			return;
+		setIdleModeOptionCommand = new SetIdleModeOptionCommand();
+		setIdleModeOptionCommand.setCommand(mode);
+		sendConfigurationCommand(setIdleModeOptionCommand);
+		detectorStateMirror.recordIdleMode(mode);
+	}
+
+	/**
+	 * Send a SetWindowMode command to the IDL Socket Server, unless the detector state mirror
+	 * shows the window mode is already current.
+	 * @param mode The window mode.
+	 * @exception Exception Thrown if the command fails.
+	 * @see #sendConfigurationCommand
+	 * @see ngat.ioi.command.SetWindowModeCommand
+	 */
+	protected void sendWindowMode(int mode) throws Exception
+	{
+		SetWindowModeCommand setWindowModeCommand = null;
+
+		if(detectorStateMirror.isWindowModeCurrent(mode))
+			return;
+		setWindowModeCommand = new SetWindowModeCommand();
+		setWindowModeCommand.setCommand(mode);
+		sendConfigurationCommand(setWindowModeCommand);
+		detectorStateMirror.recordWindowMode(mode);
+	}
+
+	/**
+	 * Send a SetRampParam command to the IDL Socket Server configuring one ramp, unless the detector
+	 * state mirror shows the ramp parameters are already current.
+	 * @param nReset The number of resets.
+	 * @param nRead The number of reads per group.
+	 * @param nGroup The number of groups.
+	 * @param nDrop The number of drops between groups.
+	 * @exception Exception Thrown if the command fails.
+	 * @see #sendConfigurationCommand
+	 * @see ngat.ioi.command.SetRampParamCommand
+	 */
+	protected void sendRampParam(int nReset,int nRead,int nGroup,int nDrop) throws Exception
+	{
+		SetRampParamCommand setRampParamCommand = null;
+
+		if(detectorStateMirror.isRampParamCurrent(nReset,nRead,nGroup,nDrop,1))
+			return;
+		setRampParamCommand = new SetRampParamCommand();
+		setRampParamCommand.setCommand(nReset,nRead,nGroup,nDrop,1);
+		sendConfigurationCommand(setRampParamCommand);
+		detectorStateMirror.recordRampParam(nReset,nRead,nGroup,nDrop,1);
+	}
+
+	/**
+	 * Send a configuration command to the IDL Socket Server. If the command fails, the detector state mirror
+	 * is invalidated, as the server state is then uncertain.
+	 * @param command The configured command to send.
+	 * @exception Exception Thrown if the command fails, or returns an error.
+	 * @see #detectorStateMirror
+	 */
+	protected void sendConfigurationCommand(StandardReplyCommand command) throws Exception
+	{
+		try
+		{
+			command.sendCommand();
+		}
+		catch(Exception e)
+		{
+			detectorStateMirror.invalidate();
+			throw e;
+		}
+		if(command.getReplyErrorCode() != 0)
+		{
+			detectorStateMirror.invalidate();
+			throw new Exception(this.getClass().getName()+":sendConfigurationCommand:"+
+					    command.getClass().getName()+" failed:"+command.getReplyErrorCode()+":"+
+					    command.getReplyErrorString());
+		}
+	}
+
+	/**
+	 * Send an AcquireRamp command to the IDL Socket Server.
+	 * @exception Exception Thrown if the command fails.
+	 * @see ngat.ioi.command.AcquireRampCommand
+	 */
+	protected void acquireRamp() throws Exception
+	{
+		AcquireRampCommand acquireRampCommand = null;
+
+		acquireRampCommand = new AcquireRampCommand();
+		try
+		{
+			acquireRampCommand.sendCommand();
+		}
+		catch(Exception e)
+		{
+			detectorStateMirror.invalidate();
+			throw e;
+		}
+		if(acquireRampCommand.getReplyErrorCode() != 0)
+		{
+			detectorStateMirror.invalidate();
+			throw new Exception(this.getClass().getName()+":acquireRamp:AcquireRamp failed:"+
+					    acquireRampCommand.getReplyErrorCode()+":"+
+					    acquireRampCommand.getReplyErrorString());
+		}
+	}
+
+	/**
+	 * Get the time AcquireRamp was called for the first science sub-ramp of the last exposure.
+	 * @return A Java timestamp.
+	 * @see #firstAcquireRampCommandCallTime
+	 */
+	public long getFirstAcquireRampCommandCallTime()
+	{
+		return firstAcquireRampCommandCallTime;
+	}
+
+	/**
+	 * Get the number of guide sub-ramps acquired in the last exposure.
+	 * @return The number of guide sub-ramps.
+	 * @see #guideRampCount
+	 */
+	public int getGuideRampCount()
+	{
+		return guideRampCount;
+	}
+
+	/**
+	 * Get the number of guide sub-ramps that yielded a valid guide star position in the last exposure.
+	 * @return The number of guide sub-ramps.
+	 * @see #validCentroidCount
+	 */
+	public int getValidCentroidCount()
+	{
+		return validCentroidCount;
+	}
+}
@@ -74,13 +74,18 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 
 	/**
 	 * Return what sampling mode the array (IDL socket server layer) is currently configured to use.
-	 * This is done by sending a GetConfig command to the IDL socket server and extracting the bFS config.
-	 * The resultant list of keyword-value pairs is cached along with a timestamp for adding to GET_STATUS data.
+	 * If the detector state mirror already knows the sampling mode (it was set by a CONFIG, or read by a
+	 * previous call), that is returned without talking to the IDL socket server.
+	 * Otherwise this is done by sending a GetConfig command to the IDL socket server and extracting the bFS config.
+	 * The resultant list of keyword-value pairs is cached along with a timestamp for adding to GET_STATUS data,
+	 * and the sampling mode is recorded in the detector state mirror.
 	 * @return An integer. 1 means 'Fowler sampling mode' and 0 'Read Up The Ramp mode'.
 	 * @exception Exception Thrown if the GetConfig fails, returns an error, or the bFS property is not present.
 	 * @see #ioi
 	 * @see #status
 	 * @see ngat.ioi.IOIStatus#cacheGetConfigCommand
+	 * @see ngat.ioi.DetectorStateMirror#getFSMode
+	 * @see ngat.ioi.DetectorStateMirror#recordFSMode
 	 * @see ngat.ioi.command.GetConfigCommand
 	 * @see ngat.ioi.command.GetConfigCommand#sendCommand
 	 * @see ngat.ioi.command.GetConfigCommand#getReplyErrorCode
@@ -90,16 +95,34 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 	protected int getFSMode() throws Exception
 	{
 		GetConfigCommand getConfigCommand = null;
+		DetectorStateMirror detectorStateMirror = null;
 		int bFS;
 
 		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
 			   ":getFSMode:started.");
+		detectorStateMirror = ioi.getDetectorStateMirror();
+		bFS = detectorStateMirror.getFSMode();
+		if(bFS != DetectorStateMirror.FS_MODE_UNKNOWN)
+		{
+			ioi.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
+				":getFSMode:Detector state mirror has bFS = "+bFS+": GetConfig not sent.");
+			return bFS;
+		}
 		ioi.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
 			   ":getFSMode:Calling GetConfig.");
 		getConfigCommand = new GetConfigCommand();
-		getConfigCommand.sendCommand();
+		try
+		{
+			getConfigCommand.sendCommand();
+		}
+		catch(Exception e)
+		{
+			detectorStateMirror.invalidate();
+			throw e;
+		}
 		if(getConfigCommand.getReplyErrorCode() != 0)
 		{
+			detectorStateMirror.invalidate();
 			ioi.error(this.getClass().getName()+":getFSMode:GetConfig failed:"+
 				  getConfigCommand.getReplyErrorCode()+":"+
 				  getConfigCommand.getReplyErrorString());
@@ -127,6 +150,7 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 			throw new Exception(this.getClass().getName()+":getFSMode:GetConfig returned illegal bFS = "+
 					    bFS+".");
 		}
+		detectorStateMirror.recordFSMode(bFS,false);
 		return bFS;
 	}
 }
@@ -0,0 +1,576 @@
+// IDLLinkSupervisor.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import ngat.ioi.command.*;
+import ngat.util.logging.*;
+
+/**
+ * An instance of this class is run periodically (on the IOI's shared scheduled thread pool) from within the
+ * IOI software, once the controller has started up. It supervises the telnet connection to the IDL socket server:
+ * <ul>
+ * <li>The link is considered lost if the CommandReplyBroker fails to read from it, or (when no other command
+ *     is awaiting a reply) a health Ping command is not answered within a timeout.
+ * <li>When the link is lost, a new connection is opened, retrying with an exponentially increasing delay
+ *     (bounded by a maximum) until it succeeds.
+ * <li>Once re-connected, the detector state is re-applied: the detector state mirror is invalidated (so the
+ *     next exposure re-sends all ramp configuration) and the SetDetector and SetGain configuration re-sent.
+ * </ul>
+ * Whilst the link is down, the CommandReplyBroker retains idempotent commands (Ping, GetConfig and the
+ * configuration commands) and re-sends them on the new connection, up to "ioi.idl.link.retry.count" times.
+ * Non-idempotent commands such as AcquireRamp fail immediately.
+ * The state model is as follows:
+ * <pre>
+ * INIT->NOT_RUNNING
+ *     +>LINK_UP<->RECONNECTING
+ *              +>STOPPED
+ * </pre>
+ * A new IDL socket server process (rather than a dropped connection) needs the Sidecar re-initialised,
+ * which still requires a REDATUM.
+ * @see ngat.ioi.command.CommandReplyBroker
+ * @see IOIExecutors#getScheduledExecutor
+ * @see IOI#openIDLConnection
+ * @see IOI#configureDetector
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class IDLLinkSupervisor implements Runnable
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * Thread state. Awaiting or doing initialisation.
+	 * @see #threadState
+	 */
+	public final static int THREAD_STATE_INIT         = 0;
+	/**
+	 * Thread state. The thread has stopped running because supervision is not enabled.
+	 * @see #threadState
+	 */
+	public final static int THREAD_STATE_NOT_RUNNING  = 1;
+	/**
+	 * Thread state. The thread is running, and the link is believed to be working.
+	 * @see #threadState
+	 */
+	public final static int THREAD_STATE_LINK_UP      = 2;
+	/**
+	 * Thread state. The link has been lost, and the thread is trying to re-open it.
+	 * @see #threadState
+	 */
+	public final static int THREAD_STATE_RECONNECTING = 3;
+	/**
+	 * Thread state. The thread has been stopped.
+	 * @see #threadState
+	 */
+	public final static int THREAD_STATE_STOPPED      = 4;
+	/**
+	 * The IOI object.
+	 */
+	protected IOI ioi = null;
+	/**
+	 * The IOI status object.
+	 */
+	protected IOIStatus status = null;
+	/**
+	 * Whether link supervision is enabled.
+	 */
+	protected boolean enable = false;
+	/**
+	 * How long to wait between link checks, in milliseconds.
+	 */
+	protected long healthPeriod = 10000;
+	/**
+	 * How long to wait for the reply to a health Ping command, in milliseconds.
+	 */
+	protected long healthTimeout = 5000;
+	/**
+	 * How long to wait for the detector configuration to be re-applied after re-connecting, in milliseconds.
+	 */
+	protected long reapplyTimeout = 30000;
+	/**
+	 * How long an idempotent command is retained whilst the link is down before it fails, in milliseconds.
+	 */
+	protected long retainTimeout = 30000;
+	/**
+	 * How long to wait before the second attempt to re-open the link, in milliseconds.
+	 * The delay is doubled after each failed attempt.
+	 */
+	protected long reconnectDelayInitial = 1000;
+	/**
+	 * The longest delay between attempts to re-open the link, in milliseconds.
+	 */
+	protected long reconnectDelayMax = 60000;
+	/**
+	 * The number of times an idempotent command is re-sent after the link fails.
+	 */
+	protected int retryCount = 1;
+	/**
+	 * The current thread state.
+	 * @see #THREAD_STATE_INIT
+	 * @see #THREAD_STATE_NOT_RUNNING
+	 * @see #THREAD_STATE_LINK_UP
+	 * @see #THREAD_STATE_RECONNECTING
+	 * @see #THREAD_STATE_STOPPED
+	 */
+	protected int threadState = THREAD_STATE_INIT;
+	/**
+	 * Set by stopThread to terminate the thread.
+	 */
+	protected boolean stoppingThread = false;
+	/**
+	 * Whether a link check is currently being run on the scheduled thread pool.
+	 * stopThread waits for this to become false.
+	 */
+	protected boolean checkRunning = false;
+	/**
+	 * The future returned when the link check was scheduled on the scheduled thread pool,
+	 * used to cancel it.
+	 * @see #start
+	 * @see #stopThread
+	 */
+	protected ScheduledFuture<?> scheduledFuture = null;
+	/**
+	 * The number of times the link has been re-established.
+	 */
+	protected int reconnectCount = 0;
+	/**
+	 * The time the link was last re-established, in milliseconds since the epoch, or 0.
+	 */
+	protected long lastReconnectTime = 0;
+	/**
+	 * How long, in milliseconds, the link was down before it was last re-established.
+	 */
+	protected long lastOutageLength = 0;
+
+	/**
+	 * Constructor.
+	 * @see #threadState
+	 */
+	public IDLLinkSupervisor()
+	{
+		super();
+		threadState = THREAD_STATE_INIT;
+	}
+
+	/**
+	 * Set the IOI object reference. The IOI status object is also retrieved.
+	 * @param o The IOI object reference.
+	 * @see #ioi
+	 * @see #status
+	 */
+	public void setIOI(IOI o)
+	{
+		ioi = o;
+		status = ioi.getStatus();
+	}
+
+	/**
+	 * Initialise the supervisor before starting the thread. Should be called after setIOI.
+	 * The following config is read:
+	 * <ul>
+	 * <li>"ioi.idl.link.supervisor.enable"
+	 * <li>"ioi.idl.link.health.period"
+	 * <li>"ioi.idl.link.health.timeout"
+	 * <li>"ioi.idl.link.reapply.timeout"
+	 * <li>"ioi.idl.link.reconnect.delay.initial"
+	 * <li>"ioi.idl.link.reconnect.delay.max"
+	 * <li>"ioi.idl.link.retry.count"
+	 * <li>"ioi.idl.link.retain.timeout"
+	 * </ul>
+	 * The CommandReplyBroker's retry count is set, to retryCount if supervision is enabled, otherwise
+	 * zero (as nothing would re-open the link for the retained commands). It's retain timeout is set
+	 * to retainTimeout.
+	 * @see #enable
+	 * @see #healthPeriod
+	 * @see #healthTimeout
+	 * @see #reapplyTimeout
+	 * @see #reconnectDelayInitial
+	 * @see #reconnectDelayMax
+	 * @see #retryCount
+	 * @see #retainTimeout
+	 * @see ngat.ioi.command.CommandReplyBroker#setMaxRetryCount
+	 * @see ngat.ioi.command.CommandReplyBroker#setRetainTimeout
+	 * @see IOIConfig
+	 */
+	public void init()
+	{
+		IOIConfig config = null;
+
+		config = status.getConfig();
+		enable = config.getIDLLinkSupervisorEnable();
+		healthPeriod = config.getIDLLinkHealthPeriod();
+		healthTimeout = config.getIDLLinkHealthTimeout();
+		reapplyTimeout = config.getIDLLinkReapplyTimeout();
+		reconnectDelayInitial = config.getIDLLinkReconnectDelayInitial();
+		reconnectDelayMax = config.getIDLLinkReconnectDelayMax();
+		retryCount = config.getIDLLinkRetryCount();
+		retainTimeout = config.getIDLLinkRetainTimeout();
+		CommandReplyBroker.getInstance().setRetainTimeout(retainTimeout);
+		if(enable)
+			CommandReplyBroker.getInstance().setMaxRetryCount(retryCount);
+		else
+			CommandReplyBroker.getInstance().setMaxRetryCount(0);
+	}
+
+	/**
+	 * Start supervising the link.
+	 * <ul>
+	 * <li>If enable is false, we enter THREAD_STATE_NOT_RUNNING and return.
+	 * <li>We enter THREAD_STATE_LINK_UP, and schedule this object's run method on the IOI's scheduled
+	 *     thread pool, to be run every healthPeriod milliseconds until stopThread is called.
+	 * </ul>
+	 * @see #enable
+	 * @see #healthPeriod
+	 * @see #scheduledFuture
+	 * @see #run
+	 * @see IOIExecutors#getScheduledExecutor
+	 */
+	public void start()
+	{
+		if(enable == false)
+		{
+			ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
+				":start:IDL link supervision NOT enabled.");
+			threadState = THREAD_STATE_NOT_RUNNING;
+			return;
+		}
+		ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":start:Scheduling link check every "+
+			healthPeriod+" ms.");
+		threadState = THREAD_STATE_LINK_UP;
+		scheduledFuture = ioi.getExecutors().getScheduledExecutor().scheduleWithFixedDelay(this,healthPeriod,
+									healthPeriod,TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Run method, called every healthPeriod milliseconds on the scheduled thread pool.
+	 * <ul>
+	 * <li>If stopThread has been called we return, otherwise checkRunning is set.
+	 * <li>If the CommandReplyBroker says the link is down, or no command is awaiting a reply and a
+	 *     health Ping fails, we call reconnect. This does not return until the link is re-opened
+	 *     (or stopThread is called), so no further check is scheduled whilst reconnecting.
+	 * <li>Any exception is caught and logged, as an exception thrown out of a scheduled task
+	 *     cancels all it's subsequent runs.
+	 * <li>checkRunning is cleared, and any thread waiting in stopThread notified.
+	 * </ul>
+	 * @see #stoppingThread
+	 * @see #checkRunning
+	 * @see #isHealthy
+	 * @see #reconnect
+	 */
+	public void run()
+	{
+		CommandReplyBroker replyBroker = null;
+		boolean linkUp;
+
+		synchronized(this)
+		{
+			if(stoppingThread)
+				return;
+			checkRunning = true;
+		}
+		try
+		{
+			replyBroker = CommandReplyBroker.getInstance();
+			linkUp = replyBroker.isLinkUp();
+			if(linkUp == false)
+			{
+				ioi.error(this.getClass().getName()+":run:CommandReplyBroker reports IDL link down.");
+			}
+			else if(replyBroker.getPendingCommandCount() == 0)
+			{
+				// only Ping an idle link, a busy link shows it is alive by the replies it reads
+				linkUp = isHealthy();
+			}
+			if((linkUp == false)&&(isStopping() == false))
+				reconnect();
+		}
+		catch(Exception e)
+		{
+			ioi.error(this.getClass().getName()+":run:Link check failed:",e);
+		}
+		finally
+		{
+			synchronized(this)
+			{
+				checkRunning = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Send a health Ping command to the IDL socket server, and wait up to healthTimeout for the reply.
+	 * The command is run on the IOI's blocking I/O thread pool, so we can stop waiting for it. If no reply
+	 * arrives, the Ping is left in the CommandReplyBroker, and is failed or retained when the link is re-opened.
+	 * @return true if the Ping command returned a reply in time (or we were interrupted by stopThread
+	 *         whilst waiting), false otherwise.
+	 * @see #healthTimeout
+	 * @see IOIExecutors#getBlockingExecutor
+	 */
+	protected boolean isHealthy()
+	{
+		PingCommand pingCommand = null;
+		Future<?> pingFuture = null;
+
+		pingCommand = new PingCommand();
+		pingFuture = ioi.getExecutors().getBlockingExecutor().submit(pingCommand);
+		try
+		{
+			pingFuture.get(healthTimeout,TimeUnit.MILLISECONDS);
+		}
+		catch(TimeoutException e)
+		{
+			ioi.error(this.getClass().getName()+":isHealthy:Health Ping not answered within "+
+				  healthTimeout+" ms.");
+			return false;
+		}
+		catch(InterruptedException e)
+		{
+			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+":isHealthy:Wait interrupted.");
+			return true;
+		}
+		catch(ExecutionException e)
+		{
+			ioi.error(this.getClass().getName()+":isHealthy:Health Ping failed:",e);
+			return false;
+		}
+		if(pingCommand.getRunException() != null)
+		{
+			ioi.error(this.getClass().getName()+":isHealthy:Health Ping failed:",
+				  pingCommand.getRunException());
+			return false;
+		}
+		ioi.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+":isHealthy:Health Ping returned:"+
+			pingCommand.getReplyErrorCode()+":"+pingCommand.getReplyErrorString());
+		return true;
+	}
+
+	/**
+	 * Re-open the link to the IDL socket server.
+	 * <ul>
+	 * <li>We enter THREAD_STATE_RECONNECTING.
+	 * <li>We loop, calling IOI.openIDLConnection and reapplyDetectorState until they succeed or 
+	 *     stopThread is called.
+	 *     After each failure, we sleep for the current delay, which starts at reconnectDelayInitial and
+	 *     doubles each time up to reconnectDelayMax.
+	 * <li>If we re-connected, the reconnect statistics are updated and we enter THREAD_STATE_LINK_UP.
+	 * </ul>
+	 * @see #threadState
+	 * @see #reconnectDelayInitial
+	 * @see #reconnectDelayMax
+	 * @see #reconnectCount
+	 * @see #lastReconnectTime
+	 * @see #lastOutageLength
+	 * @see IOI#openIDLConnection
+	 * @see #reapplyDetectorState
+	 */
+	protected void reconnect()
+	{
+		long delay,outageStartTime;
+		int attempt;
+		boolean connected;
+
+		threadState = THREAD_STATE_RECONNECTING;
+		outageStartTime = System.currentTimeMillis();
+		delay = reconnectDelayInitial;
+		attempt = 0;
+		connected = false;
+		while((connected == false)&&(isStopping() == false))
+		{
+			attempt++;
+			ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
+				":reconnect:Re-opening IDL link:attempt "+attempt+".");
+			try
+			{
+				ioi.openIDLConnection();
+				reapplyDetectorState();
+				connected = true;
+			}
+			catch(Exception e)
+			{
+				ioi.error(this.getClass().getName()+":reconnect:Attempt "+attempt+" failed:retrying in "+
+					  delay+" ms:",e);
+				try
+				{
+					Thread.sleep(delay);
+				}
+				catch(InterruptedException ie)
+				{
+					ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+						":reconnect:Sleep interrupted.");
+				}
+				delay = Math.min(delay*2,reconnectDelayMax);
+			}
+		}
+		if(connected)
+		{
+			synchronized(this)
+			{
+				reconnectCount++;
+				lastReconnectTime = System.currentTimeMillis();
+				lastOutageLength = lastReconnectTime-outageStartTime;
+			}
+			ioi.log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
+				":reconnect:IDL link re-established after "+attempt+" attempts and "+
+				lastOutageLength+" ms.");
+			threadState = THREAD_STATE_LINK_UP;
+		}
+	}
+
+	/**
+	 * Re-apply the detector state after the link has been re-opened. IOI.openIDLConnection has already
+	 * invalidated the detector state mirror, so the next exposure re-sends all the ramp configuration.
+	 * Here IOI.configureDetector re-sends the SetDetector and SetGain configuration. 
+	 * This is done on the IOI's blocking I/O thread pool, waiting up to reapplyTimeout: if the link fails again 
+	 * the configuration commands are retained by the CommandReplyBroker until the link is re-opened, 
+	 * which is our job, so we must not wait for them indefinitely.
+	 * @exception Exception Thrown if configureDetector fails or does not finish within reapplyTimeout.
+	 * @see #reapplyTimeout
+	 * @see IOI#configureDetector
+	 * @see IOIExecutors#getBlockingExecutor
+	 */
+	protected void reapplyDetectorState() throws Exception
+	{
+		Future<Object> reapplyFuture = null;
+
+		reapplyFuture = ioi.getExecutors().getBlockingExecutor().submit(new Callable<Object>()
+			{
+				public Object call() throws Exception
+				{
+					ioi.configureDetector();
+					return null;
+				}
+			});
+		try
+		{
+			reapplyFuture.get(reapplyTimeout,TimeUnit.MILLISECONDS);
+		}
+		catch(TimeoutException e)
+		{
+			throw new Exception(this.getClass().getName()+
+				    ":reapplyDetectorState:Re-applying detector configuration took longer than "+
+					    reapplyTimeout+" ms.");
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof Exception)
+				throw (Exception)(e.getCause());
+			throw e;
+		}
+	}
+
+	/**
+	 * Stop the supervisor. stoppingThread is set, the scheduled link check cancelled (interrupting it,
+	 * to wake it from any reconnect sleep) and we wait for any link check in progress to finish.
+	 * We then enter THREAD_STATE_STOPPED.
+	 * @see #stoppingThread
+	 * @see #scheduledFuture
+	 * @see #checkRunning
+	 */
+	public void stopThread()
+	{
+		ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":stopThread:Started.");
+		synchronized(this)
+		{
+			stoppingThread = true;
+		}
+		if(scheduledFuture != null)
+			scheduledFuture.cancel(true);
+		try
+		{
+			synchronized(this)
+			{
+				while(checkRunning)
+					wait();
+			}
+		}
+		catch(InterruptedException e)
+		{
+			ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":stopThread:Wait interrupted.");
+		}
+		if(threadState != THREAD_STATE_NOT_RUNNING)
+			threadState = THREAD_STATE_STOPPED;
+		ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":stopThread:Finished.");
+	}
+
+	/**
+	 * Return whether stopThread has been called.
+	 * @return true if the supervisor is stopping, false otherwise.
+	 * @see #stoppingThread
+	 */
+	protected synchronized boolean isStopping()
+	{
+		return stoppingThread;
+	}
+
+	/**
+	 * Get the current thread state.
+	 * @return The thread state.
+	 * @see #threadState
+	 */
+	public int getThreadState()
+	{
+		return threadState;
+	}
+
+	/**
+	 * Get the number of times the link has been re-established.
+	 * @return The reconnect count.
+	 * @see #reconnectCount
+	 */
+	public synchronized int getReconnectCount()
+	{
+		return reconnectCount;
+	}
+
+	/**
+	 * Get the time the link was last re-established.
+	 * @return The time in milliseconds since the epoch, or 0 if it has never been re-established.
+	 * @see #lastReconnectTime
+	 */
+	public synchronized long getLastReconnectTime()
+	{
+		return lastReconnectTime;
+	}
+
+	/**
+	 * Get how long the link was down before it was last re-established.
+	 * @return The outage length in milliseconds.
+	 * @see #lastOutageLength
+	 */
+	public synchronized long getLastOutageLength()
+	{
+		return lastOutageLength;
+	}
+
+	/**
+	 * Get a string describing the specified thread state.
+	 * @param state The thread state.
+	 * @return A string, one of "INIT", "NOT_RUNNING", "LINK_UP", "RECONNECTING", "STOPPED" or "UNKNOWN".
+	 */
+	public static String stateToString(int state)
+	{
+		switch(state)
+		{
+			case THREAD_STATE_INIT:
+				return "INIT";
+			case THREAD_STATE_NOT_RUNNING:
+				return "NOT_RUNNING";
+			case THREAD_STATE_LINK_UP:
+				return "LINK_UP";
+			case THREAD_STATE_RECONNECTING:
+				return "RECONNECTING";
+			case THREAD_STATE_STOPPED:
+				return "STOPPED";
+			default:
+				return "UNKNOWN";
+		}
+	}
+}
@@ -145,6 +145,10 @@ public class IOI
 	 * The interface class to the temperature controller.
 	 */
 	protected TemperatureController tempControl = null;
+	/**
+	 * Whether the temperature controller socket is currently open.
+	 */
+	protected boolean tempControlSocketOpen = false;
 	/**
 	 * This obect is a thread that is started independently of any robotic command invocations.
 	 * It monitors the ASIC temperature and if it gets too warm, issues a PowerDownASIC command
@@ -158,6 +162,47 @@ public class IOI
 	 * @see DataProcessingThread
 	 */
 	protected DataProcessingThread dataProcessingThread = null;
+	/**
+	 * The mirror of the IDL Socket Server configuration, used to skip redundant configuration commands.
+	 * @see DetectorStateMirror
+	 */
+	protected DetectorStateMirror detectorStateMirror = null;
+	/**
+	 * The object that runs the controller startup phases, and holds their state (readiness).
+	 * @see ControllerStartup
+	 */
+	protected ControllerStartup controllerStartup = null;
+	/**
+	 * The thread that supervises the link to the IDL Socket Server, re-opening it if it fails.
+	 * @see IDLLinkSupervisor
+	 */
+	protected IDLLinkSupervisor idlLinkSupervisor = null;
+	/**
+	 * The model used to predict (and learn) how long ramps take to acquire.
+	 * @see RampTimingModel
+	 */
+	protected RampTimingModel rampTimingModel = null;
+	/**
+	 * The cache of ISS and BSS GET_FITS keywords that do not change every exposure.
+	 * @see FitsHeaderSourceCache
+	 */
+	protected FitsHeaderSourceCache fitsHeaderSourceCache = null;
+	/**
+	 * The thread pools shared by the rest of the software.
+	 * @see IOIExecutors
+	 */
+	protected IOIExecutors executors = null;
+	/**
+	 * The ring buffer the timeline of each command and exposure is recorded into.
+	 * @see ngat.ioi.command.TraceRecorder
+	 * @see #createTraceContext
+	 */
+	protected TraceRecorder traceRecorder = null;
+	/**
+	 * The number of trace contexts created, used to make each command's trace id unique.
+	 * @see #createTraceContext
+	 */
+	protected long traceCount = 0;
 
 	/**
 	 * init method.
@@ -222,14 +267,23 @@ public class IOI
 			error(this.getClass().getName()+":init:loading properties:",e);
 			throw e;
 		}
+		catch(IllegalArgumentException e)
+		{
+			error(this.getClass().getName()+":init:invalid configuration:",e);
+			throw e;
+		}
 	// Logging
 		initLoggers();
+	// create the shared thread pools
+		executors = new IOIExecutors();
+		executors.setIOI(this);
+		executors.init();
 	// create some hardware control objects
 		tempControl = new TemperatureController();
 	// initialise sub-system loggers, after creating status, hardware control objects
 		setLogLevel(logLevel);
 	// create the fits filename object, if we are going to rename FITS images
-		fitsFilenameRename = status.getPropertyBoolean("ioi.file.fits.rename");
+		fitsFilenameRename = status.getConfig().getFitsRename();
 		if(fitsFilenameRename)
 		{
 			fitsFilename = new FitsFilename();
@@ -258,6 +312,24 @@ public class IOI
 		}
 		// Create instance of FitsFlip
 		fitsFlip = new FitsFlip();
+	// Create the IDL Socket Server state mirror
+		detectorStateMirror = new DetectorStateMirror();
+		detectorStateMirror.setEnable(status.getPropertyBoolean("ioi.idl.state_mirror.enable"));
+	// Create the ramp timing model, and load any previously learnt coefficients
+		rampTimingModel = new RampTimingModel();
+		rampTimingModel.setIOI(this);
+		rampTimingModel.init();
+	// Create the GET_FITS keyword cache
+		fitsHeaderSourceCache = new FitsHeaderSourceCache();
+		fitsHeaderSourceCache.setIOI(this);
+		fitsHeaderSourceCache.configure();
+	// Create the trace ring buffer
+		traceRecorder = new TraceRecorder(status.getPropertyInteger("ioi.trace.span_count"));
+	// start or stop the continuous event recording
+		configureEventRecording();
+	// Create the controller startup task graph
+		controllerStartup = new ControllerStartup();
+		controllerStartup.setIOI(this);
 	// Create and initialise the implementationList
 		initImplementationList();
 	// initialise port numbers from properties file/ command line arguments
@@ -311,6 +383,37 @@ public class IOI
 		}
 	}
 
+	/**
+	 * Initialise the parts of IO:I needed to run the data processing pipeline offline, without a controller,
+	 * server or connection to the ISS/BSS. This is used by ReprocessRamps instead of init.
+	 * <ul>
+	 * <li>Create status object, and load property file.
+	 * <li>Initialise loggers, and set the log level.
+	 * <li>Create the shared thread pools.
+	 * <li>Initialise the FitsFlip instance.
+	 * </ul>
+	 * @param level The log level.
+	 * @exception Exception Thrown if loading the properties, or creating the thread pools, fails.
+	 * @see #init
+	 * @see #initLoggers
+	 * @see #setLogLevel
+	 * @see #executors
+	 * @see #fitsFlip
+	 * @see ReprocessRamps
+	 */
+	protected void initOffline(int level) throws Exception
+	{
+		status = new IOIStatus();
+		status.load();
+		initLoggers();
+		executors = new IOIExecutors();
+		executors.setIOI(this);
+		executors.init();
+		tempControl = new TemperatureController();
+		setLogLevel(level);
+		fitsFlip = new FitsFlip();
+	}
+
 	/**
 	 * Initialise log handlers. Called from init only, not re-configured on a REDATUM level reboot.
 	 * @see #LOGGER_CHANNEL_ID
@@ -349,6 +452,7 @@ public class IOI
 		copyLogHandlers(logLogger,LogManager.getLogger("ngat.ioi.command.Command"),null,Logging.ALL);
 		copyLogHandlers(logLogger,LogManager.getLogger("ngat.ioi.command.CommandReplyBroker"),null,
 				Logging.ALL);
+		copyLogHandlers(logLogger,LogManager.getLogger("ngat.ioi.command.EventRecorder"),null,Logging.ALL);
 		copyLogHandlers(logLogger,LogManager.getLogger("ngat.ioi.command.StandardReplyCommand"),null,
 				Logging.ALL);
 		copyLogHandlers(logLogger,LogManager.getLogger("ngat.ioi.command.KeywordValueReplyCommand"),null,
@@ -690,15 +794,22 @@ public class IOI
 	 * files, but NOT the network one. 
 	 * It resets the FitsFilename directory and instrument code. 
 	 * It re-initialises default connection response times from properties file.
+	 * It re-initialises the ramp timing model, re-classifies (and empties) the GET_FITS keyword cache,
+	 * resizes the shared thread pools, and re-configures the data processing backlog limits, priority aging and
+	 * calibration library.
+	 * It starts or stops the continuous event recording, as the re-loaded configuration requires.
 	 * The init method must be kept up to date with respect to this method.
 	 * @exception FileNotFoundException Thrown if the property file cannot be found.
 	 * @exception IOException Thrown if the property file cannot be accessed and the properties cannot
 	 * 	be loaded for some reason.
+	 * @exception IllegalArgumentException Thrown if the reloaded configuration is not valid. The previously
+	 *  	loaded configuration is left in place.
 	 * @exception Exception Thrown from FitsFilename.initialise, if the directory listing failed.
 	 * @see #status
 	 * @see #init
 	 * @see #setLogLevel
 	 * @see #fitsFilename
+	 * @see #configureEventRecording
 	 */
 	public void reInit() throws FileNotFoundException,IOException,NumberFormatException,Exception
 	{
@@ -720,10 +831,15 @@ public class IOI
 			error(this.getClass().getName()+":reinit:loading properties:",e);
 			throw e;
 		}
+		catch(IllegalArgumentException e)
+		{
+			error(this.getClass().getName()+":reinit:invalid configuration:",e);
+			throw e;
+		}
 	// don't change errorLogger to files defined in loaded properties
 	// don't change logLogger to files defined in loaded properties
 	// set the fits filename instrument code/directory, and re-initialise runnum etc.
-		fitsFilenameRename = status.getPropertyBoolean("ioi.file.fits.rename");
+		fitsFilenameRename = status.getConfig().getFitsRename();
 		if(fitsFilenameRename)
 		{
 			fitsFilename.setInstrumentCode(status.getProperty("ioi.file.fits.instrument_code"));
@@ -745,6 +861,56 @@ public class IOI
 			error(this.getClass().getName()+":reinit:initialsing server connection thread times:",e);
 			// don't throw the error - failing to get this property is not 'vital' to IO:I.
 		}
+	// re-initialise the ramp timing model, the learnt coefficients are re-loaded from the model file
+		rampTimingModel.init();
+	// re-classify the GET_FITS keywords, discarding any cached values
+		fitsHeaderSourceCache.configure();
+	// resize the shared thread pools
+		executors.configure();
+	// start or stop the continuous event recording
+		configureEventRecording();
+	// re-configure the data processing stages, backlog limits, priority aging and calibration library
+		if(dataProcessingThread != null)
+		{
+			dataProcessingThread.configureStages();
+			dataProcessingThread.configureBacklog();
+			dataProcessingThread.configureScheduling();
+			dataProcessingThread.configureCalibration();
+		}
+	}
+
+	/**
+	 * Start or stop the continuous event recording, according to the "ioi.event.recording" config.
+	 * If the recording is already running to the same files, it carries on undisturbed. Failing to start
+	 * the recording is logged as an error, but is not 'vital' to IO:I.
+	 * @see #status
+	 * @see IOIConfig#getEventRecordingEnable
+	 * @see ngat.ioi.command.EventRecorder#getInstance
+	 * @see ngat.ioi.command.EventRecorder#start
+	 * @see ngat.ioi.command.EventRecorder#stop
+	 */
+	protected void configureEventRecording()
+	{
+		IOIConfig config = null;
+		EventRecorder eventRecorder = null;
+
+		config = status.getConfig();
+		eventRecorder = EventRecorder.getInstance();
+		try
+		{
+			if(config.getEventRecordingEnable())
+			{
+				eventRecorder.start(config.getEventRecordingDirectory(),config.getEventRecordingFileLengthMax(),
+						    config.getEventRecordingFileCount());
+			}
+			else
+				eventRecorder.stop();
+		}
+		catch(Exception e)
+		{
+			error(this.getClass().getName()+":configureEventRecording:Starting event recording failed:",e);
+			eventRecorder.stop();
+		}
 	}
 
 	/**
@@ -847,73 +1013,64 @@ public class IOI
 
 	/**
 	 * Method to setup a connection to the IDL socket server, and the temperature controller.
+	 * This calls the controllerStartup's execute method, which runs these phases, each with it's own timeout:
 	 * <ul>
-	 * <li>The property "ioi.idl.hostname" is retrieved.
-	 * <li>The property "ioi.idl.port_number" is retrieved.
+	 * <li>openIDLConnection is called to open the telnet connection to the IDL socket server.
+	 * <li>initializeSidecar is called to initialise the Sidecar ASIC.
+	 * <li>configureDetector is called to send SetDetector and SetGain.
+	 * <li>configureTemperatureController is called to open and configure the temperature controller,
+	 *     if it is enabled. This runs concurrently with the three IDL phases above.
+	 * <li>The sidecar temperature protection thread is started, once all the above have completed.
+	 * </ul>
+	 * @exception Exception Thrown if initialising the IDL Socket server fails, if the "Initialize" command
+	 *            to the IDL socket server fails or returns an error code, or a phase times out.
+	 * @exception TemperatureControllerNativeException Thrown if configuring the temperature controller fails.
+	 * @see #controllerStartup
+	 * @see #openIDLConnection
+	 * @see #initializeSidecar
+	 * @see #configureDetector
+	 * @see #configureTemperatureController
+	 * @see #startSidecarTemperatureProteectionThread
+	 * @see ControllerStartup#execute
+	 */
+	public void startupController() throws TemperatureControllerNativeException, Exception
+	{
+		controllerStartup.execute();
+	}
+
+	/**
+	 * Open the connection to the IDL socket server.
+	 * <ul>
+	 * <li>The property "ioi.idl.server.hostname" is retrieved.
+	 * <li>The property "ioi.idl.server.port_number" is retrieved.
 	 * <li>idlTelnetConnection is constructed, and it's hostname and port number is set using the above properties,
 	 *     and is thyen opened.
 	 * <li>The singleton instance of CommandReplyBroker is created/retrieved, and the telnet connection set to
 	 *     idlTelnetConnection.
-	 * <li>The property "ioi.idl.initialize.level" is retrieved.
-	 * <li>An instance of InitializeCommand is created, and the level set to the property retrieved above.
-	 * <li>The InitializeCommand's sendCommand method is called to invoke the Initialize command, and retrieve
-	 *     and parse the reply (via the CommandReplyBroker instance).
-	 * <li>We retrieve SetDetector parameter data from the "ioi.idl.set_detector.mux_type" and 
-	 *     "ioi.idl.set_detector.num_outputs" properties.
-	 * <li>We create and set the command parameters of an instance of SetDetectorCommand, using the properties
-	 *     retrieved above.
-	 * <li>We send the SetDetector command to the IDL Socket Server, retrieve and check the reply 
-	 *     (via the CommandReplyBroker instance).
-	 * <li>We retrieve SetGain parameter data from the "ioi.idl.set_gain.gain" property.
-	 * <li>We create and set the command parameters of an instance of SetGainCommand, using the properties
-	 *     retrieved above.
-	 * <li>We send the SetGain command to the IDL Socket Server, retrieve and check the reply 
-	 *     (via the CommandReplyBroker instance).
-	 * <li>If the temperature controller is enabled, the socket device is opened, 
-	 *     the target temperature is set, the heater range is configured, and the display brightness set.
 	 * </ul>
-	 * @exception Exception Thrown if initialising the IDL Socket server fails, if the "Initialize" command
-	 *            to the IDL socket server fails or returns an error code.
-	 * @see #MAX_LOOP_COUNT
+	 * @exception Exception Thrown if opening the connection fails.
 	 * @see #idlTelnetConnection
-	 * @see #tempControl
-	 * @see #status
-	 * @see #startSidecarTemperatureProteectionThread
-	 * @see IOIStatus#getProperty
-	 * @see IOIStatus#getPropertyBoolean
-	 * @see IOIStatus#getPropertyInteger
-	 * @see ngat.ioi.command.InitializeCommand
-	 * @see ngat.supircam.temperaturecontroller.TemperatureController#setReadRetryCount
-	 * @see ngat.supircam.temperaturecontroller.TemperatureController#setReadPause
-	 * @see ngat.supircam.temperaturecontroller.TemperatureController#socketOpen
-	 * @see ngat.supircam.temperaturecontroller.TemperatureController#temperatureSet
-	 * @see ngat.supircam.temperaturecontroller.TemperatureController#heaterRangeSet
-	 * @see ngat.supircam.temperaturecontroller.TemperatureController#analogueOutputLoop
-	 * @see ngat.supircam.temperaturecontroller.TemperatureController#displayBrightnessSet
-	 * @see ngat.supircam.temperaturecontroller.TemperatureController#heaterRangeFromString
-	 * @see ngat.supircam.temperaturecontroller.TemperatureController#displayBrightnessFromString
+	 * @see #detectorStateMirror
 	 */
-	public void startupController() throws TemperatureControllerNativeException, Exception
+	protected void openIDLConnection() throws Exception
 	{
-		InitializeCommand initializeCommand = null;
-		SetDetectorCommand setDetectorCommand = null;
-		SetGainCommand setGainCommand = null;
 		CommandReplyBroker replyBroker = null;
 		String idlHostname = null;
 		int idlPortNumber = 0;
-		int initializeLevel = 2;
-		String muxTypeString = null;
-		int muxType,nOutputs,gain;
-		boolean tempControlEnable;
-		String tempControlDeviceType = null;
-		String tempControlSocketAddress = null;
-		double tempControlTargetTemperature[] = new double[MAX_LOOP_COUNT];
-		int tempControlLoop[] = new int[MAX_LOOP_COUNT];
-		double tempControlRampRate[] = new double[MAX_LOOP_COUNT];
-		boolean tempControlRampOn[] = new boolean[MAX_LOOP_COUNT];
-		int tempControlSocketPort=0,tempControlHeaterRange,tempControlBrightness;
-		int tempControlLoopCount,tempControlReadRetryCount,tempControlReadPause;
 
+		// close any connection left over from a previous (failed) startup
+		if(idlTelnetConnection != null)
+		{
+			try
+			{
+				idlTelnetConnection.close();
+			}
+			catch(Exception e)
+			{
+				log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				    ":openIDLConnection:Closing previous connection failed:"+e);
+			}
+		}
 		// get the relevant configuration data from the ioi configuration file.
 		try
 		{
@@ -926,20 +1083,44 @@ public class IOI
 			// attach telnet connection to CommandReplyBroker singleton instance
 			replyBroker = CommandReplyBroker.getInstance();
 			replyBroker.setTelnetConnection(idlTelnetConnection);
+			// we don't know what state the IDL Socket Server is in on a new connection
+			detectorStateMirror.invalidate();
 		}
 		catch(Exception e)
 		{
-			error(this.getClass().getName()+":startupController:"+
+			error(this.getClass().getName()+":openIDLConnection:"+
 			      "IDL Telnet connection initialisation failed:",e);
 			throw e;
 		}
+	}
+
+	/**
+	 * Initialise the Sidecar ASIC.
+	 * <ul>
+	 * <li>The property "ioi.idl.initialize.level" is retrieved.
+	 * <li>An instance of InitializeCommand is created, and the level set to the property retrieved above.
+	 * <li>The InitializeCommand's sendCommand method is called to invoke the Initialize command, and retrieve
+	 *     and parse the reply (via the CommandReplyBroker instance).
+	 * <li>If the Initialize fails with error code 1 (the HAL layer has not been started), an Initialize3
+	 *     is sent instead.
+	 * </ul>
+	 * @exception Exception Thrown if the "Initialize" command to the IDL socket server fails or returns an
+	 *            error code.
+	 * @see #detectorStateMirror
+	 * @see ngat.ioi.command.InitializeCommand
+	 */
+	protected void initializeSidecar() throws Exception
+	{
+		InitializeCommand initializeCommand = null;
+		int initializeLevel = 2;
+
 		// initialise the sidecar and jade
 		try
 		{
 			// Initialize2
 			initializeLevel = status.getPropertyInteger("ioi.idl.initialize.level");
 			log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
-			    ":startupController:Initialising Sidecar with level "+initializeLevel+".");
+			    ":initializeSidecar:Initialising Sidecar with level "+initializeLevel+".");
 			initializeCommand = new InitializeCommand();
 			initializeCommand.setCommand(initializeLevel);
 			initializeCommand.sendCommand();
@@ -951,7 +1132,7 @@ public class IOI
 				{
 					// Initialize3
 					log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
-					    ":startupController:Initialize"+initializeLevel+
+					    ":initializeSidecar:Initialize"+initializeLevel+
 					    " failed, trying Initialze3 to start IDE/HAL server.");
 					initializeCommand = new InitializeCommand();
 					initializeCommand.setCommand(3);
@@ -960,75 +1141,228 @@ public class IOI
 				if(initializeCommand.getReplyErrorCode() != 0)
 				{
 					throw new Exception(this.getClass().getName()+
-							    ":startupController:Initialze failed:"+
+							    ":initializeSidecar:Initialze failed:"+
 							    initializeCommand.getReplyErrorCode()+":"+
 							    initializeCommand.getReplyErrorString());
 				}
 			}// end if first initialise2 failed
+			// Initialize resets the IDL Socket Server configuration
+			detectorStateMirror.invalidate();
 			log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
-			    ":startupController:Initialising Sidecar finished.");
+			    ":initializeSidecar:Initialising Sidecar finished.");
 		}
 		catch(Exception e)
 		{
-			error(this.getClass().getName()+":startupController:Initialze failed:",e);
+			detectorStateMirror.invalidate();
+			error(this.getClass().getName()+":initializeSidecar:Initialze failed:",e);
 			throw e;
 		}
+	}
+
+	/**
+	 * Configure the detector.
+	 * <ul>
+	 * <li>We retrieve SetDetector parameter data from the "ioi.idl.set_detector.mux_type" and 
+	 *     "ioi.idl.set_detector.num_outputs" properties.
+	 * <li>We create and set the command parameters of an instance of SetDetectorCommand, using the properties
+	 *     retrieved above.
+	 * <li>We send the SetDetector command to the IDL Socket Server (unless the detector state mirror says
+	 *     it is already set), retrieve and check the reply (via the CommandReplyBroker instance).
+	 * <li>We retrieve SetGain parameter data from the "ioi.idl.set_gain.gain" property.
+	 * <li>We create and set the command parameters of an instance of SetGainCommand, using the properties
+	 *     retrieved above.
+	 * <li>We send the SetGain command to the IDL Socket Server (unless the detector state mirror says
+	 *     it is already set), retrieve and check the reply (via the CommandReplyBroker instance).
+	 * </ul>
+	 * @exception Exception Thrown if SetDetector or SetGain fails.
+	 * @see #detectorStateMirror
+	 * @see ngat.ioi.command.SetDetectorCommand
+	 * @see ngat.ioi.command.SetGainCommand
+	 */
+	protected void configureDetector() throws Exception
+	{
+		SetDetectorCommand setDetectorCommand = null;
+		SetGainCommand setGainCommand = null;
+		String muxTypeString = null;
+		int muxType,nOutputs,gain;
+
 		// SetDetector
 		try
 		{
 			log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
-			    ":startupController:Set Detector.");
+			    ":configureDetector:Set Detector.");
 			// setdetector
 			setDetectorCommand = new SetDetectorCommand();
 			muxTypeString = status.getProperty("ioi.idl.set_detector.mux_type");
 			muxType = SetDetectorCommand.parseMuxType(muxTypeString);
 			nOutputs = status.getPropertyInteger("ioi.idl.set_detector.num_outputs");
 			setDetectorCommand.setCommand(muxType,nOutputs);
-			log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
-			    ":startupController:Sending SetDetector("+muxTypeString+","+nOutputs+").");
-			setDetectorCommand.sendCommand();
-			if(setDetectorCommand.getReplyErrorCode() != 0)
+			if(detectorStateMirror.isDetectorCurrent(muxType,nOutputs) == false)
 			{
-				throw new Exception(this.getClass().getName()+
-						    ":startupController:SetDetector("+muxTypeString+","+nOutputs+
-						    ") failed:"+setDetectorCommand.getReplyErrorCode()+":"+
-						    setDetectorCommand.getReplyErrorString());
+				log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
+				    ":configureDetector:Sending SetDetector("+muxTypeString+","+nOutputs+").");
+				setDetectorCommand.sendCommand();
+				if(setDetectorCommand.getReplyErrorCode() != 0)
+				{
+					throw new Exception(this.getClass().getName()+
+							    ":configureDetector:SetDetector("+muxTypeString+","+nOutputs+
+							    ") failed:"+setDetectorCommand.getReplyErrorCode()+":"+
+							    setDetectorCommand.getReplyErrorString());
+				}
+				detectorStateMirror.recordDetector(muxType,nOutputs);
 			}
 			log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
-			    ":startupController:Set Detector finished.");
+			    ":configureDetector:Set Detector finished.");
 		}
 		catch(Exception e)
 		{
-			error(this.getClass().getName()+":startupController:SetDetector failed:",e);
+			error(this.getClass().getName()+":configureDetector:SetDetector failed:",e);
+			detectorStateMirror.invalidate();
 			throw e;
 		}
 		// SetGain
 		try
 		{
 			log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
-			    ":startupController:Set Gain.");
+			    ":configureDetector:Set Gain.");
 			// setgain
 			setGainCommand = new SetGainCommand();
 			gain = status.getPropertyInteger("ioi.idl.set_gain.gain");
 			setGainCommand.setCommand(gain);
-			log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
-			    ":startupController:Sending SetGain("+gain+").");
-			setGainCommand.sendCommand();
-			if(setGainCommand.getReplyErrorCode() != 0)
+			if(detectorStateMirror.isGainCurrent(gain) == false)
 			{
-				throw new Exception(this.getClass().getName()+
-						    ":startupController:SetGain("+gain+
-						    ") failed:"+setGainCommand.getReplyErrorCode()+":"+
-						    setGainCommand.getReplyErrorString());
+				log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
+				    ":configureDetector:Sending SetGain("+gain+").");
+				setGainCommand.sendCommand();
+				if(setGainCommand.getReplyErrorCode() != 0)
+				{
+					throw new Exception(this.getClass().getName()+
+							    ":configureDetector:SetGain("+gain+
+							    ") failed:"+setGainCommand.getReplyErrorCode()+":"+
+							    setGainCommand.getReplyErrorString());
+				}
+				detectorStateMirror.recordGain(gain);
 			}
 			log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
-			    ":startupController:Set Gain finished.");
+			    ":configureDetector:Set Gain finished.");
 		}
 		catch(Exception e)
 		{
-			error(this.getClass().getName()+":startupController:SetGain failed:",e);
+			error(this.getClass().getName()+":configureDetector:SetGain failed:",e);
+			detectorStateMirror.invalidate();
 			throw e;
 		}
+	}
+
+	/**
+	 * Put the detector into the specified readout window.
+	 * <ul>
+	 * <li>If window is null, a SetWindowMode(FULL_FRAME) is sent.
+	 * <li>Otherwise a SetWinParams with the window coordinates is sent, followed by a SetWindowMode(WINDOW).
+	 * </ul>
+	 * Each command is only sent if the detector state mirror says it is not already current, so this is cheap
+	 * to call before every exposure (the guided acquisition changes the window mode and parameters).
+	 * @param window An array of 4 integers (xStart, xStop, yStart, yStop: zero based detector pixels,
+	 *        inclusive), or null for a full frame readout.
+	 * @exception Exception Thrown if SetWinParams or SetWindowMode fails.
+	 * @see #detectorStateMirror
+	 * @see IOIStatus#getDetectorWindow
+	 * @see ngat.ioi.command.SetWinParamsCommand
+	 * @see ngat.ioi.command.SetWindowModeCommand
+	 */
+	public void applyDetectorWindow(int window[]) throws Exception
+	{
+		SetWinParamsCommand setWinParamsCommand = null;
+		SetWindowModeCommand setWindowModeCommand = null;
+		int windowMode;
+
+		try
+		{
+			if(window != null)
+			{
+				if(detectorStateMirror.isWinParamsCurrent(window[0],window[1],window[2],window[3]) == false)
+				{
+					log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
+					    ":applyDetectorWindow:Sending SetWinParams("+window[0]+","+window[1]+","+
+					    window[2]+","+window[3]+").");
+					setWinParamsCommand = new SetWinParamsCommand();
+					setWinParamsCommand.setCommand(window[0],window[1],window[2],window[3]);
+					setWinParamsCommand.sendCommand();
+					if(setWinParamsCommand.getReplyErrorCode() != 0)
+					{
+						throw new Exception(this.getClass().getName()+
+								    ":applyDetectorWindow:SetWinParams failed:"+
+								    setWinParamsCommand.getReplyErrorCode()+":"+
+								    setWinParamsCommand.getReplyErrorString());
+					}
+					detectorStateMirror.recordWinParams(window[0],window[1],window[2],window[3]);
+				}
+				windowMode = SetWindowModeCommand.MODE_WINDOW;
+			}
+			else
+				windowMode = SetWindowModeCommand.MODE_FULL_FRAME;
+			if(detectorStateMirror.isWindowModeCurrent(windowMode) == false)
+			{
+				log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
+				    ":applyDetectorWindow:Sending SetWindowMode("+windowMode+").");
+				setWindowModeCommand = new SetWindowModeCommand();
+				setWindowModeCommand.setCommand(windowMode);
+				setWindowModeCommand.sendCommand();
+				if(setWindowModeCommand.getReplyErrorCode() != 0)
+				{
+					throw new Exception(this.getClass().getName()+
+							    ":applyDetectorWindow:SetWindowMode("+windowMode+") failed:"+
+							    setWindowModeCommand.getReplyErrorCode()+":"+
+							    setWindowModeCommand.getReplyErrorString());
+				}
+				detectorStateMirror.recordWindowMode(windowMode);
+			}
+		}
+		catch(Exception e)
+		{
+			error(this.getClass().getName()+":applyDetectorWindow:Failed:",e);
+			detectorStateMirror.invalidate();
+			throw e;
+		}
+	}
+
+	/**
+	 * Configure the temperature controller.
+	 * <ul>
+	 * <li>The temperature controller configuration is retrieved from the "ioi.temp_control.config.*" properties.
+	 * <li>If the temperature controller is enabled, and the socket device is not already open, it is opened.
+	 * <li>If the device is a LAKESHORE_331, the target temperature and ramp rate of each loop is set,
+	 *     the heater range is configured, and the display brightness set.
+	 * </ul>
+	 * This method is called from startupController, and again on a differential REDATUM if the
+	 * temperature controller configuration has changed.
+	 * @exception Exception Thrown if retrieving the configuration fails.
+	 * @exception TemperatureControllerNativeException Thrown if talking to the temperature controller fails.
+	 * @see #MAX_LOOP_COUNT
+	 * @see #tempControl
+	 * @see #tempControlSocketOpen
+	 * @see ngat.supircam.temperaturecontroller.TemperatureController#setReadRetryCount
+	 * @see ngat.supircam.temperaturecontroller.TemperatureController#setReadPause
+	 * @see ngat.supircam.temperaturecontroller.TemperatureController#socketOpen
+	 * @see ngat.supircam.temperaturecontroller.TemperatureController#temperatureSet
+	 * @see ngat.supircam.temperaturecontroller.TemperatureController#heaterRangeSet
+	 * @see ngat.supircam.temperaturecontroller.TemperatureController#analogueOutputLoop
+	 * @see ngat.supircam.temperaturecontroller.TemperatureController#displayBrightnessSet
+	 * @see ngat.supircam.temperaturecontroller.TemperatureController#heaterRangeFromString
+	 * @see ngat.supircam.temperaturecontroller.TemperatureController#displayBrightnessFromString
+	 */
+	protected void configureTemperatureController() throws TemperatureControllerNativeException, Exception
+	{
+		boolean tempControlEnable;
+		String tempControlDeviceType = null;
+		String tempControlSocketAddress = null;
+		double tempControlTargetTemperature[] = new double[MAX_LOOP_COUNT];
+		int tempControlLoop[] = new int[MAX_LOOP_COUNT];
+		double tempControlRampRate[] = new double[MAX_LOOP_COUNT];
+		boolean tempControlRampOn[] = new boolean[MAX_LOOP_COUNT];
+		int tempControlSocketPort=0,tempControlHeaterRange,tempControlBrightness;
+		int tempControlLoopCount,tempControlReadRetryCount,tempControlReadPause;
+
 		// temperature controller
 		try
 		{
@@ -1045,7 +1379,7 @@ public class IOI
 			if(tempControlLoopCount > MAX_LOOP_COUNT)
 			{
 				throw new Exception(this.getClass().getName()+
-						    ":startupController:retrieved temperature control loop count "+
+						    ":configureTemperatureController:retrieved temperature control loop count "+
 						    tempControlLoopCount+" was too large:"+MAX_LOOP_COUNT);
 			}
 			for(int i = 0; i < tempControlLoopCount; i++)
@@ -1064,9 +1398,13 @@ public class IOI
 			// initialise and configure temperature controller, if enabled.
 			if(tempControlEnable)
 			{
-				tempControl.setReadRetryCount(tempControlReadRetryCount);
-				tempControl.setReadPause(tempControlReadPause);
-				tempControl.socketOpen(tempControlSocketAddress,tempControlSocketPort);
+				if(tempControlSocketOpen == false)
+				{
+					tempControl.setReadRetryCount(tempControlReadRetryCount);
+					tempControl.setReadPause(tempControlReadPause);
+					tempControl.socketOpen(tempControlSocketAddress,tempControlSocketPort);
+					tempControlSocketOpen = true;
+				}
 				if(tempControlDeviceType.equals("LAKESHORE_331"))
 				{
 					for(int i = 0; i < tempControlLoopCount; i++)
@@ -1087,36 +1425,143 @@ public class IOI
 				else
 				{
 					log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
-					    ":startupController:Temperature Controller not enabled.");
+					    ":configureTemperatureController:Temperature Controller not enabled.");
 				}// end if temperature control is enabled
 			}
 			else
 			{
 				log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
-					":startupController:Temperature Controller is an ARDUINO:"+
+					":configureTemperatureController:Temperature Controller is an ARDUINO:"+
 				    "Setpoint/Ramp/Display brightness not set.");
 			}// end if on temperature control device type
 		}
 		catch (TemperatureControllerNativeException e)
 		{
-			error(this.getClass().getName()+":startupController:Temperature Controller:",e);
+			error(this.getClass().getName()+":configureTemperatureController:Temperature Controller:",e);
 			throw e;
 		}
-		// sidecar temperature protection thread.
-		// we can only do this after the sidecar has been initialised, and the temperature controller setup.
-		startSidecarTemperatureProteectionThread();
+	}
+
+	/**
+	 * Apply a reloaded configuration to the controller, re-configuring only the parts whose properties
+	 * have changed. This is called on a differential REDATUM level reboot, after reInit has reloaded the
+	 * property files.
+	 * <ul>
+	 * <li>If the IDL socket server connection ("ioi.idl.server.*") or Sidecar initialisation level
+	 *     ("ioi.idl.initialize.*") has changed, a full shutdownController / startupController is done.
+	 * <li>If "ioi.idl.state_mirror.enable" has changed, the detector state mirror is re-enabled/disabled.
+	 * <li>If the SetDetector or SetGain properties have changed, configureDetector is called. The detector
+	 *     state mirror means only the changed setting is sent.
+	 * <li>If any temperature controller property ("ioi.temp_control.*") or the sidecar temperature protection
+	 *     configuration has changed, the sidecar temperature protection thread is stopped, as it uses the
+	 *     temperature controller connection.
+	 * <li>If the temperature controller connection ("ioi.temp_control.config.enable",
+	 *     "ioi.temp_control.config.device.*" or "ioi.temp_control.config.read.*") has changed, the socket
+	 *     is closed (configureTemperatureController re-opens it).
+	 * <li>If any temperature controller property has changed, configureTemperatureController is called to
+	 *     re-apply the setpoints, ramp rates, heater range and display brightness.
+	 * <li>If the sidecar temperature protection thread was stopped, it is restarted.
+	 * <li>If any IDL link supervisor property ("ioi.idl.link.*") has changed, the supervisor is restarted.
+	 * </ul>
+	 * Log levels, FITS filename and acknowledge time settings are re-applied by reInit.
+	 * @param difference The properties that changed in the reload.
+	 * @exception Exception Thrown if re-configuring the controller fails.
+	 * @exception TemperatureControllerNativeException Thrown if talking to the temperature controller fails.
+	 * @see #reInit
+	 * @see #shutdownController
+	 * @see #startupController
+	 * @see #configureDetector
+	 * @see #configureTemperatureController
+	 * @see #startSidecarTemperatureProteectionThread
+	 * @see #startIDLLinkSupervisor
+	 * @see ConfigurationDifference
+	 */
+	public void redatumController(ConfigurationDifference difference) throws TemperatureControllerNativeException,
+		Exception
+	{
+		boolean tempControlConnectionChanged,protectionThreadChanged;
+
+		log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":redatumController:"+difference);
+		if(difference.hasChanged("ioi.idl.server.")||difference.hasChanged("ioi.idl.initialize."))
+		{
+			log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
+			    ":redatumController:IDL connection configuration changed:Restarting controller.");
+			shutdownController();
+			startupController();
+			return;
+		}
+		if(difference.hasChanged("ioi.idl.state_mirror.enable"))
+			detectorStateMirror.setEnable(status.getPropertyBoolean("ioi.idl.state_mirror.enable"));
+		if(difference.hasChanged("ioi.idl.set_detector.")||difference.hasChanged("ioi.idl.set_gain."))
+		{
+			log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
+			    ":redatumController:Detector configuration changed:Re-configuring detector.");
+			configureDetector();
+		}
+		tempControlConnectionChanged = difference.hasChanged("ioi.temp_control.config.enable")||
+			difference.hasChanged("ioi.temp_control.config.device.")||
+			difference.hasChanged("ioi.temp_control.config.read.");
+		// the protection thread talks to the temperature controller, so stop it whilst we do
+		protectionThreadChanged = difference.hasChanged("ioi.temp_control.")||
+			difference.hasChanged("ioi.sidecar.temperature.protection.");
+		if(protectionThreadChanged)
+		{
+			log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
+			    ":redatumController:Stopping sidecar temperature protection thread.");
+			sidecarTemperatureProtectionThread.stopThread();
+		}
+		if(tempControlConnectionChanged && tempControlSocketOpen)
+		{
+			log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
+			    ":redatumController:Temperature controller connection changed:Closing socket.");
+			tempControl.socketClose();
+			tempControlSocketOpen = false;
+		}
+		if(difference.hasChanged("ioi.temp_control.config."))
+		{
+			log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
+			    ":redatumController:Temperature controller configuration changed:Re-configuring.");
+			configureTemperatureController();
+		}
+		if(protectionThreadChanged)
+			startSidecarTemperatureProteectionThread();
+		if(difference.hasChanged("ioi.idl.link."))
+		{
+			log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
+			    ":redatumController:IDL link supervisor configuration changed:Restarting supervisor.");
+			startIDLLinkSupervisor();
+		}
+	}
+
+	/**
+	 * Start the IDL link supervisor thread. Any supervisor already running is stopped first.
+	 * @exception Exception Thrown if the init method fails (retrieving config fails).
+	 * @see #idlLinkSupervisor
+	 */
+	protected void startIDLLinkSupervisor() throws Exception
+	{
+		if(idlLinkSupervisor != null)
+			idlLinkSupervisor.stopThread();
+		idlLinkSupervisor = new IDLLinkSupervisor();
+		idlLinkSupervisor.setIOI(this);
+		idlLinkSupervisor.init();
+		idlLinkSupervisor.start();
 	}
 
 	/**
 	 * Method to shutdown the low level software using the IDL socket server.
-	 * We stop the sidecar temperature protection thread.
+	 * We stop the IDL link supervisor and the sidecar temperature protection thread.
 	 * The PowerDownASIC command is sent to the IDL socket server.
 	 * The connection to the IDL socket server is then closed.
-	 * If enabled, the temperature controller socket is also closed.
+	 * If it was opened, the temperature controller socket is also closed. This uses tempControlSocketOpen
+	 * rather than the current "ioi.temp_control.config.enable" value, which may have changed since the
+	 * socket was opened.
 	 * @see #idlTelnetConnection
 	 * @see #tempControl
+	 * @see #tempControlSocketOpen
 	 * @see #status
 	 * @see #sidecarTemperatureProtectionThread
+	 * @see #idlLinkSupervisor
 	 * @see ngat.ioi.command.PowerDownASICCommand
 	 * @exception Exception Thrown if the IDL server cannot be contacted, the PowerDownASIC command fails,
 	 *            or the PowerDownASIC command returns an error.
@@ -1124,10 +1569,16 @@ public class IOI
 	public void shutdownController() throws Exception
 	{
 		PowerDownASICCommand powerDownASICCommand = null;
-		boolean tempControlEnable;
 
-		// stop the temperature protection thread
-		sidecarTemperatureProtectionThread.stopThread();
+		// stop the link supervisor, otherwise it re-opens the connection we are about to close
+		if(idlLinkSupervisor != null)
+		{
+			idlLinkSupervisor.stopThread();
+			idlLinkSupervisor = null;
+		}
+		// stop the temperature protection thread, if startup got far enough to start it
+		if(sidecarTemperatureProtectionThread != null)
+			sidecarTemperatureProtectionThread.stopThread();
 		// power down the ASIC
 		powerDownASICCommand = new PowerDownASICCommand();
 		powerDownASICCommand.sendCommand();
@@ -1140,10 +1591,10 @@ public class IOI
 		}
                // close the connection to the socket server
 		idlTelnetConnection.close();
-		tempControlEnable = status.getPropertyBoolean("ioi.temp_control.config.enable");
-		if(tempControlEnable)
+		if(tempControlSocketOpen)
 		{
 			tempControl.socketClose();
+			tempControlSocketOpen = false;
 		}
 	}
 
@@ -1161,18 +1612,21 @@ public class IOI
 	}
 
 	/**
-	 * Start the data processing thread.
+	 * Start the data processing thread. Any items left in the data processing journal are recovered 
+	 * before the thread is started.
 	 * @exception Exception Thrown if the init method fails (rioi not set).
 	 * @see #dataProcessingThread
 	 * @see DataProcessingThread
 	 * @see DataProcessingThread#setIOI
 	 * @see DataProcessingThread#init
+	 * @see DataProcessingThread#recoverJournal
 	 */
 	protected void startDataProcessingThread() throws Exception
 	{
 		dataProcessingThread = new DataProcessingThread();
 		dataProcessingThread.setIOI(this);
 		dataProcessingThread.init();
+		dataProcessingThread.recoverJournal();
 		dataProcessingThread.start();
 	}
 
@@ -1229,8 +1683,11 @@ public class IOI
 
 	/**
 	 * Routine to be called at the end of execution of IOI to close down communications.
-	 * Currently calls shutdownController, and then closes IOITCPServer and TitServer.
+	 * Currently calls shutdownController, and then closes IOITCPServer and TitServer, shuts down the
+	 * shared thread pools, and stops the event recording.
 	 * @see IOITCPServer#close
+	 * @see IOIExecutors#shutdown
+	 * @see ngat.ioi.command.EventRecorder#stop
 	 * @see #shutdownController
 	 * @see #server
 	 * @see TitServer#close
@@ -1248,6 +1705,8 @@ public class IOI
 		}
 		server.close();
 		titServer.close();
+		executors.shutdown();
+		EventRecorder.getInstance().stop();
 	}
 
 	/**
@@ -1333,6 +1792,94 @@ public class IOI
 		return fitsFlip;
 	}
 
+	/**
+	 * Get a reference to the IDL Socket Server state mirror.
+	 * @return The mirror instance.
+	 * @see #detectorStateMirror
+	 */
+	public DetectorStateMirror getDetectorStateMirror()
+	{
+		return detectorStateMirror;
+	}
+
+	/**
+	 * Get a reference to the controller startup, which holds the readiness of the controller.
+	 * @return The controller startup instance.
+	 * @see #controllerStartup
+	 */
+	public ControllerStartup getControllerStartup()
+	{
+		return controllerStartup;
+	}
+
+	/**
+	 * Get a reference to the IDL link supervisor.
+	 * @return The supervisor, or null if the controller startup has not got far enough to start it.
+	 * @see #idlLinkSupervisor
+	 */
+	public IDLLinkSupervisor getIDLLinkSupervisor()
+	{
+		return idlLinkSupervisor;
+	}
+
+	/**
+	 * Get a reference to the ramp timing model.
+	 * @return The ramp timing model.
+	 * @see #rampTimingModel
+	 */
+	public RampTimingModel getRampTimingModel()
+	{
+		return rampTimingModel;
+	}
+
+	/**
+	 * Get a reference to the GET_FITS keyword cache.
+	 * @return The cache.
+	 * @see #fitsHeaderSourceCache
+	 */
+	public FitsHeaderSourceCache getFitsHeaderSourceCache()
+	{
+		return fitsHeaderSourceCache;
+	}
+
+	/**
+	 * Get a reference to the trace ring buffer.
+	 * @return The trace recorder.
+	 * @see #traceRecorder
+	 */
+	public TraceRecorder getTraceRecorder()
+	{
+		return traceRecorder;
+	}
+
+	/**
+	 * Create a trace context for a command received from the ISS, if tracing is enabled 
+	 * ("ioi.trace.enable"). The trace id is the command's id, followed by a sequence number to
+	 * distinguish commands with the same id.
+	 * @param command The command.
+	 * @return A new trace context, for the command as a whole, or null if tracing is not enabled.
+	 * @see #traceRecorder
+	 * @see #traceCount
+	 * @see IOIConfig#getTraceEnable
+	 */
+	public synchronized TraceContext createTraceContext(ISS_TO_INST command)
+	{
+		if(status.getConfig().getTraceEnable() == false)
+			return null;
+		traceCount++;
+		return new TraceContext(command.getId()+"."+traceCount,-1,traceRecorder);
+	}
+
+	/**
+	 * Get a reference to the shared thread pools.
+	 * @return The thread pools.
+	 * @see #executors
+	 */
+	public IOIExecutors getExecutors()
+	{
+		return executors;
+	}
+
 	/**
 	 * Get a reference to the data processing thread.
 	 * @return The data processing thread instance.
@@ -1428,6 +1975,8 @@ public class IOI
 	 * If checkAbort is set and the commandThread is aborted this stops waiting for the 
 	 * done message to be returned and an error is returned. 
 	 * If waitForDone is false, a fake DONE is created and returned.
+	 * If the calling thread has a trace context, the call is recorded as a span named "ISS:" followed
+	 * by the command's class name. The call is also recorded as an event, if event recording is on.
 	 * @param command The command to send to the ISS.
 	 * @param commandThread The thread the passed in command (and this method) is running on.
 	 * @param checkAbort A boolean, set to true if we want to check for commandThread aborting.
@@ -1441,16 +1990,22 @@ public class IOI
 	 * @see #issPortNumber
 	 * @see IOITCPClientConnectionThread
 	 * @see IOITCPServerConnectionThread#getAbortProcessCommand
+	 * @see #cancelClientConnectionThread
+	 * @see ngat.ioi.command.EventRecorder#recordSpan
 	 */
 	public INST_TO_ISS_DONE sendISSCommand(INST_TO_ISS command,IOITCPServerConnectionThread commandThread,
 					       boolean checkAbort,boolean waitForDone)
 	{
 		IOITCPClientConnectionThread thread = null;
 		INST_TO_ISS_DONE done = null;
+		TraceContext traceContext = null;
+		long startNanoTime;
 		boolean finished = false;
 
 		log(Logging.VERBOSITY_VERY_TERSE,
 			this.getClass().getName()+":sendISSCommand:"+command.getClass().getName());
+		traceContext = TraceContext.getCurrentContext();
+		startNanoTime = System.nanoTime();
 		thread = new IOITCPClientConnectionThread(issAddress,issPortNumber,command,commandThread);
 		thread.setIOI(this);
 		thread.start();
@@ -1474,7 +2029,10 @@ public class IOI
 				{
 					// If the commandThread has been aborted, stop processing this thread
 					if(commandThread.getAbortProcessCommand())
+					{
+						cancelClientConnectionThread(thread,command);
 						finished = true;
+					}
 				}
 			}// end while
 			done = (INST_TO_ISS_DONE)thread.getDone();
@@ -1514,6 +2072,9 @@ public class IOI
 					    command.getClass().getName());
 			done.setSuccessful(true);
 		}
+		EventRecorder.getInstance().recordSpan(traceContext,EventRecorder.EVENT_TYPE_ISS,
+						       command.getClass().getSimpleName(),Integer.toString(done.getErrorNum()),
+						       startNanoTime);
 		log(Logging.VERBOSITY_TERSE,
 			"Done:"+done.getClass().getName()+":successful:"+done.getSuccessful()+
 			":error number:"+done.getErrorNum()+":error string:"+done.getErrorString());
@@ -1542,6 +2103,9 @@ public class IOI
 	 * waits until the command's done message has been returned from the BSS and returns this.
 	 * If checkAbort is set and the commandThread is aborted this also stops waiting for the 
 	 * done message to be returned.
+	 * If the BSS is in use and the calling thread has a trace context, the call is recorded as a span 
+	 * named "BSS:" followed by the command's class name. If the BSS is in use, the call is also recorded 
+	 * as an event, if event recording is on.
 	 * @param command The command to send to the BSS.
 	 * @param commandThread The thread the passed in command (and this method) is running on.
 	 * @param checkAbort A boolean, set to true if we want to check for commandThread aborting.
@@ -1554,18 +2118,24 @@ public class IOI
 	 * @see #bssPortNumber
 	 * @see IOITCPClientConnectionThread
 	 * @see IOITCPServerConnectionThread#getAbortProcessCommand
+	 * @see #cancelClientConnectionThread
+	 * @see ngat.ioi.command.EventRecorder#recordSpan
 	 */
 	public INST_TO_BSS_DONE sendBSSCommand(INST_TO_BSS command,IOITCPServerConnectionThread commandThread,
 					       boolean checkAbort)
 	{
 		IOITCPClientConnectionThread thread = null;
 		INST_TO_BSS_DONE done = null;
+		TraceContext traceContext = null;
+		long startNanoTime;
 		boolean finished = false;
 
 		log(Logging.VERBOSITY_VERY_TERSE,
 		    this.getClass().getName()+":sendBSSCommand:"+command.getClass().getName());
 		if(bssUse)
 		{
+			traceContext = TraceContext.getCurrentContext();
+			startNanoTime = System.nanoTime();
 			thread = new IOITCPClientConnectionThread(bssAddress,bssPortNumber,command,commandThread);
 			thread.setIOI(this);
 			thread.start();
@@ -1587,7 +2157,10 @@ public class IOI
 				{
 					// If the commandThread has been aborted, stop processing this thread
 					if(commandThread.getAbortProcessCommand())
+					{
+						cancelClientConnectionThread(thread,command);
 						finished = true;
+					}
 				}
 			}// end while
 			done = (INST_TO_BSS_DONE)thread.getDone();
@@ -1616,6 +2189,9 @@ public class IOI
 					done.setSuccessful(false);
 				}
 			}// end if done == null
+			EventRecorder.getInstance().recordSpan(traceContext,EventRecorder.EVENT_TYPE_BSS,
+							       command.getClass().getSimpleName(),
+							       Integer.toString(done.getErrorNum()),startNanoTime);
 		}
 		else // fake BSS DONE
 		{
@@ -1646,6 +2222,7 @@ public class IOI
 	 * @see #dprtPortNumber
 	 * @see IOITCPClientConnectionThread
 	 * @see IOITCPServerConnectionThread#getAbortProcessCommand
+	 * @see #cancelClientConnectionThread
 	 */
 	public INST_TO_DP_DONE sendDpRtCommand(INST_TO_DP command,IOITCPServerConnectionThread commandThread)
 	{
@@ -1673,7 +2250,10 @@ public class IOI
 			finished = (thread.isAlive() == false);
 		// If the commandThread has been aborted, stop processing this thread
 			if(commandThread.getAbortProcessCommand())
+			{
+				cancelClientConnectionThread(thread,command);
 				finished = true;
+			}
 		}
 		done = (INST_TO_DP_DONE)thread.getDone();
 		if(done == null)
@@ -1707,6 +2287,25 @@ public class IOI
 		return done;
 	}
 
+	/**
+	 * Cancel a client connection thread sending a sub-command to the ISS, BSS or DpRt, because the
+	 * command that sent it has been aborted. If the thread is still running it is interrupted, so it stops
+	 * waiting for the sub-command's reply rather than running on after the aborted command has returned.
+	 * @param thread The client connection thread sending the sub-command.
+	 * @param command The sub-command being sent, used for logging.
+	 * @see IOITCPClientConnectionThread
+	 */
+	protected void cancelClientConnectionThread(IOITCPClientConnectionThread thread,
+						    ngat.message.base.COMMAND command)
+	{
+		if(thread.isAlive())
+		{
+			log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":cancelClientConnectionThread:"+
+			    command.getClass().getName()+":Interrupting client connection thread.");
+			thread.interrupt();
+		}
+	}
+
 	/**
 	 * Routine to write the string to the relevant logger. If the relevant logger has not been
 	 * created yet the error gets written to System.out.
@@ -1805,11 +2404,15 @@ public class IOI
 	 * <ul>
 	 * <li>Calls parseArguments.
 	 * <li>init.
-	 * <li>startupController.
+	 * <li>If "ioi.startup.background" is true, the controllerStartup is run in a separate thread, so commands
+	 *     that do not need the detector can be accepted whilst the controller is starting. A failure is reported
+	 *     through GET_STATUS. Otherwise startupController is called, and the IO:I exits if it fails.
 	 * <li>run.
 	 * </ul>
 	 * @see #init
 	 * @see #parseArguments
+	 * @see #startupController
+	 * @see #controllerStartup
 	 * @see #run
 	 */
 	public static void main(String[] args)
@@ -1826,14 +2429,22 @@ public class IOI
  			ioi.error("main:init failed:",e);
 			System.exit(1);
 		}
-		try
+		if(ioi.status.getPropertyBoolean("ioi.startup.background"))
 		{
-			ioi.startupController();
+			ioi.log(Logging.VERBOSITY_VERY_TERSE,"main:Starting controller in the background.");
+			new Thread(ioi.controllerStartup,"ControllerStartup").start();
 		}
-		catch(Exception e)
+		else
 		{
- 			ioi.error("main:startupController failed:",e);
-			System.exit(1);
+			try
+			{
+				ioi.startupController();
+			}
+			catch(Exception e)
+			{
+				ioi.error("main:startupController failed:",e);
+				System.exit(1);
+			}
 		}
 		ioi.run();
 	// We get here if the server thread has terminated. If it has been quit
@@ -0,0 +1,2167 @@
+// IOIConfig.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.io.*;
+import java.util.*;
+
+import ngat.ioi.command.SetFSModeCommand;
+
+/**
+ * This class is an immutable, typed snapshot of the configuration properties read on the exposure
+ * and data processing paths. An instance is built by IOIStatus each time the property files are loaded
+ * or reloaded. Every value is parsed and range checked once, in the constructor, and all the problems
+ * found are reported together in one IllegalArgumentException, so a bad configuration is rejected when it
+ * is loaded rather than part way through an exposure.
+ * All fields are final, so an instance can be handed to any thread without locking. Code that needs
+ * several values to be mutually consistent (e.g. the offset count and the offset list) should
+ * call IOIStatus.getConfig() once and read all the values from the same instance.
+ * Properties that are not in the snapshot (e.g. the FITS filename directory and instrument code) are still
+ * read with the IOIStatus getProperty methods.
+ * @see IOIStatus#getConfig
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class IOIConfig
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The prefix of the data processing priority properties, "ioi.data_processing.priority.&lt;class&gt;".
+	 */
+	public final static String DATA_PROCESSING_PRIORITY_PREFIX = "ioi.data_processing.priority.";
+	/**
+	 * The prefix of the FITS compression properties. "ioi.file.fits.compress.&lt;OBSTYPE&gt;" properties
+	 * enable compression per OBSTYPE, except for the keys in FITS_COMPRESS_SETTING_LIST.
+	 */
+	public final static String FITS_COMPRESS_PREFIX = "ioi.file.fits.compress.";
+	/**
+	 * The FITS compression property keys (after FITS_COMPRESS_PREFIX) that are settings, not OBSTYPEs.
+	 */
+	public final static String FITS_COMPRESS_SETTING_LIST[] = {"thread_count","tile_rows","delete_original"};
+	/**
+	 * The sampling mode CONFIG configures the detector in, one of SetFSModeCommand.MODE_UP_THE_RAMP or
+	 * SetFSModeCommand.MODE_FOWLER, parsed from "UP_THE_RAMP" or "FOWLER" ("ioi.config.fs_mode").
+	 */
+	protected final int fsMode;
+	/**
+	 * The number of resets at the start of a Fowler sampling ramp ("ioi.config.FOWLER.nreset").
+	 */
+	protected final int fowlerNReset;
+	/**
+	 * The number of reads at each end of a Fowler sampling ramp ("ioi.config.FOWLER.nread").
+	 */
+	protected final int fowlerNRead;
+	/**
+	 * The time taken by one reset in Fowler sampling mode, in milliseconds
+	 * ("ioi.config.FOWLER.reset_execution_time").
+	 */
+	protected final int fowlerResetExecutionTime;
+	/**
+	 * The time taken by one read in Fowler sampling mode, in milliseconds
+	 * ("ioi.config.FOWLER.read_execution_time").
+	 */
+	protected final int fowlerReadExecutionTime;
+	/**
+	 * The number of resets at the start of a read up the ramp ("ioi.config.UP_THE_RAMP.nreset").
+	 */
+	protected final int upTheRampNReset;
+	/**
+	 * The number of reads per group in a read up the ramp ("ioi.config.UP_THE_RAMP.nread").
+	 */
+	protected final int upTheRampNRead;
+	/**
+	 * The number of dropped frames per group in a read up the ramp ("ioi.config.UP_THE_RAMP.ndrop").
+	 */
+	protected final int upTheRampNDrop;
+	/**
+	 * The time taken by one group in a read up the ramp, in milliseconds
+	 * ("ioi.config.UP_THE_RAMP.group_execution_time").
+	 */
+	protected final int upTheRampGroupExecutionTime;
+	/**
+	 * The time taken by one reset in a read up the ramp, in milliseconds
+	 * ("ioi.config.UP_THE_RAMP.reset_execution_time").
+	 */
+	protected final int upTheRampResetExecutionTime;
+	/**
+	 * Whether to offset the telescope between MULTRUN frames ("ioi.multrun.offset.enable").
+	 */
+	protected final boolean multrunOffsetEnable;
+	/**
+	 * Whether to wait for the offset to complete before starting the exposure
+	 * ("ioi.multrun.offset.wait_for_complete").
+	 */
+	protected final boolean multrunOffsetWaitForComplete;
+	/**
+	 * How long to sleep after sending an offset when not waiting for it to complete, in milliseconds
+	 * ("ioi.multrun.offset.wait_sleep_time").
+	 */
+	protected final int multrunOffsetWaitSleepTime;
+	/**
+	 * The RA offsets in the MULTRUN offset pattern, in arcseconds ("ioi.multrun.offset.&lt;n&gt;.ra").
+	 * The length of the array is "ioi.multrun.offset.count". The array is never exposed outside the class.
+	 */
+	protected final float multrunRaOffsetList[];
+	/**
+	 * The Dec offsets in the MULTRUN offset pattern, in arcseconds ("ioi.multrun.offset.&lt;n&gt;.dec").
+	 * The length of the array is "ioi.multrun.offset.count". The array is never exposed outside the class.
+	 */
+	protected final float multrunDecOffsetList[];
+	/**
+	 * Whether MULTRUNs are acquired as guided ramps ("ioi.multrun.guide.enable").
+	 */
+	protected final boolean multrunGuideEnable;
+	/**
+	 * Whether MULTRUN waits for the data processing of it's ramps to finish before returning MULTRUN_DONE
+	 * ("ioi.multrun.done.wait_for_data_processing").
+	 */
+	protected final boolean multrunDoneWaitForDataProcessing;
+	/**
+	 * Whether to rename FITS images into the LT standard ("ioi.file.fits.rename").
+	 */
+	protected final boolean fitsRename;
+	/**
+	 * Whether to only rename enough of a read up the ramp to do a CDS
+	 * ("ioi.file.fits.rename.read_up_ramp_as_cds").
+	 */
+	protected final boolean fitsRenameReadUpRampAsCDS;
+	/**
+	 * Which reads of a read up the ramp are kept ("ioi.file.fits.read.subset.up_the_ramp"). If
+	 * fitsRenameReadUpRampAsCDS is true, this is "fowler:2" whatever the property says.
+	 */
+	protected final ReadSubsetPolicy fitsReadSubsetUpTheRamp;
+	/**
+	 * Which reads of a Fowler sampling ramp are kept ("ioi.file.fits.read.subset.fowler").
+	 */
+	protected final ReadSubsetPolicy fitsReadSubsetFowler;
+	/**
+	 * Whether to add ISS/BSS/instrument FITS headers ("ioi.file.fits.annotate").
+	 */
+	protected final boolean fitsAnnotate;
+	/**
+	 * Whether to flip the FITS image data ("ioi.file.fits.flip").
+	 */
+	protected final boolean fitsFlip;
+	/**
+	 * Whether to flip the FITS image data in X ("ioi.file.fits.flip.x").
+	 */
+	protected final boolean fitsFlipX;
+	/**
+	 * Whether to flip the FITS image data in Y ("ioi.file.fits.flip.y").
+	 */
+	protected final boolean fitsFlipY;
+	/**
+	 * Whether to reference pixel correct the FITS images ("ioi.file.fits.reference.enable").
+	 */
+	protected final boolean fitsReferenceEnable;
+	/**
+	 * The number of readout channels across the detector, at least 1 ("ioi.file.fits.reference.channel_count").
+	 */
+	protected final int fitsReferenceChannelCount;
+	/**
+	 * The width of the reference pixel border, at least 1 ("ioi.file.fits.reference.border").
+	 */
+	protected final int fitsReferenceBorder;
+	/**
+	 * Whether the odd and even columns of each channel are corrected separately
+	 * ("ioi.file.fits.reference.odd_even").
+	 */
+	protected final boolean fitsReferenceOddEven;
+	/**
+	 * Whether each row is corrected using the reference columns ("ioi.file.fits.reference.row_correction").
+	 */
+	protected final boolean fitsReferenceRowCorrection;
+	/**
+	 * The number of rows either side averaged by the row correction, at least 0
+	 * ("ioi.file.fits.reference.row_window").
+	 */
+	protected final int fitsReferenceRowWindow;
+	/**
+	 * The counts added back to the reference pixel corrected data ("ioi.file.fits.reference.pedestal").
+	 */
+	protected final double fitsReferencePedestal;
+	/**
+	 * Whether to create quick-look previews ("ioi.file.fits.preview.enable").
+	 */
+	protected final boolean fitsPreviewEnable;
+	/**
+	 * Whether the preview is made from a CDS ("ioi.file.fits.preview.source" is "CDS").
+	 */
+	protected final boolean fitsPreviewSourceCDS;
+	/**
+	 * Whether to write a PNG preview ("ioi.file.fits.preview.png").
+	 */
+	protected final boolean fitsPreviewPNG;
+	/**
+	 * The preview binning factor, at least 1 ("ioi.file.fits.preview.bin").
+	 */
+	protected final int fitsPreviewBin;
+	/**
+	 * Whether to compute frame statistics ("ioi.file.fits.statistics.enable").
+	 */
+	protected final boolean fitsStatisticsEnable;
+	/**
+	 * Whether the frame statistics are computed from a CDS ("ioi.file.fits.statistics.source" is "CDS").
+	 */
+	protected final boolean fitsStatisticsSourceCDS;
+	/**
+	 * The width of the border excluded from the frame statistics, at least 0
+	 * ("ioi.file.fits.statistics.border").
+	 */
+	protected final int fitsStatisticsBorder;
+	/**
+	 * The raw final read counts at or above which a pixel is saturated
+	 * ("ioi.file.fits.statistics.saturation_level").
+	 */
+	protected final double fitsStatisticsSaturationLevel;
+	/**
+	 * The number of sky sigma clipping iterations, at least 0
+	 * ("ioi.file.fits.statistics.sky.clip.iteration_count").
+	 */
+	protected final int fitsStatisticsClipIterationCount;
+	/**
+	 * The sky clipping threshold, in standard deviations ("ioi.file.fits.statistics.sky.clip.sigma").
+	 */
+	protected final double fitsStatisticsClipSigma;
+	/**
+	 * The radius of the box used to measure the brightest source, at least 1
+	 * ("ioi.file.fits.statistics.source.radius").
+	 */
+	protected final int fitsStatisticsSourceRadius;
+	/**
+	 * The source detection threshold, in sky standard deviations
+	 * ("ioi.file.fits.statistics.source.detection_sigma").
+	 */
+	protected final double fitsStatisticsDetectionSigma;
+	/**
+	 * The pixel scale, in arcseconds per pixel ("ioi.file.fits.statistics.pixel_scale").
+	 */
+	protected final double fitsStatisticsPixelScale;
+	/**
+	 * Whether to write the FITS DATASUM and CHECKSUM keywords ("ioi.file.fits.checksum.enable").
+	 */
+	protected final boolean fitsChecksumEnable;
+	/**
+	 * Whether to record the timeline of each command and exposure ("ioi.trace.enable").
+	 */
+	protected final boolean traceEnable;
+	/**
+	 * Whether to delete the uncompressed FITS image after compression
+	 * ("ioi.file.fits.compress.delete_original").
+	 */
+	protected final boolean fitsCompressDeleteOriginal;
+	/**
+	 * An unmodifiable map of OBSTYPE to whether the FITS images of that OBSTYPE are compressed,
+	 * from the "ioi.file.fits.compress.&lt;OBSTYPE&gt;" properties.
+	 */
+	protected final Map<String,Boolean> fitsCompressObsTypeMap;
+	/**
+	 * The number of image rows in each compressed tile, at least 1 ("ioi.file.fits.compress.tile_rows").
+	 */
+	protected final int fitsCompressTileRowCount;
+	/**
+	 * The detector temperature above which GET_STATUS reports a warning, in Kelvin
+	 * ("ioi.get_status.detector.temperature.warm.warn").
+	 */
+	protected final double detectorTemperatureWarmWarn;
+	/**
+	 * The detector temperature above which GET_STATUS reports a failure, in Kelvin
+	 * ("ioi.get_status.detector.temperature.warm.fail").
+	 */
+	protected final double detectorTemperatureWarmFail;
+	/**
+	 * The detector temperature below which GET_STATUS reports a warning, in Kelvin
+	 * ("ioi.get_status.detector.temperature.cold.warn").
+	 */
+	protected final double detectorTemperatureColdWarn;
+	/**
+	 * The detector temperature below which GET_STATUS reports a failure, in Kelvin
+	 * ("ioi.get_status.detector.temperature.cold.fail").
+	 */
+	protected final double detectorTemperatureColdFail;
+	/**
+	 * An unmodifiable map of data processing priority class (normally an OBSTYPE) to priority,
+	 * from the "ioi.data_processing.priority.&lt;class&gt;" properties. The map always contains
+	 * the "default" class.
+	 */
+	protected final Map<String,Integer> dataProcessingPriorityMap;
+	/**
+	 * The time a waiting data processing item takes to gain one priority level, in milliseconds,
+	 * 0 to disable aging ("ioi.data_processing.priority.aging_time").
+	 */
+	protected final long dataProcessingPriorityAgingTime;
+	/**
+	 * Whether to journal the data processing queue, so it is recovered on restart
+	 * ("ioi.data_processing.journal.enable").
+	 */
+	protected final boolean dataProcessingJournalEnable;
+	/**
+	 * The data processing journal file ("ioi.data_processing.journal.file").
+	 */
+	protected final File dataProcessingJournalFile;
+	/**
+	 * How often the data processing journal is fsync'ed, in milliseconds
+	 * ("ioi.data_processing.journal.sync_period").
+	 */
+	protected final long dataProcessingJournalSyncPeriod;
+	/**
+	 * Whether to save a snapshot of each data processing item, for ReprocessRamps
+	 * ("ioi.data_processing.snapshot.enable").
+	 */
+	protected final boolean dataProcessingSnapshotEnable;
+	/**
+	 * The directory the data processing item snapshots are saved in ("ioi.data_processing.snapshot.directory").
+	 */
+	protected final File dataProcessingSnapshotDirectory;
+	/**
+	 * Whether to keep a copy of each raw ramp next to it's snapshot, for ReprocessRamps
+	 * ("ioi.data_processing.snapshot.retain_ramp").
+	 */
+	protected final boolean dataProcessingSnapshotRetainRamp;
+	/**
+	 * Whether to apply calibration products to each read ("ioi.calibration.enable").
+	 */
+	protected final boolean calibrationEnable;
+	/**
+	 * The directory containing the calibration products ("ioi.calibration.directory").
+	 */
+	protected final File calibrationDirectory;
+	/**
+	 * The maximum number of bytes the calibration product cache may map, parsed from megabytes
+	 * ("ioi.calibration.cache.size").
+	 */
+	protected final long calibrationCacheByteCount;
+	/**
+	 * Whether to use bad pixel masks ("ioi.calibration.bad_pixel_mask.enable").
+	 */
+	protected final boolean calibrationBadPixelMaskEnable;
+	/**
+	 * Whether to use nonlinearity coefficients ("ioi.calibration.nonlinearity.enable").
+	 */
+	protected final boolean calibrationNonlinearityEnable;
+	/**
+	 * Whether to use darks ("ioi.calibration.dark.enable").
+	 */
+	protected final boolean calibrationDarkEnable;
+	/**
+	 * The maximum number of ramps waiting for data processing, 0 for no limit
+	 * ("ioi.data_processing.backlog.ramps.max").
+	 */
+	protected final int dataProcessingBacklogRampCountMax;
+	/**
+	 * The maximum number of bytes of ramps waiting for data processing, 0 for no limit
+	 * ("ioi.data_processing.backlog.bytes.max").
+	 */
+	protected final long dataProcessingBacklogByteCountMax;
+	/**
+	 * The root directory the IDL Socket Server writes ramps under ("ioi.data.directory.root").
+	 */
+	protected final String dataDirectoryRoot;
+	/**
+	 * The directory, under the root directory, read up the ramp ramps are written to
+	 * ("ioi.data.directory.up_the_ramp").
+	 */
+	protected final String dataDirectoryUpTheRamp;
+	/**
+	 * The directory, under the root directory, Fowler sampling ramps are written to ("ioi.data.directory.fowler").
+	 */
+	protected final String dataDirectoryFowler;
+	/**
+	 * Whether ABORT discards the ramps the aborted command queued for data processing
+	 * ("ioi.abort.data_processing.discard").
+	 */
+	protected final boolean abortDataProcessingDiscard;
+	/**
+	 * The mirror fold position to move to ("ioi.mirror_fold_position").
+	 */
+	protected final int mirrorFoldPosition;
+	/**
+	 * The instrument focus offset ("ioi.focus.offset").
+	 */
+	protected final double focusOffset;
+	/**
+	 * Whether the temperature controller is used ("ioi.temp_control.config.enable").
+	 */
+	protected final boolean tempControlEnable;
+	/**
+	 * The target temperature of the detector control loop (loop 0), in Kelvin
+	 * ("ioi.temp_control.config.target_temperature.0").
+	 */
+	protected final double tempControlTargetTemperature;
+	/**
+	 * The temperature controller input the detector temperature is read from
+	 * ("ioi.temp_control.temperature_input.0").
+	 */
+	protected final char tempControlDetectorInput;
+	/**
+	 * The temperature controller input the SIDECAR temperature is read from
+	 * ("ioi.temp_control.temperature_input.1").
+	 */
+	protected final char tempControlSidecarInput;
+	/**
+	 * The order number offset the ISS GET_FITS keywords are added at ("ioi.get_fits.iss.order_number_offset").
+	 */
+	protected final int issOrderNumberOffset;
+	/**
+	 * The order number offset the BSS GET_FITS keywords are added at ("ioi.get_fits.bss.order_number_offset").
+	 */
+	protected final int bssOrderNumberOffset;
+	/**
+	 * Whether GET_FITS keywords are cached ("ioi.get_fits.cache.enable").
+	 */
+	protected final boolean fitsCacheEnable;
+	/**
+	 * How long STATIC GET_FITS keywords are cached for, in milliseconds ("ioi.get_fits.cache.static.lifetime").
+	 */
+	protected final long fitsCacheStaticLifetime;
+	/**
+	 * The class of keywords with no explicit classification, for each FitsHeaderSourceCache source
+	 * ("ioi.get_fits.cache.&lt;source&gt;.default").
+	 */
+	protected final int fitsCacheDefaultClass[];
+	/**
+	 * For each FitsHeaderSourceCache source, an unmodifiable map from keyword to keyword class, from the
+	 * "ioi.get_fits.cache.&lt;source&gt;.keyword.&lt;KEYWORD&gt;" properties.
+	 */
+	protected final List<Map<String,Integer>> fitsCacheKeywordClassMapList;
+	/**
+	 * The number of recent exposures whose trace timelines GET_STATUS reports, at least 0
+	 * ("ioi.trace.get_status.exposure_count").
+	 */
+	protected final int traceGetStatusExposureCount;
+	/**
+	 * Whether the IDL link is supervised ("ioi.idl.link.supervisor.enable").
+	 */
+	protected final boolean idlLinkSupervisorEnable;
+	/**
+	 * How often the IDL link health is checked, in milliseconds ("ioi.idl.link.health.period").
+	 */
+	protected final long idlLinkHealthPeriod;
+	/**
+	 * How long the IDL link health check waits for a reply, in milliseconds ("ioi.idl.link.health.timeout").
+	 */
+	protected final long idlLinkHealthTimeout;
+	/**
+	 * How long re-applying the detector state may take, in milliseconds ("ioi.idl.link.reapply.timeout").
+	 */
+	protected final long idlLinkReapplyTimeout;
+	/**
+	 * The first IDL link reconnection delay, in milliseconds ("ioi.idl.link.reconnect.delay.initial").
+	 */
+	protected final long idlLinkReconnectDelayInitial;
+	/**
+	 * The longest IDL link reconnection delay, in milliseconds ("ioi.idl.link.reconnect.delay.max").
+	 */
+	protected final long idlLinkReconnectDelayMax;
+	/**
+	 * How many times a command is retried over a re-established IDL link ("ioi.idl.link.retry.count").
+	 */
+	protected final int idlLinkRetryCount;
+	/**
+	 * How long a retained command waits for the IDL link, in milliseconds ("ioi.idl.link.retain.timeout").
+	 */
+	protected final long idlLinkRetainTimeout;
+	/**
+	 * Whether the ramp timing model learns from each ramp ("ioi.ramp_timing.learn.enable").
+	 */
+	protected final boolean rampTimingLearnEnable;
+	/**
+	 * The ramp timing model learning rate, in the range (0,1] ("ioi.ramp_timing.learning_rate").
+	 */
+	protected final double rampTimingLearningRate;
+	/**
+	 * The ramp timing residual above which a ramp is not learnt from, in milliseconds
+	 * ("ioi.ramp_timing.outlier_threshold").
+	 */
+	protected final long rampTimingOutlierThreshold;
+	/**
+	 * The file the ramp timing model is saved to ("ioi.ramp_timing.filename").
+	 */
+	protected final String rampTimingFilename;
+	/**
+	 * Whether events are recorded continuously ("ioi.event.recording.enable").
+	 */
+	protected final boolean eventRecordingEnable;
+	/**
+	 * The directory the event recording files are written to ("ioi.event.recording.directory").
+	 */
+	protected final File eventRecordingDirectory;
+	/**
+	 * The maximum length of each event recording file, in bytes ("ioi.event.recording.file.length.max").
+	 */
+	protected final long eventRecordingFileLengthMax;
+	/**
+	 * The number of event recording files used in rotation ("ioi.event.recording.file.count").
+	 */
+	protected final int eventRecordingFileCount;
+
+	/**
+	 * Constructor. Parses and checks every configuration value from the specified properties.
+	 * <ul>
+	 * <li>Each value is parsed. A missing or unparsable value is added to the error list, and
+	 *     parsing continues with the next value.
+	 * <li>Values that have a valid range (counts, execution times, the temperature limits) are checked.
+	 * <li>The MULTRUN offset pattern is parsed into RA and Dec arrays of length "ioi.multrun.offset.count".
+ * <li>The data processing priority of every priority class, and whether each OBSTYPE is compressed,
+ *     are parsed into maps.
+	 * <li>If the error list is not empty, an IllegalArgumentException is thrown listing every error.
+	 * </ul>
+	 * @param properties The loaded IO:I properties.
+	 * @exception IllegalArgumentException Thrown if any value is missing, unparsable or out of range.
+	 */
+	public IOIConfig(Properties properties) throws IllegalArgumentException
+	{
+		List<String> errorList = new Vector<String>();
+		Map<String,Integer> priorityMap = null;
+		Map<String,Boolean> compressMap = null;
+		Map<String,Integer> keywordClassMap = null;
+		String prefix = null;
+		int offsetCount;
+
+		fsMode = getFSMode(properties,"ioi.config.fs_mode",errorList);
+		// Fowler sampling
+		fowlerNReset = getInteger(properties,"ioi.config.FOWLER.nreset",0,errorList);
+		fowlerNRead = getInteger(properties,"ioi.config.FOWLER.nread",1,errorList);
+		fowlerResetExecutionTime = getInteger(properties,"ioi.config.FOWLER.reset_execution_time",0,errorList);
+		fowlerReadExecutionTime = getInteger(properties,"ioi.config.FOWLER.read_execution_time",1,errorList);
+		// read up the ramp
+		upTheRampNReset = getInteger(properties,"ioi.config.UP_THE_RAMP.nreset",0,errorList);
+		upTheRampNRead = getInteger(properties,"ioi.config.UP_THE_RAMP.nread",1,errorList);
+		upTheRampNDrop = getInteger(properties,"ioi.config.UP_THE_RAMP.ndrop",0,errorList);
+		upTheRampGroupExecutionTime = getInteger(properties,"ioi.config.UP_THE_RAMP.group_execution_time",1,
+							 errorList);
+		upTheRampResetExecutionTime = getInteger(properties,"ioi.config.UP_THE_RAMP.reset_execution_time",0,
+							 errorList);
+		// MULTRUN offsets and guiding
+		multrunOffsetEnable = getBoolean(properties,"ioi.multrun.offset.enable",errorList);
+		multrunOffsetWaitForComplete = getBoolean(properties,"ioi.multrun.offset.wait_for_complete",errorList);
+		multrunOffsetWaitSleepTime = getInteger(properties,"ioi.multrun.offset.wait_sleep_time",0,errorList);
+		offsetCount = getInteger(properties,"ioi.multrun.offset.count",1,errorList);
+		if(offsetCount < 1)
+			offsetCount = 0;
+		multrunRaOffsetList = new float[offsetCount];
+		multrunDecOffsetList = new float[offsetCount];
+		for(int i = 0; i < offsetCount; i++)
+		{
+			multrunRaOffsetList[i] = getFloat(properties,"ioi.multrun.offset."+i+".ra",errorList);
+			multrunDecOffsetList[i] = getFloat(properties,"ioi.multrun.offset."+i+".dec",errorList);
+		}
+		multrunGuideEnable = getBoolean(properties,"ioi.multrun.guide.enable",errorList);
+		multrunDoneWaitForDataProcessing = getBoolean(properties,"ioi.multrun.done.wait_for_data_processing",
+							      errorList);
+		// FITS file processing
+		fitsRename = getBoolean(properties,"ioi.file.fits.rename",errorList);
+		fitsRenameReadUpRampAsCDS = getBoolean(properties,"ioi.file.fits.rename.read_up_ramp_as_cds",errorList);
+		// the older CDS option is the same as keeping two Fowler pairs
+		if(fitsRenameReadUpRampAsCDS)
+			fitsReadSubsetUpTheRamp = new ReadSubsetPolicy("fowler:2");
+		else
+		{
+			fitsReadSubsetUpTheRamp = getReadSubsetPolicy(properties,"ioi.file.fits.read.subset.up_the_ramp",
+								      errorList);
+		}
+		fitsReadSubsetFowler = getReadSubsetPolicy(properties,"ioi.file.fits.read.subset.fowler",errorList);
+		fitsAnnotate = getBoolean(properties,"ioi.file.fits.annotate",errorList);
+		fitsFlip = getBoolean(properties,"ioi.file.fits.flip",errorList);
+		fitsFlipX = getBoolean(properties,"ioi.file.fits.flip.x",errorList);
+		fitsFlipY = getBoolean(properties,"ioi.file.fits.flip.y",errorList);
+		fitsReferenceEnable = getBoolean(properties,"ioi.file.fits.reference.enable",errorList);
+		fitsReferenceChannelCount = getInteger(properties,"ioi.file.fits.reference.channel_count",1,errorList);
+		fitsReferenceBorder = getInteger(properties,"ioi.file.fits.reference.border",1,errorList);
+		fitsReferenceOddEven = getBoolean(properties,"ioi.file.fits.reference.odd_even",errorList);
+		fitsReferenceRowCorrection = getBoolean(properties,"ioi.file.fits.reference.row_correction",errorList);
+		fitsReferenceRowWindow = getInteger(properties,"ioi.file.fits.reference.row_window",0,errorList);
+		fitsReferencePedestal = getDouble(properties,"ioi.file.fits.reference.pedestal",errorList);
+		fitsPreviewEnable = getBoolean(properties,"ioi.file.fits.preview.enable",errorList);
+		fitsPreviewSourceCDS = isCDSSource(properties,"ioi.file.fits.preview.source");
+		fitsPreviewPNG = getBoolean(properties,"ioi.file.fits.preview.png",errorList);
+		fitsPreviewBin = getInteger(properties,"ioi.file.fits.preview.bin",1,errorList);
+		fitsStatisticsEnable = getBoolean(properties,"ioi.file.fits.statistics.enable",errorList);
+		fitsStatisticsSourceCDS = isCDSSource(properties,"ioi.file.fits.statistics.source");
+		fitsStatisticsBorder = getInteger(properties,"ioi.file.fits.statistics.border",0,errorList);
+		fitsStatisticsSaturationLevel = getDouble(properties,"ioi.file.fits.statistics.saturation_level",
+							  errorList);
+		fitsStatisticsClipIterationCount = getInteger(properties,
+							      "ioi.file.fits.statistics.sky.clip.iteration_count",0,
+							      errorList);
+		fitsStatisticsClipSigma = getDouble(properties,"ioi.file.fits.statistics.sky.clip.sigma",errorList);
+		fitsStatisticsSourceRadius = getInteger(properties,"ioi.file.fits.statistics.source.radius",1,errorList);
+		fitsStatisticsDetectionSigma = getDouble(properties,"ioi.file.fits.statistics.source.detection_sigma",
+							 errorList);
+		fitsStatisticsPixelScale = getDouble(properties,"ioi.file.fits.statistics.pixel_scale",errorList);
+		fitsChecksumEnable = getBoolean(properties,"ioi.file.fits.checksum.enable",errorList);
+		// tracing
+		traceEnable = getBoolean(properties,"ioi.trace.enable",errorList);
+		fitsCompressDeleteOriginal = getBoolean(properties,"ioi.file.fits.compress.delete_original",errorList);
+		compressMap = new HashMap<String,Boolean>();
+		getFitsCompressObsTypeMap(properties,compressMap,errorList);
+		fitsCompressObsTypeMap = Collections.unmodifiableMap(compressMap);
+		fitsCompressTileRowCount = getInteger(properties,"ioi.file.fits.compress.tile_rows",1,errorList);
+		// GET_STATUS detector temperature limits
+		detectorTemperatureWarmWarn = getDouble(properties,"ioi.get_status.detector.temperature.warm.warn",
+							errorList);
+		detectorTemperatureWarmFail = getDouble(properties,"ioi.get_status.detector.temperature.warm.fail",
+							errorList);
+		detectorTemperatureColdWarn = getDouble(properties,"ioi.get_status.detector.temperature.cold.warn",
+							errorList);
+		detectorTemperatureColdFail = getDouble(properties,"ioi.get_status.detector.temperature.cold.fail",
+							errorList);
+		if(detectorTemperatureWarmFail < detectorTemperatureWarmWarn)
+		{
+			errorList.add("ioi.get_status.detector.temperature.warm.fail ("+detectorTemperatureWarmFail+
+				      ") is less than ioi.get_status.detector.temperature.warm.warn ("+
+				      detectorTemperatureWarmWarn+")");
+		}
+		if(detectorTemperatureColdFail > detectorTemperatureColdWarn)
+		{
+			errorList.add("ioi.get_status.detector.temperature.cold.fail ("+detectorTemperatureColdFail+
+				      ") is greater than ioi.get_status.detector.temperature.cold.warn ("+
+				      detectorTemperatureColdWarn+")");
+		}
+		// data processing priorities
+		priorityMap = new HashMap<String,Integer>();
+		getDataProcessingPriorityMap(properties,priorityMap,errorList);
+		dataProcessingPriorityMap = Collections.unmodifiableMap(priorityMap);
+		dataProcessingPriorityAgingTime = getInteger(properties,DATA_PROCESSING_PRIORITY_PREFIX+"aging_time",0,
+							     errorList);
+		dataProcessingJournalEnable = getBoolean(properties,"ioi.data_processing.journal.enable",errorList);
+		dataProcessingJournalFile = new File(getString(properties,"ioi.data_processing.journal.file",errorList));
+		dataProcessingJournalSyncPeriod = getInteger(properties,"ioi.data_processing.journal.sync_period",1,
+							     errorList);
+		dataProcessingSnapshotEnable = getBoolean(properties,"ioi.data_processing.snapshot.enable",errorList);
+		dataProcessingSnapshotDirectory = new File(getString(properties,"ioi.data_processing.snapshot.directory",
+								     errorList));
+		dataProcessingSnapshotRetainRamp = getBoolean(properties,"ioi.data_processing.snapshot.retain_ramp",
+							      errorList);
+		// calibration
+		calibrationEnable = getBoolean(properties,"ioi.calibration.enable",errorList);
+		calibrationDirectory = new File(getString(properties,"ioi.calibration.directory",errorList));
+		calibrationCacheByteCount = ((long)getInteger(properties,"ioi.calibration.cache.size",0,errorList))*
+			1024L*1024L;
+		calibrationBadPixelMaskEnable = getBoolean(properties,"ioi.calibration.bad_pixel_mask.enable",errorList);
+		calibrationNonlinearityEnable = getBoolean(properties,"ioi.calibration.nonlinearity.enable",errorList);
+		calibrationDarkEnable = getBoolean(properties,"ioi.calibration.dark.enable",errorList);
+		// data processing backlog and ramp directories
+		dataProcessingBacklogRampCountMax = getInteger(properties,"ioi.data_processing.backlog.ramps.max",0,
+							       errorList);
+		dataProcessingBacklogByteCountMax = getLong(properties,"ioi.data_processing.backlog.bytes.max",0,
+							    errorList);
+		dataDirectoryRoot = getString(properties,"ioi.data.directory.root",errorList);
+		dataDirectoryUpTheRamp = getString(properties,"ioi.data.directory.up_the_ramp",errorList);
+		dataDirectoryFowler = getString(properties,"ioi.data.directory.fowler",errorList);
+		abortDataProcessingDiscard = getBoolean(properties,"ioi.abort.data_processing.discard",errorList);
+		// FITS header values
+		mirrorFoldPosition = getInteger(properties,"ioi.mirror_fold_position",Integer.MIN_VALUE,errorList);
+		focusOffset = getDouble(properties,"ioi.focus.offset",errorList);
+		tempControlEnable = getBoolean(properties,"ioi.temp_control.config.enable",errorList);
+		tempControlTargetTemperature = getDouble(properties,"ioi.temp_control.config.target_temperature.0",
+							 errorList);
+		tempControlDetectorInput = getChar(properties,"ioi.temp_control.temperature_input.0",errorList);
+		tempControlSidecarInput = getChar(properties,"ioi.temp_control.temperature_input.1",errorList);
+		issOrderNumberOffset = getInteger(properties,"ioi.get_fits.iss.order_number_offset",0,errorList);
+		bssOrderNumberOffset = getInteger(properties,"ioi.get_fits.bss.order_number_offset",0,errorList);
+		// GET_FITS keyword cache
+		fitsCacheEnable = getBoolean(properties,"ioi.get_fits.cache.enable",errorList);
+		fitsCacheStaticLifetime = getLong(properties,"ioi.get_fits.cache.static.lifetime",0,errorList);
+		fitsCacheDefaultClass = new int[FitsHeaderSourceCache.SOURCE_COUNT];
+		fitsCacheKeywordClassMapList = new Vector<Map<String,Integer>>();
+		for(int source = 0; source < FitsHeaderSourceCache.SOURCE_COUNT; source++)
+		{
+			prefix = "ioi.get_fits.cache."+FitsHeaderSourceCache.SOURCE_NAME_LIST[source].toLowerCase()+".";
+			fitsCacheDefaultClass[source] = getKeywordClass(properties,prefix+"default",errorList);
+			keywordClassMap = new HashMap<String,Integer>();
+			getFitsCacheKeywordClassMap(properties,prefix+"keyword.",keywordClassMap,errorList);
+			fitsCacheKeywordClassMapList.add(Collections.unmodifiableMap(keywordClassMap));
+		}
+		// tracing
+		traceGetStatusExposureCount = getInteger(properties,"ioi.trace.get_status.exposure_count",0,errorList);
+		// IDL link supervision
+		idlLinkSupervisorEnable = getBoolean(properties,"ioi.idl.link.supervisor.enable",errorList);
+		idlLinkHealthPeriod = getLong(properties,"ioi.idl.link.health.period",1,errorList);
+		idlLinkHealthTimeout = getLong(properties,"ioi.idl.link.health.timeout",1,errorList);
+		idlLinkReapplyTimeout = getLong(properties,"ioi.idl.link.reapply.timeout",1,errorList);
+		idlLinkReconnectDelayInitial = getLong(properties,"ioi.idl.link.reconnect.delay.initial",0,errorList);
+		idlLinkReconnectDelayMax = getLong(properties,"ioi.idl.link.reconnect.delay.max",0,errorList);
+		idlLinkRetryCount = getInteger(properties,"ioi.idl.link.retry.count",0,errorList);
+		idlLinkRetainTimeout = getLong(properties,"ioi.idl.link.retain.timeout",0,errorList);
+		// ramp timing model
+		rampTimingLearnEnable = getBoolean(properties,"ioi.ramp_timing.learn.enable",errorList);
+		rampTimingLearningRate = getDouble(properties,"ioi.ramp_timing.learning_rate",errorList);
+		if((rampTimingLearningRate <= 0.0)||(rampTimingLearningRate > 1.0))
+		{
+			errorList.add("ioi.ramp_timing.learning_rate is not in the range (0,1] ("+
+				      rampTimingLearningRate+")");
+		}
+		rampTimingOutlierThreshold = getLong(properties,"ioi.ramp_timing.outlier_threshold",0,errorList);
+		rampTimingFilename = getString(properties,"ioi.ramp_timing.filename",errorList);
+		// event recording
+		eventRecordingEnable = getBoolean(properties,"ioi.event.recording.enable",errorList);
+		eventRecordingDirectory = new File(getString(properties,"ioi.event.recording.directory",errorList));
+		eventRecordingFileLengthMax = getLong(properties,"ioi.event.recording.file.length.max",1,errorList);
+		eventRecordingFileCount = getInteger(properties,"ioi.event.recording.file.count",1,errorList);
+		if(errorList.size() > 0)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":"+errorList.size()+
+							   " configuration error(s):"+errorList);
+		}
+	}
+
+	/**
+	 * Parse an integer property, which must be at least minimumValue.
+	 * @param properties The properties to get the value from.
+	 * @param key The property key.
+	 * @param minimumValue The smallest legal value.
+	 * @param errorList The list to add an error description to, if the value is missing, unparsable or too small.
+	 * @return The parsed value, or zero if the value was not legal.
+	 */
+	protected static int getInteger(Properties properties,String key,int minimumValue,List<String> errorList)
+	{
+		String valueString = null;
+		int value;
+
+		valueString = properties.getProperty(key);
+		if(valueString == null)
+		{
+			errorList.add(key+" is missing");
+			return 0;
+		}
+		try
+		{
+			value = Integer.parseInt(valueString.trim());
+		}
+		catch(NumberFormatException e)
+		{
+			errorList.add(key+" is not an integer ("+valueString+")");
+			return 0;
+		}
+		if(value < minimumValue)
+		{
+			errorList.add(key+" must be at least "+minimumValue+" ("+value+")");
+			return 0;
+		}
+		return value;
+	}
+
+	/**
+	 * Parse a long property, which must be at least minimumValue.
+	 * @param properties The properties to get the value from.
+	 * @param key The property key.
+	 * @param minimumValue The smallest legal value.
+	 * @param errorList The list to add an error description to, if the value is missing, unparsable or too small.
+	 * @return The parsed value, or zero if the value was not legal.
+	 */
+	protected static long getLong(Properties properties,String key,long minimumValue,List<String> errorList)
+	{
+		String valueString = null;
+		long value;
+
+		valueString = properties.getProperty(key);
+		if(valueString == null)
+		{
+			errorList.add(key+" is missing");
+			return 0;
+		}
+		try
+		{
+			value = Long.parseLong(valueString.trim());
+		}
+		catch(NumberFormatException e)
+		{
+			errorList.add(key+" is not an integer ("+valueString+")");
+			return 0;
+		}
+		if(value < minimumValue)
+		{
+			errorList.add(key+" must be at least "+minimumValue+" ("+value+")");
+			return 0;
+		}
+		return value;
+	}
+
+	/**
+	 * Parse a single character property.
+	 * @param properties The properties to get the value from.
+	 * @param key The property key.
+	 * @param errorList The list to add an error description to, if the value is missing or not one character.
+	 * @return The character, or a space if the value was not legal.
+	 */
+	protected static char getChar(Properties properties,String key,List<String> errorList)
+	{
+		String valueString = null;
+
+		valueString = properties.getProperty(key);
+		if(valueString == null)
+		{
+			errorList.add(key+" is missing");
+			return ' ';
+		}
+		valueString = valueString.trim();
+		if(valueString.length() != 1)
+		{
+			errorList.add(key+" is not a single character ("+valueString+")");
+			return ' ';
+		}
+		return valueString.charAt(0);
+	}
+
+	/**
+	 * Get a string property, which must be present and not blank.
+	 * @param properties The properties to get the value from.
+	 * @param key The property key.
+	 * @param errorList The list to add an error description to, if the value is missing or blank.
+	 * @return The value with surrounding white space removed, or an empty string if the value was not legal.
+	 */
+	protected static String getString(Properties properties,String key,List<String> errorList)
+	{
+		String valueString = null;
+
+		valueString = properties.getProperty(key);
+		if((valueString == null)||(valueString.trim().length() == 0))
+		{
+			errorList.add(key+" is missing");
+			return "";
+		}
+		return valueString.trim();
+	}
+
+	/**
+	 * Parse a float property.
+	 * @param properties The properties to get the value from.
+	 * @param key The property key.
+	 * @param errorList The list to add an error description to, if the value is missing or unparsable.
+	 * @return The parsed value, or zero if the value was not legal.
+	 */
+	protected static float getFloat(Properties properties,String key,List<String> errorList)
+	{
+		String valueString = null;
+
+		valueString = properties.getProperty(key);
+		if(valueString == null)
+		{
+			errorList.add(key+" is missing");
+			return 0.0f;
+		}
+		try
+		{
+			return Float.parseFloat(valueString.trim());
+		}
+		catch(NumberFormatException e)
+		{
+			errorList.add(key+" is not a number ("+valueString+")");
+			return 0.0f;
+		}
+	}
+
+	/**
+	 * Parse a double property.
+	 * @param properties The properties to get the value from.
+	 * @param key The property key.
+	 * @param errorList The list to add an error description to, if the value is missing or unparsable.
+	 * @return The parsed value, or zero if the value was not legal.
+	 */
+	protected static double getDouble(Properties properties,String key,List<String> errorList)
+	{
+		String valueString = null;
+
+		valueString = properties.getProperty(key);
+		if(valueString == null)
+		{
+			errorList.add(key+" is missing");
+			return 0.0;
+		}
+		try
+		{
+			return Double.parseDouble(valueString.trim());
+		}
+		catch(NumberFormatException e)
+		{
+			errorList.add(key+" is not a number ("+valueString+")");
+			return 0.0;
+		}
+	}
+
+	/**
+	 * Parse a boolean property. Unlike Boolean.valueOf, only "true" and "false" (ignoring case) are accepted,
+	 * so a mistyped value is reported rather than silently treated as false.
+	 * @param properties The properties to get the value from.
+	 * @param key The property key.
+	 * @param errorList The list to add an error description to, if the value is missing or not a boolean.
+	 * @return The parsed value, or false if the value was not legal.
+	 */
+	protected static boolean getBoolean(Properties properties,String key,List<String> errorList)
+	{
+		String valueString = null;
+
+		valueString = properties.getProperty(key);
+		if(valueString == null)
+		{
+			errorList.add(key+" is missing");
+			return false;
+		}
+		valueString = valueString.trim();
+		if(valueString.equalsIgnoreCase("true"))
+			return true;
+		if(valueString.equalsIgnoreCase("false"))
+			return false;
+		errorList.add(key+" is not true or false ("+valueString+")");
+		return false;
+	}
+
+	/**
+	 * Return whether a data source property is set to "CDS". A missing value means the last read is used.
+	 * @param properties The properties to get the value from.
+	 * @param key The property key.
+	 * @return true if the value is "CDS", false otherwise.
+	 */
+	protected static boolean isCDSSource(Properties properties,String key)
+	{
+		String valueString = null;
+
+		valueString = properties.getProperty(key);
+		return (valueString != null)&&valueString.trim().equals("CDS");
+	}
+
+	/**
+	 * Parse a sampling mode property.
+	 * @param properties The properties to get the value from.
+	 * @param key The property key.
+	 * @param errorList The list to add an error description to, if the value is missing or not a sampling mode.
+	 * @return The parsed mode, or SetFSModeCommand.MODE_FOWLER if the value was not legal.
+	 * @see ngat.ioi.command.SetFSModeCommand#parseMode
+	 */
+	protected static int getFSMode(Properties properties,String key,List<String> errorList)
+	{
+		String valueString = null;
+
+		valueString = properties.getProperty(key);
+		if(valueString == null)
+		{
+			errorList.add(key+" is missing");
+			return SetFSModeCommand.MODE_FOWLER;
+		}
+		try
+		{
+			return SetFSModeCommand.parseMode(valueString.trim());
+		}
+		catch(Exception e)
+		{
+			errorList.add(key+" is not UP_THE_RAMP or FOWLER ("+valueString+")");
+			return SetFSModeCommand.MODE_FOWLER;
+		}
+	}
+
+	/**
+	 * Parse the data processing priority of every priority class, from the
+	 * "ioi.data_processing.priority.&lt;class&gt;" properties. The "aging_time" property is not a priority class.
+	 * Priorities can be negative. The "default" class must be present.
+	 * @param properties The properties to get the values from.
+	 * @param priorityMap The map to put each priority class and it's priority into.
+	 * @param errorList The list to add an error description to, for each value that is not an integer,
+	 *        or if the default priority is missing.
+	 * @see #DATA_PROCESSING_PRIORITY_PREFIX
+	 */
+	protected static void getDataProcessingPriorityMap(Properties properties,Map<String,Integer> priorityMap,
+							   List<String> errorList)
+	{
+		Enumeration<?> keyEnumeration = null;
+		String key = null;
+		String priorityClass = null;
+
+		keyEnumeration = properties.propertyNames();
+		while(keyEnumeration.hasMoreElements())
+		{
+			key = (String)(keyEnumeration.nextElement());
+			if(key.startsWith(DATA_PROCESSING_PRIORITY_PREFIX) == false)
+				continue;
+			priorityClass = key.substring(DATA_PROCESSING_PRIORITY_PREFIX.length());
+			if(priorityClass.equals("aging_time"))
+				continue;
+			priorityMap.put(priorityClass,new Integer(getInteger(properties,key,Integer.MIN_VALUE,errorList)));
+		}
+		if(priorityMap.containsKey("default") == false)
+			errorList.add(DATA_PROCESSING_PRIORITY_PREFIX+"default is missing");
+	}
+
+	/**
+	 * Parse whether the FITS images of each OBSTYPE are compressed, from the
+	 * "ioi.file.fits.compress.&lt;OBSTYPE&gt;" properties. The keys in FITS_COMPRESS_SETTING_LIST are not OBSTYPEs.
+	 * @param properties The properties to get the values from.
+	 * @param compressMap The map to put each OBSTYPE and whether it is compressed into.
+	 * @param errorList The list to add an error description to, for each value that is not a boolean.
+	 * @see #FITS_COMPRESS_PREFIX
+	 * @see #FITS_COMPRESS_SETTING_LIST
+	 */
+	protected static void getFitsCompressObsTypeMap(Properties properties,Map<String,Boolean> compressMap,
+							List<String> errorList)
+	{
+		Enumeration<?> keyEnumeration = null;
+		String key = null;
+		String obsType = null;
+		boolean setting;
+
+		keyEnumeration = properties.propertyNames();
+		while(keyEnumeration.hasMoreElements())
+		{
+			key = (String)(keyEnumeration.nextElement());
+			if(key.startsWith(FITS_COMPRESS_PREFIX) == false)
+				continue;
+			obsType = key.substring(FITS_COMPRESS_PREFIX.length());
+			setting = false;
+			for(int i = 0; i < FITS_COMPRESS_SETTING_LIST.length; i++)
+			{
+				if(FITS_COMPRESS_SETTING_LIST[i].equals(obsType))
+					setting = true;
+			}
+			if(setting)
+				continue;
+			compressMap.put(obsType,new Boolean(getBoolean(properties,key,errorList)));
+		}
+	}
+
+	/**
+	 * Parse a GET_FITS keyword class property.
+	 * @param properties The properties to get the value from.
+	 * @param key The property key.
+	 * @param errorList The list to add an error description to, if the value is missing or not a keyword class.
+	 * @return The keyword class, or FitsHeaderSourceCache.KEYWORD_CLASS_EXPOSURE (never cached) if the
+	 *         value was not legal.
+	 * @see FitsHeaderSourceCache#KEYWORD_CLASS_NAME_LIST
+	 */
+	protected static int getKeywordClass(Properties properties,String key,List<String> errorList)
+	{
+		String valueString = null;
+
+		valueString = properties.getProperty(key);
+		if(valueString == null)
+		{
+			errorList.add(key+" is missing");
+			return FitsHeaderSourceCache.KEYWORD_CLASS_EXPOSURE;
+		}
+		for(int i = 0; i < FitsHeaderSourceCache.KEYWORD_CLASS_NAME_LIST.length; i++)
+		{
+			if(valueString.trim().equals(FitsHeaderSourceCache.KEYWORD_CLASS_NAME_LIST[i]))
+				return i;
+		}
+		errorList.add(key+" is not STATIC, MULTRUN or EXPOSURE ("+valueString+")");
+		return FitsHeaderSourceCache.KEYWORD_CLASS_EXPOSURE;
+	}
+
+	/**
+	 * Parse the class of every explicitly classified GET_FITS keyword of a source, from the
+	 * "ioi.get_fits.cache.&lt;source&gt;.keyword.&lt;KEYWORD&gt;" properties.
+	 * @param properties The properties to get the values from.
+	 * @param prefix The property prefix for the source, "ioi.get_fits.cache.&lt;source&gt;.keyword.".
+	 * @param keywordClassMap The map to put each keyword and it's class into.
+	 * @param errorList The list to add an error description to, for each value that is not a keyword class.
+	 * @see #getKeywordClass
+	 */
+	protected static void getFitsCacheKeywordClassMap(Properties properties,String prefix,
+							  Map<String,Integer> keywordClassMap,List<String> errorList)
+	{
+		Enumeration<?> keyEnumeration = null;
+		String key = null;
+
+		keyEnumeration = properties.propertyNames();
+		while(keyEnumeration.hasMoreElements())
+		{
+			key = (String)(keyEnumeration.nextElement());
+			if(key.startsWith(prefix) == false)
+				continue;
+			keywordClassMap.put(key.substring(prefix.length()),
+					    new Integer(getKeywordClass(properties,key,errorList)));
+		}
+	}
+
+	/**
+	 * Parse a read subset policy property.
+	 * @param properties The properties to get the value from.
+	 * @param key The property key.
+	 * @param errorList The list to add an error description to, if the value is missing or not a valid policy.
+	 * @return The parsed policy, or null if the value was not legal.
+	 * @see ReadSubsetPolicy
+	 */
+	protected static ReadSubsetPolicy getReadSubsetPolicy(Properties properties,String key,List<String> errorList)
+	{
+		String valueString = null;
+
+		valueString = properties.getProperty(key);
+		if(valueString == null)
+		{
+			errorList.add(key+" is missing");
+			return null;
+		}
+		try
+		{
+			return new ReadSubsetPolicy(valueString);
+		}
+		catch(IllegalArgumentException e)
+		{
+			errorList.add(key+" is not a valid read subset policy ("+valueString+"):"+e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Get the sampling mode CONFIG configures the detector in.
+	 * @return The mode, one of SetFSModeCommand.MODE_UP_THE_RAMP or SetFSModeCommand.MODE_FOWLER.
+	 * @see #fsMode
+	 */
+	public int getFSMode()
+	{
+		return fsMode;
+	}
+
+	/**
+	 * Get the number of Fowler sampling resets.
+	 * @return The number of resets.
+	 * @see #fowlerNReset
+	 */
+	public int getFowlerNReset()
+	{
+		return fowlerNReset;
+	}
+
+	/**
+	 * Get the number of Fowler sampling reads.
+	 * @return The number of reads.
+	 * @see #fowlerNRead
+	 */
+	public int getFowlerNRead()
+	{
+		return fowlerNRead;
+	}
+
+	/**
+	 * Get the Fowler sampling reset execution time.
+	 * @return The time in milliseconds.
+	 * @see #fowlerResetExecutionTime
+	 */
+	public int getFowlerResetExecutionTime()
+	{
+		return fowlerResetExecutionTime;
+	}
+
+	/**
+	 * Get the Fowler sampling read execution time.
+	 * @return The time in milliseconds.
+	 * @see #fowlerReadExecutionTime
+	 */
+	public int getFowlerReadExecutionTime()
+	{
+		return fowlerReadExecutionTime;
+	}
+
+	/**
+	 * Get the number of read up the ramp resets.
+	 * @return The number of resets.
+	 * @see #upTheRampNReset
+	 */
+	public int getUpTheRampNReset()
+	{
+		return upTheRampNReset;
+	}
+
+	/**
+	 * Get the number of reads per read up the ramp group.
+	 * @return The number of reads.
+	 * @see #upTheRampNRead
+	 */
+	public int getUpTheRampNRead()
+	{
+		return upTheRampNRead;
+	}
+
+	/**
+	 * Get the number of dropped frames per read up the ramp group.
+	 * @return The number of dropped frames.
+	 * @see #upTheRampNDrop
+	 */
+	public int getUpTheRampNDrop()
+	{
+		return upTheRampNDrop;
+	}
+
+	/**
+	 * Get the read up the ramp group execution time.
+	 * @return The time in milliseconds.
+	 * @see #upTheRampGroupExecutionTime
+	 */
+	public int getUpTheRampGroupExecutionTime()
+	{
+		return upTheRampGroupExecutionTime;
+	}
+
+	/**
+	 * Get the read up the ramp reset execution time.
+	 * @return The time in milliseconds.
+	 * @see #upTheRampResetExecutionTime
+	 */
+	public int getUpTheRampResetExecutionTime()
+	{
+		return upTheRampResetExecutionTime;
+	}
+
+	/**
+	 * Get whether MULTRUN telescope offsets are enabled.
+	 * @return true if the telescope is offset between frames.
+	 * @see #multrunOffsetEnable
+	 */
+	public boolean getMultrunOffsetEnable()
+	{
+		return multrunOffsetEnable;
+	}
+
+	/**
+	 * Get whether to wait for a MULTRUN offset to complete.
+	 * @return true if we wait for the offset to complete.
+	 * @see #multrunOffsetWaitForComplete
+	 */
+	public boolean getMultrunOffsetWaitForComplete()
+	{
+		return multrunOffsetWaitForComplete;
+	}
+
+	/**
+	 * Get how long to sleep after sending an offset, when not waiting for it to complete.
+	 * @return The time in milliseconds.
+	 * @see #multrunOffsetWaitSleepTime
+	 */
+	public int getMultrunOffsetWaitSleepTime()
+	{
+		return multrunOffsetWaitSleepTime;
+	}
+
+	/**
+	 * Get the number of offsets in the MULTRUN offset pattern.
+	 * @return The number of offsets.
+	 * @see #multrunRaOffsetList
+	 */
+	public int getMultrunOffsetCount()
+	{
+		return multrunRaOffsetList.length;
+	}
+
+	/**
+	 * Get the RA offset for the specified frame of a MULTRUN. The pattern repeats every getMultrunOffsetCount
+	 * frames.
+	 * @param offsetIndex The index of the frame in the MULTRUN (0 based).
+	 * @return The RA offset in arcseconds.
+	 * @see #multrunRaOffsetList
+	 */
+	public float getMultrunRaOffset(int offsetIndex)
+	{
+		return multrunRaOffsetList[offsetIndex % multrunRaOffsetList.length];
+	}
+
+	/**
+	 * Get the Dec offset for the specified frame of a MULTRUN. The pattern repeats every getMultrunOffsetCount
+	 * frames.
+	 * @param offsetIndex The index of the frame in the MULTRUN (0 based).
+	 * @return The Dec offset in arcseconds.
+	 * @see #multrunDecOffsetList
+	 */
+	public float getMultrunDecOffset(int offsetIndex)
+	{
+		return multrunDecOffsetList[offsetIndex % multrunDecOffsetList.length];
+	}
+
+	/**
+	 * Get whether MULTRUNs are acquired as guided ramps.
+	 * @return true if guiding is enabled.
+	 * @see #multrunGuideEnable
+	 */
+	public boolean getMultrunGuideEnable()
+	{
+		return multrunGuideEnable;
+	}
+
+	/**
+	 * Get whether MULTRUN waits for the data processing of it's ramps to finish before returning MULTRUN_DONE.
+	 * @return true if MULTRUN waits for data processing.
+	 * @see #multrunDoneWaitForDataProcessing
+	 */
+	public boolean getMultrunDoneWaitForDataProcessing()
+	{
+		return multrunDoneWaitForDataProcessing;
+	}
+
+	/**
+	 * Get whether FITS images are renamed into the LT standard.
+	 * @return true if FITS images are renamed.
+	 * @see #fitsRename
+	 */
+	public boolean getFitsRename()
+	{
+		return fitsRename;
+	}
+
+	/**
+	 * Get whether only enough of a read up the ramp to do a CDS is renamed.
+	 * @return true if only the first two and last two reads are renamed.
+	 * @see #fitsRenameReadUpRampAsCDS
+	 */
+	public boolean getFitsRenameReadUpRampAsCDS()
+	{
+		return fitsRenameReadUpRampAsCDS;
+	}
+
+	/**
+	 * Get the policy selecting which reads of a read up the ramp are kept.
+	 * @return The policy.
+	 * @see #fitsReadSubsetUpTheRamp
+	 */
+	public ReadSubsetPolicy getFitsReadSubsetUpTheRamp()
+	{
+		return fitsReadSubsetUpTheRamp;
+	}
+
+	/**
+	 * Get the policy selecting which reads of a Fowler sampling ramp are kept.
+	 * @return The policy.
+	 * @see #fitsReadSubsetFowler
+	 */
+	public ReadSubsetPolicy getFitsReadSubsetFowler()
+	{
+		return fitsReadSubsetFowler;
+	}
+
+	/**
+	 * Get whether ISS/BSS/instrument FITS headers are added.
+	 * @return true if the FITS images are annotated.
+	 * @see #fitsAnnotate
+	 */
+	public boolean getFitsAnnotate()
+	{
+		return fitsAnnotate;
+	}
+
+	/**
+	 * Get whether FITS image data is flipped.
+	 * @return true if the image data is flipped.
+	 * @see #fitsFlip
+	 */
+	public boolean getFitsFlip()
+	{
+		return fitsFlip;
+	}
+
+	/**
+	 * Get whether FITS image data is flipped in X.
+	 * @return true if the image data is flipped in X.
+	 * @see #fitsFlipX
+	 */
+	public boolean getFitsFlipX()
+	{
+		return fitsFlipX;
+	}
+
+	/**
+	 * Get whether FITS image data is flipped in Y.
+	 * @return true if the image data is flipped in Y.
+	 * @see #fitsFlipY
+	 */
+	public boolean getFitsFlipY()
+	{
+		return fitsFlipY;
+	}
+
+	/**
+	 * Get whether FITS images are reference pixel corrected.
+	 * @return true if reference pixel correction is enabled.
+	 * @see #fitsReferenceEnable
+	 */
+	public boolean getFitsReferenceEnable()
+	{
+		return fitsReferenceEnable;
+	}
+
+	/**
+	 * Get the number of readout channels across the detector.
+	 * @return The number of channels.
+	 * @see #fitsReferenceChannelCount
+	 */
+	public int getFitsReferenceChannelCount()
+	{
+		return fitsReferenceChannelCount;
+	}
+
+	/**
+	 * Get the width of the reference pixel border.
+	 * @return The border width in pixels.
+	 * @see #fitsReferenceBorder
+	 */
+	public int getFitsReferenceBorder()
+	{
+		return fitsReferenceBorder;
+	}
+
+	/**
+	 * Get whether the odd and even columns of each channel are corrected separately.
+	 * @return true if they are corrected separately.
+	 * @see #fitsReferenceOddEven
+	 */
+	public boolean getFitsReferenceOddEven()
+	{
+		return fitsReferenceOddEven;
+	}
+
+	/**
+	 * Get whether each row is corrected using the reference columns.
+	 * @return true if the row correction is done.
+	 * @see #fitsReferenceRowCorrection
+	 */
+	public boolean getFitsReferenceRowCorrection()
+	{
+		return fitsReferenceRowCorrection;
+	}
+
+	/**
+	 * Get the number of rows either side averaged by the row correction.
+	 * @return The number of rows.
+	 * @see #fitsReferenceRowWindow
+	 */
+	public int getFitsReferenceRowWindow()
+	{
+		return fitsReferenceRowWindow;
+	}
+
+	/**
+	 * Get the counts added back to the reference pixel corrected data.
+	 * @return The pedestal in counts.
+	 * @see #fitsReferencePedestal
+	 */
+	public double getFitsReferencePedestal()
+	{
+		return fitsReferencePedestal;
+	}
+
+	/**
+	 * Get whether quick-look previews are created.
+	 * @return true if previews are enabled.
+	 * @see #fitsPreviewEnable
+	 */
+	public boolean getFitsPreviewEnable()
+	{
+		return fitsPreviewEnable;
+	}
+
+	/**
+	 * Get whether the quick-look preview is made from a CDS.
+	 * @return true if the preview source is "CDS".
+	 * @see #fitsPreviewSourceCDS
+	 */
+	public boolean getFitsPreviewSourceCDS()
+	{
+		return fitsPreviewSourceCDS;
+	}
+
+	/**
+	 * Get whether a PNG preview is written.
+	 * @return true if a PNG is written.
+	 * @see #fitsPreviewPNG
+	 */
+	public boolean getFitsPreviewPNG()
+	{
+		return fitsPreviewPNG;
+	}
+
+	/**
+	 * Get the preview binning factor.
+	 * @return The binning factor.
+	 * @see #fitsPreviewBin
+	 */
+	public int getFitsPreviewBin()
+	{
+		return fitsPreviewBin;
+	}
+
+	/**
+	 * Get whether frame statistics are computed.
+	 * @return true if frame statistics are enabled.
+	 * @see #fitsStatisticsEnable
+	 */
+	public boolean getFitsStatisticsEnable()
+	{
+		return fitsStatisticsEnable;
+	}
+
+	/**
+	 * Get whether frame statistics are computed from a CDS.
+	 * @return true if the statistics source is "CDS".
+	 * @see #fitsStatisticsSourceCDS
+	 */
+	public boolean getFitsStatisticsSourceCDS()
+	{
+		return fitsStatisticsSourceCDS;
+	}
+
+	/**
+	 * Get the width of the border excluded from the frame statistics.
+	 * @return The border width in pixels.
+	 * @see #fitsStatisticsBorder
+	 */
+	public int getFitsStatisticsBorder()
+	{
+		return fitsStatisticsBorder;
+	}
+
+	/**
+	 * Get the level at or above which a pixel is saturated.
+	 * @return The level, in raw final read counts.
+	 * @see #fitsStatisticsSaturationLevel
+	 */
+	public double getFitsStatisticsSaturationLevel()
+	{
+		return fitsStatisticsSaturationLevel;
+	}
+
+	/**
+	 * Get the number of sky sigma clipping iterations.
+	 * @return The number of iterations.
+	 * @see #fitsStatisticsClipIterationCount
+	 */
+	public int getFitsStatisticsClipIterationCount()
+	{
+		return fitsStatisticsClipIterationCount;
+	}
+
+	/**
+	 * Get the sky clipping threshold.
+	 * @return The threshold, in standard deviations.
+	 * @see #fitsStatisticsClipSigma
+	 */
+	public double getFitsStatisticsClipSigma()
+	{
+		return fitsStatisticsClipSigma;
+	}
+
+	/**
+	 * Get the radius of the box used to measure the brightest source.
+	 * @return The radius in pixels.
+	 * @see #fitsStatisticsSourceRadius
+	 */
+	public int getFitsStatisticsSourceRadius()
+	{
+		return fitsStatisticsSourceRadius;
+	}
+
+	/**
+	 * Get the source detection threshold.
+	 * @return The threshold, in sky standard deviations.
+	 * @see #fitsStatisticsDetectionSigma
+	 */
+	public double getFitsStatisticsDetectionSigma()
+	{
+		return fitsStatisticsDetectionSigma;
+	}
+
+	/**
+	 * Get the pixel scale.
+	 * @return The pixel scale, in arcseconds per pixel.
+	 * @see #fitsStatisticsPixelScale
+	 */
+	public double getFitsStatisticsPixelScale()
+	{
+		return fitsStatisticsPixelScale;
+	}
+
+	/**
+	 * Get whether the FITS DATASUM and CHECKSUM keywords are written.
+	 * @return true if checksums are enabled.
+	 * @see #fitsChecksumEnable
+	 */
+	public boolean getFitsChecksumEnable()
+	{
+		return fitsChecksumEnable;
+	}
+
+	/**
+	 * Get whether the timeline of each command and exposure is recorded.
+	 * @return true if tracing is enabled.
+	 * @see #traceEnable
+	 */
+	public boolean getTraceEnable()
+	{
+		return traceEnable;
+	}
+
+	/**
+	 * Get whether the uncompressed FITS image is deleted after compression.
+	 * @return true if the original is deleted.
+	 * @see #fitsCompressDeleteOriginal
+	 */
+	public boolean getFitsCompressDeleteOriginal()
+	{
+		return fitsCompressDeleteOriginal;
+	}
+
+	/**
+	 * Get whether the FITS images of an OBSTYPE are compressed.
+	 * @param obsType The OBSTYPE.
+	 * @return true if the OBSTYPE has a "ioi.file.fits.compress.&lt;OBSTYPE&gt;" property that is true,
+	 *         false otherwise (including if obsType is null).
+	 * @see #fitsCompressObsTypeMap
+	 */
+	public boolean getFitsCompressEnable(String obsType)
+	{
+		Boolean compress = null;
+
+		if(obsType == null)
+			return false;
+		compress = fitsCompressObsTypeMap.get(obsType);
+		return (compress != null)&&compress.booleanValue();
+	}
+
+	/**
+	 * Get the number of image rows in each compressed tile.
+	 * @return The number of rows.
+	 * @see #fitsCompressTileRowCount
+	 */
+	public int getFitsCompressTileRowCount()
+	{
+		return fitsCompressTileRowCount;
+	}
+
+	/**
+	 * Get the warm detector temperature warning limit.
+	 * @return The temperature in Kelvin.
+	 * @see #detectorTemperatureWarmWarn
+	 */
+	public double getDetectorTemperatureWarmWarn()
+	{
+		return detectorTemperatureWarmWarn;
+	}
+
+	/**
+	 * Get the warm detector temperature failure limit.
+	 * @return The temperature in Kelvin.
+	 * @see #detectorTemperatureWarmFail
+	 */
+	public double getDetectorTemperatureWarmFail()
+	{
+		return detectorTemperatureWarmFail;
+	}
+
+	/**
+	 * Get the cold detector temperature warning limit.
+	 * @return The temperature in Kelvin.
+	 * @see #detectorTemperatureColdWarn
+	 */
+	public double getDetectorTemperatureColdWarn()
+	{
+		return detectorTemperatureColdWarn;
+	}
+
+	/**
+	 * Get the cold detector temperature failure limit.
+	 * @return The temperature in Kelvin.
+	 * @see #detectorTemperatureColdFail
+	 */
+	public double getDetectorTemperatureColdFail()
+	{
+		return detectorTemperatureColdFail;
+	}
+
+	/**
+	 * Get the data processing priority of a priority class. Higher numbers are processed first.
+	 * @param priorityClass The priority class, normally the OBSTYPE of the data (EXPOSURE, STANDARD, BIAS...).
+	 * @return The priority of the class, or the "default" priority if the class (or null) has no priority.
+	 * @see #dataProcessingPriorityMap
+	 */
+	public int getDataProcessingPriority(String priorityClass)
+	{
+		Integer priority = null;
+
+		if(priorityClass != null)
+			priority = dataProcessingPriorityMap.get(priorityClass);
+		if(priority == null)
+			priority = dataProcessingPriorityMap.get("default");
+		return priority.intValue();
+	}
+
+	/**
+	 * Get the time a waiting data processing item takes to gain one priority level.
+	 * @return The time in milliseconds, 0 if aging is disabled.
+	 * @see #dataProcessingPriorityAgingTime
+	 */
+	public long getDataProcessingPriorityAgingTime()
+	{
+		return dataProcessingPriorityAgingTime;
+	}
+
+	/**
+	 * Get whether to journal the data processing queue.
+	 * @return true if the queue is journalled.
+	 * @see #dataProcessingJournalEnable
+	 */
+	public boolean getDataProcessingJournalEnable()
+	{
+		return dataProcessingJournalEnable;
+	}
+
+	/**
+	 * Get the data processing journal file.
+	 * @return The file.
+	 * @see #dataProcessingJournalFile
+	 */
+	public File getDataProcessingJournalFile()
+	{
+		return dataProcessingJournalFile;
+	}
+
+	/**
+	 * Get how often the data processing journal is fsync'ed.
+	 * @return The period in milliseconds.
+	 * @see #dataProcessingJournalSyncPeriod
+	 */
+	public long getDataProcessingJournalSyncPeriod()
+	{
+		return dataProcessingJournalSyncPeriod;
+	}
+
+	/**
+	 * Get whether to save a snapshot of each data processing item.
+	 * @return true if snapshots are saved.
+	 * @see #dataProcessingSnapshotEnable
+	 */
+	public boolean getDataProcessingSnapshotEnable()
+	{
+		return dataProcessingSnapshotEnable;
+	}
+
+	/**
+	 * Get the directory the data processing item snapshots are saved in.
+	 * @return The directory.
+	 * @see #dataProcessingSnapshotDirectory
+	 */
+	public File getDataProcessingSnapshotDirectory()
+	{
+		return dataProcessingSnapshotDirectory;
+	}
+
+	/**
+	 * Get whether to keep a copy of each raw ramp next to it's snapshot.
+	 * @return true if the raw ramps are kept.
+	 * @see #dataProcessingSnapshotRetainRamp
+	 */
+	public boolean getDataProcessingSnapshotRetainRamp()
+	{
+		return dataProcessingSnapshotRetainRamp;
+	}
+
+	/**
+	 * Get whether to apply calibration products to each read.
+	 * @return true if calibration is enabled.
+	 * @see #calibrationEnable
+	 */
+	public boolean getCalibrationEnable()
+	{
+		return calibrationEnable;
+	}
+
+	/**
+	 * Get the directory containing the calibration products.
+	 * @return The directory.
+	 * @see #calibrationDirectory
+	 */
+	public File getCalibrationDirectory()
+	{
+		return calibrationDirectory;
+	}
+
+	/**
+	 * Get the maximum number of bytes the calibration product cache may map.
+	 * @return The number of bytes.
+	 * @see #calibrationCacheByteCount
+	 */
+	public long getCalibrationCacheByteCount()
+	{
+		return calibrationCacheByteCount;
+	}
+
+	/**
+	 * Get whether to use bad pixel masks.
+	 * @return true if bad pixel masks are used.
+	 * @see #calibrationBadPixelMaskEnable
+	 */
+	public boolean getCalibrationBadPixelMaskEnable()
+	{
+		return calibrationBadPixelMaskEnable;
+	}
+
+	/**
+	 * Get whether to use nonlinearity coefficients.
+	 * @return true if nonlinearity coefficients are used.
+	 * @see #calibrationNonlinearityEnable
+	 */
+	public boolean getCalibrationNonlinearityEnable()
+	{
+		return calibrationNonlinearityEnable;
+	}
+
+	/**
+	 * Get whether to use darks.
+	 * @return true if darks are used.
+	 * @see #calibrationDarkEnable
+	 */
+	public boolean getCalibrationDarkEnable()
+	{
+		return calibrationDarkEnable;
+	}
+
+	/**
+	 * Get the maximum number of ramps waiting for data processing.
+	 * @return The number of ramps, 0 for no limit.
+	 * @see #dataProcessingBacklogRampCountMax
+	 */
+	public int getDataProcessingBacklogRampCountMax()
+	{
+		return dataProcessingBacklogRampCountMax;
+	}
+
+	/**
+	 * Get the maximum number of bytes of ramps waiting for data processing.
+	 * @return The number of bytes, 0 for no limit.
+	 * @see #dataProcessingBacklogByteCountMax
+	 */
+	public long getDataProcessingBacklogByteCountMax()
+	{
+		return dataProcessingBacklogByteCountMax;
+	}
+
+	/**
+	 * Get the root directory the IDL Socket Server writes ramps under.
+	 * @return The directory.
+	 * @see #dataDirectoryRoot
+	 */
+	public String getDataDirectoryRoot()
+	{
+		return dataDirectoryRoot;
+	}
+
+	/**
+	 * Get the directory, under the root directory, read up the ramp ramps are written to.
+	 * @return The directory name.
+	 * @see #dataDirectoryUpTheRamp
+	 */
+	public String getDataDirectoryUpTheRamp()
+	{
+		return dataDirectoryUpTheRamp;
+	}
+
+	/**
+	 * Get the directory, under the root directory, Fowler sampling ramps are written to.
+	 * @return The directory name.
+	 * @see #dataDirectoryFowler
+	 */
+	public String getDataDirectoryFowler()
+	{
+		return dataDirectoryFowler;
+	}
+
+	/**
+	 * Get whether ABORT discards the ramps the aborted command queued for data processing.
+	 * @return true if the ramps are discarded.
+	 * @see #abortDataProcessingDiscard
+	 */
+	public boolean getAbortDataProcessingDiscard()
+	{
+		return abortDataProcessingDiscard;
+	}
+
+	/**
+	 * Get the mirror fold position to move to.
+	 * @return The position.
+	 * @see #mirrorFoldPosition
+	 */
+	public int getMirrorFoldPosition()
+	{
+		return mirrorFoldPosition;
+	}
+
+	/**
+	 * Get the instrument focus offset.
+	 * @return The offset.
+	 * @see #focusOffset
+	 */
+	public double getFocusOffset()
+	{
+		return focusOffset;
+	}
+
+	/**
+	 * Get whether the temperature controller is used.
+	 * @return true if it is used.
+	 * @see #tempControlEnable
+	 */
+	public boolean getTempControlEnable()
+	{
+		return tempControlEnable;
+	}
+
+	/**
+	 * Get the target temperature of the detector control loop.
+	 * @return The temperature in Kelvin.
+	 * @see #tempControlTargetTemperature
+	 */
+	public double getTempControlTargetTemperature()
+	{
+		return tempControlTargetTemperature;
+	}
+
+	/**
+	 * Get the temperature controller input the detector temperature is read from.
+	 * @return The input.
+	 * @see #tempControlDetectorInput
+	 */
+	public char getTempControlDetectorInput()
+	{
+		return tempControlDetectorInput;
+	}
+
+	/**
+	 * Get the temperature controller input the SIDECAR temperature is read from.
+	 * @return The input.
+	 * @see #tempControlSidecarInput
+	 */
+	public char getTempControlSidecarInput()
+	{
+		return tempControlSidecarInput;
+	}
+
+	/**
+	 * Get the order number offset the ISS GET_FITS keywords are added at.
+	 * @return The offset.
+	 * @see #issOrderNumberOffset
+	 */
+	public int getISSOrderNumberOffset()
+	{
+		return issOrderNumberOffset;
+	}
+
+	/**
+	 * Get the order number offset the BSS GET_FITS keywords are added at.
+	 * @return The offset.
+	 * @see #bssOrderNumberOffset
+	 */
+	public int getBSSOrderNumberOffset()
+	{
+		return bssOrderNumberOffset;
+	}
+
+	/**
+	 * Get whether GET_FITS keywords are cached.
+	 * @return true if they are cached.
+	 * @see #fitsCacheEnable
+	 */
+	public boolean getFitsCacheEnable()
+	{
+		return fitsCacheEnable;
+	}
+
+	/**
+	 * Get how long STATIC GET_FITS keywords are cached for.
+	 * @return The lifetime in milliseconds.
+	 * @see #fitsCacheStaticLifetime
+	 */
+	public long getFitsCacheStaticLifetime()
+	{
+		return fitsCacheStaticLifetime;
+	}
+
+	/**
+	 * Get the class of keywords with no explicit classification, for a GET_FITS source.
+	 * @param source The source, one of FitsHeaderSourceCache.SOURCE_ISS or SOURCE_BSS.
+	 * @return The keyword class.
+	 * @see #fitsCacheDefaultClass
+	 */
+	public int getFitsCacheDefaultClass(int source)
+	{
+		return fitsCacheDefaultClass[source];
+	}
+
+	/**
+	 * Get the explicitly classified keywords of a GET_FITS source.
+	 * @param source The source, one of FitsHeaderSourceCache.SOURCE_ISS or SOURCE_BSS.
+	 * @return An unmodifiable map from keyword to keyword class.
+	 * @see #fitsCacheKeywordClassMapList
+	 */
+	public Map<String,Integer> getFitsCacheKeywordClassMap(int source)
+	{
+		return fitsCacheKeywordClassMapList.get(source);
+	}
+
+	/**
+	 * Get the number of recent exposures whose trace timelines GET_STATUS reports.
+	 * @return The number of exposures.
+	 * @see #traceGetStatusExposureCount
+	 */
+	public int getTraceGetStatusExposureCount()
+	{
+		return traceGetStatusExposureCount;
+	}
+
+	/**
+	 * Get whether the IDL link is supervised.
+	 * @return true if it is supervised.
+	 * @see #idlLinkSupervisorEnable
+	 */
+	public boolean getIDLLinkSupervisorEnable()
+	{
+		return idlLinkSupervisorEnable;
+	}
+
+	/**
+	 * Get how often the IDL link health is checked.
+	 * @return The period in milliseconds.
+	 * @see #idlLinkHealthPeriod
+	 */
+	public long getIDLLinkHealthPeriod()
+	{
+		return idlLinkHealthPeriod;
+	}
+
+	/**
+	 * Get how long the IDL link health check waits for a reply.
+	 * @return The timeout in milliseconds.
+	 * @see #idlLinkHealthTimeout
+	 */
+	public long getIDLLinkHealthTimeout()
+	{
+		return idlLinkHealthTimeout;
+	}
+
+	/**
+	 * Get how long re-applying the detector state may take.
+	 * @return The timeout in milliseconds.
+	 * @see #idlLinkReapplyTimeout
+	 */
+	public long getIDLLinkReapplyTimeout()
+	{
+		return idlLinkReapplyTimeout;
+	}
+
+	/**
+	 * Get the first IDL link reconnection delay.
+	 * @return The delay in milliseconds.
+	 * @see #idlLinkReconnectDelayInitial
+	 */
+	public long getIDLLinkReconnectDelayInitial()
+	{
+		return idlLinkReconnectDelayInitial;
+	}
+
+	/**
+	 * Get the longest IDL link reconnection delay.
+	 * @return The delay in milliseconds.
+	 * @see #idlLinkReconnectDelayMax
+	 */
+	public long getIDLLinkReconnectDelayMax()
+	{
+		return idlLinkReconnectDelayMax;
+	}
+
+	/**
+	 * Get how many times a command is retried over a re-established IDL link.
+	 * @return The number of retries.
+	 * @see #idlLinkRetryCount
+	 */
+	public int getIDLLinkRetryCount()
+	{
+		return idlLinkRetryCount;
+	}
+
+	/**
+	 * Get how long a retained command waits for the IDL link.
+	 * @return The timeout in milliseconds.
+	 * @see #idlLinkRetainTimeout
+	 */
+	public long getIDLLinkRetainTimeout()
+	{
+		return idlLinkRetainTimeout;
+	}
+
+	/**
+	 * Get whether the ramp timing model learns from each ramp.
+	 * @return true if it learns.
+	 * @see #rampTimingLearnEnable
+	 */
+	public boolean getRampTimingLearnEnable()
+	{
+		return rampTimingLearnEnable;
+	}
+
+	/**
+	 * Get the ramp timing model learning rate.
+	 * @return The learning rate, in the range (0,1].
+	 * @see #rampTimingLearningRate
+	 */
+	public double getRampTimingLearningRate()
+	{
+		return rampTimingLearningRate;
+	}
+
+	/**
+	 * Get the ramp timing residual above which a ramp is not learnt from.
+	 * @return The threshold in milliseconds.
+	 * @see #rampTimingOutlierThreshold
+	 */
+	public long getRampTimingOutlierThreshold()
+	{
+		return rampTimingOutlierThreshold;
+	}
+
+	/**
+	 * Get the file the ramp timing model is saved to.
+	 * @return The filename.
+	 * @see #rampTimingFilename
+	 */
+	public String getRampTimingFilename()
+	{
+		return rampTimingFilename;
+	}
+
+	/**
+	 * Get whether events are recorded continuously.
+	 * @return true if events are recorded.
+	 * @see #eventRecordingEnable
+	 */
+	public boolean getEventRecordingEnable()
+	{
+		return eventRecordingEnable;
+	}
+
+	/**
+	 * Get the directory the event recording files are written to.
+	 * @return The directory.
+	 * @see #eventRecordingDirectory
+	 */
+	public File getEventRecordingDirectory()
+	{
+		return eventRecordingDirectory;
+	}
+
+	/**
+	 * Get the maximum length of each event recording file.
+	 * @return The length in bytes.
+	 * @see #eventRecordingFileLengthMax
+	 */
+	public long getEventRecordingFileLengthMax()
+	{
+		return eventRecordingFileLengthMax;
+	}
+
+	/**
+	 * Get the number of event recording files used in rotation.
+	 * @return The number of files.
+	 * @see #eventRecordingFileCount
+	 */
+	public int getEventRecordingFileCount()
+	{
+		return eventRecordingFileCount;
+	}
+}
@@ -0,0 +1,366 @@
+// IOIExecutors.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import ngat.util.logging.*;
+
+/**
+ * This class holds the thread pools shared by the IO:I software, so tasks are run on re-used, named threads
+ * rather than each part of the software creating (and destroying) it's own threads:
+ * <ul>
+ * <li><b>Blocking</b> A cached pool for tasks that spend their time waiting on I/O (IDL Socket Server
+ *     commands, controller startup phases). Threads are created on demand, and idle threads are
+ *     retired after "ioi.executor.blocking.keep_alive_time" milliseconds.
+ * <li><b>Compute</b> A bounded pool of "ioi.executor.compute.thread_count" threads (the number of
+ *     available processors if less than 1), used for CPU bound pixel processing (tile compression,
+ *     quick look binning, frame statistics, reference pixel correction). Sharing one pool stops these
+ *     from competing with each other for the processors.
+ * <li><b>Scheduled</b> A pool of "ioi.executor.scheduled.thread_count" threads, used to run periodic
+ *     pollers (such as the IDL link supervisor).
+ * </ul>
+ * Each pool's threads are daemon threads, named after the pool, with the priority returned by
+ * IOIStatus.getThreadPriorityNormal. The pool utilisation can be retrieved for GET_STATUS.
+ * @see IOI#getExecutors
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class IOIExecutors
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * Pool number of the pool used for blocking I/O tasks.
+	 */
+	public final static int POOL_BLOCKING  = 0;
+	/**
+	 * Pool number of the pool used for CPU bound tasks.
+	 */
+	public final static int POOL_COMPUTE   = 1;
+	/**
+	 * Pool number of the pool used for periodic tasks.
+	 */
+	public final static int POOL_SCHEDULED = 2;
+	/**
+	 * The number of pools.
+	 */
+	public final static int POOL_COUNT     = 3;
+	/**
+	 * The pool names, used to name the threads and in GET_STATUS keywords. Indexed by pool number.
+	 */
+	public final static String POOL_NAME_LIST[] = {"Blocking","Compute","Scheduled"};
+	/**
+	 * The IOI object.
+	 */
+	protected IOI ioi = null;
+	/**
+	 * The IOIStatus object.
+	 */
+	protected IOIStatus status = null;
+	/**
+	 * The pool used for blocking I/O tasks.
+	 */
+	protected ThreadPoolExecutor blockingExecutor = null;
+	/**
+	 * The pool used for CPU bound tasks.
+	 */
+	protected ThreadPoolExecutor computeExecutor = null;
+	/**
+	 * The pool used for periodic tasks.
+	 */
+	protected ScheduledThreadPoolExecutor scheduledExecutor = null;
+
+	/**
+	 * Default constructor.
+	 */
+	public IOIExecutors()
+	{
+		super();
+	}
+
+	/**
+	 * Set the IOI object.
+	 * @param o The IOI object.
+	 * @see #ioi
+	 * @see #status
+	 */
+	public void setIOI(IOI o)
+	{
+		ioi = o;
+		status = ioi.getStatus();
+	}
+
+	/**
+	 * Create the thread pools, configured from the "ioi.executor.*" properties.
+	 * @exception Exception Thrown if retrieving property values fails.
+	 * @see #blockingExecutor
+	 * @see #computeExecutor
+	 * @see #scheduledExecutor
+	 * @see #configure
+	 */
+	public void init() throws Exception
+	{
+		blockingExecutor = new ThreadPoolExecutor(0,Integer.MAX_VALUE,60000,TimeUnit.MILLISECONDS,
+						  new SynchronousQueue<Runnable>(),
+						  new PoolThreadFactory(POOL_NAME_LIST[POOL_BLOCKING]));
+		computeExecutor = new ThreadPoolExecutor(1,1,0,TimeUnit.MILLISECONDS,
+						 new LinkedBlockingQueue<Runnable>(),
+						 new PoolThreadFactory(POOL_NAME_LIST[POOL_COMPUTE]));
+		scheduledExecutor = new ScheduledThreadPoolExecutor(1,new PoolThreadFactory(POOL_NAME_LIST[POOL_SCHEDULED]));
+		configure();
+	}
+
+	/**
+	 * Configure the thread pool sizes from the properties. This is called by init, and again on a
+	 * REDATUM reboot, after the properties have been reloaded, so the pools can be resized without
+	 * restarting the robotic software.
+	 * <ul>
+	 * <li>"ioi.executor.blocking.keep_alive_time" How long idle blocking threads are kept, in milliseconds.
+	 * <li>"ioi.executor.compute.thread_count" The number of compute threads. If this is less than 1,
+	 *     the number of available processors is used.
+	 * <li>"ioi.executor.scheduled.thread_count" The number of threads used to run periodic tasks.
+	 * </ul>
+	 * @exception Exception Thrown if retrieving property values fails, or a thread count is illegal.
+	 * @see #blockingExecutor
+	 * @see #computeExecutor
+	 * @see #scheduledExecutor
+	 */
+	public void configure() throws Exception
+	{
+		long keepAliveTime;
+		int computeThreadCount,scheduledThreadCount;
+
+		keepAliveTime = status.getPropertyLong("ioi.executor.blocking.keep_alive_time");
+		computeThreadCount = status.getPropertyInteger("ioi.executor.compute.thread_count");
+		if(computeThreadCount < 1)
+			computeThreadCount = Runtime.getRuntime().availableProcessors();
+		scheduledThreadCount = status.getPropertyInteger("ioi.executor.scheduled.thread_count");
+		if(scheduledThreadCount < 1)
+		{
+			throw new Exception(this.getClass().getName()+":configure:Illegal scheduled thread count:"+
+					    scheduledThreadCount);
+		}
+		blockingExecutor.setKeepAliveTime(keepAliveTime,TimeUnit.MILLISECONDS);
+		// the maximum must not be below the core size at any point, so the order depends on the direction
+		if(computeThreadCount > computeExecutor.getMaximumPoolSize())
+		{
+			computeExecutor.setMaximumPoolSize(computeThreadCount);
+			computeExecutor.setCorePoolSize(computeThreadCount);
+		}
+		else
+		{
+			computeExecutor.setCorePoolSize(computeThreadCount);
+			computeExecutor.setMaximumPoolSize(computeThreadCount);
+		}
+		scheduledExecutor.setCorePoolSize(scheduledThreadCount);
+		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+":configure:Blocking keep alive time "+
+			keepAliveTime+" ms, "+computeThreadCount+" compute threads, "+scheduledThreadCount+
+			" scheduled threads.");
+	}
+
+	/**
+	 * Get the pool used for tasks that block on I/O.
+	 * @return The executor service.
+	 * @see #blockingExecutor
+	 */
+	public ExecutorService getBlockingExecutor()
+	{
+		return blockingExecutor;
+	}
+
+	/**
+	 * Get the bounded pool used for CPU bound tasks.
+	 * @return The executor service.
+	 * @see #computeExecutor
+	 */
+	public ExecutorService getComputeExecutor()
+	{
+		return computeExecutor;
+	}
+
+	/**
+	 * Get the number of threads in the compute pool. CPU bound work should be split into at least this
+	 * many tasks, so all the threads are used.
+	 * @return The number of compute threads.
+	 * @see #computeExecutor
+	 */
+	public int getComputeThreadCount()
+	{
+		return computeExecutor.getMaximumPoolSize();
+	}
+
+	/**
+	 * Get the pool used to run periodic tasks.
+	 * @return The scheduled executor service.
+	 * @see #scheduledExecutor
+	 */
+	public ScheduledExecutorService getScheduledExecutor()
+	{
+		return scheduledExecutor;
+	}
+
+	/**
+	 * Get a pool by number, for reporting it's utilisation.
+	 * @param pool The pool number, one of POOL_BLOCKING, POOL_COMPUTE, POOL_SCHEDULED.
+	 * @return The pool.
+	 * @exception IllegalArgumentException Thrown if the pool number is illegal.
+	 */
+	protected ThreadPoolExecutor getPool(int pool) throws IllegalArgumentException
+	{
+		switch(pool)
+		{
+			case POOL_BLOCKING:
+				return blockingExecutor;
+			case POOL_COMPUTE:
+				return computeExecutor;
+			case POOL_SCHEDULED:
+				return scheduledExecutor;
+			default:
+				throw new IllegalArgumentException(this.getClass().getName()+":getPool:Illegal pool:"+pool);
+		}
+	}
+
+	/**
+	 * Get the number of threads in a pool that are running a task.
+	 * @param pool The pool number, one of POOL_BLOCKING, POOL_COMPUTE, POOL_SCHEDULED.
+	 * @return The number of active threads.
+	 * @exception IllegalArgumentException Thrown if the pool number is illegal.
+	 * @see #getPool
+	 */
+	public int getActiveCount(int pool) throws IllegalArgumentException
+	{
+		return getPool(pool).getActiveCount();
+	}
+
+	/**
+	 * Get the number of threads in a pool (active or idle).
+	 * @param pool The pool number, one of POOL_BLOCKING, POOL_COMPUTE, POOL_SCHEDULED.
+	 * @return The number of threads.
+	 * @exception IllegalArgumentException Thrown if the pool number is illegal.
+	 * @see #getPool
+	 */
+	public int getPoolSize(int pool) throws IllegalArgumentException
+	{
+		return getPool(pool).getPoolSize();
+	}
+
+	/**
+	 * Get the largest number of threads there have ever been in a pool.
+	 * @param pool The pool number, one of POOL_BLOCKING, POOL_COMPUTE, POOL_SCHEDULED.
+	 * @return The number of threads.
+	 * @exception IllegalArgumentException Thrown if the pool number is illegal.
+	 * @see #getPool
+	 */
+	public int getLargestPoolSize(int pool) throws IllegalArgumentException
+	{
+		return getPool(pool).getLargestPoolSize();
+	}
+
+	/**
+	 * Get the number of tasks waiting in a pool's queue. For the scheduled pool, this includes the
+	 * periodic tasks waiting for their next run.
+	 * @param pool The pool number, one of POOL_BLOCKING, POOL_COMPUTE, POOL_SCHEDULED.
+	 * @return The number of queued tasks.
+	 * @exception IllegalArgumentException Thrown if the pool number is illegal.
+	 * @see #getPool
+	 */
+	public int getQueueSize(int pool) throws IllegalArgumentException
+	{
+		return getPool(pool).getQueue().size();
+	}
+
+	/**
+	 * Get the (approximate) number of tasks a pool has completed.
+	 * @param pool The pool number, one of POOL_BLOCKING, POOL_COMPUTE, POOL_SCHEDULED.
+	 * @return The number of completed tasks.
+	 * @exception IllegalArgumentException Thrown if the pool number is illegal.
+	 * @see #getPool
+	 */
+	public long getCompletedTaskCount(int pool) throws IllegalArgumentException
+	{
+		return getPool(pool).getCompletedTaskCount();
+	}
+
+	/**
+	 * Get the number of live threads in the Java virtual machine, including those not in a pool.
+	 * @return The number of threads.
+	 * @see java.lang.management.ThreadMXBean#getThreadCount
+	 */
+	public static int getThreadCount()
+	{
+		return ManagementFactory.getThreadMXBean().getThreadCount();
+	}
+
+	/**
+	 * Get the peak number of live threads in the Java virtual machine since it started.
+	 * @return The number of threads.
+	 * @see java.lang.management.ThreadMXBean#getPeakThreadCount
+	 */
+	public static int getPeakThreadCount()
+	{
+		return ManagementFactory.getThreadMXBean().getPeakThreadCount();
+	}
+
+	/**
+	 * Shutdown the pools. Queued periodic tasks are cancelled, running tasks are interrupted.
+	 * The pools cannot be used after this has been called.
+	 */
+	public void shutdown()
+	{
+		scheduledExecutor.shutdownNow();
+		blockingExecutor.shutdownNow();
+		computeExecutor.shutdownNow();
+	}
+
+	/**
+	 * Thread factory used by the pools. Each thread is a daemon thread (so a task blocked in socket I/O does
+	 * not stop the IO:I exiting), named "IOI:&lt;pool name&gt;:&lt;thread number&gt;", with normal priority.
+	 * @see IOIStatus#getThreadPriorityNormal
+	 */
+	protected class PoolThreadFactory implements ThreadFactory
+	{
+		/**
+		 * The name of the pool the threads are created for.
+		 */
+		protected String poolName = null;
+		/**
+		 * The number of threads created, used to name the next thread.
+		 */
+		protected int threadCount = 0;
+
+		/**
+		 * Constructor.
+		 * @param name The name of the pool.
+		 * @see #poolName
+		 */
+		public PoolThreadFactory(String name)
+		{
+			super();
+			poolName = name;
+		}
+
+		/**
+		 * Create a thread for the pool.
+		 * @param r The runnable the thread runs.
+		 * @return The thread.
+		 * @see #poolName
+		 * @see #threadCount
+		 */
+		public synchronized Thread newThread(Runnable r)
+		{
+			Thread thread = null;
+
+			threadCount++;
+			thread = new Thread(r,"IOI:"+poolName+":"+threadCount);
+			thread.setDaemon(true);
+			thread.setPriority(status.getThreadPriorityNormal());
+			return thread;
+		}
+	}
+}
@@ -69,9 +69,18 @@ public class IOIStatus
 	private int currentMode = GET_STATUS_DONE.MODE_IDLE;
 	/**
 	 * A list of properties held in the properties file. This contains configuration information in IO:I
-	 * that needs to be changed irregularily.
+	 * that needs to be changed irregularily. This is volatile as it is replaced on reload, whilst
+	 * other threads read it without synchronisation.
 	 */
-	private Properties properties = null;
+	private volatile Properties properties = null;
+	/**
+	 * A typed, validated snapshot of the configuration values used on the exposure and data processing
+	 * paths, built from properties whenever they are loaded. The instance is immutable and is replaced
+	 * as a whole on reload, so readers see either the old or the new configuration, never a mixture.
+	 * This is volatile so getConfig, which is not synchronised, sees the new instance (fully constructed)
+	 * as soon as it is replaced.
+	 */
+	private volatile IOIConfig config = null;
 	/**
 	 * The current unique config ID, held on disc over reboots.
 	 * Incremented each time a new configuration is attained,
@@ -86,6 +95,12 @@ public class IOIStatus
 	 * we get an error about setup not being complete, rather than an error about NULL FITS values.
 	 */
 	private String configName = "UNKNOWN";
+	/**
+	 * The detector window set by the last successful CONFIG, as an array of 4 integers
+	 * (xStart, xStop, yStart, yStop: zero based detector pixels, inclusive, as sent in SetWinParams),
+	 * or null if the whole array is read out.
+	 */
+	private int detectorWindow[] = null;
 	/**
 	 * Cached copy of the last BSS focus offset value, retrieved from the BSS via a GET_FOCUS_OFFSET.
 	 * We cache this so we can write FITS headers without re-querying the BSS.
@@ -115,6 +130,26 @@ public class IOIStatus
 	 * A timestamp of when the GetConfig command hastable was last cached.
 	 */
 	private Date getConfigCommandCacheTimestamp = null;
+	/**
+	 * The number of commands that have been aborted.
+	 * @see #addAbortLatency
+	 */
+	private int abortCount = 0;
+	/**
+	 * The time, in milliseconds, between the last aborted command being aborted and it returning a DONE.
+	 * @see #addAbortLatency
+	 */
+	private long lastAbortLatency = 0;
+	/**
+	 * The longest time, in milliseconds, between an aborted command being aborted and it returning a DONE.
+	 * @see #addAbortLatency
+	 */
+	private long maxAbortLatency = 0;
+	/**
+	 * The sum of the abort latencies, in milliseconds, used to calculate the mean.
+	 * @see #addAbortLatency
+	 */
+	private long totalAbortLatency = 0;
 
 	/**
 	 * Default constructor. Initialises the properties.
@@ -127,39 +162,38 @@ public class IOIStatus
 
 	/**
 	 * The load method for the class. This loads the property file from disc, using the specified
-	 * filename. Any old properties are first cleared.
+	 * filename. The properties are loaded into a new Properties object, which is then used to build
+	 * a new IOIConfig. Only if the configuration is valid are the properties and configuration replaced,
+	 * so a bad configuration file leaves the currently loaded configuration in place.
 	 * The configId unique persistent integer is then initialised, using a filename stored in the properties.
 	 * @see #properties
+	 * @see #config
+	 * @see #loadFile
 	 * @see #initialiseConfigId
 	 * @see #DEFAULT_NET_PROPERTY_FILE_NAME
 	 * @see #DEFAULT_PROPERTY_FILE_NAME
 	 * @see #DEFAULT_FITS_PROPERTY_FILE_NAME
 	 * @exception FileNotFoundException Thrown if a configuration file is not found.
 	 * @exception IOException Thrown if an IO error occurs whilst loading a configuration file.
+	 * @exception IllegalArgumentException Thrown if the loaded configuration is not valid.
+	 * @see IOIConfig#IOIConfig
 	 */
-	public void load()  throws FileNotFoundException, IOException
+	public void load()  throws FileNotFoundException, IOException, IllegalArgumentException
 	{
-		String netFilename = null;
-		String filename = null;
-		FileInputStream fileInputStream = null;
+		Properties newProperties = null;
+		IOIConfig newConfig = null;
 
-	// clear old properties
-		properties.clear();
+		newProperties = new Properties();
 	// network properties load
-		netFilename = DEFAULT_NET_PROPERTY_FILE_NAME;
-		fileInputStream = new FileInputStream(netFilename);
-		properties.load(fileInputStream);
-		fileInputStream.close();
+		loadFile(newProperties,DEFAULT_NET_PROPERTY_FILE_NAME);
 	// normal properties load
-		filename = DEFAULT_PROPERTY_FILE_NAME;
-		fileInputStream = new FileInputStream(filename);
-		properties.load(fileInputStream);
-		fileInputStream.close();
+		loadFile(newProperties,DEFAULT_PROPERTY_FILE_NAME);
 	// fits properties load
-		filename = DEFAULT_FITS_PROPERTY_FILE_NAME;
-		fileInputStream = new FileInputStream(filename);
-		properties.load(fileInputStream);
-		fileInputStream.close();
+		loadFile(newProperties,DEFAULT_FITS_PROPERTY_FILE_NAME);
+	// validate, and only then swap in the new properties and configuration
+		newConfig = new IOIConfig(newProperties);
+		properties = newProperties;
+		config = newConfig;
 	// initialise configId
 		initialiseConfigId();
 	}
@@ -170,35 +204,89 @@ public class IOIStatus
 	 * involve resetting up the server connection thread which may be in use. If properties have been
 	 * deleted from the loaded files, reload does not clear these properties. Any new properties or
 	 * ones where the values have changed will change.
+	 * The files are loaded into a copy of the current properties, which is used to build a new IOIConfig.
+	 * Only if the new configuration is valid are the properties and configuration replaced, so a
+	 * mistake in an edited configuration file is reported without changing the configuration in use.
 	 * The configId unique persistent integer is then initialised, using a filename stored in the properties.
 	 * @see #properties
+	 * @see #config
+	 * @see #loadFile
 	 * @see #initialiseConfigId
 	 * @see #DEFAULT_NET_PROPERTY_FILE_NAME
 	 * @see #DEFAULT_PROPERTY_FILE_NAME
 	 * @see #DEFAULT_FITS_PROPERTY_FILE_NAME
 	 * @exception FileNotFoundException Thrown if a configuration file is not found.
 	 * @exception IOException Thrown if an IO error occurs whilst loading a configuration file.
+	 * @exception IllegalArgumentException Thrown if the reloaded configuration is not valid.
+	 * @see IOIConfig#IOIConfig
 	 */
-	public void reload() throws FileNotFoundException,IOException
+	public void reload() throws FileNotFoundException,IOException,IllegalArgumentException
 	{
-		String filename = null;
-		FileInputStream fileInputStream = null;
+		Properties newProperties = null;
+		IOIConfig newConfig = null;
 
 	// don't clear old properties, the network properties are not re-loaded
+		newProperties = new Properties();
+		newProperties.putAll(properties);
 	// normal properties load
-		filename = DEFAULT_PROPERTY_FILE_NAME;
-		fileInputStream = new FileInputStream(filename);
-		properties.load(fileInputStream);
-		fileInputStream.close();
+		loadFile(newProperties,DEFAULT_PROPERTY_FILE_NAME);
 	// fits properties load
-		filename = DEFAULT_FITS_PROPERTY_FILE_NAME;
-		fileInputStream = new FileInputStream(filename);
-		properties.load(fileInputStream);
-		fileInputStream.close();
+		loadFile(newProperties,DEFAULT_FITS_PROPERTY_FILE_NAME);
+	// validate, and only then swap in the new properties and configuration
+		newConfig = new IOIConfig(newProperties);
+		properties = newProperties;
+		config = newConfig;
 	// initialise configId
 		initialiseConfigId();
 	}
 
+	/**
+	 * Load a property file into the specified properties.
+	 * @param p The properties to load into.
+	 * @param filename The filename of the property file.
+	 * @exception FileNotFoundException Thrown if the file is not found.
+	 * @exception IOException Thrown if an IO error occurs whilst loading the file.
+	 */
+	protected void loadFile(Properties p,String filename) throws FileNotFoundException,IOException
+	{
+		FileInputStream fileInputStream = null;
+
+		fileInputStream = new FileInputStream(filename);
+		try
+		{
+			p.load(fileInputStream);
+		}
+		finally
+		{
+			fileInputStream.close();
+		}
+	}
+
+	/**
+	 * Get a copy of the currently loaded properties. Used by a differential REDATUM to compare the
+	 * configuration before and after a reload.
+	 * @return A new Properties object, containing the same keys and values as the loaded properties.
+	 * @see #properties
+	 * @see ConfigurationDifference
+	 */
+	public Properties getPropertiesCopy()
+	{
+		return (Properties)(properties.clone());
+	}
+
+	/**
+	 * Get the typed configuration snapshot. This method is deliberately not synchronized: the returned
+	 * object is immutable (all it's fields are final), so it is safe to read from any thread. A reader
+	 * racing a reload may get the previous snapshot, which is self-consistent. Callers that need several
+	 * values should get the snapshot once and read them all from it.
+	 * @return The current configuration, or null if load has not been called successfully.
+	 * @see #config
+	 */
+	public IOIConfig getConfig()
+	{
+		return config;
+	}
+
 	/**
 	 * Set the logging level for IO:I.
 	 * @param level The level of logging.
@@ -345,6 +433,66 @@ public class IOIStatus
 		return exposureStartTime;
 	}
 
+	/**
+	 * Add the abort latency of an aborted command to the abort statistics.
+	 * @param ms The time in milliseconds between the command being aborted and it returning a DONE.
+	 * @see #abortCount
+	 * @see #lastAbortLatency
+	 * @see #maxAbortLatency
+	 * @see #totalAbortLatency
+	 */
+	public synchronized void addAbortLatency(long ms)
+	{
+		abortCount++;
+		lastAbortLatency = ms;
+		if(ms > maxAbortLatency)
+			maxAbortLatency = ms;
+		totalAbortLatency += ms;
+	}
+
+	/**
+	 * Get the number of commands that have been aborted.
+	 * @return The number of aborted commands.
+	 * @see #abortCount
+	 */
+	public synchronized int getAbortCount()
+	{
+		return abortCount;
+	}
+
+	/**
+	 * Get the abort latency of the last aborted command.
+	 * @return The abort latency in milliseconds.
+	 * @see #lastAbortLatency
+	 */
+	public synchronized long getLastAbortLatency()
+	{
+		return lastAbortLatency;
+	}
+
+	/**
+	 * Get the longest abort latency of any aborted command.
+	 * @return The abort latency in milliseconds.
+	 * @see #maxAbortLatency
+	 */
+	public synchronized long getMaxAbortLatency()
+	{
+		return maxAbortLatency;
+	}
+
+	/**
+	 * Get the mean abort latency of the aborted commands.
+	 * @return The mean abort latency in milliseconds, or 0.0 if no commands have been aborted.
+	 * @see #abortCount
+	 * @see #totalAbortLatency
+	 */
+	public synchronized double getMeanAbortLatency()
+	{
+		if(abortCount == 0)
+			return 0.0;
+		return ((double)totalAbortLatency)/((double)abortCount);
+	}
+
 	/**
 	 * Set the exposure length.
 	 * @param ms The exposure length, in milliseconds.
@@ -421,6 +569,47 @@ public class IOIStatus
 		return configName;
 	}
 
+	/**
+	 * Set the detector window set by the last successful CONFIG.
+	 * @param window An array of 4 integers (xStart, xStop, yStart, yStop), or null for a full frame readout.
+	 *        The array is copied.
+	 * @see #detectorWindow
+	 */
+	public synchronized void setDetectorWindow(int window[])
+	{
+		if(window == null)
+			detectorWindow = null;
+		else
+			detectorWindow = (int[])(window.clone());
+	}
+
+	/**
+	 * Get the detector window set by the last successful CONFIG.
+	 * @return A copy of the window, an array of 4 integers (xStart, xStop, yStart, yStop), 
+	 *         or null for a full frame readout.
+	 * @see #detectorWindow
+	 */
+	public synchronized int[] getDetectorWindow()
+	{
+		if(detectorWindow == null)
+			return null;
+		return (int[])(detectorWindow.clone());
+	}
+
+	/**
+	 * Get the fraction of the array read out, given the detector window set by the last successful CONFIG.
+	 * @return The window fraction, RampTimingModel.WINDOW_FRACTION_FULL_FRAME for a full frame readout.
+	 * @see #detectorWindow
+	 * @see RampTimingModel#getWindowFraction
+	 */
+	public synchronized double getDetectorWindowFraction()
+	{
+		if(detectorWindow == null)
+			return RampTimingModel.WINDOW_FRACTION_FULL_FRAME;
+		return RampTimingModel.getWindowFraction(detectorWindow[0],detectorWindow[1],detectorWindow[2],
+							 detectorWindow[3]);
+	}
+
 	/**
 	 * Save a BSS focus offset, returned from GET_FOCUS_OFFSET, for later use in FITS headers.
 	 * @param d A BSS focus offset, in mm.
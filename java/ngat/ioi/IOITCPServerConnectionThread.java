@@ -7,6 +7,9 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 
+import ngat.ioi.command.CancellationToken;
+import ngat.ioi.command.EventRecorder;
+import ngat.ioi.command.TraceContext;
 import ngat.net.*;
 import ngat.message.base.*;
 import ngat.message.ISS_INST.*;
@@ -54,6 +57,19 @@ public class IOITCPServerConnectionThread extends TCPServerConnectionThread
 	 * @see #processCommand
 	 */
 	private boolean abortProcessCommand = false;
+	/**
+	 * The cancellation token for the command this thread is processing. This is cancelled when
+	 * the command is aborted, and is set as the current token of this thread whilst the command implementation
+	 * runs, so any IDL Socket Server commands it is waiting for stop waiting.
+	 * @see #setAbortProcessCommand
+	 * @see #processCommand
+	 */
+	private CancellationToken cancellationToken = null;
+	/**
+	 * The time the command implementation started processing the command, in milliseconds since the epoch.
+	 * @see #processCommand
+	 */
+	private long processCommandStartTime = 0;
 	/**
 	 * Field holding the results of the JMSCommandImplementation.calculateAcknowledgeTime call in
 	 * the calculateAcknowledgeTime method over-ridden from the default. We need this when
@@ -70,6 +86,7 @@ public class IOITCPServerConnectionThread extends TCPServerConnectionThread
 	public IOITCPServerConnectionThread(Socket connectionSocket)
 	{
 		super(connectionSocket);
+		cancellationToken = new CancellationToken();
 	}
 
 	/**
@@ -125,11 +142,15 @@ public class IOITCPServerConnectionThread extends TCPServerConnectionThread
 	 * operation it has half completed - e.g. switch the autoguider off.
 	 * The rest of this thread's run method should then execute
 	 * to send the DONE message back to the client.
+	 * The cancellation token is also cancelled, so any IDL Socket Server command the thread is waiting on
+	 * returns immediately.
 	 * @see #abortProcessCommand
+	 * @see #cancellationToken
 	 */
 	public synchronized void setAbortProcessCommand()
 	{
 		abortProcessCommand = true;
+		cancellationToken.cancel();
 	}
 
 	/**
@@ -141,6 +162,26 @@ public class IOITCPServerConnectionThread extends TCPServerConnectionThread
 		return abortProcessCommand;
 	}
 
+	/**
+	 * Get the cancellation token for the command this thread is processing.
+	 * @return The cancellation token.
+	 * @see #cancellationToken
+	 */
+	public CancellationToken getCancellationToken()
+	{
+		return cancellationToken;
+	}
+
+	/**
+	 * Get the time the command implementation started processing the command.
+	 * @return The time, in milliseconds since the epoch, or 0 if processing has not started.
+	 * @see #processCommandStartTime
+	 */
+	public synchronized long getProcessCommandStartTime()
+	{
+		return processCommandStartTime;
+	}
+
 	/**
 	 * This method is called after the clients command is read over the socket. It allows us to
 	 * initialise this threads response to a command. This method changes the threads priority now 
@@ -208,11 +249,20 @@ public class IOITCPServerConnectionThread extends TCPServerConnectionThread
 	 * <li>This method checks whether the command in null and returns a generic done error message if this is the 
 	 * case.
 	 * <li>If suitable logging is enabled the command is logged.
+	 * <li>If the controller has not started up far enough for the command implementation's startup requirement,
+	 *     a generic done error message is returned.
 	 * <li>If the command is not an interrupt command sub-class it calls the IOIStatus 
 	 *     setCurrentCommand / setCurrentThread methods to reflect the command/thread(this one) 
 	 *     currently doing the processing.
 	 * <li>This method delagates the command processing to the command implementation found for the command
-	 * message class.
+	 * message class. Whilst it is running, the thread's cancellation token is the current token, so
+	 * IDL Socket Server commands sent by the implementation can be cancelled by an ABORT.
+	 * If the command is not an interrupt command sub-class, and tracing is enabled, a trace context is
+	 * created for the command and made the thread's current context, and the time taken to process 
+	 * the command is recorded as a span named "COMMAND:" followed by the command's class name.
+	 * All commands, including GET_STATUS, are recorded as a COMMAND event, if event recording is on.
+	 * <li>If the command was aborted, the time from the abort to the command finishing is added to the
+	 *     IOIStatus abort latency statistics.
 	 * <li>The IOIStatus is again updated to reflect this command/thread has finished processing. (If it's
 	 * not a sub-class of INTERRUPT again).
 	 * <li>If suitable logging is enabled the command is logged as completed.
@@ -223,9 +273,20 @@ public class IOITCPServerConnectionThread extends TCPServerConnectionThread
 	 * @see IOIStatus#setCurrentThread
 	 * @see #commandImplementation
 	 * @see JMSCommandImplementation#processCommand
+	 * @see CommandImplementation#getStartupRequirement
+	 * @see ControllerStartup#isReady
+	 * @see #cancellationToken
+	 * @see #processCommandStartTime
+	 * @see IOIStatus#addAbortLatency
+	 * @see IOI#createTraceContext
+	 * @see ngat.ioi.command.EventRecorder#recordSpan
 	 */
 	protected void processCommand()
 	{
+		TraceContext traceContext = null;
+		int startupRequirement;
+		long abortLatency,startNanoTime;
+
 	// setup a generic done object until the command specific one is constructed.
 		done = new COMMAND_DONE(command.getId());
 
@@ -239,6 +300,21 @@ public class IOITCPServerConnectionThread extends TCPServerConnectionThread
 		}
 		ioi.log(Logging.VERBOSITY_VERY_TERSE,"Command:"+command.getClass().getName()+
 			" Started.");
+	// Don't run commands that need more of the controller than has started up yet
+		if(commandImplementation instanceof CommandImplementation)
+		{
+			startupRequirement = ((CommandImplementation)commandImplementation).getStartupRequirement();
+			if(ioi.getControllerStartup().isReady(startupRequirement) == false)
+			{
+				ioi.error(this.getClass().getName()+":processCommand:"+command.getClass().getName()+
+					  " rejected:Controller not ready:"+ioi.getControllerStartup());
+				done.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+103);
+				done.setErrorString("processCommand:"+command.getClass().getName()+
+						    " rejected:Controller not ready:"+ioi.getControllerStartup());
+				done.setSuccessful(false);
+				return;
+			}
+		}
 	// This test says interupt class commands should not become current command.
 	// This class of commands probably want to see what the current command is anyway.
 		if(!(command instanceof INTERRUPT))
@@ -246,6 +322,16 @@ public class IOITCPServerConnectionThread extends TCPServerConnectionThread
 			ioi.getStatus().setCurrentCommand((ISS_TO_INST)command);
 			ioi.getStatus().setCurrentThread((Thread)this);
 		}
+		synchronized(this)
+		{
+			processCommandStartTime = System.currentTimeMillis();
+		}
+		CancellationToken.setCurrentToken(cancellationToken);
+	// trace non-interrupt commands (GET_STATUS etc would fill the trace ring buffer)
+		if(!(command instanceof INTERRUPT))
+			traceContext = ioi.createTraceContext((ISS_TO_INST)command);
+		startNanoTime = System.nanoTime();
+		TraceContext.setCurrentContext(traceContext);
 	// setup return object.
 		try
 		{
@@ -261,6 +347,19 @@ public class IOITCPServerConnectionThread extends TCPServerConnectionThread
 			done.setErrorString(s+e);
 			done.setSuccessful(false);
 		}
+		CancellationToken.setCurrentToken(null);
+		TraceContext.setCurrentContext(null);
+		EventRecorder.getInstance().recordSpan(traceContext,EventRecorder.EVENT_TYPE_COMMAND,
+						       command.getClass().getSimpleName(),Integer.toString(done.getErrorNum()),
+						       startNanoTime);
+	// If the command was aborted, record how long it took to stop
+		if(cancellationToken.isCancelled())
+		{
+			abortLatency = System.currentTimeMillis()-cancellationToken.getCancelTime();
+			ioi.getStatus().addAbortLatency(abortLatency);
+			ioi.log(Logging.VERBOSITY_TERSE,"Command:"+command.getClass().getName()+
+				" Aborted:Abort to DONE latency "+abortLatency+" ms.");
+		}
 	// change IO:I status once command has been done
 		if(!(command instanceof INTERRUPT))
 		{
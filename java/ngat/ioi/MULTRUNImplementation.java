@@ -6,6 +6,7 @@ package ngat.ioi;
 import java.lang.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import ngat.ioi.command.*;
 import ngat.fits.*;
@@ -36,9 +37,56 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 	 */
 	protected int bFS = 0;
 	/**
-	 * The overhead time for reading out in milliseconds.
+	 * The overhead time for reading out in milliseconds, predicted by the ramp timing model.
+	 * @see #rampTimingModel
 	 */
 	protected int rampOverheadTime = 0;
+	/**
+	 * The number of reads the ramp was configured with, passed to the data processing thread.
+	 * @see #setFowlerSamplingParameters
+	 * @see #setReadUpTheRampParameters
+	 */
+	protected int rampNRead = 0;
+	/**
+	 * The number of groups the ramp was configured with (1 in Fowler Sampling mode), 
+	 * passed to the data processing thread.
+	 * @see #setFowlerSamplingParameters
+	 * @see #setReadUpTheRampParameters
+	 */
+	protected int rampNGroup = 0;
+	/**
+	 * Whether exposures are guided, using a GuidedRampAcquisition rather than a single AcquireRamp.
+	 * Retrieved from the "ioi.multrun.guide.enable" property.
+	 * @see #guidedRampAcquisition
+	 */
+	protected boolean guideEnable = false;
+	/**
+	 * The instance used to acquire guided exposures, when guideEnable is true.
+	 * @see #guideEnable
+	 * @see #acquireGuidedRamp
+	 */
+	protected GuidedRampAcquisition guidedRampAcquisition = null;
+	/**
+	 * The directory containing the stitched science ramp from the last guided exposure.
+	 * @see #acquireGuidedRamp
+	 */
+	protected String guidedRampDirectory = null;
+	/**
+	 * The IDL Socket Server state mirror, used to skip ramp parameter commands that would not change anything.
+	 * @see DetectorStateMirror
+	 */
+	protected DetectorStateMirror detectorStateMirror = null;
+	/**
+	 * The model used to predict ramp durations (and hence ACK times), and learn them from measured ramps.
+	 * @see RampTimingModel
+	 */
+	protected RampTimingModel rampTimingModel = null;
+	/**
+	 * The listener that forwards each ramp processed by the data processing thread to the client
+	 * as a MULTRUN_DP_ACK, whilst the MULTRUN is running.
+	 * @see #processCommand
+	 */
+	protected DataProcessingAckForwarder dataProcessingAckForwarder = null;
 
 	/**
 	 * Constructor.
@@ -60,7 +108,10 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 
 	/**
 	 * This method returns the MULTRUN command's acknowledge time. Each frame in the MULTRUN takes 
-	 * the exposure time plus the status's max readout time plus the default acknowledge time to complete. 
+	 * the exposure time plus the ramp overhead plus the default acknowledge time to complete. 
+	 * The ramp overhead is predicted by the ramp timing model, for the sampling mode CONFIG sets
+	 * ("ioi.config.fs_mode"). If the prediction fails (e.g. the exposure length cannot be obtained, which
+	 * MULTRUN reports when it checks the exposure length), no ramp overhead is added.
 	 * The default acknowledge time
 	 * allows time to setup the camera, get information about the telescope and save the frame to disk.
 	 * This method returns the time for the first frame in the MULTRUN only, as a MULTRUN_ACK message
@@ -73,20 +124,74 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 	 * @see IOITCPServerConnectionThread#getDefaultAcknowledgeTime
 	 * @see MULTRUN#getExposureTime
 	 * @see MULTRUN#getNumberExposures
+	 * @see RampTimingModel#predictOverhead
+	 * @see IOIConfig#getFSMode
 	 */
 	public ACK calculateAcknowledgeTime(COMMAND command)
 	{
 		MULTRUN multRunCommand = (MULTRUN)command;
 		ACK acknowledge = null;
+		int samplingMode,overhead;
 
+		try
+		{
+			samplingMode = status.getConfig().getFSMode();
+			overhead = ioi.getRampTimingModel().predictOverhead(samplingMode,multRunCommand.getExposureTime(),
+								status.getDetectorWindowFraction());
+		}
+		catch(Exception e)
+		{
+			ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				":calculateAcknowledgeTime:Predicting ramp overhead failed:"+e);
+			overhead = 0;
+		}
 		acknowledge = new ACK(command.getId());
-		acknowledge.setTimeToComplete(multRunCommand.getExposureTime()+
+		acknowledge.setTimeToComplete(multRunCommand.getExposureTime()+overhead+
 			serverConnectionThread.getDefaultAcknowledgeTime());
 		return acknowledge;
 	}
 
 	/**
-	 * This method implements the MULTRUN command. 
+	 * This method implements the MULTRUN command.
+	 * <ul>
+	 * <li>We create a DataProcessingAckForwarder, and add it as a listener to the data processing thread,
+	 *     so each ramp is sent back to the client in a MULTRUN_DP_ACK as soon as it has been processed.
+	 * <li>We call <b>processMultrun</b> to do the exposures.
+	 * <li>We remove the listener and close it, so no MULTRUN_DP_ACKs can be sent after the MULTRUN_DONE.
+	 * </ul>
+	 * @param command The MULTRUN command.
+	 * @return An instance of MULTRUN_DONE.
+	 * @see #dataProcessingAckForwarder
+	 * @see #processMultrun
+	 * @see DataProcessingThread#addDataProcessingListener
+	 * @see DataProcessingThread#removeDataProcessingListener
+	 */
+	public COMMAND_DONE processCommand(COMMAND command)
+	{
+		MULTRUN multRunCommand = (MULTRUN)command;
+		MULTRUN_DONE multRunDone = new MULTRUN_DONE(command.getId());
+		DataProcessingThread dataProcessingThread = null;
+
+		dataProcessingThread = ioi.getDataProcessingThread();
+		dataProcessingAckForwarder = new DataProcessingAckForwarder(multRunCommand);
+		dataProcessingThread.addDataProcessingListener(dataProcessingAckForwarder);
+		try
+		{
+			processMultrun(multRunCommand,multRunDone);
+		}
+		finally
+		{
+			dataProcessingThread.removeDataProcessingListener(dataProcessingAckForwarder);
+			dataProcessingAckForwarder.close();
+			ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+				":processCommand:Forwarded "+dataProcessingAckForwarder.getForwardedCount()+
+				" processed ramps to the client.");
+		}
+		return multRunDone;
+	}
+
+	/**
+	 * This method does the exposures for the MULTRUN command. 
 	 * <ul>
 	 * <li>We initialise exposure status variables (<b>setExposureCount</b>/<b>setExposureNumber</b>/
 	 *     <b>setExposureLength</b>).
@@ -95,13 +200,21 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 	 *     an exposure or standard.
 	 * <li>We call <b>getBFS</b>, which extracts the bFS variable from the reply to a GetConfig command,
 	 *     which tells us whether we have previously configured the array to acquire ramps using Fowler Sampling
-	 *     or Read up the Ramp.
+	 *     or Read up the Ramp. This is done before the fold mirror is moved, so <b>checkExposureLength</b>
+	 *     can reject an exposure length the sampling mode cannot obtain before anything is moved.
 	 * <li>If bFS is one (fowler sampling), we call <b>setFowlerSamplingParameters</b> to send a command to the
 	 *     IDL Socket Server to configure the fowler sampling mode.
 	 * <li>If bFS is zero (read up the ramp), we call <b>setReadUpTheRampParameters</b> to send a command to the
 	 *     IDL Socket Server to configure read up the ramp mode.
+	 * <li>If we are not guiding, we call <b>applyDetectorWindow</b> to ensure the array is in the window or
+	 *     full frame readout mode selected by the last CONFIG, as a previous guided MULTRUN or BIAS
+	 *     may have changed it.
+	 * <li>We tell the FITS header source cache a new MULTRUN is starting (<b>startMultrun</b>), so
+	 *     the MULTRUN class GET_FITS keywords are re-fetched for the first exposure, and then cached.
 	 * <li>For each exposure we do the following:
 	 *	<ul>
+	 *      <li>We call <b>waitForDataProcessingBacklog</b>, to wait until the backlog of ramps waiting
+	 *          to be processed is within the configured limits.
 	 *      <li>We call <b>clearFitsHeaders</b> to reset the FITS headers information.
 	 *      <li>We start an instance of OffsetTelescopeAndGetFitsHeadersThread. This thread does the 
 	 *          following tasks asynchonously whilst the MULTRUN thread continues:
@@ -119,35 +232,55 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 	 *      <li>We take an exposure start time timestamp, save it in the status object
 	 *          (<b>setExposureStartTime</b>), and set the status's current mode (<b>setCurrentMode</b>) 
 	 *           to exposure.
-	 * 	<li>We call <b>acquireRamp</b> to do the exposure.
+	 * 	<li>We call <b>acquireRamp</b> to do the exposure, or <b>acquireGuidedRamp</b> if 
+	 *          the "ioi.multrun.guide.enable" property is true.
 	 *      <li>We add the exposure start time timestamp to the dataprocessing thread, 
-	 *          which will post process the acquired data. This involves finding the data directory, 
+	 *          which will post process the acquired data, and to the DataProcessingAckForwarder, which
+	 *          sends the processed filename and statistics to the client in a MULTRUN_DP_ACK. This involves finding the data directory, 
 	 *          finding the FITS images in the directory, adding IO:I/ISS/BSS FITS headers to it, 
 	 *          flipping the FITS images, renaming the FITS images from the IDL format to the LT filename format, 
 	 *          and deleting the IDL directory. This is all done asynchronously whilst the next ramp is being 
-	 *          acquired.
+	 *          acquired. If the run number cannot be incremented, or the ramp cannot be added to the data
+	 *          processing list, the MULTRUN fails, as the ramp would otherwise never be processed.
 	 * 	<li>We increment the exposure number in the status object (<b>setExposureNumber</b>).
 	 * 	</ul>
 	 * <li>We offset the telscope back to 0,0 using resetTelescopeOffset.
+	 * <li>If the "ioi.multrun.done.wait_for_data_processing" property is true, we wait (sending ACKs) until the
+	 *     data processing thread has processed all the ramps. Otherwise the MULTRUN_DONE is returned now, and
+	 *     the ramps are processed in the background (they are not sent to the client as MULTRUN_DP_ACKs).
+	 * <li>If processing any of the MULTRUN's ramps failed, the MULTRUN fails, with the filename of the last
+	 *     ramp that was processed successfully.
 	 * <li>If we are going to call the DpRt, we iterate over the filename list calling <b>reduceExpose</b>
 	 *     for each generated FITS image.
-	 * <li>We set up the return values to return to the client.
+	 * <li>We set up the return values to return to the client. If the data processing thread has computed
+	 *     frame statistics for the last exposure (<b>getLastFrameStatistics</b>), these are returned,
+	 *     otherwise the statistics are returned as zero, and the filename is the last one forwarded
+	 *     in a MULTRUN_DP_ACK.
 	 * </ul>
 	 * The resultant filenames or the relevant error code is put into the an object of class MULTRUN_DONE and
 	 * returned. During execution of these operations the abort flag is tested to see if we need to
 	 * stop the implementation of this command.
+	 * @param multRunCommand The MULTRUN command we are implementing.
+	 * @param multRunDone The MULTRUN_DONE command object that will be returned to the client.
+	 * @return multRunDone, filled in with the result of the MULTRUN.
 	 * @see #resetTelescopeOffset
 	 * @see #getBFS
+	 * @see #checkExposureLength
 	 * @see #setFowlerSamplingParameters
 	 * @see #setReadUpTheRampParameters
 	 * @see #acquireRamp
+	 * @see #acquireGuidedRamp
+	 * @see #applyDetectorWindow
 	 * @see #sendMultrunACK
 	 * @see #bFS
+	 * @see #guideEnable
+	 * @see EXPOSEImplementation#waitForDataProcessingBacklog
 	 * @see CommandImplementation#testAbort
 	 * @see FITSImplementation#clearFitsHeaders
 	 * @see FITSImplementation#setFitsHeaders
 	 * @see FITSImplementation#getFitsHeadersFromISS
 	 * @see FITSImplementation#getFitsHeadersFromBSS
+	 * @see FitsHeaderSourceCache#startMultrun
 	 * @see EXPOSEImplementation#sendACK
 	 * @see EXPOSEImplementation#reduceExpose
 	 * @see IOIStatus#setExposureLength
@@ -157,6 +290,8 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 	 * @see IOIStatus#setCurrentMode
 	 * @see IOIStatus#getCurrentMode
 	 * @see IOI#getDataProcessingThread
+	 * @see DataProcessingThread#getLastFrameStatistics
+	 * @see FrameStatistics
 	 * @see ngat.message.ISS_INST.GET_STATUS_DONE#MODE_IDLE
 	 * @see ngat.message.ISS_INST.GET_STATUS_DONE#MODE_EXPOSING
 	 * @see ngat.message.ISS_INST.GET_STATUS_DONE#MODE_READING_OUT
@@ -166,21 +301,22 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 	 * @see OffsetTelescopeAndGetFitsHeadersThread#init
 	 * @see OffsetTelescopeAndGetFitsHeadersThread#setServerConnectionThread
 	 * @see OffsetTelescopeAndGetFitsHeadersThread#setOffsetIndex
+	 * @see DataProcessingAckForwarder#addAcquireRampCommandCallTime
+	 * @see DataProcessingAckForwarder#removeAcquireRampCommandCallTime
+	 * @see DataProcessingAckForwarder#getFailedCount
+	 * @see DataProcessingAckForwarder#getLastFilename
 	 */
-	public COMMAND_DONE processCommand(COMMAND command)
+	protected MULTRUN_DONE processMultrun(MULTRUN multRunCommand,MULTRUN_DONE multRunDone)
 	{
-		MULTRUN multRunCommand = (MULTRUN)command;
-		MULTRUN_DP_ACK multRunDpAck = null;
-		MULTRUN_DONE multRunDone = new MULTRUN_DONE(command.getId());
 		FitsFilename fitsFilename = null;
 		Vector<File> reduceFilenameList = null;
 		DataProcessingThread dataProcessingThread = null;
+		FrameStatistics frameStatistics = null;
 		OffsetTelescopeAndGetFitsHeadersThread offsetTelescopeAndGetFitsHeadersThread = null;
 		File fitsFile = null;
 		String obsType = null;
-		String filename = null;
 		double exposureLengthSeconds;
-		long acquireRampCommandCallTime;
+		long acquireRampCommandCallTime = -1;
 		int index;
 		boolean retval = false;
 		boolean fitsFilenameRename;
@@ -200,8 +336,17 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 		status.setExposureLength(multRunCommand.getExposureTime());
 		// retrieve the data processing thread
 		dataProcessingThread = ioi.getDataProcessingThread();
+		// retrieve the IDL Socket Server state mirror
+		detectorStateMirror = ioi.getDetectorStateMirror();
+		rampTimingModel = ioi.getRampTimingModel();
+		// Find out which sampling mode the array is using, and reject exposure lengths it cannot obtain,
+		// before we move anything
+		if(!getBFS(multRunCommand,multRunDone))
+			return multRunDone;
+		if(!checkExposureLength(multRunCommand,multRunDone))
+			return multRunDone;
 		// if we are renaming the FITS images, increment the MULTRUN number
-		fitsFilenameRename = status.getPropertyBoolean("ioi.file.fits.rename");
+		fitsFilenameRename = status.getConfig().getFitsRename();
 		if(fitsFilenameRename)
 		{
 			fitsFilename = ioi.getFitsFilename();
@@ -241,10 +386,14 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 		// send an ACK, actually getDefaultAcknowledgeTime long
 		if(sendACK(multRunCommand,multRunDone,0) == false)
 			return multRunDone;
-		// Find out which sampling mode the array is using
-		if(!getBFS(multRunCommand,multRunDone))
+		if(!getGuideConfiguration(multRunCommand,multRunDone))
 			return multRunDone;
-		if(bFS == 1)// Fowler sampling mdoe
+		if(guideEnable)// Read Up the Ramp mode, with interleaved guide sub-ramps
+		{
+			ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+				":processCommand:Guiding enabled, sub-ramps are configured per exposure.");
+		}
+		else if(bFS == 1)// Fowler sampling mdoe
 		{
 			if(!setFowlerSamplingParameters(multRunCommand,multRunDone,exposureLengthSeconds))
 				return multRunDone;
@@ -254,12 +403,21 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 			if(!setReadUpTheRampParameters(multRunCommand,multRunDone,exposureLengthSeconds))
 				return multRunDone;
 		}
+		if(guideEnable == false)
+		{
+			if(!applyDetectorWindow(multRunCommand,multRunDone))
+				return multRunDone;
+		}
+		// keywords cached by the FITS header source cache for the previous MULTRUN are now stale
+		ioi.getFitsHeaderSourceCache().startMultrun();
 		// do exposures
 		index = 0;
 		retval = true;
 		reduceFilenameList = new Vector<File>();
 		while(retval&&(index < multRunCommand.getNumberExposures()))
 		{
+			// spans recorded from now on belong to this exposure's timeline
+			TraceContext.setCurrentExposure(index);
 			// send an ACK, actually at least one exposure length + ramp overhead long
 			if(sendACK(multRunCommand,multRunDone,
 				   multRunCommand.getExposureTime()+rampOverheadTime) == false)
@@ -270,6 +428,15 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 				resetTelescopeOffset(multRunCommand,multRunDone);
 				return multRunDone;
 			}
+			// don't acquire another ramp until the data processing backlog is within it's limits
+			if(waitForDataProcessingBacklog(multRunCommand,multRunDone) == false)
+			{
+				ioi.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
+					":processCommand:waitForDataProcessingBacklog failed for index "+index+
+					" : Reseting telescope offset.");
+				resetTelescopeOffset(multRunCommand,multRunDone);
+				return multRunDone;
+			}
 			ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 				":processCommand:Starting exposure "+index+" of length "+exposureLengthSeconds+"s.");
 			ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
@@ -283,6 +450,7 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 			offsetTelescopeAndGetFitsHeadersThread.init();
 			offsetTelescopeAndGetFitsHeadersThread.setServerConnectionThread(serverConnectionThread);
 			offsetTelescopeAndGetFitsHeadersThread.setOffsetIndex(index);
+			offsetTelescopeAndGetFitsHeadersThread.setTraceContext(TraceContext.getCurrentContext());
 			offsetTelescopeAndGetFitsHeadersThread.start();
 			// get fits headers
 			ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
@@ -342,7 +510,12 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 			status.setExposureStartTime(acquireRampCommandCallTime);
 			status.setCurrentMode(GET_STATUS_DONE.MODE_EXPOSING);
 			// do exposure.
-			if(!acquireRamp(multRunCommand,multRunDone))
+			if(guideEnable)
+				retval = acquireGuidedRamp(multRunCommand,multRunDone,index,
+							   offsetTelescopeAndGetFitsHeadersThread);
+			else
+				retval = acquireRamp(multRunCommand,multRunDone);
+			if(!retval)
 			{
 				ioi.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
 					":processCommand:acquireRamp failed for index "+index+
@@ -376,6 +549,8 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 			// diddly should we check getErrorNum independently of getThreadState?
 			// We are not really reading out, but managing the acquired data
 			status.setCurrentMode(GET_STATUS_DONE.MODE_READING_OUT);
+			// record the exposure's timeline so far in the FITS headers
+			setTraceFitsHeaders();
 			// Add this ramp to the data processing threads list of data to process
 			ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 				":processCommand:Adding exposure index "+index+" with acquire ramp start time "+
@@ -385,13 +560,52 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 				// increment run number in Multrun
 				if(fitsFilenameRename)
 					fitsFilename.nextRunNumber();
-				dataProcessingThread.addDataForProcessing(bFS,acquireRampCommandCallTime,
-									  ioiFitsHeader,fitsFilename);
 			}
 			catch(Exception e)
 			{
+				status.setCurrentMode(GET_STATUS_DONE.MODE_IDLE);
+				resetTelescopeOffset(multRunCommand,multRunDone);
 				ioi.error(this.getClass().getName()+
 					  ":processCommand:Incrementing FITS filename run number failed:",e);
+				multRunDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+1223);
+				multRunDone.setErrorString(this.getClass().getName()+
+					  ":processCommand:Incrementing FITS filename run number failed:"+e);
+				multRunDone.setSuccessful(false);
+				return multRunDone;
+			}
+			// forward the processed ramp to the client as soon as it is ready. This is registered before
+			// the ramp is queued, as it may be processed before addDataForProcessing returns
+			dataProcessingAckForwarder.addAcquireRampCommandCallTime(acquireRampCommandCallTime);
+			try
+			{
+				if(guideEnable)
+				{
+					dataProcessingThread.addDataForProcessing(bFS,rampNRead,rampNGroup,
+									  multRunCommand.getExposureTime(),
+									  acquireRampCommandCallTime,
+									  ioiFitsHeader,fitsFilename,
+									  guidedRampDirectory);
+				}
+				else
+				{
+					dataProcessingThread.addDataForProcessing(bFS,rampNRead,rampNGroup,
+									  multRunCommand.getExposureTime(),
+									  acquireRampCommandCallTime,
+									  ioiFitsHeader,fitsFilename);
+				}
+			}
+			catch(Exception e)
+			{
+				dataProcessingAckForwarder.removeAcquireRampCommandCallTime(acquireRampCommandCallTime);
+				status.setCurrentMode(GET_STATUS_DONE.MODE_IDLE);
+				resetTelescopeOffset(multRunCommand,multRunDone);
+				ioi.error(this.getClass().getName()+":processCommand:Adding exposure index "+index+
+					  " to the data processing list failed:",e);
+				multRunDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+1224);
+				multRunDone.setErrorString(this.getClass().getName()+":processCommand:Adding exposure index "+
+							   index+" to the data processing list failed:"+e);
+				multRunDone.setSuccessful(false);
+				return multRunDone;
 			}
 			// increment exposure number
 			status.setExposureNumber(index+1);
@@ -402,6 +616,7 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 			}
 			index++;
 		}// end while
+		TraceContext.setCurrentExposure(-1);
 	// reset telescope offsets
 		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			":processCommand:Reseting telescope offset.");
@@ -412,10 +627,19 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 		{
 			return multRunDone;
 		}
-		// wait for data processing to be finished
-		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
-			":processCommand:Waiting for data processing to finish.");
-		done = false;
+		// wait for data processing to be finished, unless we are leaving it to finish in the background
+		done = (status.getConfig().getMultrunDoneWaitForDataProcessing() == false);
+		if(done)
+		{
+			ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+				":processCommand:Not waiting for data processing to finish:"+
+				dataProcessingThread.getListSize()+" ramps waiting.");
+		}
+		else
+		{
+			ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+				":processCommand:Waiting for data processing to finish.");
+		}
 		while(done == false)
 		{
 			int dataProcessingThreadState, listSize;
@@ -446,22 +670,57 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 				}
 			}
 		}// while !done
-		// no pipeline processing, set return value to something bland.
-		// set filename to last filename exposed.
-		multRunDone.setFilename(filename);
-		multRunDone.setCounts(0.0f);
-		multRunDone.setSeeing(0.0f);
-		multRunDone.setXpix(0.0f);
-		multRunDone.setYpix(0.0f);
+		// fail the MULTRUN if processing any of it's ramps failed
+		if(dataProcessingAckForwarder.getFailedCount() > 0)
+		{
+			dataProcessingAckForwarder.flush();
+			multRunDone.setFilename(dataProcessingAckForwarder.getLastFilename());
+			ioi.error(this.getClass().getName()+":processCommand:Processing "+
+				  dataProcessingAckForwarder.getFailedCount()+" ramps failed:Last failure:"+
+				  dataProcessingAckForwarder.getLastFailedResult().getErrorString());
+			multRunDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+1225);
+			multRunDone.setErrorString(this.getClass().getName()+":processCommand:Processing "+
+						   dataProcessingAckForwarder.getFailedCount()+" ramps failed:Last failure:"+
+						   dataProcessingAckForwarder.getLastFailedResult().getErrorString());
+			multRunDone.setSuccessful(false);
+			return multRunDone;
+		}
+		// Return the data pipeline's frame statistics, if they were computed for the last exposure.
+		// Otherwise set return values to something bland.
+		// Photometricity is not computed by the pipeline.
+		frameStatistics = dataProcessingThread.getLastFrameStatistics();
+		if((frameStatistics != null)&&
+		   (frameStatistics.getAcquireRampCommandCallTime() == acquireRampCommandCallTime))
+		{
+			ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+				":processCommand:Returning frame statistics:"+frameStatistics);
+			multRunDone.setFilename(frameStatistics.getFilename());
+			multRunDone.setCounts((float)(frameStatistics.getPeakCounts()));
+			multRunDone.setSeeing((float)(frameStatistics.getSeeing()));
+			multRunDone.setXpix((float)(frameStatistics.getXCentroid()));
+			multRunDone.setYpix((float)(frameStatistics.getYCentroid()));
+			multRunDone.setSkyBrightness((float)(frameStatistics.getSky()));
+			multRunDone.setSaturation(frameStatistics.getSaturatedPixelCount() > 0);
+		}
+		else
+		{
+			// send any processed ramps still queued, so the last filename is up to date
+			dataProcessingAckForwarder.flush();
+			multRunDone.setFilename(dataProcessingAckForwarder.getLastFilename());
+			multRunDone.setCounts(0.0f);
+			multRunDone.setSeeing(0.0f);
+			multRunDone.setXpix(0.0f);
+			multRunDone.setYpix(0.0f);
+			multRunDone.setSkyBrightness(0.0f);
+			multRunDone.setSaturation(false);
+		}
 		multRunDone.setPhotometricity(0.0f);
-		multRunDone.setSkyBrightness(0.0f);
-		multRunDone.setSaturation(false);
 	// if a failure occurs, return now
 		if(!retval)
 			return multRunDone;
 	// setup return values.
 	// setCounts,setFilename,setSeeing,setXpix,setYpix 
-	// setPhotometricity, setSkyBrightness, setSaturation set by reduceExpose for last image reduced.
+	// setPhotometricity, setSkyBrightness, setSaturation set from the last frame's statistics above.
 		multRunDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_NO_ERROR);
 		multRunDone.setErrorString("");
 		multRunDone.setSuccessful(true);
@@ -503,6 +762,40 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 		return true;
 	}
 
+	/**
+	 * Check the requested exposure length can be obtained in the sampling mode the array is using (bFS).
+	 * Guided exposures are made of read up the ramp sub-ramps, and are checked by GuidedRampAcquisition.
+	 * If the exposure length cannot be obtained, a suitable error message (including the nearest exposure
+	 * length that can be obtained) is put into MULTRUN_DONE, and false is returned.
+	 * @param multRunCommand The MULTRUN command we are implementing.
+	 * @param multRunDone The MULTRUN_DONE command object that will be returned to the client. We set
+	 *       a sensible error message in this object if this method fails.
+	 * @return We return true if the exposure length can be obtained, and false if it cannot.
+	 * @see #bFS
+	 * @see #rampTimingModel
+	 * @see RampTimingModel#checkExposureLength
+	 */
+	protected boolean checkExposureLength(MULTRUN multRunCommand,MULTRUN_DONE multRunDone)
+	{
+		if(status.getConfig().getMultrunGuideEnable())
+			return true;
+		try
+		{
+			rampTimingModel.checkExposureLength(bFS,multRunCommand.getExposureTime());
+		}
+		catch(Exception e)
+		{
+			ioi.error(this.getClass().getName()+
+				  ":checkExposureLength:Exposure length cannot be obtained:"+multRunCommand,e);
+			multRunDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+1220);
+			multRunDone.setErrorString(this.getClass().getName()+
+						   ":checkExposureLength:Exposure length cannot be obtained:"+e);
+			multRunDone.setSuccessful(false);
+			return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Configure the IDL Socket Server for a ramp in Fowler Sampling mode.
 	 * <ul>
@@ -513,9 +806,11 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 	 * </ul>
 	 * If an error or exception occurs it is caught, a suitable error message put into MULTRUN_DONE, and false
 	 * is returned.
-	 * The exposure length requested is adjusted before sending to SetFSParam. 
+	 * The exposure length requested is adjusted before sending to SetFSParam, using the
+	 * ramp timing model's getFowlerIDLExposureLength. 
 	 * This is because the array is exposing when doing nReads at the start and end of the exposure,
-	 * so the exposure length is reduced by (2*nRead)*readExecutionTime.
+	 * and the IDL software adds an extra read to longer exposures.
+	 * The ramp overhead is predicted by the ramp timing model.
 	 * @param multRunCommand The MULTRUN command we are implementing.
 	 * @param multRunDone The MULTRUN_DONE command object that will be returned to the client. We set
 	 *       a sensible error message in this object if this method fails.
@@ -523,7 +818,10 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 	 *        SetFSParamCommand.
 	 * @return We return true if the method succeeds, and false if an error occurs.
 	 * @see #ioi
+	 * @see #rampTimingModel
 	 * @see #rampOverheadTime
+	 * @see #rampNRead
+	 * @see #rampNGroup
 	 * @see ngat.ioi.IOI#error
 	 * @see ngat.ioi.command.SetFSParamCommand
 	 */
@@ -531,95 +829,59 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 						      double exposureLengthSeconds)
 	{
 		SetFSParamCommand setFSParamCommand = null;
-		int nReset,nRead,resetExecutionTime,readExecutionTime,expLenOffsetMS,exposureLengthMS;
+		IOIConfig config = null;
+		int nReset,nRead,exposureLengthMS;
 
 		try
 		{
 			ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
 				":setFowlerSamplingParameters:Configuring Fowler sampling mode.");
-			nReset = status.getPropertyInteger("ioi.config.FOWLER.nreset");
-			nRead = status.getPropertyInteger("ioi.config.FOWLER.nread");
-			resetExecutionTime = status.getPropertyInteger("ioi.config.FOWLER.reset_execution_time");
-			readExecutionTime = status.getPropertyInteger("ioi.config.FOWLER.read_execution_time");
-			ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
-				":setFowlerSamplingParameters:resetExecutionTime = "+resetExecutionTime+
-				",readExecutionTime = "+readExecutionTime+".");
+			config = status.getConfig();
+			nReset = config.getFowlerNReset();
+			nRead = config.getFowlerNRead();
 			ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
 				":setFowlerSamplingParameters:Requested exposure length "+exposureLengthSeconds+" s.");
-			// convert input exposure length to ms
-			exposureLengthMS = (int)(exposureLengthSeconds*1000.0);
-			// The exposure actually includes two sets of nReads 
-			// The exposure length sent to SetFSParam is the length of time the IDL
-			// software waits between the end of the last of the first set of reads and 
-			// the start of the second set of reads.
-			// The data reduction pipeline subtracts (in a nReads=2 situation) 4-2 and 3-1, and then
-			// averages the result.
-			// Therefore we need to subtract one set of reads from the supplied exposure length to
-			// pass to the IDL software an exposure length that will result in what we requested.
-			expLenOffsetMS = nRead*readExecutionTime;
-			ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
-				":setFowlerSamplingParameters:Exposure length offset due to nReads: "+expLenOffsetMS+
-				" ms.");
-			exposureLengthMS -= expLenOffsetMS;
+			// The exposure length sent to SetFSParam is the time between the two sets of reads, adjusted
+			// for the IDL software's extra read. This throws an exception for unobtainable lengths.
+			exposureLengthMS = rampTimingModel.getFowlerIDLExposureLength(multRunCommand.getExposureTime());
 			ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
 				":setFowlerSamplingParameters:Adjusted exposure length "+exposureLengthMS+
 				" ms due to "+nRead+" reads.");
-			// But the IDL software addds an extra reads worth of exposure length _IF_ the IDL supplied
-			// exposure length is > 1 read (1.4s).
-			if(exposureLengthMS > readExecutionTime)
-			{
-				// So we need to subtract another readExecutionTime from the exposure length.
-				exposureLengthMS -= readExecutionTime;
-				ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
-					":setFowlerSamplingParameters:Adjusted exposure length "+exposureLengthMS+
-					" ms after extra IDL software adjustment.");
-				// But if the result is then < readExecutionTime (1.4s) 
-				// the original exposure length is one 
-				// we _cannot_ obtain with the IDL software, 
-				// as in this case the readExecutionTime (1.4s) seconds is no longer added!
-				if(exposureLengthMS < readExecutionTime)
-				{
-					throw new Exception(this.getClass().getName()+":setFowlerSamplingParameters:"+
-					 "Due to IDL software errors this exposure length is impossible to obtain: "+
-							    "Requested exposure length "+exposureLengthSeconds+
-							    " s : Adjusted exposure length "+exposureLengthMS+" ms.");
-				}
-			}
-			// The IDL software can't wait less than zero seconds between the end of one set of reads
-			// and the start of the other set of reads
-			if(exposureLengthMS < 0)
-			{
-				throw new Exception(this.getClass().getName()+":setFowlerSamplingParameters:"+
-						    "Adjusted exposure length is too small:"+
-						    exposureLengthMS+" ms : Requested exposure length "+
-						    exposureLengthSeconds+" s.");
-			}
 			// convert exposure length from ms to s.
 			exposureLengthSeconds = ((double)exposureLengthMS)/1000.0;
 			setFSParamCommand = new SetFSParamCommand();
 			setFSParamCommand.setCommand(nReset,nRead,1,exposureLengthSeconds,1);
-			setFSParamCommand.sendCommand();
-			if(setFSParamCommand.getReplyErrorCode() != 0)
+			if(detectorStateMirror.isFSParamCurrent(nReset,nRead,1,exposureLengthSeconds,1) == false)
 			{
-				ioi.error(this.getClass().getName()+
-					  ":setFowlerSamplingParameters:SetFSParam failed:"+
-					  setFSParamCommand.getReplyErrorCode()+":"+
-					  setFSParamCommand.getReplyErrorString());
-				multRunDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+1204);
-				multRunDone.setErrorString("setFowlerSamplingParameters:SetFSParam failed:"+
-							   setFSParamCommand.getReplyErrorCode()+":"+
-							   setFSParamCommand.getReplyErrorString());
-				multRunDone.setSuccessful(false);
-				return false;
+				setFSParamCommand.sendCommand();
+				if(setFSParamCommand.getReplyErrorCode() != 0)
+				{
+					detectorStateMirror.invalidate();
+					ioi.error(this.getClass().getName()+
+						  ":setFowlerSamplingParameters:SetFSParam failed:"+
+						  setFSParamCommand.getReplyErrorCode()+":"+
+						  setFSParamCommand.getReplyErrorString());
+					multRunDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+1204);
+					multRunDone.setErrorString("setFowlerSamplingParameters:SetFSParam failed:"+
+								   setFSParamCommand.getReplyErrorCode()+":"+
+								   setFSParamCommand.getReplyErrorString());
+					multRunDone.setSuccessful(false);
+					return false;
+				}
+				detectorStateMirror.recordFSParam(nReset,nRead,1,exposureLengthSeconds,1);
 			}
-			// calculate ramp overhead
+			// predict ramp overhead
 			// there is one set of nReset resets, and TWO sets of nRead reads per AcquireRamp
-			rampOverheadTime = (resetExecutionTime*nReset)+(2*nRead*readExecutionTime);
+			rampOverheadTime = rampTimingModel.predictOverhead(RampTimingModel.SAMPLING_MODE_FOWLER,
+							multRunCommand.getExposureTime(),status.getDetectorWindowFraction());
+			rampNRead = nRead;
+			rampNGroup = 1;
 			ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
 				":setFowlerSamplingParameters:rampOverheadTime = "+rampOverheadTime+".");
 		}
 		catch(Exception e)
 		{
+			detectorStateMirror.invalidate();
 			ioi.error(this.getClass().getName()+
 				  ":setFowlerSamplingParameters:SetFSParam failed:"+multRunCommand,e);
 			multRunDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+1207);
@@ -642,6 +904,7 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 	 *     the exposure length.
 	 * <li>An instance of SetRampParamCommand is constructed, configured and used to send a 
 	 *     SetRampParam command to the IDL Socket Server.
+	 * <li>The ramp overhead is predicted by the ramp timing model.
 	 * </ul>
 	 * If an error or exception occurs it is caught, a suitable error message put into MULTRUN_DONE, and false
 	 * is returned.
@@ -652,7 +915,10 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 	 *        groups.
 	 * @return We return true if the method succeeds, and false if an error occurs.
 	 * @see #ioi
+	 * @see #rampTimingModel
 	 * @see #rampOverheadTime
+	 * @see #rampNRead
+	 * @see #rampNGroup
 	 * @see ngat.ioi.IOI#error
 	 * @see ngat.ioi.command.SetFSParamCommand
 	 */
@@ -660,16 +926,18 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 						     double exposureLengthSeconds)
 	{
 		SetRampParamCommand setRampParamCommand = null;
-		int nReset,nRead,nDrop,nGroup,groupExecutionTime,resetExecutionTime;
+		IOIConfig config = null;
+		int nReset,nRead,nDrop,nGroup,groupExecutionTime;
 
 		try
 		{
 			ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
 				":setReadUpTheRampParameters:Configuring read-up-the-ramp mode.");
-			nReset = status.getPropertyInteger("ioi.config.UP_THE_RAMP.nreset");
-			nRead = status.getPropertyInteger("ioi.config.UP_THE_RAMP.nread");
-			nDrop = status.getPropertyInteger("ioi.config.UP_THE_RAMP.ndrop");
-			groupExecutionTime = status.getPropertyInteger("ioi.config.UP_THE_RAMP.group_execution_time");
+			config = status.getConfig();
+			nReset = config.getUpTheRampNReset();
+			nRead = config.getUpTheRampNRead();
+			nDrop = config.getUpTheRampNDrop();
+			groupExecutionTime = config.getUpTheRampGroupExecutionTime();
 			setRampParamCommand = new SetRampParamCommand();
 			nGroup = ((int)(exposureLengthSeconds*1000/groupExecutionTime));
 			if(nGroup < 1)
@@ -688,30 +956,36 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 				return false;
 			}
 			setRampParamCommand.setCommand(nReset,nRead,nGroup,nDrop,1);
-			setRampParamCommand.sendCommand();
-			if(setRampParamCommand.getReplyErrorCode() != 0)
+			if(detectorStateMirror.isRampParamCurrent(nReset,nRead,nGroup,nDrop,1) == false)
 			{
-				ioi.error(this.getClass().getName()+
-					  ":setReadUpTheRampParameters:SetRampParam failed:"+
-					  setRampParamCommand.getReplyErrorCode()+":"+
-					  setRampParamCommand.getReplyErrorString());
-				multRunDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+1205);
-				multRunDone.setErrorString("setReadUpTheRampParameters:SetRampParam failed:"+
-							   setRampParamCommand.getReplyErrorCode()+":"+
-							   setRampParamCommand.getReplyErrorString());
-				multRunDone.setSuccessful(false);
-				return false;
+				setRampParamCommand.sendCommand();
+				if(setRampParamCommand.getReplyErrorCode() != 0)
+				{
+					detectorStateMirror.invalidate();
+					ioi.error(this.getClass().getName()+
+						  ":setReadUpTheRampParameters:SetRampParam failed:"+
+						  setRampParamCommand.getReplyErrorCode()+":"+
+						  setRampParamCommand.getReplyErrorString());
+					multRunDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+1205);
+					multRunDone.setErrorString("setReadUpTheRampParameters:SetRampParam failed:"+
+								   setRampParamCommand.getReplyErrorCode()+":"+
+								   setRampParamCommand.getReplyErrorString());
+					multRunDone.setSuccessful(false);
+					return false;
+				}
+				detectorStateMirror.recordRampParam(nReset,nRead,nGroup,nDrop,1);
 			}
-			// as nGroup is computed from groupexecution time, the overhead is just the reset overhead
-			resetExecutionTime = status.getPropertyInteger("ioi.config.UP_THE_RAMP.reset_execution_time");
-			ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
-				":setReadUpTheRampParameters:resetExecutionTime = "+resetExecutionTime+".");
-			rampOverheadTime = nReset*resetExecutionTime;
+			// as nGroup is computed from groupexecution time, the overhead is mostly the reset overhead
+			rampOverheadTime = rampTimingModel.predictOverhead(RampTimingModel.SAMPLING_MODE_UP_THE_RAMP,
+							multRunCommand.getExposureTime(),status.getDetectorWindowFraction());
+			rampNRead = nRead;
+			rampNGroup = nGroup;
 			ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
 				":setReadUpTheRampParameters:rampOverheadTime = "+rampOverheadTime+".");
 		}
 		catch(Exception e)
 		{
+			detectorStateMirror.invalidate();
 			ioi.error(this.getClass().getName()+
 				  ":setReadUpTheRampParameters:SetRampParam failed:"+multRunCommand,e);
 			multRunDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+1208);
@@ -738,7 +1012,7 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 
 		try
 		{
-			doRADecOffset = status.getPropertyBoolean("ioi.multrun.offset.enable");
+			doRADecOffset = status.getConfig().getMultrunOffsetEnable();
 		}
 		catch(Exception e)
 		{
@@ -775,6 +1049,8 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 
 	/**
 	 * Send the command to the IDL Socket Server (AcquireRamp) to acquire the ramp.
+	 * The AcquireRamp round trip time is passed to the ramp timing model to learn from, and rampOverheadTime
+	 * re-predicted.
 	 * If an error or exception occurs it is caught, a suitable error message put into MULTRUN_DONE, and false
 	 * is returned.
 	 * @param multRunCommand The MULTRUN command we are implementing.
@@ -785,19 +1061,25 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 	 * @see ngat.ioi.IOI#log
 	 * @see ngat.ioi.IOI#error
 	 * @see ngat.ioi.command.AcquireRampCommand
+	 * @see #rampTimingModel
+	 * @see RampTimingModel#update
 	 */
 	protected boolean acquireRamp(MULTRUN multRunCommand,MULTRUN_DONE multRunDone)
 	{
 		AcquireRampCommand acquireRampCommand = null;
+		long startTime,duration;
 
 		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			":acquireRamp:Acquiring ramp.");
 		try
 		{
 			acquireRampCommand = new AcquireRampCommand();
+			startTime = System.currentTimeMillis();
 			acquireRampCommand.sendCommand();
+			duration = System.currentTimeMillis()-startTime;
 			if(acquireRampCommand.getReplyErrorCode() != 0)
 			{
+				detectorStateMirror.invalidate();
 				ioi.error(this.getClass().getName()+
 					  ":acquireRamp:AcquireRamp failed:"+
 					  acquireRampCommand.getReplyErrorCode()+":"+
@@ -812,6 +1094,10 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 		}
 		catch(Exception e)
 		{
+			detectorStateMirror.invalidate();
+			// AcquireRampCommand is cancelled when we are aborted, report the abort rather than a failure
+			if(testAbort(multRunCommand,multRunDone) == true)
+				return false;
 			ioi.error(this.getClass().getName()+
 				  ":acquireRamp:AcquireRampCommand failed:",e);
 			multRunDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+1200);
@@ -820,7 +1106,149 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 			return false;
 		}
 		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
-			":acquireRamp:Finished acquiring ramp.");
+			":acquireRamp:Finished acquiring ramp in "+duration+" ms.");
+		// learn from the ramp duration, and use the improved prediction for the next ramp's ACKs
+		try
+		{
+			rampTimingModel.update(bFS,multRunCommand.getExposureTime(),
+					       status.getDetectorWindowFraction(),duration);
+			rampOverheadTime = rampTimingModel.predictOverhead(bFS,multRunCommand.getExposureTime(),
+							       status.getDetectorWindowFraction());
+		}
+		catch(Exception e)
+		{
+			ioi.error(this.getClass().getName()+":acquireRamp:Updating ramp timing model failed:",e);
+		}
+		return true;
+	}
+
+	/**
+	 * Retrieve whether exposures are to be guided, and if so create the GuidedRampAcquisition instance.
+	 * Guiding interleaves guide sub-ramps with read up the ramp science sub-ramps, so it can only be used
+	 * when the array is in Read Up The Ramp mode (bFS == 0). The guide sub-ramps are read out
+	 * using window mode, so guiding cannot be used when CONFIG has selected a detector window.
+	 * If an error or exception occurs it is caught, a suitable error message put into MULTRUN_DONE, and false
+	 * is returned.
+	 * @param multRunCommand The MULTRUN command we are implementing.
+	 * @param multRunDone The MULTRUN_DONE command object that will be returned to the client. We set
+	 *       a sensible error message in this object if this method fails.
+	 * @return We return true if the method succeeds, and false if an error occurs.
+	 * @see #guideEnable
+	 * @see #guidedRampAcquisition
+	 * @see #bFS
+	 * @see IOIStatus#getDetectorWindow
+	 */
+	protected boolean getGuideConfiguration(MULTRUN multRunCommand,MULTRUN_DONE multRunDone)
+	{
+		guideEnable = status.getConfig().getMultrunGuideEnable();
+		if(guideEnable == false)
+			return true;
+		if(bFS != 0)
+		{
+			ioi.error(this.getClass().getName()+
+				  ":getGuideConfiguration:Guiding requires Read Up The Ramp mode:bFS = "+bFS+".");
+			multRunDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+1217);
+			multRunDone.setErrorString("getGuideConfiguration:Guiding requires Read Up The Ramp mode:bFS = "+
+						   bFS+".");
+			multRunDone.setSuccessful(false);
+			return false;
+		}
+		if(status.getDetectorWindow() != null)
+		{
+			ioi.error(this.getClass().getName()+
+				":getGuideConfiguration:Guiding cannot be used with a detector window.");
+			multRunDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+1221);
+			multRunDone.setErrorString("getGuideConfiguration:Guiding cannot be used with a detector window.");
+			multRunDone.setSuccessful(false);
+			return false;
+		}
+		guidedRampAcquisition = new GuidedRampAcquisition(ioi,serverConnectionThread);
+		return true;
+	}
+
+	/**
+	 * Put the array into the window or full frame readout mode selected by the last CONFIG command.
+	 * The IDL Socket Server state mirror means no commands are sent if the array is already in that mode.
+	 * If an error or exception occurs it is caught, a suitable error message put into MULTRUN_DONE, and false
+	 * is returned.
+	 * @param multRunCommand The MULTRUN command we are implementing.
+	 * @param multRunDone The MULTRUN_DONE command object that will be returned to the client. We set
+	 *       a sensible error message in this object if this method fails.
+	 * @return We return true if the method succeeds, and false if an error occurs.
+	 * @see IOI#applyDetectorWindow
+	 * @see IOIStatus#getDetectorWindow
+	 */
+	protected boolean applyDetectorWindow(MULTRUN multRunCommand,MULTRUN_DONE multRunDone)
+	{
+		try
+		{
+			ioi.applyDetectorWindow(status.getDetectorWindow());
+		}
+		catch(Exception e)
+		{
+			ioi.error(this.getClass().getName()+":applyDetectorWindow:Setting window failed:",e);
+			multRunDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+1222);
+			multRunDone.setErrorString("applyDetectorWindow:Setting window failed:"+e.toString());
+			multRunDone.setSuccessful(false);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Acquire a guided exposure using the GuidedRampAcquisition instance.
+	 * The ramp parameters passed to the data processing thread are updated from the science sub-ramps
+	 * actually acquired, and the stitched ramp directory is saved in guidedRampDirectory.
+	 * If an error or exception occurs it is caught, a suitable error message put into MULTRUN_DONE, and false
+	 * is returned.
+	 * @param multRunCommand The MULTRUN command we are implementing.
+	 * @param multRunDone The MULTRUN_DONE command object that will be returned to the client. We set
+	 *       a sensible error message in this object if this method fails.
+	 * @param index The index of the exposure within the MULTRUN, used to select the dither offset.
+	 * @param ditherThread The thread applying the dither offset for this exposure.
+	 * @return We return true if the method succeeds, and false if an error occurs.
+	 * @see #guidedRampAcquisition
+	 * @see #guidedRampDirectory
+	 * @see #rampNRead
+	 * @see #rampNGroup
+	 * @see GuidedRampAcquisition#configure
+	 * @see GuidedRampAcquisition#setDitherThread
+	 * @see GuidedRampAcquisition#expose
+	 */
+	protected boolean acquireGuidedRamp(MULTRUN multRunCommand,MULTRUN_DONE multRunDone,int index,
+					    Thread ditherThread)
+	{
+		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+			":acquireGuidedRamp:Acquiring guided ramp.");
+		try
+		{
+			guidedRampAcquisition.configure(index);
+			guidedRampAcquisition.setDitherThread(ditherThread);
+		}
+		catch(Exception e)
+		{
+			ioi.error(this.getClass().getName()+":acquireGuidedRamp:Failed to configure guiding:",e);
+			multRunDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+1218);
+			multRunDone.setErrorString("acquireGuidedRamp:Failed to configure guiding:"+e.toString());
+			multRunDone.setSuccessful(false);
+			return false;
+		}
+		try
+		{
+			guidedRampDirectory = guidedRampAcquisition.expose(multRunCommand.getExposureTime());
+		}
+		catch(Exception e)
+		{
+			ioi.error(this.getClass().getName()+":acquireGuidedRamp:Guided exposure failed:",e);
+			multRunDone.setErrorNum(IOIConstants.IOI_ERROR_CODE_BASE+1219);
+			multRunDone.setErrorString("acquireGuidedRamp:Guided exposure failed:"+e.toString());
+			multRunDone.setSuccessful(false);
+			return false;
+		}
+		rampNRead = guidedRampAcquisition.getNScienceRead();
+		rampNGroup = guidedRampAcquisition.getScienceGroupCount();
+		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+			":acquireGuidedRamp:Finished acquiring guided ramp into "+guidedRampDirectory+".");
 		return true;
 	}
 
@@ -853,7 +1281,10 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 		multRunAck.setFilename(filename);
 		try
 		{
-			serverConnectionThread.sendAcknowledge(multRunAck);
+			synchronized(serverConnectionThread)
+			{
+				serverConnectionThread.sendAcknowledge(multRunAck);
+			}
 		}
 		catch(IOException e)
 		{
@@ -865,4 +1296,252 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 		}
 		return true;
 	}
+
+	/**
+	 * Instances of this class are added as a listener to the data processing thread for the duration of a
+	 * MULTRUN. When a ramp acquired by the MULTRUN has been processed, a MULTRUN_DP_ACK containing the final
+	 * read's filename, and any frame statistics, is sent straight to the client. This lets
+	 * downstream reduction start on the first frame whilst later frames are still being acquired.
+	 * The data processing thread only queues the processed ramp, the MULTRUN_DP_ACK is sent by a task on
+	 * the shared blocking thread pool, so a slow client connection does not hold up data processing. 
+	 * The queue is sent in order, synchronized on the serverConnectionThread
+	 * so it is not interleaved with ACKs sent by the MULTRUN thread.
+	 * @see DataProcessingListener
+	 * @see IOIExecutors#getBlockingExecutor
+	 */
+	protected class DataProcessingAckForwarder implements DataProcessingListener
+	{
+		/**
+		 * The MULTRUN command we are forwarding processed ramps for.
+		 */
+		protected MULTRUN multRunCommand = null;
+		/**
+		 * The list of ACQUIRERAMP timestamps of the ramps acquired by this MULTRUN. Results for other ramps
+		 * (for instance, from a previous aborted command) are ignored.
+		 */
+		protected List<Long> acquireRampCommandCallTimeList = null;
+		/**
+		 * The list of processed ramps waiting to be sent to the client, in the order they were processed.
+		 * This is a Vector, so the data processing thread can add to it without waiting for a send
+		 * to finish.
+		 */
+		protected List<DataProcessingResult> pendingResultList = null;
+		/**
+		 * The filename sent in the last MULTRUN_DP_ACK, or null if none have been sent.
+		 */
+		protected String lastFilename = null;
+		/**
+		 * The number of MULTRUN_DP_ACKs sent.
+		 */
+		protected int forwardedCount = 0;
+		/**
+		 * Set to true by close, once the MULTRUN has finished. No more MULTRUN_DP_ACKs are sent after this.
+		 */
+		protected volatile boolean closed = false;
+		/**
+		 * The number of ramps acquired by this MULTRUN whose processing failed. This is only changed by
+		 * the data processing thread.
+		 */
+		protected volatile int failedCount = 0;
+		/**
+		 * The result of the last ramp acquired by this MULTRUN whose processing failed, or null if none have.
+		 */
+		protected volatile DataProcessingResult lastFailedResult = null;
+
+		/**
+		 * Constructor.
+		 * @param c The MULTRUN command we are forwarding processed ramps for.
+		 * @see #multRunCommand
+		 * @see #acquireRampCommandCallTimeList
+		 * @see #pendingResultList
+		 */
+		public DataProcessingAckForwarder(MULTRUN c)
+		{
+			super();
+			multRunCommand = c;
+			acquireRampCommandCallTimeList = new Vector<Long>();
+			pendingResultList = new Vector<DataProcessingResult>();
+		}
+
+		/**
+		 * Add a ramp acquired by this MULTRUN, so it is forwarded when it has been processed.
+		 * @param t The timestamp of the ACQUIRERAMP command that generated the ramp.
+		 * @see #acquireRampCommandCallTimeList
+		 */
+		public void addAcquireRampCommandCallTime(long t)
+		{
+			acquireRampCommandCallTimeList.add(new Long(t));
+		}
+
+		/**
+		 * Remove a ramp added with addAcquireRampCommandCallTime, as it was not queued for processing.
+		 * @param t The timestamp of the ACQUIRERAMP command that generated the ramp.
+		 * @see #acquireRampCommandCallTimeList
+		 */
+		public void removeAcquireRampCommandCallTime(long t)
+		{
+			acquireRampCommandCallTimeList.remove(new Long(t));
+		}
+
+		/**
+		 * Called by the data processing thread when a ramp has been processed. If the ramp was acquired
+		 * by this MULTRUN, and the MULTRUN has not finished, the ramp is added to the pending list, and a task
+		 * is submitted to the blocking thread pool to send it. This method does not wait for the send,
+		 * or for any lock held whilst sending. If processing the ramp failed, it is also counted, so
+		 * the MULTRUN can fail.
+		 * @param result The processed ramp.
+		 * @see #closed
+		 * @see #acquireRampCommandCallTimeList
+		 * @see #failedCount
+		 * @see #lastFailedResult
+		 * @see #pendingResultList
+		 * @see #flush
+		 */
+		public void dataProcessed(DataProcessingResult result)
+		{
+			if(closed)
+				return;
+			if(acquireRampCommandCallTimeList.contains(new Long(result.getAcquireRampCommandCallTime())) == false)
+				return;
+			if(result.getSuccessful() == false)
+			{
+				lastFailedResult = result;
+				failedCount++;
+			}
+			pendingResultList.add(result);
+			try
+			{
+				ioi.getExecutors().getBlockingExecutor().execute(new Runnable()
+				{
+					public void run()
+					{
+						flush();
+					}
+				});
+			}
+			catch(RejectedExecutionException e)
+			{
+				// the pool is shutting down, the ramp is sent by close if the MULTRUN is still running
+				ioi.error(this.getClass().getName()+":dataProcessed:Submitting MULTRUN_DP_ACK failed:",e);
+			}
+		}
+
+		/**
+		 * Send a MULTRUN_DP_ACK to the client for each pending processed ramp, in order.
+		 * The time to complete is the exposure length plus ramp overhead plus default ACK time, the same as
+		 * in the MULTRUN's own ACKs, so the client's timeout is not shortened. A ramp whose processing failed
+		 * is sent with no filename and zero statistics, so the client is not left waiting for it, and does
+		 * not change the last filename. If the forwarder has been
+		 * closed, the pending ramps are discarded. If a send fails, the remaining ramps are discarded
+		 * (the MULTRUN thread will detect a broken connection when it next sends an ACK).
+		 * @see #closed
+		 * @see #pendingResultList
+		 * @see #lastFilename
+		 * @see #forwardedCount
+		 * @see FrameStatistics
+		 */
+		public synchronized void flush()
+		{
+			MULTRUN_DP_ACK multRunDpAck = null;
+			FrameStatistics frameStatistics = null;
+			DataProcessingResult result = null;
+
+			while(true)
+			{
+				synchronized(pendingResultList)
+				{
+					if(closed)
+						pendingResultList.clear();
+					if(pendingResultList.size() == 0)
+						return;
+					result = pendingResultList.remove(0);
+				}
+				ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+					":flush:Sending MULTRUN_DP_ACK for "+result+".");
+				multRunDpAck = new MULTRUN_DP_ACK(multRunCommand.getId());
+				multRunDpAck.setTimeToComplete(multRunCommand.getExposureTime()+rampOverheadTime+
+							       serverConnectionThread.getDefaultAcknowledgeTime());
+				multRunDpAck.setFilename(result.getFinalFilename());
+				frameStatistics = result.getFrameStatistics();
+				if(frameStatistics != null)
+				{
+					multRunDpAck.setCounts((float)(frameStatistics.getPeakCounts()));
+					multRunDpAck.setSeeing((float)(frameStatistics.getSeeing()));
+					multRunDpAck.setXpix((float)(frameStatistics.getXCentroid()));
+					multRunDpAck.setYpix((float)(frameStatistics.getYCentroid()));
+					multRunDpAck.setSkyBrightness((float)(frameStatistics.getSky()));
+					multRunDpAck.setSaturation(frameStatistics.getSaturatedPixelCount() > 0);
+				}
+				multRunDpAck.setPhotometricity(0.0f);
+				try
+				{
+					synchronized(serverConnectionThread)
+					{
+						serverConnectionThread.sendAcknowledge(multRunDpAck);
+					}
+				}
+				catch(IOException e)
+				{
+					ioi.error(this.getClass().getName()+":flush:sendAcknowledge failed:",e);
+					pendingResultList.clear();
+					return;
+				}
+				if(result.getSuccessful())
+					lastFilename = result.getFinalFilename();
+				forwardedCount++;
+			}
+		}
+
+		/**
+		 * Send any pending MULTRUN_DP_ACKs, and stop any more being sent. As this is synchronized with flush,
+		 * once this returns no MULTRUN_DP_ACK is in the process of being sent.
+		 * @see #flush
+		 * @see #closed
+		 */
+		public synchronized void close()
+		{
+			flush();
+			closed = true;
+		}
+
+		/**
+		 * Get the filename sent in the last MULTRUN_DP_ACK.
+		 * @return The filename, or null if none have been sent.
+		 * @see #lastFilename
+		 */
+		public synchronized String getLastFilename()
+		{
+			return lastFilename;
+		}
+
+		/**
+		 * Get the number of ramps acquired by this MULTRUN whose processing failed.
+		 * @return The number of failed ramps.
+		 * @see #failedCount
+		 */
+		public int getFailedCount()
+		{
+			return failedCount;
+		}
+
+		/**
+		 * Get the result of the last ramp acquired by this MULTRUN whose processing failed.
+		 * @return The result, or null if no ramp has failed.
+		 * @see #lastFailedResult
+		 */
+		public DataProcessingResult getLastFailedResult()
+		{
+			return lastFailedResult;
+		}
+
+		/**
+		 * Get the number of MULTRUN_DP_ACKs sent.
+		 * @return The number of MULTRUN_DP_ACKs.
+		 * @see #forwardedCount
+		 */
+		public synchronized int getForwardedCount()
+		{
+			return forwardedCount;
+		}
+	}
 }
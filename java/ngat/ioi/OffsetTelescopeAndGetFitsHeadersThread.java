@@ -8,6 +8,7 @@ import java.text.*;
 import java.util.*;
 
 import ngat.fits.*;
+import ngat.ioi.command.TraceContext;
 import ngat.message.base.*;
 import ngat.message.ISS_INST.*;
 import ngat.net.*;
@@ -56,12 +57,6 @@ public class OffsetTelescopeAndGetFitsHeadersThread extends Thread
 	 * What the running thread is doing.
 	 */
 	public final static int THREAD_STATE_FINISHED                   = 6;
-	/**
-	 * Internal constant used when the order number offset defined in the property
-	 * 'ioi.get_fits.order_number_offset' is not found or is not a valid number.
-	 * @see #run
-	 */
-	private final static int DEFAULT_ORDER_NUMBER_OFFSET = 255;
 	/**
 	 * A reference to the IOI class instance.
 	 */
@@ -95,6 +90,11 @@ public class OffsetTelescopeAndGetFitsHeadersThread extends Thread
 	 * The index into the offset list of the OFFSET_RA_DEC to perform. Used to get the right dither.
 	 */
 	protected int offsetIndex = -1;
+	/**
+	 * The trace context of the exposure this thread is working on, or null if it is not being traced.
+	 * @see #setTraceContext
+	 */
+	protected TraceContext traceContext = null;
 
 	/**
 	 * Default constructor.
@@ -149,6 +149,17 @@ public class OffsetTelescopeAndGetFitsHeadersThread extends Thread
 		offsetIndex = i;
 	}
 
+	/**
+	 * Set the trace context of the exposure the offset and FITS headers are for. The run method makes
+	 * this the thread's current context, so the ISS commands it sends are traced.
+	 * @param c The trace context, or null if the exposure is not being traced.
+	 * @see #traceContext
+	 */
+	public void setTraceContext(TraceContext c)
+	{
+		traceContext = c;
+	}
+
 	/**
 	 * Get the current thread state.
 	 * @return The current thread state.
@@ -224,17 +235,23 @@ public class OffsetTelescopeAndGetFitsHeadersThread extends Thread
 	 * Main thread run method.
 	 * <ul>
 	 * <li>We set the thread state to STARTED.
-	 * <li>We initialise some data.
+	 * <li>We initialise some data, and make the traceContext the thread's current trace context.
 	 * <li>We set the thread state to THREAD_STATE_OFFSETING_TELESCOPE
-	 * <li>We call offsetTelescope. If this fails an error is logged and the threadState set to 
+	 * <li>We call offsetTelescope, recording it as the "OFFSET" span. 
+	 *     If this fails an error is logged and the threadState set to 
 	 *     THREAD_STATE_FAILED_OFFSET_TELESCOPE
 	 * <li>e set the thread state to THREAD_STATE_GET_FITS.
-	 * <li>We create a GET_FITS object.
-	 * <li>We call sendISSCommand to send the GET_FITS object to the ISS.
-	 * <li>On return we check whether an error occured. If an error has occurred, 
-	 *     the errorNum and errorString is set and the threadState is set to THREAD_STATE_FAILED_GET_FITS.
-	 * <li>We extract a list of FITS headers from the returned object.
-	 * <li>We add the FITS headers to the ioiFitsHeader.
+	 * <li>If the FITS header source cache holds all the ISS keywords, we retrieve the list of FITS headers
+	 *     from it. Otherwise:
+	 *     <ul>
+	 *     <li>We create a GET_FITS object.
+	 *     <li>We call sendISSCommand to send the GET_FITS object to the ISS.
+	 *     <li>On return we check whether an error occured. If an error has occurred, the errorNum and
+	 *         errorString is set and the threadState is set to THREAD_STATE_FAILED_GET_FITS.
+	 *     <li>We extract a list of FITS headers from the returned object, and merge it with the cache.
+	 *     </ul>
+	 * <li>We add the FITS headers to the ioiFitsHeader. Retrieving the headers is recorded as 
+	 *     the "GET_FITS" span.
 	 * <li>We set the thread state to FINISHED.
 	 * </ul>
 	 * @see #init
@@ -243,6 +260,7 @@ public class OffsetTelescopeAndGetFitsHeadersThread extends Thread
 	 * @see #threadState
 	 * @see #ioiFitsHeader
 	 * @see #offsetIndex
+	 * @see #traceContext
 	 * @see #THREAD_STATE_STARTED
 	 * @see #THREAD_STATE_OFFSETING_TELESCOPE
 	 * @see #THREAD_STATE_FAILED_OFFSET_TELESCOPE
@@ -251,22 +269,36 @@ public class OffsetTelescopeAndGetFitsHeadersThread extends Thread
 	 * @see #THREAD_STATE_FINISHED
 	 * @see #errorNum
 	 * @see #errorString
+	 * @see IOI#getFitsHeaderSourceCache
+	 * @see FitsHeaderSourceCache#isFetchNeeded
+	 * @see FitsHeaderSourceCache#update
+	 * @see FitsHeaderSourceCache#getCachedKeywordValueList
 	 */
 	public void run()
 	{
+		FitsHeaderSourceCache fitsHeaderSourceCache = null;
 		INST_TO_ISS_DONE instToISSDone = null;
 		GET_FITS getFits = null;
 		GET_FITS_DONE getFitsDone = null;
 		FitsHeaderCardImage cardImage = null;
 		Vector list = null;
+		long fetchStartTime,traceStartTime = 0;
 		int orderNumberOffset;
+		boolean retval;
 
 		threadState = THREAD_STATE_STARTED;
 		errorNum = 0;
 		errorString = null;
+		// this thread is only used once, so the context does not need to be cleared afterwards
+		TraceContext.setCurrentContext(traceContext);
 		threadState = THREAD_STATE_OFFSETING_TELESCOPE;
 		ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":run:Offseting telescope.");
-		if(offsetTelescope() == false)
+		if(traceContext != null)
+			traceStartTime = traceContext.startSpan();
+		retval = offsetTelescope();
+		if(traceContext != null)
+			traceContext.endSpan("OFFSET",traceStartTime);
+		if(retval == false)
 		{
 			ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
 				":run:offsetTelescope failed for index "+offsetIndex+".");
@@ -276,34 +308,42 @@ public class OffsetTelescopeAndGetFitsHeadersThread extends Thread
 		}
 		// send GET_FITS command
 		threadState = THREAD_STATE_GET_FITS;
-		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+":run:send GET_FITS command.");
-		getFits = new GET_FITS("GET_FITS");
-		instToISSDone = ioi.sendISSCommand(getFits,serverConnectionThread);
-		if(instToISSDone.getSuccessful() == false)
+		if(traceContext != null)
+			traceStartTime = traceContext.startSpan();
+		fitsHeaderSourceCache = ioi.getFitsHeaderSourceCache();
+		if(fitsHeaderSourceCache.isFetchNeeded(FitsHeaderSourceCache.SOURCE_ISS))
 		{
-			ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":run:GET_FITS command failed.");
-			ioi.error(this.getClass().getName()+":run:GET_FITS command failed.");
-			errorNum = 1;
-			errorString = new String(this.getClass().getName()+":run:GET_FITS command failed.");
-			threadState = THREAD_STATE_FAILED_GET_FITS;
-			return;
-		}
-		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
-			":run:GET_FITS command finished: Extracting data.");
-		// Get the returned FITS header information into the FitsHeader object.
-		getFitsDone = (ngat.message.ISS_INST.GET_FITS_DONE)instToISSDone;
-		// extract specific FITS headers 
-		list = getFitsDone.getFitsHeader();
-		// get an ordernumber offset
-		try
-		{
-			orderNumberOffset = status.getPropertyInteger("ioi.get_fits.iss.order_number_offset");
+			ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+":run:send GET_FITS command.");
+			getFits = new GET_FITS("GET_FITS");
+			fetchStartTime = System.currentTimeMillis();
+			instToISSDone = ioi.sendISSCommand(getFits,serverConnectionThread);
+			if(instToISSDone.getSuccessful() == false)
+			{
+				ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":run:GET_FITS command failed.");
+				ioi.error(this.getClass().getName()+":run:GET_FITS command failed.");
+				errorNum = 1;
+				errorString = new String(this.getClass().getName()+":run:GET_FITS command failed.");
+				threadState = THREAD_STATE_FAILED_GET_FITS;
+				return;
+			}
+			ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+				":run:GET_FITS command finished: Extracting data.");
+			// Get the returned FITS header information into the FitsHeader object.
+			getFitsDone = (ngat.message.ISS_INST.GET_FITS_DONE)instToISSDone;
+			// extract specific FITS headers, and merge them with the cached ones
+			list = fitsHeaderSourceCache.update(FitsHeaderSourceCache.SOURCE_ISS,getFitsDone.getFitsHeader(),
+							    System.currentTimeMillis()-fetchStartTime);
 		}
-		catch(NumberFormatException e)
+		else
 		{
-			orderNumberOffset = DEFAULT_ORDER_NUMBER_OFFSET;
-			ioi.error(this.getClass().getName()+":run:Getting order number offset failed.",e);
+			ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+				":run:All ISS keywords cached, GET_FITS not sent.");
+			list = fitsHeaderSourceCache.getCachedKeywordValueList(FitsHeaderSourceCache.SOURCE_ISS);
 		}
+		if(traceContext != null)
+			traceContext.endSpan("GET_FITS",traceStartTime);
+		// get an ordernumber offset
+		orderNumberOffset = status.getConfig().getISSOrderNumberOffset();
 		// Add the list, which is a Vector containing FitsHeaderCardImage objects, 
 		// to ioiFitsHeader
 		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
@@ -326,6 +366,7 @@ public class OffsetTelescopeAndGetFitsHeadersThread extends Thread
 	{
 		OFFSET_RA_DEC offsetRaDecCommand = null;
 		INST_TO_ISS_DONE instToISSDone = null;
+		IOIConfig config = null;
 		int raDecOffsetCount,raDecOffsetIndex,offsetSleepTime;
 		float raOffset,decOffset;
 		boolean doRADecOffset,waitForOffsetToComplete;
@@ -335,13 +376,14 @@ public class OffsetTelescopeAndGetFitsHeadersThread extends Thread
 			":offsetTelescope:Starting, retrieveing config.");
 		try
 		{
-			doRADecOffset = status.getPropertyBoolean("ioi.multrun.offset.enable");
-			waitForOffsetToComplete = status.getPropertyBoolean("ioi.multrun.offset.wait_for_complete");
-			offsetSleepTime =  status.getPropertyInteger("ioi.multrun.offset.wait_sleep_time");
-			raDecOffsetCount = status.getPropertyInteger("ioi.multrun.offset.count");
+			config = status.getConfig();
+			doRADecOffset = config.getMultrunOffsetEnable();
+			waitForOffsetToComplete = config.getMultrunOffsetWaitForComplete();
+			offsetSleepTime =  config.getMultrunOffsetWaitSleepTime();
+			raDecOffsetCount = config.getMultrunOffsetCount();
 			raDecOffsetIndex = offsetIndex % raDecOffsetCount;
-			raOffset = status.getPropertyFloat("ioi.multrun.offset."+raDecOffsetIndex+".ra");
-			decOffset = status.getPropertyFloat("ioi.multrun.offset."+raDecOffsetIndex+".dec");
+			raOffset = config.getMultrunRaOffset(raDecOffsetIndex);
+			decOffset = config.getMultrunDecOffset(raDecOffsetIndex);
 		}
 		catch(Exception e)
 		{
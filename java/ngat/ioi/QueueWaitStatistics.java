@@ -0,0 +1,127 @@
+// QueueWaitStatistics.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+
+/**
+ * Instances of this class hold statistics of how long items of one priority class waited in the data 
+ * processing list before being processed.
+ * @see DataProcessingThread#selectNextItem
+ * @see DataProcessingThread#getQueueWaitStatistics
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class QueueWaitStatistics
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The number of items processed.
+	 */
+	protected int count = 0;
+	/**
+	 * The total time the items waited, in milliseconds.
+	 */
+	protected long totalTime = 0;
+	/**
+	 * The longest time an item waited, in milliseconds.
+	 */
+	protected long maxTime = 0;
+	/**
+	 * The time the last item waited, in milliseconds.
+	 */
+	protected long lastTime = 0;
+
+	/**
+	 * Default constructor.
+	 */
+	public QueueWaitStatistics()
+	{
+		super();
+	}
+
+	/**
+	 * Copy constructor.
+	 * @param q The statistics to copy.
+	 */
+	public QueueWaitStatistics(QueueWaitStatistics q)
+	{
+		super();
+		count = q.count;
+		totalTime = q.totalTime;
+		maxTime = q.maxTime;
+		lastTime = q.lastTime;
+	}
+
+	/**
+	 * Add the wait time of a processed item.
+	 * @param t The time the item waited, in milliseconds.
+	 * @see #count
+	 * @see #totalTime
+	 * @see #maxTime
+	 * @see #lastTime
+	 */
+	public void add(long t)
+	{
+		count++;
+		totalTime += t;
+		if(t > maxTime)
+			maxTime = t;
+		lastTime = t;
+	}
+
+	/**
+	 * Get the number of items processed.
+	 * @return The number of items.
+	 * @see #count
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Get the mean time the items waited.
+	 * @return The mean time, in milliseconds, or 0.0 if no items have been processed.
+	 * @see #count
+	 * @see #totalTime
+	 */
+	public double getMeanTime()
+	{
+		if(count == 0)
+			return 0.0;
+		return ((double)totalTime)/((double)count);
+	}
+
+	/**
+	 * Get the longest time an item waited.
+	 * @return The time, in milliseconds.
+	 * @see #maxTime
+	 */
+	public long getMaxTime()
+	{
+		return maxTime;
+	}
+
+	/**
+	 * Get the time the last item waited.
+	 * @return The time, in milliseconds.
+	 * @see #lastTime
+	 */
+	public long getLastTime()
+	{
+		return lastTime;
+	}
+
+	/**
+	 * Return a string describing the statistics.
+	 */
+	public String toString()
+	{
+		return new String(this.getClass().getName()+":count:"+count+":mean:"+getMeanTime()+
+				  " ms:max:"+maxTime+" ms:last:"+lastTime+" ms");
+	}
+}
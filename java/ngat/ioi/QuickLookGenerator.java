@@ -0,0 +1,485 @@
+// QuickLookGenerator.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.awt.image.*;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.*;
+
+/**
+ * This class generates quick-look preview products from a ramp: a binned preview FITS image and
+ * a scaled 8 bit greyscale PNG. The binned image is created in a single pass over the source frame(s),
+ * split into blocks of binned rows which are processed in parallel. The PNG display limits are computed
+ * from the (small) binned image using an IRAF zscale-style algorithm, so the full frame is only read once.
+ * The source is either the final read of the ramp, or a CDS image (final read minus first read),
+ * which is computed on the fly during the binning pass.
+ * @see FitsImageData
+ * @see DataProcessingThread#createQuickLookFiles
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class QuickLookGenerator
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The zscale contrast parameter, as used by IRAF/ds9.
+	 */
+	public final static double ZSCALE_CONTRAST = 0.25;
+	/**
+	 * The zscale rejection threshold, in standard deviations.
+	 */
+	public final static double ZSCALE_REJECTION_THRESHOLD = 2.5;
+	/**
+	 * The maximum number of zscale line fitting iterations.
+	 */
+	public final static int ZSCALE_MAX_ITERATIONS = 5;
+	/**
+	 * The maximum number of binned pixels sampled by zscale.
+	 */
+	public final static int ZSCALE_MAX_SAMPLE_COUNT = 1000;
+	/**
+	 * The thread pool used to bin blocks of rows in parallel.
+	 */
+	protected ExecutorService executorService = null;
+	/**
+	 * The number of threads in the thread pool.
+	 */
+	protected int threadCount = 1;
+	/**
+	 * The binning factor, in both axes.
+	 */
+	protected int bin = 8;
+	/**
+	 * The binned image data (the mean physical value of each bin). Re-used between frames of the same size.
+	 */
+	protected float binnedData[] = null;
+	/**
+	 * The number of columns in the binned image.
+	 */
+	protected int binnedNAxis1 = 0;
+	/**
+	 * The number of rows in the binned image.
+	 */
+	protected int binnedNAxis2 = 0;
+	/**
+	 * A buffer used to sample the binned data for the zscale calculation.
+	 */
+	protected float sampleData[] = null;
+	/**
+	 * The lower display limit computed for the last preview.
+	 */
+	protected double zMin = 0.0;
+	/**
+	 * The upper display limit computed for the last preview.
+	 */
+	protected double zMax = 0.0;
+
+	/**
+	 * Constructor. Uses the thread pool shared with the rest of the software;
+	 * the work is split into threadCount tasks.
+	 * @param executorService The shared thread pool.
+	 * @param threadCount The number of threads to bin, normally the number of threads in the shared pool.
+	 *        If this is less than 1, 1 is used.
+	 * @see #threadCount
+	 * @see #executorService
+	 * @see IOIExecutors#getComputeExecutor
+	 */
+	public QuickLookGenerator(ExecutorService executorService,int threadCount)
+	{
+		super();
+		if(threadCount < 1)
+			threadCount = 1;
+		this.threadCount = threadCount;
+		this.executorService = executorService;
+	}
+
+	/**
+	 * Set the binning factor.
+	 * @param b The binning factor, used in both axes. Must be at least 1.
+	 * @exception IllegalArgumentException Thrown if b is less than 1.
+	 * @see #bin
+	 */
+	public void setBin(int b) throws IllegalArgumentException
+	{
+		if(b < 1)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setBin:Illegal binning:"+b);
+		}
+		bin = b;
+	}
+
+	/**
+	 * Create the binned image from the specified frame(s), and compute the display limits.
+	 * @param finalRead The final read of the ramp.
+	 * @param firstRead The first read of the ramp, if a CDS preview is required, otherwise null.
+	 * @exception Exception Thrown if the two reads have different dimensions, or a binning task fails.
+	 * @see #binnedData
+	 * @see #computeZScale
+	 * @see BinningTask
+	 */
+	public void bin(FitsImageData finalRead,FitsImageData firstRead) throws Exception
+	{
+		List<Future<Object>> futureList = new Vector<Future<Object>>();
+		int rowsPerTask;
+
+		if((firstRead != null)&&((firstRead.getNAxis1() != finalRead.getNAxis1())||
+					 (firstRead.getNAxis2() != finalRead.getNAxis2())))
+		{
+			throw new Exception(this.getClass().getName()+":bin:CDS read dimensions differ:"+
+					    finalRead.getFile()+" is "+finalRead.getNAxis1()+"x"+finalRead.getNAxis2()+
+					    ", "+firstRead.getFile()+" is "+firstRead.getNAxis1()+"x"+
+					    firstRead.getNAxis2()+".");
+		}
+		binnedNAxis1 = finalRead.getNAxis1()/bin;
+		binnedNAxis2 = finalRead.getNAxis2()/bin;
+		if((binnedNAxis1 < 1)||(binnedNAxis2 < 1))
+		{
+			throw new Exception(this.getClass().getName()+":bin:Image "+finalRead.getFile()+
+					    " is too small to bin by "+bin+".");
+		}
+		if((binnedData == null)||(binnedData.length != (binnedNAxis1*binnedNAxis2)))
+			binnedData = new float[binnedNAxis1*binnedNAxis2];
+		rowsPerTask = (binnedNAxis2+threadCount-1)/threadCount;
+		for(int startRow = 0; startRow < binnedNAxis2; startRow += rowsPerTask)
+		{
+			futureList.add(executorService.submit(new BinningTask(finalRead,firstRead,startRow,
+					       Math.min(startRow+rowsPerTask,binnedNAxis2))));
+		}
+		for(int i = 0; i < futureList.size(); i++)
+		{
+			try
+			{
+				futureList.get(i).get();
+			}
+			catch(ExecutionException e)
+			{
+				throw new Exception(this.getClass().getName()+":bin:"+finalRead.getFile()+
+						    ":Binning failed:",e.getCause());
+			}
+		}
+		computeZScale();
+	}
+
+	/**
+	 * Compute display limits from the binned image, using a simplified version of the IRAF zscale algorithm.
+	 * <ul>
+	 * <li>Up to ZSCALE_MAX_SAMPLE_COUNT binned pixels are sampled at a regular stride, and sorted.
+	 * <li>A straight line is fitted to the sorted sample values against their index, iteratively rejecting
+	 *     points more than ZSCALE_REJECTION_THRESHOLD sigma from the fit.
+	 * <li>The slope is divided by ZSCALE_CONTRAST, and the limits are extrapolated from the median over the
+	 *     whole sample, and clipped to the sample range.
+	 * <li>If too many points are rejected, the sample range is used.
+	 * </ul>
+	 * @see #binnedData
+	 * @see #sampleData
+	 * @see #zMin
+	 * @see #zMax
+	 */
+	protected void computeZScale()
+	{
+		double sumX,sumY,sumXX,sumXY,slope,intercept,residual,sigma,sumResidual2,median,x;
+		int pixelCount,sampleCount,stride,center,fitCount,lastFitCount;
+		boolean rejected[];
+
+		pixelCount = binnedNAxis1*binnedNAxis2;
+		stride = Math.max(1,pixelCount/ZSCALE_MAX_SAMPLE_COUNT);
+		sampleCount = (pixelCount+stride-1)/stride;
+		if((sampleData == null)||(sampleData.length != sampleCount))
+			sampleData = new float[sampleCount];
+		for(int i = 0; i < sampleCount; i++)
+			sampleData[i] = binnedData[i*stride];
+		Arrays.sort(sampleData);
+		center = sampleCount/2;
+		median = sampleData[center];
+		zMin = sampleData[0];
+		zMax = sampleData[sampleCount-1];
+		if(sampleCount < 3)
+			return;
+		rejected = new boolean[sampleCount];
+		slope = 0.0;
+		lastFitCount = -1;
+		fitCount = sampleCount;
+		for(int iteration = 0; (iteration < ZSCALE_MAX_ITERATIONS) && (fitCount != lastFitCount); iteration++)
+		{
+			sumX = 0.0;
+			sumY = 0.0;
+			sumXX = 0.0;
+			sumXY = 0.0;
+			for(int i = 0; i < sampleCount; i++)
+			{
+				if(rejected[i])
+					continue;
+				x = i-center;
+				sumX += x;
+				sumY += sampleData[i];
+				sumXX += x*x;
+				sumXY += x*sampleData[i];
+			}
+			slope = ((fitCount*sumXY)-(sumX*sumY))/((fitCount*sumXX)-(sumX*sumX));
+			intercept = (sumY-(slope*sumX))/fitCount;
+			sumResidual2 = 0.0;
+			for(int i = 0; i < sampleCount; i++)
+			{
+				if(rejected[i])
+					continue;
+				residual = sampleData[i]-(intercept+(slope*(i-center)));
+				sumResidual2 += residual*residual;
+			}
+			sigma = Math.sqrt(sumResidual2/fitCount);
+			lastFitCount = fitCount;
+			fitCount = 0;
+			for(int i = 0; i < sampleCount; i++)
+			{
+				residual = sampleData[i]-(intercept+(slope*(i-center)));
+				rejected[i] = (Math.abs(residual) > (ZSCALE_REJECTION_THRESHOLD*sigma));
+				if(rejected[i] == false)
+					fitCount++;
+			}
+			if(fitCount < (sampleCount/2))
+				return;
+		}
+		slope = slope/ZSCALE_CONTRAST;
+		zMin = Math.max(sampleData[0],median-(center*slope));
+		zMax = Math.min(sampleData[sampleCount-1],median+((sampleCount-1-center)*slope));
+	}
+
+	/**
+	 * Write the binned image to a FITS file, as BITPIX -32. The source image's header cards (less the
+	 * structural and scaling keywords) are copied across, and the binning is recorded.
+	 * @param source The image the preview was created from (used for it's headers).
+	 * @param cds Whether the preview is a CDS image.
+	 * @param outputFile The file to write.
+	 * @exception Exception Thrown if writing fails.
+	 * @see #binnedData
+	 */
+	public void writePreviewFits(FitsImageData source,boolean cds,File outputFile) throws Exception
+	{
+		List<String> cardList = new Vector<String>();
+		List<String> sourceCardList = null;
+		BufferedOutputStream outputStream = null;
+		ByteBuffer buffer = null;
+		String keyword = null;
+
+		cardList.add(FitsImageData.formatCard("SIMPLE",new Boolean(true),"file conforms to FITS"));
+		cardList.add(FitsImageData.formatCard("BITPIX",new Integer(-32),null));
+		cardList.add(FitsImageData.formatCard("NAXIS",new Integer(2),null));
+		cardList.add(FitsImageData.formatCard("NAXIS1",new Integer(binnedNAxis1),null));
+		cardList.add(FitsImageData.formatCard("NAXIS2",new Integer(binnedNAxis2),null));
+		sourceCardList = source.getCardList();
+		for(int i = 0; i < sourceCardList.size(); i++)
+		{
+			keyword = sourceCardList.get(i).substring(0,8).trim();
+			if(keyword.equals("SIMPLE")||keyword.equals("BITPIX")||keyword.startsWith("NAXIS")||
+			   keyword.equals("BZERO")||keyword.equals("BSCALE")||keyword.equals("CHECKSUM")||
+			   keyword.equals("DATASUM"))
+				continue;
+			cardList.add(sourceCardList.get(i));
+		}
+		cardList.add(FitsImageData.formatCard("PREVIEW",new Boolean(true),"Binned quick-look preview"));
+		cardList.add(FitsImageData.formatCard("PRVBIN",new Integer(bin),"Preview binning factor"));
+		cardList.add(FitsImageData.formatCard("PRVSRC",cds ? "CDS" : "FINAL_READ","Preview source"));
+		cardList.add(FitsImageData.formatCard("PRVZMIN",new Double(zMin),"Preview display minimum"));
+		cardList.add(FitsImageData.formatCard("PRVZMAX",new Double(zMax),"Preview display maximum"));
+		buffer = ByteBuffer.allocate(binnedData.length*4);
+		for(int i = 0; i < binnedData.length; i++)
+			buffer.putFloat(binnedData[i]);
+		outputStream = new BufferedOutputStream(new FileOutputStream(outputFile));
+		try
+		{
+			outputStream.write(FitsImageData.getHeaderBytes(cardList));
+			outputStream.write(buffer.array());
+			outputStream.write(new byte[FitsImageData.getPaddingLength(buffer.capacity())]);
+		}
+		finally
+		{
+			outputStream.close();
+		}
+	}
+
+	/**
+	 * Write the binned image to an 8 bit greyscale PNG, scaled linearly between zMin and zMax.
+	 * The image is flipped vertically, so that FITS row 1 is at the bottom of the PNG, as it would be
+	 * displayed by ds9.
+	 * @param outputFile The file to write.
+	 * @exception Exception Thrown if writing fails.
+	 * @see #binnedData
+	 * @see #zMin
+	 * @see #zMax
+	 */
+	public void writePreviewPNG(File outputFile) throws Exception
+	{
+		BufferedImage image = null;
+		byte pixels[];
+		double scale,value;
+
+		image = new BufferedImage(binnedNAxis1,binnedNAxis2,BufferedImage.TYPE_BYTE_GRAY);
+		pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+		if(zMax > zMin)
+			scale = 255.0/(zMax-zMin);
+		else
+			scale = 0.0;
+		for(int y = 0; y < binnedNAxis2; y++)
+		{
+			for(int x = 0; x < binnedNAxis1; x++)
+			{
+				value = (binnedData[(y*binnedNAxis1)+x]-zMin)*scale;
+				if(value < 0.0)
+					value = 0.0;
+				else if(value > 255.0)
+					value = 255.0;
+				pixels[((binnedNAxis2-1-y)*binnedNAxis1)+x] = (byte)((int)value);
+			}
+		}
+		if(ImageIO.write(image,"png",outputFile) == false)
+		{
+			throw new Exception(this.getClass().getName()+":writePreviewPNG:No PNG writer available for "+
+					    outputFile+".");
+		}
+	}
+
+	/**
+	 * Get the lower display limit of the last preview.
+	 * @return The lower limit, in physical units.
+	 * @see #zMin
+	 */
+	public double getZMin()
+	{
+		return zMin;
+	}
+
+	/**
+	 * Get the upper display limit of the last preview.
+	 * @return The upper limit, in physical units.
+	 * @see #zMax
+	 */
+	public double getZMax()
+	{
+		return zMax;
+	}
+
+	/**
+	 * Task that bins a contiguous range of binned rows. Each task writes to a distinct range of binnedData,
+	 * and uses a single row of accumulators, so there is no allocation per pixel and no shared mutable state.
+	 */
+	protected class BinningTask implements Callable<Object>
+	{
+		/**
+		 * The final read.
+		 */
+		protected FitsImageData finalRead = null;
+		/**
+		 * The first read, or null if this is not a CDS preview.
+		 */
+		protected FitsImageData firstRead = null;
+		/**
+		 * The first binned row to create.
+		 */
+		protected int startRow;
+		/**
+		 * One more than the last binned row to create.
+		 */
+		protected int endRow;
+
+		/**
+		 * Constructor.
+		 * @param finalRead The final read.
+		 * @param firstRead The first read, or null if this is not a CDS preview.
+		 * @param startRow The first binned row to create.
+		 * @param endRow One more than the last binned row to create.
+		 */
+		public BinningTask(FitsImageData finalRead,FitsImageData firstRead,int startRow,int endRow)
+		{
+			super();
+			this.finalRead = finalRead;
+			this.firstRead = firstRead;
+			this.startRow = startRow;
+			this.endRow = endRow;
+		}
+
+		/**
+		 * Bin the rows.
+		 * @return null.
+		 */
+		public Object call()
+		{
+			long rowSum[] = new long[binnedNAxis1];
+			int finalData[];
+			int firstData[] = null;
+			double finalScale,finalZero,firstScale,firstZero,binPixelCount;
+			int nAxis1,pixelIndex;
+
+			finalData = finalRead.getData();
+			finalScale = finalRead.getBScale();
+			finalZero = finalRead.getBZero();
+			firstScale = 0.0;
+			firstZero = 0.0;
+			if(firstRead != null)
+			{
+				firstData = firstRead.getData();
+				firstScale = firstRead.getBScale();
+				firstZero = firstRead.getBZero();
+			}
+			nAxis1 = finalRead.getNAxis1();
+			binPixelCount = bin*bin;
+			for(int binnedRow = startRow; binnedRow < endRow; binnedRow++)
+			{
+				Arrays.fill(rowSum,0L);
+				for(int y = binnedRow*bin; y < (binnedRow+1)*bin; y++)
+				{
+					pixelIndex = y*nAxis1;
+					for(int binnedColumn = 0; binnedColumn < binnedNAxis1; binnedColumn++)
+					{
+						for(int x = 0; x < bin; x++)
+						{
+							rowSum[binnedColumn] += finalData[pixelIndex];
+							pixelIndex++;
+						}
+					}
+				}
+				if(firstData == null)
+				{
+					for(int binnedColumn = 0; binnedColumn < binnedNAxis1; binnedColumn++)
+					{
+						binnedData[(binnedRow*binnedNAxis1)+binnedColumn] = (float)
+							(((rowSum[binnedColumn]/binPixelCount)*finalScale)+finalZero);
+					}
+				}
+				else
+				{
+					// convert final read sums to physical means, then subtract first read means
+					for(int binnedColumn = 0; binnedColumn < binnedNAxis1; binnedColumn++)
+					{
+						binnedData[(binnedRow*binnedNAxis1)+binnedColumn] = (float)
+							(((rowSum[binnedColumn]/binPixelCount)*finalScale)+finalZero);
+					}
+					Arrays.fill(rowSum,0L);
+					for(int y = binnedRow*bin; y < (binnedRow+1)*bin; y++)
+					{
+						pixelIndex = y*nAxis1;
+						for(int binnedColumn = 0; binnedColumn < binnedNAxis1; binnedColumn++)
+						{
+							for(int x = 0; x < bin; x++)
+							{
+								rowSum[binnedColumn] += firstData[pixelIndex];
+								pixelIndex++;
+							}
+						}
+					}
+					for(int binnedColumn = 0; binnedColumn < binnedNAxis1; binnedColumn++)
+					{
+						binnedData[(binnedRow*binnedNAxis1)+binnedColumn] -= (float)
+							(((rowSum[binnedColumn]/binPixelCount)*firstScale)+firstZero);
+					}
+				}
+			}
+			return null;
+		}
+	}
+}
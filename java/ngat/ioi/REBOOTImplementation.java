@@ -4,6 +4,7 @@ package ngat.ioi;
 
 import java.io.*;
 import java.lang.*;
+import java.util.*;
 import ngat.ioi.command.*;
 import ngat.message.base.*;
 import ngat.message.ISS_INST.REBOOT;
@@ -121,8 +122,7 @@ public class REBOOTImplementation extends INTERRUPTImplementation implements JMS
 	 * instrument control computer is not connected to an addressable power supply.
 	 * The following four levels of reboot are recognised:
 	 * <ul>
-	 * <li>REDATUM. This powers down the ASIC, and shuts down the connection to the controller, and then
-	 * 	restarts it.
+	 * <li>REDATUM. This reloads the configuration, and re-applies it to the controller (see redatum).
 	 * <li>SOFTWARE. This powers down the ASIC, and shuts down the connection to the IDL Socket server 
 	 *      and closes the server socket using the IO:I close method. It then exits IO:I.
 	 * <li>HARDWARE. This powers down the ASIC, and shuts down the connection to the IDL Socket server 
@@ -145,6 +145,7 @@ public class REBOOTImplementation extends INTERRUPTImplementation implements JMS
 	 * @see ngat.message.ISS_INST.REBOOT#LEVEL_POWER_OFF
 	 * @see #ENABLE_PROPERTY_KEY_ROOT
 	 * @see #REBOOT_LEVEL_LIST
+	 * @see #redatum
 	 * @see IOI#close
 	 * @see IOI#shutdownController
 	 * @see IOI#startupController
@@ -179,9 +180,7 @@ public class REBOOTImplementation extends INTERRUPTImplementation implements JMS
 			switch(rebootCommand.getLevel())
 			{
 				case REBOOT.LEVEL_REDATUM:
-					ioi.shutdownController();
-					ioi.reInit();
-					ioi.startupController();
+					redatum();
 					break;
 				case REBOOT.LEVEL_SOFTWARE:
 				// send REBOOT to the data pipeline
@@ -258,4 +257,65 @@ public class REBOOTImplementation extends INTERRUPTImplementation implements JMS
 		rebootDone.setSuccessful(true);
 		return rebootDone;
 	}
+	/**
+	 * Perform a REDATUM level reboot.
+	 * <ul>
+	 * <li>If a controller startup is still in progress, an exception is thrown.
+	 * <li>If the last controller startup did not complete, there is no running configuration to compare against,
+	 *     so the configuration is reloaded using reInit and the controller started up again.
+	 * <li>Otherwise, if "ioi.reboot.redatum.differential" is false, the controller is shut down, the configuration
+	 *     reloaded using reInit, and the controller started up again (a full Initialize, SetDetector, SetGain
+	 *     and temperature controller setup).
+	 * <li>Otherwise, a copy of the current properties is taken, and reInit reloads the configuration.
+	 *     A ConfigurationDifference is created between the old and new properties, and passed to
+	 *     IOI.redatumController, which only re-configures the parts of the controller whose properties changed.
+	 *     If reInit fails (e.g. the new configuration is invalid) the controller is left running with the
+	 *     old configuration.
+	 * </ul>
+	 * @exception Exception Thrown if reloading the configuration, or re-configuring the controller, fails.
+	 * @see IOI#shutdownController
+	 * @see IOI#reInit
+	 * @see IOI#startupController
+	 * @see IOI#redatumController
+	 * @see IOIStatus#getPropertiesCopy
+	 * @see ConfigurationDifference
+	 * @see ControllerStartup#getState
+	 */
+	protected void redatum() throws Exception
+	{
+		ConfigurationDifference difference = null;
+		Properties oldProperties = null;
+		long startTime;
+
+		startTime = System.currentTimeMillis();
+		if(ioi.getControllerStartup().getState() == ControllerStartup.STATE_IN_PROGRESS)
+		{
+			throw new Exception(this.getClass().getName()+
+					    ":redatum:Controller startup still in progress.");
+		}
+		if(ioi.getControllerStartup().getState() != ControllerStartup.STATE_DONE)
+		{
+			ioi.log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
+				":redatum:Controller not started:Reloading configuration and starting controller.");
+			ioi.reInit();
+			ioi.startupController();
+		}
+		else if(status.getPropertyBoolean("ioi.reboot.redatum.differential") == false)
+		{
+			ioi.log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
+				":redatum:Full REDATUM:Restarting controller.");
+			ioi.shutdownController();
+			ioi.reInit();
+			ioi.startupController();
+		}
+		else
+		{
+			oldProperties = status.getPropertiesCopy();
+			ioi.reInit();
+			difference = new ConfigurationDifference(oldProperties,status.getPropertiesCopy());
+			ioi.redatumController(difference);
+		}
+		ioi.log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
+			":redatum:Finished in "+(System.currentTimeMillis()-startTime)+" ms.");
+	}
 }
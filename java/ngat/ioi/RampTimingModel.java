@@ -0,0 +1,733 @@
+// RampTimingModel.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.io.*;
+import java.util.*;
+
+import ngat.ioi.command.*;
+import ngat.util.logging.*;
+
+/**
+ * This class predicts how long an AcquireRamp takes to complete, from the ramp parameters, sampling mode
+ * and the fraction of the array read out. It also knows which exposure lengths the IDL Socket Server can
+ * actually obtain in each sampling mode.
+ * <p>
+ * The predicted duration is the sum of a fixed part (the time the IDL Socket Server waits between the
+ * two sets of Fowler reads, none in read up the ramp mode) and a linear model in three coefficients:
+ * <pre>
+ * duration = fixed + constant + (reset time * nReset) + (frame time * frames read * window fraction)
+ * </pre>
+ * The coefficients are initialised from the "ioi.config.&lt;mode&gt;.*_execution_time" properties, and then
+ * learnt online (using a normalised least mean squares update) from the measured AcquireRamp round
+ * trip times. The learnt coefficients are saved to the "ioi.ramp_timing.filename" file after each update,
+ * and re-loaded on startup, unless the configured execution times have changed since they were saved.
+ * @see MULTRUNImplementation
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class RampTimingModel
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * Sampling mode number for read up the ramp. This is the same as the bFS value the IDL Socket Server uses.
+	 * @see ngat.ioi.command.SetFSModeCommand#MODE_UP_THE_RAMP
+	 */
+	public final static int SAMPLING_MODE_UP_THE_RAMP = SetFSModeCommand.MODE_UP_THE_RAMP;
+	/**
+	 * Sampling mode number for Fowler sampling. This is the same as the bFS value the IDL Socket Server uses.
+	 * @see ngat.ioi.command.SetFSModeCommand#MODE_FOWLER
+	 */
+	public final static int SAMPLING_MODE_FOWLER = SetFSModeCommand.MODE_FOWLER;
+	/**
+	 * The number of sampling modes.
+	 */
+	public final static int SAMPLING_MODE_COUNT = 2;
+	/**
+	 * The size of the (square) detector in pixels, used to compute the window fraction.
+	 * @see #getWindowFraction
+	 */
+	public final static int DETECTOR_SIZE = 2048;
+	/**
+	 * The window fraction of a full frame readout.
+	 */
+	public final static double WINDOW_FRACTION_FULL_FRAME = 1.0;
+	/**
+	 * Index in the coefficient list of the constant overhead per ramp (ms).
+	 */
+	public final static int COEFFICIENT_CONSTANT = 0;
+	/**
+	 * Index in the coefficient list of the time to do one reset (ms).
+	 */
+	public final static int COEFFICIENT_RESET = 1;
+	/**
+	 * Index in the coefficient list of the time to read one full frame (ms).
+	 */
+	public final static int COEFFICIENT_FRAME = 2;
+	/**
+	 * The number of coefficients per sampling mode.
+	 */
+	public final static int COEFFICIENT_COUNT = 3;
+	/**
+	 * The names of the sampling modes, as used in the persisted model file keys.
+	 * Indexed by sampling mode number.
+	 */
+	protected final static String SAMPLING_MODE_NAME_LIST[] = {"UP_THE_RAMP","FOWLER"};
+	/**
+	 * The names of the coefficients, as used in the persisted model file keys. Indexed by coefficient number.
+	 */
+	protected final static String COEFFICIENT_NAME_LIST[] = {"constant","reset","frame"};
+	/**
+	 * The IOI object.
+	 */
+	protected IOI ioi = null;
+	/**
+	 * The IOIStatus object.
+	 */
+	protected IOIStatus status = null;
+	/**
+	 * Whether the coefficients are learnt from measured ramps ("ioi.ramp_timing.learn.enable").
+	 */
+	protected boolean learnEnable = false;
+	/**
+	 * The normalised least mean squares learning rate, between 0 and 1 ("ioi.ramp_timing.learning_rate").
+	 */
+	protected double learningRate = 0.2;
+	/**
+	 * Measurements whose residual (measured minus predicted duration) is larger than this, in milliseconds,
+	 * are not learnt from ("ioi.ramp_timing.outlier_threshold"). This stops a ramp delayed by something else
+	 * (e.g. an IDL link outage) corrupting the model.
+	 */
+	protected long outlierThreshold = 30000;
+	/**
+	 * The filename the learnt coefficients are saved to ("ioi.ramp_timing.filename").
+	 */
+	protected String filename = null;
+	/**
+	 * The coefficients for each sampling mode, indexed by sampling mode and coefficient number.
+	 */
+	protected double coefficient[][] = null;
+	/**
+	 * The initial coefficients for each sampling mode, computed from the configured execution times.
+	 * These are saved with the learnt coefficients, so we can tell whether the configuration has changed.
+	 */
+	protected double initialCoefficient[][] = null;
+	/**
+	 * The number of measurements learnt from for each sampling mode.
+	 */
+	protected int updateCount[] = null;
+	/**
+	 * The residual (measured minus predicted duration) of the last measurement for each sampling mode, in ms.
+	 */
+	protected long lastResidual[] = null;
+
+	/**
+	 * Default constructor.
+	 */
+	public RampTimingModel()
+	{
+		super();
+		coefficient = new double[SAMPLING_MODE_COUNT][COEFFICIENT_COUNT];
+		initialCoefficient = new double[SAMPLING_MODE_COUNT][COEFFICIENT_COUNT];
+		updateCount = new int[SAMPLING_MODE_COUNT];
+		lastResidual = new long[SAMPLING_MODE_COUNT];
+	}
+
+	/**
+	 * Set the IOI object.
+	 * @param o The IOI object.
+	 * @see #ioi
+	 * @see #status
+	 */
+	public void setIOI(IOI o)
+	{
+		ioi = o;
+		status = ioi.getStatus();
+	}
+
+	/**
+	 * Initialise the model.
+	 * <ul>
+	 * <li>The learning configuration is retrieved from the "ioi.ramp_timing.*" config.
+	 * <li>The initial coefficients are computed from the configured reset/read/group execution times.
+	 * <li>If the model file exists, and it was saved with the same initial coefficients, the learnt
+	 *     coefficients are loaded from it. Otherwise the initial coefficients are used.
+	 * </ul>
+	 * This is called again on a REDATUM reboot, after the properties have been reloaded.
+	 * @see #learnEnable
+	 * @see #learningRate
+	 * @see #outlierThreshold
+	 * @see #filename
+	 * @see #initialCoefficient
+	 * @see #load
+	 * @see IOIConfig#getRampTimingLearningRate
+	 */
+	public synchronized void init()
+	{
+		IOIConfig config = null;
+		File file = null;
+
+		config = status.getConfig();
+		learnEnable = config.getRampTimingLearnEnable();
+		learningRate = config.getRampTimingLearningRate();
+		outlierThreshold = config.getRampTimingOutlierThreshold();
+		filename = config.getRampTimingFilename();
+		initialCoefficient[SAMPLING_MODE_FOWLER][COEFFICIENT_CONSTANT] = 0.0;
+		initialCoefficient[SAMPLING_MODE_FOWLER][COEFFICIENT_RESET] = config.getFowlerResetExecutionTime();
+		initialCoefficient[SAMPLING_MODE_FOWLER][COEFFICIENT_FRAME] = config.getFowlerReadExecutionTime();
+		initialCoefficient[SAMPLING_MODE_UP_THE_RAMP][COEFFICIENT_CONSTANT] = 0.0;
+		initialCoefficient[SAMPLING_MODE_UP_THE_RAMP][COEFFICIENT_RESET] =
+			config.getUpTheRampResetExecutionTime();
+		// the group execution time covers nread reads and ndrop drops
+		initialCoefficient[SAMPLING_MODE_UP_THE_RAMP][COEFFICIENT_FRAME] =
+			((double)config.getUpTheRampGroupExecutionTime())/
+			((double)(config.getUpTheRampNRead()+config.getUpTheRampNDrop()));
+		for(int mode = 0; mode < SAMPLING_MODE_COUNT; mode++)
+		{
+			for(int i = 0; i < COEFFICIENT_COUNT; i++)
+				coefficient[mode][i] = initialCoefficient[mode][i];
+			updateCount[mode] = 0;
+			lastResidual[mode] = 0;
+		}
+		file = new File(filename);
+		if(file.exists())
+			load();
+		ioi.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+":init:"+this);
+	}
+
+	/**
+	 * Load learnt coefficients from the model file. If the file cannot be read, or it was saved with
+	 * different initial coefficients (the execution time configuration has changed), an error is logged and
+	 * the initial coefficients are left in place: a bad model file should not stop the robotic software
+	 * starting.
+	 * @see #filename
+	 * @see #coefficient
+	 * @see #initialCoefficient
+	 * @see #updateCount
+	 * @see #getKey
+	 */
+	protected void load()
+	{
+		Properties properties = null;
+		FileInputStream inputStream = null;
+		double loadedCoefficient[][] = null;
+		int loadedUpdateCount[] = null;
+		double savedInitialValue;
+
+		properties = new Properties();
+		try
+		{
+			inputStream = new FileInputStream(filename);
+			properties.load(inputStream);
+			loadedCoefficient = new double[SAMPLING_MODE_COUNT][COEFFICIENT_COUNT];
+			loadedUpdateCount = new int[SAMPLING_MODE_COUNT];
+			for(int mode = 0; mode < SAMPLING_MODE_COUNT; mode++)
+			{
+				for(int i = 0; i < COEFFICIENT_COUNT; i++)
+				{
+					savedInitialValue = Double.parseDouble(properties.getProperty(getKey(mode,i)+
+												      ".initial"));
+					if(savedInitialValue != initialCoefficient[mode][i])
+					{
+						ioi.error(this.getClass().getName()+":load:"+getKey(mode,i)+
+							  " was learnt from initial value "+savedInitialValue+
+							  " but is now configured as "+initialCoefficient[mode][i]+
+							  ":Ignoring model file "+filename+".");
+						return;
+					}
+					loadedCoefficient[mode][i] = Double.parseDouble(properties.
+											getProperty(getKey(mode,i)));
+				}
+				loadedUpdateCount[mode] = Integer.parseInt(properties.getProperty(
+						    SAMPLING_MODE_NAME_LIST[mode]+".update_count"));
+			}
+		}
+		catch(Exception e)
+		{
+			ioi.error(this.getClass().getName()+":load:Loading model file "+filename+" failed:",e);
+			return;
+		}
+		finally
+		{
+			try
+			{
+				if(inputStream != null)
+					inputStream.close();
+			}
+			catch(IOException e)
+			{
+				ioi.error(this.getClass().getName()+":load:Closing model file "+filename+" failed:",e);
+			}
+		}
+		coefficient = loadedCoefficient;
+		updateCount = loadedUpdateCount;
+		ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":load:Loaded model from "+filename+".");
+	}
+
+	/**
+	 * Save the coefficients (and the initial coefficients they were learnt from) to the model file.
+	 * The model is written to a temporary file, which is then renamed over the model file, so a crash whilst
+	 * saving does not leave a truncated model. Failures are logged, but not thrown, as losing the learnt
+	 * model is not a reason to fail an exposure.
+	 * @see #filename
+	 * @see #getKey
+	 */
+	protected void save()
+	{
+		Properties properties = null;
+		FileOutputStream outputStream = null;
+		File file = null;
+		File tempFile = null;
+
+		properties = new Properties();
+		for(int mode = 0; mode < SAMPLING_MODE_COUNT; mode++)
+		{
+			for(int i = 0; i < COEFFICIENT_COUNT; i++)
+			{
+				properties.setProperty(getKey(mode,i),Double.toString(coefficient[mode][i]));
+				properties.setProperty(getKey(mode,i)+".initial",Double.toString(initialCoefficient[mode][i]));
+			}
+			properties.setProperty(SAMPLING_MODE_NAME_LIST[mode]+".update_count",
+					       Integer.toString(updateCount[mode]));
+		}
+		file = new File(filename);
+		tempFile = new File(filename+".tmp");
+		try
+		{
+			outputStream = new FileOutputStream(tempFile);
+			properties.store(outputStream,"IO:I ramp timing model");
+			outputStream.close();
+			outputStream = null;
+			if(tempFile.renameTo(file) == false)
+			{
+				throw new IOException(this.getClass().getName()+":save:Failed to rename "+tempFile+
+						      " to "+file+".");
+			}
+		}
+		catch(IOException e)
+		{
+			ioi.error(this.getClass().getName()+":save:Saving model file "+filename+" failed:",e);
+		}
+		finally
+		{
+			try
+			{
+				if(outputStream != null)
+					outputStream.close();
+			}
+			catch(IOException e)
+			{
+				ioi.error(this.getClass().getName()+":save:Closing model file "+tempFile+" failed:",e);
+			}
+		}
+	}
+
+	/**
+	 * Compute the exposure length to send to the IDL Socket Server's SetFSParam command, to obtain
+	 * the requested exposure length in Fowler sampling mode.
+	 * <ul>
+	 * <li>The exposure actually includes two sets of nReads. The exposure length sent to SetFSParam is the
+	 *     length of time the IDL software waits between the end of the last of the first set of reads and
+	 *     the start of the second set of reads. The data reduction pipeline subtracts (in a nReads=2 situation)
+	 *     4-2 and 3-1, and then averages the result. Therefore we need to subtract one set of reads from the
+	 *     requested exposure length.
+	 * <li>But the IDL software adds an extra reads worth of exposure length _IF_ the IDL supplied exposure
+	 *     length is > 1 read (1.4s). So we need to subtract another read execution time.
+	 * <li>If the result is then less than one read execution time, the requested exposure length is one we
+	 *     _cannot_ obtain with the IDL software, as in this case the extra read is no longer added.
+	 * <li>The IDL software can't wait less than zero seconds between the two sets of reads.
+	 * </ul>
+	 * The configured read execution time is used (rather than the learnt frame time), as the gap is a
+	 * property of the IDL software's own arithmetic.
+	 * @param requestedExposureLength The requested exposure length, in milliseconds.
+	 * @return The exposure length to send to SetFSParam, in milliseconds.
+	 * @exception Exception Thrown if the requested exposure length cannot be obtained. The exception message
+	 *            includes the nearest exposure length that can be obtained.
+	 * @see #getNearestExposureLength
+	 */
+	public int getFowlerIDLExposureLength(int requestedExposureLength) throws Exception
+	{
+		IOIConfig config = null;
+		int nRead,readExecutionTime,exposureLength;
+
+		config = status.getConfig();
+		nRead = config.getFowlerNRead();
+		readExecutionTime = config.getFowlerReadExecutionTime();
+		exposureLength = requestedExposureLength-(nRead*readExecutionTime);
+		if(exposureLength > readExecutionTime)
+		{
+			exposureLength -= readExecutionTime;
+			if(exposureLength < readExecutionTime)
+			{
+				throw new Exception(this.getClass().getName()+":getFowlerIDLExposureLength:"+
+					 "Due to IDL software errors this exposure length is impossible to obtain: "+
+						    "Requested exposure length "+requestedExposureLength+
+						    " ms : Adjusted exposure length "+exposureLength+
+						    " ms : Nearest obtainable exposure length "+
+						    getNearestExposureLength(SAMPLING_MODE_FOWLER,requestedExposureLength)+
+						    " ms.");
+			}
+		}
+		if(exposureLength < 0)
+		{
+			throw new Exception(this.getClass().getName()+":getFowlerIDLExposureLength:"+
+					    "Adjusted exposure length is too small:"+exposureLength+
+					    " ms : Requested exposure length "+requestedExposureLength+
+					    " ms : Nearest obtainable exposure length "+
+					    getNearestExposureLength(SAMPLING_MODE_FOWLER,requestedExposureLength)+" ms.");
+		}
+		return exposureLength;
+	}
+
+	/**
+	 * Compute the number of groups to configure to obtain the requested exposure length in read up the
+	 * ramp mode. This is the number of whole groups that fit in the exposure length.
+	 * @param requestedExposureLength The requested exposure length, in milliseconds.
+	 * @return The number of groups.
+	 * @exception Exception Thrown if the requested exposure length is shorter than one group.
+	 */
+	public int getUpTheRampGroupCount(int requestedExposureLength) throws Exception
+	{
+		int groupExecutionTime,nGroup;
+
+		groupExecutionTime = status.getConfig().getUpTheRampGroupExecutionTime();
+		nGroup = requestedExposureLength/groupExecutionTime;
+		if(nGroup < 1)
+		{
+			throw new Exception(this.getClass().getName()+":getUpTheRampGroupCount:"+
+					    "Requested exposure length "+requestedExposureLength+
+					    " ms is shorter than one group ("+groupExecutionTime+
+					    " ms) : Nearest obtainable exposure length "+
+					    getNearestExposureLength(SAMPLING_MODE_UP_THE_RAMP,requestedExposureLength)+
+					    " ms.");
+		}
+		return nGroup;
+	}
+
+	/**
+	 * Check the requested exposure length can be obtained in the specified sampling mode.
+	 * @param samplingMode The sampling mode, SAMPLING_MODE_FOWLER or SAMPLING_MODE_UP_THE_RAMP.
+	 * @param requestedExposureLength The requested exposure length, in milliseconds.
+	 * @exception Exception Thrown if the exposure length cannot be obtained, or the sampling mode is illegal.
+	 * @see #getFowlerIDLExposureLength
+	 * @see #getUpTheRampGroupCount
+	 */
+	public void checkExposureLength(int samplingMode,int requestedExposureLength) throws Exception
+	{
+		if(samplingMode == SAMPLING_MODE_FOWLER)
+			getFowlerIDLExposureLength(requestedExposureLength);
+		else if(samplingMode == SAMPLING_MODE_UP_THE_RAMP)
+			getUpTheRampGroupCount(requestedExposureLength);
+		else
+		{
+			throw new Exception(this.getClass().getName()+":checkExposureLength:Illegal sampling mode:"+
+					    samplingMode);
+		}
+	}
+
+	/**
+	 * Return the obtainable exposure length nearest the requested one.
+	 * <ul>
+	 * <li>In Fowler sampling mode the obtainable exposure lengths are from nRead to (nRead+1) read execution
+	 *     times, and (nRead+2) read execution times upwards (see getFowlerIDLExposureLength).
+	 * <li>In read up the ramp mode the obtainable exposure lengths are whole numbers (at least one) of
+	 *     group execution times.
+	 * </ul>
+	 * @param samplingMode The sampling mode, SAMPLING_MODE_FOWLER or SAMPLING_MODE_UP_THE_RAMP.
+	 * @param requestedExposureLength The requested exposure length, in milliseconds.
+	 * @return The nearest obtainable exposure length, in milliseconds.
+	 * @exception IllegalArgumentException Thrown if the sampling mode is illegal.
+	 * @see #getFowlerIDLExposureLength
+	 */
+	public int getNearestExposureLength(int samplingMode,int requestedExposureLength)
+		throws IllegalArgumentException
+	{
+		IOIConfig config = null;
+		int nRead,readExecutionTime,groupExecutionTime,gapStart,gapEnd,nGroup;
+
+		config = status.getConfig();
+		if(samplingMode == SAMPLING_MODE_FOWLER)
+		{
+			nRead = config.getFowlerNRead();
+			readExecutionTime = config.getFowlerReadExecutionTime();
+			gapStart = (nRead+1)*readExecutionTime;
+			gapEnd = (nRead+2)*readExecutionTime;
+			if(requestedExposureLength < nRead*readExecutionTime)
+				return nRead*readExecutionTime;
+			if((requestedExposureLength > gapStart)&&(requestedExposureLength < gapEnd))
+			{
+				if((requestedExposureLength-gapStart) <= (gapEnd-requestedExposureLength))
+					return gapStart;
+				return gapEnd;
+			}
+			return requestedExposureLength;
+		}
+		else if(samplingMode == SAMPLING_MODE_UP_THE_RAMP)
+		{
+			groupExecutionTime = config.getUpTheRampGroupExecutionTime();
+			nGroup = (int)(Math.round(((double)requestedExposureLength)/((double)groupExecutionTime)));
+			if(nGroup < 1)
+				nGroup = 1;
+			return nGroup*groupExecutionTime;
+		}
+		throw new IllegalArgumentException(this.getClass().getName()+
+						   ":getNearestExposureLength:Illegal sampling mode:"+samplingMode);
+	}
+
+	/**
+	 * Predict how long an AcquireRamp will take, for the configured ramp parameters of the sampling mode.
+	 * @param samplingMode The sampling mode, SAMPLING_MODE_FOWLER or SAMPLING_MODE_UP_THE_RAMP.
+	 * @param requestedExposureLength The requested exposure length, in milliseconds.
+	 * @param windowFraction The fraction of the array read out, WINDOW_FRACTION_FULL_FRAME for a full frame.
+	 * @return The predicted duration, in milliseconds.
+	 * @exception Exception Thrown if the exposure length cannot be obtained, or the sampling mode is illegal.
+	 * @see #getFixedTime
+	 * @see #getFeatureList
+	 * @see #coefficient
+	 */
+	public synchronized int predictDuration(int samplingMode,int requestedExposureLength,double windowFraction)
+		throws Exception
+	{
+		double featureList[] = null;
+		double duration;
+
+		featureList = getFeatureList(samplingMode,requestedExposureLength,windowFraction);
+		duration = getFixedTime(samplingMode,requestedExposureLength);
+		for(int i = 0; i < COEFFICIENT_COUNT; i++)
+			duration += coefficient[samplingMode][i]*featureList[i];
+		return (int)(Math.round(duration));
+	}
+
+	/**
+	 * Predict the time an AcquireRamp will take over and above the requested exposure length.
+	 * This is what the ACK times sent to the client are based on.
+	 * @param samplingMode The sampling mode, SAMPLING_MODE_FOWLER or SAMPLING_MODE_UP_THE_RAMP.
+	 * @param requestedExposureLength The requested exposure length, in milliseconds.
+	 * @param windowFraction The fraction of the array read out, WINDOW_FRACTION_FULL_FRAME for a full frame.
+	 * @return The predicted overhead, in milliseconds. This is never negative.
+	 * @exception Exception Thrown if the exposure length cannot be obtained, or the sampling mode is illegal.
+	 * @see #predictDuration
+	 */
+	public int predictOverhead(int samplingMode,int requestedExposureLength,double windowFraction) throws Exception
+	{
+		int overhead;
+
+		overhead = predictDuration(samplingMode,requestedExposureLength,windowFraction)-requestedExposureLength;
+		if(overhead < 0)
+			overhead = 0;
+		return overhead;
+	}
+
+	/**
+	 * Learn from a measured AcquireRamp round trip time. If learning is enabled, and the measurement is not
+	 * an outlier, each coefficient is moved by learningRate * residual * feature / (feature . feature),
+	 * and the model saved. The reset and frame times are not allowed to go negative.
+	 * @param samplingMode The sampling mode, SAMPLING_MODE_FOWLER or SAMPLING_MODE_UP_THE_RAMP.
+	 * @param requestedExposureLength The requested exposure length, in milliseconds.
+	 * @param windowFraction The fraction of the array read out, WINDOW_FRACTION_FULL_FRAME for a full frame.
+	 * @param measuredDuration The measured AcquireRamp round trip time, in milliseconds.
+	 * @exception Exception Thrown if the exposure length cannot be obtained, or the sampling mode is illegal.
+	 * @see #learnEnable
+	 * @see #learningRate
+	 * @see #outlierThreshold
+	 * @see #lastResidual
+	 * @see #updateCount
+	 * @see #save
+	 */
+	public synchronized void update(int samplingMode,int requestedExposureLength,double windowFraction,
+					long measuredDuration) throws Exception
+	{
+		double featureList[] = null;
+		double featureNorm,residual;
+
+		if(learnEnable == false)
+			return;
+		residual = measuredDuration-predictDuration(samplingMode,requestedExposureLength,windowFraction);
+		lastResidual[samplingMode] = Math.round(residual);
+		if(Math.abs(residual) > outlierThreshold)
+		{
+			ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":update:"+
+				SAMPLING_MODE_NAME_LIST[samplingMode]+":Measured duration "+measuredDuration+
+				" ms has residual "+residual+" ms, larger than the outlier threshold:Not learnt.");
+			return;
+		}
+		featureList = getFeatureList(samplingMode,requestedExposureLength,windowFraction);
+		featureNorm = 0.0;
+		for(int i = 0; i < COEFFICIENT_COUNT; i++)
+			featureNorm += featureList[i]*featureList[i];
+		for(int i = 0; i < COEFFICIENT_COUNT; i++)
+			coefficient[samplingMode][i] += learningRate*residual*featureList[i]/featureNorm;
+		if(coefficient[samplingMode][COEFFICIENT_RESET] < 0.0)
+			coefficient[samplingMode][COEFFICIENT_RESET] = 0.0;
+		if(coefficient[samplingMode][COEFFICIENT_FRAME] < 0.0)
+			coefficient[samplingMode][COEFFICIENT_FRAME] = 0.0;
+		updateCount[samplingMode]++;
+		ioi.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+":update:"+
+			SAMPLING_MODE_NAME_LIST[samplingMode]+":Measured duration "+measuredDuration+
+			" ms, residual "+residual+" ms:"+this);
+		save();
+	}
+
+	/**
+	 * Get the part of the ramp duration that is not learnt. In Fowler sampling mode this is the exposure
+	 * length sent to SetFSParam, the time the IDL software waits between the two sets of reads.
+	 * In read up the ramp mode the exposure is made up of frame reads, so this is zero.
+	 * @param samplingMode The sampling mode, SAMPLING_MODE_FOWLER or SAMPLING_MODE_UP_THE_RAMP.
+	 * @param requestedExposureLength The requested exposure length, in milliseconds.
+	 * @return The fixed time, in milliseconds.
+	 * @exception Exception Thrown if the exposure length cannot be obtained.
+	 * @see #getFowlerIDLExposureLength
+	 */
+	protected double getFixedTime(int samplingMode,int requestedExposureLength) throws Exception
+	{
+		if(samplingMode == SAMPLING_MODE_FOWLER)
+			return getFowlerIDLExposureLength(requestedExposureLength);
+		return 0.0;
+	}
+
+	/**
+	 * Get the features (values multiplied by each coefficient) of a ramp.
+	 * <ul>
+	 * <li>The constant feature is always 1.
+	 * <li>The reset feature is the configured number of resets.
+	 * <li>The frame feature is the number of frames read, multiplied by the window fraction. In Fowler
+	 *     sampling mode this is two sets of nRead reads, plus the extra read the IDL software adds to
+	 *     longer exposures (see getFowlerIDLExposureLength). In read up the ramp mode, it is
+	 *     nGroup * (nRead + nDrop).
+	 * </ul>
+	 * @param samplingMode The sampling mode, SAMPLING_MODE_FOWLER or SAMPLING_MODE_UP_THE_RAMP.
+	 * @param requestedExposureLength The requested exposure length, in milliseconds.
+	 * @param windowFraction The fraction of the array read out.
+	 * @return A list of COEFFICIENT_COUNT features.
+	 * @exception Exception Thrown if the exposure length cannot be obtained, or the sampling mode is illegal.
+	 */
+	protected double[] getFeatureList(int samplingMode,int requestedExposureLength,double windowFraction)
+		throws Exception
+	{
+		IOIConfig config = null;
+		double featureList[] = null;
+		int frameCount;
+
+		config = status.getConfig();
+		featureList = new double[COEFFICIENT_COUNT];
+		featureList[COEFFICIENT_CONSTANT] = 1.0;
+		if(samplingMode == SAMPLING_MODE_FOWLER)
+		{
+			featureList[COEFFICIENT_RESET] = config.getFowlerNReset();
+			frameCount = 2*config.getFowlerNRead();
+			// the same test getFowlerIDLExposureLength uses to decide whether the extra read is added
+			if((requestedExposureLength-(config.getFowlerNRead()*config.getFowlerReadExecutionTime())) >
+			   config.getFowlerReadExecutionTime())
+				frameCount++;
+		}
+		else if(samplingMode == SAMPLING_MODE_UP_THE_RAMP)
+		{
+			featureList[COEFFICIENT_RESET] = config.getUpTheRampNReset();
+			frameCount = getUpTheRampGroupCount(requestedExposureLength)*
+				(config.getUpTheRampNRead()+config.getUpTheRampNDrop());
+		}
+		else
+		{
+			throw new Exception(this.getClass().getName()+":getFeatureList:Illegal sampling mode:"+
+					    samplingMode);
+		}
+		featureList[COEFFICIENT_FRAME] = frameCount*windowFraction;
+		return featureList;
+	}
+
+	/**
+	 * Get a coefficient.
+	 * @param samplingMode The sampling mode, SAMPLING_MODE_FOWLER or SAMPLING_MODE_UP_THE_RAMP.
+	 * @param index Which coefficient, one of COEFFICIENT_CONSTANT, COEFFICIENT_RESET, COEFFICIENT_FRAME.
+	 * @return The coefficient, in milliseconds.
+	 * @see #coefficient
+	 */
+	public synchronized double getCoefficient(int samplingMode,int index)
+	{
+		return coefficient[samplingMode][index];
+	}
+
+	/**
+	 * Get the number of measurements learnt from.
+	 * @param samplingMode The sampling mode, SAMPLING_MODE_FOWLER or SAMPLING_MODE_UP_THE_RAMP.
+	 * @return The number of measurements.
+	 * @see #updateCount
+	 */
+	public synchronized int getUpdateCount(int samplingMode)
+	{
+		return updateCount[samplingMode];
+	}
+
+	/**
+	 * Get the residual (measured minus predicted duration) of the last measurement.
+	 * @param samplingMode The sampling mode, SAMPLING_MODE_FOWLER or SAMPLING_MODE_UP_THE_RAMP.
+	 * @return The residual, in milliseconds.
+	 * @see #lastResidual
+	 */
+	public synchronized long getLastResidual(int samplingMode)
+	{
+		return lastResidual[samplingMode];
+	}
+
+	/**
+	 * Get the fraction of the array read out by a window.
+	 * @param xStart The window start X position (inclusive).
+	 * @param xStop The window end X position (inclusive).
+	 * @param yStart The window start Y position (inclusive).
+	 * @param yStop The window end Y position (inclusive).
+	 * @return The window fraction, between 0 and 1.
+	 * @see #DETECTOR_SIZE
+	 */
+	public static double getWindowFraction(int xStart,int xStop,int yStart,int yStop)
+	{
+		return ((double)((xStop-xStart+1)*(yStop-yStart+1)))/((double)(DETECTOR_SIZE*DETECTOR_SIZE));
+	}
+
+	/**
+	 * Return a string version of a sampling mode.
+	 * @param samplingMode The sampling mode.
+	 * @return A string, "FOWLER" or "UP_THE_RAMP", or "UNKNOWN".
+	 * @see #SAMPLING_MODE_NAME_LIST
+	 */
+	public static String samplingModeToString(int samplingMode)
+	{
+		if((samplingMode < 0)||(samplingMode >= SAMPLING_MODE_COUNT))
+			return "UNKNOWN";
+		return SAMPLING_MODE_NAME_LIST[samplingMode];
+	}
+
+	/**
+	 * Get the model file key of a coefficient.
+	 * @param samplingMode The sampling mode.
+	 * @param index The coefficient index.
+	 * @return A key of the form "&lt;sampling mode&gt;.&lt;coefficient&gt;", e.g. "FOWLER.frame".
+	 */
+	protected String getKey(int samplingMode,int index)
+	{
+		return SAMPLING_MODE_NAME_LIST[samplingMode]+"."+COEFFICIENT_NAME_LIST[index];
+	}
+
+	/**
+	 * Return a string representation of the model, listing the coefficients of each sampling mode.
+	 * @return A string.
+	 */
+	public synchronized String toString()
+	{
+		StringBuffer sb = null;
+
+		sb = new StringBuffer();
+		sb.append(this.getClass().getName());
+		for(int mode = 0; mode < SAMPLING_MODE_COUNT; mode++)
+		{
+			sb.append(":"+SAMPLING_MODE_NAME_LIST[mode]+"(");
+			for(int i = 0; i < COEFFICIENT_COUNT; i++)
+				sb.append(COEFFICIENT_NAME_LIST[i]+"="+coefficient[mode][i]+",");
+			sb.append("updates="+updateCount[mode]+")");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,136 @@
+// ReadOrdering.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * This comparator sorts the FITS images of a ramp into acquisition order, using the indices in their filenames
+ * rather than the order File.listFiles happens to return them in (which is not guaranteed).
+ * The IDL Socket Server names each read of a ramp "H2RG_R&lt;ramp&gt;_M&lt;group&gt;_N&lt;read&gt;.fits",
+ * and stitched guided sub-ramps have a "S&lt;sub-ramp&gt;_" prefix added. Each filename is parsed into the
+ * list of numbers it contains, in the order they appear (so, most significant first), and filenames are
+ * compared by these numbers numerically, which (unlike comparing the filenames as strings) also orders
+ * indices that are not zero padded correctly. Filenames with identical numbers are compared as strings,
+ * so the ordering is total and deterministic.
+ * @see DataProcessingThread#findFITSFilesInDirectory
+ * @see GuidedRampAcquisition#listFITSFiles
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class ReadOrdering implements Comparator<File>
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+
+	/**
+	 * Default constructor.
+	 */
+	public ReadOrdering()
+	{
+		super();
+	}
+
+	/**
+	 * Compare two FITS images by the indices in their filenames.
+	 * @param f1 The first FITS image.
+	 * @param f2 The second FITS image.
+	 * @return A negative number, zero, or a positive number if f1 was acquired before, at the same time as,
+	 *         or after f2.
+	 * @see #parseIndexList
+	 */
+	public int compare(File f1,File f2)
+	{
+		long indexList1[] = null;
+		long indexList2[] = null;
+
+		indexList1 = parseIndexList(f1.getName());
+		indexList2 = parseIndexList(f2.getName());
+		for(int i = 0; (i < indexList1.length)&&(i < indexList2.length); i++)
+		{
+			if(indexList1[i] != indexList2[i])
+				return (indexList1[i] < indexList2[i]) ? -1 : 1;
+		}
+		if(indexList1.length != indexList2.length)
+			return indexList1.length-indexList2.length;
+		return f1.getName().compareTo(f2.getName());
+	}
+
+	/**
+	 * Sort a list of FITS images into acquisition order.
+	 * @param fitsImageList The list of FITS images, which is sorted in place.
+	 */
+	public static void sort(List<File> fitsImageList)
+	{
+		Collections.sort(fitsImageList,new ReadOrdering());
+	}
+
+	/**
+	 * Get the read index of a FITS image (the last number in it's filename).
+	 * @param filename The filename.
+	 * @return The read index, or -1 if the filename contains no numbers.
+	 * @see #parseIndexList
+	 */
+	public static long getReadIndex(String filename)
+	{
+		long indexList[] = parseIndexList(filename);
+
+		if(indexList.length < 1)
+			return -1;
+		return indexList[indexList.length-1];
+	}
+
+	/**
+	 * Get the group index of a FITS image (the last but one number in it's filename).
+	 * @param filename The filename.
+	 * @return The group index, or -1 if the filename contains less than two numbers.
+	 * @see #parseIndexList
+	 */
+	public static long getGroupIndex(String filename)
+	{
+		long indexList[] = parseIndexList(filename);
+
+		if(indexList.length < 2)
+			return -1;
+		return indexList[indexList.length-2];
+	}
+
+	/**
+	 * Parse the numbers in a filename, in the order they appear. Digit runs too long to be parsed
+	 * (more than 18 digits) are ignored.
+	 * @param filename The filename.
+	 * @return An array of the numbers, which may be empty.
+	 */
+	public static long[] parseIndexList(String filename)
+	{
+		List<Long> indexList = new Vector<Long>();
+		long indexArray[] = null;
+		int start = -1;
+		char ch;
+
+		// the extra iteration terminates a digit run at the end of the filename
+		for(int i = 0; i <= filename.length(); i++)
+		{
+			ch = (i < filename.length()) ? filename.charAt(i) : ' ';
+			if((ch >= '0')&&(ch <= '9'))
+			{
+				if(start < 0)
+					start = i;
+			}
+			else if(start >= 0)
+			{
+				if((i-start) <= 18)
+					indexList.add(new Long(Long.parseLong(filename.substring(start,i))));
+				start = -1;
+			}
+		}
+		indexArray = new long[indexList.size()];
+		for(int i = 0; i < indexArray.length; i++)
+			indexArray[i] = indexList.get(i).longValue();
+		return indexArray;
+	}
+}
@@ -0,0 +1,253 @@
+// ReadSubsetPolicy.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.util.*;
+
+/**
+ * This class selects which reads of a ramp are kept (annotated, renamed and archived); the rest are left
+ * in the IDL Socket Server directory, and deleted with it, which saves disc I/O on long read up the ramp
+ * exposures when the science only needs a few reads. A policy is written as a comma separated list of terms,
+ * and keeps the union of the reads each term selects, in acquisition order:
+ * <ul>
+ * <li><b>all</b> Every read.
+ * <li><b>first:N</b> The first N reads.
+ * <li><b>last:N</b> The last N reads.
+ * <li><b>every:K</b> Every K'th read, starting with the first.
+ * <li><b>fowler:N</b> N Fowler pairs, i.e. the first N and last N reads.
+ * </ul>
+ * For instance "fowler:2" keeps the four reads needed to reduce a read up the ramp as a CDS image, and
+ * "every:4,last:1" thins the ramp whilst keeping the final read. Policies are immutable, and are parsed
+ * when the configuration is loaded. The reads must already be in acquisition order.
+ * @see IOIConfig#getFitsReadSubsetUpTheRamp
+ * @see IOIConfig#getFitsReadSubsetFowler
+ * @see ReadOrdering
+ * @see DataProcessingThread#selectReads
+ * @see DataProcessingThread#findFITSFilesInDirectory
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class ReadSubsetPolicy
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * Term type, keep every read.
+	 */
+	public final static int TERM_ALL    = 0;
+	/**
+	 * Term type, keep the first N reads.
+	 */
+	public final static int TERM_FIRST  = 1;
+	/**
+	 * Term type, keep the last N reads.
+	 */
+	public final static int TERM_LAST   = 2;
+	/**
+	 * Term type, keep every K'th read.
+	 */
+	public final static int TERM_EVERY  = 3;
+	/**
+	 * Term type, keep the first N and last N reads.
+	 */
+	public final static int TERM_FOWLER = 4;
+	/**
+	 * The term names, as written in a policy, indexed by term type.
+	 */
+	public final static String TERM_NAME_LIST[] = {"all","first","last","every","fowler"};
+	/**
+	 * The type of each term in the policy.
+	 */
+	protected final int termTypeList[];
+	/**
+	 * The parameter (N or K) of each term in the policy, 0 for an "all" term.
+	 */
+	protected final int termParameterList[];
+
+	/**
+	 * Constructor. Parses a policy.
+	 * @param policy The policy, e.g. "first:2,last:2".
+	 * @exception IllegalArgumentException Thrown if the policy is empty, a term is not recognised, or a
+	 *            term's parameter is missing or less than 1.
+	 * @see #termTypeList
+	 * @see #termParameterList
+	 */
+	public ReadSubsetPolicy(String policy) throws IllegalArgumentException
+	{
+		String termList[] = null;
+		String term = null;
+		String name = null;
+		int index,termType;
+
+		if((policy == null)||(policy.trim().length() == 0))
+			throw new IllegalArgumentException(this.getClass().getName()+":Empty read subset policy.");
+		termList = policy.split(",");
+		termTypeList = new int[termList.length];
+		termParameterList = new int[termList.length];
+		for(int i = 0; i < termList.length; i++)
+		{
+			term = termList[i].trim();
+			index = term.indexOf(':');
+			name = (index < 0) ? term : term.substring(0,index).trim();
+			termType = -1;
+			for(int j = 0; j < TERM_NAME_LIST.length; j++)
+			{
+				if(TERM_NAME_LIST[j].equals(name))
+					termType = j;
+			}
+			if(termType < 0)
+			{
+				throw new IllegalArgumentException(this.getClass().getName()+":Unknown term '"+term+
+								   "' in read subset policy:"+policy);
+			}
+			termTypeList[i] = termType;
+			if(termType == TERM_ALL)
+			{
+				if(index >= 0)
+				{
+					throw new IllegalArgumentException(this.getClass().getName()+":Term '"+term+
+							   "' takes no parameter in read subset policy:"+policy);
+				}
+				continue;
+			}
+			try
+			{
+				if(index < 0)
+					throw new NumberFormatException("missing parameter");
+				termParameterList[i] = Integer.parseInt(term.substring(index+1).trim());
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IllegalArgumentException(this.getClass().getName()+":Term '"+term+
+							  "' needs an integer parameter in read subset policy:"+policy);
+			}
+			if(termParameterList[i] < 1)
+			{
+				throw new IllegalArgumentException(this.getClass().getName()+":Term '"+term+
+							  "' parameter must be at least 1 in read subset policy:"+policy);
+			}
+		}
+	}
+
+	/**
+	 * Select the reads to keep.
+	 * @param readList The reads of the ramp, in acquisition order.
+	 * @return A new list of the reads to keep, in acquisition order.
+	 * @see #getSelectedIndexList
+	 * @see #select(java.util.List,int[])
+	 */
+	public <T> List<T> select(List<T> readList)
+	{
+		return select(readList,getSelectedIndexList(readList.size()));
+	}
+
+	/**
+	 * Get the positions in the ramp of the reads to keep. Each term marks the reads it selects, and the
+	 * positions of the marked reads are returned in order, so this takes time proportional to the number of
+	 * reads. The positions are the read numbers within the whole ramp, which are needed to pick
+	 * the calibration planes for a read once the others have been discarded.
+	 * @param readCount The number of reads in the ramp.
+	 * @return An array of the (zero based) positions of the reads to keep, in ascending order.
+	 * @see #termTypeList
+	 * @see #termParameterList
+	 */
+	public int[] getSelectedIndexList(int readCount)
+	{
+		boolean keepList[] = null;
+		int selectedIndexList[] = null;
+		int parameter,selectedCount;
+
+		keepList = new boolean[readCount];
+		for(int i = 0; i < termTypeList.length; i++)
+		{
+			parameter = termParameterList[i];
+			switch(termTypeList[i])
+			{
+				case TERM_ALL:
+					Arrays.fill(keepList,true);
+					break;
+				case TERM_FIRST:
+					Arrays.fill(keepList,0,Math.min(parameter,readCount),true);
+					break;
+				case TERM_LAST:
+					Arrays.fill(keepList,Math.max(0,readCount-parameter),readCount,true);
+					break;
+				case TERM_EVERY:
+					for(int j = 0; j < readCount; j += parameter)
+						keepList[j] = true;
+					break;
+				case TERM_FOWLER:
+					Arrays.fill(keepList,0,Math.min(parameter,readCount),true);
+					Arrays.fill(keepList,Math.max(0,readCount-parameter),readCount,true);
+					break;
+			}
+		}
+		selectedCount = 0;
+		for(int i = 0; i < readCount; i++)
+		{
+			if(keepList[i])
+				selectedCount++;
+		}
+		selectedIndexList = new int[selectedCount];
+		selectedCount = 0;
+		for(int i = 0; i < readCount; i++)
+		{
+			if(keepList[i])
+				selectedIndexList[selectedCount++] = i;
+		}
+		return selectedIndexList;
+	}
+
+	/**
+	 * Select the reads at the specified positions.
+	 * @param readList The reads of the ramp, in acquisition order.
+	 * @param selectedIndexList The positions of the reads to keep, as returned by getSelectedIndexList.
+	 * @return A new list of the reads to keep, in the order of selectedIndexList.
+	 * @see #getSelectedIndexList
+	 */
+	public static <T> List<T> select(List<T> readList,int selectedIndexList[])
+	{
+		List<T> selectedList = null;
+
+		selectedList = new Vector<T>(selectedIndexList.length);
+		for(int i = 0; i < selectedIndexList.length; i++)
+			selectedList.add(readList.get(selectedIndexList[i]));
+		return selectedList;
+	}
+
+	/**
+	 * Return whether the policy keeps every read, whatever the length of the ramp.
+	 * @return true if the policy contains an "all" term.
+	 */
+	public boolean isAll()
+	{
+		for(int i = 0; i < termTypeList.length; i++)
+		{
+			if(termTypeList[i] == TERM_ALL)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Return the policy, in the form it is parsed from.
+	 * @return A string.
+	 */
+	public String toString()
+	{
+		StringBuffer sb = new StringBuffer();
+
+		for(int i = 0; i < termTypeList.length; i++)
+		{
+			if(i > 0)
+				sb.append(",");
+			sb.append(TERM_NAME_LIST[termTypeList[i]]);
+			if(termTypeList[i] != TERM_ALL)
+				sb.append(":"+termParameterList[i]);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,554 @@
+// ReferencePixelCorrector.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class performs reference pixel correction on a read from the H2RG detector.
+ * The H2RG has a border of reference pixels (4 pixels wide), that are not sensitive to light but share
+ * the readout electronics, and the array is read out through a number of parallel channels (32), each of
+ * which covers a vertical stripe of the array. The correction is done in two stages:
+ * <ul>
+ * <li>Channel correction: for each readout channel, the mean of the reference rows (at the top and bottom of
+ *     the channel's stripe) is subtracted from every pixel in the channel. If odd/even correction is enabled,
+ *     the means of the odd and even columns of each channel are computed and subtracted separately.
+ * <li>Row correction: for each row, the mean of the (channel corrected) reference columns at the left and
+ *     right edge of the row, averaged over a window of neighbouring rows, is subtracted from the row.
+ * </ul>
+ * A constant pedestal is added back to the corrected data, so the result remains within the range
+ * of the image's BITPIX.
+ * The channel and row passes are split over a thread pool, using tasks that are allocated once and
+ * re-used, and the per column and per row offset arrays are only re-allocated when the frame size changes.
+ * The offsets are combined and rounded once per pixel, and applied in place to the raw pixel data.
+ * @see FitsImageData
+ * @see DataProcessingThread#correctReferencePixels
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class ReferencePixelCorrector
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * Task mode: compute the reference row means of a range of channels.
+	 */
+	protected final static int TASK_MODE_CHANNEL       = 0;
+	/**
+	 * Task mode: compute the reference column residual of a block of rows.
+	 */
+	protected final static int TASK_MODE_ROW_REFERENCE = 1;
+	/**
+	 * Task mode: apply the column and row offsets to a block of rows.
+	 */
+	protected final static int TASK_MODE_APPLY         = 2;
+	/**
+	 * The thread pool used to process channels and blocks of rows in parallel.
+	 */
+	protected ExecutorService executorService = null;
+	/**
+	 * The list of re-usable tasks, one per thread.
+	 */
+	protected List<CorrectionTask> taskList = null;
+	/**
+	 * The number of readout channels across the array.
+	 */
+	protected int channelCount = 32;
+	/**
+	 * The width of the reference pixel border, in pixels.
+	 */
+	protected int border = 4;
+	/**
+	 * Whether to compute and subtract the odd and even column channel offsets separately.
+	 */
+	protected boolean oddEven = true;
+	/**
+	 * Whether to perform the row correction using the reference columns.
+	 */
+	protected boolean rowCorrection = true;
+	/**
+	 * The half width of the window of rows the reference columns are averaged over, in rows.
+	 * A value of 0 corrects each row from it's own reference pixels only.
+	 */
+	protected int rowWindow = 4;
+	/**
+	 * The physical value added to the corrected data.
+	 */
+	protected double pedestal = 1000.0;
+	/**
+	 * The raw data of the frame being corrected.
+	 */
+	protected int data[] = null;
+	/**
+	 * The number of columns in the frame being corrected.
+	 */
+	protected int nAxis1 = 0;
+	/**
+	 * The number of rows in the frame being corrected.
+	 */
+	protected int nAxis2 = 0;
+	/**
+	 * The number of channels used for the frame being corrected. This is channelCount, unless the
+	 * frame width is not a multiple of it, when the whole row is treated as one channel.
+	 */
+	protected int frameChannelCount = 0;
+	/**
+	 * The pedestal, in raw (stored) units, for the frame being corrected.
+	 */
+	protected double rawPedestal = 0.0;
+	/**
+	 * The channel offset (in raw units) to add to each column of the frame.
+	 */
+	protected double columnOffset[] = null;
+	/**
+	 * The reference column residual of each row of the frame, in raw units.
+	 */
+	protected double rowResidual[] = null;
+	/**
+	 * The row offset (in raw units) to add to each row of the frame.
+	 */
+	protected double rowOffset[] = null;
+	/**
+	 * The time taken by the last call to correct, in milliseconds.
+	 */
+	protected long lastCorrectionTime = 0;
+
+	/**
+	 * Constructor. Uses the thread pool shared with the rest of the software;
+	 * one re-usable task is created per thread.
+	 * @param executorService The shared thread pool.
+	 * @param threadCount The number of threads to use, normally the number of threads in the shared pool.
+	 *        If this is less than 1, 1 is used.
+	 * @see #executorService
+	 * @see #taskList
+	 * @see IOIExecutors#getComputeExecutor
+	 */
+	public ReferencePixelCorrector(ExecutorService executorService,int threadCount)
+	{
+		super();
+		if(threadCount < 1)
+			threadCount = 1;
+		this.executorService = executorService;
+		taskList = new Vector<CorrectionTask>();
+		for(int i = 0; i < threadCount; i++)
+			taskList.add(new CorrectionTask());
+	}
+
+	/**
+	 * Set the number of readout channels across the array.
+	 * @param n The number of channels.
+	 * @exception IllegalArgumentException Thrown if n is less than 1.
+	 * @see #channelCount
+	 */
+	public void setChannelCount(int n) throws IllegalArgumentException
+	{
+		if(n < 1)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+
+							   ":setChannelCount:Illegal channel count:"+n);
+		}
+		channelCount = n;
+	}
+
+	/**
+	 * Get the number of readout channels across the array.
+	 * @return The number of channels.
+	 * @see #channelCount
+	 */
+	public int getChannelCount()
+	{
+		return channelCount;
+	}
+
+	/**
+	 * Set the width of the reference pixel border.
+	 * @param b The border width in pixels.
+	 * @exception IllegalArgumentException Thrown if b is less than 1.
+	 * @see #border
+	 */
+	public void setBorder(int b) throws IllegalArgumentException
+	{
+		if(b < 1)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+
+							   ":setBorder:Illegal border:"+b);
+		}
+		border = b;
+	}
+
+	/**
+	 * Get the width of the reference pixel border.
+	 * @return The border width in pixels.
+	 * @see #border
+	 */
+	public int getBorder()
+	{
+		return border;
+	}
+
+	/**
+	 * Set whether to correct odd and even columns separately.
+	 * @param b true to correct odd and even columns separately.
+	 * @see #oddEven
+	 */
+	public void setOddEven(boolean b)
+	{
+		oddEven = b;
+	}
+
+	/**
+	 * Get whether odd and even columns are corrected separately.
+	 * @return true if odd and even columns are corrected separately.
+	 * @see #oddEven
+	 */
+	public boolean getOddEven()
+	{
+		return oddEven;
+	}
+
+	/**
+	 * Set the row correction parameters.
+	 * @param b Whether to perform the row correction.
+	 * @param window The half width of the window of rows to average the reference columns over.
+	 * @exception IllegalArgumentException Thrown if window is negative.
+	 * @see #rowCorrection
+	 * @see #rowWindow
+	 */
+	public void setRowCorrection(boolean b,int window) throws IllegalArgumentException
+	{
+		if(window < 0)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+
+							   ":setRowCorrection:Illegal row window:"+window);
+		}
+		rowCorrection = b;
+		rowWindow = window;
+	}
+
+	/**
+	 * Get whether the row correction is performed.
+	 * @return true if the row correction is performed.
+	 * @see #rowCorrection
+	 */
+	public boolean getRowCorrection()
+	{
+		return rowCorrection;
+	}
+
+	/**
+	 * Get the half width of the row correction window.
+	 * @return The half width, in rows.
+	 * @see #rowWindow
+	 */
+	public int getRowWindow()
+	{
+		return rowWindow;
+	}
+
+	/**
+	 * Set the pedestal added to the corrected data.
+	 * @param d The pedestal, as a physical value.
+	 * @see #pedestal
+	 */
+	public void setPedestal(double d)
+	{
+		pedestal = d;
+	}
+
+	/**
+	 * Get the pedestal added to the corrected data.
+	 * @return The pedestal, as a physical value.
+	 * @see #pedestal
+	 */
+	public double getPedestal()
+	{
+		return pedestal;
+	}
+
+	/**
+	 * Get the time taken by the last correction.
+	 * @return The time, in milliseconds.
+	 * @see #lastCorrectionTime
+	 */
+	public long getLastCorrectionTime()
+	{
+		return lastCorrectionTime;
+	}
+
+	/**
+	 * Reference pixel correct the specified image in place.
+	 * <ul>
+	 * <li>We work out the number of channels to use for this frame (frameChannelCount), and the pedestal in
+	 *     raw units.
+	 * <li>We run the TASK_MODE_CHANNEL tasks over the channels, to fill in columnOffset.
+	 * <li>If rowCorrection is enabled, we run the TASK_MODE_ROW_REFERENCE tasks to fill in rowResidual,
+	 *     and compute rowOffset from a running mean of rowResidual over rowWindow rows either side.
+	 * <li>We run the TASK_MODE_APPLY tasks to add the column and row offsets to the data.
+	 * </ul>
+	 * @param image The image to correct. The data is modified in place, the header is not modified.
+	 * @exception Exception Thrown if the frame has no room for the reference border, or a task fails.
+	 * @see #columnOffset
+	 * @see #rowResidual
+	 * @see #rowOffset
+	 * @see #runTasks
+	 */
+	public void correct(FitsImageData image) throws Exception
+	{
+		long startTime;
+		double sum;
+		int windowStart,windowEnd;
+
+		startTime = System.currentTimeMillis();
+		nAxis1 = image.getNAxis1();
+		nAxis2 = image.getNAxis2();
+		if((nAxis1 <= (2*border))||(nAxis2 <= (2*border)))
+		{
+			throw new Exception(this.getClass().getName()+":correct:"+image.getFile()+
+					    ":Frame too small for reference border:"+nAxis1+"x"+nAxis2);
+		}
+		data = image.getData();
+		if((nAxis1 % channelCount) == 0)
+			frameChannelCount = channelCount;
+		else
+			frameChannelCount = 1;
+		rawPedestal = (pedestal-image.getBZero())/image.getBScale();
+		if((columnOffset == null)||(columnOffset.length != nAxis1))
+			columnOffset = new double[nAxis1];
+		if((rowOffset == null)||(rowOffset.length != nAxis2))
+		{
+			rowResidual = new double[nAxis2];
+			rowOffset = new double[nAxis2];
+		}
+		// channel correction
+		runTasks(TASK_MODE_CHANNEL,frameChannelCount);
+		// row correction
+		if(rowCorrection)
+		{
+			runTasks(TASK_MODE_ROW_REFERENCE,nAxis2);
+			sum = 0.0;
+			windowStart = 0;
+			windowEnd = 0;
+			for(int y = 0; y < nAxis2; y++)
+			{
+				while(windowEnd <= Math.min(y+rowWindow,nAxis2-1))
+				{
+					sum += rowResidual[windowEnd];
+					windowEnd++;
+				}
+				while(windowStart < (y-rowWindow))
+				{
+					sum -= rowResidual[windowStart];
+					windowStart++;
+				}
+				rowOffset[y] = -sum/(windowEnd-windowStart);
+			}
+		}
+		else
+			Arrays.fill(rowOffset,0.0);
+		// apply
+		runTasks(TASK_MODE_APPLY,nAxis2);
+		data = null;
+		lastCorrectionTime = System.currentTimeMillis()-startTime;
+	}
+
+	/**
+	 * Get the number of channels used for the last frame corrected. This is the configured channel count,
+	 * unless the frame width was not a multiple of it, when it is 1.
+	 * @return The number of channels.
+	 * @see #frameChannelCount
+	 */
+	public int getLastChannelCount()
+	{
+		return frameChannelCount;
+	}
+
+	/**
+	 * Run the tasks in the specified mode, splitting the items (channels or rows) evenly between them,
+	 * and wait for them to finish.
+	 * @param mode The mode to run the tasks in.
+	 * @param itemCount The number of channels (TASK_MODE_CHANNEL) or rows to process.
+	 * @exception Exception Thrown if a task fails.
+	 * @see #taskList
+	 */
+	protected void runTasks(int mode,int itemCount) throws Exception
+	{
+		List<Future<Object>> futureList = null;
+		int itemsPerTask,start;
+
+		itemsPerTask = (itemCount+taskList.size()-1)/taskList.size();
+		for(int i = 0; i < taskList.size(); i++)
+		{
+			start = Math.min(i*itemsPerTask,itemCount);
+			taskList.get(i).setup(mode,start,Math.min(start+itemsPerTask,itemCount));
+		}
+		futureList = executorService.invokeAll(taskList);
+		for(int i = 0; i < futureList.size(); i++)
+		{
+			try
+			{
+				futureList.get(i).get();
+			}
+			catch(ExecutionException e)
+			{
+				throw new Exception(this.getClass().getName()+":runTasks:Correction task failed:",
+						    e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Re-usable task that processes a range of channels or rows of the frame.
+	 */
+	protected class CorrectionTask implements Callable<Object>
+	{
+		/**
+		 * The mode to run in.
+		 */
+		protected int mode;
+		/**
+		 * The first channel or row to process.
+		 */
+		protected int start;
+		/**
+		 * One more than the last channel or row to process.
+		 */
+		protected int end;
+
+		/**
+		 * Set up the task for the next pass.
+		 * @param mode The mode to run in.
+		 * @param start The first channel or row to process.
+		 * @param end One more than the last channel or row to process.
+		 */
+		public void setup(int mode,int start,int end)
+		{
+			this.mode = mode;
+			this.start = start;
+			this.end = end;
+		}
+
+		/**
+		 * Process the range of channels or rows.
+		 * @return null.
+		 * @see #channelOffsets
+		 * @see #rowReferenceResiduals
+		 * @see #applyOffsets
+		 */
+		public Object call()
+		{
+			if(mode == TASK_MODE_CHANNEL)
+				channelOffsets();
+			else if(mode == TASK_MODE_ROW_REFERENCE)
+				rowReferenceResiduals();
+			else
+				applyOffsets();
+			return null;
+		}
+
+		/**
+		 * For each channel in the range, compute the mean of the reference rows (separately for
+		 * even and odd columns if oddEven is set), and set the columnOffset of each column
+		 * in the channel to bring that mean to the pedestal.
+		 * @see #columnOffset
+		 */
+		protected void channelOffsets()
+		{
+			double evenSum,oddSum,evenOffset,oddOffset;
+			int channelWidth,startColumn,endColumn,evenCount,oddCount,index;
+
+			channelWidth = nAxis1/frameChannelCount;
+			for(int channel = start; channel < end; channel++)
+			{
+				startColumn = channel*channelWidth;
+				endColumn = startColumn+channelWidth;
+				evenSum = 0.0;
+				oddSum = 0.0;
+				evenCount = 0;
+				oddCount = 0;
+				for(int y = 0; y < nAxis2; y++)
+				{
+					if(y == border)
+						y = nAxis2-border;
+					index = (y*nAxis1)+startColumn;
+					for(int x = startColumn; x < endColumn; x++,index++)
+					{
+						if((x & 1) == 0)
+						{
+							evenSum += data[index];
+							evenCount++;
+						}
+						else
+						{
+							oddSum += data[index];
+							oddCount++;
+						}
+					}
+				}
+				if(oddEven && (evenCount > 0) && (oddCount > 0))
+				{
+					evenOffset = rawPedestal-(evenSum/evenCount);
+					oddOffset = rawPedestal-(oddSum/oddCount);
+				}
+				else
+				{
+					evenOffset = rawPedestal-((evenSum+oddSum)/(evenCount+oddCount));
+					oddOffset = evenOffset;
+				}
+				for(int x = startColumn; x < endColumn; x++)
+				{
+					if((x & 1) == 0)
+						columnOffset[x] = evenOffset;
+					else
+						columnOffset[x] = oddOffset;
+				}
+			}
+		}
+
+		/**
+		 * For each row in the range, compute the mean of the channel corrected left and right reference
+		 * columns less the pedestal, and store it in rowResidual.
+		 * @see #rowResidual
+		 */
+		protected void rowReferenceResiduals()
+		{
+			double sum;
+			int rowIndex;
+
+			for(int y = start; y < end; y++)
+			{
+				rowIndex = y*nAxis1;
+				sum = 0.0;
+				for(int x = 0; x < border; x++)
+				{
+					sum += data[rowIndex+x]+columnOffset[x];
+					sum += data[rowIndex+nAxis1-1-x]+columnOffset[nAxis1-1-x];
+				}
+				rowResidual[y] = (sum/(2*border))-rawPedestal;
+			}
+		}
+
+		/**
+		 * Add the combined column and row offset, rounded to the nearest integer, to each pixel
+		 * in the range of rows.
+		 * @see #columnOffset
+		 * @see #rowOffset
+		 */
+		protected void applyOffsets()
+		{
+			double offset;
+			int index;
+
+			for(int y = start; y < end; y++)
+			{
+				offset = rowOffset[y];
+				index = y*nAxis1;
+				for(int x = 0; x < nAxis1; x++,index++)
+					data[index] += (int)Math.floor(columnOffset[x]+offset+0.5);
+			}
+		}
+	}
+}
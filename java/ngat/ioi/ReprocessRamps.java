@@ -0,0 +1,652 @@
+// ReprocessRamps.java
+// $HeadURL$
+package ngat.ioi;
+
+import java.lang.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import ngat.fits.*;
+import ngat.util.logging.*;
+
+/**
+ * This program re-runs the IO:I data processing pipeline (FITS header annotation, reference pixel correction,
+ * calibration, flipping, renaming, checksums, quick-look images, frame statistics and compression) over ramps
+ * that have already been acquired, for instance when the FITS header defaults or flip settings were wrong
+ * for a night. It uses the same DataProcessingThread code as the robotic software, configured from the
+ * same property files (loaded from the current directory), so correct the properties and run it from a
+ * directory containing them.
+ * <p>
+ * Each ramp is described by the snapshot DataProcessingThread.writeSnapshot saved when the ramp was
+ * originally processed (the ramp parameters, FITS headers and FitsFilename). The robotic software processes
+ * each raw IDL ramp directory in place and then deletes it, so a ramp can only be reprocessed if a copy
+ * of the raw ramp was kept: with "ioi.data_processing.snapshot.retain_ramp" true, writeSnapshot copies
+ * each raw ramp directory into the snapshot directory, next to it's snapshot, before it is processed.
+ * The ramps to reprocess are selected either by a list of (retained, raw IDL) ramp directories, 
+ * or a range of ramp directory date stamps, for which the snapshots in the snapshot directory are used, 
+ * with the raw ramps retained next to them (or, failing that, ramp directories retained by hand under the
+ * ramp root directory). FITS header keywords can be replaced (or added) from a FITS header defaults file.
+ * <p>
+ * To check a live ramp can be reprocessed, end to end:
+ * <ol>
+ * <li>Set "ioi.data_processing.snapshot.enable" and "ioi.data_processing.snapshot.retain_ramp" to true,
+ *     and REDATUM (or restart) IO:I.
+ * <li>Take a MULTRUN of one exposure. The snapshot directory now contains &lt;date stamp&gt;.snapshot,
+ *     and a &lt;date stamp&gt; directory holding the raw reads, and the LT output image is in the
+ *     FITS filename directory.
+ * <li>Copy the properties into a scratch directory, and run 
+ *     "java ngat.ioi.ReprocessRamps -start &lt;date stamp&gt; -end &lt;date stamp&gt; -o /tmp/reprocess"
+ *     from there. It should report "1 of 1 ramps reprocessed (0 failed)".
+ * <li>/tmp/reprocess then contains an image of the same name as the live output. With unchanged
+ *     properties, the two images' data units are identical (compare them with e.g. fitsdiff, ignoring
+ *     DATE and CHECKSUM), and the retained ramp and snapshot are unchanged.
+ * </ol>
+ * <p>
+ * The program is idempotent, and can be safely re-run: the ramp directories are never modified.
+ * Each ramp is copied into a working directory, processed there (which renames the processed images into
+ * the output directory, overwriting any previous output of the same ramp, and deletes the working directory).
+ * <p>
+ * The ramps are spread over a number of worker threads (one per processor by default), each with it's own
+ * pipeline (the pipeline holds per-ramp image buffers, so cannot be shared). Idle workers take the next
+ * ramp from a shared queue, so a worker that finishes early picks up the remaining work. The pixel processing
+ * within each stage is run on the shared compute pool as usual. Progress and throughput are reported
+ * as each ramp finishes.
+ * @see DataProcessingThread#processData
+ * @see DataProcessingThread#writeSnapshot
+ * @see DataProcessingThread#parseJournalPayload
+ * @see IOI#initOffline
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class ReprocessRamps
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The IOI object, initialised for offline use.
+	 * @see IOI#initOffline
+	 */
+	protected IOI ioi = null;
+	/**
+	 * The IOIStatus object, holding the loaded properties.
+	 */
+	protected IOIStatus status = null;
+	/**
+	 * The log level.
+	 */
+	protected int logLevel = 0;
+	/**
+	 * The list of ramp directories to reprocess, or empty if a date range is used.
+	 */
+	protected List<File> rampDirectoryList = null;
+	/**
+	 * The first ramp directory date stamp (yyyyMMddHHmmss) to reprocess, if a date range is used.
+	 */
+	protected String startDateStamp = null;
+	/**
+	 * The last ramp directory date stamp (yyyyMMddHHmmss) to reprocess, if a date range is used.
+	 */
+	protected String endDateStamp = null;
+	/**
+	 * The directory containing the snapshots. Defaults to the "ioi.data_processing.snapshot.directory" property.
+	 */
+	protected File snapshotDirectory = null;
+	/**
+	 * The root directory ramp directories retained by hand are under, when a date range is used and the raw
+	 * ramp was not retained next to it's snapshot. Defaults to the "ioi.data.directory.root" property.
+	 */
+	protected File rampRootDirectory = null;
+	/**
+	 * The directory the processed images are written to, or null to use the directory in each snapshot.
+	 */
+	protected File outputDirectory = null;
+	/**
+	 * The directory the ramps are copied into to be processed.
+	 */
+	protected File workDirectory = null;
+	/**
+	 * The FITS header defaults filename, whose keywords replace (or are added to) those in each snapshot,
+	 * or null.
+	 */
+	protected String fitsHeaderOverrideFilename = null;
+	/**
+	 * The FITS header cards loaded from fitsHeaderOverrideFilename, or null.
+	 */
+	protected List fitsHeaderOverrideList = null;
+	/**
+	 * The number of worker threads. Less than 1 means one per processor.
+	 */
+	protected int threadCount = 0;
+	/**
+	 * The queue of ramps waiting to be reprocessed, shared by the worker threads.
+	 */
+	protected Queue<RampJob> jobQueue = null;
+	/**
+	 * The number of ramps to reprocess.
+	 */
+	protected int jobCount = 0;
+	/**
+	 * The number of ramps reprocessed so far.
+	 */
+	protected int doneCount = 0;
+	/**
+	 * The number of ramps that failed to reprocess.
+	 */
+	protected int failedCount = 0;
+	/**
+	 * The number of bytes of ramp data reprocessed so far.
+	 */
+	protected long doneByteCount = 0;
+	/**
+	 * The time reprocessing started, in milliseconds since the epoch.
+	 */
+	protected long startTime = 0;
+
+	/**
+	 * Constructor.
+	 */
+	public ReprocessRamps()
+	{
+		super();
+		rampDirectoryList = new Vector<File>();
+		jobQueue = new ConcurrentLinkedQueue<RampJob>();
+	}
+
+	/**
+	 * Initialise the program. IOI is initialised for offline use (loading the properties from the
+	 * current directory), and the defaults of the directories not specified on the command line are
+	 * retrieved from the properties. The FITS header override file is loaded, if specified.
+	 * @exception Exception Thrown if initialisation fails, or the properties do not rename the processed images
+	 *            (the processed images would be deleted with the working directory).
+	 * @see #ioi
+	 * @see #status
+	 * @see #fitsHeaderOverrideList
+	 * @see IOI#initOffline
+	 */
+	protected void init() throws Exception
+	{
+		FitsHeaderDefaults fitsHeaderDefaults = null;
+
+		ioi = new IOI();
+		ioi.initOffline(logLevel);
+		status = ioi.getStatus();
+		if(status.getConfig().getFitsRename() == false)
+		{
+			throw new Exception(this.getClass().getName()+
+					    ":init:ioi.file.fits.rename must be true to reprocess ramps.");
+		}
+		if(snapshotDirectory == null)
+			snapshotDirectory = status.getConfig().getDataProcessingSnapshotDirectory();
+		if(rampRootDirectory == null)
+			rampRootDirectory = new File(status.getConfig().getDataDirectoryRoot());
+		if(workDirectory == null)
+			workDirectory = new File(System.getProperty("java.io.tmpdir"),"ioi_reprocess");
+		if((workDirectory.isDirectory() == false)&&(workDirectory.mkdirs() == false))
+		{
+			throw new IOException(this.getClass().getName()+":init:Failed to create working directory "+
+					      workDirectory+".");
+		}
+		if(fitsHeaderOverrideFilename != null)
+		{
+			fitsHeaderDefaults = new FitsHeaderDefaults();
+			fitsHeaderDefaults.load(fitsHeaderOverrideFilename);
+			fitsHeaderOverrideList = fitsHeaderDefaults.getCardImageList();
+		}
+	}
+
+	/**
+	 * Find the ramps to reprocess, and add a job for each to the job queue. If a list of ramp directories
+	 * was specified, the snapshot of each is found in the snapshot directory. Otherwise the snapshot directory
+	 * is searched for snapshots whose ramp directory date stamp is within the date range. Each ramp
+	 * directory is the copy of the raw ramp retained next to the snapshot, if there is one, otherwise it is
+	 * looked for under the ramp root directory (in the Fowler sampling or up the ramp directory, from
+	 * the bFS recorded in the snapshot).
+	 * @exception Exception Thrown if a snapshot is missing, or cannot be parsed.
+	 * @see #jobQueue
+	 * @see #rampDirectoryList
+	 * @see #startDateStamp
+	 * @see #endDateStamp
+	 * @see #getModeDirectory
+	 */
+	protected void findRamps() throws Exception
+	{
+		DataProcessingThread pipeline = null;
+		File snapshotList[];
+		RampJob job = null;
+		String name = null;
+
+		// used only to parse the snapshots
+		pipeline = createPipeline();
+		if(rampDirectoryList.size() > 0)
+		{
+			for(int i = 0; i < rampDirectoryList.size(); i++)
+			{
+				job = new RampJob();
+				job.rampDirectory = rampDirectoryList.get(i);
+				job.snapshotFile = new File(snapshotDirectory,job.rampDirectory.getName()+
+							    DataProcessingThread.SNAPSHOT_FILENAME_SUFFIX);
+				job.item = pipeline.parseJournalPayload(readFile(job.snapshotFile));
+				jobQueue.add(job);
+			}
+		}
+		else
+		{
+			snapshotList = snapshotDirectory.listFiles();
+			if(snapshotList == null)
+			{
+				throw new Exception(this.getClass().getName()+":findRamps:Directory list was null:"+
+						    snapshotDirectory);
+			}
+			// process the ramps in date order
+			Arrays.sort(snapshotList);
+			for(int i = 0; i < snapshotList.length; i++)
+			{
+				name = snapshotList[i].getName();
+				if(name.endsWith(DataProcessingThread.SNAPSHOT_FILENAME_SUFFIX) == false)
+					continue;
+				name = name.substring(0,name.length()-DataProcessingThread.SNAPSHOT_FILENAME_SUFFIX.length());
+				if((name.compareTo(startDateStamp) < 0)||(name.compareTo(endDateStamp) > 0))
+					continue;
+				job = new RampJob();
+				job.snapshotFile = snapshotList[i];
+				job.item = pipeline.parseJournalPayload(readFile(job.snapshotFile));
+				// a raw ramp retained next to it's snapshot, or one retained by hand under the ramp root
+				job.rampDirectory = new File(snapshotDirectory,name);
+				if(job.rampDirectory.isDirectory() == false)
+				{
+					job.rampDirectory = new File(new File(rampRootDirectory,
+									     getModeDirectory(job.item.getBFS())),name);
+				}
+				jobQueue.add(job);
+			}
+		}
+		jobCount = jobQueue.size();
+		ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":findRamps:Found "+jobCount+" ramps.");
+	}
+
+	/**
+	 * Get the directory (under the ramp root directory) ramps acquired in the specified mode are stored in.
+	 * @param bFS Whether the ramp was acquired in Fowler Sampling mode (bFS == 1) or Read up the Ramp mode
+	 *        (bFS == 0).
+	 * @return The value of the "ioi.data.directory.fowler" or "ioi.data.directory.up_the_ramp" property.
+	 * @see DataProcessingThread#findRampData
+	 * @see IOIConfig#getDataDirectoryFowler
+	 * @see IOIConfig#getDataDirectoryUpTheRamp
+	 */
+	protected String getModeDirectory(int bFS)
+	{
+		if(bFS == 1)
+			return status.getConfig().getDataDirectoryFowler();
+		return status.getConfig().getDataDirectoryUpTheRamp();
+	}
+
+	/**
+	 * Reprocess the ramps. The worker threads are started, and we wait for them to empty the job queue.
+	 * @exception Exception Thrown if waiting for the workers is interrupted.
+	 * @see #threadCount
+	 * @see Worker
+	 */
+	protected void run() throws Exception
+	{
+		List<Thread> workerList = new Vector<Thread>();
+		Thread thread = null;
+		int count;
+
+		count = threadCount;
+		if(count < 1)
+			count = Runtime.getRuntime().availableProcessors();
+		count = Math.max(1,Math.min(count,jobCount));
+		ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":run:Reprocessing "+jobCount+
+			" ramps using "+count+" worker threads.");
+		startTime = System.currentTimeMillis();
+		for(int i = 0; i < count; i++)
+		{
+			thread = new Thread(new Worker(createPipeline()),"ReprocessWorker-"+i);
+			workerList.add(thread);
+			thread.start();
+		}
+		for(int i = 0; i < workerList.size(); i++)
+			workerList.get(i).join();
+		System.out.println(this.getClass().getName()+":Finished:"+doneCount+" of "+jobCount+" ramps reprocessed ("+
+				   failedCount+" failed) in "+((System.currentTimeMillis()-startTime)/1000)+
+				   " seconds"+getThroughputString()+".");
+	}
+
+	/**
+	 * Reprocess one ramp, on a worker's pipeline. The working directory for the ramp is emptied (in case
+	 * a previous run failed part way through), the ramp directory copied into it, and the item re-pointed at
+	 * the copy (and at the output directory, if specified). Any FITS header overrides are applied,
+	 * and the pipeline's processData called.
+	 * If processing fails, the working directory is deleted.
+	 * @param pipeline The worker's pipeline.
+	 * @param job The ramp to reprocess.
+	 * @return The number of bytes of ramp data reprocessed.
+	 * @exception Exception Thrown if the ramp cannot be copied or processed.
+	 * @see #overrideFitsHeaders
+	 * @see DataProcessingThread#copyDirectory
+	 * @see DataProcessingThread#processData
+	 * @see DataProcessingThread#deleteIDLDirectory
+	 */
+	protected long reprocess(DataProcessingThread pipeline,RampJob job) throws Exception
+	{
+		DataProcessingThread.DataProcessingItem item = null;
+		File rampWorkDirectory = null;
+		long byteCount;
+
+		item = job.item;
+		if(job.rampDirectory.isDirectory() == false)
+		{
+			throw new Exception(this.getClass().getName()+":reprocess:"+job.rampDirectory+
+					    " not a directory.");
+		}
+		rampWorkDirectory = new File(workDirectory,job.rampDirectory.getName());
+		if(rampWorkDirectory.exists())
+			pipeline.deleteIDLDirectory(rampWorkDirectory.toString());
+		byteCount = pipeline.copyDirectory(job.rampDirectory,rampWorkDirectory);
+		try
+		{
+			item.setRampDirectory(rampWorkDirectory.toString());
+			if((outputDirectory != null)&&(item.getFitsFilename() != null))
+				item.getFitsFilename().setDirectory(outputDirectory.toString());
+			overrideFitsHeaders(item.getFitsHeader());
+			pipeline.processData(item);
+		}
+		catch(Exception e)
+		{
+			if(rampWorkDirectory.exists())
+				pipeline.deleteIDLDirectory(rampWorkDirectory.toString());
+			throw e;
+		}
+		return byteCount;
+	}
+
+	/**
+	 * Replace the values of the keywords in the FITS header that are in the FITS header override list,
+	 * and add those that are not. This does nothing if no override file was specified.
+	 * @param fitsHeader The FITS header of the item to reprocess.
+	 * @see #fitsHeaderOverrideList
+	 */
+	protected void overrideFitsHeaders(FitsHeader fitsHeader)
+	{
+		List<FitsHeaderCardImage> addList = new Vector<FitsHeaderCardImage>();
+		FitsHeaderCardImage overrideCardImage = null;
+		FitsHeaderCardImage cardImage = null;
+
+		if(fitsHeaderOverrideList == null)
+			return;
+		for(int i = 0; i < fitsHeaderOverrideList.size(); i++)
+		{
+			overrideCardImage = (FitsHeaderCardImage)(fitsHeaderOverrideList.get(i));
+			cardImage = fitsHeader.get(overrideCardImage.getKeyword());
+			if(cardImage != null)
+				cardImage.setValue(overrideCardImage.getValue());
+			else
+				addList.add(overrideCardImage);
+		}
+		fitsHeader.addKeywordValueList(addList,0);
+	}
+
+	/**
+	 * Called by a worker when it has finished a ramp. The progress, and throughput so far, is reported.
+	 * @param job The ramp.
+	 * @param byteCount The number of bytes of ramp data reprocessed, or 0 if it failed.
+	 * @param failed Whether reprocessing the ramp failed.
+	 * @see #doneCount
+	 * @see #failedCount
+	 * @see #doneByteCount
+	 */
+	protected synchronized void jobFinished(RampJob job,long byteCount,boolean failed)
+	{
+		long elapsedTime,remainingTime;
+
+		doneCount++;
+		if(failed)
+			failedCount++;
+		doneByteCount += byteCount;
+		elapsedTime = System.currentTimeMillis()-startTime;
+		remainingTime = (elapsedTime*(jobCount-doneCount))/doneCount;
+		System.out.println(this.getClass().getName()+":"+doneCount+"/"+jobCount+":"+job.rampDirectory.getName()+
+				   (failed ? " FAILED" : " done")+":"+failedCount+" failed"+getThroughputString()+
+				   ":about "+(remainingTime/1000)+" seconds remaining.");
+	}
+
+	/**
+	 * Get a string describing the throughput so far.
+	 * @return A string, containing the ramps per minute and megabytes per second processed.
+	 * @see #doneCount
+	 * @see #doneByteCount
+	 * @see #startTime
+	 */
+	protected synchronized String getThroughputString()
+	{
+		double elapsedTime;
+
+		elapsedTime = ((double)Math.max(1,System.currentTimeMillis()-startTime))/1000.0;
+		return ":"+String.format("%.2f",((double)doneCount*60.0)/elapsedTime)+" ramps/min:"+
+			String.format("%.2f",((double)doneByteCount)/(1024.0*1024.0*elapsedTime))+" MB/s";
+	}
+
+	/**
+	 * Create a pipeline: a DataProcessingThread, initialised but not started (and without a journal),
+	 * whose processData method is called directly. The pipeline does not save snapshots, so the original
+	 * snapshots and retained ramps are not overwritten by the reprocessing.
+	 * @return The pipeline.
+	 * @exception Exception Thrown if the pipeline fails to initialise.
+	 * @see DataProcessingThread#init
+	 * @see DataProcessingThread#setSnapshotEnable
+	 */
+	protected DataProcessingThread createPipeline() throws Exception
+	{
+		DataProcessingThread pipeline = null;
+
+		pipeline = new DataProcessingThread();
+		pipeline.setIOI(ioi);
+		pipeline.setSnapshotEnable(false);
+		pipeline.init();
+		return pipeline;
+	}
+
+	/**
+	 * Read the contents of a file.
+	 * @param file The file.
+	 * @return The contents of the file.
+	 * @exception IOException Thrown if the file cannot be read.
+	 */
+	protected byte[] readFile(File file) throws IOException
+	{
+		DataInputStream inputStream = null;
+		byte buffer[] = null;
+
+		buffer = new byte[(int)file.length()];
+		inputStream = new DataInputStream(new FileInputStream(file));
+		try
+		{
+			inputStream.readFully(buffer);
+		}
+		finally
+		{
+			inputStream.close();
+		}
+		return buffer;
+	}
+
+	/**
+	 * This routine parses arguments passed into the program.
+	 * @param args The command line arguments.
+	 * @exception Exception Thrown if an argument is missing it's value, or is not supported.
+	 * @see #help
+	 */
+	protected void parseArgs(String[] args) throws Exception
+	{
+		for(int i = 0; i < args.length;i++)
+		{
+			if(args[i].equals("-h")||args[i].equals("-help"))
+			{
+				help();
+				System.exit(0);
+			}
+			if((i+1) >= args.length)
+				throw new Exception(this.getClass().getName()+":parseArgs:"+args[i]+" requires a value.");
+			if(args[i].equals("-d")||args[i].equals("-directory"))
+				rampDirectoryList.add(new File(args[i+1]));
+			else if(args[i].equals("-start"))
+				startDateStamp = args[i+1];
+			else if(args[i].equals("-end"))
+				endDateStamp = args[i+1];
+			else if(args[i].equals("-snapshot_directory"))
+				snapshotDirectory = new File(args[i+1]);
+			else if(args[i].equals("-ramp_root"))
+				rampRootDirectory = new File(args[i+1]);
+			else if(args[i].equals("-o")||args[i].equals("-output_directory"))
+				outputDirectory = new File(args[i+1]);
+			else if(args[i].equals("-work_directory"))
+				workDirectory = new File(args[i+1]);
+			else if(args[i].equals("-f")||args[i].equals("-fitsheaderfilename"))
+				fitsHeaderOverrideFilename = args[i+1];
+			else if(args[i].equals("-t")||args[i].equals("-thread_count"))
+				threadCount = Integer.parseInt(args[i+1]);
+			else if(args[i].equals("-l")||args[i].equals("-log"))
+				logLevel = Integer.parseInt(args[i+1]);
+			else
+				throw new Exception(this.getClass().getName()+":parseArgs:Option not supported:"+args[i]);
+			i++;
+		}
+		if((rampDirectoryList.size() == 0)&&((startDateStamp == null)||(endDateStamp == null)))
+		{
+			throw new Exception(this.getClass().getName()+
+					    ":parseArgs:Specify ramp directories, or a start and end date stamp.");
+		}
+	}
+
+	/**
+	 * Help message routine.
+	 */
+	protected void help()
+	{
+		System.out.println(this.getClass().getName()+" Help:");
+		System.out.println("Run from a directory containing the ioi.properties, ioi.net.properties and "+
+				   "fits.properties to reprocess with.");
+		System.out.println("Options are:");
+		System.out.println("\t-d[irectory] <directory> - A ramp directory to reprocess (can be repeated).");
+		System.out.println("\t-start <yyyyMMddHHmmss> - Reprocess ramps whose date stamp is at or after this.");
+		System.out.println("\t-end <yyyyMMddHHmmss> - Reprocess ramps whose date stamp is at or before this.");
+		System.out.println("\t-snapshot_directory <directory> - The directory containing the ramp snapshots.");
+		System.out.println("\t-ramp_root <directory> - The root directory of ramps retained by hand, "+
+				   "for a date range.");
+		System.out.println("\t-o[utput_directory] <directory> - Where to put the processed FITS images.");
+		System.out.println("\t-work_directory <directory> - Where to copy the ramps to process them.");
+		System.out.println("\t-f[itsheaderfilename] <filename> - FITS header defaults to replace or add.");
+		System.out.println("\t-t[hread_count] <n> - The number of ramps to process at once "+
+				   "(default one per processor).");
+		System.out.println("\t-l[og] <level> - The log level.");
+	}
+
+	/**
+	 * The data needed to reprocess one ramp.
+	 */
+	protected class RampJob
+	{
+		/**
+		 * The ramp directory (which is not modified).
+		 */
+		protected File rampDirectory = null;
+		/**
+		 * The snapshot file the item was parsed from.
+		 */
+		protected File snapshotFile = null;
+		/**
+		 * The item to process, parsed from the snapshot.
+		 */
+		protected DataProcessingThread.DataProcessingItem item = null;
+	}
+
+	/**
+	 * A worker, which reprocesses ramps from the shared job queue on it's own pipeline, until the queue is
+	 * empty.
+	 * @see #jobQueue
+	 * @see #reprocess
+	 * @see #jobFinished
+	 */
+	protected class Worker implements Runnable
+	{
+		/**
+		 * The worker's pipeline.
+		 */
+		protected DataProcessingThread pipeline = null;
+
+		/**
+		 * Constructor.
+		 * @param pipeline The worker's pipeline.
+		 */
+		public Worker(DataProcessingThread pipeline)
+		{
+			super();
+			this.pipeline = pipeline;
+		}
+
+		/**
+		 * Run method. Reprocess ramps until the job queue is empty. A failed ramp is logged, and the worker
+		 * carries on with the next ramp.
+		 */
+		public void run()
+		{
+			RampJob job = null;
+			long byteCount;
+
+			while((job = jobQueue.poll()) != null)
+			{
+				try
+				{
+					byteCount = reprocess(pipeline,job);
+					jobFinished(job,byteCount,false);
+				}
+				catch(Exception e)
+				{
+					ioi.error(this.getClass().getName()+":run:Reprocessing "+job.rampDirectory+
+						  " failed:",e);
+					jobFinished(job,0,true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Main program entry point. Parse arguments, initialise, find the ramps and reprocess them.
+	 * The program exits with status 1 if any ramp failed to reprocess.
+	 * @param args The command line arguments.
+	 */
+	public static void main(String[] args)
+	{
+		ReprocessRamps reprocessRamps = null;
+
+		reprocessRamps = new ReprocessRamps();
+		try
+		{
+			reprocessRamps.parseArgs(args);
+		}
+		catch(Exception e)
+		{
+			System.err.println("ReprocessRamps:"+e);
+			reprocessRamps.help();
+			System.exit(1);
+		}
+		try
+		{
+			reprocessRamps.init();
+			reprocessRamps.findRamps();
+			reprocessRamps.run();
+		}
+		catch(Exception e)
+		{
+			System.err.println("ReprocessRamps:run failed:"+e);
+			e.printStackTrace(System.err);
+			System.exit(1);
+		}
+		if(reprocessRamps.failedCount > 0)
+			System.exit(1);
+		System.exit(0);
+	}
+}
@@ -35,6 +35,16 @@ public class SETUPImplementation extends FITSImplementation implements JMSComman
 		return acknowledge;
 	}
 
+	/**
+	 * SETUP commands drive the detector, so cannot be run until controller startup has completed.
+	 * @return ControllerStartup.REQUIRE_DETECTOR.
+	 * @see ControllerStartup#REQUIRE_DETECTOR
+	 */
+	public int getStartupRequirement()
+	{
+		return ControllerStartup.REQUIRE_DETECTOR;
+	}
+
 	/**
 	 * This method is a generic implementation for the SETUP command, that does nothing.
 	 */
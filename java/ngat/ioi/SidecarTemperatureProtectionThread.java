@@ -196,7 +196,7 @@ public class SidecarTemperatureProtectionThread extends Thread
 	 * <li>We enter a loop:
 	 *     <ul>
 	 *     <li>We get the temperature from the configured input using temperatureGet. If this fails we set a 
-	 *         commsFault.
+	 *         commsFault. Either way the poll is recorded as a TEMPERATURE event, if event recording is on.
 	 *     <li>If we had a commsFault and failOnCommsFault is true, we try calling powerDownASIC, 
 	 *         and if this succeeds we set THREAD_STATE_FAIL_COMMS and terminate the loop.
 	 *     <li>If the actual temperature is greater than the failureTemperature, we try calling powerDownASIC, 
@@ -222,10 +222,12 @@ public class SidecarTemperatureProtectionThread extends Thread
 	 * @see #failureTemperature
 	 * @see #sleepTime
 	 * @see ngat.supircam.temperaturecontroller.TemperatureController#temperatureGet
+	 * @see ngat.ioi.command.EventRecorder#record
 	 */
 	public void run()
 	{
 		double actualTemperature = 0.0;
+		long startNanoTime;
 		boolean finishThreadLoop,commsFault;
 
 		if(sidecarProtectionEnable == false)
@@ -249,13 +251,18 @@ public class SidecarTemperatureProtectionThread extends Thread
 		{
 			ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
 				":run:Get the current temperature.");
+			startNanoTime = System.nanoTime();
 			try
 			{
 				actualTemperature = tempControl.temperatureGet(tempInput);
 				commsFault = false;
+				EventRecorder.getInstance().record(EventRecorder.EVENT_TYPE_TEMPERATURE,"temperatureGet",
+								   tempInput+":"+actualTemperature,startNanoTime);
 			}
 			catch(Exception e)
 			{
+				EventRecorder.getInstance().record(EventRecorder.EVENT_TYPE_TEMPERATURE,"temperatureGet",
+								   tempInput+":FAILED",startNanoTime);
 				ioi.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
 					":run:Retrieving temperature failed.");
 				commsFault = true;
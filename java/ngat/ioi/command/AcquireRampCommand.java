@@ -18,6 +18,33 @@ public class AcquireRampCommand extends StandardReplyCommand implements Runnable
 	 * Revision Control System id string, showing the version of the Class.
 	 */
 	public final static String RCSID = new String("$Id$");
+	/**
+	 * Acquisition state. We don't know whether the IDL Socket Server is acquiring a ramp, 
+	 * either because no ramp has been acquired yet or because the last reply was lost.
+	 */
+	public final static int ACQUISITION_STATE_UNKNOWN     = 0;
+	/**
+	 * Acquisition state. The last AcquireRamp command sent has received it's reply.
+	 */
+	public final static int ACQUISITION_STATE_IDLE        = 1;
+	/**
+	 * Acquisition state. An AcquireRamp command has been sent and is awaiting a reply.
+	 */
+	public final static int ACQUISITION_STATE_IN_PROGRESS = 2;
+	/**
+	 * The acquisition state of the IDL Socket Server, as seen by AcquireRamp commands sent from this JVM.
+	 * All commands in this JVM share one connection to the IDL Socket Server (via the CommandReplyBroker),
+	 * so this is class wide.
+	 * @see #ACQUISITION_STATE_UNKNOWN
+	 * @see #ACQUISITION_STATE_IDLE
+	 * @see #ACQUISITION_STATE_IN_PROGRESS
+	 */
+	protected static int acquisitionState = ACQUISITION_STATE_UNKNOWN;
+	/**
+	 * Lock object used to synchronise access to acquisitionState.
+	 * @see #acquisitionState
+	 */
+	protected static Object acquisitionStateLock = new Object();
 
 	/**
 	 * Default constructor. Set the command string to "ACQUIRERAMP".
@@ -29,6 +56,73 @@ public class AcquireRampCommand extends StandardReplyCommand implements Runnable
 		commandString = new String("ACQUIRERAMP");
 	}
 
+	/**
+	 * Called just before the command is sent, the acquisition state is set to IN_PROGRESS.
+	 * @see #acquisitionState
+	 * @see #ACQUISITION_STATE_IN_PROGRESS
+	 */
+	protected void sendingCommand()
+	{
+		synchronized(acquisitionStateLock)
+		{
+			acquisitionState = ACQUISITION_STATE_IN_PROGRESS;
+		}
+	}
+
+	/**
+	 * Set the reply string. This is called by the CommandReplyBroker when the reply arrives, even if 
+	 * sendCommand has stopped waiting for it because the command was cancelled. The acquisition
+	 * state is set to IDLE, or UNKNOWN if the reply is null (the connection to the IDL Socket Server failed).
+	 * @param s The FULL reply string returned from the server.
+	 * @see #acquisitionState
+	 * @see #ACQUISITION_STATE_IDLE
+	 * @see #ACQUISITION_STATE_UNKNOWN
+	 */
+	public void setReplyString(String s)
+	{
+		synchronized(acquisitionStateLock)
+		{
+			if(s != null)
+				acquisitionState = ACQUISITION_STATE_IDLE;
+			else
+				acquisitionState = ACQUISITION_STATE_UNKNOWN;
+		}
+		super.setReplyString(s);
+	}
+
+	/**
+	 * Get the acquisition state of the IDL Socket Server.
+	 * @return The acquisition state, one of ACQUISITION_STATE_UNKNOWN, ACQUISITION_STATE_IDLE,
+	 *         ACQUISITION_STATE_IN_PROGRESS.
+	 * @see #acquisitionState
+	 */
+	public static int getAcquisitionState()
+	{
+		synchronized(acquisitionStateLock)
+		{
+			return acquisitionState;
+		}
+	}
+
+	/**
+	 * Get a string describing the specified acquisition state.
+	 * @param state The acquisition state.
+	 * @return A string, one of "UNKNOWN", "IDLE", "IN_PROGRESS".
+	 */
+	public static String acquisitionStateToString(int state)
+	{
+		switch(state)
+		{
+			case ACQUISITION_STATE_IDLE:
+				return "IDLE";
+			case ACQUISITION_STATE_IN_PROGRESS:
+				return "IN_PROGRESS";
+			case ACQUISITION_STATE_UNKNOWN:
+			default:
+				return "UNKNOWN";
+		}
+	}
+
 	/**
 	 * Main test program.
 	 * @param args The argument list.
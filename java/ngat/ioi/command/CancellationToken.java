@@ -0,0 +1,160 @@
+// CancellationToken.java
+// $HeadURL$
+package ngat.ioi.command;
+
+import java.lang.*;
+import java.util.*;
+
+/**
+ * A cancellation token is created for each command the robotic software implements. When the command
+ * is aborted the token is cancelled, which wakes up any IDL Socket Server commands waiting for a reply on
+ * behalf of that command, so they can fail immediately rather than waiting for the reply to arrive.
+ * The token in use by a thread is stored in a thread local variable, so Command.sendCommand can find it
+ * without it being passed through every method that sends a command.
+ * @see Command#sendCommand
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class CancellationToken
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The cancellation token in use by each thread, if any.
+	 * @see #setCurrentToken
+	 * @see #getCurrentToken
+	 */
+	protected static ThreadLocal<CancellationToken> currentToken = new ThreadLocal<CancellationToken>();
+	/**
+	 * Whether this token has been cancelled.
+	 */
+	protected boolean cancelled = false;
+	/**
+	 * The time the token was cancelled, in milliseconds since the epoch, or 0 if it has not been cancelled.
+	 */
+	protected long cancelTime = 0;
+	/**
+	 * A list of objects that are waiting (using Object.wait) on behalf of the command this token belongs to.
+	 * These are notified when the token is cancelled.
+	 * @see #addWaiter
+	 * @see #removeWaiter
+	 * @see #cancel
+	 */
+	protected List<Object> waiterList = null;
+
+	/**
+	 * Default constructor.
+	 * @see #waiterList
+	 */
+	public CancellationToken()
+	{
+		super();
+		waiterList = new Vector<Object>();
+	}
+
+	/**
+	 * Cancel the token. If the token is not already cancelled, the cancel time is recorded and every
+	 * object in the waiter list is notified. The notification is done outside this token's lock, as the
+	 * waiters test isCancelled whilst holding their own lock.
+	 * @see #cancelled
+	 * @see #cancelTime
+	 * @see #waiterList
+	 */
+	public void cancel()
+	{
+		List<Object> notifyList = null;
+		Object waiter = null;
+
+		synchronized(this)
+		{
+			if(cancelled)
+				return;
+			cancelled = true;
+			cancelTime = System.currentTimeMillis();
+			notifyList = new Vector<Object>(waiterList);
+		}
+		for(int i = 0; i < notifyList.size(); i++)
+		{
+			waiter = notifyList.get(i);
+			synchronized(waiter)
+			{
+				waiter.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Return whether the token has been cancelled.
+	 * @return true if the token has been cancelled, false otherwise.
+	 * @see #cancelled
+	 */
+	public synchronized boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * Return the time the token was cancelled.
+	 * @return The cancel time, in milliseconds since the epoch, or 0 if the token has not been cancelled.
+	 * @see #cancelTime
+	 */
+	public synchronized long getCancelTime()
+	{
+		return cancelTime;
+	}
+
+	/**
+	 * Add an object to the list of objects notified when this token is cancelled. The object should
+	 * test isCancelled after acquiring it's own lock and before each wait.
+	 * @param o The object that will be waited on.
+	 * @see #waiterList
+	 */
+	public synchronized void addWaiter(Object o)
+	{
+		waiterList.add(o);
+	}
+
+	/**
+	 * Remove an object from the list of objects notified when this token is cancelled.
+	 * @param o The object to remove.
+	 * @see #waiterList
+	 */
+	public synchronized void removeWaiter(Object o)
+	{
+		waiterList.remove(o);
+	}
+
+	/**
+	 * Set the cancellation token used by commands sent from the current thread.
+	 * @param token The token, or null to stop the current thread using a token.
+	 * @see #currentToken
+	 */
+	public static void setCurrentToken(CancellationToken token)
+	{
+		if(token == null)
+			currentToken.remove();
+		else
+			currentToken.set(token);
+	}
+
+	/**
+	 * Get the cancellation token used by commands sent from the current thread.
+	 * @return The token, or null if the current thread is not using a token.
+	 * @see #currentToken
+	 */
+	public static CancellationToken getCurrentToken()
+	{
+		return currentToken.get();
+	}
+
+	/**
+	 * Return a string representation of the token.
+	 * @return A string.
+	 */
+	public synchronized String toString()
+	{
+		return new String(this.getClass().getName()+":cancelled = "+cancelled+":cancel time = "+cancelTime);
+	}
+}
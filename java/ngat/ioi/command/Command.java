@@ -52,10 +52,29 @@ public class Command implements Runnable
 	 * A string containing the reply from the server socket.
 	 */
 	protected String replyString = null;
+	/**
+	 * Boolean set to true when the CommandReplyBroker has delivered a reply to this command. The reply
+	 * may be null, if the connection to the server failed.
+	 * @see #setReplyString
+	 * @see #sendCommand
+	 */
+	protected boolean replyReceived = false;
 	/**
 	 * The logger to log messages to.
 	 */
 	protected Logger logger = null;
+	/**
+	 * The cancellation token of the thread that sent this command, or null if it had none.
+	 * @see #sendCommand
+	 * @see #isCancelled
+	 */
+	protected CancellationToken cancellationToken = null;
+	/**
+	 * The number of times this command has been re-sent by the CommandReplyBroker, after the link
+	 * to the IDL Socket Server failed whilst it was awaiting a reply.
+	 * @see CommandReplyBroker#resendRetainedCommands
+	 */
+	protected int retryCount = 0;
 
 	/**
 	 * Default constructor. Construct the TelnetConnection and set this object to be the listener.
@@ -142,31 +161,113 @@ public class Command implements Runnable
 	/**
 	 * Routine to send the specified command over a telnet connection to the specified
 	 * address and port number, wait for a reply from the server, and try to parse the reply.
-	 * @exception Exception Thrown if an error occurs.
+	 * The time taken (whether or not the command succeeds) is recorded once, as a span named "IDL:" followed by
+	 * the command's class name if the calling thread has a trace context, and as an IDL event (with the reply
+	 * error code, or "FAILED" if no reply was parsed) if event recording is on.
+	 * @exception Exception Thrown if an error occurs, or the command is cancelled.
+	 * @see #sendCommandAndAwaitReply
+	 * @see #getEventDetail
+	 * @see TraceContext#getCurrentContext
+	 * @see EventRecorder#recordSpan
+	 */
+	public void sendCommand() throws Exception
+	{
+		TraceContext traceContext = null;
+		String eventDetail = "FAILED";
+		long startNanoTime;
+
+		traceContext = TraceContext.getCurrentContext();
+		startNanoTime = System.nanoTime();
+		try
+		{
+			sendCommandAndAwaitReply();
+			eventDetail = getEventDetail();
+		}
+		finally
+		{
+			EventRecorder.getInstance().recordSpan(traceContext,EventRecorder.EVENT_TYPE_IDL,
+							       this.getClass().getSimpleName(),eventDetail,startNanoTime);
+		}
+	}
+
+	/**
+	 * Send the command over the telnet connection, wait for a reply from the server, and try to parse the reply.
+	 * If the calling thread has a cancellation token, the command is not sent if the token has already been 
+	 * cancelled, and the wait for a reply is abandoned if the token is cancelled whilst waiting. In both cases
+	 * an exception is thrown. An abandoned command is left in the reply broker's command list, so the 
+	 * reply is still consumed by this command when it arrives, rather than being given to another command.
+	 * Whilst waiting, the broker is periodically asked to fail any command retained whilst the link is down
+	 * for longer than it's retain timeout, so this method does not block for ever if the link is not
+	 * re-established.
+	 * @exception Exception Thrown if an error occurs, or the command is cancelled.
 	 * @see #replyBroker
+	 * @see CommandReplyBroker#failExpiredRetainedCommands
 	 * @see #commandString
 	 * @see #commandFinished
 	 * @see #parseReplyString
+	 * @see #sendingCommand
+	 * @see CancellationToken#getCurrentToken
 	 */
-	public void sendCommand() throws Exception
+	protected void sendCommandAndAwaitReply() throws Exception
 	{
+		CancellationToken token = null;
+
 		logger.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+":sendCommand:Started.");
 		commandFinished = false;
+		replyString = null;
+		replyReceived = false;
+		token = CancellationToken.getCurrentToken();
+		cancellationToken = token;
+		if((token != null)&&token.isCancelled())
+		{
+			throw new Exception(this.getClass().getName()+":sendCommand:Command '"+commandString+
+					    "' cancelled before being sent.");
+		}
 		logger.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			   ":sendCommand:Sending Command:"+commandString);
 		replyBroker = CommandReplyBroker.getInstance();
-		replyBroker.sendCommand(commandString,this);
-		while(replyString == null)
+		sendingCommand();
+		try
+		{
+			replyBroker.sendCommand(commandString,this);
+		}
+		catch(Exception e)
 		{
-			logger.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
-				   ":sendCommand:Getting synchronisation lock on:"+this);
-			synchronized(this)
+			// the command was never sent, so undo any state sendingCommand set up
+			setReplyString(null);
+			throw e;
+		}
+		if(token != null)
+			token.addWaiter(this);
+		try
+		{
+			while(replyReceived == false)
 			{
 				logger.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
-					   ":sendCommand:Awaiting reply.");
-				wait(10000);
+					   ":sendCommand:Getting synchronisation lock on:"+this);
+				synchronized(this)
+				{
+					if((replyReceived == false)&&(token != null)&&token.isCancelled())
+					{
+						throw new Exception(this.getClass().getName()+":sendCommand:Command '"+
+								    commandString+"' cancelled whilst awaiting reply.");
+					}
+					logger.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+						   ":sendCommand:Awaiting reply.");
+					if(replyReceived == false)
+						wait(10000);
+				}
+				// if this command is retained whilst the link is down, fail it once the retain timeout
+				// has passed. This is done outside the lock on this command, as the broker locks it.
+				if(replyReceived == false)
+					replyBroker.failExpiredRetainedCommands();
 			}
 		}
+		finally
+		{
+			if(token != null)
+				token.removeWaiter(this);
+		}
 		logger.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			   ":sendCommand:Received Reply:"+replyString);
 		logger.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+":sendCommand:Parsing reply.");
@@ -176,6 +277,26 @@ public class Command implements Runnable
 		logger.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+":sendCommand:Finished.");
 	}
 
+	/**
+	 * Get the detail recorded with the IDL event for this command, once the reply has been parsed.
+	 * This implementation returns "OK", sub-classes that parse a reply error code return that.
+	 * @return A string.
+	 * @see #sendCommand
+	 */
+	protected String getEventDetail()
+	{
+		return "OK";
+	}
+
+	/**
+	 * Method called by sendCommand just before the command string is sent to the IDL Socket Server.
+	 * This implementation does nothing, sub-classes can override it to track the state of the server.
+	 * @see #sendCommand
+	 */
+	protected void sendingCommand()
+	{
+	}
+
 	/**
 	 * Parse a string returned from the server over the telnet connection.
 	 * @exception Exception Thrown if a parse error occurs.
@@ -192,12 +313,16 @@ public class Command implements Runnable
 
 	/**
 	 * Set the reply string. This is normally only called by the CommandReplyBroker.
-	 * @param s The FULL reply string returned from the server.
+	 * A null reply means the connection to the server failed, sendCommand then stops waiting and
+	 * parseReplyString fails.
+	 * @param s The FULL reply string returned from the server, or null.
 	 * @see #replyString
+	 * @see #replyReceived
 	 */
 	public void setReplyString(String s)
 	{
 		replyString = s;
+		replyReceived = true;
 	}
 
 	/**
@@ -234,6 +359,61 @@ public class Command implements Runnable
 		return commandFinished;
 	}
 
+	/**
+	 * Return the command string sent to the server.
+	 * @return The command string.
+	 * @see #commandString
+	 */
+	public String getCommandString()
+	{
+		return commandString;
+	}
+
+	/**
+	 * Return whether the thread that sent this command has cancelled it.
+	 * @return true if the command was sent with a cancellation token, and the token has been cancelled.
+	 * @see #cancellationToken
+	 */
+	public boolean isCancelled()
+	{
+		CancellationToken token = cancellationToken;
+
+		return ((token != null)&&token.isCancelled());
+	}
+
+	/**
+	 * Return whether this command can safely be sent to the IDL Socket Server more than once. 
+	 * If the link to the server fails whilst an idempotent command is awaiting a reply, the CommandReplyBroker
+	 * can re-send it once the link has been re-established. Commands that are not idempotent (e.g. 
+	 * AcquireRamp) fail immediately instead.
+	 * This implementation returns false, sub-classes that only query or set configuration override it.
+	 * @return true if the command is idempotent, false otherwise.
+	 */
+	public boolean isIdempotent()
+	{
+		return false;
+	}
+
+	/**
+	 * Return the number of times this command has been re-sent after the link failed.
+	 * @return The retry count.
+	 * @see #retryCount
+	 */
+	public int getRetryCount()
+	{
+		return retryCount;
+	}
+
+	/**
+	 * Increment the number of times this command has been re-sent after the link failed.
+	 * This is normally only called by the CommandReplyBroker.
+	 * @see #retryCount
+	 */
+	public void incrementRetryCount()
+	{
+		retryCount++;
+	}
+
 	/**
 	 * Return whether this command is an interrupt command (one that can be sent at the same time as 
 	 * another command is active on the connection) or not.
@@ -299,6 +479,7 @@ public class Command implements Runnable
 		BogstanLogFormatter blf = null;
 		String loggerNameStringArray[] = {"ngat.ioi.command.AcquireRampCommand","ngat.ioi.command.Command",
 						  "ngat.ioi.command.CommandReplyBroker",
+						  "ngat.ioi.command.EventRecorder",
 						  "ngat.ioi.command.GetConfigCommand",
 						  "ngat.ioi.command.InitializeCommand",
 						  "ngat.ioi.command.KeywordValueReplyCommand",
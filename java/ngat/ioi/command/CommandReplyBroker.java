@@ -18,6 +18,12 @@ import ngat.util.logging.*;
  * to use one TelnetConnection for comms to the IDL Socket Server :- commands like STOPACQUISITION and PING
  * only work when they are sent on the same telnet conenction as the ACQUIRERAMP command, as the IDL
  * socket server will only process one connection at a time.
+ * When the telnet connection fails, the link is marked down. Commands awaiting a reply that are idempotent
+ * (and have not used up their retries) are retained, and re-sent once a new telnet connection is set
+ * (by the IDL link supervisor). A retained command that has not been re-sent within the retain timeout is
+ * given a null reply, so a caller is not blocked for ever whilst the IDL Socket Server is down.
+ * Other commands are given a null reply, so they fail immediately. 
+ * If retries are disabled (the default) all commands awaiting a reply fail.
  * @author Chris Mottram
  * @version $Revision$
  */
@@ -49,6 +55,49 @@ public class CommandReplyBroker implements Runnable
 	 * A list containing instances of Command subclasses awaiting a reply over the telnet connection.
 	 */
 	protected List<Command> commandList = null;
+	/**
+	 * A list containing instances of idempotent Command subclasses that were awaiting a reply when the
+	 * telnet connection failed, or were sent whilst the link was down. They are re-sent when a new telnet 
+	 * connection is set.
+	 * @see #handleLinkLoss
+	 * @see #resendRetainedCommands
+	 */
+	protected List<Command> retryList = null;
+	/**
+	 * The time each command in the retry list was retained, in milliseconds since the epoch.
+	 * @see #retainCommand
+	 * @see #failExpiredRetainedCommands
+	 */
+	protected Map<Command,Long> retainTimeMap = null;
+	/**
+	 * Whether the telnet connection is believed to be working. This is set to true when a telnet connection
+	 * is set, and false when reading from it fails.
+	 */
+	protected boolean linkUp = false;
+	/**
+	 * The number of times an idempotent command is re-sent after the link fails. Zero (the default) means
+	 * commands are never retried, and all commands awaiting a reply fail when the link fails.
+	 */
+	protected int maxRetryCount = 0;
+	/**
+	 * How long an idempotent command is retained whilst the link is down, before it fails, in milliseconds.
+	 * @see #failExpiredRetainedCommands
+	 */
+	protected long retainTimeout = 30000;
+	/**
+	 * The number of times the link has been lost.
+	 */
+	protected int linkLossCount = 0;
+	/**
+	 * The thread reading replies from the telnet connection.
+	 * @see #startReaderThread
+	 */
+	protected Thread readerThread = null;
+	/**
+	 * The telnet connection the reader thread is reading from.
+	 * @see #startReaderThread
+	 */
+	protected TelnetConnection readerConnection = null;
 	/**
 	 * The logger to log messages to.
 	 */
@@ -70,6 +119,8 @@ public class CommandReplyBroker implements Runnable
 		super();
 		logger = LogManager.getLogger(this);
 		commandList = new Vector<ngat.ioi.command.Command>();
+		retryList = new Vector<ngat.ioi.command.Command>();
+		retainTimeMap = new HashMap<ngat.ioi.command.Command,Long>();
 		// initialise the replyStringMap
 		replyStringMap = new Hashtable<String,String>();
 		replyStringMap.put("0:Ramp acquisition succeeded","ngat.ioi.command.AcquireRampCommand");
@@ -79,12 +130,12 @@ public class CommandReplyBroker implements Runnable
 
 	/**
 	 * Static class method to return the CommandReplyBroker instance in use for this JVM/TelnetConnection.
+	 * If the link is up and no thread is reading replies from the telnet connection, one is started.
 	 * @see #brokerInstance
+	 * @see #startReaderThread
 	 */
-	public static CommandReplyBroker getInstance()
+	public static synchronized CommandReplyBroker getInstance()
 	{
-		Thread t = null;
-
 		//logger.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+":getInstance:Started.");
 		if(brokerInstance == null)
 		{
@@ -92,25 +143,120 @@ public class CommandReplyBroker implements Runnable
 			brokerInstance.logger.log(Logging.VERBOSITY_VERBOSE,
 					    "ngat.ioi.command.CommandReplyBroker:getInstance:Created new instance.");
 		}
-		if(!isRunning)
-		{
-			t = new Thread(brokerInstance);
-			t.setName("CommandReplyBroker");
-			t.start();
-			brokerInstance.logger.log(Logging.VERBOSITY_VERBOSE,
-			      "ngat.ioi.command.CommandReplyBroker:getInstance:Started CommandReplyBroker thread.");
-		}
+		brokerInstance.startReaderThread();
 		return brokerInstance;
 	}
 
 	/**
 	 * Set the telnet connection used for communications to the IDL Socket Server.
+	 * Any commands still awaiting a reply on a previous connection will never get one, so they are retained
+	 * or failed as if the link had been lost. 
+	 * The link is marked as up, a thread is started to read replies from the new connection, and
+	 * any retained idempotent commands are re-sent.
 	 * @param tc The telnet connection.
 	 * @see #telnetConnection
+	 * @see #linkUp
+	 * @see #retainOrFailPendingCommands
+	 * @see #startReaderThread
+	 * @see #resendRetainedCommands
 	 */
-	public void setTelnetConnection(TelnetConnection tc)
+	public synchronized void setTelnetConnection(TelnetConnection tc)
 	{
+		if((telnetConnection != null)&&(tc != telnetConnection))
+			retainOrFailPendingCommands();
 		telnetConnection = tc;
+		linkUp = (tc != null);
+		startReaderThread();
+		resendRetainedCommands();
+	}
+
+	/**
+	 * Set how many times an idempotent command is re-sent after the link fails.
+	 * @param c The number of retries, zero means commands are never retried.
+	 * @see #maxRetryCount
+	 */
+	public synchronized void setMaxRetryCount(int c)
+	{
+		maxRetryCount = c;
+	}
+
+	/**
+	 * Set how long an idempotent command is retained whilst the link is down, before it fails.
+	 * @param t The timeout, in milliseconds.
+	 * @see #retainTimeout
+	 */
+	public synchronized void setRetainTimeout(long t)
+	{
+		retainTimeout = t;
+	}
+
+	/**
+	 * Return whether the link to the IDL Socket Server is believed to be working.
+	 * @return true if a telnet connection has been set, and reading from it has not failed.
+	 * @see #linkUp
+	 */
+	public synchronized boolean isLinkUp()
+	{
+		return linkUp;
+	}
+
+	/**
+	 * Return the number of times the link has been lost.
+	 * @return The number of link failures.
+	 * @see #linkLossCount
+	 */
+	public synchronized int getLinkLossCount()
+	{
+		return linkLossCount;
+	}
+
+	/**
+	 * Return the number of commands awaiting a reply.
+	 * @return The number of commands in the command list.
+	 * @see #commandList
+	 */
+	public int getPendingCommandCount()
+	{
+		return commandList.size();
+	}
+
+	/**
+	 * Return the number of idempotent commands retained whilst the link is down.
+	 * @return The number of commands in the retry list.
+	 * @see #retryList
+	 */
+	public synchronized int getRetainedCommandCount()
+	{
+		return retryList.size();
+	}
+
+	/**
+	 * Start a thread reading replies from the current telnet connection, if the link is up and
+	 * one is not already running for this connection. The connection is passed to the thread, so a thread 
+	 * left reading a previous connection exits without affecting the new one.
+	 * @see #readerThread
+	 * @see #readerConnection
+	 * @see #run(TelnetConnection)
+	 */
+	protected synchronized void startReaderThread()
+	{
+		final TelnetConnection connection = telnetConnection;
+
+		if((connection == null)||(linkUp == false))
+			return;
+		if((readerThread != null)&&readerThread.isAlive()&&(readerConnection == connection))
+			return;
+		readerConnection = connection;
+		readerThread = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					CommandReplyBroker.this.run(connection);
+				}
+			},"CommandReplyBroker");
+		readerThread.start();
+		logger.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			   ":startReaderThread:Started CommandReplyBroker thread.");
 	}
 
 	//public void addCommandReplyListener(Command c)
@@ -125,13 +271,34 @@ public class CommandReplyBroker implements Runnable
 	 * @param commandString The string to send to the IDL Socket Server.
 	 * @param command The IDL Socket Server command object that generated the command string. This is added to the command list,
 	 *        so that when a reply is received by the command reply broker it can direct it to the appropriate command.
+	 * If the link is down, idempotent commands are retained until the link is re-established (if retries
+	 * are enabled), or the retain timeout passes, and other commands fail.
+	 * @exception Exception Thrown if the link is down and the command cannot be retained.
 	 * @see #commandList
 	 * @see #telnetConnection
+	 * @see #linkUp
+	 * @see #retainCommand
 	 */
-	public void sendCommand(String commandString,Command command)
+	public void sendCommand(String commandString,Command command) throws Exception
 	{
 		logger.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
 			   ":sendCommand:Started:"+command.getClass().getName()+":"+commandString);
+		synchronized(this)
+		{
+			if(linkUp == false)
+			{
+				if(command.isIdempotent() && (maxRetryCount > 0))
+				{
+					logger.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+						   ":sendCommand:Link down:Retaining "+command.getClass().getName()+
+						   " until link re-established.");
+					retainCommand(command);
+					return;
+				}
+				throw new Exception(this.getClass().getName()+":sendCommand:Link to IDL Socket Server down:"+
+						    command.getClass().getName()+":"+commandString);
+			}
+		}
 		logger.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
 			   ":sendCommand:Waiting for synchronisation on instance.");
 		logger.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
@@ -165,6 +332,19 @@ public class CommandReplyBroker implements Runnable
 	 * @see #commandList
 	 */
 	public void run()
+	{
+		run(telnetConnection);
+	}
+
+	/**
+	 * Read replies from the specified telnet connection, and dispatch them to the commands awaiting them,
+	 * as described in run(). When reading fails, if the connection is still the current one, 
+	 * handleLinkLoss is called. If the connection has been replaced, the loop just exits.
+	 * @param connection The telnet connection to read replies from.
+	 * @see #run()
+	 * @see #handleLinkLoss
+	 */
+	protected void run(TelnetConnection connection)
 	{
 		Command command = null;
 		String replyString;
@@ -173,7 +353,7 @@ public class CommandReplyBroker implements Runnable
 
 		logger.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+":run:Started.");
 		isRunning = true;
-		if(telnetConnection == null)
+		if(connection == null)
 		{
 			logger.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
 				   ":run:telnetConnection was null:terminating.");
@@ -186,7 +366,7 @@ public class CommandReplyBroker implements Runnable
 			try
 			{
 				// get a reply
-				replyString = telnetConnection.readLine();
+				replyString = connection.readLine();
 				logger.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
 					   ":run:Received Reply String:"+replyString);
 				// telnetConnection.readLine calls BufferedReader.readLine
@@ -195,9 +375,8 @@ public class CommandReplyBroker implements Runnable
 				// causing this loop to go into an infinite loop
 				if(replyString == null)
 				{
-					logger.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
-						   ":run:Received null Reply String:Stopping CommandReplyBroker.");
-					done = true;
+					throw new IOException(this.getClass().getName()+
+							      ":run:Received null Reply String:End of stream.");
 				}
 				// initialise flag specifying whether we have processed the reply.
 				processedReply = false;
@@ -300,18 +479,164 @@ public class CommandReplyBroker implements Runnable
 					   ":run:Reading line failed:",e);
 				// telnetConnection has failed - quit loop
 				done = true;
-				// notify all waiting commands by returning null reply strings
-				while(commandList.size() > 0)
-				{
-					command = commandList.get(0);
-					sendReplyToCommand(null,command,0);
-				}// end while commandList has commands 
+				handleLinkLoss(connection);
 			}// end catch exception
 		}// end while not done
 		isRunning = false;
 		logger.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+":run:Finished.");
 	}
 
+	/**
+	 * Called when reading from a telnet connection fails. If the connection is not the current one 
+	 * (it has been replaced by a new connection, which has already dealt with it's commands), nothing is done.
+	 * Otherwise the link is marked down, the link loss count incremented, and retainOrFailPendingCommands
+	 * called.
+	 * @param connection The telnet connection that failed.
+	 * @see #linkUp
+	 * @see #linkLossCount
+	 * @see #retainOrFailPendingCommands
+	 */
+	protected synchronized void handleLinkLoss(TelnetConnection connection)
+	{
+		if(connection != telnetConnection)
+		{
+			logger.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				   ":handleLinkLoss:Failed connection has already been replaced.");
+			return;
+		}
+		linkUp = false;
+		linkLossCount++;
+		retainOrFailPendingCommands();
+	}
+
+	/**
+	 * Each command awaiting a reply is removed from the command list. Idempotent commands that have not
+	 * been cancelled and have been retried less than maxRetryCount times are retained in the retry list.
+	 * All other commands are sent a null reply, so they fail.
+	 * @see #commandList
+	 * @see #retainCommand
+	 * @see #isRetryable
+	 */
+	protected synchronized void retainOrFailPendingCommands()
+	{
+		Command command = null;
+
+		while(commandList.size() > 0)
+		{
+			command = commandList.get(0);
+			if(isRetryable(command))
+			{
+				logger.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+					   ":retainOrFailPendingCommands:Retaining "+command.getClass().getName()+" for retry.");
+				commandList.remove(0);
+				retainCommand(command);
+			}
+			else
+			{
+				// notify the waiting command by returning a null reply string
+				sendReplyToCommand(null,command,0);
+			}
+		}// end while commandList has commands 
+	}
+
+	/**
+	 * Re-send the commands in the retry list over the current telnet connection. Commands that have
+	 * been cancelled, or have used up their retries, are sent a null reply instead, so they fail.
+	 * @see #retryList
+	 * @see #commandList
+	 * @see #isRetryable
+	 * @see Command#incrementRetryCount
+	 */
+	protected synchronized void resendRetainedCommands()
+	{
+		Command command = null;
+
+		while((retryList.size() > 0)&&linkUp)
+		{
+			command = retryList.remove(0);
+			retainTimeMap.remove(command);
+			if(isRetryable(command))
+			{
+				logger.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+					   ":resendRetainedCommands:Re-sending "+command.getClass().getName()+":"+
+					   command.getCommandString());
+				command.incrementRetryCount();
+				commandList.add(command);
+				telnetConnection.sendLine(command.getCommandString());
+			}
+			else
+			{
+				commandList.add(command);
+				sendReplyToCommand(null,command,commandList.size()-1);
+			}
+		}
+	}
+
+	/**
+	 * Add a command to the retry list, noting when it was retained.
+	 * @param command The command.
+	 * @see #retryList
+	 * @see #retainTimeMap
+	 */
+	protected synchronized void retainCommand(Command command)
+	{
+		retainTimeMap.put(command,new Long(System.currentTimeMillis()));
+		retryList.add(command);
+	}
+
+	/**
+	 * Send a null reply to each command in the retry list that has been retained for longer than
+	 * retainTimeout, or has been cancelled, so the thread waiting for it's reply stops waiting and fails.
+	 * This is called periodically by each command waiting for a reply.
+	 * @see #retryList
+	 * @see #retainTimeMap
+	 * @see #retainTimeout
+	 * @see Command#sendCommandAndAwaitReply
+	 */
+	public synchronized void failExpiredRetainedCommands()
+	{
+		Command command = null;
+		Long retainTime = null;
+		long now;
+		int index;
+
+		now = System.currentTimeMillis();
+		index = 0;
+		while(index < retryList.size())
+		{
+			command = retryList.get(index);
+			retainTime = retainTimeMap.get(command);
+			if(command.isCancelled()||((retainTime != null)&&((now-retainTime.longValue()) > retainTimeout)))
+			{
+				logger.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+					   ":failExpiredRetainedCommands:"+command.getClass().getName()+
+					   " was not re-sent within "+retainTimeout+" ms:Failing it.");
+				retryList.remove(index);
+				retainTimeMap.remove(command);
+				commandList.add(command);
+				sendReplyToCommand(null,command,commandList.size()-1);
+			}
+			else
+				index++;
+		}
+	}
+
+	/**
+	 * Return whether the specified command can be re-sent after the link fails.
+	 * @param command The command.
+	 * @return true if the command is idempotent, has not been cancelled, and has been retried less than
+	 *         maxRetryCount times.
+	 * @see #maxRetryCount
+	 * @see Command#isIdempotent
+	 * @see Command#isCancelled
+	 * @see Command#getRetryCount
+	 */
+	protected boolean isRetryable(Command command)
+	{
+		return command.isIdempotent() && (command.isCancelled() == false) &&
+			(command.getRetryCount() < maxRetryCount);
+	}
+
 	/**
 	 * Send the specified reply string back to the command (and notify() it to wake it up), and
 	 * remove it from the commandList (from the specified index).
@@ -0,0 +1,603 @@
+// EventRecorder.java
+// $HeadURL$
+package ngat.ioi.command;
+
+import java.io.*;
+import java.lang.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import ngat.util.logging.*;
+
+/**
+ * This class provides a continuous, low overhead recording of the key operations IO:I performs
+ * (IDL Socket Server commands, ISS/BSS calls, data processing stages, temperature polls and the commands
+ * sent to IO:I, including GET_STATUS), so the structure of each exposure can be lined up against
+ * GC, I/O and OS level logs when profiling. Each event is a single line, with the following tab separated fields:
+ * <ul>
+ * <li>The start time of the event (UTC, ISO 8601 with milliseconds).
+ * <li>The name of the thread that recorded the event.
+ * <li>The event type (one of the EVENT_TYPE_ constants).
+ * <li>The event name (e.g. the IDL command class, or data processing stage).
+ * <li>The duration of the event, in nanoseconds.
+ * <li>A detail string, e.g. the IDL Socket Server reply error code.
+ * </ul>
+ * The recording is written into a bounded ring of files in the recording directory. When the current file
+ * exceeds the maximum file length the next file in the ring is started, overwriting it's previous contents,
+ * so the on-disk recording never exceeds (file count * maximum file length). Recording is
+ * started and stopped by the "ioi.event.recording" properties, which are re-applied on a REBOOT REDATUM.
+ * As with the CommandReplyBroker, there is a single instance, so the IDL Socket Server commands can find it.
+ * Recording an event only queues it: the events are formatted, written and flushed to disc by a background
+ * flusher thread, so the threads being recorded never wait for disc I/O or for each other. If the queue is
+ * full (the disc has stalled) the event is dropped and counted. When the recording is stopped, record
+ * returns immediately.
+ * @see #recordSpan
+ * @see Command#sendCommand
+ * @see CommandReplyBroker#getInstance
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class EventRecorder
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * Event type for a command sent to the IDL Socket Server, and it's reply.
+	 */
+	public final static String EVENT_TYPE_IDL = "IDL";
+	/**
+	 * Event type for a command sent to the ISS.
+	 */
+	public final static String EVENT_TYPE_ISS = "ISS";
+	/**
+	 * Event type for a command sent to the BSS.
+	 */
+	public final static String EVENT_TYPE_BSS = "BSS";
+	/**
+	 * Event type for one stage of processing an acquired ramp.
+	 */
+	public final static String EVENT_TYPE_DATA_PROCESSING = "DP";
+	/**
+	 * Event type for reading a temperature from the temperature controller.
+	 */
+	public final static String EVENT_TYPE_TEMPERATURE = "TEMPERATURE";
+	/**
+	 * Event type for a command sent to IO:I (including GET_STATUS).
+	 */
+	public final static String EVENT_TYPE_COMMAND = "COMMAND";
+	/**
+	 * The prefix of the filenames in the ring of recording files. The file index and
+	 * FILENAME_SUFFIX are appended to it.
+	 */
+	public final static String FILENAME_PREFIX = "ioi_events_";
+	/**
+	 * The suffix of the filenames in the ring of recording files.
+	 */
+	public final static String FILENAME_SUFFIX = ".txt";
+	/**
+	 * The number of events that can be queued waiting for the flusher thread, before new events are dropped.
+	 */
+	public final static int EVENT_QUEUE_CAPACITY = 4096;
+	/**
+	 * The longest time, in milliseconds, a queued event waits before the flusher thread writes it to disc.
+	 */
+	public final static long FLUSH_PERIOD = 1000;
+	/**
+	 * The single instance of the recorder.
+	 * @see #getInstance
+	 */
+	protected static EventRecorder recorderInstance = null;
+	/**
+	 * The logger to log to.
+	 */
+	protected Logger logger = null;
+	/**
+	 * Whether events are being recorded. This is volatile, as record reads it without taking the
+	 * recorder's lock.
+	 */
+	protected volatile boolean recording = false;
+	/**
+	 * The directory the ring of recording files is in.
+	 */
+	protected File directory = null;
+	/**
+	 * The length, in bytes, above which the next file in the ring is started.
+	 */
+	protected long maxFileLength = 0;
+	/**
+	 * The number of files in the ring.
+	 */
+	protected int fileCount = 0;
+	/**
+	 * The index in the ring of the file currently being written. Once the recording has started, this is
+	 * only changed by the flusher thread.
+	 */
+	protected volatile int fileIndex = 0;
+	/**
+	 * The number of bytes written to the current file. Once the recording has started, this is
+	 * only used by the flusher thread.
+	 */
+	protected long fileLength = 0;
+	/**
+	 * The writer for the current file. Once the recording has started, this is only used by the flusher thread.
+	 */
+	protected Writer writer = null;
+	/**
+	 * Used to format the start time of each event. This is only used by the flusher thread.
+	 */
+	protected SimpleDateFormat dateFormat = null;
+	/**
+	 * The events waiting to be written by the flusher thread.
+	 * @see #EVENT_QUEUE_CAPACITY
+	 */
+	protected BlockingQueue<Event> eventQueue = null;
+	/**
+	 * The thread writing the queued events to disc, or null if the recorder is not recording.
+	 */
+	protected FlusherThread flusherThread = null;
+	/**
+	 * The number of events written since the recording was last started. This is only changed by the
+	 * flusher thread.
+	 */
+	protected volatile long eventCount = 0;
+	/**
+	 * The number of events dropped, because the event queue was full, since the recording was last started.
+	 */
+	protected AtomicLong droppedEventCount = null;
+	/**
+	 * The Java timestamp (milliseconds since the epoch) taken when the recorder was created.
+	 */
+	protected long referenceTime = 0;
+	/**
+	 * The value of System.nanoTime taken when the recorder was created.
+	 */
+	protected long referenceNanoTime = 0;
+
+	/**
+	 * Constructor. Use getInstance to get the recorder.
+	 * @see #getInstance
+	 */
+	protected EventRecorder()
+	{
+		super();
+		logger = LogManager.getLogger(this);
+		dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		eventQueue = new ArrayBlockingQueue<Event>(EVENT_QUEUE_CAPACITY);
+		droppedEventCount = new AtomicLong(0);
+		referenceTime = System.currentTimeMillis();
+		referenceNanoTime = System.nanoTime();
+	}
+
+	/**
+	 * Get the single instance of the event recorder, creating it if necessary. The recording is stopped
+	 * until start is called.
+	 * @return The event recorder.
+	 * @see #recorderInstance
+	 */
+	public static synchronized EventRecorder getInstance()
+	{
+		if(recorderInstance == null)
+			recorderInstance = new EventRecorder();
+		return recorderInstance;
+	}
+
+	/**
+	 * Start recording. If the recorder is already recording to the same ring of files, the recording
+	 * carries on undisturbed, otherwise any current recording is stopped first. The recording starts in the
+	 * file after the most recently modified file in the ring, so the recording of the previous run is kept.
+	 * The file is opened here, so an unwritable directory is reported to the caller, and then a new flusher
+	 * thread is started to write the queued events into it.
+	 * @param directory The directory to put the ring of recording files in.
+	 * @param maxFileLength The length, in bytes, above which the next file in the ring is started.
+	 * @param fileCount The number of files in the ring.
+	 * @exception IllegalArgumentException Thrown if maxFileLength or fileCount are less than 1.
+	 * @exception IOException Thrown if directory is not a directory, or the file cannot be opened.
+	 * @see #stop
+	 * @see #getNextFileIndex
+	 * @see #openFile
+	 * @see #flusherThread
+	 */
+	public synchronized void start(File directory,long maxFileLength,int fileCount) throws
+		IllegalArgumentException, IOException
+	{
+		if((maxFileLength < 1)||(fileCount < 1))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":start:Illegal file length "+
+							   maxFileLength+" or file count "+fileCount+".");
+		}
+		if(recording&&this.directory.equals(directory)&&(this.maxFileLength == maxFileLength)&&
+		   (this.fileCount == fileCount))
+			return;
+		stop();
+		if(directory.isDirectory() == false)
+		{
+			throw new IOException(this.getClass().getName()+":start:"+directory+" is not a directory.");
+		}
+		this.directory = directory;
+		this.maxFileLength = maxFileLength;
+		this.fileCount = fileCount;
+		fileIndex = getNextFileIndex();
+		openFile();
+		eventCount = 0;
+		droppedEventCount.set(0);
+		eventQueue.clear();
+		flusherThread = new FlusherThread();
+		flusherThread.start();
+		recording = true;
+		logger.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":start:Recording to "+
+			   getFile(fileIndex)+" ("+fileCount+" files of "+maxFileLength+" bytes).");
+	}
+
+	/**
+	 * Stop recording. The flusher thread writes any events still queued and exits, and the current file is
+	 * closed. This does nothing if the recorder was not started.
+	 * @see #flusherThread
+	 * @see #closeFile
+	 */
+	public synchronized void stop()
+	{
+		if(flusherThread == null)
+			return;
+		recording = false;
+		flusherThread.quit();
+		try
+		{
+			flusherThread.join();
+		}
+		catch(InterruptedException e)
+		{
+			logger.log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
+				   ":stop:Interrupted waiting for the flusher thread:"+e);
+		}
+		flusherThread = null;
+		closeFile();
+		logger.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":stop:Recorded "+eventCount+
+			   " events, dropped "+droppedEventCount.get()+" events.");
+	}
+
+	/**
+	 * Record an event. This does nothing if the recorder is not recording. The event is queued for the
+	 * flusher thread, without taking the recorder's lock, so recording never waits for disc I/O. If the queue
+	 * is full the event is dropped and counted.
+	 * @param type The event type, one of the EVENT_TYPE_ constants.
+	 * @param name The event name.
+	 * @param detail A detail string, or null.
+	 * @param startNanoTime The start of the event, as returned by System.nanoTime.
+	 * @param endNanoTime The end of the event, as returned by System.nanoTime.
+	 * @see #eventQueue
+	 * @see #droppedEventCount
+	 */
+	public void record(String type,String name,String detail,long startNanoTime,long endNanoTime)
+	{
+		if(recording == false)
+			return;
+		if(eventQueue.offer(new Event(type,name,detail,Thread.currentThread().getName(),startNanoTime,
+					      endNanoTime)) == false)
+			droppedEventCount.incrementAndGet();
+	}
+
+	/**
+	 * Record an event that started at the specified time, and finishes now.
+	 * @param type The event type, one of the EVENT_TYPE_ constants.
+	 * @param name The event name.
+	 * @param detail A detail string, or null.
+	 * @param startNanoTime The start of the event, as returned by System.nanoTime.
+	 * @see #record(java.lang.String,java.lang.String,java.lang.String,long,long)
+	 */
+	public void record(String type,String name,String detail,long startNanoTime)
+	{
+		record(type,name,detail,startNanoTime,System.nanoTime());
+	}
+
+	/**
+	 * Record an operation that started at the specified time, and finishes now, once. The end time is taken
+	 * once, and the operation is added to the trace context's timeline as a span named
+	 * "&lt;type&gt;:&lt;name&gt;" (if there is a trace context), and recorded as an event with the same start
+	 * and end times. This is used wherever an operation belongs in both the trace timeline and the event
+	 * recording, so the two always agree.
+	 * @param traceContext The trace context to add the span to, or null.
+	 * @param type The event type, one of the EVENT_TYPE_ constants.
+	 * @param name The event name.
+	 * @param detail A detail string, or null.
+	 * @param startNanoTime The start of the operation, as returned by System.nanoTime.
+	 * @see TraceContext#addSpan
+	 * @see #record(java.lang.String,java.lang.String,java.lang.String,long,long)
+	 */
+	public void recordSpan(TraceContext traceContext,String type,String name,String detail,long startNanoTime)
+	{
+		long endNanoTime;
+
+		endNanoTime = System.nanoTime();
+		if(traceContext != null)
+			traceContext.addSpan(type+":"+name,startNanoTime,endNanoTime);
+		record(type,name,detail,startNanoTime,endNanoTime);
+	}
+
+	/**
+	 * Return whether events are being recorded.
+	 * @return true if the recorder is recording.
+	 * @see #recording
+	 */
+	public synchronized boolean isRecording()
+	{
+		return recording;
+	}
+
+	/**
+	 * Get the number of events written since the recording was last started.
+	 * @return The number of events.
+	 * @see #eventCount
+	 */
+	public long getEventCount()
+	{
+		return eventCount;
+	}
+
+	/**
+	 * Get the number of events dropped, because the event queue was full, since the recording was last started.
+	 * @return The number of events.
+	 * @see #droppedEventCount
+	 */
+	public long getDroppedEventCount()
+	{
+		return droppedEventCount.get();
+	}
+
+	/**
+	 * Get the file currently being written.
+	 * @return The file, or null if the recorder is not recording.
+	 * @see #getFile
+	 */
+	public synchronized File getCurrentFile()
+	{
+		if(recording == false)
+			return null;
+		return getFile(fileIndex);
+	}
+
+	/**
+	 * Get the file in the ring with the specified index.
+	 * @param index The index in the ring.
+	 * @return The file.
+	 * @see #directory
+	 * @see #FILENAME_PREFIX
+	 * @see #FILENAME_SUFFIX
+	 */
+	protected File getFile(int index)
+	{
+		return new File(directory,FILENAME_PREFIX+index+FILENAME_SUFFIX);
+	}
+
+	/**
+	 * Find the index of the file after the most recently modified file in the ring.
+	 * @return The index, 0 if none of the files in the ring exist.
+	 * @see #getFile
+	 */
+	protected int getNextFileIndex()
+	{
+		File file = null;
+		long lastModified = 0;
+		int index = 0;
+
+		for(int i = 0; i < fileCount; i++)
+		{
+			file = getFile(i);
+			if(file.exists()&&(file.lastModified() > lastModified))
+			{
+				lastModified = file.lastModified();
+				index = (i+1) % fileCount;
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Write a batch of events to the current file, starting the next file in the ring whenever the current
+	 * file exceeds the maximum file length, then flush the file. Called from the flusher thread.
+	 * @param eventList The events to write.
+	 * @exception IOException Thrown if the write fails.
+	 * @see #writer
+	 * @see #nextFile
+	 */
+	protected void writeEvents(List<Event> eventList) throws IOException
+	{
+		Event event = null;
+		String line = null;
+
+		for(int i = 0; i < eventList.size(); i++)
+		{
+			event = eventList.get(i);
+			line = dateFormat.format(new Date(referenceTime+
+							  ((event.startNanoTime-referenceNanoTime)/1000000L)))+"\t"+
+				event.threadName+"\t"+event.type+"\t"+event.name+"\t"+
+				(event.endNanoTime-event.startNanoTime)+"\t"+
+				((event.detail != null) ? event.detail : "")+"\n";
+			writer.write(line);
+			fileLength += line.length();
+			eventCount++;
+			if(fileLength >= maxFileLength)
+				nextFile();
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Start writing the next file in the ring.
+	 * @exception IOException Thrown if the file cannot be opened.
+	 * @see #closeFile
+	 * @see #openFile
+	 */
+	protected void nextFile() throws IOException
+	{
+		closeFile();
+		fileIndex = (fileIndex+1) % fileCount;
+		openFile();
+	}
+
+	/**
+	 * Open (truncating) the file in the ring at fileIndex, and write a header line naming the fields.
+	 * @exception IOException Thrown if the file cannot be opened.
+	 * @see #writer
+	 * @see #fileIndex
+	 * @see #fileLength
+	 */
+	protected void openFile() throws IOException
+	{
+		String header = "# start\tthread\ttype\tname\tduration_ns\tdetail\n";
+
+		writer = new BufferedWriter(new FileWriter(getFile(fileIndex),false));
+		writer.write(header);
+		fileLength = header.length();
+	}
+
+	/**
+	 * Close the current file, ignoring any errors.
+	 * @see #writer
+	 */
+	protected void closeFile()
+	{
+		if(writer == null)
+			return;
+		try
+		{
+			writer.close();
+		}
+		catch(IOException e)
+		{
+			logger.log(Logging.VERBOSITY_VERY_TERSE,this.getClass().getName()+
+				   ":closeFile:Closing "+getFile(fileIndex)+" failed:"+e);
+		}
+		writer = null;
+	}
+
+	/**
+	 * A recorded event, waiting in the event queue for the flusher thread.
+	 */
+	protected static class Event
+	{
+		/**
+		 * The event type.
+		 */
+		protected String type = null;
+		/**
+		 * The event name.
+		 */
+		protected String name = null;
+		/**
+		 * The detail string, or null.
+		 */
+		protected String detail = null;
+		/**
+		 * The name of the thread that recorded the event.
+		 */
+		protected String threadName = null;
+		/**
+		 * The start of the event, as returned by System.nanoTime.
+		 */
+		protected long startNanoTime = 0;
+		/**
+		 * The end of the event, as returned by System.nanoTime.
+		 */
+		protected long endNanoTime = 0;
+
+		/**
+		 * Constructor.
+		 * @param type The event type.
+		 * @param name The event name.
+		 * @param detail The detail string, or null.
+		 * @param threadName The name of the thread that recorded the event.
+		 * @param startNanoTime The start of the event, as returned by System.nanoTime.
+		 * @param endNanoTime The end of the event, as returned by System.nanoTime.
+		 */
+		public Event(String type,String name,String detail,String threadName,long startNanoTime,
+			     long endNanoTime)
+		{
+			super();
+			this.type = type;
+			this.name = name;
+			this.detail = detail;
+			this.threadName = threadName;
+			this.startNanoTime = startNanoTime;
+			this.endNanoTime = endNanoTime;
+		}
+	}
+
+	/**
+	 * The thread that writes the queued events to disc. It waits up to FLUSH_PERIOD milliseconds for an event,
+	 * then writes and flushes every queued event in one batch. When told to quit, it writes any events still
+	 * queued before exiting. If a write fails, the recording is stopped.
+	 * @see EventRecorder#FLUSH_PERIOD
+	 * @see EventRecorder#writeEvents
+	 */
+	protected class FlusherThread extends Thread
+	{
+		/**
+		 * Whether the thread has been told to quit.
+		 */
+		protected volatile boolean quit = false;
+
+		/**
+		 * Constructor. The thread is a daemon, so it never stops IO:I exiting.
+		 */
+		public FlusherThread()
+		{
+			super("EventRecorder.Flusher");
+			setDaemon(true);
+		}
+
+		/**
+		 * Write the queued events until told to quit, and the queue is empty.
+		 * @see EventRecorder#eventQueue
+		 * @see EventRecorder#writeEvents
+		 */
+		public void run()
+		{
+			List<Event> eventList = new Vector<Event>();
+			Event event = null;
+
+			while((quit == false)||(eventQueue.isEmpty() == false))
+			{
+				try
+				{
+					event = eventQueue.poll(FLUSH_PERIOD,TimeUnit.MILLISECONDS);
+				}
+				catch(InterruptedException e)
+				{
+					event = null;
+				}
+				if(event == null)
+					continue;
+				eventList.add(event);
+				eventQueue.drainTo(eventList);
+				try
+				{
+					writeEvents(eventList);
+				}
+				catch(IOException e)
+				{
+					logger.log(Logging.VERBOSITY_VERY_TERSE,EventRecorder.this.getClass().getName()+
+						   ":FlusherThread:Writing events failed, stopping recording:"+e);
+					recording = false;
+					closeFile();
+					return;
+				}
+				eventList.clear();
+			}
+		}
+
+		/**
+		 * Tell the thread to write any events still queued, and exit.
+		 * @see #quit
+		 */
+		public void quit()
+		{
+			quit = true;
+			interrupt();
+		}
+	}
+}
@@ -30,6 +30,16 @@ public class GetConfigCommand extends KeywordValueReplyCommand implements Runnab
 		commandString = new String("GETCONFIG");
 	}
 
+	/**
+	 * Override default isIdempotent, as it only queries the IDL Socket Server configuration,
+	 * it can be re-sent after the link fails.
+	 * @return true.
+	 */
+	public boolean isIdempotent()
+	{
+		return true;
+	}
+
 	/**
 	 * Main test program.
 	 * @param args The argument list.
@@ -39,6 +39,16 @@ public class PingCommand extends StandardReplyCommand implements Runnable
 		return true;
 	}
 
+	/**
+	 * Override default isIdempotent, as it only queries whether the IDL Socket Server is busy,
+	 * it can be re-sent after the link fails.
+	 * @return true.
+	 */
+	public boolean isIdempotent()
+	{
+		return true;
+	}
+
 	/**
 	 * Main test program.
 	 * @param args The argument list.
@@ -80,6 +80,16 @@ public class SetDetectorCommand extends StandardReplyCommand implements Runnable
 				    muxString);
 	}
 
+	/**
+	 * Override default isIdempotent, as setting the same absolute values again leaves the
+	 * IDL Socket Server in the same state, it can be re-sent after the link fails.
+	 * @return true.
+	 */
+	public boolean isIdempotent()
+	{
+		return true;
+	}
+
 	/**
 	 * Main test program.
 	 * @param args The argument list.
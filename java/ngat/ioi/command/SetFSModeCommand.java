@@ -71,6 +71,16 @@ public class SetFSModeCommand extends StandardReplyCommand implements Runnable
 		throw new Exception("ngat.ioi.command.SetFSModeCommand:parseMode:Illegal mode string:"+modeString);
 	}
 
+	/**
+	 * Override default isIdempotent, as setting the same absolute values again leaves the
+	 * IDL Socket Server in the same state, it can be re-sent after the link fails.
+	 * @return true.
+	 */
+	public boolean isIdempotent()
+	{
+		return true;
+	}
+
 	/**
 	 * Main test program.
 	 * @param args The argument list.
@@ -74,6 +74,16 @@ public class SetFSParamCommand extends StandardReplyCommand implements Runnable
 			   ", nRamps="+nRamps+")");
 	}
 
+	/**
+	 * Override default isIdempotent, as setting the same absolute values again leaves the
+	 * IDL Socket Server in the same state, it can be re-sent after the link fails.
+	 * @return true.
+	 */
+	public boolean isIdempotent()
+	{
+		return true;
+	}
+
 	/**
 	 * Main test program.
 	 * @param args The argument list.
@@ -39,6 +39,16 @@ public class SetGainCommand extends StandardReplyCommand implements Runnable
 		commandString = new String("SetGain("+gain+")");
 	}
 
+	/**
+	 * Override default isIdempotent, as setting the same absolute values again leaves the
+	 * IDL Socket Server in the same state, it can be re-sent after the link fails.
+	 * @return true.
+	 */
+	public boolean isIdempotent()
+	{
+		return true;
+	}
+
 	/**
 	 * Main test program.
 	 * @param args The argument list.
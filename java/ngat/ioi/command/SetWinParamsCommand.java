@@ -40,6 +40,16 @@ public class SetWinParamsCommand extends StandardReplyCommand implements Runnabl
 		commandString = new String("SETWINPARAMS("+xStart+", "+xStop+", "+yStart+", "+yStop+")");
 	}
 
+	/**
+	 * Override default isIdempotent, as setting the same absolute values again leaves the
+	 * IDL Socket Server in the same state, it can be re-sent after the link fails.
+	 * @return true.
+	 */
+	public boolean isIdempotent()
+	{
+		return true;
+	}
+
 	/**
 	 * Main test program.
 	 * @param args The argument list.
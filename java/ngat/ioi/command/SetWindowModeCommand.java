@@ -72,6 +72,16 @@ public class SetWindowModeCommand extends StandardReplyCommand implements Runnab
 		throw new Exception("ngat.ioi.command.SetWindowModeCommand:parseMode:Illegal mode string:"+modeString);
 	}
 
+	/**
+	 * Override default isIdempotent, as setting the same absolute values again leaves the
+	 * IDL Socket Server in the same state, it can be re-sent after the link fails.
+	 * @return true.
+	 */
+	public boolean isIdempotent()
+	{
+		return true;
+	}
+
 	/**
 	 * Main test program.
 	 * @param args The argument list.
@@ -88,6 +88,17 @@ public class StandardReplyCommand extends Command implements Runnable
 		return errorCode;
 	}
 
+	/**
+	 * Get the detail recorded with the IDL event for this command, the parsed reply error code.
+	 * @return A string, the error code.
+	 * @see #errorCode
+	 * @see Command#sendCommand
+	 */
+	protected String getEventDetail()
+	{
+		return Integer.toString(errorCode);
+	}
+
 	/**
 	 * Return the parsed reply error string.
 	 * @return A string, the error string.
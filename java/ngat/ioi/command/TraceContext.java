@@ -0,0 +1,255 @@
+// TraceContext.java
+// $HeadURL$
+package ngat.ioi.command;
+
+import java.lang.*;
+import java.util.*;
+
+/**
+ * A trace context identifies the command (and exposure within the command) that the work being done
+ * belongs to, so the spans recorded by different threads (the command thread, the telescope offset thread,
+ * IDL Socket Server commands, ISS/BSS calls and the data processing thread) can be assembled into one
+ * timeline. A context is created for each command the robotic software implements, and a context per exposure
+ * is derived from it. As with the CancellationToken, the context in use by a thread is stored in a thread
+ * local variable, so Command.sendCommand can find it; threads that work on behalf of a command are
+ * given the context explicitly.
+ * @see TraceRecorder
+ * @see TraceSpan
+ * @see CancellationToken
+ * @see Command#sendCommand
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class TraceContext
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The trace context in use by each thread, if any.
+	 * @see #setCurrentContext
+	 * @see #getCurrentContext
+	 */
+	protected static ThreadLocal<TraceContext> currentContext = new ThreadLocal<TraceContext>();
+	/**
+	 * The trace id (correlation id) of the command.
+	 */
+	protected String traceId = null;
+	/**
+	 * The index of the exposure within the command, or -1 for the command as a whole.
+	 */
+	protected int exposureIndex = -1;
+	/**
+	 * The recorder spans are recorded into.
+	 */
+	protected TraceRecorder recorder = null;
+
+	/**
+	 * Constructor.
+	 * @param traceId The trace id of the command.
+	 * @param exposureIndex The index of the exposure within the command, or -1 for the command as a whole.
+	 * @param recorder The recorder spans are recorded into.
+	 */
+	public TraceContext(String traceId,int exposureIndex,TraceRecorder recorder)
+	{
+		super();
+		this.traceId = traceId;
+		this.exposureIndex = exposureIndex;
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Create a context for the specified exposure of this context's command.
+	 * @param index The index of the exposure within the command, or -1 for the command as a whole.
+	 * @return A new context.
+	 */
+	public TraceContext forExposure(int index)
+	{
+		return new TraceContext(traceId,index,recorder);
+	}
+
+	/**
+	 * Get the time to pass to endSpan when the span finishes.
+	 * @return The current value of System.nanoTime.
+	 * @see #endSpan
+	 */
+	public long startSpan()
+	{
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record a span that started at the specified time, and finishes now.
+	 * @param name The name of the span.
+	 * @param startNanoTime The start of the span, as returned by startSpan.
+	 * @see #startSpan
+	 * @see #addSpan
+	 */
+	public void endSpan(String name,long startNanoTime)
+	{
+		addSpan(name,startNanoTime,System.nanoTime());
+	}
+
+	/**
+	 * Record a span with the specified start and end times.
+	 * @param name The name of the span.
+	 * @param startNanoTime The start of the span, as returned by System.nanoTime.
+	 * @param endNanoTime The end of the span, as returned by System.nanoTime.
+	 * @see TraceRecorder#record
+	 */
+	public void addSpan(String name,long startNanoTime,long endNanoTime)
+	{
+		recorder.record(traceId,exposureIndex,name,startNanoTime,endNanoTime);
+	}
+
+	/**
+	 * Get the spans recorded against this context that are still held by the recorder.
+	 * @return A list of spans, in the order they finished.
+	 * @see TraceRecorder#getTimeline
+	 */
+	public List<TraceSpan> getTimeline()
+	{
+		return recorder.getTimeline(traceId,exposureIndex);
+	}
+
+	/**
+	 * Get the first recorded span of this context with the specified name.
+	 * @param name The span name.
+	 * @return The span, or null if there is no span with that name.
+	 * @see #getTimeline
+	 */
+	public TraceSpan getFirstSpan(String name)
+	{
+		List<TraceSpan> spanList = getTimeline();
+
+		for(int i = 0; i < spanList.size(); i++)
+		{
+			if(spanList.get(i).getName().equals(name))
+				return spanList.get(i);
+		}
+		return null;
+	}
+
+	/**
+	 * Get the last recorded span of this context with the specified name.
+	 * @param name The span name.
+	 * @return The span, or null if there is no span with that name.
+	 * @see #getTimeline
+	 */
+	public TraceSpan getLastSpan(String name)
+	{
+		List<TraceSpan> spanList = getTimeline();
+
+		for(int i = spanList.size()-1; i >= 0; i--)
+		{
+			if(spanList.get(i).getName().equals(name))
+				return spanList.get(i);
+		}
+		return null;
+	}
+
+	/**
+	 * Get the trace id of the command.
+	 * @return The trace id.
+	 * @see #traceId
+	 */
+	public String getTraceId()
+	{
+		return traceId;
+	}
+
+	/**
+	 * Get the index of the exposure within the command.
+	 * @return The exposure index, or -1 for the command as a whole.
+	 * @see #exposureIndex
+	 */
+	public int getExposureIndex()
+	{
+		return exposureIndex;
+	}
+
+	/**
+	 * Get the recorder spans are recorded into.
+	 * @return The recorder.
+	 * @see #recorder
+	 */
+	public TraceRecorder getRecorder()
+	{
+		return recorder;
+	}
+
+	/**
+	 * Return whether another object is a trace context for the same command and exposure.
+	 * @param o The object to compare with.
+	 * @return true if o is a TraceContext with the same trace id and exposure index.
+	 */
+	public boolean equals(Object o)
+	{
+		TraceContext context = null;
+
+		if((o instanceof TraceContext) == false)
+			return false;
+		context = (TraceContext)o;
+		return (context.exposureIndex == exposureIndex)&&context.traceId.equals(traceId);
+	}
+
+	/**
+	 * Return a hash code consistent with equals.
+	 * @return The hash code.
+	 */
+	public int hashCode()
+	{
+		return traceId.hashCode()+exposureIndex;
+	}
+
+	/**
+	 * Set the trace context used by the current thread.
+	 * @param context The context, or null to stop tracing the current thread.
+	 * @see #currentContext
+	 */
+	public static void setCurrentContext(TraceContext context)
+	{
+		if(context == null)
+			currentContext.remove();
+		else
+			currentContext.set(context);
+	}
+
+	/**
+	 * Get the trace context used by the current thread.
+	 * @return The context, or null if the current thread is not being traced.
+	 * @see #currentContext
+	 */
+	public static TraceContext getCurrentContext()
+	{
+		return currentContext.get();
+	}
+
+	/**
+	 * Switch the current thread to the specified exposure of the command it is tracing.
+	 * This does nothing if the current thread is not being traced.
+	 * @param index The index of the exposure within the command, or -1 for the command as a whole.
+	 * @return The new context, or null if the current thread is not being traced.
+	 * @see #forExposure
+	 */
+	public static TraceContext setCurrentExposure(int index)
+	{
+		TraceContext context = currentContext.get();
+
+		if(context == null)
+			return null;
+		context = context.forExposure(index);
+		currentContext.set(context);
+		return context;
+	}
+
+	/**
+	 * Return a string representation of the context.
+	 * @return A string, the trace id and exposure index.
+	 */
+	public String toString()
+	{
+		return new String(traceId+":"+exposureIndex);
+	}
+}
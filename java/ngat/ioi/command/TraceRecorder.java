@@ -0,0 +1,216 @@
+// TraceRecorder.java
+// $HeadURL$
+package ngat.ioi.command;
+
+import java.lang.*;
+import java.util.*;
+
+/**
+ * This class records the spans making up the timeline of each command and exposure into a ring buffer.
+ * The ring buffer is allocated (as a set of parallel arrays) when the recorder is created, so recording a span
+ * does not allocate; when it is full the oldest spans are overwritten. Span times are taken from
+ * System.nanoTime, and converted to Java timestamps (for display and FITS headers) using a reference
+ * pair of times taken when the recorder is created.
+ * @see TraceContext
+ * @see TraceSpan
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class TraceRecorder
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The trace id of each span in the ring buffer.
+	 */
+	protected String traceIdList[] = null;
+	/**
+	 * The exposure index of each span in the ring buffer.
+	 */
+	protected int exposureIndexList[] = null;
+	/**
+	 * The name of each span in the ring buffer.
+	 */
+	protected String nameList[] = null;
+	/**
+	 * The name of the thread that recorded each span in the ring buffer.
+	 */
+	protected String threadNameList[] = null;
+	/**
+	 * The start (System.nanoTime) of each span in the ring buffer.
+	 */
+	protected long startNanoTimeList[] = null;
+	/**
+	 * The end (System.nanoTime) of each span in the ring buffer.
+	 */
+	protected long endNanoTimeList[] = null;
+	/**
+	 * The index in the ring buffer the next span is written to.
+	 */
+	protected int nextIndex = 0;
+	/**
+	 * The total number of spans recorded since the recorder was created.
+	 */
+	protected long recordCount = 0;
+	/**
+	 * The Java timestamp (milliseconds since the epoch) taken when the recorder was created.
+	 * @see #toTime
+	 */
+	protected long referenceTime = 0;
+	/**
+	 * The value of System.nanoTime taken when the recorder was created.
+	 * @see #toTime
+	 */
+	protected long referenceNanoTime = 0;
+
+	/**
+	 * Constructor. Allocates the ring buffer, and takes the reference times.
+	 * @param capacity The number of spans the ring buffer holds.
+	 * @exception IllegalArgumentException Thrown if capacity is less than 1.
+	 */
+	public TraceRecorder(int capacity) throws IllegalArgumentException
+	{
+		super();
+		if(capacity < 1)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+
+							   ":Illegal ring buffer capacity:"+capacity);
+		}
+		traceIdList = new String[capacity];
+		exposureIndexList = new int[capacity];
+		nameList = new String[capacity];
+		threadNameList = new String[capacity];
+		startNanoTimeList = new long[capacity];
+		endNanoTimeList = new long[capacity];
+		referenceTime = System.currentTimeMillis();
+		referenceNanoTime = System.nanoTime();
+	}
+
+	/**
+	 * Record a span in the ring buffer, overwriting the oldest span if the buffer is full.
+	 * The span is attributed to the current thread.
+	 * @param traceId The trace id of the command the span belongs to.
+	 * @param exposureIndex The index of the exposure the span belongs to, or -1.
+	 * @param name The name of the span.
+	 * @param startNanoTime The start of the span, as returned by System.nanoTime.
+	 * @param endNanoTime The end of the span, as returned by System.nanoTime.
+	 */
+	public synchronized void record(String traceId,int exposureIndex,String name,
+					long startNanoTime,long endNanoTime)
+	{
+		traceIdList[nextIndex] = traceId;
+		exposureIndexList[nextIndex] = exposureIndex;
+		nameList[nextIndex] = name;
+		threadNameList[nextIndex] = Thread.currentThread().getName();
+		startNanoTimeList[nextIndex] = startNanoTime;
+		endNanoTimeList[nextIndex] = endNanoTime;
+		nextIndex = (nextIndex+1) % nameList.length;
+		recordCount++;
+	}
+
+	/**
+	 * Get the spans of the specified command or exposure still held in the ring buffer,
+	 * in the order they were recorded (which is the order they finished).
+	 * @param traceId The trace id of the command.
+	 * @param exposureIndex The index of the exposure, or -1 for the spans of the command as a whole.
+	 * @return A list of copies of the spans.
+	 * @see #getSpanCount
+	 * @see #getSlot
+	 */
+	public synchronized List<TraceSpan> getTimeline(String traceId,int exposureIndex)
+	{
+		List<TraceSpan> spanList = new Vector<TraceSpan>();
+		int slot;
+
+		for(int i = getSpanCount()-1; i >= 0; i--)
+		{
+			slot = getSlot(i);
+			if((exposureIndexList[slot] == exposureIndex)&&traceIdList[slot].equals(traceId))
+			{
+				spanList.add(new TraceSpan(traceIdList[slot],exposureIndexList[slot],nameList[slot],
+							   threadNameList[slot],startNanoTimeList[slot],
+							   endNanoTimeList[slot],toTime(startNanoTimeList[slot])));
+			}
+		}
+		return spanList;
+	}
+
+	/**
+	 * Get the exposures that have spans in the ring buffer, most recent (the last span recorded) first.
+	 * Spans belonging to a command as a whole (rather than an exposure) are ignored.
+	 * @param exposureCount The maximum number of exposures to return.
+	 * @return A list of trace contexts, one per exposure, that can be used to retrieve each timeline.
+	 * @see TraceContext#getTimeline
+	 */
+	public synchronized List<TraceContext> getRecentExposureList(int exposureCount)
+	{
+		List<TraceContext> exposureList = new Vector<TraceContext>();
+		TraceContext context = null;
+		int slot;
+
+		for(int i = 0; (i < getSpanCount())&&(exposureList.size() < exposureCount); i++)
+		{
+			slot = getSlot(i);
+			if(exposureIndexList[slot] < 0)
+				continue;
+			context = new TraceContext(traceIdList[slot],exposureIndexList[slot],this);
+			if(exposureList.contains(context) == false)
+				exposureList.add(context);
+		}
+		return exposureList;
+	}
+
+	/**
+	 * Get the number of spans currently held in the ring buffer.
+	 * @return The number of spans, at most the capacity of the ring buffer.
+	 * @see #recordCount
+	 */
+	public synchronized int getSpanCount()
+	{
+		return (int)Math.min(recordCount,(long)nameList.length);
+	}
+
+	/**
+	 * Get the total number of spans recorded since the recorder was created, including those since overwritten.
+	 * @return The number of spans recorded.
+	 * @see #recordCount
+	 */
+	public synchronized long getRecordCount()
+	{
+		return recordCount;
+	}
+
+	/**
+	 * Get the number of spans the ring buffer holds.
+	 * @return The capacity.
+	 */
+	public int getCapacity()
+	{
+		return nameList.length;
+	}
+
+	/**
+	 * Convert a System.nanoTime value into a Java timestamp, using the reference times.
+	 * @param nanoTime A value returned by System.nanoTime.
+	 * @return The time, in milliseconds since the epoch.
+	 * @see #referenceTime
+	 * @see #referenceNanoTime
+	 */
+	public long toTime(long nanoTime)
+	{
+		return referenceTime+((nanoTime-referenceNanoTime)/1000000L);
+	}
+
+	/**
+	 * Get the ring buffer slot holding the n'th most recently recorded span.
+	 * @param age How many spans ago the span was recorded, 0 being the most recent.
+	 * @return The index of the slot.
+	 * @see #nextIndex
+	 */
+	protected int getSlot(int age)
+	{
+		return (nextIndex-1-age+nameList.length) % nameList.length;
+	}
+}
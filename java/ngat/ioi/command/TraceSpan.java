@@ -0,0 +1,176 @@
+// TraceSpan.java
+// $HeadURL$
+package ngat.ioi.command;
+
+import java.lang.*;
+
+/**
+ * A span is one timed step in the timeline of a command or exposure, for instance an IDL Socket Server
+ * command, a telescope offset, or processing the acquired ramp. Spans are held by the TraceRecorder in
+ * it's ring buffer; instances of this class are copies made when the timeline is queried.
+ * @see TraceRecorder
+ * @see TraceContext
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class TraceSpan
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The trace id (correlation id) of the command the span belongs to.
+	 */
+	protected String traceId = null;
+	/**
+	 * The index of the exposure within the command the span belongs to, or -1 if the span belongs to the
+	 * command as a whole.
+	 */
+	protected int exposureIndex = -1;
+	/**
+	 * The name of the span.
+	 */
+	protected String name = null;
+	/**
+	 * The name of the thread that recorded the span.
+	 */
+	protected String threadName = null;
+	/**
+	 * The start of the span, as returned by System.nanoTime.
+	 */
+	protected long startNanoTime = 0;
+	/**
+	 * The end of the span, as returned by System.nanoTime.
+	 */
+	protected long endNanoTime = 0;
+	/**
+	 * The start of the span, as a Java timestamp (milliseconds since the epoch).
+	 */
+	protected long startTime = 0;
+
+	/**
+	 * Constructor.
+	 * @param traceId The trace id of the command the span belongs to.
+	 * @param exposureIndex The index of the exposure the span belongs to, or -1.
+	 * @param name The name of the span.
+	 * @param threadName The name of the thread that recorded the span.
+	 * @param startNanoTime The start of the span, as returned by System.nanoTime.
+	 * @param endNanoTime The end of the span, as returned by System.nanoTime.
+	 * @param startTime The start of the span, as a Java timestamp.
+	 */
+	public TraceSpan(String traceId,int exposureIndex,String name,String threadName,
+			 long startNanoTime,long endNanoTime,long startTime)
+	{
+		super();
+		this.traceId = traceId;
+		this.exposureIndex = exposureIndex;
+		this.name = name;
+		this.threadName = threadName;
+		this.startNanoTime = startNanoTime;
+		this.endNanoTime = endNanoTime;
+		this.startTime = startTime;
+	}
+
+	/**
+	 * Get the trace id of the command the span belongs to.
+	 * @return The trace id.
+	 * @see #traceId
+	 */
+	public String getTraceId()
+	{
+		return traceId;
+	}
+
+	/**
+	 * Get the index of the exposure the span belongs to.
+	 * @return The exposure index, or -1 if the span belongs to the command as a whole.
+	 * @see #exposureIndex
+	 */
+	public int getExposureIndex()
+	{
+		return exposureIndex;
+	}
+
+	/**
+	 * Get the name of the span.
+	 * @return The name.
+	 * @see #name
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Get the name of the thread that recorded the span.
+	 * @return The thread name.
+	 * @see #threadName
+	 */
+	public String getThreadName()
+	{
+		return threadName;
+	}
+
+	/**
+	 * Get the start of the span.
+	 * @return The start, as returned by System.nanoTime.
+	 * @see #startNanoTime
+	 */
+	public long getStartNanoTime()
+	{
+		return startNanoTime;
+	}
+
+	/**
+	 * Get the end of the span.
+	 * @return The end, as returned by System.nanoTime.
+	 * @see #endNanoTime
+	 */
+	public long getEndNanoTime()
+	{
+		return endNanoTime;
+	}
+
+	/**
+	 * Get the length of the span.
+	 * @return The length, in nanoseconds.
+	 * @see #startNanoTime
+	 * @see #endNanoTime
+	 */
+	public long getDuration()
+	{
+		return endNanoTime-startNanoTime;
+	}
+
+	/**
+	 * Get the start of the span as a Java timestamp.
+	 * @return The start, in milliseconds since the epoch.
+	 * @see #startTime
+	 */
+	public long getStartTime()
+	{
+		return startTime;
+	}
+
+	/**
+	 * Get the end of the span as a Java timestamp.
+	 * @return The end, in milliseconds since the epoch.
+	 * @see #startTime
+	 * @see #getDuration
+	 */
+	public long getEndTime()
+	{
+		return startTime+(getDuration()/1000000L);
+	}
+
+	/**
+	 * Return a string representation of the span.
+	 * @return A string.
+	 */
+	public String toString()
+	{
+		return new String(this.getClass().getName()+":"+traceId+":"+exposureIndex+":"+name+
+				  ":thread:"+threadName+":start:"+startNanoTime+":duration:"+getDuration()+" ns");
+	}
+}
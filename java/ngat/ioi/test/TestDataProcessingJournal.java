@@ -0,0 +1,281 @@
+// TestDataProcessingJournal.java
+// $HeadURL$
+package ngat.ioi.test;
+
+import java.lang.*;
+import java.io.*;
+import java.util.*;
+
+import ngat.ioi.DataProcessingJournal;
+import ngat.ioi.IOI;
+
+/**
+ * This class tests the data processing journal's recovery. A set of built in cases is run against a
+ * scratch journal file:
+ * <ul>
+ * <li>Items enqueued but not completed are recovered, in the order they were enqueued.
+ * <li>Items that were started but not completed are recovered flagged as interrupted.
+ * <li>A record torn by a crash (short, or with a bad checksum) ends the replay, and the records before it
+ *     are still recovered.
+ * <li>The journal file is truncated when no items are outstanding.
+ * </ul>
+ * The journal logs through, and fsyncs on the scheduled thread pool of, an IOI object, so this program
+ * loads the IO:I properties in the same way as ReprocessRamps, and must be run from the directory
+ * containing them.
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class TestDataProcessingJournal extends TestHarness
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The default scratch journal filename.
+	 */
+	static final String DEFAULT_FILENAME = "/tmp/TestDataProcessingJournal.journal";
+	/**
+	 * How often the journal is fsync'ed, in milliseconds.
+	 */
+	static final long SYNC_PERIOD = 100;
+	/**
+	 * The scratch journal file.
+	 */
+	private File file = new File(DEFAULT_FILENAME);
+	/**
+	 * The IOI object the journal logs through.
+	 */
+	private TestIOI ioi = null;
+
+	/**
+	 * Initialise the IOI object the journal logs through, and delete any old scratch journal file.
+	 * @exception Exception Thrown if the IO:I properties cannot be loaded.
+	 * @see #ioi
+	 * @see #file
+	 */
+	private void init() throws Exception
+	{
+		ioi = new TestIOI();
+		ioi.initTest();
+		file.delete();
+	}
+
+	/**
+	 * Describe the items recovered by a journal, as a list of "id:payload" strings, with interrupted items
+	 * suffixed by ":interrupted".
+	 * @param journal The journal.
+	 * @param recoverMap The map returned by open.
+	 * @return A string.
+	 */
+	private String describe(DataProcessingJournal journal,SortedMap<Long,byte[]> recoverMap)
+	{
+		List<String> descriptionList = new Vector<String>();
+		Iterator<Long> idIterator = null;
+		Long id = null;
+		String description = null;
+
+		idIterator = recoverMap.keySet().iterator();
+		while(idIterator.hasNext())
+		{
+			id = idIterator.next();
+			description = id+":"+new String(recoverMap.get(id));
+			if(journal.wasInterrupted(id.longValue()))
+				description = description+":interrupted";
+			descriptionList.add(description);
+		}
+		return descriptionList.toString();
+	}
+
+	/**
+	 * Append bytes to the end of the scratch journal file, simulating a record torn by a crash.
+	 * @param data The bytes to append.
+	 * @exception IOException Thrown if the file cannot be written.
+	 */
+	private void appendToFile(byte data[]) throws IOException
+	{
+		FileOutputStream outputStream = null;
+
+		outputStream = new FileOutputStream(file,true);
+		try
+		{
+			outputStream.write(data);
+		}
+		finally
+		{
+			outputStream.close();
+		}
+	}
+
+	/**
+	 * Corrupt the last byte of the scratch journal file (part of the last record's checksum).
+	 * @exception IOException Thrown if the file cannot be written.
+	 */
+	private void corruptLastByte() throws IOException
+	{
+		RandomAccessFile randomAccessFile = null;
+		int value;
+
+		randomAccessFile = new RandomAccessFile(file,"rw");
+		try
+		{
+			randomAccessFile.seek(randomAccessFile.length()-1);
+			value = randomAccessFile.read();
+			randomAccessFile.seek(randomAccessFile.length()-1);
+			randomAccessFile.write(value^0xff);
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Run the built in cases.
+	 * @return true if all the cases passed, false if any failed.
+	 * @exception Exception Thrown if the journal cannot be opened or written.
+	 * @see TestHarness#report
+	 */
+	private boolean run() throws Exception
+	{
+		DataProcessingJournal journal = null;
+		SortedMap<Long,byte[]> recoverMap = null;
+		long idList[] = new long[4];
+
+		// enqueue four items, start two, complete one of those
+		journal = new DataProcessingJournal();
+		journal.setIOI(ioi);
+		recoverMap = journal.open(file,SYNC_PERIOD);
+		check("empty journal","[]",describe(journal,recoverMap));
+		for(int i = 0; i < idList.length; i++)
+			idList[i] = journal.appendEnqueued(("item"+i).getBytes());
+		journal.appendStarted(idList[0]);
+		journal.appendCompleted(idList[0]);
+		journal.appendStarted(idList[1]);
+		check("outstanding count","3",Integer.toString(journal.getOutstandingCount()));
+		journal.close();
+		// recover them
+		journal = new DataProcessingJournal();
+		journal.setIOI(ioi);
+		recoverMap = journal.open(file,SYNC_PERIOD);
+		check("recovered items","[1:item1:interrupted, 2:item2, 3:item3]",describe(journal,recoverMap));
+		check("interrupted count","1",Integer.toString(journal.getInterruptedCount()));
+		// the compacted journal keeps the interrupted flag, a torn record after it is ignored
+		journal.appendCompleted(idList[2]);
+		journal.close();
+		appendToFile(new byte[] {0,0,0,40,2,0,0});
+		journal = new DataProcessingJournal();
+		journal.setIOI(ioi);
+		recoverMap = journal.open(file,SYNC_PERIOD);
+		check("recovered after torn record","[1:item1:interrupted, 3:item3]",describe(journal,recoverMap));
+		// a completed record with a bad checksum is ignored, so the item is still recovered
+		journal.appendCompleted(idList[3]);
+		journal.close();
+		corruptLastByte();
+		journal = new DataProcessingJournal();
+		journal.setIOI(ioi);
+		recoverMap = journal.open(file,SYNC_PERIOD);
+		check("recovered after bad checksum","[1:item1:interrupted, 3:item3]",describe(journal,recoverMap));
+		// completing everything truncates the journal
+		journal.appendCompleted(idList[1]);
+		journal.appendCompleted(idList[3]);
+		check("journal length when nothing outstanding","0",Long.toString(file.length()));
+		journal.close();
+		journal = new DataProcessingJournal();
+		journal.setIOI(ioi);
+		recoverMap = journal.open(file,SYNC_PERIOD);
+		check("recovered after all completed","[]",describe(journal,recoverMap));
+		journal.close();
+		file.delete();
+		return report("cases");
+	}
+
+	/**
+	 * This routine parses arguments passed into TestDataProcessingJournal.
+	 * @param args The command line arguments.
+	 * @see #file
+	 * @see #help
+	 */
+	private void parseArgs(String[] args)
+	{
+		for(int i = 0; i < args.length;i++)
+		{
+			if(args[i].equals("-h")||args[i].equals("-help"))
+			{
+				help();
+				System.exit(0);
+			}
+			else if(args[i].equals("-f")||args[i].equals("-file"))
+			{
+				if((i+1)< args.length)
+				{
+					file = new File(args[i+1]);
+					i++;
+				}
+				else
+					System.err.println("-file requires a filename.");
+			}
+			else
+				System.out.println(this.getClass().getName()+":Option not supported:"+args[i]);
+		}
+	}
+
+	/**
+	 * Help message routine.
+	 */
+	private void help()
+	{
+		System.out.println(this.getClass().getName()+" Help:");
+		System.out.println("Runs the built in data processing journal recovery cases.");
+		System.out.println("Run from the directory containing the IO:I properties.");
+		System.out.println("Options are:");
+		System.out.println("\t-f[ile] <filename> - The scratch journal file, which is deleted (default "+
+				   DEFAULT_FILENAME+").");
+	}
+
+	/**
+	 * The main routine, called when TestDataProcessingJournal is executed.
+	 * @param args The command line arguments.
+	 * @see #parseArgs
+	 * @see #init
+	 * @see #run
+	 */
+	public static void main(String[] args)
+	{
+		TestDataProcessingJournal tdpj = new TestDataProcessingJournal();
+		boolean retval;
+
+		tdpj.parseArgs(args);
+		try
+		{
+			tdpj.init();
+			retval = tdpj.run();
+		}
+		catch(Exception e)
+		{
+			retval = false;
+			System.err.println("run failed:"+e);
+			e.printStackTrace(System.err);
+		}
+		if(retval)
+			System.exit(0);
+		else
+			System.exit(2);
+	}
+
+	/**
+	 * IOI subclass, giving the journal the status, loggers and executors it needs without starting
+	 * the robotic software.
+	 */
+	private static class TestIOI extends IOI
+	{
+		/**
+		 * Load the properties, and create the loggers and executors.
+		 * @exception Exception Thrown if the initialisation fails.
+		 */
+		public void initTest() throws Exception
+		{
+			initOffline(0);
+		}
+	}
+}
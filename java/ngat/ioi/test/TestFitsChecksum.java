@@ -0,0 +1,406 @@
+// TestFitsChecksum.java
+// $HeadURL$
+package ngat.ioi.test;
+
+import java.lang.*;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import ngat.ioi.FitsChecksum;
+import ngat.ioi.FitsImageData;
+
+/**
+ * This class tests the FITS DATASUM and CHECKSUM computation. A set of built in cases is run:
+ * <ul>
+ * <li>FitsChecksum.sum is checked against hand computed ones' complement sums (end around carry, and a
+ *     partial last word padded with zeros).
+ * <li>FitsChecksum.sumData, split over several threads, is checked against the serial sum for buffers of
+ *     various lengths.
+ * <li>FitsChecksum.encode is checked against the Checksum Keyword Convention's definition: the encoded value
+ *     is alphanumeric, and replacing CHECKSUM_INITIAL_VALUE with it in a header card makes the sum of
+ *     the HDU negative zero (0xffffffff).
+ * <li>A 10x10 32 bit image of the values 0..99 is saved by FitsImageData with checksums. Its DATASUM must
+ *     be 4950, and the whole saved HDU must sum to negative zero.
+ * </ul>
+ * Alternatively, FITS files (e.g. written by CFITSIO or astropy with checksums) can be specified on the
+ * command line. Every HDU with a CHECKSUM keyword must sum to negative zero, and every HDU with a DATASUM
+ * keyword must have a data unit with that sum.
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class TestFitsChecksum extends TestHarness
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The sum of a HDU with a correct CHECKSUM (negative zero in ones' complement).
+	 */
+	public final static long NEGATIVE_ZERO = 0xffffffffL;
+	/**
+	 * The number of threads in the compute thread pool used by the built in cases.
+	 */
+	public final static int COMPUTE_THREAD_COUNT = 4;
+	/**
+	 * The FITS files to verify, specified on the command line. If empty, the built in cases are run.
+	 */
+	private List<File> fileList = new Vector<File>();
+	/**
+	 * A scratch FITS image filename, used by the built in cases.
+	 */
+	private File scratchFile = new File("/tmp/TestFitsChecksum.fits");
+	/**
+	 * The thread pool the built in cases share, as the data processing stages share the IO:I compute pool.
+	 * @see #runCases
+	 */
+	private ExecutorService computeExecutor = null;
+
+	/**
+	 * Test FitsChecksum.sum against hand computed sums.
+	 * @see TestHarness#check
+	 */
+	private void testSum()
+	{
+		check("sum of one word","1020304",
+		      Long.toHexString(FitsChecksum.sum(new byte[] {1,2,3,4},0,4)));
+		// 0xffffffff+0x00000002 = 0x100000001, the carry is added back in
+		check("sum with end around carry","2",Long.toHexString(FitsChecksum.sum(new byte[]
+			{(byte)0xff,(byte)0xff,(byte)0xff,(byte)0xff,0,0,0,2},0,8)));
+		// a partial last word is padded with zeros
+		check("sum of a partial word","1020300",
+		      Long.toHexString(FitsChecksum.sum(new byte[] {1,2,3},0,3)));
+		check("sum of a word and a partial word","1020301",
+		      Long.toHexString(FitsChecksum.sum(new byte[] {0,0,0,1,1,2,3},0,7)));
+		check("add with end around carry","2",Long.toHexString(FitsChecksum.add(0xffffffffL,2L)));
+		check("add of negative zero","ffffffff",Long.toHexString(FitsChecksum.add(0xffffffffL,0L)));
+	}
+
+	/**
+	 * Test FitsChecksum.sumData, split over several threads, gives the same result as the serial sum.
+	 * @exception Exception Thrown if summing fails.
+	 * @see TestHarness#check
+	 */
+	private void testSumData() throws Exception
+	{
+		FitsChecksum checksum = null;
+		Random random = new Random(20261019L);
+		int lengthList[] = {0,1,3,4,5,2880,2881,100003,1024*1024};
+		byte buffer[] = null;
+
+		checksum = new FitsChecksum(computeExecutor,COMPUTE_THREAD_COUNT);
+		for(int i = 0; i < lengthList.length; i++)
+		{
+			buffer = new byte[lengthList[i]];
+			random.nextBytes(buffer);
+			check("sumData of "+lengthList[i]+" bytes",
+			      Long.toHexString(FitsChecksum.sum(buffer,0,buffer.length)),
+			      Long.toHexString(checksum.sumData(buffer,buffer.length)));
+		}
+	}
+
+	/**
+	 * Test FitsChecksum.encode against the Checksum Keyword Convention: for random HDU sums, the
+	 * encoded value must be alphanumeric, and replacing the initial value with it in the CHECKSUM card
+	 * must make the HDU sum to negative zero. Sums that stress the encoding (zero, all ones, and bytes
+	 * that fall on the excluded punctuation) are included.
+	 * @exception Exception Thrown if the card cannot be encoded.
+	 * @see TestHarness#check
+	 */
+	private void testEncode() throws Exception
+	{
+		Random random = new Random(20261019L);
+		List<String> cardList = new Vector<String>();
+		byte header[] = null;
+		long sumList[] = new long[1000];
+		long headerSum,otherSum;
+		String encoded = null;
+		int badCount,alphanumericCount;
+
+		sumList[0] = 0L;
+		sumList[1] = NEGATIVE_ZERO;
+		sumList[2] = 0x3a3b5b60L;
+		sumList[3] = ~0x3a3b5b60L&0xffffffffL;
+		for(int i = 4; i < sumList.length; i++)
+			sumList[i] = random.nextLong()&0xffffffffL;
+		badCount = 0;
+		alphanumericCount = 0;
+		for(int i = 0; i < sumList.length; i++)
+		{
+			// a header with the CHECKSUM initial value
+			cardList.clear();
+			cardList.add(FitsImageData.formatCard("SIMPLE",new Boolean(true),null));
+			cardList.add(FitsImageData.formatCard("CHECKSUM",FitsChecksum.CHECKSUM_INITIAL_VALUE,null));
+			header = FitsImageData.getHeaderBytes(cardList);
+			headerSum = FitsChecksum.sum(header,0,header.length);
+			// the rest of the HDU (the data unit) makes the total up to sumList[i]
+			otherSum = FitsChecksum.add(sumList[i],~headerSum&0xffffffffL);
+			encoded = FitsChecksum.encode(FitsChecksum.add(headerSum,otherSum));
+			if(encoded.matches("[0-9A-Za-z]{16}"))
+				alphanumericCount++;
+			cardList.set(1,FitsImageData.formatCard("CHECKSUM",encoded,null));
+			header = FitsImageData.getHeaderBytes(cardList);
+			if(FitsChecksum.add(FitsChecksum.sum(header,0,header.length),otherSum) != NEGATIVE_ZERO)
+				badCount++;
+		}
+		check("encoded values alphanumeric",sumList.length+" of "+sumList.length,
+		      alphanumericCount+" of "+sumList.length);
+		check("encoded HDUs summing to negative zero",sumList.length+" of "+sumList.length,
+		      (sumList.length-badCount)+" of "+sumList.length);
+	}
+
+	/**
+	 * Save a 10x10 32 bit image of the values 0..99 with checksums, and check the DATASUM is the sum of the
+	 * values (each value is one 32 bit word), and the saved HDU sums to negative zero.
+	 * @exception Exception Thrown if the image cannot be written, loaded or saved.
+	 * @see #scratchFile
+	 * @see TestHarness#check
+	 */
+	private void testSaveImage() throws Exception
+	{
+		FitsImageData image = new FitsImageData();
+		FitsChecksum checksum = null;
+		List<String> cardList = new Vector<String>();
+		ByteBuffer dataBuffer = null;
+		FileOutputStream outputStream = null;
+
+		cardList.add(FitsImageData.formatCard("SIMPLE",new Boolean(true),null));
+		cardList.add(FitsImageData.formatCard("BITPIX",new Integer(32),null));
+		cardList.add(FitsImageData.formatCard("NAXIS",new Integer(2),null));
+		cardList.add(FitsImageData.formatCard("NAXIS1",new Integer(10),null));
+		cardList.add(FitsImageData.formatCard("NAXIS2",new Integer(10),null));
+		dataBuffer = ByteBuffer.allocate(400+FitsImageData.getPaddingLength(400));
+		for(int i = 0; i < 100; i++)
+			dataBuffer.putInt(i);
+		outputStream = new FileOutputStream(scratchFile);
+		try
+		{
+			outputStream.write(FitsImageData.getHeaderBytes(cardList));
+			outputStream.write(dataBuffer.array());
+		}
+		finally
+		{
+			outputStream.close();
+		}
+		checksum = new FitsChecksum(computeExecutor,2);
+		image.load(scratchFile);
+		image.save(scratchFile,checksum);
+		check("saved image DATASUM","4950",image.getHeaderValue("DATASUM"));
+		verifyFile(scratchFile);
+		scratchFile.delete();
+	}
+
+	/**
+	 * Run the built in cases.
+	 * @return true if all the cases passed, false if any failed.
+	 * @exception Exception Thrown if a case cannot be run.
+	 * @see #testSum
+	 * @see #testSumData
+	 * @see #testEncode
+	 * @see #testSaveImage
+	 * @see #computeExecutor
+	 * @see TestHarness#report
+	 */
+	private boolean runCases() throws Exception
+	{
+		computeExecutor = Executors.newFixedThreadPool(COMPUTE_THREAD_COUNT);
+		try
+		{
+			testSum();
+			testSumData();
+			testEncode();
+			testSaveImage();
+		}
+		finally
+		{
+			computeExecutor.shutdown();
+		}
+		return report("cases");
+	}
+
+	/**
+	 * Verify the checksums of each file on the command line.
+	 * @return true if all the checksums were correct, false otherwise.
+	 * @exception Exception Thrown if a file cannot be read.
+	 * @see #fileList
+	 * @see #verifyFile
+	 */
+	private boolean runFiles() throws Exception
+	{
+		for(int i = 0; i < fileList.size(); i++)
+			verifyFile(fileList.get(i));
+		return report("checksums");
+	}
+
+	/**
+	 * Verify the CHECKSUM and DATASUM of each HDU in a FITS file. The data unit length of each HDU is
+	 * computed from BITPIX, NAXISn, PCOUNT and GCOUNT.
+	 * @param f The file.
+	 * @exception Exception Thrown if the file cannot be read, or is not a FITS file.
+	 * @see TestHarness#check
+	 */
+	private void verifyFile(File f) throws Exception
+	{
+		RandomAccessFile randomAccessFile = null;
+		Map<String,String> header = null;
+		byte headerBytes[] = null;
+		byte dataBytes[] = null;
+		long dataLength,position,dataSum,hduSum;
+		int naxis,hduIndex;
+
+		randomAccessFile = new RandomAccessFile(f,"r");
+		try
+		{
+			hduIndex = 0;
+			position = 0;
+			while(position < randomAccessFile.length())
+			{
+				header = new HashMap<String,String>();
+				headerBytes = readHeader(randomAccessFile,header);
+				naxis = Integer.parseInt(header.get("NAXIS"));
+				dataLength = (naxis > 0) ? 1 : 0;
+				for(int i = 1; i <= naxis; i++)
+					dataLength *= Long.parseLong(header.get("NAXIS"+i));
+				if(header.get("PCOUNT") != null)
+					dataLength += Long.parseLong(header.get("PCOUNT"));
+				if(header.get("GCOUNT") != null)
+					dataLength *= Long.parseLong(header.get("GCOUNT"));
+				dataLength *= Math.abs(Integer.parseInt(header.get("BITPIX")))/8;
+				dataBytes = new byte[(int)(dataLength+FitsImageData.getPaddingLength(dataLength))];
+				randomAccessFile.readFully(dataBytes);
+				dataSum = FitsChecksum.sum(dataBytes,0,dataBytes.length);
+				hduSum = FitsChecksum.add(FitsChecksum.sum(headerBytes,0,headerBytes.length),dataSum);
+				if(header.get("DATASUM") != null)
+					check(f+":HDU "+hduIndex+":DATASUM",header.get("DATASUM"),Long.toString(dataSum));
+				if(header.get("CHECKSUM") != null)
+				{
+					check(f+":HDU "+hduIndex+":CHECKSUM "+header.get("CHECKSUM")+":HDU sum",
+					      Long.toHexString(NEGATIVE_ZERO),Long.toHexString(hduSum));
+				}
+				if((header.get("DATASUM") == null)&&(header.get("CHECKSUM") == null))
+					System.out.println("SKIP:"+f+":HDU "+hduIndex+":no CHECKSUM or DATASUM keywords.");
+				position = randomAccessFile.getFilePointer();
+				hduIndex++;
+			}
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Read a FITS header, leaving the file positioned at the start of the data unit.
+	 * @param randomAccessFile The file, positioned at the start of a header.
+	 * @param header A map to put each keyword and it's value into, with quotes and comments removed.
+	 * @return The bytes of the header, including the END card and padding.
+	 * @exception IOException Thrown if the file cannot be read.
+	 */
+	private byte[] readHeader(RandomAccessFile randomAccessFile,Map<String,String> header) throws IOException
+	{
+		ByteArrayOutputStream headerStream = new ByteArrayOutputStream();
+		byte block[] = new byte[FitsImageData.FITS_BLOCK_LENGTH];
+		String card = null;
+		String value = null;
+		boolean done = false;
+		int index;
+
+		while(done == false)
+		{
+			randomAccessFile.readFully(block);
+			headerStream.write(block);
+			for(int i = 0; i < block.length; i += FitsImageData.FITS_CARD_LENGTH)
+			{
+				card = new String(block,i,FitsImageData.FITS_CARD_LENGTH,"US-ASCII");
+				if(card.startsWith("END "))
+				{
+					done = true;
+					break;
+				}
+				if(card.substring(8,10).equals("= ") == false)
+					continue;
+				value = card.substring(10);
+				if(value.trim().startsWith("'"))
+				{
+					value = value.trim().substring(1);
+					value = value.substring(0,value.indexOf('\''));
+				}
+				else
+				{
+					index = value.indexOf('/');
+					if(index >= 0)
+						value = value.substring(0,index);
+				}
+				header.put(card.substring(0,8).trim(),value.trim());
+			}
+		}
+		return headerStream.toByteArray();
+	}
+
+	/**
+	 * This routine parses arguments passed into TestFitsChecksum.
+	 * @param args The command line arguments.
+	 * @see #fileList
+	 * @see #help
+	 */
+	private void parseArgs(String[] args)
+	{
+		for(int i = 0; i < args.length;i++)
+		{
+			if(args[i].equals("-h")||args[i].equals("-help"))
+			{
+				help();
+				System.exit(0);
+			}
+			else if(args[i].startsWith("-"))
+				System.out.println(this.getClass().getName()+":Option not supported:"+args[i]);
+			else
+				fileList.add(new File(args[i]));
+		}
+	}
+
+	/**
+	 * Help message routine.
+	 */
+	private void help()
+	{
+		System.out.println(this.getClass().getName()+" Help:");
+		System.out.println("java ngat.ioi.test.TestFitsChecksum [<filename> ...]");
+		System.out.println("Runs the built in FITS checksum cases, or verifies the CHECKSUM and DATASUM of "+
+				   "each HDU in the specified FITS files.");
+	}
+
+	/**
+	 * The main routine, called when TestFitsChecksum is executed.
+	 * @param args The command line arguments.
+	 * @see #parseArgs
+	 * @see #runCases
+	 * @see #runFiles
+	 */
+	public static void main(String[] args)
+	{
+		TestFitsChecksum tfc = new TestFitsChecksum();
+		boolean retval;
+
+		tfc.parseArgs(args);
+		try
+		{
+			if(tfc.fileList.size() > 0)
+				retval = tfc.runFiles();
+			else
+				retval = tfc.runCases();
+		}
+		catch(Exception e)
+		{
+			retval = false;
+			System.err.println("run failed:"+e);
+			e.printStackTrace(System.err);
+		}
+		if(retval)
+			System.exit(0);
+		else
+			System.exit(2);
+	}
+}
@@ -0,0 +1,523 @@
+// TestFitsTileCompressor.java
+// $HeadURL$
+package ngat.ioi.test;
+
+import java.lang.*;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import ngat.ioi.FitsImageData;
+import ngat.ioi.FitsTileCompressor;
+
+/**
+ * This class tests the Rice compression used by FitsTileCompressor. A set of built in cases is run:
+ * <ul>
+ * <li>Known answers: short runs of pixels whose Rice coding has been worked out by hand, following the
+ *     CFITSIO fits_rcomp_short algorithm, are compressed and compared byte for byte.
+ * <li>Round trips: runs of 16 and 32 bit pixels (constant, smooth, noisy, full range, long unary codes,
+ *     and partial blocks) are compressed, decompressed with a Rice decoder written here from CFITSIO's
+ *     fits_rdecomp, and compared with the original pixels.
+ * </ul>
+ * Alternatively, a FITS image and the same image compressed by fpack (CFITSIO) can be specified on the
+ * command line. Each tile in the fpack'ed file is decompressed and compared with the original image,
+ * and each tile is compressed with FitsTileCompressor.riceCompress and compared byte for byte with
+ * the tile fpack wrote.
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class TestFitsTileCompressor extends TestHarness
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The uncompressed FITS image specified on the command line, or null to run the built in cases.
+	 */
+	private File fitsFile = null;
+	/**
+	 * The same image compressed by fpack, specified on the command line.
+	 */
+	private File fpackFile = null;
+
+	/**
+	 * Rice compress a run of pixels using FitsTileCompressor.riceCompress.
+	 * @param data The pixels.
+	 * @param bytePix The number of bytes per pixel, 2 or 4.
+	 * @return The compressed bytes.
+	 */
+	private byte[] compress(int data[],int bytePix)
+	{
+		byte output[] = null;
+		long diff[] = new long[FitsTileCompressor.RICE_BLOCK_SIZE];
+		int length;
+
+		output = new byte[FitsTileCompressor.getMaxCompressedLength(data.length,bytePix)];
+		length = FitsTileCompressor.riceCompress(data,0,data.length,bytePix,output,diff);
+		return Arrays.copyOf(output,length);
+	}
+
+	/**
+	 * Rice decompress a run of pixels, following the CFITSIO fits_rdecomp_short (bytePix 2) and
+	 * fits_rdecomp (bytePix 4) algorithms.
+	 * @param input The compressed bytes.
+	 * @param count The number of pixels to decompress.
+	 * @param bytePix The number of bytes per pixel, 2 or 4.
+	 * @return The pixels. 16 bit pixels are sign extended, as they are stored in FitsImageData.
+	 * @exception Exception Thrown if the compressed data runs out.
+	 */
+	private int[] decompress(byte input[],int count,int bytePix) throws Exception
+	{
+		BitInput bitInput = new BitInput(input);
+		int data[] = new int[count];
+		long diff;
+		int fsBits,fsMax,bBits,thisBlock,fs,lastPixel,zeroCount;
+
+		if(bytePix == 2)
+		{
+			fsBits = 4;
+			fsMax = 14;
+			bBits = 16;
+		}
+		else
+		{
+			fsBits = 5;
+			fsMax = 25;
+			bBits = 32;
+		}
+		lastPixel = (int)bitInput.read(bBits);
+		for(int i = 0; i < count; i += FitsTileCompressor.RICE_BLOCK_SIZE)
+		{
+			thisBlock = Math.min(FitsTileCompressor.RICE_BLOCK_SIZE,count-i);
+			fs = ((int)bitInput.read(fsBits))-1;
+			for(int j = 0; j < thisBlock; j++)
+			{
+				if(fs < 0)
+					diff = 0;
+				else if(fs == fsMax)
+					diff = bitInput.read(bBits);
+				else
+				{
+					zeroCount = 0;
+					while(bitInput.read(1) == 0)
+						zeroCount++;
+					diff = (((long)zeroCount)<<fs)|bitInput.read(fs);
+				}
+				// undo the mapping of signed differences onto unsigned values
+				if((diff&1) == 0)
+					diff = diff>>1;
+				else
+					diff = ~(diff>>1);
+				lastPixel = (int)(lastPixel+diff);
+				if(bytePix == 2)
+					lastPixel = (short)lastPixel;
+				data[i+j] = lastPixel;
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Return the bytes in hexadecimal.
+	 * @param b The bytes.
+	 * @return A string.
+	 */
+	private String toHex(byte b[])
+	{
+		StringBuffer sb = new StringBuffer();
+
+		for(int i = 0; i < b.length; i++)
+		{
+			if(i > 0)
+				sb.append(" ");
+			sb.append(Integer.toHexString((b[i]&0xff)|0x100).substring(1));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Test a run of pixels compresses to the expected bytes.
+	 * @param name The name of the case.
+	 * @param data The pixels.
+	 * @param bytePix The number of bytes per pixel, 2 or 4.
+	 * @param expected The expected compressed bytes, in hexadecimal.
+	 * @see TestHarness#check
+	 */
+	private void testKnownAnswer(String name,int data[],int bytePix,String expected)
+	{
+		check("known answer:"+name,expected,toHex(compress(data,bytePix)));
+	}
+
+	/**
+	 * Test a run of pixels is decompressed to the same pixels.
+	 * @param name The name of the case.
+	 * @param data The pixels.
+	 * @param bytePix The number of bytes per pixel, 2 or 4.
+	 * @exception Exception Thrown if decompression fails.
+	 * @see TestHarness#check
+	 */
+	private void testRoundTrip(String name,int data[],int bytePix) throws Exception
+	{
+		byte compressed[] = null;
+		int decompressed[] = null;
+		int mismatchIndex;
+
+		compressed = compress(data,bytePix);
+		decompressed = decompress(compressed,data.length,bytePix);
+		mismatchIndex = -1;
+		for(int i = 0; i < data.length; i++)
+		{
+			if(decompressed[i] != data[i])
+			{
+				mismatchIndex = i;
+				break;
+			}
+		}
+		if(mismatchIndex < 0)
+			check("round trip:"+name+":"+data.length+" pixels -> "+compressed.length+" bytes","ok","ok");
+		else
+		{
+			check("round trip:"+name,"ok","pixel "+mismatchIndex+" was "+data[mismatchIndex]+" decompressed "+
+			      decompressed[mismatchIndex]);
+		}
+	}
+
+	/**
+	 * Run the built in cases.
+	 * @return true if all the cases passed, false if any failed.
+	 * @exception Exception Thrown if decompression fails.
+	 * @see #testKnownAnswer
+	 * @see #testRoundTrip
+	 * @see TestHarness#report
+	 */
+	private boolean runCases() throws Exception
+	{
+		Random random = new Random(20261019L);
+		int data[] = null;
+
+		// first pixel verbatim (0005), then one low entropy block (fs code 0), padded to a byte
+		testKnownAnswer("constant 16 bit",new int[] {5,5,5,5},2,"00 05 00");
+		// differences 0,1,-2,0 map to 0,2,3,0, the block mean gives fs 0 (code 0001), then the
+		// unary codes 1, 001, 0001, 1
+		testKnownAnswer("small differences 16 bit",new int[] {10,11,9,9},2,"00 0a 19 18");
+		// the same in 32 bit, with a 32 bit first pixel and a 5 bit fs code 00001
+		testKnownAnswer("small differences 32 bit",new int[] {10,11,9,9},4,"00 00 00 0a 0c 8c");
+		// differences 0,-32768 map to 0,65535, fs 14 or more so the block is verbatim (code 1111), then
+		// both differences in 16 bits
+		testKnownAnswer("high entropy 16 bit",new int[] {0,-32768},2,"00 00 f0 00 0f ff f0");
+		// 16 bit
+		testRoundTrip("constant",fill(1000,1000,0,random),2);
+		data = new int[1000];
+		for(int i = 0; i < data.length; i++)
+			data[i] = (short)(i*7);
+		testRoundTrip("smooth (wrapping)",data,2);
+		testRoundTrip("noisy",fill(1000,1000,50,random),2);
+		testRoundTrip("noisy with offset counts",fill(1000,-30000,200,random),2);
+		testRoundTrip("full range",fill(1000,0,32767,random),2);
+		testRoundTrip("partial block",fill(37,500,10,random),2);
+		testRoundTrip("single pixel",new int[] {-1234},2);
+		// one large difference in a quiet block gives a unary code of more than 32 zeros
+		data = new int[64];
+		for(int i = 1; i < data.length; i++)
+			data[i] = 20;
+		testRoundTrip("long unary code",data,2);
+		// 32 bit
+		testRoundTrip("constant",fill(1000,100000,0,random),4);
+		testRoundTrip("noisy",fill(1000,100000,500,random),4);
+		testRoundTrip("full range",fill(1000,0,Integer.MAX_VALUE,random),4);
+		testRoundTrip("partial block",fill(45,-100000,3,random),4);
+		return report("cases");
+	}
+
+	/**
+	 * Create a run of random pixels.
+	 * @param count The number of pixels.
+	 * @param mean The mean pixel value.
+	 * @param spread The largest difference of a pixel from the mean.
+	 * @param random The random number generator.
+	 * @return The pixels.
+	 */
+	private int[] fill(int count,int mean,int spread,Random random)
+	{
+		int data[] = new int[count];
+
+		for(int i = 0; i < count; i++)
+		{
+			if(spread == 0)
+				data[i] = mean;
+			else
+				data[i] = (int)(mean+(random.nextDouble()*2.0-1.0)*spread);
+		}
+		return data;
+	}
+
+	/**
+	 * Compare an image with the same image compressed by fpack. Each tile in the fpack'ed file is
+	 * decompressed and compared with the image, and (if the tiles are whole rows) the image rows are
+	 * compressed with riceCompress and compared byte for byte with fpack's tile.
+	 * @return true if every tile matched, false otherwise.
+	 * @exception Exception Thrown if the files cannot be read, or the fpack'ed file is not a RICE_1
+	 *            compressed image.
+	 * @see #fitsFile
+	 * @see #fpackFile
+	 * @see #readHeader
+	 */
+	private boolean runFpackComparison() throws Exception
+	{
+		FitsImageData image = new FitsImageData();
+		RandomAccessFile randomAccessFile = null;
+		Map<String,String> header = null;
+		byte table[] = null;
+		byte heap[] = null;
+		byte tile[] = null;
+		int imageData[] = null;
+		int tileData[] = null;
+		ByteBuffer descriptorBuffer = null;
+		long heapOffset;
+		int rowLength,tileCount,tileRowCount,bytePix,tileLength,tileOffset,firstRow,rowCount;
+		int decompressedMismatchCount,compressedMismatchCount;
+
+		image.load(fitsFile);
+		imageData = image.getData();
+		randomAccessFile = new RandomAccessFile(fpackFile,"r");
+		try
+		{
+			// skip the primary HDU, which fpack leaves empty
+			readHeader(randomAccessFile);
+			header = readHeader(randomAccessFile);
+			if((header.get("ZCMPTYPE") == null)||(header.get("ZCMPTYPE").equals("RICE_1") == false))
+			{
+				throw new Exception(this.getClass().getName()+":runFpackComparison:"+fpackFile+
+						    " is not RICE_1 compressed:"+header.get("ZCMPTYPE"));
+			}
+			if((Integer.parseInt(header.get("ZNAXIS1")) != image.getNAxis1())||
+			   (Integer.parseInt(header.get("ZNAXIS2")) != image.getNAxis2()))
+			{
+				throw new Exception(this.getClass().getName()+":runFpackComparison:"+fpackFile+
+						    " has different dimensions to "+fitsFile+".");
+			}
+			rowLength = Integer.parseInt(header.get("NAXIS1"));
+			tileCount = Integer.parseInt(header.get("NAXIS2"));
+			tileRowCount = Integer.parseInt(header.get("ZTILE2"));
+			bytePix = image.getBytePix();
+			table = new byte[rowLength*tileCount];
+			randomAccessFile.readFully(table);
+			heapOffset = (header.get("THEAP") != null) ? Long.parseLong(header.get("THEAP")) : table.length;
+			randomAccessFile.seek(randomAccessFile.getFilePointer()+heapOffset-table.length);
+			heap = new byte[(int)Long.parseLong(header.get("PCOUNT"))];
+			randomAccessFile.readFully(heap);
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+		decompressedMismatchCount = 0;
+		compressedMismatchCount = 0;
+		for(int i = 0; i < tileCount; i++)
+		{
+			// the COMPRESSED_DATA descriptor is the first column of each row
+			descriptorBuffer = ByteBuffer.wrap(table,i*rowLength,8);
+			tileLength = descriptorBuffer.getInt();
+			tileOffset = descriptorBuffer.getInt();
+			tile = Arrays.copyOfRange(heap,tileOffset,tileOffset+tileLength);
+			firstRow = i*tileRowCount;
+			rowCount = Math.min(tileRowCount,image.getNAxis2()-firstRow);
+			tileData = decompress(tile,rowCount*image.getNAxis1(),bytePix);
+			for(int j = 0; j < tileData.length; j++)
+			{
+				if(tileData[j] != imageData[firstRow*image.getNAxis1()+j])
+				{
+					decompressedMismatchCount++;
+					break;
+				}
+			}
+			if(Arrays.equals(tile,compress(Arrays.copyOfRange(imageData,firstRow*image.getNAxis1(),
+							   (firstRow+rowCount)*image.getNAxis1()),bytePix)) == false)
+				compressedMismatchCount++;
+		}
+		check("fpack tiles decompressed to the original image",tileCount+" of "+tileCount,
+		      (tileCount-decompressedMismatchCount)+" of "+tileCount);
+		check("fpack tiles identical to riceCompress output",tileCount+" of "+tileCount,
+		      (tileCount-compressedMismatchCount)+" of "+tileCount);
+		return (failCount == 0);
+	}
+
+	/**
+	 * Read a FITS header, leaving the file positioned at the start of the data unit.
+	 * @param randomAccessFile The file, positioned at the start of a header.
+	 * @return A map of keyword to value, with quotes and comments removed.
+	 * @exception IOException Thrown if the file cannot be read.
+	 */
+	private Map<String,String> readHeader(RandomAccessFile randomAccessFile) throws IOException
+	{
+		Map<String,String> header = new HashMap<String,String>();
+		byte block[] = new byte[FitsImageData.FITS_BLOCK_LENGTH];
+		String card = null;
+		String value = null;
+		boolean done = false;
+		int index;
+
+		while(done == false)
+		{
+			randomAccessFile.readFully(block);
+			for(int i = 0; i < block.length; i += FitsImageData.FITS_CARD_LENGTH)
+			{
+				card = new String(block,i,FitsImageData.FITS_CARD_LENGTH,"US-ASCII");
+				if(card.startsWith("END "))
+				{
+					done = true;
+					break;
+				}
+				if(card.substring(8,10).equals("= ") == false)
+					continue;
+				value = card.substring(10);
+				if(value.trim().startsWith("'"))
+				{
+					value = value.trim().substring(1);
+					value = value.substring(0,value.indexOf('\''));
+				}
+				else
+				{
+					index = value.indexOf('/');
+					if(index >= 0)
+						value = value.substring(0,index);
+				}
+				header.put(card.substring(0,8).trim(),value.trim());
+			}
+		}
+		return header;
+	}
+
+	/**
+	 * This routine parses arguments passed into TestFitsTileCompressor.
+	 * @param args The command line arguments.
+	 * @see #fitsFile
+	 * @see #fpackFile
+	 * @see #help
+	 */
+	private void parseArgs(String[] args)
+	{
+		for(int i = 0; i < args.length;i++)
+		{
+			if(args[i].equals("-h")||args[i].equals("-help"))
+			{
+				help();
+				System.exit(0);
+			}
+			else if(args[i].equals("-fits"))
+			{
+				if((i+1)< args.length)
+				{
+					fitsFile = new File(args[i+1]);
+					i++;
+				}
+				else
+					System.err.println("-fits requires a filename.");
+			}
+			else if(args[i].equals("-fpack"))
+			{
+				if((i+1)< args.length)
+				{
+					fpackFile = new File(args[i+1]);
+					i++;
+				}
+				else
+					System.err.println("-fpack requires a filename.");
+			}
+			else
+				System.out.println(this.getClass().getName()+":Option not supported:"+args[i]);
+		}
+	}
+
+	/**
+	 * Help message routine.
+	 */
+	private void help()
+	{
+		System.out.println(this.getClass().getName()+" Help:");
+		System.out.println("Runs the built in Rice compression cases, unless -fits and -fpack are specified.");
+		System.out.println("Options are:");
+		System.out.println("\t-fits <filename> - An uncompressed 16 or 32 bit FITS image.");
+		System.out.println("\t-fpack <filename> - The same image Rice compressed by fpack (fpack -r).");
+	}
+
+	/**
+	 * The main routine, called when TestFitsTileCompressor is executed.
+	 * @param args The command line arguments.
+	 * @see #parseArgs
+	 * @see #runCases
+	 * @see #runFpackComparison
+	 */
+	public static void main(String[] args)
+	{
+		TestFitsTileCompressor tftc = new TestFitsTileCompressor();
+		boolean retval;
+
+		tftc.parseArgs(args);
+		try
+		{
+			if((tftc.fitsFile != null)&&(tftc.fpackFile != null))
+				retval = tftc.runFpackComparison();
+			else
+				retval = tftc.runCases();
+		}
+		catch(Exception e)
+		{
+			retval = false;
+			System.err.println("run failed:"+e);
+			e.printStackTrace(System.err);
+		}
+		if(retval)
+			System.exit(0);
+		else
+			System.exit(2);
+	}
+
+	/**
+	 * Simple big-endian bit reader, the inverse of FitsTileCompressor's bit packer.
+	 */
+	private static class BitInput
+	{
+		/**
+		 * The input buffer.
+		 */
+		private byte buffer[] = null;
+		/**
+		 * The index of the next bit to read.
+		 */
+		private long bitPosition = 0;
+
+		/**
+		 * Constructor.
+		 * @param b The input buffer.
+		 */
+		public BitInput(byte b[])
+		{
+			super();
+			buffer = b;
+		}
+
+		/**
+		 * Read n bits.
+		 * @param n The number of bits to read, up to 32.
+		 * @return The bits, as an unsigned value.
+		 * @exception Exception Thrown if the buffer runs out.
+		 */
+		public long read(int n) throws Exception
+		{
+			long value = 0;
+			int byteIndex;
+
+			for(int i = 0; i < n; i++)
+			{
+				byteIndex = (int)(bitPosition>>3);
+				if(byteIndex >= buffer.length)
+					throw new Exception(this.getClass().getName()+":read:Ran out of compressed data.");
+				value = (value<<1)|((buffer[byteIndex]>>(7-(int)(bitPosition&7)))&1);
+				bitPosition++;
+			}
+			return value;
+		}
+	}
+}
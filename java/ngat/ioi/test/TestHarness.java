@@ -0,0 +1,54 @@
+// TestHarness.java
+// $HeadURL$
+package ngat.ioi.test;
+
+import java.lang.*;
+
+/**
+ * This class is the superclass of the test programs that run a set of built in cases. Each case compares an
+ * actual result with the expected one, printing PASS or FAIL, and the failures are counted, so the
+ * program can report how many cases failed and exit with a non-zero status if any did.
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class TestHarness
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The number of cases that failed.
+	 */
+	protected int failCount = 0;
+
+	/**
+	 * Check an actual result matches the expected result, and print the outcome.
+	 * @param name The name of the case.
+	 * @param expected The expected result.
+	 * @param actual The actual result.
+	 * @see #failCount
+	 */
+	protected void check(String name,String expected,String actual)
+	{
+		if(expected.equals(actual))
+			System.out.println("PASS:"+name+":"+actual);
+		else
+		{
+			System.out.println("FAIL:"+name+":expected:"+expected+":actual:"+actual);
+			failCount++;
+		}
+	}
+
+	/**
+	 * Print the number of cases that failed.
+	 * @param caseName What the cases are, e.g. "cases" or "checksums".
+	 * @return true if all the cases passed, false if any failed.
+	 * @see #failCount
+	 */
+	protected boolean report(String caseName)
+	{
+		System.out.println(this.getClass().getName()+":"+failCount+" "+caseName+" failed.");
+		return (failCount == 0);
+	}
+}
@@ -0,0 +1,490 @@
+// TestRampTimingModel.java
+// $HeadURL$
+package ngat.ioi.test;
+
+import java.lang.*;
+import java.io.*;
+import java.util.*;
+
+import ngat.ioi.IOI;
+import ngat.ioi.IOIConfig;
+import ngat.ioi.RampTimingModel;
+
+/**
+ * This class tests the ramp timing model used to compute MULTRUN ACK times. A set of built in cases is run:
+ * <ul>
+ * <li>The Fowler IDL exposure length, the read up the ramp group count, and the nearest obtainable exposure
+ *     length, including the exposure lengths the IDL Socket Server cannot obtain.
+ * <li>The predicted duration and overhead of a ramp, using the coefficients from the configured execution
+ *     times, and the window fraction.
+ * <li>Learning: one update reduces the residual of the same ramp by the learning rate, outliers are not
+ *     learnt from, and nothing is learnt when learning is disabled.
+ * <li>The learnt coefficients are saved and re-loaded, and a model file learnt from different initial
+ *     coefficients is ignored.
+ * </ul>
+ * The expected values are computed from the configured ramp parameters and execution times, so the cases
+ * are valid for any instrument's properties. The model logs through, and is configured by, an IOI object,
+ * so this program loads the IO:I properties in the same way as ReprocessRamps, and must be run from the
+ * directory containing them.
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class TestRampTimingModel extends TestHarness
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The default scratch model filename.
+	 */
+	static final String DEFAULT_FILENAME = "/tmp/TestRampTimingModel.properties";
+	/**
+	 * The learning rate used by the learning cases.
+	 */
+	static final double LEARNING_RATE = 0.2;
+	/**
+	 * The outlier threshold used by the learning cases, in milliseconds.
+	 */
+	static final long OUTLIER_THRESHOLD = 30000;
+	/**
+	 * The scratch model file.
+	 */
+	private File file = new File(DEFAULT_FILENAME);
+	/**
+	 * The IOI object the model logs through.
+	 */
+	private TestIOI ioi = null;
+	/**
+	 * The IO:I configuration the expected values are computed from.
+	 */
+	private IOIConfig config = null;
+
+	/**
+	 * Initialise the IOI object the model logs through, and delete any old scratch model file.
+	 * @exception Exception Thrown if the IO:I properties cannot be loaded.
+	 * @see #ioi
+	 * @see #config
+	 * @see #file
+	 */
+	private void init() throws Exception
+	{
+		ioi = new TestIOI();
+		ioi.initTest();
+		config = ioi.getStatus().getConfig();
+		file.delete();
+	}
+
+	/**
+	 * Create a model, with the coefficients computed from the configured execution times, saving to the
+	 * scratch model file.
+	 * @param learnEnable Whether the model learns from measured ramps.
+	 * @return The model.
+	 * @exception Exception Thrown if the model cannot be initialised.
+	 * @see #file
+	 */
+	private TestModel createModel(boolean learnEnable) throws Exception
+	{
+		TestModel model = null;
+
+		model = new TestModel();
+		model.setIOI(ioi);
+		model.initTest(file,learnEnable);
+		return model;
+	}
+
+	/**
+	 * Get the Fowler IDL exposure length for a requested exposure length, or "rejected" if it cannot be
+	 * obtained.
+	 * @param model The model.
+	 * @param requestedExposureLength The requested exposure length, in milliseconds.
+	 * @return A string.
+	 */
+	private String getFowlerIDLExposureLength(RampTimingModel model,int requestedExposureLength)
+	{
+		try
+		{
+			return Integer.toString(model.getFowlerIDLExposureLength(requestedExposureLength));
+		}
+		catch(Exception e)
+		{
+			return "rejected";
+		}
+	}
+
+	/**
+	 * Get the read up the ramp group count for a requested exposure length, or "rejected" if it cannot be
+	 * obtained.
+	 * @param model The model.
+	 * @param requestedExposureLength The requested exposure length, in milliseconds.
+	 * @return A string.
+	 */
+	private String getUpTheRampGroupCount(RampTimingModel model,int requestedExposureLength)
+	{
+		try
+		{
+			return Integer.toString(model.getUpTheRampGroupCount(requestedExposureLength));
+		}
+		catch(Exception e)
+		{
+			return "rejected";
+		}
+	}
+
+	/**
+	 * Test the exposure lengths the IDL Socket Server can and cannot obtain in each sampling mode.
+	 * @exception Exception Thrown if the model cannot be created.
+	 * @see TestHarness#check
+	 */
+	private void testExposureLength() throws Exception
+	{
+		RampTimingModel model = null;
+		int nRead,readTime,groupTime;
+
+		model = createModel(false);
+		nRead = config.getFowlerNRead();
+		readTime = config.getFowlerReadExecutionTime();
+		groupTime = config.getUpTheRampGroupExecutionTime();
+		// Fowler: one set of reads and the extra read are subtracted from longer exposures
+		check("Fowler IDL exposure length of (nRead+2) reads + 500 ms",Integer.toString(readTime+500),
+		      getFowlerIDLExposureLength(model,(nRead+2)*readTime+500));
+		// no extra read is subtracted if the gap is at most one read
+		check("Fowler IDL exposure length of (nRead+1) reads",Integer.toString(readTime),
+		      getFowlerIDLExposureLength(model,(nRead+1)*readTime));
+		check("Fowler IDL exposure length of nRead reads","0",getFowlerIDLExposureLength(model,nRead*readTime));
+		check("Fowler IDL exposure length of less than nRead reads","rejected",
+		      getFowlerIDLExposureLength(model,nRead*readTime-1));
+		check("Fowler IDL exposure length between (nRead+1) and (nRead+2) reads","rejected",
+		      getFowlerIDLExposureLength(model,(nRead+1)*readTime+(readTime/2)));
+		check("Fowler nearest exposure length below nRead reads",Integer.toString(nRead*readTime),
+		      Integer.toString(model.getNearestExposureLength(RampTimingModel.SAMPLING_MODE_FOWLER,1)));
+		check("Fowler nearest exposure length just above (nRead+1) reads",Integer.toString((nRead+1)*readTime),
+		      Integer.toString(model.getNearestExposureLength(RampTimingModel.SAMPLING_MODE_FOWLER,
+								      (nRead+1)*readTime+(readTime/4))));
+		check("Fowler nearest exposure length just below (nRead+2) reads",Integer.toString((nRead+2)*readTime),
+		      Integer.toString(model.getNearestExposureLength(RampTimingModel.SAMPLING_MODE_FOWLER,
+								      (nRead+2)*readTime-(readTime/4))));
+		check("Fowler nearest exposure length of an obtainable length",Integer.toString((nRead+3)*readTime),
+		      Integer.toString(model.getNearestExposureLength(RampTimingModel.SAMPLING_MODE_FOWLER,
+								      (nRead+3)*readTime)));
+		// read up the ramp: whole groups
+		check("up the ramp group count of 3 1/3 groups","3",
+		      getUpTheRampGroupCount(model,3*groupTime+(groupTime/3)));
+		check("up the ramp group count of half a group","rejected",getUpTheRampGroupCount(model,groupTime/2));
+		check("up the ramp nearest exposure length of 2.6 groups",Integer.toString(3*groupTime),
+		      Integer.toString(model.getNearestExposureLength(RampTimingModel.SAMPLING_MODE_UP_THE_RAMP,
+								      (26*groupTime)/10)));
+		check("up the ramp nearest exposure length of a quarter group",Integer.toString(groupTime),
+		      Integer.toString(model.getNearestExposureLength(RampTimingModel.SAMPLING_MODE_UP_THE_RAMP,
+								      groupTime/4)));
+	}
+
+	/**
+	 * Test the predicted duration and overhead, using the coefficients computed from the configured
+	 * execution times.
+	 * <ul>
+	 * <li>A Fowler ramp of (nRead+2) reads + 500 ms takes the IDL exposure length (one read + 500 ms), plus
+	 *     the resets, plus 2*nRead+1 reads.
+	 * <li>A read up the ramp ramp of 3 groups takes the resets plus 3 groups.
+	 * <li>Reading out a quarter of the array takes a quarter of the frame time.
+	 * </ul>
+	 * @exception Exception Thrown if the model cannot be created, or a prediction fails.
+	 * @see TestHarness#check
+	 */
+	private void testPredict() throws Exception
+	{
+		RampTimingModel model = null;
+		int nRead,readTime,fowlerResetTime,upTheRampResetTime,groupTime,exposureLength,duration;
+		double quarterFraction;
+
+		model = createModel(false);
+		nRead = config.getFowlerNRead();
+		readTime = config.getFowlerReadExecutionTime();
+		fowlerResetTime = config.getFowlerNReset()*config.getFowlerResetExecutionTime();
+		upTheRampResetTime = config.getUpTheRampNReset()*config.getUpTheRampResetExecutionTime();
+		groupTime = config.getUpTheRampGroupExecutionTime();
+		quarterFraction = RampTimingModel.getWindowFraction(0,(RampTimingModel.DETECTOR_SIZE/2)-1,
+								   0,(RampTimingModel.DETECTOR_SIZE/2)-1);
+		check("window fraction of a quarter of the array","0.25",Double.toString(quarterFraction));
+		check("window fraction of the whole array","1.0",
+		      Double.toString(RampTimingModel.getWindowFraction(0,RampTimingModel.DETECTOR_SIZE-1,
+									0,RampTimingModel.DETECTOR_SIZE-1)));
+		// Fowler
+		exposureLength = (nRead+2)*readTime+500;
+		duration = (readTime+500)+fowlerResetTime+((2*nRead)+1)*readTime;
+		check("Fowler predicted duration",Integer.toString(duration),
+		      Integer.toString(model.predictDuration(RampTimingModel.SAMPLING_MODE_FOWLER,exposureLength,
+							     RampTimingModel.WINDOW_FRACTION_FULL_FRAME)));
+		check("Fowler predicted overhead",Integer.toString(duration-exposureLength),
+		      Integer.toString(model.predictOverhead(RampTimingModel.SAMPLING_MODE_FOWLER,exposureLength,
+							     RampTimingModel.WINDOW_FRACTION_FULL_FRAME)));
+		duration = (readTime+500)+fowlerResetTime+
+			(int)(Math.round((((2*nRead)+1)*readTime)*quarterFraction));
+		check("Fowler predicted duration of a quarter window",Integer.toString(duration),
+		      Integer.toString(model.predictDuration(RampTimingModel.SAMPLING_MODE_FOWLER,exposureLength,
+							     quarterFraction)));
+		// read up the ramp
+		exposureLength = 3*groupTime;
+		check("up the ramp predicted duration",Integer.toString(upTheRampResetTime+exposureLength),
+		      Integer.toString(model.predictDuration(RampTimingModel.SAMPLING_MODE_UP_THE_RAMP,exposureLength,
+							     RampTimingModel.WINDOW_FRACTION_FULL_FRAME)));
+		check("up the ramp predicted overhead",Integer.toString(upTheRampResetTime),
+		      Integer.toString(model.predictOverhead(RampTimingModel.SAMPLING_MODE_UP_THE_RAMP,exposureLength,
+							     RampTimingModel.WINDOW_FRACTION_FULL_FRAME)));
+	}
+
+	/**
+	 * Test learning from measured ramps.
+	 * <ul>
+	 * <li>A normalised least mean squares update moves the prediction for the same ramp a learning rate
+	 *     fraction of the way to the measured duration.
+	 * <li>A measurement further from the prediction than the outlier threshold is not learnt from, but
+	 *     its residual is recorded.
+	 * <li>Nothing is learnt when learning is disabled.
+	 * </ul>
+	 * @exception Exception Thrown if the model cannot be created, or an update fails.
+	 * @see TestHarness#check
+	 */
+	private void testUpdate() throws Exception
+	{
+		RampTimingModel model = null;
+		int mode,exposureLength,predicted;
+		long measured;
+
+		mode = RampTimingModel.SAMPLING_MODE_UP_THE_RAMP;
+		exposureLength = 5*config.getUpTheRampGroupExecutionTime();
+		model = createModel(true);
+		predicted = model.predictDuration(mode,exposureLength,RampTimingModel.WINDOW_FRACTION_FULL_FRAME);
+		measured = predicted+1000;
+		model.update(mode,exposureLength,RampTimingModel.WINDOW_FRACTION_FULL_FRAME,measured);
+		check("residual of update","1000",Long.toString(model.getLastResidual(mode)));
+		check("update count after update","1",Integer.toString(model.getUpdateCount(mode)));
+		check("prediction after update",Long.toString(predicted+Math.round(1000*LEARNING_RATE)),
+		      Integer.toString(model.predictDuration(mode,exposureLength,
+							     RampTimingModel.WINDOW_FRACTION_FULL_FRAME)));
+		// an outlier
+		predicted = model.predictDuration(mode,exposureLength,RampTimingModel.WINDOW_FRACTION_FULL_FRAME);
+		measured = predicted+OUTLIER_THRESHOLD+1;
+		model.update(mode,exposureLength,RampTimingModel.WINDOW_FRACTION_FULL_FRAME,measured);
+		check("residual of outlier",Long.toString(OUTLIER_THRESHOLD+1),Long.toString(model.getLastResidual(mode)));
+		check("update count after outlier","1",Integer.toString(model.getUpdateCount(mode)));
+		check("prediction after outlier",Integer.toString(predicted),
+		      Integer.toString(model.predictDuration(mode,exposureLength,
+							     RampTimingModel.WINDOW_FRACTION_FULL_FRAME)));
+		// learning disabled
+		model = createModel(false);
+		predicted = model.predictDuration(mode,exposureLength,RampTimingModel.WINDOW_FRACTION_FULL_FRAME);
+		model.update(mode,exposureLength,RampTimingModel.WINDOW_FRACTION_FULL_FRAME,predicted+1000);
+		check("update count with learning disabled","0",Integer.toString(model.getUpdateCount(mode)));
+		check("prediction with learning disabled",Integer.toString(predicted),
+		      Integer.toString(model.predictDuration(mode,exposureLength,
+							     RampTimingModel.WINDOW_FRACTION_FULL_FRAME)));
+	}
+
+	/**
+	 * Test the learnt coefficients are saved and re-loaded, and a model file learnt from different initial
+	 * coefficients is ignored.
+	 * @exception Exception Thrown if the model cannot be created, or an update fails.
+	 * @see #file
+	 * @see TestHarness#check
+	 */
+	private void testSaveLoad() throws Exception
+	{
+		TestModel model = null;
+		Properties properties = null;
+		FileInputStream inputStream = null;
+		FileOutputStream outputStream = null;
+		int mode,exposureLength,learntPrediction,initialPrediction;
+
+		mode = RampTimingModel.SAMPLING_MODE_FOWLER;
+		exposureLength = (config.getFowlerNRead()+2)*config.getFowlerReadExecutionTime()+500;
+		model = createModel(true);
+		initialPrediction = model.predictDuration(mode,exposureLength,RampTimingModel.WINDOW_FRACTION_FULL_FRAME);
+		model.update(mode,exposureLength,RampTimingModel.WINDOW_FRACTION_FULL_FRAME,initialPrediction+2000);
+		learntPrediction = model.predictDuration(mode,exposureLength,RampTimingModel.WINDOW_FRACTION_FULL_FRAME);
+		check("model file saved","true",Boolean.toString(file.exists()));
+		// re-load the learnt coefficients
+		model = createModel(true);
+		model.loadTest();
+		check("update count after load","1",Integer.toString(model.getUpdateCount(mode)));
+		check("prediction after load",Integer.toString(learntPrediction),
+		      Integer.toString(model.predictDuration(mode,exposureLength,
+							     RampTimingModel.WINDOW_FRACTION_FULL_FRAME)));
+		// change the initial value the frame time was learnt from, as if the configuration had changed
+		properties = new Properties();
+		inputStream = new FileInputStream(file);
+		try
+		{
+			properties.load(inputStream);
+		}
+		finally
+		{
+			inputStream.close();
+		}
+		properties.setProperty("FOWLER.frame.initial",
+				       Double.toString(config.getFowlerReadExecutionTime()+1.0));
+		outputStream = new FileOutputStream(file);
+		try
+		{
+			properties.store(outputStream,null);
+		}
+		finally
+		{
+			outputStream.close();
+		}
+		model = createModel(true);
+		model.loadTest();
+		check("update count after load of changed configuration","0",Integer.toString(model.getUpdateCount(mode)));
+		check("prediction after load of changed configuration",Integer.toString(initialPrediction),
+		      Integer.toString(model.predictDuration(mode,exposureLength,
+							     RampTimingModel.WINDOW_FRACTION_FULL_FRAME)));
+		file.delete();
+	}
+
+	/**
+	 * Run the built in cases.
+	 * @return true if all the cases passed, false if any failed.
+	 * @exception Exception Thrown if a case cannot be run.
+	 * @see #testExposureLength
+	 * @see #testPredict
+	 * @see #testUpdate
+	 * @see #testSaveLoad
+	 * @see TestHarness#report
+	 */
+	private boolean run() throws Exception
+	{
+		testExposureLength();
+		testPredict();
+		testUpdate();
+		testSaveLoad();
+		return report("cases");
+	}
+
+	/**
+	 * This routine parses arguments passed into TestRampTimingModel.
+	 * @param args The command line arguments.
+	 * @see #file
+	 * @see #help
+	 */
+	private void parseArgs(String[] args)
+	{
+		for(int i = 0; i < args.length;i++)
+		{
+			if(args[i].equals("-h")||args[i].equals("-help"))
+			{
+				help();
+				System.exit(0);
+			}
+			else if(args[i].equals("-f")||args[i].equals("-file"))
+			{
+				if((i+1)< args.length)
+				{
+					file = new File(args[i+1]);
+					i++;
+				}
+				else
+					System.err.println("-file requires a filename.");
+			}
+			else
+				System.out.println(this.getClass().getName()+":Option not supported:"+args[i]);
+		}
+	}
+
+	/**
+	 * Help message routine.
+	 */
+	private void help()
+	{
+		System.out.println(this.getClass().getName()+" Help:");
+		System.out.println("Runs the built in ramp timing model cases.");
+		System.out.println("Run from the directory containing the IO:I properties.");
+		System.out.println("Options are:");
+		System.out.println("\t-f[ile] <filename> - The scratch model file, which is deleted (default "+
+				   DEFAULT_FILENAME+").");
+	}
+
+	/**
+	 * The main routine, called when TestRampTimingModel is executed.
+	 * @param args The command line arguments.
+	 * @see #parseArgs
+	 * @see #init
+	 * @see #run
+	 */
+	public static void main(String[] args)
+	{
+		TestRampTimingModel trtm = new TestRampTimingModel();
+		boolean retval;
+
+		trtm.parseArgs(args);
+		try
+		{
+			trtm.init();
+			retval = trtm.run();
+		}
+		catch(Exception e)
+		{
+			retval = false;
+			System.err.println("run failed:"+e);
+			e.printStackTrace(System.err);
+		}
+		if(retval)
+			System.exit(0);
+		else
+			System.exit(2);
+	}
+
+	/**
+	 * IOI subclass, giving the model the status and loggers it needs without starting the robotic software.
+	 */
+	private static class TestIOI extends IOI
+	{
+		/**
+		 * Load the properties, and create the loggers and executors.
+		 * @exception Exception Thrown if the initialisation fails.
+		 */
+		public void initTest() throws Exception
+		{
+			initOffline(0);
+		}
+	}
+
+	/**
+	 * RampTimingModel subclass, using a scratch model file and the test's learning configuration, rather
+	 * than the ones in the properties.
+	 */
+	private static class TestModel extends RampTimingModel
+	{
+		/**
+		 * Initialise the model from the properties, then start again from the initial coefficients, using
+		 * the scratch model file and the test's learning configuration.
+		 * @param file The scratch model file.
+		 * @param learn Whether the model learns from measured ramps.
+		 * @exception Exception Thrown if the model cannot be initialised.
+		 * @see TestRampTimingModel#LEARNING_RATE
+		 * @see TestRampTimingModel#OUTLIER_THRESHOLD
+		 */
+		public void initTest(File file,boolean learn) throws Exception
+		{
+			init();
+			filename = file.getPath();
+			learnEnable = learn;
+			learningRate = LEARNING_RATE;
+			outlierThreshold = OUTLIER_THRESHOLD;
+			for(int mode = 0; mode < SAMPLING_MODE_COUNT; mode++)
+			{
+				for(int i = 0; i < COEFFICIENT_COUNT; i++)
+					coefficient[mode][i] = initialCoefficient[mode][i];
+				updateCount[mode] = 0;
+				lastResidual[mode] = 0;
+			}
+		}
+
+		/**
+		 * Load the learnt coefficients from the scratch model file.
+		 */
+		public void loadTest()
+		{
+			load();
+		}
+	}
+}
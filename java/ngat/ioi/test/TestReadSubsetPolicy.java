@@ -0,0 +1,257 @@
+// TestReadSubsetPolicy.java
+// $HeadURL$
+package ngat.ioi.test;
+
+import java.lang.*;
+import java.io.*;
+import java.util.*;
+
+import ngat.ioi.ReadOrdering;
+import ngat.ioi.ReadSubsetPolicy;
+
+/**
+ * This class tests the read ordering and read subset selection used by the data processing thread.
+ * A set of built in cases is run, checking:
+ * <ul>
+ * <li>ReadOrdering sorts shuffled (and not zero padded) ramp filenames into acquisition order.
+ * <li>ReadSubsetPolicy selects the right read numbers for "all", "first:N", "last:N", "every:K" and
+ *     "fowler:N" policies (including fowler:N with N more than half the reads, and unions of terms).
+ * <li>The reads selected by ReadSubsetPolicy.select(List,int[]) are the reads at the selected read numbers
+ *     in the whole ramp, which is what calibrateFitsFiles uses to pick each read's dark plane, rather than
+ *     their positions in the selected list.
+ * <li>Illegal policies are rejected.
+ * </ul>
+ * Alternatively a policy and a number of reads can be specified on the command line, and the selected
+ * read numbers are printed.
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class TestReadSubsetPolicy extends TestHarness
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * A policy to print the selection of, specified on the command line, or null to run the built in cases.
+	 */
+	private String policyString = null;
+	/**
+	 * The number of reads to apply the command line policy to.
+	 */
+	private int readCount = 10;
+
+	/**
+	 * Test ReadOrdering sorts a shuffled list of ramp filenames into acquisition order.
+	 * @see TestHarness#check
+	 */
+	private void testReadOrdering()
+	{
+		List<File> fileList = new Vector<File>();
+		String nameList[] = {"H2RG_R01_M01_N10.fits","H2RG_R01_M02_N1.fits","H2RG_R01_M01_N2.fits",
+				     "H2RG_R01_M01_N1.fits"};
+		String subRampNameList[] = {"S10_H2RG_R01_M01_N1.fits","S2_H2RG_R01_M01_N2.fits",
+					    "S2_H2RG_R01_M01_N1.fits","S1_H2RG_R01_M01_N1.fits"};
+
+		for(int i = 0; i < nameList.length; i++)
+			fileList.add(new File(nameList[i]));
+		ReadOrdering.sort(fileList);
+		check("ReadOrdering.sort",
+		      "[H2RG_R01_M01_N1.fits, H2RG_R01_M01_N2.fits, H2RG_R01_M01_N10.fits, H2RG_R01_M02_N1.fits]",
+		      fileList.toString());
+		// stitched guided sub-ramps
+		fileList.clear();
+		for(int i = 0; i < subRampNameList.length; i++)
+			fileList.add(new File(subRampNameList[i]));
+		ReadOrdering.sort(fileList);
+		check("ReadOrdering.sort:sub-ramps",
+		      "[S1_H2RG_R01_M01_N1.fits, S2_H2RG_R01_M01_N1.fits, S2_H2RG_R01_M01_N2.fits, "+
+		      "S10_H2RG_R01_M01_N1.fits]",fileList.toString());
+		check("ReadOrdering.getReadIndex","10",Long.toString(ReadOrdering.getReadIndex("H2RG_R01_M02_N10.fits")));
+		check("ReadOrdering.getGroupIndex","2",Long.toString(ReadOrdering.getGroupIndex("H2RG_R01_M02_N10.fits")));
+	}
+
+	/**
+	 * Test a policy selects the expected read numbers, and that the reads selected are the reads at those
+	 * read numbers.
+	 * @param policyString The policy.
+	 * @param readCount The number of reads in the ramp.
+	 * @param expected The expected read numbers, as printed by Arrays.toString.
+	 * @see TestHarness#check
+	 */
+	private void testPolicy(String policyString,int readCount,String expected)
+	{
+		ReadSubsetPolicy policy = null;
+		List<Integer> readList = new Vector<Integer>();
+		List<Integer> selectedList = null;
+		int readIndexList[] = null;
+
+		policy = new ReadSubsetPolicy(policyString);
+		// the reads are represented by their read number
+		for(int i = 0; i < readCount; i++)
+			readList.add(new Integer(i));
+		readIndexList = policy.getSelectedIndexList(readCount);
+		check(policyString+" of "+readCount+" reads",expected,Arrays.toString(readIndexList));
+		selectedList = ReadSubsetPolicy.select(readList,readIndexList);
+		check(policyString+" of "+readCount+" reads:select(List,int[])",expected,selectedList.toString());
+		selectedList = policy.select(readList);
+		check(policyString+" of "+readCount+" reads:select(List)",expected,selectedList.toString());
+	}
+
+	/**
+	 * Test an illegal policy is rejected.
+	 * @param policyString The policy.
+	 * @see TestHarness#check
+	 */
+	private void testIllegalPolicy(String policyString)
+	{
+		String result = null;
+
+		try
+		{
+			result = "accepted as "+new ReadSubsetPolicy(policyString);
+		}
+		catch(IllegalArgumentException e)
+		{
+			result = "rejected";
+		}
+		check("illegal policy '"+policyString+"'","rejected",result);
+	}
+
+	/**
+	 * Run the built in cases.
+	 * @return true if all the cases passed, false if any failed.
+	 * @see #testReadOrdering
+	 * @see #testPolicy
+	 * @see #testIllegalPolicy
+	 * @see TestHarness#report
+	 */
+	private boolean runCases()
+	{
+		testReadOrdering();
+		testPolicy("all",5,"[0, 1, 2, 3, 4]");
+		testPolicy("first:2",5,"[0, 1]");
+		testPolicy("first:7",5,"[0, 1, 2, 3, 4]");
+		// the first kept read is not the first read of the ramp
+		testPolicy("last:3",10,"[7, 8, 9]");
+		testPolicy("every:4",10,"[0, 4, 8]");
+		testPolicy("every:4,last:1",10,"[0, 4, 8, 9]");
+		// read N-2 is at position 2 in the selected list, but is read 8 of the ramp
+		testPolicy("fowler:2",10,"[0, 1, 8, 9]");
+		// fowler pairs overlapping (N more than half the reads) do not duplicate reads
+		testPolicy("fowler:3",4,"[0, 1, 2, 3]");
+		testPolicy("fowler:3",5,"[0, 1, 2, 3, 4]");
+		testPolicy("fowler:5",3,"[0, 1, 2]");
+		testPolicy("fowler:1",1,"[0]");
+		testPolicy("fowler:2",0,"[]");
+		testIllegalPolicy("");
+		testIllegalPolicy("fowler");
+		testIllegalPolicy("last:0");
+		testIllegalPolicy("every:-1");
+		testIllegalPolicy("first:x");
+		testIllegalPolicy("all:2");
+		testIllegalPolicy("middle:2");
+		return report("cases");
+	}
+
+	/**
+	 * Print the read numbers a command line policy selects.
+	 * @return true.
+	 * @exception IllegalArgumentException Thrown if the policy is illegal.
+	 * @see #policyString
+	 * @see #readCount
+	 */
+	private boolean runPolicy() throws IllegalArgumentException
+	{
+		ReadSubsetPolicy policy = null;
+
+		policy = new ReadSubsetPolicy(policyString);
+		System.out.println(policy+" of "+readCount+" reads:"+
+				   Arrays.toString(policy.getSelectedIndexList(readCount)));
+		return true;
+	}
+
+	/**
+	 * This routine parses arguments passed into TestReadSubsetPolicy.
+	 * @param args The command line arguments.
+	 * @see #policyString
+	 * @see #readCount
+	 * @see #help
+	 */
+	private void parseArgs(String[] args)
+	{
+		for(int i = 0; i < args.length;i++)
+		{
+			if(args[i].equals("-h")||args[i].equals("-help"))
+			{
+				help();
+				System.exit(0);
+			}
+			else if(args[i].equals("-p")||args[i].equals("-policy"))
+			{
+				if((i+1)< args.length)
+				{
+					policyString = args[i+1];
+					i++;
+				}
+				else
+					System.err.println("-policy requires a read subset policy.");
+			}
+			else if(args[i].equals("-r")||args[i].equals("-reads"))
+			{
+				if((i+1)< args.length)
+				{
+					readCount = Integer.parseInt(args[i+1]);
+					i++;
+				}
+				else
+					System.err.println("-reads requires a number of reads.");
+			}
+			else
+				System.out.println(this.getClass().getName()+":Option not supported:"+args[i]);
+		}
+	}
+
+	/**
+	 * Help message routine.
+	 */
+	private void help()
+	{
+		System.out.println(this.getClass().getName()+" Help:");
+		System.out.println("Runs the built in read ordering and read subset policy cases, unless a policy is specified.");
+		System.out.println("Options are:");
+		System.out.println("\t-p[olicy] <policy> - Print the read numbers the policy selects, e.g. fowler:2.");
+		System.out.println("\t-r[eads] <number> - The number of reads in the ramp to apply the policy to.");
+	}
+
+	/**
+	 * The main routine, called when TestReadSubsetPolicy is executed.
+	 * @param args The command line arguments.
+	 * @see #parseArgs
+	 * @see #runCases
+	 * @see #runPolicy
+	 */
+	public static void main(String[] args)
+	{
+		TestReadSubsetPolicy trsp = new TestReadSubsetPolicy();
+		boolean retval;
+
+		trsp.parseArgs(args);
+		try
+		{
+			if(trsp.policyString != null)
+				retval = trsp.runPolicy();
+			else
+				retval = trsp.runCases();
+		}
+		catch(Exception e)
+		{
+			retval = false;
+			System.err.println("run failed:"+e);
+		}
+		if(retval)
+			System.exit(0);
+		else
+			System.exit(2);
+	}
+}